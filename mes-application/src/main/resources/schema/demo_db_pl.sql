@@ -43389,6 +43389,14 @@ ALTER TABLE ONLY materialflowresources_resourcestock
     ADD CONSTRAINT materialflowresources_resourcestock_pkey PRIMARY KEY (id);
 
 
+--
+-- Name: materialflowresources_resourcestock_product_location_key; Type: CONSTRAINT; Schema: public; Owner: -
+--
+
+ALTER TABLE ONLY materialflowresources_resourcestock
+    ADD CONSTRAINT materialflowresources_resourcestock_product_location_key UNIQUE (product_id, location_id);
+
+
 --
 -- Name: materialflowresources_stocktaking_pkey; Type: CONSTRAINT; Schema: public; Owner: -
 --
@@ -29,8 +29,11 @@ import java.util.regex.Pattern;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.qcadoo.mes.advancedGenealogy.constants.BatchFields;
 import com.qcadoo.mes.advancedGenealogy.states.constants.BatchState;
 import com.qcadoo.mes.advancedGenealogy.states.constants.BatchStateChangeDescriber;
+import com.qcadoo.mes.basic.lookup.LookupIndexService;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
 import com.qcadoo.mes.states.service.StateChangeEntityBuilder;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
@@ -45,6 +48,9 @@ public class BatchModelHooks {
     @Autowired
     private BatchStateChangeDescriber batchStateChangeDescriber;
 
+    @Autowired
+    private LookupIndexService lookupIndexService;
+
     public void setInitialState(final DataDefinition dataDefinition, final Entity batch) {
         stateChangeEntityBuilder.buildInitial(batchStateChangeDescriber, batch, BatchState.TRACKED);
     }
@@ -78,4 +84,18 @@ public class BatchModelHooks {
     public void clearExternalIdOnCopy(final DataDefinition batchDD, final Entity batch) {
         batch.setField("externalNumber", null);
     }
+
+    public void onSave(final DataDefinition batchDD, final Entity batch) {
+        updateLookupIndex(batch);
+    }
+
+    public boolean onDelete(final DataDefinition batchDD, final Entity batch) {
+        updateLookupIndex(batch);
+
+        return true;
+    }
+
+    private void updateLookupIndex(final Entity batch) {
+        lookupIndexService.onEntityChanged(LookupIndexes.BATCHES, batch.getId(), batch.getStringField(BatchFields.NUMBER));
+    }
 }
@@ -28,6 +28,7 @@ import org.springframework.stereotype.Service;
 
 import com.qcadoo.mes.advancedGenealogy.states.constants.TrackingRecordState;
 import com.qcadoo.mes.advancedGenealogy.states.constants.TrackingRecordStateChangeDescriber;
+import com.qcadoo.mes.advancedGenealogy.tree.GenealogyEdgeIndexService;
 import com.qcadoo.mes.states.service.StateChangeEntityBuilder;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
@@ -41,6 +42,9 @@ public class TrackingRecordModelHooks {
     @Autowired
     private TrackingRecordStateChangeDescriber trackingRecordStateChangeDescriber;
 
+    @Autowired
+    private GenealogyEdgeIndexService genealogyEdgeIndexService;
+
     public void setInitialState(final DataDefinition dataDefinition, final Entity trackingRecord) {
         stateChangeEntityBuilder.buildInitial(trackingRecordStateChangeDescriber, trackingRecord, TrackingRecordState.DRAFT);
     }
@@ -49,4 +53,14 @@ public class TrackingRecordModelHooks {
         trackingRecord.setField("externalNumber", null);
     }
 
+    public void updateGenealogyEdgeIndex(final DataDefinition trackingRecordDD, final Entity trackingRecord) {
+        genealogyEdgeIndexService.onTrackingRecordChanged(trackingRecord);
+    }
+
+    public boolean onDelete(final DataDefinition trackingRecordDD, final Entity trackingRecord) {
+        genealogyEdgeIndexService.onTrackingRecordChanged(trackingRecord.getId());
+
+        return true;
+    }
+
 }
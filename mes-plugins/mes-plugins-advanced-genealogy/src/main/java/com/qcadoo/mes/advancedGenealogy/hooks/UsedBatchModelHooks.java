@@ -24,10 +24,13 @@
 package com.qcadoo.mes.advancedGenealogy.hooks;
 
 import java.util.Date;
+import java.util.Objects;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.qcadoo.mes.advancedGenealogy.constants.UsedBatchSimpleFields;
+import com.qcadoo.mes.advancedGenealogy.tree.GenealogyEdgeIndexService;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
 import com.qcadoo.security.api.SecurityService;
@@ -42,6 +45,9 @@ public class UsedBatchModelHooks {
     @Autowired
     private SecurityService securityService;
 
+    @Autowired
+    private GenealogyEdgeIndexService genealogyEdgeIndexService;
+
     public final void setDateAndWorker(final DataDefinition usedBatchDD, final Entity usedBatch) {
         final Date dateAndTime = new Date();
         final String worker = securityService.getCurrentUserName();
@@ -50,4 +56,18 @@ public class UsedBatchModelHooks {
         usedBatch.setField(L_WORKER, worker);
     }
 
+    public void updateGenealogyEdgeIndex(final DataDefinition usedBatchDD, final Entity usedBatch) {
+        Entity trackingRecord = usedBatch.getBelongsToField(UsedBatchSimpleFields.TRACKING_RECORD);
+
+        if (Objects.nonNull(trackingRecord)) {
+            genealogyEdgeIndexService.onTrackingRecordChanged(trackingRecord.getId());
+        }
+    }
+
+    public boolean onDelete(final DataDefinition usedBatchDD, final Entity usedBatch) {
+        updateGenealogyEdgeIndex(usedBatchDD, usedBatch);
+
+        return true;
+    }
+
 }
@@ -25,37 +25,37 @@ package com.qcadoo.mes.advancedGenealogy.tree;
 
 import static com.qcadoo.mes.advancedGenealogy.constants.BatchFields.ENTITY_TYPE;
 import static com.qcadoo.mes.advancedGenealogy.constants.BatchFields.GENEALOGY_TREE_NODE_LABEL;
-import static com.qcadoo.mes.advancedGenealogy.constants.BatchFields.NUMBER;
 import static com.qcadoo.mes.advancedGenealogy.constants.BatchFields.PARENT;
 import static com.qcadoo.mes.advancedGenealogy.constants.BatchFields.PRIORITY;
 import static com.qcadoo.mes.advancedGenealogy.constants.BatchFields.PRODUCT;
 import static com.qcadoo.mes.advancedGenealogy.constants.BatchFields.SUPPLIER;
 import static com.qcadoo.mes.advancedGenealogy.constants.BatchFields.TRACKING_RECORDS;
-import static com.qcadoo.mes.advancedGenealogy.constants.TrackingRecordFields.STATE;
-import static com.qcadoo.mes.advancedGenealogy.constants.TrackingRecordFields.USED_BATCHES_SIMPLE;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Service;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.qcadoo.localization.api.TranslationService;
 import com.qcadoo.mes.advancedGenealogy.constants.AdvancedGenealogyConstants;
-import com.qcadoo.mes.advancedGenealogy.constants.BatchFields;
-import com.qcadoo.mes.advancedGenealogy.constants.TrackingRecordFields;
-import com.qcadoo.mes.advancedGenealogy.constants.TrackingRecordType;
-import com.qcadoo.mes.advancedGenealogy.constants.UsedBatchSimpleFields;
-import com.qcadoo.mes.advancedGenealogy.states.constants.TrackingRecordState;
 import com.qcadoo.mes.basic.constants.CompanyFields;
 import com.qcadoo.mes.basic.constants.ProductFields;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
 import com.qcadoo.model.api.Entity;
-import com.qcadoo.model.api.EntityList;
+import com.qcadoo.model.api.search.SearchRestrictions;
 import com.qcadoo.plugin.api.PluginAccessor;
 
 @Service
@@ -69,6 +69,10 @@ public class AdvancedGenealogyTreeService {
 
     private static final String L_ADVANCED_GENEALOGY_FOR_ORDERS = "advancedGenealogyForOrders";
 
+    private static final String L_ID = "id";
+
+    private static final int L_BATCH_SIZE = 1000;
+
     @Autowired
     private PluginAccessor pluginAccessor;
 
@@ -78,36 +82,84 @@ public class AdvancedGenealogyTreeService {
     @Autowired
     private TranslationService translationService;
 
-    public List<Entity> getProducedFromTree(final Entity batch, final boolean includeDrafts, final boolean makeIdsUnique) {
-        List<Entity> tree = new ArrayList<>();
+    @Autowired
+    private GenealogyEdgeIndexService genealogyEdgeIndexService;
 
-        addChild(tree, batch, makeIdsUnique);
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
 
-        generateProducedFromTree(batch, tree, includeDrafts, makeIdsUnique);
+    public List<Entity> getProducedFromTree(final Entity batch, final boolean includeDrafts, final boolean makeIdsUnique) {
+        if (Objects.isNull(batch.getId())) {
+            return getRootTree(batch, makeIdsUnique);
+        }
 
-        return tree;
+        return buildTree(batch, genealogyEdgeIndexService.getProducedFromTree(batch.getId(), includeDrafts), makeIdsUnique);
     }
 
     public List<Entity> getUsedToProduceTree(final Entity batch, final boolean includeDrafts, final boolean makeIdsUnique) {
+        if (Objects.isNull(batch.getId())) {
+            return getRootTree(batch, true);
+        }
+
+        return buildTree(batch, genealogyEdgeIndexService.getUsedToProduceTree(batch.getId(), includeDrafts), true);
+    }
+
+    private List<Entity> getRootTree(final Entity root, final boolean makeIdsUnique) {
         List<Entity> tree = new ArrayList<>();
 
-        long realParentId = batch.getId();
+        addToTree(tree, root, null, getOrdersForBatch(root), makeIdsUnique);
+
+        return tree;
+    }
+
+    private List<Entity> buildTree(final Entity root, final List<GenealogyEdgeIndex.TreeNode> nodes,
+            final boolean makeIdsUnique) {
+        Set<Long> batchesIds = nodes.stream().map(GenealogyEdgeIndex.TreeNode::getBatchId).collect(Collectors.toSet());
+
+        Map<Long, Entity> batches = getBatches(root, batchesIds);
+        Map<Long, String> batchesOrders = getOrdersForBatches(batchesIds);
+
+        List<Entity> tree = new ArrayList<>(nodes.size());
+        Entity[] nodesBatches = new Entity[nodes.size()];
+        Set<Long> addedBatches = Sets.newHashSet();
+
+        for (int node = 0; node < nodes.size(); node++) {
+            GenealogyEdgeIndex.TreeNode treeNode = nodes.get(node);
 
-        addChild(tree, batch, true);
+            Entity parent = (treeNode.getParent() == GenealogyEdgeIndex.NO_PARENT) ? null : nodesBatches[treeNode.getParent()];
+            Entity batch = (treeNode.getParent() == GenealogyEdgeIndex.NO_PARENT) ? root : batches.get(treeNode.getBatchId());
 
-        generateUsedToProduceTree(batch, tree, includeDrafts, true, realParentId);
+            if (Objects.isNull(batch) || ((treeNode.getParent() != GenealogyEdgeIndex.NO_PARENT) && Objects.isNull(parent))) {
+                continue;
+            }
+
+            if (!addedBatches.add(treeNode.getBatchId())) {
+                batch = batch.copy();
+            }
+
+            addToTree(tree, batch, parent, batchesOrders.getOrDefault(treeNode.getBatchId(), ""), makeIdsUnique);
+
+            nodesBatches[node] = batch;
+        }
 
         return tree;
     }
 
-    private boolean addChild(final List<Entity> tree, final Entity child, final boolean makeIdsUnique) {
-        child.setField(PARENT, null);
-        String genealogyTreeNodeLabel = createGenealogyTreeNodeLabel(child);
-        child.setField(GENEALOGY_TREE_NODE_LABEL, genealogyTreeNodeLabel);
-        return addToList(tree, child, makeIdsUnique);
+    private void addToTree(final List<Entity> tree, final Entity child, final Entity parent, final String orders,
+            final boolean makeIdsUnique) {
+        child.setField(PARENT, parent);
+        child.setField(GENEALOGY_TREE_NODE_LABEL, createGenealogyTreeNodeLabel(child, orders));
+        child.setField(PRIORITY, 1);
+        child.setField(ENTITY_TYPE, L_BATCH);
+
+        if (makeIdsUnique) {
+            child.setId((long) tree.size());
+        }
+
+        tree.add(child);
     }
 
-    private String createGenealogyTreeNodeLabel(Entity batch) {
+    private String createGenealogyTreeNodeLabel(final Entity batch, final String orders) {
         Entity product = batch.getBelongsToField(PRODUCT);
         Entity supplier = batch.getBelongsToField(SUPPLIER);
         StringBuilder sb = new StringBuilder();
@@ -120,7 +172,6 @@ public class AdvancedGenealogyTreeService {
             sb.append(" - ");
             sb.append(supplier.getStringField(CompanyFields.NAME));
         }
-        String orders = getOrdersForBatch(batch);
         if (!orders.isEmpty()) {
             sb.append(" - ");
             sb.append(translationService.translate("advancedGenealogy.batch.report.order", LocaleContextHolder.getLocale()));
@@ -130,140 +181,37 @@ public class AdvancedGenealogyTreeService {
         return sb.toString();
     }
 
-    private boolean addChild(final List<Entity> tree, final Entity child, final Entity parent, final boolean makeIdsUnique) {
-        child.setField(PARENT, parent);
-        String genealogyTreeNodeLabel = createGenealogyTreeNodeLabel(child);
-        child.setField(GENEALOGY_TREE_NODE_LABEL, genealogyTreeNodeLabel);
-        return addToList(tree, child, makeIdsUnique);
-    }
+    private Map<Long, Entity> getBatches(final Entity root, final Set<Long> batchesIds) {
+        Map<Long, Entity> batches = Maps.newHashMap();
 
-    private boolean addToList(final List<Entity> tree, final Entity child, final boolean makeIdsUnique) {
-        child.setField(PRIORITY, 1);
-        child.setField(ENTITY_TYPE, L_BATCH);
+        List<Long> otherBatchesIds = batchesIds.stream().filter(id -> !id.equals(root.getId())).collect(Collectors.toList());
 
-        if (checkIfTreeContainsEntity(tree, child)) {
-            return false;
-        } else {
-            if (makeIdsUnique) {
-                child.setId((long) tree.size());
+        for (List<Long> ids : Lists.partition(otherBatchesIds, L_BATCH_SIZE)) {
+            for (Entity batch : getDD().find().add(SearchRestrictions.in(L_ID, ids)).list().getEntities()) {
+                batches.put(batch.getId(), batch);
             }
-            tree.add(child);
-            return true;
         }
-    }
 
-    private boolean checkIfTreeContainsEntity(final List<Entity> tree, final Entity child) {
-        for (Entity entity : tree) {
-            if (child.getField(PARENT).equals(entity.getField(PARENT))
-                    && entity.getField(NUMBER).equals(child.getField(NUMBER))) {
-                return true;
-            }
-        }
-        return false;
+        return batches;
     }
 
-    private void generateUsedToProduceTree(final Entity parent, final List<Entity> tree, final boolean includeDrafts,
-            final boolean makeIdsUnique, final long realParentId) {
-        List<Entity> batches = getDD().find().list().getEntities();
-
-        for (Entity producedBatch : batches) {
-            EntityList trackingRecords = producedBatch.getHasManyField(TRACKING_RECORDS);
-            for (Entity trackingRecord : trackingRecords) {
-                String entityType = trackingRecord.getStringField(ENTITY_TYPE);
-                if (entityType == null) {
-                    continue;
-                }
-
-                String state = trackingRecord.getStringField(STATE);
-
-                if (!TrackingRecordState.ACCEPTED.getStringValue().equals(state)) {
-                    boolean isDraftAndWeIncludeDrafts = TrackingRecordState.DRAFT.getStringValue().equals(state) && includeDrafts;
-
-                    if (!isDraftAndWeIncludeDrafts) {
-                        continue;
-                    }
-                }
-
-                if (TrackingRecordType.SIMPLE.equals(entityType)) {
-                    EntityList usedBatches = trackingRecord.getHasManyField(USED_BATCHES_SIMPLE);
-                    for (Entity usedBatch : usedBatches) {
-                        Entity batch = usedBatch.getBelongsToField(UsedBatchSimpleFields.BATCH);
-                        if (batch.getId().equals(realParentId)) {
-                            long realId = producedBatch.getId();
-                            boolean addedChild = addChild(tree, producedBatch, parent, makeIdsUnique);
-                            if (addedChild) {
-                                generateUsedToProduceTree(producedBatch, tree, includeDrafts, makeIdsUnique, realId);
-                            }
-                        }
-                    }
-                } else if (TrackingRecordType.FOR_ORDER.equals(entityType) && isEnabled(L_ADVANCED_GENEALOGY_FOR_ORDERS)) {
-                    EntityList genealogyProductInComponents = trackingRecord.getHasManyField("genealogyProductInComponents");
-                    for (Entity genealogyProductInComponent : genealogyProductInComponents) {
-                        EntityList productInBatches = genealogyProductInComponent.getHasManyField("productInBatches");
-                        for (Entity producedInBatch : productInBatches) {
-                            Entity batch = producedInBatch.getBelongsToField(L_BATCH);
-                            if (batch == null) {
-                                continue;
-                            }
-                            if (batch.getId().equals(realParentId)) {
-                                long realId = producedBatch.getId();
-                                boolean addedChild = addChild(tree, producedBatch, parent, makeIdsUnique);
-                                if (addedChild) {
-                                    generateUsedToProduceTree(producedBatch, tree, includeDrafts, makeIdsUnique, realId);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
-    }
+    private Map<Long, String> getOrdersForBatches(final Set<Long> batchesIds) {
+        Map<Long, String> batchesOrders = Maps.newHashMap();
 
-    private void generateProducedFromTree(final Entity producedBatch, final List<Entity> tree, final boolean includeDrafts,
-            final boolean makeIdsUnique) {
-        EntityList trackingRecords = producedBatch.getHasManyField(BatchFields.TRACKING_RECORDS);
-        for (Entity trackingRecord : trackingRecords) {
-            String type = trackingRecord.getStringField(TrackingRecordFields.ENTITY_TYPE);
-            if (type == null) {
-                continue;
-            }
-
-            String state = trackingRecord.getStringField(STATE);
-
-            if (!TrackingRecordState.ACCEPTED.getStringValue().equals(state)) {
-                boolean isDraftAndWeIncludeDrafts = TrackingRecordState.DRAFT.getStringValue().equals(state) && includeDrafts;
+        if (batchesIds.isEmpty() || !isEnabled(L_ADVANCED_GENEALOGY_FOR_ORDERS)) {
+            return batchesOrders;
+        }
 
-                if (!isDraftAndWeIncludeDrafts) {
-                    continue;
-                }
-            }
+        String query = "SELECT tr.producedbatch_id AS batchId, o.number FROM advancedgenealogy_trackingrecord tr "
+                + "JOIN orders_order o ON o.id = tr.order_id WHERE tr.producedbatch_id IN (:ids) "
+                + "GROUP BY tr.producedbatch_id, o.number ORDER BY tr.producedbatch_id, MIN(tr.id)";
 
-            if (TrackingRecordType.SIMPLE.equals(type)) {
-                EntityList usedBatches = trackingRecord.getHasManyField(USED_BATCHES_SIMPLE);
-                for (Entity usedBatch : usedBatches) {
-                    Entity batch = usedBatch.getBelongsToField(UsedBatchSimpleFields.BATCH);
-                    boolean addedChild = addChild(tree, batch, producedBatch, makeIdsUnique);
-                    if (addedChild) {
-                        generateProducedFromTree(batch, tree, includeDrafts, makeIdsUnique);
-                    }
-                }
-            } else if (TrackingRecordType.FOR_ORDER.equals(type) && isEnabled(L_ADVANCED_GENEALOGY_FOR_ORDERS)) {
-                EntityList genealogyProductInComponents = trackingRecord.getHasManyField("genealogyProductInComponents");
-                for (Entity genealogyProductInComponent : genealogyProductInComponents) {
-                    EntityList productInBatches = genealogyProductInComponent.getHasManyField("productInBatches");
-                    for (Entity producedInBatch : productInBatches) {
-                        Entity batch = producedInBatch.getBelongsToField(L_BATCH);
-                        if (batch == null) {
-                            continue;
-                        }
-                        boolean addedChild = addChild(tree, batch, producedBatch, makeIdsUnique);
-                        if (addedChild) {
-                            generateProducedFromTree(batch, tree, includeDrafts, makeIdsUnique);
-                        }
-                    }
-                }
-            }
+        for (List<Long> ids : Lists.partition(Lists.newArrayList(batchesIds), L_BATCH_SIZE)) {
+            jdbcTemplate.query(query, Collections.singletonMap("ids", ids), (RowCallbackHandler) resultSet -> batchesOrders.merge(
+                    resultSet.getLong("batchId"), resultSet.getString(L_NUMBER), (orders, order) -> orders + ", " + order));
         }
+
+        return batchesOrders;
     }
 
     private DataDefinition getDD() {
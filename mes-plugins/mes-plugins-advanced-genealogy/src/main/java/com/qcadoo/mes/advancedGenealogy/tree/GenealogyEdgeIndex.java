@@ -0,0 +1,222 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.advancedGenealogy.tree;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.qcadoo.mes.advancedGenealogy.states.constants.TrackingRecordState;
+
+/**
+ * Genealogy graph of batches - edges between produced batches and batches used to produce them, together with the state of
+ * tracking record, which defines them. Edges are kept per tracking record and indexed by both produced and used batch, so
+ * trees of related batches are found with breadth-first search, visiting only the batches that belong to them.
+ */
+public final class GenealogyEdgeIndex {
+
+    public static final int NO_PARENT = -1;
+
+    private final Map<Long, TrackingRecordEdges> trackingRecordsEdges = Maps.newHashMap();
+
+    private final Map<Long, Set<Long>> producedBatchesTrackingRecords = Maps.newHashMap();
+
+    private final Map<Long, Set<Long>> usedBatchesTrackingRecords = Maps.newHashMap();
+
+    /**
+     * Replaces edges of given tracking record.
+     */
+    public synchronized void putTrackingRecord(final Long trackingRecordId, final Long producedBatchId, final String state,
+            final List<Long> usedBatchesIds) {
+        removeTrackingRecord(trackingRecordId);
+
+        trackingRecordsEdges.put(trackingRecordId, new TrackingRecordEdges(producedBatchId, state, usedBatchesIds));
+
+        producedBatchesTrackingRecords.computeIfAbsent(producedBatchId, id -> new TreeSet<>()).add(trackingRecordId);
+
+        for (Long usedBatchId : usedBatchesIds) {
+            usedBatchesTrackingRecords.computeIfAbsent(usedBatchId, id -> new TreeSet<>()).add(trackingRecordId);
+        }
+    }
+
+    public synchronized void removeTrackingRecord(final Long trackingRecordId) {
+        TrackingRecordEdges edges = trackingRecordsEdges.remove(trackingRecordId);
+
+        if (edges == null) {
+            return;
+        }
+
+        removeFromIndex(producedBatchesTrackingRecords, edges.producedBatchId, trackingRecordId);
+
+        for (Long usedBatchId : edges.usedBatchesIds) {
+            removeFromIndex(usedBatchesTrackingRecords, usedBatchId, trackingRecordId);
+        }
+    }
+
+    /**
+     * @return true if given tracking record is indexed with exactly the given edges
+     */
+    public synchronized boolean containsTrackingRecord(final Long trackingRecordId, final Long producedBatchId,
+            final String state, final List<Long> usedBatchesIds) {
+        TrackingRecordEdges edges = trackingRecordsEdges.get(trackingRecordId);
+
+        return (edges != null) && Objects.equals(edges.producedBatchId, producedBatchId) && Objects.equals(edges.state, state)
+                && Objects.equals(edges.usedBatchesIds, usedBatchesIds);
+    }
+
+    /**
+     * @return ids of tracking records, which produce or use any of given batches
+     */
+    public synchronized Set<Long> getTrackingRecordsIds(final Collection<Long> batchesIds) {
+        Set<Long> trackingRecordsIds = Sets.newHashSet();
+
+        for (Long batchId : batchesIds) {
+            trackingRecordsIds.addAll(producedBatchesTrackingRecords.getOrDefault(batchId, Collections.emptySet()));
+            trackingRecordsIds.addAll(usedBatchesTrackingRecords.getOrDefault(batchId, Collections.emptySet()));
+        }
+
+        return trackingRecordsIds;
+    }
+
+    private void removeFromIndex(final Map<Long, Set<Long>> index, final Long batchId, final Long trackingRecordId) {
+        Set<Long> trackingRecordsIds = index.get(batchId);
+
+        if (trackingRecordsIds != null) {
+            trackingRecordsIds.remove(trackingRecordId);
+
+            if (trackingRecordsIds.isEmpty()) {
+                index.remove(batchId);
+            }
+        }
+    }
+
+    /**
+     * @return tree of batches used to produce given batch (and batches used to produce them and so on), in breadth-first order
+     */
+    public synchronized List<TreeNode> getProducedFromTree(final Long batchId, final boolean includeDrafts) {
+        return getTree(batchId, includeDrafts, true);
+    }
+
+    /**
+     * @return tree of batches produced from given batch (and batches produced from them and so on), in breadth-first order
+     */
+    public synchronized List<TreeNode> getUsedToProduceTree(final Long batchId, final boolean includeDrafts) {
+        return getTree(batchId, includeDrafts, false);
+    }
+
+    private List<TreeNode> getTree(final Long batchId, final boolean includeDrafts, final boolean producedFrom) {
+        List<TreeNode> tree = Lists.newArrayList(new TreeNode(batchId, NO_PARENT));
+
+        Set<Long> visitedBatches = Sets.newHashSet(batchId);
+        Deque<Integer> nodesToVisit = new ArrayDeque<>();
+
+        nodesToVisit.add(0);
+
+        while (!nodesToVisit.isEmpty()) {
+            int node = nodesToVisit.poll();
+            Long parentBatchId = tree.get(node).getBatchId();
+
+            Map<Long, Set<Long>> index = producedFrom ? producedBatchesTrackingRecords : usedBatchesTrackingRecords;
+            Set<Long> childrenBatches = Sets.newHashSet();
+
+            for (Long trackingRecordId : index.getOrDefault(parentBatchId, Collections.emptySet())) {
+                TrackingRecordEdges edges = trackingRecordsEdges.get(trackingRecordId);
+
+                if (!edges.isIncluded(includeDrafts)) {
+                    continue;
+                }
+
+                List<Long> childrenBatchesIds = producedFrom ? edges.usedBatchesIds : Collections
+                        .singletonList(edges.producedBatchId);
+
+                for (Long childBatchId : childrenBatchesIds) {
+                    if (childrenBatches.add(childBatchId)) {
+                        tree.add(new TreeNode(childBatchId, node));
+
+                        if (visitedBatches.add(childBatchId)) {
+                            nodesToVisit.add(tree.size() - 1);
+                        }
+                    }
+                }
+            }
+        }
+
+        return tree;
+    }
+
+    public static final class TreeNode {
+
+        private final Long batchId;
+
+        private final int parent;
+
+        private TreeNode(final Long batchId, final int parent) {
+            this.batchId = batchId;
+            this.parent = parent;
+        }
+
+        public Long getBatchId() {
+            return batchId;
+        }
+
+        /**
+         * @return index of parent node in the tree or {@link GenealogyEdgeIndex#NO_PARENT} for the root
+         */
+        public int getParent() {
+            return parent;
+        }
+
+    }
+
+    private static final class TrackingRecordEdges {
+
+        private final Long producedBatchId;
+
+        private final String state;
+
+        private final List<Long> usedBatchesIds;
+
+        private TrackingRecordEdges(final Long producedBatchId, final String state, final List<Long> usedBatchesIds) {
+            this.producedBatchId = producedBatchId;
+            this.state = state;
+            this.usedBatchesIds = usedBatchesIds;
+        }
+
+        private boolean isIncluded(final boolean includeDrafts) {
+            return TrackingRecordState.ACCEPTED.getStringValue().equals(state)
+                    || (includeDrafts && TrackingRecordState.DRAFT.getStringValue().equals(state));
+        }
+
+    }
+
+}
@@ -0,0 +1,347 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.advancedGenealogy.tree;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.advancedGenealogy.constants.TrackingRecordType;
+import com.qcadoo.mes.basic.util.TenantKey;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.plugin.api.PluginAccessor;
+
+@Service
+public class GenealogyEdgeIndexService {
+
+    private static final String L_ADVANCED_GENEALOGY_FOR_ORDERS = "advancedGenealogyForOrders";
+
+    private static final String L_TRACKING_RECORD_ID = "trackingRecordId";
+
+    private static final String L_BATCHES_IDS = "batchesIds";
+
+    private static final String L_NUMBER = "number";
+
+    private static final String L_GENEALOGY_EDGE_INDEX = "genealogyEdgeIndex";
+
+    private static final int L_MAXIMUM_SIZE = 100;
+
+    private static final int L_EXPIRE_AFTER_WRITE_MINUTES = 60;
+
+    private static final int L_MAX_REVALIDATIONS = 5;
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PluginAccessor pluginAccessor;
+
+    private final Cache<TenantKey<String>, GenealogyEdgeIndex> genealogyEdgeIndexes = CacheBuilder.newBuilder()
+            .maximumSize(L_MAXIMUM_SIZE).expireAfterWrite(L_EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES).build();
+
+    /**
+     * @return tree of batches used to produce given batch, see {@link GenealogyEdgeIndex#getProducedFromTree(Long, boolean)}
+     */
+    public List<GenealogyEdgeIndex.TreeNode> getProducedFromTree(final Long batchId, final boolean includeDrafts) {
+        return getTree(batchId, includeDrafts, true);
+    }
+
+    /**
+     * @return tree of batches produced from given batch, see {@link GenealogyEdgeIndex#getUsedToProduceTree(Long, boolean)}
+     */
+    public List<GenealogyEdgeIndex.TreeNode> getUsedToProduceTree(final Long batchId, final boolean includeDrafts) {
+        return getTree(batchId, includeDrafts, false);
+    }
+
+    private List<GenealogyEdgeIndex.TreeNode> getTree(final Long batchId, final boolean includeDrafts,
+            final boolean producedFrom) {
+        return getRevalidatedTree(getGenealogyEdgeIndex(), batchId, includeDrafts, producedFrom);
+    }
+
+    /**
+     * Finds the tree in given index and then revalidates it against the database - edges of all tracking records, which produce
+     * or use batches of the tree, are loaded with one query and replace the indexed ones. The tree is searched again until it is
+     * built only from current edges, so changes made on other nodes or without model hooks are never missed.
+     */
+    List<GenealogyEdgeIndex.TreeNode> getRevalidatedTree(final GenealogyEdgeIndex index, final Long batchId,
+            final boolean includeDrafts, final boolean producedFrom) {
+        List<GenealogyEdgeIndex.TreeNode> tree = getTree(index, batchId, includeDrafts, producedFrom);
+
+        for (int revalidation = 0; revalidation < L_MAX_REVALIDATIONS && revalidate(index, tree); revalidation++) {
+            tree = getTree(index, batchId, includeDrafts, producedFrom);
+        }
+
+        return tree;
+    }
+
+    private List<GenealogyEdgeIndex.TreeNode> getTree(final GenealogyEdgeIndex index, final Long batchId,
+            final boolean includeDrafts, final boolean producedFrom) {
+        return producedFrom ? index.getProducedFromTree(batchId, includeDrafts) : index.getUsedToProduceTree(batchId,
+                includeDrafts);
+    }
+
+    /**
+     * @return true if any edge of the tree's batches was changed
+     */
+    private boolean revalidate(final GenealogyEdgeIndex index, final List<GenealogyEdgeIndex.TreeNode> tree) {
+        Set<Long> batchesIds = tree.stream().map(GenealogyEdgeIndex.TreeNode::getBatchId).collect(Collectors.toSet());
+        Set<Long> removedTrackingRecordsIds = index.getTrackingRecordsIds(batchesIds);
+
+        boolean changed = false;
+
+        for (TrackingRecordEdges edges : getTrackingRecordsEdges(null, batchesIds)) {
+            removedTrackingRecordsIds.remove(edges.trackingRecordId);
+
+            if (!index.containsTrackingRecord(edges.trackingRecordId, edges.producedBatchId, edges.state, edges.usedBatchesIds)) {
+                index.putTrackingRecord(edges.trackingRecordId, edges.producedBatchId, edges.state, edges.usedBatchesIds);
+
+                changed = true;
+            }
+        }
+
+        for (Long trackingRecordId : removedTrackingRecordsIds) {
+            index.removeTrackingRecord(trackingRecordId);
+
+            changed = true;
+        }
+
+        return changed;
+    }
+
+    /**
+     * Returns genealogy edge index of all tracking records of current tenant. The index is built on the first use and then
+     * maintained by {@link #onTrackingRecordChanged(Long)}, it is rebuilt from scratch an hour after it was built.
+     */
+    private GenealogyEdgeIndex getGenealogyEdgeIndex() {
+        TenantKey<String> key = TenantKey.of(L_GENEALOGY_EDGE_INDEX);
+
+        GenealogyEdgeIndex index = genealogyEdgeIndexes.getIfPresent(key);
+
+        if (index == null) {
+            synchronized (this) {
+                index = genealogyEdgeIndexes.getIfPresent(key);
+
+                if (index == null) {
+                    index = new GenealogyEdgeIndex();
+
+                    for (TrackingRecordEdges edges : getTrackingRecordsEdges(null, null)) {
+                        index.putTrackingRecord(edges.trackingRecordId, edges.producedBatchId, edges.state, edges.usedBatchesIds);
+                    }
+
+                    genealogyEdgeIndexes.put(key, index);
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Reloads edges of given tracking record after the current transaction is committed. New tracking records are found by their
+     * number, as the id is assigned after save hooks are called.
+     */
+    public void onTrackingRecordChanged(final Entity trackingRecord) {
+        Long trackingRecordId = trackingRecord.getId();
+        String number = trackingRecord.getStringField(L_NUMBER);
+
+        afterCommit(() -> {
+            Long id = Objects.isNull(trackingRecordId) ? getTrackingRecordId(number) : trackingRecordId;
+
+            if (Objects.nonNull(id)) {
+                reloadTrackingRecord(id);
+            }
+        });
+    }
+
+    /**
+     * Reloads edges of given tracking record after the current transaction is committed. Should be called whenever state,
+     * produced batch or used batches of tracking record change or when it is deleted.
+     */
+    public void onTrackingRecordChanged(final Long trackingRecordId) {
+        if (Objects.isNull(trackingRecordId)) {
+            return;
+        }
+
+        afterCommit(() -> reloadTrackingRecord(trackingRecordId));
+    }
+
+    private void afterCommit(final Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private Long getTrackingRecordId(final String number) {
+        if (Objects.isNull(number)) {
+            return null;
+        }
+
+        List<Long> ids = jdbcTemplate.queryForList("SELECT id FROM advancedgenealogy_trackingrecord WHERE number = :number",
+                Collections.singletonMap(L_NUMBER, number), Long.class);
+
+        return ids.isEmpty() ? null : ids.get(0);
+    }
+
+    private void reloadTrackingRecord(final Long trackingRecordId) {
+        GenealogyEdgeIndex index = genealogyEdgeIndexes.getIfPresent(TenantKey.of(L_GENEALOGY_EDGE_INDEX));
+
+        if (index == null) {
+            return;
+        }
+
+        List<TrackingRecordEdges> trackingRecordsEdges = getTrackingRecordsEdges(trackingRecordId, null);
+
+        if (trackingRecordsEdges.isEmpty()) {
+            index.removeTrackingRecord(trackingRecordId);
+        } else {
+            TrackingRecordEdges edges = trackingRecordsEdges.get(0);
+
+            index.putTrackingRecord(edges.trackingRecordId, edges.producedBatchId, edges.state, edges.usedBatchesIds);
+        }
+    }
+
+    /**
+     * Loads edges of given tracking record, of tracking records producing or using given batches or, when both are null, of all
+     * tracking records.
+     */
+    private List<TrackingRecordEdges> getTrackingRecordsEdges(final Long trackingRecordId, final Collection<Long> batchesIds) {
+        boolean forOrders = pluginAccessor.getPlugin(L_ADVANCED_GENEALOGY_FOR_ORDERS) != null;
+
+        String trackingRecordCondition = "";
+
+        if (Objects.nonNull(trackingRecordId)) {
+            trackingRecordCondition = "AND tr.id = :trackingRecordId ";
+        } else if (Objects.nonNull(batchesIds)) {
+            trackingRecordCondition = getBatchesCondition(forOrders);
+        }
+
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT tr.id AS trackingRecordId, tr.producedbatch_id AS producedBatchId, tr.state, ");
+        query.append("ubs.batch_id AS usedBatchId, 0 AS componentId, ubs.id AS edgeId ");
+        query.append("FROM advancedgenealogy_trackingrecord tr ");
+        query.append("JOIN advancedgenealogy_usedbatchsimple ubs ON ubs.trackingrecord_id = tr.id ");
+        query.append("WHERE tr.entitytype = :simple AND ubs.batch_id IS NOT NULL ").append(trackingRecordCondition);
+
+        if (forOrders) {
+            query.append("UNION ALL ");
+            query.append("SELECT tr.id AS trackingRecordId, tr.producedbatch_id AS producedBatchId, tr.state, ");
+            query.append("gpib.batch_id AS usedBatchId, gpic.id AS componentId, gpib.id AS edgeId ");
+            query.append("FROM advancedgenealogy_trackingrecord tr ");
+            query.append("JOIN advancedgenealogyfororders_genealogyproductincomponent gpic ON gpic.trackingrecord_id = tr.id ");
+            query.append("JOIN advancedgenealogyfororders_genealogyproductinbatch gpib ");
+            query.append("ON gpib.genealogyproductincomponent_id = gpic.id ");
+            query.append("WHERE tr.entitytype = :forOrder AND gpib.batch_id IS NOT NULL ").append(trackingRecordCondition);
+        }
+
+        query.append("ORDER BY trackingRecordId, componentId, edgeId");
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue(L_TRACKING_RECORD_ID, trackingRecordId);
+        parameters.addValue(L_BATCHES_IDS, batchesIds);
+        parameters.addValue("simple", TrackingRecordType.SIMPLE);
+        parameters.addValue("forOrder", TrackingRecordType.FOR_ORDER);
+
+        Map<Long, TrackingRecordEdges> trackingRecordsEdges = Maps.newLinkedHashMap();
+
+        jdbcTemplate.query(query.toString(), parameters, (RowCallbackHandler) resultSet -> {
+            Long id = resultSet.getLong(L_TRACKING_RECORD_ID);
+            TrackingRecordEdges edges = trackingRecordsEdges.get(id);
+
+            if (edges == null) {
+                edges = new TrackingRecordEdges(id, resultSet.getLong("producedBatchId"), resultSet.getString("state"));
+
+                trackingRecordsEdges.put(id, edges);
+            }
+
+            edges.usedBatchesIds.add(resultSet.getLong("usedBatchId"));
+        });
+
+        return Lists.newArrayList(trackingRecordsEdges.values());
+    }
+
+    private String getBatchesCondition(final boolean forOrders) {
+        StringBuilder condition = new StringBuilder();
+
+        condition.append("AND (tr.producedbatch_id IN (:batchesIds) OR tr.id IN (SELECT u.trackingrecord_id ");
+        condition.append("FROM advancedgenealogy_usedbatchsimple u WHERE u.batch_id IN (:batchesIds)) ");
+
+        if (forOrders) {
+            condition.append("OR tr.id IN (SELECT c.trackingrecord_id ");
+            condition.append("FROM advancedgenealogyfororders_genealogyproductincomponent c ");
+            condition.append("JOIN advancedgenealogyfororders_genealogyproductinbatch b ");
+            condition.append("ON b.genealogyproductincomponent_id = c.id ");
+            condition.append("WHERE b.batch_id IN (:batchesIds)) ");
+        }
+
+        condition.append(") ");
+
+        return condition.toString();
+    }
+
+    private static final class TrackingRecordEdges {
+
+        private final Long trackingRecordId;
+
+        private final Long producedBatchId;
+
+        private final String state;
+
+        private final List<Long> usedBatchesIds = Lists.newArrayList();
+
+        private TrackingRecordEdges(final Long trackingRecordId, final Long producedBatchId, final String state) {
+            this.trackingRecordId = trackingRecordId;
+            this.producedBatchId = producedBatchId;
+            this.state = state;
+        }
+
+    }
+
+}
@@ -25,30 +25,31 @@ package com.qcadoo.mes.advancedGenealogy.tree;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
-import java.util.Collection;
-import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.test.util.ReflectionTestUtils;
 
 import com.qcadoo.mes.advancedGenealogy.constants.AdvancedGenealogyConstants;
-import com.qcadoo.mes.advancedGenealogy.constants.TrackingRecordType;
 import com.qcadoo.mes.advancedGenealogy.states.constants.TrackingRecordState;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
 import com.qcadoo.model.api.Entity;
 import com.qcadoo.model.api.EntityList;
 import com.qcadoo.model.api.search.SearchCriteriaBuilder;
+import com.qcadoo.model.api.search.SearchCriterion;
 import com.qcadoo.model.api.search.SearchResult;
 import com.qcadoo.plugin.api.Plugin;
 import com.qcadoo.plugin.api.PluginAccessor;
@@ -73,14 +74,19 @@ public class AdvancedGenealogyTreeServiceTest {
     private PluginAccessor pluginAccessor;
 
     @Mock
-    private SearchResult searchResult;
+    private GenealogyEdgeIndexService genealogyEdgeIndexService;
 
     @Mock
-    private Entity batch1Tr;
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private SearchResult searchResult;
 
     @Mock
     private Entity parent1, parent2;
 
+    private GenealogyEdgeIndex genealogyEdgeIndex;
+
     private String productName1 = "productName1";
 
     private String productNumber1 = "productNumber1";
@@ -99,6 +105,8 @@ public class AdvancedGenealogyTreeServiceTest {
 
         ReflectionTestUtils.setField(treeService, "dataDefinitionService", dataDefinitionService);
         ReflectionTestUtils.setField(treeService, "pluginAccessor", pluginAccessor);
+        ReflectionTestUtils.setField(treeService, "genealogyEdgeIndexService", genealogyEdgeIndexService);
+        ReflectionTestUtils.setField(treeService, "jdbcTemplate", jdbcTemplate);
 
         when(pluginAccessor.getPlugin("advancedGenealogyForOrders")).thenReturn(null);
 
@@ -108,22 +116,20 @@ public class AdvancedGenealogyTreeServiceTest {
         when(batch1.getId()).thenReturn(1L);
         when(batch2.getId()).thenReturn(2L);
 
-        EntityList batch1Trs = mockEntityList(asList(batch1Tr));
-        when(batch1.getHasManyField("trackingRecords")).thenReturn(batch1Trs);
-        when(batch1Tr.getStringField("entityType")).thenReturn(TrackingRecordType.SIMPLE);
-        when(batch1Tr.getStringField("state")).thenReturn(TrackingRecordState.DRAFT.getStringValue());
-        Entity batch1TrUsedBatch1 = mock(Entity.class);
-        when(batch1TrUsedBatch1.getBelongsToField("batch")).thenReturn(batch2);
-        EntityList batch1TrUsedBatches = mockEntityList(asList(batch1TrUsedBatch1));
-        when(batch1Tr.getHasManyField("usedBatchesSimple")).thenReturn(batch1TrUsedBatches);
-
-        EntityList batch2Trs = mockEntityList(new LinkedList<Entity>());
-        when(batch2.getHasManyField("trackingRecords")).thenReturn(batch2Trs);
+        genealogyEdgeIndex = new GenealogyEdgeIndex();
+        genealogyEdgeIndex.putTrackingRecord(10L, 1L, TrackingRecordState.DRAFT.getStringValue(), asList(2L));
+        when(genealogyEdgeIndexService.getProducedFromTree(anyLong(), anyBoolean())).thenAnswer(
+                invocation -> genealogyEdgeIndex.getProducedFromTree((Long) invocation.getArguments()[0],
+                        (Boolean) invocation.getArguments()[1]));
+        when(genealogyEdgeIndexService.getUsedToProduceTree(anyLong(), anyBoolean())).thenAnswer(
+                invocation -> genealogyEdgeIndex.getUsedToProduceTree((Long) invocation.getArguments()[0],
+                        (Boolean) invocation.getArguments()[1]));
 
         SearchCriteriaBuilder searchCriteriaBuilder = Mockito.mock(SearchCriteriaBuilder.class);
         when(dataDefinition.find()).thenReturn(searchCriteriaBuilder);
+        when(searchCriteriaBuilder.add(any(SearchCriterion.class))).thenReturn(searchCriteriaBuilder);
         when(searchCriteriaBuilder.list()).thenReturn(searchResult);
-        when(searchResult.getEntities()).thenReturn(asList(batch1));
+        when(searchResult.getEntities()).thenReturn(asList(batch1, batch2));
 
         String number1 = "QWD33";
         String number2 = "POS22";
@@ -216,22 +222,13 @@ public class AdvancedGenealogyTreeServiceTest {
     }
 
     @Test
-    @Ignore
     public void shouldReturnCorrectProducedFromTreeForOrders() {
         // given
         Plugin plugin = mock(Plugin.class);
         when(pluginAccessor.getPlugin("advancedGenealogyForOrders")).thenReturn(plugin);
-        when(batch1Tr.getStringField("entityType")).thenReturn(TrackingRecordType.FOR_ORDER);
-
-        Entity genProdInComp = mock(Entity.class);
-        EntityList genProdInComps = mockEntityList(asList(genProdInComp));
-
-        Entity prodInBatch = mock(Entity.class);
-        when(prodInBatch.getBelongsToField("batch")).thenReturn(batch2);
 
-        EntityList prodInBatches = mockEntityList(asList(prodInBatch));
-        when(genProdInComp.getHasManyField("productInBatches")).thenReturn(prodInBatches);
-        when(batch1Tr.getHasManyField("genealogyProductInComponents")).thenReturn(genProdInComps);
+        genealogyEdgeIndex.removeTrackingRecord(10L);
+        genealogyEdgeIndex.putTrackingRecord(20L, 1L, TrackingRecordState.ACCEPTED.getStringValue(), asList(2L));
 
         // when
         List<Entity> tree = treeService.getProducedFromTree(batch1, true, false);
@@ -243,22 +240,13 @@ public class AdvancedGenealogyTreeServiceTest {
     }
 
     @Test
-    @Ignore
     public void shouldReturnCorrectUsedToProduceTreeForOrders() {
         // given
         Plugin plugin = mock(Plugin.class);
         when(pluginAccessor.getPlugin("advancedGenealogyForOrders")).thenReturn(plugin);
-        when(batch1Tr.getStringField("entityType")).thenReturn(TrackingRecordType.FOR_ORDER);
-
-        Entity genProdInComp = mock(Entity.class);
-        EntityList genProdInComps = mockEntityList(asList(genProdInComp));
-
-        Entity prodInBatch = mock(Entity.class);
-        when(prodInBatch.getBelongsToField("batch")).thenReturn(batch2);
 
-        EntityList prodInBatches = mockEntityList(asList(prodInBatch));
-        when(genProdInComp.getHasManyField("productInBatches")).thenReturn(prodInBatches);
-        when(batch1Tr.getHasManyField("genealogyProductInComponents")).thenReturn(genProdInComps);
+        genealogyEdgeIndex.removeTrackingRecord(10L);
+        genealogyEdgeIndex.putTrackingRecord(20L, 1L, TrackingRecordState.ACCEPTED.getStringValue(), asList(2L));
 
         // when
         List<Entity> tree = treeService.getUsedToProduceTree(batch2, true, false);
@@ -0,0 +1,223 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.advancedGenealogy.tree;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.advancedGenealogy.states.constants.TrackingRecordState;
+import com.qcadoo.plugin.api.PluginAccessor;
+
+public class GenealogyEdgeIndexServiceTest {
+
+    private static final String L_DRAFT = TrackingRecordState.DRAFT.getStringValue();
+
+    private static final String L_ACCEPTED = TrackingRecordState.ACCEPTED.getStringValue();
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private PluginAccessor pluginAccessor;
+
+    private GenealogyEdgeIndexService genealogyEdgeIndexService;
+
+    private GenealogyEdgeIndex genealogyEdgeIndex;
+
+    private final Map<Long, TrackingRecordRow> trackingRecords = Maps.newTreeMap();
+
+    private int queriesCount;
+
+    @Before
+    public void init() throws SQLException {
+        MockitoAnnotations.initMocks(this);
+
+        genealogyEdgeIndexService = new GenealogyEdgeIndexService();
+
+        ReflectionTestUtils.setField(genealogyEdgeIndexService, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(genealogyEdgeIndexService, "pluginAccessor", pluginAccessor);
+
+        genealogyEdgeIndex = new GenealogyEdgeIndex();
+
+        doAnswer(invocation -> {
+            SqlParameterSource parameters = (SqlParameterSource) invocation.getArguments()[1];
+            RowCallbackHandler rowCallbackHandler = (RowCallbackHandler) invocation.getArguments()[2];
+
+            queriesCount++;
+
+            Collection<?> batchesIds = (Collection<?>) parameters.getValue("batchesIds");
+
+            for (Map.Entry<Long, TrackingRecordRow> trackingRecord : trackingRecords.entrySet()) {
+                if (trackingRecord.getValue().isRelatedTo(batchesIds)) {
+                    for (Long usedBatchId : trackingRecord.getValue().usedBatchesIds) {
+                        rowCallbackHandler.processRow(mockRow(trackingRecord.getKey(), trackingRecord.getValue(), usedBatchId));
+                    }
+                }
+            }
+
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(SqlParameterSource.class), any(RowCallbackHandler.class));
+    }
+
+    @Test
+    public final void shouldReturnIndexedTreeWhenItIsCurrent() {
+        // given
+        addTrackingRecord(10L, 1L, L_ACCEPTED, 2L, 3L);
+        addTrackingRecord(11L, 2L, L_ACCEPTED, 4L);
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndexService.getRevalidatedTree(genealogyEdgeIndex, 1L, false,
+                true);
+
+        // then
+        assertEquals(4, tree.size());
+        assertNode(tree.get(3), 4L, 1);
+        assertEquals(1, queriesCount);
+    }
+
+    @Test
+    public final void shouldAddEdgesSavedWithoutHooks() {
+        // given
+        addTrackingRecord(10L, 1L, L_ACCEPTED, 2L);
+
+        trackingRecords.put(11L, new TrackingRecordRow(2L, L_ACCEPTED, asList(5L, 6L)));
+        trackingRecords.put(12L, new TrackingRecordRow(6L, L_ACCEPTED, asList(7L)));
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndexService.getRevalidatedTree(genealogyEdgeIndex, 1L, false,
+                true);
+
+        // then
+        assertEquals(5, tree.size());
+        assertNode(tree.get(2), 5L, 1);
+        assertNode(tree.get(3), 6L, 1);
+        assertNode(tree.get(4), 7L, 3);
+        assertEquals(3, queriesCount);
+    }
+
+    @Test
+    public final void shouldRemoveEdgesDeletedOrChangedOnOtherNode() {
+        // given
+        addTrackingRecord(10L, 1L, L_ACCEPTED, 2L);
+        addTrackingRecord(11L, 1L, L_ACCEPTED, 3L);
+        addTrackingRecord(12L, 2L, L_ACCEPTED, 4L);
+
+        trackingRecords.remove(11L);
+        trackingRecords.put(12L, new TrackingRecordRow(2L, L_DRAFT, asList(4L)));
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndexService.getRevalidatedTree(genealogyEdgeIndex, 1L, false,
+                true);
+
+        // then
+        assertEquals(2, tree.size());
+        assertNode(tree.get(0), 1L, GenealogyEdgeIndex.NO_PARENT);
+        assertNode(tree.get(1), 2L, 0);
+        assertEquals(2, queriesCount);
+    }
+
+    @Test
+    public final void shouldRevalidateUsedToProduceTree() {
+        // given
+        addTrackingRecord(10L, 2L, L_ACCEPTED, 1L);
+
+        trackingRecords.put(11L, new TrackingRecordRow(3L, L_ACCEPTED, asList(1L)));
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndexService.getRevalidatedTree(genealogyEdgeIndex, 1L, false,
+                false);
+
+        // then
+        assertEquals(3, tree.size());
+        assertNode(tree.get(1), 2L, 0);
+        assertNode(tree.get(2), 3L, 0);
+    }
+
+    private void addTrackingRecord(final Long trackingRecordId, final Long producedBatchId, final String state,
+            final Long... usedBatchesIds) {
+        trackingRecords.put(trackingRecordId, new TrackingRecordRow(producedBatchId, state, asList(usedBatchesIds)));
+
+        genealogyEdgeIndex.putTrackingRecord(trackingRecordId, producedBatchId, state, asList(usedBatchesIds));
+    }
+
+    private ResultSet mockRow(final Long trackingRecordId, final TrackingRecordRow trackingRecord, final Long usedBatchId)
+            throws SQLException {
+        ResultSet resultSet = mock(ResultSet.class);
+
+        when(resultSet.getLong("trackingRecordId")).thenReturn(trackingRecordId);
+        when(resultSet.getLong("producedBatchId")).thenReturn(trackingRecord.producedBatchId);
+        when(resultSet.getString("state")).thenReturn(trackingRecord.state);
+        when(resultSet.getLong("usedBatchId")).thenReturn(usedBatchId);
+
+        return resultSet;
+    }
+
+    private void assertNode(final GenealogyEdgeIndex.TreeNode node, final Long batchId, final int parent) {
+        assertEquals(batchId, node.getBatchId());
+        assertEquals(parent, node.getParent());
+    }
+
+    private static final class TrackingRecordRow {
+
+        private final Long producedBatchId;
+
+        private final String state;
+
+        private final List<Long> usedBatchesIds;
+
+        private TrackingRecordRow(final Long producedBatchId, final String state, final List<Long> usedBatchesIds) {
+            this.producedBatchId = producedBatchId;
+            this.state = state;
+            this.usedBatchesIds = usedBatchesIds;
+        }
+
+        private boolean isRelatedTo(final Collection<?> batchesIds) {
+            return (batchesIds == null) || batchesIds.contains(producedBatchId)
+                    || usedBatchesIds.stream().anyMatch(batchesIds::contains);
+        }
+
+    }
+
+}
@@ -0,0 +1,162 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.advancedGenealogy.tree;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qcadoo.mes.advancedGenealogy.states.constants.TrackingRecordState;
+
+public class GenealogyEdgeIndexTest {
+
+    private static final String L_DRAFT = TrackingRecordState.DRAFT.getStringValue();
+
+    private static final String L_ACCEPTED = TrackingRecordState.ACCEPTED.getStringValue();
+
+    private static final String L_DECLINED = TrackingRecordState.DECLINED.getStringValue();
+
+    private GenealogyEdgeIndex genealogyEdgeIndex;
+
+    @Before
+    public void init() {
+        genealogyEdgeIndex = new GenealogyEdgeIndex();
+    }
+
+    @Test
+    public final void shouldReturnOnlyRootForBatchWithoutTrackingRecords() {
+        // given
+        genealogyEdgeIndex.putTrackingRecord(10L, 1L, L_ACCEPTED, asList(2L));
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndex.getProducedFromTree(5L, true);
+
+        // then
+        assertEquals(1, tree.size());
+        assertNode(tree.get(0), 5L, GenealogyEdgeIndex.NO_PARENT);
+    }
+
+    @Test
+    public final void shouldReturnProducedFromTreeInBreadthFirstOrder() {
+        // given
+        genealogyEdgeIndex.putTrackingRecord(10L, 1L, L_ACCEPTED, asList(2L, 3L));
+        genealogyEdgeIndex.putTrackingRecord(11L, 2L, L_ACCEPTED, asList(4L));
+        genealogyEdgeIndex.putTrackingRecord(12L, 3L, L_ACCEPTED, asList(5L));
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndex.getProducedFromTree(1L, false);
+
+        // then
+        assertEquals(5, tree.size());
+        assertNode(tree.get(0), 1L, GenealogyEdgeIndex.NO_PARENT);
+        assertNode(tree.get(1), 2L, 0);
+        assertNode(tree.get(2), 3L, 0);
+        assertNode(tree.get(3), 4L, 1);
+        assertNode(tree.get(4), 5L, 2);
+    }
+
+    @Test
+    public final void shouldReturnUsedToProduceTree() {
+        // given
+        genealogyEdgeIndex.putTrackingRecord(10L, 1L, L_ACCEPTED, asList(3L));
+        genealogyEdgeIndex.putTrackingRecord(11L, 2L, L_ACCEPTED, asList(3L));
+        genealogyEdgeIndex.putTrackingRecord(12L, 4L, L_ACCEPTED, asList(1L));
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndex.getUsedToProduceTree(3L, false);
+
+        // then
+        assertEquals(4, tree.size());
+        assertNode(tree.get(0), 3L, GenealogyEdgeIndex.NO_PARENT);
+        assertNode(tree.get(1), 1L, 0);
+        assertNode(tree.get(2), 2L, 0);
+        assertNode(tree.get(3), 4L, 1);
+    }
+
+    @Test
+    public final void shouldExpandSharedBatchOnlyOnce() {
+        // given
+        genealogyEdgeIndex.putTrackingRecord(10L, 1L, L_ACCEPTED, asList(2L, 3L));
+        genealogyEdgeIndex.putTrackingRecord(11L, 2L, L_ACCEPTED, asList(4L));
+        genealogyEdgeIndex.putTrackingRecord(12L, 3L, L_ACCEPTED, asList(4L));
+        genealogyEdgeIndex.putTrackingRecord(13L, 4L, L_ACCEPTED, asList(5L));
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndex.getProducedFromTree(1L, false);
+
+        // then
+        assertEquals(6, tree.size());
+        assertNode(tree.get(3), 4L, 1);
+        assertNode(tree.get(4), 4L, 2);
+        assertNode(tree.get(5), 5L, 3);
+    }
+
+    @Test
+    public final void shouldRespectTrackingRecordsStates() {
+        // given
+        genealogyEdgeIndex.putTrackingRecord(10L, 1L, L_DRAFT, asList(2L));
+        genealogyEdgeIndex.putTrackingRecord(11L, 1L, L_DECLINED, asList(3L));
+        genealogyEdgeIndex.putTrackingRecord(12L, 1L, L_ACCEPTED, asList(4L));
+
+        // when
+        List<GenealogyEdgeIndex.TreeNode> treeWithDrafts = genealogyEdgeIndex.getProducedFromTree(1L, true);
+        List<GenealogyEdgeIndex.TreeNode> treeWithoutDrafts = genealogyEdgeIndex.getProducedFromTree(1L, false);
+
+        // then
+        assertEquals(3, treeWithDrafts.size());
+        assertNode(treeWithDrafts.get(1), 2L, 0);
+        assertNode(treeWithDrafts.get(2), 4L, 0);
+        assertEquals(2, treeWithoutDrafts.size());
+        assertNode(treeWithoutDrafts.get(1), 4L, 0);
+    }
+
+    @Test
+    public final void shouldReplaceAndRemoveTrackingRecordEdges() {
+        // given
+        genealogyEdgeIndex.putTrackingRecord(10L, 1L, L_ACCEPTED, asList(2L));
+        genealogyEdgeIndex.putTrackingRecord(11L, 5L, L_ACCEPTED, asList(6L));
+
+        // when
+        genealogyEdgeIndex.putTrackingRecord(10L, 1L, L_ACCEPTED, asList(3L));
+        genealogyEdgeIndex.removeTrackingRecord(11L);
+
+        // then
+        List<GenealogyEdgeIndex.TreeNode> tree = genealogyEdgeIndex.getProducedFromTree(1L, false);
+
+        assertEquals(2, tree.size());
+        assertNode(tree.get(1), 3L, 0);
+        assertEquals(1, genealogyEdgeIndex.getUsedToProduceTree(2L, false).size());
+        assertEquals(1, genealogyEdgeIndex.getUsedToProduceTree(6L, false).size());
+    }
+
+    private void assertNode(final GenealogyEdgeIndex.TreeNode node, final Long batchId, final int parent) {
+        assertEquals(batchId, node.getBatchId());
+        assertEquals(parent, node.getParent());
+    }
+
+}
@@ -0,0 +1,193 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.shift.Shift;
+import com.qcadoo.mes.basic.shift.ShiftCalendarIndex;
+import com.qcadoo.mes.basic.util.DateTimeRange;
+import com.qcadoo.mes.basic.util.TenantKey;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+
+@Service
+public class ShiftCalendarIndexService {
+
+    private static final int HORIZON_DAYS = 62;
+
+    private static final int MAX_INDEX_DAYS = 2002;
+
+    private static final long INDEX_TIME_TO_LIVE_MILLIS = 5 * 60 * 1000L;
+
+    @Autowired
+    private ShiftExceptionService shiftExceptionService;
+
+    private final Map<TenantKey<String>, CachedShiftCalendarIndex> shiftCalendarIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns working time calendar of given production line (or of all shifts, if production line is null), covering at least
+     * days from dayFrom to dayTo. Calendars are built for a rolling horizon, cached per tenant and extended when needed. They
+     * are dropped when shifts, timetable exceptions or production lines change, and after a few minutes anyway, so that changes
+     * made on other nodes are also taken into account.
+     */
+    public ShiftCalendarIndex getShiftCalendarIndex(final Entity productionLine, final boolean removeFreeTimeException,
+            final LocalDate dayFrom, final LocalDate dayTo, final Supplier<List<Shift>> shifts) {
+        if (Objects.nonNull(productionLine) && Objects.isNull(productionLine.getId())) {
+            return buildShiftCalendarIndex(productionLine, removeFreeTimeException, dayFrom, dayTo, shifts.get(), null);
+        }
+
+        String key = (Objects.isNull(productionLine) ? "" : productionLine.getId()) + ":" + removeFreeTimeException;
+
+        return getShiftCalendarIndex(key, productionLine, removeFreeTimeException, dayFrom, dayTo, shifts);
+    }
+
+    /**
+     * Returns working time calendar of given shift on given production line, covering at least days from dayFrom to dayTo. It is
+     * cached and dropped in the same way as calendars of all shifts.
+     */
+    public ShiftCalendarIndex getShiftCalendarIndex(final Entity productionLine, final Shift shift,
+            final boolean removeFreeTimeException, final LocalDate dayFrom, final LocalDate dayTo) {
+        if (Objects.isNull(productionLine.getId()) || Objects.isNull(shift.getId())) {
+            return buildShiftCalendarIndex(productionLine, removeFreeTimeException, dayFrom, dayTo,
+                    Collections.singletonList(shift), null);
+        }
+
+        String key = productionLine.getId() + ":" + removeFreeTimeException + ":" + shift.getId();
+
+        return getShiftCalendarIndex(key, productionLine, removeFreeTimeException, dayFrom, dayTo,
+                () -> Collections.singletonList(shift));
+    }
+
+    private ShiftCalendarIndex getShiftCalendarIndex(final String key, final Entity productionLine,
+            final boolean removeFreeTimeException, final LocalDate dayFrom, final LocalDate dayTo,
+            final Supplier<List<Shift>> shifts) {
+        TenantKey<String> tenantKey = TenantKey.of(key);
+        CachedShiftCalendarIndex cachedIndex = shiftCalendarIndexes.get(tenantKey);
+        ShiftCalendarIndex existingIndex = null;
+
+        if (Objects.nonNull(cachedIndex) && !cachedIndex.isExpired()) {
+            existingIndex = cachedIndex.getShiftCalendarIndex();
+
+            if (existingIndex.covers(dayFrom, dayTo)) {
+                return existingIndex;
+            }
+        }
+
+        LocalDate firstDay = dayFrom;
+        LocalDate lastDay = max(dayTo, dayFrom.plusDays(HORIZON_DAYS));
+
+        if (Objects.nonNull(existingIndex)) {
+            firstDay = min(firstDay, existingIndex.getFirstDay());
+            lastDay = max(lastDay, existingIndex.getLastDay());
+
+            if (Days.daysBetween(firstDay, lastDay).getDays() > MAX_INDEX_DAYS) {
+                firstDay = dayFrom;
+                lastDay = max(dayTo, dayFrom.plusDays(HORIZON_DAYS));
+                existingIndex = null;
+            }
+        }
+
+        ShiftCalendarIndex shiftCalendarIndex = buildShiftCalendarIndex(productionLine, removeFreeTimeException, firstDay,
+                lastDay, shifts.get(), existingIndex);
+
+        shiftCalendarIndexes.put(tenantKey, new CachedShiftCalendarIndex(shiftCalendarIndex,
+                Objects.isNull(existingIndex) ? System.currentTimeMillis() : cachedIndex.getCreateTime()));
+
+        return shiftCalendarIndex;
+    }
+
+    private ShiftCalendarIndex buildShiftCalendarIndex(final Entity productionLine, final boolean removeFreeTimeException,
+            final LocalDate firstDay, final LocalDate lastDay, final List<Shift> shifts, final ShiftCalendarIndex existingIndex) {
+        return ShiftCalendarIndex.build(firstDay, lastDay, !shifts.isEmpty(), day -> {
+            List<DateTimeRange> dayRanges = Lists.newArrayList();
+
+            for (Shift shift : shifts) {
+                dayRanges.addAll(shiftExceptionService.getShiftWorkDateTimes(productionLine, shift,
+                        day.toDateTimeAtStartOfDay(), removeFreeTimeException));
+            }
+
+            return dayRanges;
+        }, existingIndex);
+    }
+
+    public void invalidate() {
+        shiftCalendarIndexes.clear();
+    }
+
+    public void invalidateOnSave(final DataDefinition dataDefinition, final Entity entity) {
+        invalidate();
+    }
+
+    public boolean invalidateOnDelete(final DataDefinition dataDefinition, final Entity entity) {
+        invalidate();
+
+        return true;
+    }
+
+    private LocalDate min(final LocalDate first, final LocalDate second) {
+        return first.isBefore(second) ? first : second;
+    }
+
+    private LocalDate max(final LocalDate first, final LocalDate second) {
+        return first.isAfter(second) ? first : second;
+    }
+
+    private static final class CachedShiftCalendarIndex {
+
+        private final ShiftCalendarIndex shiftCalendarIndex;
+
+        private final long createTime;
+
+        private CachedShiftCalendarIndex(final ShiftCalendarIndex shiftCalendarIndex, final long createTime) {
+            this.shiftCalendarIndex = shiftCalendarIndex;
+            this.createTime = createTime;
+        }
+
+        private ShiftCalendarIndex getShiftCalendarIndex() {
+            return shiftCalendarIndex;
+        }
+
+        private long getCreateTime() {
+            return createTime;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - createTime > INDEX_TIME_TO_LIVE_MILLIS;
+        }
+
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Service;
+
+import com.qcadoo.mes.basic.shift.ShiftTimetable;
+import com.qcadoo.mes.basic.util.TenantKey;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+
+@Service
+public class ShiftTimetableService {
+
+    private static final long TIMETABLE_TIME_TO_LIVE_MILLIS = 5 * 60 * 1000L;
+
+    private static final String L_SHIFT_TIMETABLE = "shiftTimetable";
+
+    private final Map<TenantKey<String>, CachedShiftTimetable> shiftTimetables = new ConcurrentHashMap<>();
+
+    /**
+     * Returns timetable of shifts of current tenant, building it with given supplier when needed. Timetable is cached per tenant,
+     * dropped when shifts change and after a few minutes anyway, so that changes made on other nodes are also taken into account.
+     */
+    public ShiftTimetable getShiftTimetable(final Supplier<ShiftTimetable> shiftTimetable) {
+        return getShiftTimetable(TenantKey.of(L_SHIFT_TIMETABLE), shiftTimetable);
+    }
+
+    ShiftTimetable getShiftTimetable(final TenantKey<String> tenantKey, final Supplier<ShiftTimetable> shiftTimetable) {
+        CachedShiftTimetable cached = shiftTimetables.get(tenantKey);
+
+        if (Objects.isNull(cached) || cached.isExpired()) {
+            cached = new CachedShiftTimetable(shiftTimetable.get());
+
+            shiftTimetables.put(tenantKey, cached);
+        }
+
+        return cached.getShiftTimetable();
+    }
+
+    public void invalidate() {
+        invalidate(TenantKey.of(L_SHIFT_TIMETABLE));
+    }
+
+    void invalidate(final TenantKey<String> tenantKey) {
+        shiftTimetables.remove(tenantKey);
+    }
+
+    public void invalidateOnSave(final DataDefinition dataDefinition, final Entity entity) {
+        invalidate();
+    }
+
+    public boolean invalidateOnDelete(final DataDefinition dataDefinition, final Entity entity) {
+        invalidate();
+
+        return true;
+    }
+
+    private static final class CachedShiftTimetable {
+
+        private final ShiftTimetable shiftTimetable;
+
+        private final long createTime = System.currentTimeMillis();
+
+        private CachedShiftTimetable(final ShiftTimetable shiftTimetable) {
+            this.shiftTimetable = shiftTimetable;
+        }
+
+        private ShiftTimetable getShiftTimetable() {
+            return shiftTimetable;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - createTime > TIMETABLE_TIME_TO_LIVE_MILLIS;
+        }
+
+    }
+
+}
@@ -30,10 +30,13 @@ import com.qcadoo.mes.basic.constants.BasicConstants;
 import com.qcadoo.mes.basic.constants.ShiftFields;
 import com.qcadoo.mes.basic.constants.TimetableExceptionType;
 import com.qcadoo.mes.basic.shift.Shift;
+import com.qcadoo.mes.basic.shift.ShiftCalendarIndex;
+import com.qcadoo.mes.basic.shift.ShiftTimetable;
 import com.qcadoo.mes.basic.util.DateTimeRange;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
 import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.search.SearchOrders;
 import com.qcadoo.model.api.search.SearchRestrictions;
 import com.qcadoo.view.api.ComponentState;
 import com.qcadoo.view.api.ViewDefinitionState;
@@ -59,6 +62,7 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.Days;
 import org.joda.time.IllegalFieldValueException;
 import org.joda.time.Interval;
+import org.joda.time.LocalDate;
 import org.joda.time.LocalTime;
 import org.joda.time.Period;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -105,6 +109,12 @@ public class ShiftsServiceImpl implements ShiftsService {
     @Autowired
     private ShiftExceptionService shiftExceptionService;
 
+    @Autowired
+    private ShiftCalendarIndexService shiftCalendarIndexService;
+
+    @Autowired
+    private ShiftTimetableService shiftTimetableService;
+
     private static final String[] WEEK_DAYS = { L_MONDAY, L_TUESDAY, L_WENSDAY, L_THURSDAY, L_FRIDAY, L_SATURDAY, L_SUNDAY };
 
     private static final Map<Integer, String> DAY_OF_WEEK = buildDayNumToNameMap();
@@ -162,29 +172,45 @@ public class ShiftsServiceImpl implements ShiftsService {
     @Override
     public Optional<DateTime> getNearestWorkingDate(DateTime dateFrom, Entity productionLine) {
         List<Shift> shifts = findAll(productionLine);
-        List<DateTimeRange> finalShiftWorkTimes = Lists.newArrayList();
-
-        DateTime currentDate = dateFrom.minusDays(1);
 
         if (shifts.stream().noneMatch(shift -> checkShiftWorkingAfterDate(dateFrom, productionLine, shift))) {
             return Optional.empty();
         }
 
-        while (finalShiftWorkTimes.isEmpty()) {
-            for (Shift shift : shifts) {
-                getNearestWorkingDateForShift(shift, productionLine, dateFrom, currentDate, finalShiftWorkTimes);
-            }
+        long dateFromMillis = dateFrom.getMillis();
+        LocalDate firstDay = dateFrom.minusDays(1).toLocalDate();
+        LocalDate lastDay = firstDay.plusDays(MAX_LOOPS);
 
-            currentDate = currentDate.plusDays(1);
-        }
+        LocalDate day = firstDay;
+
+        while (!day.isAfter(lastDay)) {
+            ShiftCalendarIndex shiftCalendarIndex = shiftCalendarIndexService.getShiftCalendarIndex(productionLine, true, day, day,
+                    () -> shifts);
 
-        DateTime result = finalShiftWorkTimes.stream().min(Comparator.comparing(DateTimeRange::getFrom)).get().getFrom();
+            LocalDate indexLastDay = shiftCalendarIndex.getLastDay().isBefore(lastDay) ? shiftCalendarIndex.getLastDay()
+                    : lastDay;
 
-        if (result.compareTo(dateFrom) <= 0) {
-            return Optional.of(dateFrom);
+            for (; !day.isAfter(indexLastDay); day = day.plusDays(1)) {
+                Long nearestFrom = null;
+
+                for (int entry = shiftCalendarIndex.getEntriesStart(day); entry < shiftCalendarIndex.getEntriesEnd(day); entry++) {
+                    if ((shiftCalendarIndex.getTo(entry) > dateFromMillis)
+                            && (Objects.isNull(nearestFrom) || (shiftCalendarIndex.getFrom(entry) < nearestFrom))) {
+                        nearestFrom = shiftCalendarIndex.getFrom(entry);
+                    }
+                }
+
+                if (Objects.nonNull(nearestFrom)) {
+                    if (nearestFrom <= dateFromMillis) {
+                        return Optional.of(dateFrom);
+                    }
+
+                    return Optional.of(new DateTime(nearestFrom));
+                }
+            }
         }
 
-        return Optional.of(result);
+        return Optional.empty();
     }
 
     private void getNearestWorkingDateForShift(final Shift shift, final Entity productionLine, final DateTime dateFrom,
@@ -343,38 +369,64 @@ public class ShiftsServiceImpl implements ShiftsService {
 
     @Override
     public Date findDateToForProductionLine(final Date dateFrom, final long seconds, final Entity productionLine) {
-        if (getShiftDataDefinition().find().list().getTotalNumberOfEntities() == 0) {
+        DateTime dateFromDT = new DateTime(dateFrom, DateTimeZone.getDefault());
+
+        LocalDate firstDay = dateFromDT.minusDays(1).toLocalDate();
+        LocalDate lastDay = firstDay.plusDays(MAX_LOOPS);
+
+        ShiftCalendarIndex shiftCalendarIndex = getShiftCalendarIndex(productionLine, true, firstDay, firstDay);
+
+        long leftMilliseconds = seconds * MILLS;
+
+        if (!shiftCalendarIndex.hasShifts() || (leftMilliseconds <= 0L)) {
             return Date.from(dateFrom.toInstant().plusSeconds(seconds));
         }
 
-        DateTime dateFromDT = new DateTime(dateFrom, DateTimeZone.getDefault());
+        long dateFromMillis = dateFrom.getTime();
+        LocalDate day = firstDay;
 
-        List<Shift> shifts = findAll(productionLine);
-        DateTime dateOfDay = new DateTime(dateFrom);
-        dateOfDay = dateOfDay.minusDays(1);
-        dateOfDay = dateOfDay.toLocalDate().toDateTimeAtStartOfDay();
-        long leftMilliseconds = seconds * MILLS;
-        int loopCount = 0;
-        while (leftMilliseconds > 0L) {
-            if (loopCount > MAX_LOOPS) {
-                return Date.from(dateFrom.toInstant().plusSeconds(seconds));
-            }
-            for (Shift shift : shifts) {
-                for (DateTimeRange range : shiftExceptionService.getShiftWorkDateTimes(productionLine, shift, dateOfDay, true)) {
-                    if (dateFrom.after(dateOfDay.toDate())) {
-                        range = range.trimBefore(dateFromDT);
-                    }
-                    if (range != null) {
-                        if (leftMilliseconds > range.durationMillis()) {
-                            leftMilliseconds = leftMilliseconds - range.durationMillis();
-                        } else {
-                            return range.getFrom().plusMillis((int) leftMilliseconds).toDate();
-                        }
-                    }
+        // ranges of days starting before dateFrom have to be trimmed, so they are counted one by one
+        while (!day.isAfter(lastDay) && dateFrom.after(day.toDateTimeAtStartOfDay().toDate())) {
+            shiftCalendarIndex = getShiftCalendarIndex(productionLine, true, day, day);
+
+            for (int entry = shiftCalendarIndex.getEntriesStart(day); entry < shiftCalendarIndex.getEntriesEnd(day); entry++) {
+                long from = shiftCalendarIndex.getFrom(entry);
+                long to = shiftCalendarIndex.getTo(entry);
+
+                if (to <= dateFromMillis) {
+                    continue;
+                }
+                if (from < dateFromMillis) {
+                    from = dateFromMillis;
+                }
+
+                if (leftMilliseconds > (to - from)) {
+                    leftMilliseconds -= (to - from);
+                } else {
+                    return new Date(from + leftMilliseconds);
                 }
             }
-            loopCount++;
-            dateOfDay = dateOfDay.plusDays(1);
+
+            day = day.plusDays(1);
+        }
+
+        while (!day.isAfter(lastDay)) {
+            shiftCalendarIndex = getShiftCalendarIndex(productionLine, true, day, day);
+
+            LocalDate indexLastDay = shiftCalendarIndex.getLastDay().isBefore(lastDay) ? shiftCalendarIndex.getLastDay()
+                    : lastDay;
+
+            int start = shiftCalendarIndex.getEntriesStart(day);
+            int end = shiftCalendarIndex.getEntriesEnd(indexLastDay);
+            int entry = shiftCalendarIndex.findEntry(start, end, leftMilliseconds);
+
+            if (entry >= 0) {
+                return new Date(shiftCalendarIndex.getFrom(entry) + leftMilliseconds
+                        - shiftCalendarIndex.getDurationMillis(start, entry));
+            }
+
+            leftMilliseconds -= shiftCalendarIndex.getDurationMillis(start, end);
+            day = indexLastDay.plusDays(1);
         }
 
         return Date.from(dateFrom.toInstant().plusSeconds(seconds));
@@ -382,29 +434,37 @@ public class ShiftsServiceImpl implements ShiftsService {
 
     @Override
     public long getTotalAvailableTimeForProductionLine(final Date dateFrom, final Date dateTo, final Entity productionLine) {
-        if (getShiftDataDefinition().find().list().getTotalNumberOfEntities() == 0) {
+        DateTime dateFromDT = new DateTime(dateFrom);
+        DateTime dateToDT = new DateTime(dateTo);
+
+        // number of days counted from dateFrom, which start not later than dateTo
+        int daysCount = dateToDT.isBefore(dateFromDT) ? 0 : Days.daysBetween(dateFromDT, dateToDT).getDays() + 1;
+
+        if (daysCount > MAX_LOOPS + 1) {
             return (dateTo.getTime() - dateFrom.getTime()) / 1000;
         }
 
-        long totalAvailableTime = 0;
+        LocalDate firstDay = dateFromDT.toLocalDate();
+        LocalDate lastDay = firstDay.plusDays(Math.max(daysCount - 1, 0));
 
-        List<Shift> shifts = findAll(productionLine);
-        DateTime dateOfDay = new DateTime(dateFrom);
-        int loopCount = 0;
-        while (!dateOfDay.isAfter(new DateTime(dateTo))) {
-            if (loopCount > MAX_LOOPS) {
-                return (dateTo.getTime() - dateFrom.getTime()) / 1000;
-            }
-            for (Shift shift : shifts) {
-                for (DateTimeRange range : shiftExceptionService.getShiftWorkDateTimes(productionLine, shift, dateOfDay, false)) {
-                    totalAvailableTime += range.durationMillis();
-                }
-            }
-            loopCount++;
-            dateOfDay = dateOfDay.plusDays(1);
+        ShiftCalendarIndex shiftCalendarIndex = getShiftCalendarIndex(productionLine, false, firstDay, lastDay);
+
+        if (!shiftCalendarIndex.hasShifts()) {
+            return (dateTo.getTime() - dateFrom.getTime()) / 1000;
+        }
+
+        if (daysCount == 0) {
+            return 0;
         }
 
-        return totalAvailableTime / 1000;
+        return shiftCalendarIndex.getDurationMillis(shiftCalendarIndex.getEntriesStart(firstDay),
+                shiftCalendarIndex.getEntriesEnd(lastDay)) / 1000;
+    }
+
+    private ShiftCalendarIndex getShiftCalendarIndex(final Entity productionLine, final boolean removeFreeTimeException,
+            final LocalDate dayFrom, final LocalDate dayTo) {
+        return shiftCalendarIndexService.getShiftCalendarIndex(productionLine, removeFreeTimeException, dayFrom, dayTo,
+                () -> findAll(productionLine));
     }
 
     @Override
@@ -507,50 +567,30 @@ public class ShiftsServiceImpl implements ShiftsService {
 
     @Override
     public Entity getShiftFromDateWithTime(final Date date) {
-        List<Entity> shifts = getShiftsWorkingAtDate(date);
+        Long shiftId = shiftTimetableService.getShiftTimetable(this::buildShiftTimetable).findShiftId(date);
 
-        for (Entity shift : shifts) {
-            String stringHours = shift.getStringField(getDayOfWeekName(date) + HOURS_LITERAL);
-            LocalTime[][] dayHours = convertDayHoursToInt(stringHours);
-
-            for (LocalTime[] dayHour : dayHours) {
-                if (dayHour[1].getHourOfDay() < dayHour[0].getHourOfDay()) {
-                    if (checkIfStartDateShiftIsEarlierThanDate(dayHour, date)
-                            || checkIfEndDateShiftIsLaterThanDate(dayHour, date)) {
-                        return shift;
-                    }
-                } else {
-                    if (checkIfStartDateShiftIsEarlierThanDate(dayHour, date)
-                            && checkIfEndDateShiftIsLaterThanDate(dayHour, date)) {
-                        return shift;
-                    }
-                }
-            }
+        if (Objects.isNull(shiftId)) {
+            return null;
         }
 
-        return null;
+        return getShiftDataDefinition().get(shiftId);
     }
 
-    private boolean checkIfStartDateShiftIsEarlierThanDate(final LocalTime[] dayHour, final Date date) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(date);
-
-        int hourOfDay = cal.get(Calendar.HOUR_OF_DAY);
-        int minuteOfHour = cal.get(Calendar.MINUTE);
+    private ShiftTimetable buildShiftTimetable() {
+        ShiftTimetable.Builder shiftTimetableBuilder = ShiftTimetable.builder();
 
-        return dayHour[0].getHourOfDay() < hourOfDay
-                || (dayHour[0].getHourOfDay() == hourOfDay && dayHour[0].getMinuteOfHour() <= minuteOfHour);
-    }
+        List<Entity> shifts = getShiftDataDefinition().find().addOrder(SearchOrders.asc("id")).list().getEntities();
 
-    private boolean checkIfEndDateShiftIsLaterThanDate(final LocalTime[] dayHour, final Date date) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(date);
-
-        int hourOfDay = cal.get(Calendar.HOUR_OF_DAY);
-        int minuteOfHour = cal.get(Calendar.MINUTE);
+        for (Entity shift : shifts) {
+            for (Map.Entry<Integer, String> dayOfWeek : DAY_OF_WEEK.entrySet()) {
+                if (shift.getBooleanField(dayOfWeek.getValue() + WORKING_LITERAL)) {
+                    shiftTimetableBuilder.addWorkingHours(dayOfWeek.getKey(), shift.getId(),
+                            convertDayHoursToInt(shift.getStringField(dayOfWeek.getValue() + HOURS_LITERAL)));
+                }
+            }
+        }
 
-        return hourOfDay < dayHour[1].getHourOfDay()
-                || (hourOfDay == dayHour[1].getHourOfDay() && minuteOfHour < dayHour[1].getMinuteOfHour());
+        return shiftTimetableBuilder.build();
     }
 
     @Override
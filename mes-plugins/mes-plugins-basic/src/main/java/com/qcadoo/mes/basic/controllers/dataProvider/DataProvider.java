@@ -15,11 +15,15 @@ import com.qcadoo.mes.basic.controllers.dataProvider.responses.CountriesResponse
 import com.qcadoo.mes.basic.controllers.dataProvider.responses.DataResponse;
 import com.qcadoo.mes.basic.controllers.dataProvider.responses.ProductsGridResponse;
 import com.qcadoo.mes.basic.controllers.dataProvider.responses.WorkstationTypesResponse;
+import com.qcadoo.mes.basic.lookup.LookupIndexService;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
+import com.qcadoo.mes.basic.lookup.LookupResult;
 import com.qcadoo.model.api.DictionaryService;
 
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
@@ -39,6 +43,9 @@ public class DataProvider {
     @Autowired
     private DictionaryService dictionaryService;
 
+    @Autowired
+    private LookupIndexService lookupIndexService;
+
     public static final int MAX_RESULTS = 20;
 
     private String prepareProductsQuery() {
@@ -107,6 +114,12 @@ public class DataProvider {
     }
 
     public DataResponse getProductsResponseByQuery(final String query) {
+        Optional<LookupResult<ProductDTO>> lookupResult = lookupIndexService.search(LookupIndexes.PRODUCTS, query, MAX_RESULTS);
+
+        if (lookupResult.isPresent()) {
+            return getDataResponse(lookupResult.get());
+        }
+
         return getDataResponse(query, prepareProductsQuery(), getProductsByQuery(query), Maps.newHashMap());
     }
 
@@ -116,9 +129,24 @@ public class DataProvider {
     }
 
     public DataResponse getPalletNumbersResponseByQuery(final String query) {
+        Optional<LookupResult<PalletNumberDTO>> lookupResult = lookupIndexService.search(LookupIndexes.PALLET_NUMBERS, query,
+                MAX_RESULTS);
+
+        if (lookupResult.isPresent()) {
+            return getDataResponse(lookupResult.get());
+        }
+
         return getDataResponse(query, preparePalletNumbersQuery(), getPalletNumbersByQuery(query), Maps.newHashMap());
     }
 
+    public DataResponse getDataResponse(final LookupResult<? extends AbstractDTO> lookupResult) {
+        if (lookupResult.getNumberOfResults() > MAX_RESULTS) {
+            return new DataResponse(Lists.newArrayList(), lookupResult.getNumberOfResults());
+        }
+
+        return new DataResponse(lookupResult.getEntities(), lookupResult.getNumberOfResults());
+    }
+
     public DataResponse getDataResponse(final String query, final String preparedQuery,
             final List<? extends AbstractDTO> entities, final Map<String, Object> paramMap) {
         return getDataResponse(query, preparedQuery, entities, paramMap, true);
@@ -136,6 +164,13 @@ public class DataProvider {
     }
 
     public DataResponse getAttributesByQuery(String attr, String query) {
+        Optional<LookupResult<AttribiuteValueDTO>> lookupResult = lookupIndexService.search(LookupIndexes.ATTRIBUTE_VALUES,
+                query, MAX_RESULTS, entry -> attr.equals(entry.getContext(0)));
+
+        if (lookupResult.isPresent()) {
+            return getDataResponse(lookupResult.get());
+        }
+
         Map<String, Object> parameters = Maps.newHashMap();
         parameters.put("attr", attr);
         return getDataResponse(query, prepareAttributesQuery(), getAttribiutesByQuery(attr, query), parameters);
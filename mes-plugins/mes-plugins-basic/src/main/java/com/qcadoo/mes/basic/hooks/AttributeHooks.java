@@ -4,8 +4,11 @@ import com.google.common.collect.Lists;
 import com.qcadoo.mes.basic.constants.AttributeDataType;
 import com.qcadoo.mes.basic.constants.AttributeFields;
 import com.qcadoo.mes.basic.constants.AttributeValueType;
+import com.qcadoo.mes.basic.lookup.LookupIndexService;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.Objects;
@@ -15,6 +18,9 @@ public class AttributeHooks {
 
     public static final int MAX_PRECISION = 5;
 
+    @Autowired
+    private LookupIndexService lookupIndexService;
+
     public boolean validate(final DataDefinition attributeDD, final Entity attribute) {
 
         if (!attribute.getBooleanField(AttributeFields.FOR_PRODUCT) && !attribute.getBooleanField(AttributeFields.FOR_RESOURCE)
@@ -47,5 +53,19 @@ public class AttributeHooks {
             attribute.setField(AttributeFields.PRECISION, null);
         }
 
+        updateLookupIndex(attributeDD, attribute);
+    }
+
+    private void updateLookupIndex(final DataDefinition attributeDD, final Entity attribute) {
+        if (Objects.isNull(attribute.getId())) {
+            return;
+        }
+
+        Entity attributeFromDB = attributeDD.get(attribute.getId());
+
+        if (Objects.isNull(attributeFromDB) || !Objects.equals(attributeFromDB.getStringField(AttributeFields.NUMBER),
+                attribute.getStringField(AttributeFields.NUMBER))) {
+            lookupIndexService.invalidate(LookupIndexes.ATTRIBUTE_VALUES);
+        }
     }
 }
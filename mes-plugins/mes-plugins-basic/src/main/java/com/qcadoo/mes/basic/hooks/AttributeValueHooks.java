@@ -5,6 +5,8 @@ import com.qcadoo.commons.functional.Either;
 import com.qcadoo.mes.basic.constants.AttributeFields;
 import com.qcadoo.mes.basic.constants.AttributeValueFields;
 import com.qcadoo.mes.basic.constants.AttributeValueType;
+import com.qcadoo.mes.basic.lookup.LookupIndexService;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
 import com.qcadoo.model.api.BigDecimalUtils;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
@@ -25,6 +27,9 @@ public class AttributeValueHooks {
     @Autowired
     private NumberService numberService;
 
+    @Autowired
+    private LookupIndexService lookupIndexService;
+
     public boolean validate(final DataDefinition attributeValueDD, final Entity attributeValue) {
         Entity attribute = attributeValue.getBelongsToField(AttributeValueFields.ATTRIBUTE);
         String value = attributeValue.getStringField(AttributeValueFields.VALUE);
@@ -84,5 +89,17 @@ public class AttributeValueHooks {
                                 attribute.getIntegerField(AttributeFields.PRECISION)));
             }
         }
+        updateLookupIndex(attributeValue);
+    }
+
+    public boolean onDelete(final DataDefinition attributeValueDD, final Entity attributeValue) {
+        updateLookupIndex(attributeValue);
+
+        return true;
+    }
+
+    private void updateLookupIndex(final Entity attributeValue) {
+        lookupIndexService.onEntityChanged(LookupIndexes.ATTRIBUTE_VALUES, attributeValue.getId(),
+                attributeValue.getStringField(AttributeValueFields.VALUE));
     }
 }
@@ -29,6 +29,8 @@ import org.springframework.stereotype.Service;
 
 import com.qcadoo.mes.basic.PalletNumberGenerator;
 import com.qcadoo.mes.basic.constants.PalletNumberFields;
+import com.qcadoo.mes.basic.lookup.LookupIndexService;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
 
@@ -38,6 +40,9 @@ public class PalletNumberHooks {
     @Autowired
     private PalletNumberGenerator palletNumberGenerator;
 
+    @Autowired
+    private LookupIndexService lookupIndexService;
+
     public void onCreate(final DataDefinition palletNumberDD, final Entity palletNumber) {
         generateNumber(palletNumber);
     }
@@ -50,6 +55,19 @@ public class PalletNumberHooks {
         if (palletNumber.getDateField(PalletNumberFields.ISSUE_DATE_TIME) != null) {
             palletNumber.setActive(false);
         }
+
+        updateLookupIndex(palletNumber);
+    }
+
+    public boolean onDelete(final DataDefinition palletNumberDD, final Entity palletNumber) {
+        updateLookupIndex(palletNumber);
+
+        return true;
+    }
+
+    private void updateLookupIndex(final Entity palletNumber) {
+        lookupIndexService.onEntityChanged(LookupIndexes.PALLET_NUMBERS, palletNumber.getId(),
+                palletNumber.getStringField(PalletNumberFields.NUMBER));
     }
 
     private void generateNumber(final Entity palletNumber) {
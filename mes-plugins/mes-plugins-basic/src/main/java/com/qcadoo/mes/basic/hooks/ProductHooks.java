@@ -38,6 +38,8 @@ import com.qcadoo.mes.basic.constants.BasicConstants;
 import com.qcadoo.mes.basic.constants.ModelFields;
 import com.qcadoo.mes.basic.constants.ProductFamilyElementType;
 import com.qcadoo.mes.basic.constants.ProductFields;
+import com.qcadoo.mes.basic.lookup.LookupIndexService;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
 import com.qcadoo.mes.basic.tree.ProductNumberingService;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
@@ -57,10 +59,24 @@ public class ProductHooks {
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
+    @Autowired
+    private LookupIndexService lookupIndexService;
+
     public void onSave(final DataDefinition productDD, final Entity product) {
         updateModelAndAssortment(productDD, product);
         updateNodeNumber(productDD, product);
         clearFamilyFromProductWhenTypeIsChanged(productDD, product);
+        updateLookupIndex(product);
+    }
+
+    public boolean onDelete(final DataDefinition productDD, final Entity product) {
+        updateLookupIndex(product);
+
+        return true;
+    }
+
+    private void updateLookupIndex(final Entity product) {
+        lookupIndexService.onEntityChanged(LookupIndexes.PRODUCTS, product.getId(), product.getStringField(ProductFields.NUMBER));
     }
 
     private void updateModelAndAssortment(final DataDefinition productDD, final Entity product) {
@@ -103,6 +103,9 @@ public abstract class CellBinder {
 
     public abstract void bind(final String cellValue, final Entity entity, final CellErrorsAccessor errorsAccessor);
 
+    public abstract void bind(final String cellValue, final String dependentCellValue, final Entity entity,
+            final CellErrorsAccessor errorsAccessor);
+
     private static String formatCell(final Cell cell) {
         Locale locale = LocaleContextHolder.getLocale();
 
@@ -115,6 +118,10 @@ public abstract class CellBinder {
         return cellValue.trim();
     }
 
+    private static String formatDependentCell(final String dependentCellValue) {
+        return Objects.isNull(dependentCellValue) ? StringUtils.EMPTY : dependentCellValue.trim();
+    }
+
     @Override
     public String toString() {
         return ToStringBuilder.reflectionToString(this);
@@ -173,6 +180,17 @@ public abstract class CellBinder {
                         fieldValue -> entity.setField(getFieldName(), fieldValue));
             }
         }
+
+        @Override
+        public void bind(final String cellValue, final String dependentCellValue, final Entity entity,
+                final CellErrorsAccessor errorsAccessor) {
+            if (StringUtils.isEmpty(cellValue)) {
+                errorsAccessor.addError(L_QCADOO_VIEW_VALIDATE_FIELD_ERROR_MISSING);
+            } else {
+                getCellParser().parse(formatCell(cellValue), formatDependentCell(dependentCellValue), errorsAccessor,
+                        fieldValue -> entity.setField(getFieldName(), fieldValue));
+            }
+        }
     }
 
     private static class OptionalCellBinder extends CellBinder {
@@ -220,6 +238,17 @@ public abstract class CellBinder {
             }
         }
 
+        @Override
+        public void bind(final String cellValue, final String dependentCellValue, final Entity entity,
+                final CellErrorsAccessor errorsAccessor) {
+            if (StringUtils.isEmpty(cellValue)) {
+                setDefaultValue(entity, errorsAccessor);
+            } else {
+                getCellParser().parse(formatCell(cellValue), formatDependentCell(dependentCellValue), errorsAccessor,
+                        fieldValue -> entity.setField(getFieldName(), fieldValue));
+            }
+        }
+
         private void setDefaultValue(final Entity entity, final CellErrorsAccessor errorsAccessor) {
             if (getCellParser() instanceof BooleanCellParser) {
                 entity.setField(getFieldName(), false);
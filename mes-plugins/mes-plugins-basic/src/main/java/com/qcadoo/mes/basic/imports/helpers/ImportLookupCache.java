@@ -0,0 +1,80 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.imports.helpers;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import com.google.common.collect.Maps;
+import com.qcadoo.model.api.Entity;
+
+/**
+ * Lookup entities resolved during a single import, bound to the importing thread. Parsers extending {@link LookupCellParser}
+ * use it to avoid querying the same code for every row.
+ */
+public final class ImportLookupCache {
+
+    private static final ThreadLocal<ImportLookupCache> CURRENT = new ThreadLocal<>();
+
+    private final Map<String, Map<String, Entity>> entitiesByLookup = Maps.newHashMap();
+
+    private ImportLookupCache() {
+    }
+
+    public static ImportLookupCache open() {
+        ImportLookupCache importLookupCache = new ImportLookupCache();
+
+        CURRENT.set(importLookupCache);
+
+        return importLookupCache;
+    }
+
+    public static Optional<ImportLookupCache> getCurrent() {
+        return Optional.ofNullable(CURRENT.get());
+    }
+
+    public static void close() {
+        CURRENT.remove();
+    }
+
+    public Entity get(final String lookupName, final String value) {
+        Map<String, Entity> entities = entitiesByLookup.get(lookupName);
+
+        if (Objects.isNull(entities)) {
+            return null;
+        }
+
+        return entities.get(value);
+    }
+
+    public boolean contains(final String lookupName, final String value) {
+        return Objects.nonNull(get(lookupName, value));
+    }
+
+    public void put(final String lookupName, final String value, final Entity entity) {
+        entitiesByLookup.computeIfAbsent(lookupName, name -> Maps.newHashMap()).put(value, entity);
+    }
+
+}
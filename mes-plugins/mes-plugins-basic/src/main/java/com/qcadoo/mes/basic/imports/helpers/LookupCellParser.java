@@ -0,0 +1,122 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.imports.helpers;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.search.SearchRestrictions;
+
+/**
+ * Parser resolving cell value to an entity by its code. Codes of a whole chunk of rows can be resolved up front with
+ * {@link #prefetch(Collection)}, found entities are then kept in {@link ImportLookupCache} of the current import.
+ */
+public abstract class LookupCellParser implements CellParser {
+
+    private static final String L_QCADOO_VIEW_VALIDATE_FIELD_ERROR_LOOKUP_CODE_NOT_FOUND = "qcadooView.validate.field.error.lookupCodeNotFound";
+
+    private static final String L_NUMBER = "number";
+
+    @Override
+    public void parse(final String cellValue, final String dependentCellValue, final CellErrorsAccessor errorsAccessor,
+            final Consumer<Object> valueConsumer) {
+        Entity entity = getEntityByCode(cellValue);
+
+        if (Objects.isNull(entity)) {
+            errorsAccessor.addError(L_QCADOO_VIEW_VALIDATE_FIELD_ERROR_LOOKUP_CODE_NOT_FOUND);
+        } else {
+            valueConsumer.accept(entity);
+        }
+    }
+
+    public void prefetch(final Collection<String> codes) {
+        Optional<ImportLookupCache> importLookupCache = ImportLookupCache.getCurrent();
+
+        if (!importLookupCache.isPresent()) {
+            return;
+        }
+
+        String lookupName = getLookupName();
+
+        List<String> missingCodes = codes.stream().filter(StringUtils::isNotEmpty)
+                .filter(code -> !importLookupCache.get().contains(lookupName, code)).distinct().collect(Collectors.toList());
+
+        if (missingCodes.isEmpty()) {
+            return;
+        }
+
+        List<Entity> entities = getDataDefinition().find().add(SearchRestrictions.in(getCodeFieldName(), missingCodes)).list()
+                .getEntities();
+
+        for (Entity entity : entities) {
+            String code = entity.getStringField(getCodeFieldName());
+
+            if (!importLookupCache.get().contains(lookupName, code)) {
+                importLookupCache.get().put(lookupName, code, entity);
+            }
+        }
+    }
+
+    private Entity getEntityByCode(final String code) {
+        Optional<ImportLookupCache> importLookupCache = ImportLookupCache.getCurrent();
+
+        if (importLookupCache.isPresent()) {
+            Entity entity = importLookupCache.get().get(getLookupName(), code);
+
+            if (Objects.nonNull(entity)) {
+                return entity;
+            }
+        }
+
+        Entity entity = getDataDefinition().find().add(SearchRestrictions.eq(getCodeFieldName(), code)).setMaxResults(1)
+                .uniqueResult();
+
+        if (Objects.nonNull(entity)) {
+            importLookupCache.ifPresent(cache -> cache.put(getLookupName(), code, entity));
+        }
+
+        return entity;
+    }
+
+    private String getLookupName() {
+        DataDefinition dataDefinition = getDataDefinition();
+
+        return dataDefinition.getPluginIdentifier() + "." + dataDefinition.getName() + "." + getCodeFieldName();
+    }
+
+    protected String getCodeFieldName() {
+        return L_NUMBER;
+    }
+
+    protected abstract DataDefinition getDataDefinition();
+
+}
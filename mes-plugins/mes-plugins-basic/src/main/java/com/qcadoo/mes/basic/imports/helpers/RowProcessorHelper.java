@@ -92,6 +92,19 @@ public class RowProcessorHelper {
         binder.bind(cellValue, entity, errorCode -> rowErrors.add(new ImportError(currentRow, binder.getFieldName(), errorCode)));
     }
 
+    public void append(final String cellValue, final String dependentCellValue) {
+        assureNotProcessedYet();
+
+        if (Objects.nonNull(cellValue)) {
+            empty = false;
+        }
+
+        final CellBinder binder = cellBinderRegistry.getCellBinder(index++);
+
+        binder.bind(cellValue, dependentCellValue, entity,
+                errorCode -> rowErrors.add(new ImportError(currentRow, binder.getFieldName(), errorCode)));
+    }
+
     public void append(Cell cell, Cell dependentCell) {
         assureNotProcessedYet();
 
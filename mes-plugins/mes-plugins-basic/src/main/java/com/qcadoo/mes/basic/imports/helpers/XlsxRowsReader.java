@@ -0,0 +1,207 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.imports.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Reads rows of the first sheet of xlsx file with the SAX event API, without building the whole workbook in memory. The header
+ * row is skipped and reading stops on the first missing or empty row. Rows are passed to the consumer in chunks.
+ */
+public class XlsxRowsReader implements XSSFSheetXMLHandler.SheetContentsHandler {
+
+    private final int columnsCount;
+
+    private final int chunkSize;
+
+    private final Consumer<List<XlsxRow>> chunkConsumer;
+
+    private List<XlsxRow> chunk = Lists.newArrayList();
+
+    private String[] values;
+
+    private int expectedRowIndex = 1;
+
+    private int currentColumnIndex;
+
+    private boolean finished = false;
+
+    public XlsxRowsReader(final int columnsCount, final int chunkSize, final Consumer<List<XlsxRow>> chunkConsumer) {
+        this.columnsCount = columnsCount;
+        this.chunkSize = chunkSize;
+        this.chunkConsumer = chunkConsumer;
+    }
+
+    public void read(final InputStream inputStream, final Locale locale) throws IOException {
+        OPCPackage opcPackage = null;
+
+        try {
+            opcPackage = OPCPackage.open(inputStream);
+
+            XSSFReader xssfReader = new XSSFReader(opcPackage);
+
+            Iterator<InputStream> sheets = xssfReader.getSheetsData();
+
+            if (sheets.hasNext()) {
+                try (InputStream sheet = sheets.next()) {
+                    SAXParserFactory saxParserFactory = SAXParserFactory.newInstance();
+
+                    saxParserFactory.setNamespaceAware(true);
+
+                    XMLReader xmlReader = saxParserFactory.newSAXParser().getXMLReader();
+
+                    xmlReader.setContentHandler(new XSSFSheetXMLHandler(xssfReader.getStylesTable(), null,
+                            new ReadOnlySharedStringsTable(opcPackage), this,
+                            new DataFormatter(Objects.isNull(locale) ? Locale.getDefault() : locale), false));
+                    xmlReader.parse(new InputSource(sheet));
+                }
+            }
+
+            flush();
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IllegalStateException("Invalid xlsx file", e);
+        } finally {
+            if (Objects.nonNull(opcPackage)) {
+                opcPackage.revert();
+            }
+        }
+    }
+
+    @Override
+    public void startRow(final int rowNum) {
+        values = null;
+
+        if (finished || (rowNum == 0)) {
+            return;
+        }
+
+        if (rowNum != expectedRowIndex) {
+            finished = true;
+
+            return;
+        }
+
+        values = new String[columnsCount];
+        currentColumnIndex = 0;
+    }
+
+    @Override
+    public void endRow(final int rowNum) {
+        if (Objects.isNull(values)) {
+            return;
+        }
+
+        if (Arrays.stream(values).allMatch(Objects::isNull)) {
+            finished = true;
+        } else {
+            chunk.add(new XlsxRow(rowNum, values));
+
+            expectedRowIndex++;
+
+            if (chunk.size() >= chunkSize) {
+                flush();
+            }
+        }
+
+        values = null;
+    }
+
+    @Override
+    public void cell(final String cellReference, final String formattedValue, final XSSFComment comment) {
+        if (Objects.isNull(values)) {
+            return;
+        }
+
+        int columnIndex = Objects.isNull(cellReference) ? currentColumnIndex : new CellReference(cellReference).getCol();
+
+        currentColumnIndex = columnIndex + 1;
+
+        if ((columnIndex < columnsCount) && StringUtils.isNotEmpty(formattedValue)) {
+            values[columnIndex] = formattedValue;
+        }
+    }
+
+    @Override
+    public void headerFooter(final String text, final boolean isHeader, final String tagName) {
+    }
+
+    private void flush() {
+        if (!chunk.isEmpty()) {
+            chunkConsumer.accept(chunk);
+
+            chunk = Lists.newArrayList();
+        }
+    }
+
+    public static final class XlsxRow {
+
+        private final int rowIndex;
+
+        private final String[] values;
+
+        private XlsxRow(final int rowIndex, final String[] values) {
+            this.rowIndex = rowIndex;
+            this.values = values;
+        }
+
+        public int getRowIndex() {
+            return rowIndex;
+        }
+
+        public String getValue(final int columnIndex) {
+            if ((columnIndex < 0) || (columnIndex >= values.length)) {
+                return null;
+            }
+
+            return values[columnIndex];
+        }
+
+    }
+
+}
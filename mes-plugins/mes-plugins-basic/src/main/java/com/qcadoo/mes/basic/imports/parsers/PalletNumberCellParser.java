@@ -24,45 +24,21 @@
 package com.qcadoo.mes.basic.imports.parsers;
 
 import com.qcadoo.mes.basic.constants.BasicConstants;
-import com.qcadoo.mes.basic.constants.PalletNumberFields;
-import com.qcadoo.mes.basic.imports.helpers.CellErrorsAccessor;
-import com.qcadoo.mes.basic.imports.helpers.CellParser;
+import com.qcadoo.mes.basic.imports.helpers.LookupCellParser;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
-import com.qcadoo.model.api.Entity;
-import com.qcadoo.model.api.search.SearchRestrictions;
-
-import java.util.Objects;
-import java.util.function.Consumer;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 @Component
-public class PalletNumberCellParser implements CellParser {
-
-    private static final String L_QCADOO_VIEW_VALIDATE_FIELD_ERROR_LOOKUP_CODE_NOT_FOUND = "qcadooView.validate.field.error.lookupCodeNotFound";
+public class PalletNumberCellParser extends LookupCellParser {
 
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
     @Override
-    public void parse(final String cellValue, final String dependentCellValue, final CellErrorsAccessor errorsAccessor, final Consumer<Object> valueConsumer) {
-        Entity palletNumber = getPalletNumberByNumber(cellValue);
-
-        if (Objects.isNull(palletNumber)) {
-            errorsAccessor.addError(L_QCADOO_VIEW_VALIDATE_FIELD_ERROR_LOOKUP_CODE_NOT_FOUND);
-        } else {
-            valueConsumer.accept(palletNumber);
-        }
-    }
-
-    private Entity getPalletNumberByNumber(final String number) {
-        return getPalletNumberDD().find().add(SearchRestrictions.eq(PalletNumberFields.NUMBER, number)).setMaxResults(1)
-                .uniqueResult();
-    }
-
-    private DataDefinition getPalletNumberDD() {
+    protected DataDefinition getDataDefinition() {
         return dataDefinitionService.get(BasicConstants.PLUGIN_IDENTIFIER, BasicConstants.MODEL_PALLET_NUMBER);
     }
 
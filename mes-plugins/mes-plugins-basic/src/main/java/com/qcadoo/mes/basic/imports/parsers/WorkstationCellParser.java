@@ -23,47 +23,22 @@
  */
 package com.qcadoo.mes.basic.imports.parsers;
 
-import java.util.Objects;
-import java.util.function.Consumer;
-
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import com.qcadoo.mes.basic.constants.BasicConstants;
-import com.qcadoo.mes.basic.constants.WorkstationFields;
-import com.qcadoo.mes.basic.imports.helpers.CellErrorsAccessor;
-import com.qcadoo.mes.basic.imports.helpers.CellParser;
+import com.qcadoo.mes.basic.imports.helpers.LookupCellParser;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
-import com.qcadoo.model.api.Entity;
-import com.qcadoo.model.api.search.SearchRestrictions;
 
 @Component
-public class WorkstationCellParser implements CellParser {
-
-    private static final String L_QCADOO_VIEW_VALIDATE_FIELD_ERROR_LOOKUP_CODE_NOT_FOUND = "qcadooView.validate.field.error.lookupCodeNotFound";
+public class WorkstationCellParser extends LookupCellParser {
 
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
     @Override
-    public void parse(final String cellValue, final String dependentCellValue, final CellErrorsAccessor errorsAccessor,
-            final Consumer<Object> valueConsumer) {
-        Entity workstation = getWorkstationByNumber(cellValue);
-
-        if (Objects.isNull(workstation)) {
-            errorsAccessor.addError(L_QCADOO_VIEW_VALIDATE_FIELD_ERROR_LOOKUP_CODE_NOT_FOUND);
-        } else {
-            valueConsumer.accept(workstation);
-        }
-    }
-
-    private Entity getWorkstationByNumber(final String number) {
-        return getWorkstationDD().find().add(SearchRestrictions.eq(WorkstationFields.NUMBER, number)).setMaxResults(1)
-                .uniqueResult();
-    }
-
-    private DataDefinition getWorkstationDD() {
+    protected DataDefinition getDataDefinition() {
         return dataDefinitionService.get(BasicConstants.PLUGIN_IDENTIFIER, BasicConstants.MODEL_WORKSTATION);
     }
 
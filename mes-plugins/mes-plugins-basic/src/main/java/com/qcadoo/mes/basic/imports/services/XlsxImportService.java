@@ -25,14 +25,19 @@ package com.qcadoo.mes.basic.imports.services;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.i18n.LocaleContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
@@ -40,70 +45,137 @@ import com.google.common.io.Files;
 import com.qcadoo.mes.basic.imports.dtos.CellBinder;
 import com.qcadoo.mes.basic.imports.dtos.CellBinderRegistry;
 import com.qcadoo.mes.basic.imports.dtos.ImportStatus;
+import com.qcadoo.mes.basic.imports.helpers.ImportLookupCache;
+import com.qcadoo.mes.basic.imports.helpers.LookupCellParser;
 import com.qcadoo.mes.basic.imports.helpers.RowProcessorHelper;
+import com.qcadoo.mes.basic.imports.helpers.XlsxRowsReader;
+import com.qcadoo.mes.basic.imports.helpers.XlsxRowsReader.XlsxRow;
 import com.qcadoo.model.api.Entity;
 import com.qcadoo.model.api.search.SearchCriterion;
 
 @Service
 public class XlsxImportService extends ImportService {
 
-    @Transactional
+    private static final Logger LOG = LoggerFactory.getLogger(XlsxImportService.class);
+
+    private static final int L_CHUNK_SIZE = 500;
+
     public ImportStatus importFile(final FileInputStream fis, final CellBinderRegistry cellBinderRegistry,
             final Boolean rollbackOnError, final String pluginIdentifier, final String modelName, final Entity belongsTo,
             final String belongsToName, final Boolean shouldUpdate, final Function<Entity, SearchCriterion> criteriaSupplier,
             final Function<Entity, Boolean> checkOnUpdate) throws IOException {
         ImportStatus importStatus = new ImportStatus();
 
-        XSSFWorkbook workbook = new XSSFWorkbook(fis);
-        XSSFSheet sheet = workbook.getSheetAt(0);
+        Consumer<List<XlsxRow>> rowsProcessor = rows -> processRows(rows, cellBinderRegistry, importStatus, pluginIdentifier,
+                modelName, belongsTo, belongsToName, shouldUpdate, criteriaSupplier, checkOnUpdate);
 
-        for (int rowIndex = 1; rowIndex <= sheet.getLastRowNum(); rowIndex++) {
-            Row row = sheet.getRow(rowIndex);
+        ImportLookupCache.open();
 
-            if (Objects.isNull(row)) {
-                break;
+        try {
+            if (rollbackOnError) {
+                importRows(fis, cellBinderRegistry, importStatus, rowsProcessor);
+            } else {
+                readRows(fis, cellBinderRegistry, rows -> processRowsInNewTransaction(rows, rowsProcessor));
             }
+        } finally {
+            ImportLookupCache.close();
+        }
 
-            Entity entity = createEntity(pluginIdentifier, modelName);
+        return importStatus;
+    }
 
-            if (Objects.nonNull(belongsTo) && Objects.nonNull(belongsToName)) {
-                entity.setField(belongsToName, belongsTo);
-            }
+    @Transactional
+    private void importRows(final FileInputStream fis, final CellBinderRegistry cellBinderRegistry,
+            final ImportStatus importStatus, final Consumer<List<XlsxRow>> rowsProcessor) throws IOException {
+        readRows(fis, cellBinderRegistry, rowsProcessor);
 
-            RowProcessorHelper rowProcessorHelper = new RowProcessorHelper(entity, cellBinderRegistry, importStatus, rowIndex);
-
-            for (int columnIndex = 0; columnIndex < cellBinderRegistry.getSize(); columnIndex++) {
-                CellBinder cell = cellBinderRegistry.getCellBinder(columnIndex);
-                String dependentFieldName = cell.getDependentFieldName();
-                if (StringUtils.isEmpty(dependentFieldName)) {
-                    rowProcessorHelper.append(row.getCell(columnIndex, Row.RETURN_BLANK_AS_NULL));
-                } else {
-                    int dependentIndex = getDependentIndex(dependentFieldName, cellBinderRegistry);
-                    rowProcessorHelper.append(row.getCell(columnIndex, Row.RETURN_BLANK_AS_NULL),
-                            row.getCell(dependentIndex, Row.RETURN_BLANK_AS_NULL));
-                }
-            }
+        if (importStatus.hasErrors()) {
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        }
+    }
 
-            if (rowProcessorHelper.isEmpty()) {
-                break;
-            }
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    private void processRowsInNewTransaction(final List<XlsxRow> rows, final Consumer<List<XlsxRow>> rowsProcessor) {
+        rowsProcessor.accept(rows);
+    }
+
+    private void readRows(final FileInputStream fis, final CellBinderRegistry cellBinderRegistry,
+            final Consumer<List<XlsxRow>> rowsProcessor) throws IOException {
+        new XlsxRowsReader(cellBinderRegistry.getSize(), L_CHUNK_SIZE, rowsProcessor).read(fis,
+                LocaleContextHolder.getLocale());
+    }
+
+    private void processRows(final List<XlsxRow> rows, final CellBinderRegistry cellBinderRegistry,
+            final ImportStatus importStatus, final String pluginIdentifier, final String modelName, final Entity belongsTo,
+            final String belongsToName, final Boolean shouldUpdate, final Function<Entity, SearchCriterion> criteriaSupplier,
+            final Function<Entity, Boolean> checkOnUpdate) {
+        prefetchLookups(rows, cellBinderRegistry);
+
+        // TODO DEV_TEAM entities are still saved one by one, so hooks and validators of imported models run for each row;
+        // saving a whole chunk at once needs bulk save support in the data definition
+        for (XlsxRow row : rows) {
+            processRow(row, cellBinderRegistry, importStatus, pluginIdentifier, modelName, belongsTo, belongsToName,
+                    shouldUpdate, criteriaSupplier, checkOnUpdate);
+        }
 
-            if (shouldUpdate && !Objects.isNull(criteriaSupplier)) {
-                Entity entityToUpdate = getEntity(pluginIdentifier, modelName, criteriaSupplier.apply(entity));
+        if (LOG.isInfoEnabled()) {
+            LOG.info(String.format("Import of %s.%s: %d rows processed, %d rows with errors", pluginIdentifier, modelName,
+                    importStatus.getRowsProcessed(), importStatus.getErrorsSize()));
+        }
+    }
+
+    private void prefetchLookups(final List<XlsxRow> rows, final CellBinderRegistry cellBinderRegistry) {
+        for (int columnIndex = 0; columnIndex < cellBinderRegistry.getSize(); columnIndex++) {
+            CellBinder cellBinder = cellBinderRegistry.getCellBinder(columnIndex);
+
+            if (cellBinder.getCellParser() instanceof LookupCellParser) {
+                int index = columnIndex;
 
-                rowProcessorHelper.update(entityToUpdate, checkOnUpdate);
+                Collection<String> codes = rows.stream().map(row -> row.getValue(index)).filter(StringUtils::isNotBlank)
+                        .map(String::trim).collect(Collectors.toSet());
+
+                ((LookupCellParser) cellBinder.getCellParser()).prefetch(codes);
             }
+        }
+    }
 
-            validateEntity(entity, entity.getDataDefinition());
+    private void processRow(final XlsxRow row, final CellBinderRegistry cellBinderRegistry, final ImportStatus importStatus,
+            final String pluginIdentifier, final String modelName, final Entity belongsTo, final String belongsToName,
+            final Boolean shouldUpdate, final Function<Entity, SearchCriterion> criteriaSupplier,
+            final Function<Entity, Boolean> checkOnUpdate) {
+        Entity entity = createEntity(pluginIdentifier, modelName);
 
-            rowProcessorHelper.process();
+        if (Objects.nonNull(belongsTo) && Objects.nonNull(belongsToName)) {
+            entity.setField(belongsToName, belongsTo);
         }
 
-        if (rollbackOnError && importStatus.hasErrors()) {
-            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        RowProcessorHelper rowProcessorHelper = new RowProcessorHelper(entity, cellBinderRegistry, importStatus,
+                row.getRowIndex());
+
+        for (int columnIndex = 0; columnIndex < cellBinderRegistry.getSize(); columnIndex++) {
+            CellBinder cell = cellBinderRegistry.getCellBinder(columnIndex);
+            String dependentFieldName = cell.getDependentFieldName();
+            if (StringUtils.isEmpty(dependentFieldName)) {
+                rowProcessorHelper.append(row.getValue(columnIndex));
+            } else {
+                int dependentIndex = getDependentIndex(dependentFieldName, cellBinderRegistry);
+                rowProcessorHelper.append(row.getValue(columnIndex), row.getValue(dependentIndex));
+            }
         }
 
-        return importStatus;
+        if (rowProcessorHelper.isEmpty()) {
+            return;
+        }
+
+        if (shouldUpdate && !Objects.isNull(criteriaSupplier)) {
+            Entity entityToUpdate = getEntity(pluginIdentifier, modelName, criteriaSupplier.apply(entity));
+
+            rowProcessorHelper.update(entityToUpdate, checkOnUpdate);
+        }
+
+        validateEntity(entity, entity.getDataDefinition());
+
+        rowProcessorHelper.process();
     }
 
     private int getDependentIndex(final String dependentFieldName, final CellBinderRegistry cellBinderRegistry) {
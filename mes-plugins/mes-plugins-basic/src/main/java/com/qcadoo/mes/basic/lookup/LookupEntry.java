@@ -0,0 +1,70 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.lookup;
+
+import java.util.Objects;
+
+public final class LookupEntry<T> {
+
+    private final Long id;
+
+    private final String code;
+
+    private final T payload;
+
+    private final String[] context;
+
+    /**
+     * @param context
+     *            values used to narrow the lookup, e.g. number of attribute or product, compared with
+     *            {@link #getContext(int)}
+     */
+    public LookupEntry(final Long id, final String code, final T payload, final String... context) {
+        this.id = id;
+        this.code = Objects.isNull(code) ? "" : code;
+        this.payload = payload;
+        this.context = context;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public T getPayload() {
+        return payload;
+    }
+
+    public String getContext(final int index) {
+        if (index >= context.length) {
+            return null;
+        }
+
+        return context[index];
+    }
+
+}
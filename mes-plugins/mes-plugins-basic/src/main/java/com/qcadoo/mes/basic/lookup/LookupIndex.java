@@ -0,0 +1,294 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.lookup;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Trigram index of lookup codes answering "ilike '%query%'" searches (with '*' and '%' as wildcards and '_' matching any
+ * character) in memory. Entries given on build are immutable; later changes are kept aside and scanned sequentially, so the
+ * index should be rebuilt once there are many of them.
+ */
+public final class LookupIndex<T> {
+
+    private static final int GRAM_LENGTH = 3;
+
+    private final List<LookupEntry<T>> entries;
+
+    private final String[] keys;
+
+    private final Map<String, int[]> postings;
+
+    private final Map<Long, Optional<LookupEntry<T>>> changes = new ConcurrentHashMap<>();
+
+    private final long createTime = System.currentTimeMillis();
+
+    private LookupIndex(final List<LookupEntry<T>> entries, final String[] keys, final Map<String, int[]> postings) {
+        this.entries = entries;
+        this.keys = keys;
+        this.postings = postings;
+    }
+
+    public static <T> LookupIndex<T> build(final List<LookupEntry<T>> entries) {
+        List<LookupEntry<T>> indexEntries = ImmutableList.copyOf(entries);
+        String[] keys = new String[indexEntries.size()];
+        Map<String, IntList> postings = Maps.newHashMap();
+
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = normalize(indexEntries.get(index).getCode());
+
+            for (int start = 0; start + GRAM_LENGTH <= keys[index].length(); start++) {
+                postings.computeIfAbsent(keys[index].substring(start, start + GRAM_LENGTH), gram -> new IntList()).addDistinct(index);
+            }
+        }
+
+        Map<String, int[]> indexPostings = Maps.newHashMapWithExpectedSize(postings.size());
+
+        postings.forEach((gram, list) -> indexPostings.put(gram, list.toArray()));
+
+        return new LookupIndex<>(indexEntries, keys, indexPostings);
+    }
+
+    public void put(final LookupEntry<T> entry) {
+        changes.put(entry.getId(), Optional.of(entry));
+    }
+
+    public void remove(final Long id) {
+        changes.put(id, Optional.empty());
+    }
+
+    public int getChangesCount() {
+        return changes.size();
+    }
+
+    public boolean isOlderThan(final long millis) {
+        return System.currentTimeMillis() - createTime > millis;
+    }
+
+    public LookupResult<T> search(final String query, final int limit, final Predicate<LookupEntry<T>> filter) {
+        String normalizedQuery = normalize(query);
+        Pattern pattern = buildPattern(normalizedQuery);
+
+        Comparator<Match<T>> matchComparator = getMatchComparator();
+        PriorityQueue<Match<T>> bestMatches = new PriorityQueue<>(matchComparator.reversed());
+        int numberOfResults = 0;
+
+        Map<Long, Optional<LookupEntry<T>>> currentChanges = Maps.newHashMap(changes);
+
+        for (int index : getCandidates(normalizedQuery)) {
+            LookupEntry<T> entry = entries.get(index);
+
+            if (!currentChanges.containsKey(entry.getId()) && addMatch(entry, keys[index], pattern, filter, bestMatches, limit)) {
+                numberOfResults++;
+            }
+        }
+
+        for (Optional<LookupEntry<T>> change : currentChanges.values()) {
+            if (change.isPresent()
+                    && addMatch(change.get(), normalize(change.get().getCode()), pattern, filter, bestMatches, limit)) {
+                numberOfResults++;
+            }
+        }
+
+        List<Match<T>> matches = Lists.newArrayList(bestMatches);
+
+        matches.sort(matchComparator);
+
+        return new LookupResult<>(matches.stream().map(match -> match.entry.getPayload()).collect(Collectors.toList()),
+                numberOfResults);
+    }
+
+    private boolean addMatch(final LookupEntry<T> entry, final String key, final Pattern pattern,
+            final Predicate<LookupEntry<T>> filter, final PriorityQueue<Match<T>> bestMatches, final int limit) {
+        Matcher matcher = pattern.matcher(key);
+
+        if (!matcher.find() || !filter.test(entry)) {
+            return false;
+        }
+
+        if (limit > 0) {
+            bestMatches.add(new Match<>(entry, key, matcher.start()));
+
+            if (bestMatches.size() > limit) {
+                bestMatches.poll();
+            }
+        }
+
+        return true;
+    }
+
+    private int[] getCandidates(final String normalizedQuery) {
+        Set<String> grams = Sets.newHashSet();
+
+        for (String part : normalizedQuery.split("[*%_]")) {
+            for (int start = 0; start + GRAM_LENGTH <= part.length(); start++) {
+                grams.add(part.substring(start, start + GRAM_LENGTH));
+            }
+        }
+
+        if (grams.isEmpty()) {
+            int[] candidates = new int[keys.length];
+
+            Arrays.setAll(candidates, index -> index);
+
+            return candidates;
+        }
+
+        List<int[]> gramPostings = Lists.newArrayList();
+
+        for (String gram : grams) {
+            int[] posting = postings.get(gram);
+
+            if (posting == null) {
+                return new int[0];
+            }
+
+            gramPostings.add(posting);
+        }
+
+        gramPostings.sort(Comparator.comparingInt(posting -> posting.length));
+
+        int[] candidates = gramPostings.get(0);
+
+        for (int[] posting : gramPostings.subList(1, gramPostings.size())) {
+            candidates = intersect(candidates, posting);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Prefix matches go first, then shorter codes, then codes in alphabetical order.
+     */
+    private static <T> Comparator<Match<T>> getMatchComparator() {
+        return Comparator.comparingInt((Match<T> match) -> match.start == 0 ? 0 : 1).thenComparingInt(match -> match.key.length())
+                .thenComparing(match -> match.key)
+                .thenComparing(match -> match.entry.getId(), Comparator.nullsLast(Comparator.naturalOrder()));
+    }
+
+    private static int[] intersect(final int[] first, final int[] second) {
+        int[] result = new int[Math.min(first.length, second.length)];
+        int size = 0;
+
+        for (int i = 0, j = 0; (i < first.length) && (j < second.length);) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                result[size++] = first[i];
+                i++;
+                j++;
+            }
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+
+    private static Pattern buildPattern(final String normalizedQuery) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+
+        for (char character : normalizedQuery.toCharArray()) {
+            if ((character == '*') || (character == '%') || (character == '_')) {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+
+                regex.append(character == '_' ? "." : ".*");
+            } else {
+                literal.append(character);
+            }
+        }
+
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static String normalize(final String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Match<T> {
+
+        private final LookupEntry<T> entry;
+
+        private final String key;
+
+        private final int start;
+
+        private Match(final LookupEntry<T> entry, final String key, final int start) {
+            this.entry = entry;
+            this.key = key;
+            this.start = start;
+        }
+
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[4];
+
+        private int size = 0;
+
+        private void addDistinct(final int value) {
+            if ((size > 0) && (values[size - 1] == value)) {
+                return;
+            }
+
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+    }
+
+}
@@ -0,0 +1,54 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.lookup;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Loads entries of the lookup index with given name. Implementations are picked up by {@link LookupIndexService}.
+ */
+public interface LookupIndexLoader<T> {
+
+    String getIndexName();
+
+    /**
+     * Loads entries with given id or code, or all entries if both are null. Entries which shouldn't be looked up (e.g. inactive
+     * ones) are not returned.
+     */
+    List<LookupEntry<T>> load(final Long id, final String code);
+
+    static String buildCondition(final String idColumn, final String codeColumn, final Long id, final String code) {
+        if (Objects.nonNull(id) && Objects.nonNull(code)) {
+            return "AND (" + idColumn + " = :id OR " + codeColumn + " = :code) ";
+        } else if (Objects.nonNull(id)) {
+            return "AND " + idColumn + " = :id ";
+        } else if (Objects.nonNull(code)) {
+            return "AND " + codeColumn + " = :code ";
+        }
+
+        return "";
+    }
+
+}
@@ -0,0 +1,239 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.lookup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qcadoo.mes.basic.util.TenantKey;
+import com.qcadoo.tenant.api.MultiTenantService;
+
+@Service
+public class LookupIndexService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LookupIndexService.class);
+
+    private static final long INDEX_TIME_TO_LIVE_MILLIS = 10 * 60 * 1000L;
+
+    private static final int MAX_CHANGES = 1000;
+
+    @Autowired
+    private MultiTenantService multiTenantService;
+
+    @Autowired(required = false)
+    private List<LookupIndexLoader<?>> lookupIndexLoaders = Lists.newArrayList();
+
+    private final Map<TenantKey<String>, LookupIndex<?>> lookupIndexes = new ConcurrentHashMap<>();
+
+    private final Map<TenantKey<String>, Queue<LookupChange>> changesDuringBuild = new ConcurrentHashMap<>();
+
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("lookupIndex-%d").build());
+
+    public <T> Optional<LookupResult<T>> search(final String indexName, final String query, final int limit) {
+        return search(indexName, query, limit, entry -> true);
+    }
+
+    /**
+     * Searches lookup index with given name. Returns empty result if the index isn't built yet - the build is then started in
+     * background and the caller should query the database instead. Indexes are rebuilt a few minutes after the last build, so
+     * that changes made on other nodes are also taken into account. Each tenant has its own copy of the index.
+     */
+    public <T> Optional<LookupResult<T>> search(final String indexName, final String query, final int limit,
+            final Predicate<LookupEntry<T>> filter) {
+        return search(TenantKey.of(indexName), query, limit, filter);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> Optional<LookupResult<T>> search(final TenantKey<String> indexKey, final String query, final int limit,
+            final Predicate<LookupEntry<T>> filter) {
+        LookupIndex<T> lookupIndex = (LookupIndex<T>) lookupIndexes.get(indexKey);
+
+        if (Objects.isNull(lookupIndex)) {
+            scheduleBuild(indexKey);
+
+            return Optional.empty();
+        }
+
+        if (lookupIndex.isOlderThan(INDEX_TIME_TO_LIVE_MILLIS) || (lookupIndex.getChangesCount() > MAX_CHANGES)) {
+            scheduleBuild(indexKey);
+        }
+
+        return Optional.of(lookupIndex.search(Strings.nullToEmpty(query), limit, filter));
+    }
+
+    /**
+     * Reloads entries with given id or code after the current transaction is committed. Should be called whenever looked up
+     * entity is saved or deleted.
+     */
+    public void onEntityChanged(final String indexName, final Long id, final String code) {
+        if (Objects.isNull(id) && Objects.isNull(code)) {
+            return;
+        }
+
+        TenantKey<String> indexKey = TenantKey.of(indexName);
+
+        afterCommit(() -> reload(indexKey, new LookupChange(id, code)));
+    }
+
+    /**
+     * Drops the whole index after the current transaction is committed, so that it's rebuilt on the next search. Should be
+     * called when a change affects entries which can't be reloaded by their id or code (e.g. context of many entries).
+     */
+    public void invalidate(final String indexName) {
+        TenantKey<String> indexKey = TenantKey.of(indexName);
+
+        afterCommit(() -> invalidate(indexKey));
+    }
+
+    void invalidate(final TenantKey<String> indexKey) {
+        lookupIndexes.remove(indexKey);
+    }
+
+    private void afterCommit(final Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    void reload(final TenantKey<String> indexKey, final LookupChange change) {
+        Queue<LookupChange> pendingChanges = changesDuringBuild.get(indexKey);
+
+        if (Objects.nonNull(pendingChanges)) {
+            pendingChanges.add(change);
+
+            if (changesDuringBuild.get(indexKey) == pendingChanges) {
+                return;
+            }
+        }
+
+        reloadEntries(indexKey, change);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> void reloadEntries(final TenantKey<String> indexKey, final LookupChange change) {
+        LookupIndex<T> lookupIndex = (LookupIndex<T>) lookupIndexes.get(indexKey);
+        Optional<LookupIndexLoader<T>> lookupIndexLoader = getLookupIndexLoader(indexKey.getKey());
+
+        if (Objects.isNull(lookupIndex) || !lookupIndexLoader.isPresent()) {
+            return;
+        }
+
+        try {
+            List<LookupEntry<T>> entries = lookupIndexLoader.get().load(change.id, change.code);
+
+            if (Objects.nonNull(change.id)) {
+                lookupIndex.remove(change.id);
+            }
+
+            entries.forEach(lookupIndex::put);
+        } catch (RuntimeException e) {
+            LOG.warn(String.format("Couldn't reload lookup index %s, it will be rebuilt", indexKey), e);
+
+            lookupIndexes.remove(indexKey);
+        }
+    }
+
+    private void scheduleBuild(final TenantKey<String> indexKey) {
+        if (!getLookupIndexLoader(indexKey.getKey()).isPresent()) {
+            return;
+        }
+
+        if (Objects.isNull(changesDuringBuild.putIfAbsent(indexKey, new ConcurrentLinkedQueue<>()))) {
+            executorService.submit(() -> multiTenantService.doInMultiTenantContext(indexKey.getTenantId(),
+                    () -> build(indexKey)));
+        }
+    }
+
+    <T> void build(final TenantKey<String> indexKey) {
+        try {
+            Optional<LookupIndexLoader<T>> lookupIndexLoader = getLookupIndexLoader(indexKey.getKey());
+
+            if (lookupIndexLoader.isPresent()) {
+                lookupIndexes.put(indexKey, LookupIndex.build(lookupIndexLoader.get().load(null, null)));
+            }
+        } catch (RuntimeException e) {
+            LOG.warn(String.format("Couldn't build lookup index %s", indexKey), e);
+        } finally {
+            Queue<LookupChange> pendingChanges = changesDuringBuild.remove(indexKey);
+
+            if (Objects.nonNull(pendingChanges)) {
+                pendingChanges.forEach(change -> reloadEntries(indexKey, change));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Optional<LookupIndexLoader<T>> getLookupIndexLoader(final String indexName) {
+        return lookupIndexLoaders.stream().filter(loader -> loader.getIndexName().equals(indexName))
+                .map(loader -> (LookupIndexLoader<T>) loader).findFirst();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    static final class LookupChange {
+
+        private final Long id;
+
+        private final String code;
+
+        LookupChange(final Long id, final String code) {
+            this.id = id;
+            this.code = code;
+        }
+
+    }
+
+}
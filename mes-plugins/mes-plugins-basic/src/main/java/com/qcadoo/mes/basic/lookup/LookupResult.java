@@ -0,0 +1,53 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.lookup;
+
+import java.util.List;
+
+public final class LookupResult<T> {
+
+    private final List<T> entities;
+
+    private final int numberOfResults;
+
+    public LookupResult(final List<T> entities, final int numberOfResults) {
+        this.entities = entities;
+        this.numberOfResults = numberOfResults;
+    }
+
+    /**
+     * @return best matching entities, at most as many as requested
+     */
+    public List<T> getEntities() {
+        return entities;
+    }
+
+    /**
+     * @return number of all matching entities
+     */
+    public int getNumberOfResults() {
+        return numberOfResults;
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.lookup;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import com.qcadoo.mes.basic.controllers.dataProvider.dto.PalletNumberDTO;
+
+@Service
+public class PalletNumbersLookupIndexLoader implements LookupIndexLoader<PalletNumberDTO> {
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Override
+    public String getIndexName() {
+        return LookupIndexes.PALLET_NUMBERS;
+    }
+
+    @Override
+    public List<LookupEntry<PalletNumberDTO>> load(final Long id, final String code) {
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT palletnumber.id AS id, palletnumber.number AS code, palletnumber.number AS number ");
+        query.append("FROM basic_palletnumber palletnumber WHERE palletnumber.active = true ");
+        query.append(LookupIndexLoader.buildCondition("palletnumber.id", "palletnumber.number", id, code));
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue("id", id);
+        parameters.addValue("code", code);
+
+        BeanPropertyRowMapper<PalletNumberDTO> rowMapper = BeanPropertyRowMapper.newInstance(PalletNumberDTO.class);
+
+        return jdbcTemplate.query(query.toString(), parameters,
+                (resultSet, rowNum) -> new LookupEntry<>(resultSet.getLong("id"), resultSet.getString("code"),
+                        rowMapper.mapRow(resultSet, rowNum)));
+    }
+
+}
@@ -0,0 +1,203 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.shift;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+
+import com.google.common.base.Preconditions;
+import com.qcadoo.mes.basic.util.DateTimeRange;
+
+/**
+ * Working time calendar of a production line for a continuous range of days.
+ * 
+ * Work time ranges are kept per day, in the order in which shifts and their exceptions return them, together with a prefix sum
+ * of their durations. This allows to sum working time between days and to find the range in which given amount of working
+ * time runs out using binary search, instead of visiting all days one by one.
+ */
+public final class ShiftCalendarIndex {
+
+    private final LocalDate firstDay;
+
+    private final boolean withShifts;
+
+    private final int[] dayOffsets;
+
+    private final long[] froms;
+
+    private final long[] tos;
+
+    private final long[] prefixSums;
+
+    private ShiftCalendarIndex(final LocalDate firstDay, final boolean withShifts, final int[] dayOffsets, final long[] froms,
+            final long[] tos) {
+        this.firstDay = firstDay;
+        this.withShifts = withShifts;
+        this.dayOffsets = dayOffsets;
+        this.froms = froms;
+        this.tos = tos;
+        this.prefixSums = new long[froms.length + 1];
+
+        for (int entry = 0; entry < froms.length; entry++) {
+            prefixSums[entry + 1] = prefixSums[entry] + (tos[entry] - froms[entry]);
+        }
+    }
+
+    /**
+     * Builds index for days from firstDay to lastDay (inclusive). Days already present in given index are copied from it, other
+     * days are loaded using given function.
+     */
+    public static ShiftCalendarIndex build(final LocalDate firstDay, final LocalDate lastDay, final boolean withShifts,
+            final Function<LocalDate, List<DateTimeRange>> dayRangesLoader, final ShiftCalendarIndex existingIndex) {
+        Preconditions.checkArgument(!lastDay.isBefore(firstDay), "Last day of index can't be before its first day.");
+
+        int daysCount = Days.daysBetween(firstDay, lastDay).getDays() + 1;
+
+        int[] dayOffsets = new int[daysCount + 1];
+        long[] froms = new long[daysCount * 2];
+        long[] tos = new long[daysCount * 2];
+
+        int entries = 0;
+
+        for (int dayIndex = 0; dayIndex < daysCount; dayIndex++) {
+            LocalDate day = firstDay.plusDays(dayIndex);
+
+            if ((existingIndex != null) && existingIndex.covers(day, day)) {
+                int start = existingIndex.getEntriesStart(day);
+                int end = existingIndex.getEntriesEnd(day);
+
+                for (int entry = start; entry < end; entry++) {
+                    if (entries == froms.length) {
+                        froms = Arrays.copyOf(froms, entries * 2);
+                        tos = Arrays.copyOf(tos, entries * 2);
+                    }
+
+                    froms[entries] = existingIndex.froms[entry];
+                    tos[entries] = existingIndex.tos[entry];
+                    entries++;
+                }
+            } else if (withShifts) {
+                for (DateTimeRange range : dayRangesLoader.apply(day)) {
+                    if (entries == froms.length) {
+                        froms = Arrays.copyOf(froms, entries * 2);
+                        tos = Arrays.copyOf(tos, entries * 2);
+                    }
+
+                    froms[entries] = range.getFrom().getMillis();
+                    tos[entries] = range.getTo().getMillis();
+                    entries++;
+                }
+            }
+
+            dayOffsets[dayIndex + 1] = entries;
+        }
+
+        return new ShiftCalendarIndex(firstDay, withShifts, dayOffsets, Arrays.copyOf(froms, entries),
+                Arrays.copyOf(tos, entries));
+    }
+
+    public boolean hasShifts() {
+        return withShifts;
+    }
+
+    public LocalDate getFirstDay() {
+        return firstDay;
+    }
+
+    public LocalDate getLastDay() {
+        return firstDay.plusDays(dayOffsets.length - 2);
+    }
+
+    public boolean covers(final LocalDate dayFrom, final LocalDate dayTo) {
+        return !dayFrom.isBefore(getFirstDay()) && !dayTo.isAfter(getLastDay());
+    }
+
+    /**
+     * @return index of the first work time range of given day
+     */
+    public int getEntriesStart(final LocalDate day) {
+        return dayOffsets[getDayIndex(day)];
+    }
+
+    /**
+     * @return index following the last work time range of given day
+     */
+    public int getEntriesEnd(final LocalDate day) {
+        return dayOffsets[getDayIndex(day) + 1];
+    }
+
+    public long getFrom(final int entry) {
+        return froms[entry];
+    }
+
+    public long getTo(final int entry) {
+        return tos[entry];
+    }
+
+    /**
+     * @return sum of durations of work time ranges from start (inclusive) to end (exclusive), in milliseconds
+     */
+    public long getDurationMillis(final int start, final int end) {
+        return prefixSums[end] - prefixSums[start];
+    }
+
+    /**
+     * Finds the first work time range, in which given amount of working time counted from the start range runs out.
+     * 
+     * @return index of found range or -1 if ranges from start to end don't contain enough working time
+     */
+    public int findEntry(final int start, final int end, final long millis) {
+        long wanted = prefixSums[start] + millis;
+
+        if ((start >= end) || (prefixSums[end] < wanted)) {
+            return -1;
+        }
+
+        int low = start;
+        int high = end - 1;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (prefixSums[middle + 1] >= wanted) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    private int getDayIndex(final LocalDate day) {
+        Preconditions.checkArgument(covers(day, day), "Day " + day + " is out of shift calendar index.");
+
+        return Days.daysBetween(firstDay, day).getDays();
+    }
+
+}
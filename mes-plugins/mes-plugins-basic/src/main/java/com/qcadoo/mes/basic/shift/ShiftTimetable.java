@@ -0,0 +1,134 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.shift;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.joda.time.LocalTime;
+
+/**
+ * Weekly timetable of shifts with their working hours already parsed, used to find the shift working at given time without
+ * loading shifts and parsing their hours again.
+ * 
+ * Ranges are kept per day of week, in the order in which they were added. Range ending at an earlier hour than it starts is
+ * an overnight range - it covers the time from its start to the end of the day and from the beginning of the day to its end.
+ */
+public final class ShiftTimetable {
+
+    private static final int DAYS_OF_WEEK = 7;
+
+    private static final int MINUTES_OF_HOUR = 60;
+
+    private final long[][] shiftsIds;
+
+    private final int[][] fromMinutes;
+
+    private final int[][] toMinutes;
+
+    private final boolean[][] overnights;
+
+    private ShiftTimetable(final long[][] shiftsIds, final int[][] fromMinutes, final int[][] toMinutes,
+            final boolean[][] overnights) {
+        this.shiftsIds = shiftsIds;
+        this.fromMinutes = fromMinutes;
+        this.toMinutes = toMinutes;
+        this.overnights = overnights;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return id of the first shift working at given date and time or null, if there is no such shift
+     */
+    public Long findShiftId(final Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+
+        int day = calendar.get(Calendar.DAY_OF_WEEK) - 1;
+        int minute = calendar.get(Calendar.HOUR_OF_DAY) * MINUTES_OF_HOUR + calendar.get(Calendar.MINUTE);
+
+        for (int range = 0; range < shiftsIds[day].length; range++) {
+            boolean afterStart = fromMinutes[day][range] <= minute;
+            boolean beforeEnd = minute < toMinutes[day][range];
+
+            if (overnights[day][range] ? (afterStart || beforeEnd) : (afterStart && beforeEnd)) {
+                return shiftsIds[day][range];
+            }
+        }
+
+        return null;
+    }
+
+    public static final class Builder {
+
+        private final long[][] shiftsIds = new long[DAYS_OF_WEEK][0];
+
+        private final int[][] fromMinutes = new int[DAYS_OF_WEEK][0];
+
+        private final int[][] toMinutes = new int[DAYS_OF_WEEK][0];
+
+        private final boolean[][] overnights = new boolean[DAYS_OF_WEEK][0];
+
+        private Builder() {
+        }
+
+        /**
+         * Adds working hours of shift for given day of week.
+         * 
+         * @param dayOfWeek
+         *            day of week, as in {@link Calendar#DAY_OF_WEEK}
+         * @param dayHours
+         *            ranges of working hours, as returned by ShiftsService.convertDayHoursToInt
+         */
+        public Builder addWorkingHours(final int dayOfWeek, final long shiftId, final LocalTime[][] dayHours) {
+            int day = dayOfWeek - 1;
+
+            for (LocalTime[] dayHour : dayHours) {
+                int range = shiftsIds[day].length;
+
+                shiftsIds[day] = Arrays.copyOf(shiftsIds[day], range + 1);
+                fromMinutes[day] = Arrays.copyOf(fromMinutes[day], range + 1);
+                toMinutes[day] = Arrays.copyOf(toMinutes[day], range + 1);
+                overnights[day] = Arrays.copyOf(overnights[day], range + 1);
+
+                shiftsIds[day][range] = shiftId;
+                fromMinutes[day][range] = dayHour[0].getHourOfDay() * MINUTES_OF_HOUR + dayHour[0].getMinuteOfHour();
+                toMinutes[day][range] = dayHour[1].getHourOfDay() * MINUTES_OF_HOUR + dayHour[1].getMinuteOfHour();
+                overnights[day][range] = dayHour[1].getHourOfDay() < dayHour[0].getHourOfDay();
+            }
+
+            return this;
+        }
+
+        public ShiftTimetable build() {
+            return new ShiftTimetable(shiftsIds, fromMinutes, toMinutes, overnights);
+        }
+
+    }
+
+}
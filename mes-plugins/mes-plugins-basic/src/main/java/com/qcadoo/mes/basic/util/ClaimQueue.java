@@ -0,0 +1,224 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.util;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Table backed queue of jobs claimed by nodes of the cluster.
+ * 
+ * Queue table has status, attempts, nextattemptdate, claimdate, claimedby, heartbeatdate, finishdate and errormessage columns.
+ * Waiting rows are claimed by a node (claimedby, claimdate) and moved to in progress status, claims are made under a transaction
+ * scoped advisory lock of the table. Node refreshes heartbeat of its claims while their jobs run, so only claims of nodes that
+ * stopped responding are requeued after a timeout, and only the node, which still owns a claim, can finish it. Jobs failed with
+ * an exception are retried with exponentially growing delay until they run out of attempts, claims of this node are requeued on
+ * startup.
+ */
+public final class ClaimQueue {
+
+    public static final String NODE_NAME = getLocalNodeName();
+
+    public static final int MAX_ATTEMPTS = 5;
+
+    public static final int RETRY_DELAY_SECONDS = 30;
+
+    public static final int STALE_CLAIM_MINUTES = 60;
+
+    public static final String ID = "id";
+
+    public static final String IDS = "ids";
+
+    public static final String STATUS = "status";
+
+    public static final String ATTEMPTS = "attempts";
+
+    public static final String WAITING = "waiting";
+
+    public static final String IN_PROGRESS = "inProgress";
+
+    public static final String FAILED = "failed";
+
+    public static final String NODE = "node";
+
+    public static final String ERROR_MESSAGE = "errorMessage";
+
+    private static final String L_STALE_CLAIM_CONDITION = "q.claimedby <> :node "
+            + "AND GREATEST(q.claimdate, q.heartbeatdate) < now() - :staleClaimMinutes * INTERVAL '1 minute'";
+
+    private static final String L_INTERRUPTED_CLAIM_CONDITION = "q.claimedby = :node";
+
+    private final NamedParameterJdbcTemplate jdbcTemplate;
+
+    private final String tableName;
+
+    private final String waitingStatus;
+
+    private final String inProgressStatus;
+
+    private final String failedStatus;
+
+    public ClaimQueue(final NamedParameterJdbcTemplate jdbcTemplate, final String tableName, final String waitingStatus,
+            final String inProgressStatus, final String failedStatus) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.tableName = tableName;
+        this.waitingStatus = waitingStatus;
+        this.inProgressStatus = inProgressStatus;
+        this.failedStatus = failedStatus;
+    }
+
+    /**
+     * @return parameters with waiting, in progress and failed status values and the name of this node
+     */
+    public Map<String, Object> getStatusParameters() {
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put(WAITING, waitingStatus);
+        parameters.put(IN_PROGRESS, inProgressStatus);
+        parameters.put(FAILED, failedStatus);
+        parameters.put(NODE, NODE_NAME);
+
+        return parameters;
+    }
+
+    /**
+     * Locks the queue until the end of current transaction, so claims of different nodes don't overlap.
+     */
+    public void lock() {
+        jdbcTemplate.getJdbcOperations().execute(String.format("SELECT pg_advisory_xact_lock(hashtext('%s'))", tableName));
+    }
+
+    /**
+     * Refreshes heartbeat of given claims of this node, so they aren't taken over by other nodes while their jobs run.
+     * 
+     * @param ids
+     *            ids of claimed rows, which jobs are running or waiting for a worker
+     */
+    public void heartbeat(final Collection<Long> ids) {
+        List<Long> claimedIds = Lists.newArrayList(ids);
+
+        if (claimedIds.isEmpty()) {
+            return;
+        }
+
+        Map<String, Object> parameters = getStatusParameters();
+
+        parameters.put(IDS, claimedIds);
+
+        jdbcTemplate.update("UPDATE " + tableName + " SET heartbeatdate = now() "
+                + "WHERE id IN (:ids) AND status = :inProgress AND claimedby = :node", parameters);
+    }
+
+    /**
+     * Requeues claims of other nodes without heartbeat for {@link #STALE_CLAIM_MINUTES}.
+     * 
+     * @param returning
+     *            columns of requeued rows to return
+     */
+    public List<Map<String, Object>> requeueStaleClaims(final String errorMessage, final String returning) {
+        return requeueClaims(L_STALE_CLAIM_CONDITION, errorMessage, returning);
+    }
+
+    /**
+     * Requeues claims of this node, which were interrupted by its restart.
+     * 
+     * @param returning
+     *            columns of requeued rows to return
+     */
+    public List<Map<String, Object>> requeueInterruptedClaims(final String errorMessage, final String returning) {
+        return requeueClaims(L_INTERRUPTED_CLAIM_CONDITION, errorMessage, returning);
+    }
+
+    private List<Map<String, Object>> requeueClaims(final String condition, final String errorMessage, final String returning) {
+        Map<String, Object> parameters = getStatusParameters();
+
+        parameters.put("maxAttempts", MAX_ATTEMPTS);
+        parameters.put("staleClaimMinutes", STALE_CLAIM_MINUTES);
+        parameters.put(ERROR_MESSAGE, errorMessage);
+
+        return jdbcTemplate.queryForList("UPDATE " + tableName + " q SET "
+                + "status = CASE WHEN q.attempts >= :maxAttempts THEN :failed ELSE :waiting END, "
+                + "finishdate = CASE WHEN q.attempts >= :maxAttempts THEN now() END, nextattemptdate = now(), "
+                + "errormessage = :errorMessage WHERE q.status = :inProgress AND " + condition + " RETURNING " + returning,
+                parameters);
+    }
+
+    /**
+     * @return true if job failed with an exception in given attempt should be retried
+     */
+    public static boolean canRetry(final int attempts) {
+        return attempts < MAX_ATTEMPTS;
+    }
+
+    /**
+     * @return delay of the next attempt of job failed in given attempt, doubled with every attempt
+     */
+    public static int getRetryDelaySeconds(final int attempts) {
+        return RETRY_DELAY_SECONDS * (1 << (attempts - 1));
+    }
+
+    /**
+     * Sets given status of claimed rows. Rows moved back to waiting status are retried after
+     * {@link #getRetryDelaySeconds(int)}, rows in other statuses are finished. Rows, which were taken over by other node or
+     * requeued in the meantime, are left untouched.
+     * 
+     * @return number of finished rows
+     */
+    public int finish(final Collection<Long> ids, final String status, final int attempts, final String errorMessage) {
+        Map<String, Object> parameters = getStatusParameters();
+
+        parameters.put(IDS, ids);
+        parameters.put(STATUS, status);
+        parameters.put("retry", waitingStatus.equals(status));
+        parameters.put("retryDelaySeconds", getRetryDelaySeconds(attempts));
+        parameters.put(ERROR_MESSAGE, errorMessage);
+
+        return jdbcTemplate.update("UPDATE " + tableName + " SET status = :status, "
+                + "finishdate = CASE WHEN :retry THEN NULL ELSE now() END, "
+                + "nextattemptdate = now() + :retryDelaySeconds * INTERVAL '1 second', errormessage = :errorMessage "
+                + "WHERE id IN (:ids) AND status = :inProgress AND claimedby = :node", parameters);
+    }
+
+    public int getQueueDepth() {
+        return jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + tableName + " WHERE status = :waiting",
+                getStatusParameters(), Integer.class);
+    }
+
+    private static String getLocalNodeName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+}
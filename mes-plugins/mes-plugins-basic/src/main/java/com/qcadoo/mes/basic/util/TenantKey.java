@@ -0,0 +1,83 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.util;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+
+import com.qcadoo.tenant.api.MultiTenantUtil;
+
+/**
+ * Key of JVM wide caches, which keeps values computed for different tenants apart.
+ */
+public final class TenantKey<K> {
+
+    private final int tenantId;
+
+    private final K key;
+
+    private TenantKey(final int tenantId, final K key) {
+        this.tenantId = tenantId;
+        this.key = key;
+    }
+
+    public static <K> TenantKey<K> of(final K key) {
+        return new TenantKey<>(MultiTenantUtil.getCurrentTenantId(), key);
+    }
+
+    public static <K> TenantKey<K> of(final int tenantId, final K key) {
+        return new TenantKey<>(tenantId, key);
+    }
+
+    public int getTenantId() {
+        return tenantId;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder(1, 31).append(tenantId).append(key).toHashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        TenantKey<?> other = (TenantKey<?>) obj;
+        return new EqualsBuilder().append(tenantId, other.tenantId).append(key, other.key).isEquals();
+    }
+
+    @Override
+    public String toString() {
+        return tenantId + ":" + key;
+    }
+
+}
@@ -0,0 +1,87 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic;
+
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qcadoo.mes.basic.shift.ShiftTimetable;
+import com.qcadoo.mes.basic.util.TenantKey;
+
+public class ShiftTimetableServiceTest {
+
+    private static final TenantKey<String> L_FIRST_TENANT_KEY = TenantKey.of(1, "shiftTimetable");
+
+    private static final TenantKey<String> L_SECOND_TENANT_KEY = TenantKey.of(2, "shiftTimetable");
+
+    private ShiftTimetableService shiftTimetableService;
+
+    private ShiftTimetable firstTenantTimetable;
+
+    private ShiftTimetable secondTenantTimetable;
+
+    @Before
+    public void init() {
+        shiftTimetableService = new ShiftTimetableService();
+
+        firstTenantTimetable = ShiftTimetable.builder().build();
+        secondTenantTimetable = ShiftTimetable.builder().build();
+    }
+
+    @Test
+    public final void shouldKeepTimetablesOfDifferentTenantsApart() {
+        // given
+        shiftTimetableService.getShiftTimetable(L_FIRST_TENANT_KEY, () -> firstTenantTimetable);
+
+        // when
+        ShiftTimetable secondTenantResult = shiftTimetableService.getShiftTimetable(L_SECOND_TENANT_KEY,
+                () -> secondTenantTimetable);
+        ShiftTimetable firstTenantResult = shiftTimetableService.getShiftTimetable(L_FIRST_TENANT_KEY,
+                () -> secondTenantTimetable);
+
+        // then
+        assertSame(secondTenantTimetable, secondTenantResult);
+        assertSame(firstTenantTimetable, firstTenantResult);
+    }
+
+    @Test
+    public final void shouldDropTimetableOnlyOfInvalidatedTenant() {
+        // given
+        shiftTimetableService.getShiftTimetable(L_FIRST_TENANT_KEY, () -> firstTenantTimetable);
+        shiftTimetableService.getShiftTimetable(L_SECOND_TENANT_KEY, () -> secondTenantTimetable);
+
+        ShiftTimetable rebuiltTimetable = ShiftTimetable.builder().build();
+
+        // when
+        shiftTimetableService.invalidate(L_FIRST_TENANT_KEY);
+
+        // then
+        assertSame(rebuiltTimetable, shiftTimetableService.getShiftTimetable(L_FIRST_TENANT_KEY, () -> rebuiltTimetable));
+        assertSame(secondTenantTimetable,
+                shiftTimetableService.getShiftTimetable(L_SECOND_TENANT_KEY, () -> rebuiltTimetable));
+    }
+
+}
@@ -24,22 +24,38 @@
 package com.qcadoo.mes.basic;
 
 import static junit.framework.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
 
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.LocalDate;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.shift.ShiftCalendarIndex;
+import com.qcadoo.mes.basic.util.DateTimeRange;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
 import com.qcadoo.model.api.Entity;
 
 public class ShiftsServiceTest {
 
+    private static final long HOUR = 3600 * 1000L;
+
+    private static final DateTime MONDAY = new DateTime(2024, 1, 1, 0, 0, 0);
+
     private ShiftsServiceImpl shiftsService;
 
     @Mock
@@ -48,15 +64,102 @@ public class ShiftsServiceTest {
     @Mock
     private DataDefinition dataDefinition;
 
+    @Mock
+    private ShiftCalendarIndexService shiftCalendarIndexService;
+
     @Mock
     private Entity entity;
 
+    @Mock
+    private Entity productionLine;
+
+    private boolean withShifts;
+
     @org.junit.Before
     public void init() {
         shiftsService = new ShiftsServiceImpl();
         MockitoAnnotations.initMocks(this);
 
         ReflectionTestUtils.setField(shiftsService, "dataDefinitionService", dataDefinitionService);
+        ReflectionTestUtils.setField(shiftsService, "shiftCalendarIndexService", shiftCalendarIndexService);
+
+        withShifts = true;
+
+        when(shiftCalendarIndexService.getShiftCalendarIndex(any(Entity.class), anyBoolean(), any(LocalDate.class),
+                any(LocalDate.class), any(Supplier.class))).thenAnswer(invocation -> ShiftCalendarIndex.build(
+                (LocalDate) invocation.getArguments()[2], (LocalDate) invocation.getArguments()[3], withShifts,
+                ShiftsServiceTest::getTwoShiftsOnWorkingDays, null));
+    }
+
+    private static List<DateTimeRange> getTwoShiftsOnWorkingDays(final LocalDate day) {
+        List<DateTimeRange> dayRanges = Lists.newArrayList();
+
+        if (day.getDayOfWeek() < DateTimeConstants.SATURDAY) {
+            DateTime startOfDay = day.toDateTimeAtStartOfDay();
+
+            dayRanges.add(new DateTimeRange(startOfDay.withHourOfDay(6), startOfDay.withHourOfDay(14)));
+            dayRanges.add(new DateTimeRange(startOfDay.withHourOfDay(14), startOfDay.withHourOfDay(22)));
+        }
+
+        return dayRanges;
+    }
+
+    @Test
+    public void shouldSumAvailableTimeOfProductionLineFromShiftCalendar() {
+        // when
+        long seconds = shiftsService.getTotalAvailableTimeForProductionLine(MONDAY.toDate(), MONDAY.plusDays(6).toDate(),
+                productionLine);
+
+        // then
+        assertEquals(5 * 16 * HOUR / 1000, seconds);
+    }
+
+    @Test
+    public void shouldCountOnlyDaysStartingBeforeDateToWhenSummingAvailableTime() {
+        // when
+        long seconds = shiftsService.getTotalAvailableTimeForProductionLine(MONDAY.withHourOfDay(12).toDate(),
+                MONDAY.plusDays(1).withHourOfDay(10).toDate(), productionLine);
+
+        // then
+        assertEquals(16 * HOUR / 1000, seconds);
+    }
+
+    @Test
+    public void shouldReturnNoAvailableTimeIfDateToIsBeforeDateFrom() {
+        // when
+        long seconds = shiftsService.getTotalAvailableTimeForProductionLine(MONDAY.plusDays(1).toDate(), MONDAY.toDate(),
+                productionLine);
+
+        // then
+        assertEquals(0L, seconds);
+    }
+
+    @Test
+    public void shouldReturnWholeTimeIfThereAreNoShifts() {
+        // given
+        withShifts = false;
+
+        // when
+        long seconds = shiftsService.getTotalAvailableTimeForProductionLine(MONDAY.toDate(), MONDAY.plusDays(6).toDate(),
+                productionLine);
+
+        // then
+        assertEquals(6 * 24 * HOUR / 1000, seconds);
+    }
+
+    @Test
+    public void shouldReturnWholeTimeWithoutBuildingCalendarForTooLongRange() {
+        // given
+        Date dateFrom = MONDAY.toDate();
+        Date dateTo = MONDAY.plusDays(5000).toDate();
+
+        // when
+        long seconds = shiftsService.getTotalAvailableTimeForProductionLine(dateFrom, dateTo, productionLine);
+
+        // then
+        assertEquals((dateTo.getTime() - dateFrom.getTime()) / 1000, seconds);
+        verify(shiftCalendarIndexService, never()).getShiftCalendarIndex(any(Entity.class), anyBoolean(), any(LocalDate.class),
+                any(LocalDate.class), any(Supplier.class));
     }
 
     @Test
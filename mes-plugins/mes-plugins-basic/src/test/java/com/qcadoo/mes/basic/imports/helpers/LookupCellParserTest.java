@@ -0,0 +1,206 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.imports.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.search.SearchCriteriaBuilder;
+import com.qcadoo.model.api.search.SearchCriterion;
+import com.qcadoo.model.api.search.SearchRestrictions;
+import com.qcadoo.model.api.search.SearchResult;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(SearchRestrictions.class)
+public class LookupCellParserTest {
+
+    private static final String L_NUMBER = "number";
+
+    private static final String L_ERROR = "qcadooView.validate.field.error.lookupCodeNotFound";
+
+    private LookupCellParser lookupCellParser;
+
+    @Mock
+    private DataDefinition dataDefinition;
+
+    @Mock
+    private SearchCriteriaBuilder searchCriteriaBuilder;
+
+    @Mock
+    private SearchResult searchResult;
+
+    @Mock
+    private SearchCriterion inCriterion, eqCriterion;
+
+    @Mock
+    private Entity firstEntity, secondEntity;
+
+    private final List<Object> values = Lists.newArrayList();
+
+    private final List<String> errors = Lists.newArrayList();
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        PowerMockito.mockStatic(SearchRestrictions.class);
+
+        lookupCellParser = new LookupCellParser() {
+
+            @Override
+            protected DataDefinition getDataDefinition() {
+                return dataDefinition;
+            }
+
+        };
+
+        given(dataDefinition.getPluginIdentifier()).willReturn("basic");
+        given(dataDefinition.getName()).willReturn("company");
+        given(dataDefinition.find()).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.add(any(SearchCriterion.class))).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.setMaxResults(anyInt())).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.list()).willReturn(searchResult);
+
+        given(firstEntity.getStringField(L_NUMBER)).willReturn("C1");
+        given(secondEntity.getStringField(L_NUMBER)).willReturn("C2");
+    }
+
+    @After
+    public void closeCache() {
+        ImportLookupCache.close();
+    }
+
+    private void parse(final String code) {
+        lookupCellParser.parse(code, null, errors::add, values::add);
+    }
+
+    @Test
+    public void shouldResolvePrefetchedCodesWithoutFurtherQueries() {
+        // given
+        ImportLookupCache.open();
+
+        given(SearchRestrictions.in(L_NUMBER, Lists.newArrayList("C1", "C2"))).willReturn(inCriterion);
+        given(searchResult.getEntities()).willReturn(Lists.newArrayList(firstEntity, secondEntity));
+
+        // when
+        lookupCellParser.prefetch(Lists.newArrayList("C1", "C2", "C1", ""));
+
+        parse("C1");
+        parse("C2");
+        parse("C1");
+
+        // then
+        assertEquals(Lists.newArrayList(firstEntity, secondEntity, firstEntity), values);
+        assertTrue(errors.isEmpty());
+
+        verify(searchCriteriaBuilder).add(inCriterion);
+        verify(searchCriteriaBuilder, never()).uniqueResult();
+    }
+
+    @Test
+    public void shouldPrefetchOnlyCodesMissingInCache() {
+        // given
+        ImportLookupCache.open();
+
+        given(SearchRestrictions.in(L_NUMBER, Lists.newArrayList("C1"))).willReturn(inCriterion);
+        given(searchResult.getEntities()).willReturn(Lists.newArrayList(firstEntity));
+
+        lookupCellParser.prefetch(Lists.newArrayList("C1"));
+
+        // when
+        lookupCellParser.prefetch(Lists.newArrayList("C1"));
+
+        // then
+        verify(searchCriteriaBuilder, times(1)).list();
+    }
+
+    @Test
+    public void shouldFallBackToSingleLookupForCodesNotFoundByPrefetch() {
+        // given
+        ImportLookupCache.open();
+
+        given(SearchRestrictions.in(L_NUMBER, Lists.newArrayList("C1", "C3", "C4"))).willReturn(inCriterion);
+        given(SearchRestrictions.eq(L_NUMBER, "C3")).willReturn(eqCriterion);
+        given(searchResult.getEntities()).willReturn(Lists.newArrayList(firstEntity));
+        given(searchCriteriaBuilder.uniqueResult()).willReturn(null, secondEntity);
+
+        lookupCellParser.prefetch(Lists.newArrayList("C1", "C3", "C4"));
+
+        // when
+        parse("C3");
+        parse("C3");
+        parse("C1");
+
+        // then
+        assertEquals(Lists.newArrayList(L_ERROR), errors);
+        assertEquals(Lists.newArrayList(secondEntity, firstEntity), values);
+
+        verify(searchCriteriaBuilder, times(2)).add(eqCriterion);
+        verify(searchCriteriaBuilder, times(2)).uniqueResult();
+    }
+
+    @Test
+    public void shouldNotPrefetchWithoutImportInProgress() {
+        // when
+        lookupCellParser.prefetch(Lists.newArrayList("C1"));
+
+        // then
+        verify(dataDefinition, never()).find();
+    }
+
+    @Test
+    public void shouldNotQueryWhenThereAreNoCodes() {
+        // given
+        ImportLookupCache.open();
+
+        // when
+        lookupCellParser.prefetch(Collections.singletonList(""));
+
+        // then
+        verify(dataDefinition, never()).find();
+    }
+
+}
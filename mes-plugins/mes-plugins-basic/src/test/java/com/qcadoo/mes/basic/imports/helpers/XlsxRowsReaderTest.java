@@ -0,0 +1,179 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.imports.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.imports.helpers.XlsxRowsReader.XlsxRow;
+
+public class XlsxRowsReaderTest {
+
+    private static final int L_COLUMNS_COUNT = 3;
+
+    private final List<List<XlsxRow>> chunks = Lists.newArrayList();
+
+    private void read(final int chunkSize, final Map<Integer, Map<Integer, String>> rows) throws IOException {
+        try (XSSFWorkbook workbook = new XSSFWorkbook(); ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+            Sheet sheet = workbook.createSheet();
+            Row header = sheet.createRow(0);
+
+            for (int columnIndex = 0; columnIndex < L_COLUMNS_COUNT; columnIndex++) {
+                header.createCell(columnIndex).setCellValue("header" + columnIndex);
+            }
+
+            for (Map.Entry<Integer, Map<Integer, String>> rowValues : rows.entrySet()) {
+                Row row = sheet.createRow(rowValues.getKey());
+
+                rowValues.getValue().forEach((columnIndex, value) -> row.createCell(columnIndex).setCellValue(value));
+            }
+
+            workbook.write(outputStream);
+
+            new XlsxRowsReader(L_COLUMNS_COUNT, chunkSize, chunks::add).read(
+                    new ByteArrayInputStream(outputStream.toByteArray()), Locale.ENGLISH);
+        }
+    }
+
+    private Map<Integer, Map<Integer, String>> getRows(final int... rowIndexes) {
+        ImmutableMap.Builder<Integer, Map<Integer, String>> rows = ImmutableMap.builder();
+
+        for (int rowIndex : rowIndexes) {
+            rows.put(rowIndex, ImmutableMap.of(0, "number" + rowIndex, 1, "name" + rowIndex));
+        }
+
+        return rows.build();
+    }
+
+    private List<Integer> getChunkSizes() {
+        return chunks.stream().map(List::size).collect(Collectors.toList());
+    }
+
+    private List<Integer> getRowIndexes() {
+        return chunks.stream().flatMap(List::stream).map(XlsxRow::getRowIndex).collect(Collectors.toList());
+    }
+
+    @Test
+    public void shouldPassRowsInChunksSkippingHeader() throws IOException {
+        // when
+        read(2, getRows(1, 2, 3, 4, 5));
+
+        // then
+        assertEquals(Lists.newArrayList(2, 2, 1), getChunkSizes());
+        assertEquals(Lists.newArrayList(1, 2, 3, 4, 5), getRowIndexes());
+        assertEquals("number1", chunks.get(0).get(0).getValue(0));
+        assertEquals("name5", chunks.get(2).get(0).getValue(1));
+    }
+
+    @Test
+    public void shouldNotPassEmptyChunkWhenLastChunkIsFull() throws IOException {
+        // when
+        read(2, getRows(1, 2, 3, 4));
+
+        // then
+        assertEquals(Lists.newArrayList(2, 2), getChunkSizes());
+    }
+
+    @Test
+    public void shouldPassNothingWhenThereAreNoRowsAfterHeader() throws IOException {
+        // when
+        read(2, getRows());
+
+        // then
+        assertEquals(0, chunks.size());
+    }
+
+    @Test
+    public void shouldStopOnFirstMissingRow() throws IOException {
+        // when
+        read(10, getRows(1, 2, 4, 5));
+
+        // then
+        assertEquals(Lists.newArrayList(1, 2), getRowIndexes());
+    }
+
+    @Test
+    public void shouldStopOnFirstRowWithoutValues() throws IOException {
+        // given
+        Map<Integer, Map<Integer, String>> rows = ImmutableMap.<Integer, Map<Integer, String>> builder()
+                .putAll(getRows(1, 2)).put(3, ImmutableMap.of(0, "", 2, "")).putAll(getRows(4)).build();
+
+        // when
+        read(10, rows);
+
+        // then
+        assertEquals(Lists.newArrayList(1, 2), getRowIndexes());
+    }
+
+    @Test
+    public void shouldTreatRowWithValuesOnlyOutsideColumnsAsEmpty() throws IOException {
+        // given
+        Map<Integer, Map<Integer, String>> rows = ImmutableMap.<Integer, Map<Integer, String>> builder()
+                .putAll(getRows(1)).put(2, ImmutableMap.of(L_COLUMNS_COUNT, "outside")).putAll(getRows(3)).build();
+
+        // when
+        read(10, rows);
+
+        // then
+        assertEquals(Lists.newArrayList(1), getRowIndexes());
+    }
+
+    @Test
+    public void shouldKeepColumnsOfSparseRows() throws IOException {
+        // given
+        Map<Integer, Map<Integer, String>> rows = ImmutableMap.of(1, ImmutableMap.of(2, "third", 4, "outside"), 2,
+                ImmutableMap.of(1, "second"));
+
+        // when
+        read(10, rows);
+
+        // then
+        XlsxRow firstRow = chunks.get(0).get(0);
+        XlsxRow secondRow = chunks.get(0).get(1);
+
+        assertNull(firstRow.getValue(0));
+        assertNull(firstRow.getValue(1));
+        assertEquals("third", firstRow.getValue(2));
+        assertNull(firstRow.getValue(4));
+        assertNull(secondRow.getValue(0));
+        assertEquals("second", secondRow.getValue(1));
+        assertNull(secondRow.getValue(2));
+    }
+
+}
@@ -0,0 +1,184 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.imports.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Sets;
+import com.qcadoo.mes.basic.imports.dtos.CellBinder;
+import com.qcadoo.mes.basic.imports.dtos.CellBinderRegistry;
+import com.qcadoo.mes.basic.imports.dtos.ImportStatus;
+import com.qcadoo.mes.basic.imports.helpers.LookupCellParser;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+
+public class XlsxImportServiceTest {
+
+    private static final String L_PLUGIN_IDENTIFIER = "basic";
+
+    private static final String L_MODEL_NAME = "product";
+
+    private static final String L_NUMBER = "number";
+
+    private static final String L_COMPANY = "company";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private XlsxImportService xlsxImportService;
+
+    @Mock
+    private DataDefinitionService dataDefinitionService;
+
+    @Mock
+    private DataDefinition dataDefinition;
+
+    @Mock
+    private LookupCellParser companyCellParser;
+
+    private CellBinderRegistry cellBinderRegistry;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        xlsxImportService = new XlsxImportService();
+
+        ReflectionTestUtils.setField(xlsxImportService, "dataDefinitionService", dataDefinitionService);
+
+        given(dataDefinitionService.get(L_PLUGIN_IDENTIFIER, L_MODEL_NAME)).willReturn(dataDefinition);
+        given(dataDefinition.create()).willAnswer(invocation -> {
+            Entity entity = mock(Entity.class);
+
+            given(entity.getDataDefinition()).willReturn(dataDefinition);
+            given(entity.isValid()).willReturn(true);
+
+            return entity;
+        });
+        given(dataDefinition.save(any(Entity.class))).willAnswer(invocation -> invocation.getArguments()[0]);
+
+        cellBinderRegistry = new CellBinderRegistry();
+        cellBinderRegistry.setCellBinder(CellBinder.optional(L_NUMBER));
+        cellBinderRegistry.setCellBinder(CellBinder.optional(L_COMPANY, companyCellParser));
+    }
+
+    private FileInputStream createFile(final int rowsCount, final int... skippedRows) throws IOException {
+        File file = temporaryFolder.newFile("import.xlsx");
+        Set<Integer> skipped = Arrays.stream(skippedRows).boxed().collect(Collectors.toSet());
+
+        try (XSSFWorkbook workbook = new XSSFWorkbook(); FileOutputStream outputStream = new FileOutputStream(file)) {
+            Sheet sheet = workbook.createSheet();
+            Row header = sheet.createRow(0);
+
+            header.createCell(0).setCellValue(L_NUMBER);
+            header.createCell(1).setCellValue(L_COMPANY);
+
+            for (int rowIndex = 1; rowIndex <= rowsCount; rowIndex++) {
+                if (skipped.contains(rowIndex)) {
+                    continue;
+                }
+
+                Row row = sheet.createRow(rowIndex);
+
+                row.createCell(0).setCellValue("P" + rowIndex);
+
+                if (rowIndex % 4 != 0) {
+                    row.createCell(1).setCellValue(" C" + (rowIndex % 3 + 1) + " ");
+                }
+            }
+
+            workbook.write(outputStream);
+        }
+
+        return new FileInputStream(file);
+    }
+
+    private ImportStatus importFile(final FileInputStream fileInputStream) throws IOException {
+        try (FileInputStream fis = fileInputStream) {
+            return xlsxImportService.importFile(fis, cellBinderRegistry, false, L_PLUGIN_IDENTIFIER, L_MODEL_NAME, null, null,
+                    false, null, null);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldPrefetchLookupCodesOncePerChunk() throws IOException {
+        // when
+        ImportStatus importStatus = importFile(createFile(501));
+
+        // then
+        assertEquals(501, importStatus.getRowsProcessed());
+
+        ArgumentCaptor<Collection> codesCaptor = ArgumentCaptor.forClass(Collection.class);
+
+        verify(companyCellParser, times(2)).prefetch(codesCaptor.capture());
+        verify(companyCellParser, times(376)).parse(any(String.class), any(String.class), any(), any());
+        verify(dataDefinition, times(501)).save(any(Entity.class));
+
+        List<Collection> codes = codesCaptor.getAllValues();
+
+        assertEquals(Sets.newHashSet("C1", "C2", "C3"), Sets.newHashSet(codes.get(0)));
+        assertEquals(Sets.newHashSet("C1"), Sets.newHashSet(codes.get(1)));
+    }
+
+    @Test
+    public void shouldStopImportOnFirstMissingRow() throws IOException {
+        // when
+        ImportStatus importStatus = importFile(createFile(10, 4));
+
+        // then
+        assertEquals(3, importStatus.getRowsProcessed());
+
+        verify(dataDefinition, times(3)).save(any(Entity.class));
+    }
+
+}
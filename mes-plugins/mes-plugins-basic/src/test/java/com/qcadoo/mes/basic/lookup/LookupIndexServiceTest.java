@@ -0,0 +1,130 @@
+package com.qcadoo.mes.basic.lookup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.util.TenantKey;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+
+public class LookupIndexServiceTest {
+
+    private static final String L_INDEX_NAME = "products";
+
+    private static final TenantKey<String> L_FIRST_TENANT_KEY = TenantKey.of(1, L_INDEX_NAME);
+
+    private static final TenantKey<String> L_SECOND_TENANT_KEY = TenantKey.of(2, L_INDEX_NAME);
+
+    private LookupIndexService lookupIndexService;
+
+    @Mock
+    private MultiTenantService multiTenantService;
+
+    @Mock
+    private LookupIndexLoader<String> lookupIndexLoader;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        lookupIndexService = new LookupIndexService();
+
+        ReflectionTestUtils.setField(lookupIndexService, "multiTenantService", multiTenantService);
+        ReflectionTestUtils.setField(lookupIndexService, "lookupIndexLoaders", Lists.newArrayList(lookupIndexLoader));
+
+        given(lookupIndexLoader.getIndexName()).willReturn(L_INDEX_NAME);
+        given(lookupIndexLoader.load(null, null)).willReturn(
+                Lists.newArrayList(new LookupEntry<>(1L, "ABC-100", "ABC-100", null)));
+
+        doAnswer(invocation -> {
+            ((MultiTenantCallback) invocation.getArguments()[1]).invoke();
+
+            return null;
+        }).when(multiTenantService).doInMultiTenantContext(any(Integer.class), any(MultiTenantCallback.class));
+    }
+
+    @After
+    public void tearDown() {
+        lookupIndexService.shutdown();
+    }
+
+    @Test
+    public final void shouldKeepIndexesOfDifferentTenantsApart() {
+        // given
+        lookupIndexService.build(L_FIRST_TENANT_KEY);
+
+        // when
+        Optional<LookupResult<String>> firstTenantResult = lookupIndexService.search(L_FIRST_TENANT_KEY, "abc", 10,
+                entry -> true);
+        Optional<LookupResult<String>> secondTenantResult = lookupIndexService.search(L_SECOND_TENANT_KEY, "abc", 10,
+                entry -> true);
+
+        // then
+        assertTrue(firstTenantResult.isPresent());
+        assertEquals(Lists.newArrayList("ABC-100"), firstTenantResult.get().getEntities());
+        assertFalse(secondTenantResult.isPresent());
+
+        verify(multiTenantService, timeout(1000)).doInMultiTenantContext(eq(2), any(MultiTenantCallback.class));
+    }
+
+    @Test
+    public final void shouldReloadChangedEntryOnlyInIndexOfItsTenant() {
+        // given
+        lookupIndexService.build(L_FIRST_TENANT_KEY);
+        lookupIndexService.build(L_SECOND_TENANT_KEY);
+
+        List<LookupEntry<String>> changedEntries = Lists.newArrayList(new LookupEntry<>(1L, "XYZ-100", "XYZ-100", null));
+
+        given(lookupIndexLoader.load(1L, "XYZ-100")).willReturn(changedEntries);
+
+        // when
+        lookupIndexService.reload(L_FIRST_TENANT_KEY, new LookupIndexService.LookupChange(1L, "XYZ-100"));
+
+        // then
+        assertEquals(Lists.newArrayList("XYZ-100"), search(L_FIRST_TENANT_KEY, "xyz"));
+        assertEquals(Lists.newArrayList("ABC-100"), search(L_SECOND_TENANT_KEY, "abc"));
+    }
+
+    @Test
+    public final void shouldDropInvalidatedIndexOnlyOfItsTenant() {
+        // given
+        lookupIndexService.build(L_FIRST_TENANT_KEY);
+        lookupIndexService.build(L_SECOND_TENANT_KEY);
+
+        // when
+        lookupIndexService.invalidate(L_FIRST_TENANT_KEY);
+
+        // then
+        assertFalse(lookupIndexService.search(L_FIRST_TENANT_KEY, "abc", 10, entry -> true).isPresent());
+        assertEquals(Lists.newArrayList("ABC-100"), search(L_SECOND_TENANT_KEY, "abc"));
+
+        verify(multiTenantService, timeout(1000)).doInMultiTenantContext(eq(1), any(MultiTenantCallback.class));
+    }
+
+    private List<String> search(final TenantKey<String> indexKey, final String query) {
+        Optional<LookupResult<String>> result = lookupIndexService.search(indexKey, query, 10, entry -> true);
+
+        assertTrue(result.isPresent());
+
+        return result.get().getEntities();
+    }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.lookup;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class LookupIndexTest {
+
+    private LookupIndex<String> lookupIndex;
+
+    @Before
+    public void init() {
+        List<LookupEntry<String>> entries = Lists.newArrayList();
+
+        entries.add(new LookupEntry<>(1L, "ABC-100", "ABC-100", "A"));
+        entries.add(new LookupEntry<>(2L, "XABC-1", "XABC-1", "B"));
+        entries.add(new LookupEntry<>(3L, "abc", "abc", "A"));
+        entries.add(new LookupEntry<>(4L, "DEF-200", "DEF-200", "A"));
+        entries.add(new LookupEntry<>(5L, "AB", "AB", "B"));
+
+        lookupIndex = LookupIndex.build(entries);
+    }
+
+    @Test
+    public final void shouldFindCodesContainingQueryIgnoringCase() {
+        // given
+
+        // when
+        LookupResult<String> result = lookupIndex.search("abc", 10, entry -> true);
+
+        // then
+        assertEquals(Lists.newArrayList("abc", "ABC-100", "XABC-1"), result.getEntities());
+        assertEquals(3, result.getNumberOfResults());
+    }
+
+    @Test
+    public final void shouldFindCodesByQueryShorterThanGram() {
+        // given
+
+        // when
+        LookupResult<String> result = lookupIndex.search("b", 10, entry -> true);
+
+        // then
+        assertEquals(Lists.newArrayList("AB", "abc", "XABC-1", "ABC-100"), result.getEntities());
+    }
+
+    @Test
+    public final void shouldFindCodesByWildcards() {
+        // given
+
+        // when
+        LookupResult<String> percentResult = lookupIndex.search("abc%00", 10, entry -> true);
+        LookupResult<String> underscoreResult = lookupIndex.search("-_00", 10, entry -> true);
+
+        // then
+        assertEquals(Lists.newArrayList("ABC-100"), percentResult.getEntities());
+        assertEquals(Lists.newArrayList("ABC-100", "DEF-200"), underscoreResult.getEntities());
+    }
+
+    @Test
+    public final void shouldCountAllMatchesAboveLimit() {
+        // given
+
+        // when
+        LookupResult<String> result = lookupIndex.search("ab", 1, entry -> true);
+
+        // then
+        assertEquals(Lists.newArrayList("AB"), result.getEntities());
+        assertEquals(4, result.getNumberOfResults());
+    }
+
+    @Test
+    public final void shouldApplyFilter() {
+        // given
+
+        // when
+        LookupResult<String> result = lookupIndex.search("abc", 10, entry -> "A".equals(entry.getContext(0)));
+
+        // then
+        assertEquals(Lists.newArrayList("abc", "ABC-100"), result.getEntities());
+    }
+
+    @Test
+    public final void shouldSearchChangedEntries() {
+        // given
+        lookupIndex.put(new LookupEntry<>(4L, "ABC-200", "ABC-200", "A"));
+        lookupIndex.put(new LookupEntry<>(6L, "NEW-ABC", "NEW-ABC", "A"));
+        lookupIndex.remove(1L);
+
+        // when
+        LookupResult<String> result = lookupIndex.search("abc", 10, entry -> true);
+
+        // then
+        assertEquals(Lists.newArrayList("abc", "ABC-200", "XABC-1", "NEW-ABC"), result.getEntities());
+        assertEquals(3, lookupIndex.getChangesCount());
+    }
+
+}
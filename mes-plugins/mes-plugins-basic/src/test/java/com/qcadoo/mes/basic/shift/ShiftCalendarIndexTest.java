@@ -0,0 +1,127 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.shift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.function.Function;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.util.DateTimeRange;
+
+public class ShiftCalendarIndexTest {
+
+    private static final long HOUR = 3600 * 1000L;
+
+    private static final LocalDate MONDAY = new LocalDate(2024, 1, 1);
+
+    private int loadedDays;
+
+    private final Function<LocalDate, List<DateTimeRange>> dayRangesLoader = day -> {
+        loadedDays++;
+
+        List<DateTimeRange> dayRanges = Lists.newArrayList();
+
+        if (day.getDayOfWeek() < DateTimeConstants.SATURDAY) {
+            DateTime startOfDay = day.toDateTimeAtStartOfDay();
+
+            dayRanges.add(new DateTimeRange(startOfDay.withHourOfDay(6), startOfDay.withHourOfDay(14)));
+            dayRanges.add(new DateTimeRange(startOfDay.withHourOfDay(14), startOfDay.withHourOfDay(22)));
+        }
+
+        return dayRanges;
+    };
+
+    @Test
+    public final void shouldSumWorkingTimeOfWholeWeek() {
+        // given
+        ShiftCalendarIndex index = ShiftCalendarIndex.build(MONDAY, MONDAY.plusDays(6), true, dayRangesLoader, null);
+
+        // when
+        long duration = index.getDurationMillis(index.getEntriesStart(MONDAY), index.getEntriesEnd(MONDAY.plusDays(6)));
+
+        // then
+        assertEquals(5 * 16 * HOUR, duration);
+        assertEquals(0, index.getEntriesEnd(MONDAY.plusDays(5)) - index.getEntriesStart(MONDAY.plusDays(5)));
+    }
+
+    @Test
+    public final void shouldFindRangeInWhichWorkingTimeRunsOut() {
+        // given
+        ShiftCalendarIndex index = ShiftCalendarIndex.build(MONDAY, MONDAY.plusDays(6), true, dayRangesLoader, null);
+
+        int start = index.getEntriesStart(MONDAY);
+        int end = index.getEntriesEnd(MONDAY.plusDays(6));
+
+        // when
+        int firstEntry = index.findEntry(start, end, 8 * HOUR);
+        int secondEntry = index.findEntry(start, end, 8 * HOUR + 1);
+        int fifthEntry = index.findEntry(start, end, 33 * HOUR);
+
+        // then
+        assertEquals(start, firstEntry);
+        assertEquals(start + 1, secondEntry);
+        assertEquals(start + 4, fifthEntry);
+        assertEquals(MONDAY.plusDays(2).toDateTimeAtStartOfDay().withHourOfDay(7).getMillis(),
+                index.getFrom(fifthEntry) + 33 * HOUR - index.getDurationMillis(start, fifthEntry));
+    }
+
+    @Test
+    public final void shouldNotFindRangeIfThereIsNotEnoughWorkingTime() {
+        // given
+        ShiftCalendarIndex index = ShiftCalendarIndex.build(MONDAY, MONDAY.plusDays(6), true, dayRangesLoader, null);
+
+        // when
+        int entry = index.findEntry(index.getEntriesStart(MONDAY), index.getEntriesEnd(MONDAY.plusDays(6)), 80 * HOUR + 1);
+
+        // then
+        assertEquals(-1, entry);
+    }
+
+    @Test
+    public final void shouldReuseDaysOfExistingIndex() {
+        // given
+        ShiftCalendarIndex index = ShiftCalendarIndex.build(MONDAY, MONDAY.plusDays(6), true, dayRangesLoader, null);
+
+        // when
+        ShiftCalendarIndex extendedIndex = ShiftCalendarIndex.build(MONDAY.minusDays(1), MONDAY.plusDays(13), true,
+                dayRangesLoader, index);
+
+        // then
+        assertEquals(7 + 8, loadedDays);
+        assertTrue(extendedIndex.covers(MONDAY.minusDays(1), MONDAY.plusDays(13)));
+        assertFalse(extendedIndex.covers(MONDAY.minusDays(2), MONDAY));
+        assertEquals(10 * 16 * HOUR, extendedIndex.getDurationMillis(extendedIndex.getEntriesStart(MONDAY.minusDays(1)),
+                extendedIndex.getEntriesEnd(MONDAY.plusDays(13))));
+    }
+
+}
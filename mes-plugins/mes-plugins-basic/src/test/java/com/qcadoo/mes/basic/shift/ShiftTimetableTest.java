@@ -0,0 +1,127 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.shift;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Calendar;
+import java.util.Date;
+
+import org.joda.time.LocalDateTime;
+import org.joda.time.LocalTime;
+import org.junit.Test;
+
+public class ShiftTimetableTest {
+
+    private static final LocalDateTime MONDAY = new LocalDateTime(2024, 1, 1, 0, 0);
+
+    private static final long MORNING_SHIFT_ID = 1L;
+
+    private static final long NIGHT_SHIFT_ID = 2L;
+
+    private final ShiftTimetable shiftTimetable = ShiftTimetable.builder()
+            .addWorkingHours(Calendar.MONDAY, MORNING_SHIFT_ID, hours(6, 0, 14, 0))
+            .addWorkingHours(Calendar.MONDAY, NIGHT_SHIFT_ID, hours(22, 0, 6, 0))
+            .addWorkingHours(Calendar.TUESDAY, MORNING_SHIFT_ID, hours(6, 0, 10, 0, 10, 30, 14, 30)).build();
+
+    @Test
+    public final void shouldFindShiftWorkingAtGivenTime() {
+        // when
+        Long shiftId = shiftTimetable.findShiftId(at(0, 6, 0));
+
+        // then
+        assertEquals(Long.valueOf(MORNING_SHIFT_ID), shiftId);
+    }
+
+    @Test
+    public final void shouldNotFindShiftAtEndOfItsWorkingHours() {
+        // when
+        Long shiftId = shiftTimetable.findShiftId(at(0, 14, 0));
+
+        // then
+        assertNull(shiftId);
+    }
+
+    @Test
+    public final void shouldFindOvernightShiftOnBothSidesOfMidnight() {
+        // when
+        Long lateShiftId = shiftTimetable.findShiftId(at(0, 23, 30));
+        Long earlyShiftId = shiftTimetable.findShiftId(at(0, 1, 15));
+
+        // then
+        assertEquals(Long.valueOf(NIGHT_SHIFT_ID), lateShiftId);
+        assertEquals(Long.valueOf(NIGHT_SHIFT_ID), earlyShiftId);
+    }
+
+    @Test
+    public final void shouldFindFirstAddedShiftWhenHoursOverlap() {
+        // given
+        ShiftTimetable overlappingShiftTimetable = ShiftTimetable.builder()
+                .addWorkingHours(Calendar.MONDAY, MORNING_SHIFT_ID, hours(6, 0, 14, 0))
+                .addWorkingHours(Calendar.MONDAY, NIGHT_SHIFT_ID, hours(13, 0, 6, 0)).build();
+
+        // when
+        Long shiftId = overlappingShiftTimetable.findShiftId(at(0, 13, 30));
+
+        // then
+        assertEquals(Long.valueOf(MORNING_SHIFT_ID), shiftId);
+    }
+
+    @Test
+    public final void shouldNotFindShiftInBreakBetweenRanges() {
+        // when
+        Long breakShiftId = shiftTimetable.findShiftId(at(1, 10, 15));
+        Long afterBreakShiftId = shiftTimetable.findShiftId(at(1, 14, 29));
+
+        // then
+        assertNull(breakShiftId);
+        assertEquals(Long.valueOf(MORNING_SHIFT_ID), afterBreakShiftId);
+    }
+
+    @Test
+    public final void shouldNotFindShiftOnDayWithoutWorkingHours() {
+        // when
+        Long shiftId = shiftTimetable.findShiftId(at(5, 12, 0));
+
+        // then
+        assertNull(shiftId);
+    }
+
+    private static LocalTime[][] hours(final int... hoursAndMinutes) {
+        LocalTime[][] hours = new LocalTime[hoursAndMinutes.length / 4][];
+
+        for (int range = 0; range < hours.length; range++) {
+            hours[range] = new LocalTime[] { new LocalTime(hoursAndMinutes[range * 4], hoursAndMinutes[range * 4 + 1]),
+                    new LocalTime(hoursAndMinutes[range * 4 + 2], hoursAndMinutes[range * 4 + 3]) };
+        }
+
+        return hours;
+    }
+
+    private static Date at(final int daysAfterMonday, final int hourOfDay, final int minuteOfHour) {
+        return MONDAY.plusDays(daysAfterMonday).withHourOfDay(hourOfDay).withMinuteOfHour(minuteOfHour).toDate();
+    }
+
+}
@@ -0,0 +1,227 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.basic.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+public class ClaimQueueTest {
+
+    private static final String L_TABLE_NAME = "basic_testqueue";
+
+    private static final String L_WAITING = "01waiting";
+
+    private static final String L_IN_PROGRESS = "02inProgress";
+
+    private static final String L_FAILED = "04failed";
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private JdbcOperations jdbcOperations;
+
+    private ClaimQueue claimQueue;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        given(jdbcTemplate.getJdbcOperations()).willReturn(jdbcOperations);
+
+        claimQueue = new ClaimQueue(jdbcTemplate, L_TABLE_NAME, L_WAITING, L_IN_PROGRESS, L_FAILED);
+    }
+
+    @Test
+    public void shouldDoubleRetryDelayWithEveryAttempt() {
+        // when & then
+        assertEquals(30, ClaimQueue.getRetryDelaySeconds(1));
+        assertEquals(60, ClaimQueue.getRetryDelaySeconds(2));
+        assertEquals(120, ClaimQueue.getRetryDelaySeconds(3));
+        assertEquals(240, ClaimQueue.getRetryDelaySeconds(4));
+    }
+
+    @Test
+    public void shouldRetryUntilAttemptsRunOut() {
+        // when & then
+        assertTrue(ClaimQueue.canRetry(1));
+        assertTrue(ClaimQueue.canRetry(ClaimQueue.MAX_ATTEMPTS - 1));
+        assertFalse(ClaimQueue.canRetry(ClaimQueue.MAX_ATTEMPTS));
+    }
+
+    @Test
+    public void shouldClaimUnderTransactionScopedLockOfTable() {
+        // when
+        claimQueue.lock();
+
+        // then
+        verify(jdbcOperations).execute("SELECT pg_advisory_xact_lock(hashtext('basic_testqueue'))");
+    }
+
+    @Test
+    public void shouldScheduleRetryOfWaitingClaimsWithBackoff() {
+        // given
+        List<Long> ids = Arrays.asList(1L, 2L);
+
+        // when
+        claimQueue.finish(ids, L_WAITING, 3, "Connection reset");
+
+        // then
+        Map<String, Object> parameters = captureUpdateParameters();
+
+        assertEquals(ids, parameters.get(ClaimQueue.IDS));
+        assertEquals(L_WAITING, parameters.get(ClaimQueue.STATUS));
+        assertEquals(true, parameters.get("retry"));
+        assertEquals(120, parameters.get("retryDelaySeconds"));
+        assertEquals("Connection reset", parameters.get(ClaimQueue.ERROR_MESSAGE));
+    }
+
+    @Test
+    public void shouldFinishOnlyRowsStillClaimedByThisNode() {
+        // when
+        claimQueue.finish(Collections.singletonList(1L), L_FAILED, 1, "Document isn't valid");
+
+        // then
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+
+        verify(jdbcTemplate).update(queryCaptor.capture(), anyMapOf(String.class, Object.class));
+
+        assertTrue(queryCaptor.getValue().endsWith("WHERE id IN (:ids) AND status = :inProgress AND claimedby = :node"));
+    }
+
+    @Test
+    public void shouldRefreshHeartbeatOfClaimsOfThisNode() {
+        // given
+        Set<Long> ids = Collections.singleton(1L);
+
+        // when
+        claimQueue.heartbeat(ids);
+
+        // then
+        Map<String, Object> parameters = captureUpdateParameters();
+
+        assertEquals(Collections.singletonList(1L), parameters.get(ClaimQueue.IDS));
+        assertEquals(L_IN_PROGRESS, parameters.get(ClaimQueue.IN_PROGRESS));
+        assertEquals(ClaimQueue.NODE_NAME, parameters.get(ClaimQueue.NODE));
+    }
+
+    @Test
+    public void shouldNotRefreshHeartbeatWithoutClaims() {
+        // when
+        claimQueue.heartbeat(Collections.emptySet());
+
+        // then
+        verify(jdbcTemplate, never()).update(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    @Test
+    public void shouldFinishFailedClaims() {
+        // when
+        claimQueue.finish(Collections.singletonList(1L), L_FAILED, ClaimQueue.MAX_ATTEMPTS, "Document isn't valid");
+
+        // then
+        Map<String, Object> parameters = captureUpdateParameters();
+
+        assertEquals(L_FAILED, parameters.get(ClaimQueue.STATUS));
+        assertEquals(false, parameters.get("retry"));
+    }
+
+    @Test
+    public void shouldRequeueStaleClaimsOfOtherNodes() {
+        // when
+        claimQueue.requeueStaleClaims("Claim expired", "q.id");
+
+        // then
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        Map<String, Object> parameters = captureRequeueParameters(queryCaptor);
+
+        assertTrue(queryCaptor.getValue().startsWith("UPDATE basic_testqueue q SET "));
+        assertTrue(queryCaptor.getValue().contains("WHERE q.status = :inProgress AND q.claimedby <> :node "
+                + "AND GREATEST(q.claimdate, q.heartbeatdate) < now() - :staleClaimMinutes * INTERVAL '1 minute' "
+                + "RETURNING q.id"));
+        assertEquals(ClaimQueue.STALE_CLAIM_MINUTES, parameters.get("staleClaimMinutes"));
+        assertRequeueParameters(parameters, "Claim expired");
+    }
+
+    @Test
+    public void shouldRequeueInterruptedClaimsOfThisNode() {
+        // when
+        claimQueue.requeueInterruptedClaims("Interrupted by restart", "q.id");
+
+        // then
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        Map<String, Object> parameters = captureRequeueParameters(queryCaptor);
+
+        assertTrue(queryCaptor.getValue().contains("WHERE q.status = :inProgress AND q.claimedby = :node RETURNING q.id"));
+        assertRequeueParameters(parameters, "Interrupted by restart");
+    }
+
+    private void assertRequeueParameters(final Map<String, Object> parameters, final String errorMessage) {
+        assertEquals(ClaimQueue.MAX_ATTEMPTS, parameters.get("maxAttempts"));
+        assertEquals(ClaimQueue.NODE_NAME, parameters.get(ClaimQueue.NODE));
+        assertEquals(L_WAITING, parameters.get(ClaimQueue.WAITING));
+        assertEquals(L_IN_PROGRESS, parameters.get(ClaimQueue.IN_PROGRESS));
+        assertEquals(L_FAILED, parameters.get(ClaimQueue.FAILED));
+        assertEquals(errorMessage, parameters.get(ClaimQueue.ERROR_MESSAGE));
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Map<String, Object> captureUpdateParameters() {
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcTemplate).update(anyString(), parametersCaptor.capture());
+
+        return parametersCaptor.getValue();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Map<String, Object> captureRequeueParameters(final ArgumentCaptor<String> queryCaptor) {
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcTemplate).queryForList(queryCaptor.capture(), parametersCaptor.capture());
+
+        return parametersCaptor.getValue();
+    }
+
+}
@@ -0,0 +1,412 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.costCalculation;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qcadoo.mes.basic.util.ClaimQueue;
+import com.qcadoo.mes.costCalculation.constants.CostCalculationConstants;
+import com.qcadoo.mes.costCalculation.constants.CostCalculationFields;
+import com.qcadoo.mes.technologies.constants.TechnologiesConstants;
+import com.qcadoo.mes.technologies.constants.TechnologyFields;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.NumberService;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+
+/**
+ * Calculates costs of many technologies of one cost calculation at once. Technologies are calculated in parallel on a bounded
+ * pool, on copies of the cost calculation and without saving operation components, sharing costs per unit of products read
+ * during the batch. Results are written with batched inserts, replacing earlier results of the same technologies, together
+ * with calculation time of each technology. Calculation started from the view runs in background and writes its progress to
+ * the cost calculation.
+ */
+@Service
+public class CostCalculationBatchService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CostCalculationBatchService.class);
+
+    private static final int L_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    private static final int L_INSERT_BATCH_SIZE = 500;
+
+    private static final String L_ID = "id";
+
+    private static final String L_DELETE_CALCULATION_RESULTS = "DELETE FROM costcalculation_calculationresult "
+            + "WHERE costcalculation_id = :costCalculationId AND technology_id IN (:technologyIds)";
+
+    private static final String L_INSERT_CALCULATION_RESULT = "INSERT INTO costcalculation_calculationresult "
+            + "(costcalculation_id, technology_id, product_id, materialcosts, labourcost, productioncosts, totalcost, "
+            + "registrationprice, technicalproductioncost, sellingprice, nomaterialprice, calculationduration) VALUES "
+            + "(:costCalculationId, :technologyId, :productId, :materialCosts, :labourCost, :productionCosts, :totalCost, "
+            + ":registrationPrice, :technicalProductionCost, :sellingPrice, false, :calculationDuration)";
+
+    @Autowired
+    private CostCalculationService costCalculationService;
+
+    @Autowired
+    private DataDefinitionService dataDefinitionService;
+
+    @Autowired
+    private NumberService numberService;
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private MultiTenantService multiTenantService;
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(L_THREADS, new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("costCalculation-%d").build());
+
+    /**
+     * Marks given cost calculation as having calculation in progress on this node. The flag is set by a conditional update, so
+     * of two concurrent requests only one starts the calculation.
+     *
+     * @return false if the calculation of this cost calculation is already in progress
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public boolean tryStartCalculation(final Long costCalculationId) {
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put(L_ID, costCalculationId);
+        parameters.put(ClaimQueue.NODE, ClaimQueue.NODE_NAME);
+
+        return jdbcTemplate.update("UPDATE costcalculation_costcalculation SET calculationinprogress = true, "
+                + "calculationprogress = 0, failedtechnologies = 0, calculationnode = :node "
+                + "WHERE id = :id AND NOT COALESCE(calculationinprogress, false)", parameters) > 0;
+    }
+
+    /**
+     * Clears the in progress flag of calculations started on this node (or before the node was recorded), which were
+     * interrupted by a crash or restart. Calculations running on other nodes are left untouched.
+     */
+    @Transactional
+    public void recoverInterruptedCalculations() {
+        int recoveredCostCalculations = jdbcTemplate.update("UPDATE costcalculation_costcalculation "
+                + "SET calculationinprogress = false, calculationnode = NULL WHERE calculationinprogress "
+                + "AND (calculationnode = :node OR calculationnode IS NULL)",
+                Collections.singletonMap(ClaimQueue.NODE, ClaimQueue.NODE_NAME));
+
+        if (recoveredCostCalculations > 0) {
+            LOG.info(String.format("COST CALCULATION IN PROGRESS CLEARED FOR %d COST CALCULATIONS", recoveredCostCalculations));
+        }
+    }
+
+    /**
+     * Calculates costs of all technologies of given cost calculation in background. The cost calculation should be marked as
+     * having calculation in progress before (see {@link #tryStartCalculation(Long)}), the mark is removed when calculation ends.
+     */
+    @Async
+    public void performCalculation(final Long costCalculationId) {
+        LOG.info(String.format("Start calculating costs of technologies. Cost calculation id : %d", costCalculationId));
+
+        try {
+            Entity costCalculation = dataDefinitionService.get(CostCalculationConstants.PLUGIN_IDENTIFIER,
+                    CostCalculationConstants.MODEL_COST_CALCULATION).get(costCalculationId);
+
+            calculateTotalCosts(costCalculation, costCalculation.getManyToManyField(CostCalculationFields.TECHNOLOGIES));
+        } catch (Exception ex) {
+            LOG.warn("An error occurred while calculating costs of technologies", ex);
+        } finally {
+            afterCalculationComplete(costCalculationId);
+        }
+
+        LOG.info(String.format("Finish calculating costs of technologies. Cost calculation id : %d", costCalculationId));
+    }
+
+    /**
+     * Calculates costs of given technologies and saves their calculation results. Calculation of a technology that fails is
+     * logged and skipped, so one broken technology doesn't stop repricing of the others. Progress is written to the cost
+     * calculation after each technology.
+     * 
+     * @param costCalculation
+     *            saved cost calculation, its parameters are used for all technologies
+     * @param technologies
+     *            technologies to calculate
+     * @return calculations of technologies, with their times, in order of given technologies
+     */
+    public CostCalculationBatchResult calculateTotalCosts(final Entity costCalculation, final List<Entity> technologies) {
+        long startTime = System.currentTimeMillis();
+
+        Map<Long, BigDecimal> productCostsPerUnit = new ConcurrentHashMap<>();
+        List<Future<TechnologyCalculation>> futures = Lists.newArrayListWithCapacity(technologies.size());
+
+        for (Entity technology : technologies) {
+            Entity costCalculationCopy = costCalculation.copy();
+            Long technologyId = technology.getId();
+
+            futures.add(executorService.submit(() -> calculateInTenantContext(costCalculationCopy, technologyId,
+                    productCostsPerUnit)));
+        }
+
+        List<TechnologyCalculation> technologyCalculations = Lists.newArrayListWithCapacity(futures.size());
+        int failedTechnologies = 0;
+
+        try {
+            for (int index = 0; index < futures.size(); index++) {
+                TechnologyCalculation technologyCalculation = getTechnologyCalculation(futures.get(index),
+                        technologies.get(index).getId());
+
+                technologyCalculations.add(technologyCalculation);
+
+                if (!technologyCalculation.isSuccessful()) {
+                    failedTechnologies++;
+                }
+
+                updateProgress(costCalculation.getId(), 100 * technologyCalculations.size() / futures.size(),
+                        failedTechnologies);
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Cost calculation of technologies was interrupted", e);
+        }
+
+        saveCalculationResults(costCalculation.getId(), technologyCalculations);
+
+        CostCalculationBatchResult batchResult = new CostCalculationBatchResult(technologyCalculations,
+                System.currentTimeMillis() - startTime);
+
+        logBatchResult(costCalculation, batchResult);
+
+        return batchResult;
+    }
+
+    private TechnologyCalculation getTechnologyCalculation(final Future<TechnologyCalculation> future, final Long technologyId)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            LOG.warn(String.format("Cost calculation of technology id = %d failed", technologyId), e.getCause());
+
+            return TechnologyCalculation.failed(technologyId);
+        }
+    }
+
+    private TechnologyCalculation calculateInTenantContext(final Entity costCalculation, final Long technologyId,
+            final Map<Long, BigDecimal> productCostsPerUnit) {
+        AtomicReference<TechnologyCalculation> technologyCalculation = new AtomicReference<>();
+
+        multiTenantService.doInMultiTenantContext(new MultiTenantCallback() {
+
+            @Override
+            public void invoke() {
+                technologyCalculation.set(calculate(costCalculation, technologyId, productCostsPerUnit));
+            }
+
+        });
+
+        return technologyCalculation.get();
+    }
+
+    @Transactional(readOnly = true)
+    public TechnologyCalculation calculate(final Entity costCalculation, final Long technologyId,
+            final Map<Long, BigDecimal> productCostsPerUnit) {
+        long startTime = System.currentTimeMillis();
+
+        Entity technology = dataDefinitionService
+                .get(TechnologiesConstants.PLUGIN_IDENTIFIER, TechnologiesConstants.MODEL_TECHNOLOGY).get(technologyId);
+
+        costCalculationService.calculateTotalCost(costCalculation, technology, productCostsPerUnit);
+        costCalculationService.calculateSellPriceOverhead(costCalculation);
+        costCalculationService.calculateSellPrice(costCalculation);
+
+        MapSqlParameterSource calculationResult = new MapSqlParameterSource()
+                .addValue("technologyId", technologyId)
+                .addValue("productId", technology.getBelongsToField(TechnologyFields.PRODUCT).getId())
+                .addValue("materialCosts", getCost(costCalculation, CostCalculationFields.TOTAL_MATERIAL_COSTS))
+                .addValue("labourCost", numberService.setScaleWithDefaultMathContext(
+                        getCost(costCalculation, CostCalculationFields.TOTAL_MACHINE_HOURLY_COSTS)
+                                .add(getCost(costCalculation, CostCalculationFields.TOTAL_LABOR_HOURLY_COSTS)), 2))
+                .addValue("productionCosts", getCost(costCalculation, CostCalculationFields.TOTAL_TECHNICAL_PRODUCTION_COSTS))
+                .addValue("totalCost", getCost(costCalculation, CostCalculationFields.TOTAL_COSTS))
+                .addValue("registrationPrice", getCost(costCalculation, CostCalculationFields.TOTAL_COST_PER_UNIT))
+                .addValue("technicalProductionCost", getCost(costCalculation, CostCalculationFields.TECHNICAL_PRODUCTION_COSTS))
+                .addValue("sellingPrice", getCost(costCalculation, CostCalculationFields.SELL_PRICE_VALUE));
+
+        return new TechnologyCalculation(technologyId, calculationResult, System.currentTimeMillis() - startTime);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void updateProgress(final Long costCalculationId, final int progress, final int failedTechnologies) {
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put(L_ID, costCalculationId);
+        parameters.put("progress", progress);
+        parameters.put("failedTechnologies", failedTechnologies);
+
+        jdbcTemplate.update("UPDATE costcalculation_costcalculation SET calculationprogress = :progress, "
+                + "failedtechnologies = :failedTechnologies WHERE id = :id", parameters);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void afterCalculationComplete(final Long costCalculationId) {
+        jdbcTemplate.update("UPDATE costcalculation_costcalculation SET calculationinprogress = false, calculationnode = NULL "
+                + "WHERE id = :id", Collections.singletonMap(L_ID, costCalculationId));
+    }
+
+    private BigDecimal getCost(final Entity costCalculation, final String fieldName) {
+        BigDecimal cost = costCalculation.getDecimalField(fieldName);
+
+        return Objects.isNull(cost) ? null : numberService.setScaleWithDefaultMathContext(cost, 2);
+    }
+
+    @Transactional
+    private void saveCalculationResults(final Long costCalculationId, final List<TechnologyCalculation> technologyCalculations) {
+        List<SqlParameterSource> calculationResults = Lists.newArrayList();
+
+        for (TechnologyCalculation technologyCalculation : technologyCalculations) {
+            if (technologyCalculation.isSuccessful()) {
+                calculationResults.add(technologyCalculation.calculationResult.addValue("costCalculationId", costCalculationId)
+                        .addValue("calculationDuration", (int) Math.min(technologyCalculation.durationMillis, Integer.MAX_VALUE)));
+            }
+        }
+
+        for (List<SqlParameterSource> batch : Lists.partition(calculationResults, L_INSERT_BATCH_SIZE)) {
+            List<Object> technologyIds = Lists.newArrayListWithCapacity(batch.size());
+
+            batch.forEach(calculationResult -> technologyIds.add(calculationResult.getValue("technologyId")));
+
+            jdbcTemplate.update(L_DELETE_CALCULATION_RESULTS, new MapSqlParameterSource()
+                    .addValue("costCalculationId", costCalculationId).addValue("technologyIds", technologyIds));
+            jdbcTemplate.batchUpdate(L_INSERT_CALCULATION_RESULT, batch.toArray(new SqlParameterSource[batch.size()]));
+        }
+    }
+
+    private void logBatchResult(final Entity costCalculation, final CostCalculationBatchResult batchResult) {
+        if (LOG.isDebugEnabled()) {
+            for (TechnologyCalculation technologyCalculation : batchResult.getTechnologyCalculations()) {
+                LOG.debug(String.format("COST CALCULATION OF TECHNOLOGY %s: technology id = %d duration = %d ms",
+                        technologyCalculation.isSuccessful() ? "DONE" : "FAILED", technologyCalculation.getTechnologyId(),
+                        technologyCalculation.getDurationMillis()));
+            }
+        }
+
+        String slowest = batchResult.getTechnologyCalculations().stream()
+                .max(Comparator.comparingLong(TechnologyCalculation::getDurationMillis))
+                .map(technologyCalculation -> String.format("technology id = %d (%d ms)",
+                        technologyCalculation.getTechnologyId(), technologyCalculation.getDurationMillis()))
+                .orElse("none");
+
+        LOG.info(String.format(
+                "COST CALCULATION BATCH DONE: cost calculation id = %d technologies = %d failed = %d duration = %d ms slowest %s",
+                costCalculation.getId(), batchResult.getTechnologyCalculations().size(), batchResult.getFailedCount(),
+                batchResult.getDurationMillis(), slowest));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    public static final class TechnologyCalculation {
+
+        private final Long technologyId;
+
+        private final MapSqlParameterSource calculationResult;
+
+        private final long durationMillis;
+
+        private TechnologyCalculation(final Long technologyId, final MapSqlParameterSource calculationResult,
+                final long durationMillis) {
+            this.technologyId = technologyId;
+            this.calculationResult = calculationResult;
+            this.durationMillis = durationMillis;
+        }
+
+        private static TechnologyCalculation failed(final Long technologyId) {
+            return new TechnologyCalculation(technologyId, null, 0L);
+        }
+
+        public Long getTechnologyId() {
+            return technologyId;
+        }
+
+        public boolean isSuccessful() {
+            return Objects.nonNull(calculationResult);
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+    }
+
+    public static final class CostCalculationBatchResult {
+
+        private final List<TechnologyCalculation> technologyCalculations;
+
+        private final long durationMillis;
+
+        private CostCalculationBatchResult(final List<TechnologyCalculation> technologyCalculations, final long durationMillis) {
+            this.technologyCalculations = technologyCalculations;
+            this.durationMillis = durationMillis;
+        }
+
+        public List<TechnologyCalculation> getTechnologyCalculations() {
+            return technologyCalculations;
+        }
+
+        public long getFailedCount() {
+            return technologyCalculations.stream().filter(technologyCalculation -> !technologyCalculation.isSuccessful()).count();
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+    }
+
+}
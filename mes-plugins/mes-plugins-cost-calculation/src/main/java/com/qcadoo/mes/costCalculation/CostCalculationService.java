@@ -26,6 +26,7 @@ package com.qcadoo.mes.costCalculation;
 import com.qcadoo.model.api.Entity;
 
 import java.math.BigDecimal;
+import java.util.Map;
 
 public interface CostCalculationService {
 
@@ -41,6 +42,22 @@ public interface CostCalculationService {
      */
     Entity calculateTotalCost(final Entity entity, final Entity technology);
 
+    /**
+     * Calculates total cost of technology like {@link #calculateTotalCost(Entity, Entity)}, but saves nothing - neither
+     * cost calculation nor its operation components are written, so it may be called in parallel for many technologies on
+     * copies of the same cost calculation.
+     * 
+     * @param entity
+     *            entity
+     * @param technology
+     *            technology
+     * @param productCostsPerUnit
+     *            costs per unit of products, shared by technologies calculated together
+     *
+     * @return entity
+     */
+    Entity calculateTotalCost(final Entity entity, final Entity technology, final Map<Long, BigDecimal> productCostsPerUnit);
+
     /**
      * Calculates total costs
      * 
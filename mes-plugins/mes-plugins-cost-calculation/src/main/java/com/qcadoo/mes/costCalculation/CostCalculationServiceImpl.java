@@ -42,6 +42,7 @@ import java.math.MathContext;
 import java.math.RoundingMode;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 @Service
 public class CostCalculationServiceImpl implements CostCalculationService {
@@ -62,27 +63,43 @@ public class CostCalculationServiceImpl implements CostCalculationService {
         entity.setField(CostCalculationFields.DATE, new Date());
         // FIXME MAKU beware of side effects - order of computations matter!
         calculateOperationsAndProductsCosts(entity, technology);
-        final BigDecimal productionCosts = calculateProductionCost(entity);
-        calculateMarginsAndOverheads(entity, productionCosts);
-        final BigDecimal effectiveQuantity = getEffectiveQuantity(entity, technology);
-
-        calculateTotalCosts(entity, productionCosts, effectiveQuantity);
+        calculateProductionAndTotalCosts(entity, technology);
 
         return entity.getDataDefinition().save(entity);
     }
 
+    @Override
+    public Entity calculateTotalCost(final Entity entity, final Entity technology,
+            final Map<Long, BigDecimal> productCostsPerUnit) {
+        entity.setField(CostCalculationFields.DATE, new Date());
+        operationsCostCalculationService.calculateTotalOperationsCost(entity, isHourlyCostFromOperation(entity), technology);
+        productsCostCalculationService.calculateTotalProductsCost(entity, technology, productCostsPerUnit);
+        calculateProductionAndTotalCosts(entity, technology);
+
+        return entity;
+    }
+
     private void calculateOperationsAndProductsCosts(final Entity entity, final Entity technology) {
-        boolean hourlyCostFromOperation = true;
-        String sourceOfOperationCosts = entity.getStringField("sourceOfOperationCosts");
-        if (sourceOfOperationCosts != null
-                && SourceOfOperationCosts.PARAMETERS.equals(SourceOfOperationCosts.parseString(sourceOfOperationCosts))) {
-            hourlyCostFromOperation = false;
-        }
-        operationsCostCalculationService.calculateOperationsCost(entity, hourlyCostFromOperation, technology);
+        operationsCostCalculationService.calculateOperationsCost(entity, isHourlyCostFromOperation(entity), technology);
 
         productsCostCalculationService.calculateTotalProductsCost(entity, technology);
     }
 
+    private boolean isHourlyCostFromOperation(final Entity entity) {
+        String sourceOfOperationCosts = entity.getStringField("sourceOfOperationCosts");
+
+        return sourceOfOperationCosts == null
+                || !SourceOfOperationCosts.PARAMETERS.equals(SourceOfOperationCosts.parseString(sourceOfOperationCosts));
+    }
+
+    private void calculateProductionAndTotalCosts(final Entity entity, final Entity technology) {
+        final BigDecimal productionCosts = calculateProductionCost(entity);
+        calculateMarginsAndOverheads(entity, productionCosts);
+        final BigDecimal effectiveQuantity = getEffectiveQuantity(entity, technology);
+
+        calculateTotalCosts(entity, productionCosts, effectiveQuantity);
+    }
+
     @Override
     public void calculateTotalCosts(final Entity entity, final BigDecimal productionCosts, final BigDecimal quantity) {
         final BigDecimal materialCosts = BigDecimalUtils.convertNullToZero(entity
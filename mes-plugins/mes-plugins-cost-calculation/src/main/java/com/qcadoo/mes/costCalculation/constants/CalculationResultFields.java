@@ -51,4 +51,6 @@ public final class CalculationResultFields {
 
     public static final String NO_MATERIAL_PRICE = "noMaterialPrice";
 
+    public static final String CALCULATION_DURATION = "calculationDuration";
+
 }
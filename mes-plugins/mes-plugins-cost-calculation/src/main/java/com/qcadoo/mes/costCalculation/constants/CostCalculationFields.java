@@ -111,4 +111,12 @@ public final class CostCalculationFields {
 
     public static final String IS_SET_FIELDS_FROM_PARAMETER = "isSetFieldsFromParameter";
 
+    public static final String CALCULATION_IN_PROGRESS = "calculationInProgress";
+
+    public static final String CALCULATION_PROGRESS = "calculationProgress";
+
+    public static final String CALCULATION_NODE = "calculationNode";
+
+    public static final String FAILED_TECHNOLOGIES = "failedTechnologies";
+
 }
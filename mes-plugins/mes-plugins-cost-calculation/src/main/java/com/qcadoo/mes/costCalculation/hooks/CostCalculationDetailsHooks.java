@@ -39,7 +39,9 @@ import com.qcadoo.mes.costCalculation.constants.CostCalculationConstants;
 import com.qcadoo.mes.costCalculation.constants.CostCalculationFields;
 import com.qcadoo.mes.costCalculation.constants.SourceOfOperationCosts;
 import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.IntegerUtils;
 import com.qcadoo.model.api.NumberService;
+import com.qcadoo.view.api.ComponentState;
 import com.qcadoo.view.api.ViewDefinitionState;
 import com.qcadoo.view.api.components.*;
 import com.qcadoo.view.api.ribbon.RibbonActionItem;
@@ -81,6 +83,26 @@ public class CostCalculationDetailsHooks {
         generateNumber(view);
         fillCurrencyFields(view);
         setButtonsEnabled(view);
+        showCalculationProgress(view);
+    }
+
+    private void showCalculationProgress(final ViewDefinitionState view) {
+        FormComponent costCalculationForm = (FormComponent) view.getComponentByReference(QcadooViewConstants.L_FORM);
+
+        Entity costCalculation = costCalculationForm.getEntity();
+
+        if (costCalculation.getBooleanField(CostCalculationFields.CALCULATION_IN_PROGRESS)) {
+            view.addMessage("costCalculation.messages.info.batchCalculationInProgress", ComponentState.MessageType.INFO, false,
+                    String.valueOf(costCalculation.getIntegerField(CostCalculationFields.CALCULATION_PROGRESS)));
+        } else {
+            int failedTechnologies = IntegerUtils
+                    .convertNullToZero(costCalculation.getIntegerField(CostCalculationFields.FAILED_TECHNOLOGIES));
+
+            if (failedTechnologies > 0) {
+                view.addMessage("costCalculation.messages.failure.batchCalculationFailures", ComponentState.MessageType.FAILURE,
+                        false, String.valueOf(failedTechnologies));
+            }
+        }
     }
 
     public void setFieldsEnabled(final ViewDefinitionState view) {
@@ -23,6 +23,7 @@
  */
 package com.qcadoo.mes.costCalculation.listeners;
 
+import com.qcadoo.mes.costCalculation.CostCalculationBatchService;
 import com.qcadoo.mes.costCalculation.CostCalculationService;
 import com.qcadoo.mes.costCalculation.constants.CalculationResultFields;
 import com.qcadoo.mes.costCalculation.constants.CostCalculationConstants;
@@ -55,6 +56,9 @@ public class CostCalculationDetailsListeners {
     @Autowired
     private CostCalculationService costCalculationService;
 
+    @Autowired
+    private CostCalculationBatchService costCalculationBatchService;
+
     @Autowired
     private CostCalculationReportService costCalculationReportService;
 
@@ -73,9 +77,15 @@ public class CostCalculationDetailsListeners {
 
         Entity costCalculation = getEntityFromForm(view);
         List<Entity> technologies = costCalculation.getManyToManyField(CostCalculationFields.TECHNOLOGIES);
+        if (technologies.size() > 1) {
+            generateCostCalculations(view, costCalculation, technologies);
+
+            return;
+        }
         if (technologies.size() == 1) {
             Entity technology = technologies.get(0);
             productStructureTreeService.generateProductStructureTree(null, technology);
+            long startTime = System.currentTimeMillis();
             costCalculation = costCalculationService.calculateTotalCost(costCalculation, technology);
 
             costCalculationService.calculateSellPriceOverhead(costCalculation);
@@ -109,6 +119,8 @@ public class CostCalculationDetailsListeners {
             calculationResult.setField(CalculationResultFields.SELLING_PRICE, numberService
                     .setScaleWithDefaultMathContext(costCalculation.getDecimalField(CostCalculationFields.SELL_PRICE_VALUE), 2));
             calculationResult.setField(CalculationResultFields.NO_MATERIAL_PRICE, false);
+            calculationResult.setField(CalculationResultFields.CALCULATION_DURATION,
+                    (int) (System.currentTimeMillis() - startTime));
             calculationResultDD.save(calculationResult);
             costCalculationReportService.generateCostCalculationReport(view, state, args);
         }
@@ -117,6 +129,29 @@ public class CostCalculationDetailsListeners {
                 .addMessage("costCalculation.messages.success.calculationComplete", MessageType.SUCCESS);
     }
 
+    private void generateCostCalculations(final ViewDefinitionState view, final Entity costCalculation,
+            final List<Entity> technologies) {
+        FormComponent costCalculationForm = (FormComponent) view.getComponentByReference(QcadooViewConstants.L_FORM);
+        DataDefinition costCalculationDD = costCalculation.getDataDefinition();
+        Long costCalculationId = costCalculation.getId();
+
+        if (!costCalculationBatchService.tryStartCalculation(costCalculationId)) {
+            addCalculationInProgressMessage(view, costCalculationDD.get(costCalculationId));
+
+            return;
+        }
+
+        costCalculationForm.setEntity(costCalculationDD.get(costCalculationId));
+        view.addMessage("costCalculation.messages.info.batchCalculationStarted", MessageType.INFO, false,
+                String.valueOf(technologies.size()));
+        costCalculationBatchService.performCalculation(costCalculationId);
+    }
+
+    public void addCalculationInProgressMessage(final ViewDefinitionState view, final Entity costCalculation) {
+        view.addMessage("costCalculation.messages.info.batchCalculationInProgress", MessageType.INFO, false,
+                String.valueOf(costCalculation.getIntegerField(CostCalculationFields.CALCULATION_PROGRESS)));
+    }
+
     private Entity getEntityFromForm(final ViewDefinitionState view) {
         FormComponent costCalculationForm = (FormComponent) view.getComponentByReference(QcadooViewConstants.L_FORM);
         checkArgument(costCalculationForm != null, "form is null");
@@ -26,11 +26,21 @@ package com.qcadoo.mes.costNormsForMaterials;
 import com.qcadoo.model.api.Entity;
 
 import java.math.BigDecimal;
+import java.util.Map;
 
 public interface ProductsCostCalculationService {
 
     void calculateTotalProductsCost(final Entity costCalculation, final Entity technology);
 
+    /**
+     * Calculates total products cost like {@link #calculateTotalProductsCost(Entity, Entity)}, but takes costs per unit of
+     * products from given map and puts there the missing ones, so that products shared by many technologies are read once.
+     * The map has to be thread safe if it's shared between threads and mustn't be shared between different material costs
+     * modes.
+     */
+    void calculateTotalProductsCost(final Entity costCalculation, final Entity technology,
+            final Map<Long, BigDecimal> productCostsPerUnit);
+
     BigDecimal calculateProductCostForGivenQuantity(final Entity product, final BigDecimal quantity,
             final String materialCostsUsed);
 
@@ -58,6 +58,33 @@ public class ProductsCostCalculationServiceImpl implements ProductsCostCalculati
         entity.setField("totalMaterialCosts", numberService.setScaleWithDefaultMathContext(result));
     }
 
+    @Override
+    public void calculateTotalProductsCost(final Entity entity, final Entity technology,
+            final Map<Long, BigDecimal> productCostsPerUnit) {
+        checkArgument(entity != null);
+        BigDecimal quantity = BigDecimalUtils.convertNullToZero(entity.getDecimalField("quantity"));
+
+        String materialCostsUsed = entity.getStringField("materialCostsUsed");
+
+        checkArgument(materialCostsUsed != null, "materialCostsUsed is null!");
+
+        Map<Long, BigDecimal> neededProductQuantities = getNeededProductQuantities(entity, technology, quantity,
+                MrpAlgorithm.ONLY_COMPONENTS);
+        BigDecimal result = BigDecimal.ZERO;
+        for (Entry<Long, BigDecimal> productQuantity : neededProductQuantities.entrySet()) {
+            BigDecimal costPerUnit = productCostsPerUnit.get(productQuantity.getKey());
+            if (costPerUnit == null) {
+                costPerUnit = calculateProductCostPerUnit(productQuantitiesService.getProduct(productQuantity.getKey()),
+                        materialCostsUsed);
+                productCostsPerUnit.putIfAbsent(productQuantity.getKey(), costPerUnit);
+            }
+
+            result = result.add(costPerUnit.multiply(productQuantity.getValue(), numberService.getMathContext()),
+                    numberService.getMathContext());
+        }
+        entity.setField("totalMaterialCosts", numberService.setScaleWithDefaultMathContext(result));
+    }
+
     private Map<Entity, BigDecimal> calculateListProductsCostForPlannedQuantity(final Entity entity, final Entity technology) {
         checkArgument(entity != null);
         BigDecimal quantity = BigDecimalUtils.convertNullToZero(entity.getDecimalField("quantity"));
@@ -72,15 +99,18 @@ public class ProductsCostCalculationServiceImpl implements ProductsCostCalculati
     @Override
     public BigDecimal calculateProductCostForGivenQuantity(final Entity product, final BigDecimal quantity,
             final String materialCostsUsed) {
+        return calculateProductCostPerUnit(product, materialCostsUsed).multiply(quantity, numberService.getMathContext());
+    }
+
+    private BigDecimal calculateProductCostPerUnit(final Entity product, final String materialCostsUsed) {
         BigDecimal cost = BigDecimalUtils.convertNullToZero(product.getField(ProductsCostFields.forMode(
                 materialCostsUsed).getStrValue()));
         BigDecimal costForNumber = BigDecimalUtils.convertNullToOne(product.getDecimalField("costForNumber"));
         if (BigDecimalUtils.valueEquals(costForNumber, BigDecimal.ZERO)) {
             costForNumber = BigDecimal.ONE;
         }
-        BigDecimal costPerUnit = cost.divide(costForNumber, numberService.getMathContext());
 
-        return costPerUnit.multiply(quantity, numberService.getMathContext());
+        return cost.divide(costForNumber, numberService.getMathContext());
     }
 
     private Map<Entity, BigDecimal> getProductWithCostForPlannedQuantities(final Entity entity, final Entity technology,
@@ -42,12 +42,14 @@ import org.springframework.test.util.ReflectionTestUtils;
 
 import java.math.BigDecimal;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.qcadoo.testing.model.EntityTestUtils.*;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 public class ProductsCostCalculationServiceTest {
@@ -135,6 +137,38 @@ public class ProductsCostCalculationServiceTest {
         verifySetDecimalField(costCalculation, "totalMaterialCosts", BigDecimal.valueOf(255));
     }
 
+    @Test
+    public void shouldReadProductCostsOnceWhenCostsPerUnitAreShared() throws Exception {
+        // given
+        String materialCostsUsed = "02average";
+
+        stubStringField(costCalculation, "materialCostsUsed", materialCostsUsed);
+        stubDecimalField(costCalculation, "quantity", BigDecimal.valueOf(5L));
+
+        Map<Long, BigDecimal> neededProductQuantities = ImmutableMap.of(1L, BigDecimal.ONE, 2L, BigDecimal.valueOf(10L));
+        stubNeededProductQuantities(neededProductQuantities);
+
+        Entity firstProduct = mockCostsHolder(1L, materialCostsUsed, BigDecimal.valueOf(100L), BigDecimal.valueOf(20));
+        Entity secondProduct = mockCostsHolder(2L, materialCostsUsed, BigDecimal.valueOf(75L), BigDecimal.valueOf(3L));
+        stubProductResults(ImmutableMap.of(1L, firstProduct, 2L, secondProduct));
+
+        Map<Long, BigDecimal> productCostsPerUnit = new ConcurrentHashMap<>();
+
+        // when
+        productsCostCalculationService.calculateTotalProductsCost(costCalculation, technology, productCostsPerUnit);
+        productsCostCalculationService.calculateTotalProductsCost(costCalculation, technology, productCostsPerUnit);
+
+        // then
+        verify(productQuantitiesService, times(1)).getProduct(1L);
+        verify(productQuantitiesService, times(1)).getProduct(2L);
+
+        ArgumentCaptor<BigDecimal> decimalCaptor = ArgumentCaptor.forClass(BigDecimal.class);
+        verify(costCalculation, times(2)).setField(eq("totalMaterialCosts"), decimalCaptor.capture());
+        for (BigDecimal totalMaterialCosts : decimalCaptor.getAllValues()) {
+            assertTrue(BigDecimalUtils.valueEquals(totalMaterialCosts, BigDecimal.valueOf(255)));
+        }
+    }
+
     @Test
     public void shouldCalculateProductCostUsingAppropriateCostField() throws Exception {
         for (ProductsCostFields productsCostFields : ProductsCostFields.values()) {
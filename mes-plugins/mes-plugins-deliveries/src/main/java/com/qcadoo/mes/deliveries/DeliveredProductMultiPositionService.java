@@ -10,7 +10,9 @@ import java.util.Objects;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.google.common.collect.Lists;
 import com.qcadoo.mes.deliveries.constants.DeliveredProductFields;
 import com.qcadoo.mes.deliveries.constants.DeliveriesConstants;
 import com.qcadoo.mes.deliveries.constants.OrderedProductFields;
@@ -29,6 +31,34 @@ public class DeliveredProductMultiPositionService {
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
+    @Autowired
+    private OrderedProductQuantitiesService orderedProductQuantitiesService;
+
+    /**
+     * Saves given delivered products, stopping at the first invalid one. Quantities of their ordered products are updated
+     * together at the end with one batched statement, instead of once per delivered product.
+     *
+     * @return saved delivered products - if the last one isn't valid, saving has stopped on it
+     */
+    @Transactional
+    public List<Entity> receiveDeliveredProducts(final List<Entity> deliveredProducts) {
+        return orderedProductQuantitiesService.deferUpdates(() -> {
+            List<Entity> savedDeliveredProducts = Lists.newArrayListWithCapacity(deliveredProducts.size());
+
+            for (Entity deliveredProduct : deliveredProducts) {
+                Entity savedDeliveredProduct = deliveredProduct.getDataDefinition().save(deliveredProduct);
+
+                savedDeliveredProducts.add(savedDeliveredProduct);
+
+                if (!savedDeliveredProduct.isValid()) {
+                    break;
+                }
+            }
+
+            return savedDeliveredProducts;
+        });
+    }
+
     public BigDecimal findOrderedQuantity(final Entity delivery, final Entity product, final Entity additionalCode) {
         SearchCriteriaBuilder searchCriteriaBuilder = dataDefinitionService
                 .get(DeliveriesConstants.PLUGIN_IDENTIFIER, DeliveriesConstants.MODEL_ORDERED_PRODUCT).find()
@@ -36,6 +36,19 @@ public class DeliveriesOnStartupService extends Module {
     @Autowired
     private DeliveriesColumnLoader deliveriesColumnLoader;
 
+    @Autowired
+    private OrderedProductQuantitiesService orderedProductQuantitiesService;
+
+    @Override
+    public void enableOnStartup() {
+        orderedProductQuantitiesService.initializeDamagedQuantities();
+    }
+
+    @Override
+    public void enable() {
+        orderedProductQuantitiesService.initializeDamagedQuantities();
+    }
+
     @Transactional
     @Override
     public void multiTenantEnable() {
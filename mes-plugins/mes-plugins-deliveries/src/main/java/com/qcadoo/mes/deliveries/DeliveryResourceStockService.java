@@ -0,0 +1,128 @@
+package com.qcadoo.mes.deliveries;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.deliveries.constants.DeliveryFields;
+import com.qcadoo.mes.deliveries.constants.OrderedProductFields;
+import com.qcadoo.mes.deliveries.states.constants.DeliveryStateStringValues;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDelta;
+import com.qcadoo.mes.materialFlowResources.service.ResourceStockLedgerService;
+import com.qcadoo.mes.materialFlowResources.service.ResourceStockOrderedQuantitiesProvider;
+import com.qcadoo.model.api.BigDecimalUtils;
+import com.qcadoo.model.api.Entity;
+
+@Service
+public class DeliveryResourceStockService implements ResourceStockOrderedQuantitiesProvider {
+
+    private static final List<String> L_ORDERED_STATES = Lists.newArrayList(DeliveryStateStringValues.DRAFT,
+            DeliveryStateStringValues.PREPARED, DeliveryStateStringValues.DURING_CORRECTION, DeliveryStateStringValues.APPROVED);
+
+    private static final String L_ORDERED_PRODUCT_REMOVAL_DELTAS = "SELECT dop.product_id, dd.location_id, 0 AS quantity, "
+            + "0 AS quantityinadditionalunit, 0 AS totalvalue, 0 AS reservedquantity, SUM(dop.orderedquantity) AS orderedquantity "
+            + "FROM deliveries_orderedproduct dop JOIN deliveries_delivery dd ON dd.id = dop.delivery_id "
+            + "WHERE dop.id IN (:ids) AND dd.active = true AND dd.state IN ('" + String.join("', '", L_ORDERED_STATES) + "') "
+            + "GROUP BY dop.product_id, dd.location_id";
+
+    private static final String L_ORDERED_QUANTITIES = "SELECT dop.product_id, dd.location_id, dop.orderedquantity AS quantity "
+            + "FROM deliveries_orderedproduct dop JOIN deliveries_delivery dd ON dd.id = dop.delivery_id "
+            + "WHERE dd.active = true AND dd.state IN (:orderedDeliveryStates)";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ResourceStockLedgerService resourceStockLedgerService;
+
+    public void updateResourceStockForOrderedProduct(final Entity orderedProduct) {
+        List<ResourceStockDelta> deltas = Lists.newArrayList();
+
+        Entity delivery = orderedProduct.getBelongsToField(OrderedProductFields.DELIVERY);
+        Entity product = orderedProduct.getBelongsToField(OrderedProductFields.PRODUCT);
+
+        if (Objects.nonNull(delivery) && Objects.nonNull(product) && isOrdered(delivery)) {
+            Entity location = delivery.getBelongsToField(DeliveryFields.LOCATION);
+
+            deltas.add(new ResourceStockDelta(product.getId(), location.getId()).addOrderedQuantity(orderedProduct
+                    .getDecimalField(OrderedProductFields.ORDERED_QUANTITY)));
+        }
+
+        if (Objects.nonNull(orderedProduct.getId())) {
+            deltas.addAll(resourceStockLedgerService.getRemovalDeltas(L_ORDERED_PRODUCT_REMOVAL_DELTAS,
+                    Collections.singletonList(orderedProduct.getId())));
+        }
+
+        resourceStockLedgerService.applyDeltas(deltas);
+    }
+
+    public void removeResourceStockForOrderedProduct(final Entity orderedProduct) {
+        resourceStockLedgerService.applyDeltas(resourceStockLedgerService.getRemovalDeltas(L_ORDERED_PRODUCT_REMOVAL_DELTAS,
+                Collections.singletonList(orderedProduct.getId())));
+    }
+
+    public void updateResourceStockForDelivery(final Entity delivery) {
+        if (Objects.isNull(delivery.getId())) {
+            return;
+        }
+
+        Map<String, Object> deliveryFromDB = jdbcTemplate.queryForMap(
+                "SELECT location_id, active, state FROM deliveries_delivery WHERE id = :id",
+                Collections.singletonMap("id", delivery.getId()));
+
+        Long oldLocationId = (Long) deliveryFromDB.get("location_id");
+        boolean wasOrdered = Objects.nonNull(oldLocationId) && Boolean.TRUE.equals(deliveryFromDB.get("active"))
+                && L_ORDERED_STATES.contains(deliveryFromDB.get("state"));
+
+        Entity location = delivery.getBelongsToField(DeliveryFields.LOCATION);
+        Long newLocationId = Objects.isNull(location) ? null : location.getId();
+        boolean isOrdered = isOrdered(delivery);
+
+        if ((wasOrdered == isOrdered) && (!isOrdered || oldLocationId.equals(newLocationId))) {
+            return;
+        }
+
+        List<ResourceStockDelta> deltas = Lists.newArrayList();
+
+        List<Map<String, Object>> orderedQuantities = jdbcTemplate.queryForList(
+                "SELECT product_id, SUM(orderedquantity) AS orderedquantity FROM deliveries_orderedproduct "
+                        + "WHERE delivery_id = :id GROUP BY product_id", Collections.singletonMap("id", delivery.getId()));
+
+        for (Map<String, Object> orderedQuantity : orderedQuantities) {
+            Long productId = (Long) orderedQuantity.get("product_id");
+            BigDecimal quantity = BigDecimalUtils.convertNullToZero(orderedQuantity.get("orderedquantity"));
+
+            if (wasOrdered) {
+                deltas.add(new ResourceStockDelta(productId, oldLocationId).addOrderedQuantity(quantity.negate()));
+            }
+            if (isOrdered) {
+                deltas.add(new ResourceStockDelta(productId, newLocationId).addOrderedQuantity(quantity));
+            }
+        }
+
+        resourceStockLedgerService.applyDeltas(deltas);
+    }
+
+    @Override
+    public String getOrderedQuantitiesQuery() {
+        return L_ORDERED_QUANTITIES;
+    }
+
+    @Override
+    public Map<String, ?> getOrderedQuantitiesParameters() {
+        return Collections.singletonMap("orderedDeliveryStates", L_ORDERED_STATES);
+    }
+
+    private boolean isOrdered(final Entity delivery) {
+        return delivery.isActive() && Objects.nonNull(delivery.getBelongsToField(DeliveryFields.LOCATION))
+                && L_ORDERED_STATES.contains(delivery.getStringField(DeliveryFields.STATE));
+    }
+
+}
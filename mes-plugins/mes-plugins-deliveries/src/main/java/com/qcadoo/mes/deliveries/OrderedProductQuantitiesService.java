@@ -0,0 +1,212 @@
+package com.qcadoo.mes.deliveries;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.deliveries.constants.DeliveredProductFields;
+import com.qcadoo.model.api.BigDecimalUtils;
+import com.qcadoo.model.api.Entity;
+
+/**
+ * Keeps delivered, additional delivered and damaged quantities of ordered products as running totals of their delivered
+ * products. Totals are changed by deltas of the saved or deleted delivered product instead of being summed up again, so
+ * receiving a delivery line costs a single update no matter how many lines the ordered product already has. Damaged total of
+ * ordered products created before it was introduced is summed up once on startup, see {@link #initializeDamagedQuantities()}.
+ * Deltas are computed in save hook, before validation, so they are written only at the end of the transaction (or of the
+ * deferred work) and only for delivered products which turned out to be valid - deltas aren't corrected afterwards.
+ */
+@Service
+public class OrderedProductQuantitiesService {
+
+    private static final String UPDATE_ORDERED_PRODUCT_QUANTITIES = "UPDATE deliveries_orderedproduct SET "
+            + "deliveredquantity = COALESCE(deliveredquantity, 0) + :deliveredQuantity, "
+            + "additionaldeliveredquantity = COALESCE(additionaldeliveredquantity, 0) + :additionalQuantity, "
+            + "damagedquantity = damagedquantity + :damagedQuantity WHERE id = :orderedProductId";
+
+    private static final String INITIALIZE_DAMAGED_QUANTITIES = "UPDATE deliveries_orderedproduct orderedproduct SET "
+            + "damagedquantity = COALESCE((SELECT SUM(deliveredproduct.damagedquantity) FROM deliveries_deliveredproduct "
+            + "deliveredproduct WHERE deliveredproduct.orderedproduct_id = orderedproduct.id), 0) "
+            + "WHERE orderedproduct.damagedquantity IS NULL";
+
+    private static final ThreadLocal<List<PendingDeltas>> DEFERRED_DELTAS = new ThreadLocal<>();
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    /**
+     * Sums up damaged total of ordered products which don't have it yet from their delivered products, so that deltas can be
+     * applied to it afterwards. Ordered products which already have it are skipped, so it's cheap to run on every startup.
+     */
+    @Transactional
+    public void initializeDamagedQuantities() {
+        jdbcTemplate.update(INITIALIZE_DAMAGED_QUANTITIES, new MapSqlParameterSource());
+    }
+
+    /**
+     * Moves quantities of delivered product from ordered product it was counted in (as it is stored in database) to ordered
+     * product it will be counted in (as it is being saved). Either side may be missing, e.g. on create or delete. Quantities
+     * are moved once delivered product is saved - when it isn't valid by then, nothing is changed.
+     */
+    public void updateOrderedProducts(final Long oldOrderedProductId, final Entity deliveredProductDB,
+            final Long newOrderedProductId, final Entity deliveredProduct) {
+        Map<Long, QuantitiesDelta> deltas = Maps.newHashMap();
+
+        if (Objects.nonNull(oldOrderedProductId) && Objects.nonNull(deliveredProductDB)) {
+            deltas.computeIfAbsent(oldOrderedProductId, QuantitiesDelta::new).subtract(deliveredProductDB);
+        }
+        if (Objects.nonNull(newOrderedProductId) && Objects.nonNull(deliveredProduct)) {
+            deltas.computeIfAbsent(newOrderedProductId, QuantitiesDelta::new).add(deliveredProduct);
+        }
+
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        PendingDeltas pendingDeltas = new PendingDeltas(deliveredProduct, deltas);
+        List<PendingDeltas> deferredDeltas = DEFERRED_DELTAS.get();
+
+        if (Objects.nonNull(deferredDeltas)) {
+            deferredDeltas.add(pendingDeltas);
+        } else if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void beforeCommit(final boolean readOnly) {
+                    applyDeltas(Lists.newArrayList(pendingDeltas));
+                }
+            });
+        } else {
+            applyDeltas(Lists.newArrayList(pendingDeltas));
+        }
+    }
+
+    /**
+     * Runs given work collecting quantity changes of ordered products and writes them at the end with one batched update,
+     * instead of one update per delivered product. If the work fails, nothing is written, if some of delivered products
+     * weren't saved, their quantities are skipped.
+     */
+    public <T> T deferUpdates(final Supplier<T> work) {
+        if (Objects.nonNull(DEFERRED_DELTAS.get())) {
+            return work.get();
+        }
+
+        DEFERRED_DELTAS.set(Lists.newArrayList());
+
+        try {
+            T result = work.get();
+
+            applyDeltas(DEFERRED_DELTAS.get());
+
+            return result;
+        } finally {
+            DEFERRED_DELTAS.remove();
+        }
+    }
+
+    private void applyDeltas(final List<PendingDeltas> pendingDeltas) {
+        Map<Long, QuantitiesDelta> deltas = Maps.newLinkedHashMap();
+
+        for (PendingDeltas pending : pendingDeltas) {
+            if (pending.isSaved()) {
+                pending.deltas.forEach((orderedProductId, delta) -> deltas
+                        .computeIfAbsent(orderedProductId, QuantitiesDelta::new).add(delta));
+            }
+        }
+
+        List<SqlParameterSource> updates = Lists.newArrayList();
+
+        for (QuantitiesDelta delta : deltas.values()) {
+            if (!delta.isZero()) {
+                updates.add(new MapSqlParameterSource().addValue("orderedProductId", delta.orderedProductId)
+                        .addValue("deliveredQuantity", delta.deliveredQuantity)
+                        .addValue("additionalQuantity", delta.additionalQuantity)
+                        .addValue("damagedQuantity", delta.damagedQuantity));
+            }
+        }
+
+        if (updates.size() == 1) {
+            jdbcTemplate.update(UPDATE_ORDERED_PRODUCT_QUANTITIES, updates.get(0));
+        } else if (!updates.isEmpty()) {
+            jdbcTemplate.batchUpdate(UPDATE_ORDERED_PRODUCT_QUANTITIES, updates.toArray(new SqlParameterSource[updates.size()]));
+        }
+    }
+
+    private static final class PendingDeltas {
+
+        private final Entity deliveredProduct;
+
+        private final Map<Long, QuantitiesDelta> deltas;
+
+        private PendingDeltas(final Entity deliveredProduct, final Map<Long, QuantitiesDelta> deltas) {
+            this.deliveredProduct = deliveredProduct;
+            this.deltas = deltas;
+        }
+
+        private boolean isSaved() {
+            return Objects.isNull(deliveredProduct) || deliveredProduct.isValid();
+        }
+
+    }
+
+    private static final class QuantitiesDelta {
+
+        private final Long orderedProductId;
+
+        private BigDecimal deliveredQuantity = BigDecimal.ZERO;
+
+        private BigDecimal additionalQuantity = BigDecimal.ZERO;
+
+        private BigDecimal damagedQuantity = BigDecimal.ZERO;
+
+        private QuantitiesDelta(final Long orderedProductId) {
+            this.orderedProductId = orderedProductId;
+        }
+
+        private void add(final Entity deliveredProduct) {
+            add(getQuantity(deliveredProduct, DeliveredProductFields.DELIVERED_QUANTITY),
+                    getQuantity(deliveredProduct, DeliveredProductFields.ADDITIONAL_QUANTITY),
+                    getQuantity(deliveredProduct, DeliveredProductFields.DAMAGED_QUANTITY));
+        }
+
+        private void subtract(final Entity deliveredProduct) {
+            add(getQuantity(deliveredProduct, DeliveredProductFields.DELIVERED_QUANTITY).negate(),
+                    getQuantity(deliveredProduct, DeliveredProductFields.ADDITIONAL_QUANTITY).negate(),
+                    getQuantity(deliveredProduct, DeliveredProductFields.DAMAGED_QUANTITY).negate());
+        }
+
+        private void add(final QuantitiesDelta delta) {
+            add(delta.deliveredQuantity, delta.additionalQuantity, delta.damagedQuantity);
+        }
+
+        private void add(final BigDecimal deliveredQuantity, final BigDecimal additionalQuantity,
+                final BigDecimal damagedQuantity) {
+            this.deliveredQuantity = this.deliveredQuantity.add(deliveredQuantity);
+            this.additionalQuantity = this.additionalQuantity.add(additionalQuantity);
+            this.damagedQuantity = this.damagedQuantity.add(damagedQuantity);
+        }
+
+        private boolean isZero() {
+            return deliveredQuantity.signum() == 0 && additionalQuantity.signum() == 0 && damagedQuantity.signum() == 0;
+        }
+
+        private static BigDecimal getQuantity(final Entity deliveredProduct, final String fieldName) {
+            return BigDecimalUtils.convertNullToZero(deliveredProduct.getDecimalField(fieldName));
+        }
+
+    }
+
+}
@@ -47,6 +47,8 @@ public final class OrderedProductFields {
 
     public static final String ADDITIONAL_DELIVERED_QUANTITY = "additionalDeliveredQuantity";
 
+    public static final String DAMAGED_QUANTITY = "damagedQuantity";
+
     public static final String DESCRIPTION = "description";
 
     public static final String ADDITIONAL_CODE = "additionalCode";
@@ -38,6 +38,7 @@ import com.qcadoo.mes.advancedGenealogy.constants.BatchNumberUniqueness;
 import com.qcadoo.mes.advancedGenealogy.hooks.BatchModelValidators;
 import com.qcadoo.mes.basic.ParameterService;
 import com.qcadoo.mes.deliveries.DeliveriesService;
+import com.qcadoo.mes.deliveries.OrderedProductQuantitiesService;
 import com.qcadoo.mes.deliveries.ReservationService;
 import com.qcadoo.mes.deliveries.constants.DeliveredProductFields;
 import com.qcadoo.mes.deliveries.constants.DeliveryFields;
@@ -80,6 +81,9 @@ public class DeliveredProductHooks {
     @Autowired
     private ReservationService reservationService;
 
+    @Autowired
+    private OrderedProductQuantitiesService orderedProductQuantitiesService;
+
     @Autowired
     private PalletValidatorService palletValidatorService;
 
@@ -97,37 +101,35 @@ public class DeliveredProductHooks {
         deliveriesService.calculatePricePerUnit(deliveredProduct, DeliveredProductFields.DELIVERED_QUANTITY);
         reservationService.deleteReservationsForDeliveredProductIfChanged(deliveredProduct);
 
-        updateDeliveredAndAdditionalQuantityInOrderedProduct(deliveredProductDD, deliveredProduct);
+        updateDeliveredAndAdditionalQuantityInOrderedProduct(deliveredProduct);
         tryFillStorageLocation(deliveredProduct);
 
         createBatch(deliveredProduct);
     }
 
-    private void updateDeliveredAndAdditionalQuantityInOrderedProduct(final DataDefinition deliveredProductDD,
-            final Entity deliveredProduct) {
-        if (Objects.nonNull(deliveredProduct.getId())) {
-            Entity deliveredProductDB = deliveredProduct.getDataDefinition().get(deliveredProduct.getId());
-
-            boolean isDeliveredProductChange = checkIfDeliveredProductChanged(deliveredProductDB, deliveredProduct);
+    private void updateDeliveredAndAdditionalQuantityInOrderedProduct(final Entity deliveredProduct) {
+        Entity deliveredProductDB = null;
+        Entity orderedProductDB = null;
 
-            if (isDeliveredProductChange) {
-                BigDecimal deliveredQuantity = BigDecimal.ZERO;
-                BigDecimal additionalQuantity = BigDecimal.ZERO;
+        if (Objects.nonNull(deliveredProduct.getId())) {
+            deliveredProductDB = deliveredProduct.getDataDefinition().get(deliveredProduct.getId());
+            orderedProductDB = deliveredProductDB.getBelongsToField(DeliveredProductFields.ORDERED_PRODUCT);
+        }
 
-                Entity orderedProduct = deliveredProduct.getBelongsToField(DeliveredProductFields.ORDERED_PRODUCT);
+        if (Objects.nonNull(orderedProductDB) && !checkIfDeliveredProductChanged(deliveredProductDB, deliveredProduct)) {
+            deliveredProduct.setField(DeliveredProductFields.ORDERED_PRODUCT, orderedProductDB);
+        } else {
+            Optional<Entity> maybeOrderedProduct = findOrderedProductForDeliveredProduct(deliveredProduct);
 
-                updateDeliveredAndAdditionalQuantityInOrderedProduct(deliveredProductDB, deliveredQuantity, additionalQuantity,
-                        orderedProduct);
+            if (maybeOrderedProduct.isPresent()) {
+                deliveredProduct.setField(DeliveredProductFields.ORDERED_PRODUCT, maybeOrderedProduct.get());
             }
         }
 
-        BigDecimal deliveredQuantity = BigDecimalUtils
-                .convertNullToZero(deliveredProduct.getDecimalField(DeliveredProductFields.DELIVERED_QUANTITY));
-        BigDecimal additionalQuantity = BigDecimalUtils
-                .convertNullToZero(deliveredProduct.getDecimalField(DeliveredProductFields.ADDITIONAL_QUANTITY));
+        Entity orderedProduct = deliveredProduct.getBelongsToField(DeliveredProductFields.ORDERED_PRODUCT);
 
-        updateDeliveredAndAdditionalQuantityInOrderedProduct(deliveredProductDD, deliveredProduct, deliveredQuantity,
-                additionalQuantity);
+        orderedProductQuantitiesService.updateOrderedProducts(getId(orderedProductDB), deliveredProductDB, getId(orderedProduct),
+                deliveredProduct);
     }
 
     private boolean checkIfDeliveredProductChanged(final Entity deliveredProductDB, final Entity deliveredProduct) {
@@ -168,68 +170,18 @@ public class DeliveredProductHooks {
         return false;
     }
 
-    private void updateDeliveredAndAdditionalQuantityInOrderedProduct(final DataDefinition deliveredProductDD,
-            final Entity deliveredProduct, BigDecimal deliveredQuantity, BigDecimal additionalQuantity) {
+    private Optional<Entity> findOrderedProductForDeliveredProduct(final Entity deliveredProduct) {
         Optional<Entity> maybeOrderedProduct = deliveriesService.getOrderedProductForDeliveredProduct(deliveredProduct);
 
         if (maybeOrderedProduct.isPresent()) {
-            Entity orderedProduct = maybeOrderedProduct.get();
-
-            deliveredProduct.setField(DeliveredProductFields.ORDERED_PRODUCT, orderedProduct);
-
-            updateDeliveredAndAdditionalQuantityInOrderedProduct(deliveredProduct, deliveredQuantity, additionalQuantity,
-                    orderedProduct);
-        } else {
-            maybeOrderedProduct = deliveriesService.getSuitableOrderedProductForDeliveredProduct(deliveredProduct);
-
-            if (maybeOrderedProduct.isPresent()) {
-                Entity orderedProduct = maybeOrderedProduct.get();
-
-                deliveredProduct.setField(DeliveredProductFields.ORDERED_PRODUCT, orderedProduct);
-
-                updateDeliveredAndAdditionalQuantityInOrderedProduct(deliveredProduct, deliveredQuantity, additionalQuantity,
-                        orderedProduct);
-            }
+            return maybeOrderedProduct;
         }
-    }
-
-
-
-    private void updateDeliveredAndAdditionalQuantityInOrderedProduct(final Entity deliveredProduct, BigDecimal deliveredQuantity,
-            BigDecimal additionalQuantity, Entity orderedProduct) {
-        if (Objects.nonNull(orderedProduct)) {
-            List<Entity> deliveredProducts = getOtherDeliveredProducts(deliveredProduct, orderedProduct);
-
-            if (!deliveredProducts.isEmpty()) {
-                BigDecimal deliveredQuantityRest = deliveredProducts.stream()
-                        .map(dp -> dp.getDecimalField(DeliveredProductFields.DELIVERED_QUANTITY))
-                        .reduce(BigDecimal.ZERO, BigDecimal::add);
-                deliveredQuantity = deliveredQuantity.add(deliveredQuantityRest, numberService.getMathContext());
-
-                BigDecimal additionalQuantityRest = deliveredProducts.stream()
-                        .map(dp -> dp.getDecimalField(DeliveredProductFields.ADDITIONAL_QUANTITY))
-                        .reduce(BigDecimal.ZERO, BigDecimal::add);
-                additionalQuantity = additionalQuantity.add(additionalQuantityRest, numberService.getMathContext());
-            }
-
-            orderedProduct.setField(OrderedProductFields.DELIVERED_QUANTITY,
-                    numberService.setScaleWithDefaultMathContext(deliveredQuantity));
-            orderedProduct.setField(OrderedProductFields.ADDITIONAL_DELIVERED_QUANTITY,
-                    numberService.setScaleWithDefaultMathContext(additionalQuantity));
 
-            orderedProduct = orderedProduct.getDataDefinition().save(orderedProduct);
-        }
+        return deliveriesService.getSuitableOrderedProductForDeliveredProduct(deliveredProduct);
     }
 
-    private List<Entity> getOtherDeliveredProducts(final Entity deliveredProduct, final Entity orderedProduct) {
-        SearchCriteriaBuilder searchCriteriaBuilder = orderedProduct.getHasManyField(OrderedProductFields.DELIVERED_PRODUCTS)
-                .find();
-
-        if (Objects.nonNull(deliveredProduct.getId())) {
-            searchCriteriaBuilder.add(SearchRestrictions.ne("id", deliveredProduct.getId()));
-        }
-
-        return searchCriteriaBuilder.list().getEntities();
+    private Long getId(final Entity entity) {
+        return Objects.isNull(entity) ? null : entity.getId();
     }
 
     private void tryFillStorageLocation(final Entity deliveredProduct) {
@@ -280,11 +232,9 @@ public class DeliveredProductHooks {
     }
 
     public boolean onDelete(final DataDefinition deliveredProductDD, final Entity deliveredProduct) {
-        BigDecimal deliveredQuantity = BigDecimal.ZERO;
-        BigDecimal additionalQuantity = BigDecimal.ZERO;
+        Entity orderedProduct = deliveredProduct.getBelongsToField(DeliveredProductFields.ORDERED_PRODUCT);
 
-        updateDeliveredAndAdditionalQuantityInOrderedProduct(deliveredProductDD, deliveredProduct, deliveredQuantity,
-                additionalQuantity);
+        orderedProductQuantitiesService.updateOrderedProducts(getId(orderedProduct), deliveredProduct, null, null);
 
         return true;
     }
@@ -25,6 +25,7 @@ package com.qcadoo.mes.deliveries.hooks;
 
 import com.qcadoo.mes.basic.ParameterService;
 import com.qcadoo.mes.deliveries.DeliveriesService;
+import com.qcadoo.mes.deliveries.DeliveryResourceStockService;
 import com.qcadoo.mes.deliveries.ReservationService;
 import com.qcadoo.mes.deliveries.constants.DeliveredProductFields;
 import com.qcadoo.mes.deliveries.constants.DeliveryFields;
@@ -66,6 +67,9 @@ public class DeliveryHooks {
     @Autowired
     private ReservationService reservationService;
 
+    @Autowired
+    private DeliveryResourceStockService deliveryResourceStockService;
+
     public void onCreate(final DataDefinition deliveryDD, final Entity delivery) {
         setInitialState(delivery);
         setDeliveryAddressDefaultValue(delivery);
@@ -84,6 +88,8 @@ public class DeliveryHooks {
 
     public void onSave(final DataDefinition deliveryDD, final Entity delivery) {
         setStorageLocations(delivery);
+
+        deliveryResourceStockService.updateResourceStockForDelivery(delivery);
     }
 
     private void setInitialState(final Entity delivery) {
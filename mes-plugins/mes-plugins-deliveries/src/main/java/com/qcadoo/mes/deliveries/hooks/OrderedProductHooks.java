@@ -39,6 +39,7 @@ import com.qcadoo.mes.advancedGenealogy.AdvancedGenealogyService;
 import com.qcadoo.mes.advancedGenealogy.constants.BatchNumberUniqueness;
 import com.qcadoo.mes.advancedGenealogy.hooks.BatchModelValidators;
 import com.qcadoo.mes.deliveries.DeliveriesService;
+import com.qcadoo.mes.deliveries.DeliveryResourceStockService;
 import com.qcadoo.mes.deliveries.ReservationService;
 import com.qcadoo.mes.deliveries.constants.DeliveryFields;
 import com.qcadoo.mes.deliveries.constants.OrderedProductFields;
@@ -65,6 +66,9 @@ public class OrderedProductHooks {
     @Autowired
     private ReservationService reservationService;
 
+    @Autowired
+    private DeliveryResourceStockService deliveryResourceStockService;
+
     @Autowired
     private AdvancedGenealogyService advancedGenealogyService;
 
@@ -72,12 +76,18 @@ public class OrderedProductHooks {
     private BatchModelValidators batchModelValidators;
 
     public void onSave(final DataDefinition orderedProductDD, final Entity orderedProduct) {
+        if (Objects.isNull(orderedProduct.getId())) {
+            orderedProduct.setField(OrderedProductFields.DAMAGED_QUANTITY, BigDecimal.ZERO);
+        }
+
         deliveriesService.calculatePricePerUnit(orderedProduct, OrderedProductFields.ORDERED_QUANTITY);
 
         calculateReservationQuantities(orderedProduct);
         reservationService.deleteReservationsForOrderedProductIfChanged(orderedProduct);
 
         createBatch(orderedProduct);
+
+        deliveryResourceStockService.updateResourceStockForOrderedProduct(orderedProduct);
     }
 
     private void calculateReservationQuantities(final Entity orderedProduct) {
@@ -122,6 +132,8 @@ public class OrderedProductHooks {
 
     public void onDelete(final DataDefinition orderedProductDD, final Entity orderedProduct) {
         nullifyDeliveredProducts(orderedProduct);
+
+        deliveryResourceStockService.removeResourceStockForOrderedProduct(orderedProduct);
     }
 
     private void nullifyDeliveredProducts(final Entity orderedProduct) {
@@ -23,6 +23,7 @@
  */
 package com.qcadoo.mes.deliveries.listeners;
 
+import com.google.common.collect.Lists;
 import com.qcadoo.mes.advancedGenealogy.constants.BatchFields;
 import com.qcadoo.mes.basic.CalculationQuantityService;
 import com.qcadoo.mes.basic.constants.ProductFields;
@@ -141,13 +142,23 @@ public class DeliveredProductAddMultiListeners {
     public void trySaveDeliveredProducts(final Entity deliveredProductMulti, final List<Entity> deliveredProductMultiPositions) {
         Entity delivery = deliveredProductMulti.getBelongsToField(DeliveredProductMultiFields.DELIVERY);
 
+        List<Entity> deliveredProducts = Lists.newArrayListWithCapacity(deliveredProductMultiPositions.size());
+
         for (Entity position : deliveredProductMultiPositions) {
             Entity deliveredProduct = createDeliveredProduct(position, getDeliveredProductDD());
 
             setStorageLocationFields(deliveredProduct, deliveredProductMulti);
 
             deliveredProduct.setField(DeliveredProductFields.DELIVERY, delivery);
-            deliveredProduct = deliveredProduct.getDataDefinition().save(deliveredProduct);
+
+            deliveredProducts.add(deliveredProduct);
+        }
+
+        List<Entity> savedDeliveredProducts = deliveredProductMultiPositionService.receiveDeliveredProducts(deliveredProducts);
+
+        for (int index = 0; index < savedDeliveredProducts.size(); index++) {
+            Entity position = deliveredProductMultiPositions.get(index);
+            Entity deliveredProduct = savedDeliveredProducts.get(index);
 
             if (!deliveredProduct.isValid()) {
                 for (Map.Entry<String, ErrorMessage> entry : deliveredProduct.getErrors().entrySet()) {
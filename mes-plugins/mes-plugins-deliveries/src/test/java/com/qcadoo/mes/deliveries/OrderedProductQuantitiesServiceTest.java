@@ -0,0 +1,229 @@
+package com.qcadoo.mes.deliveries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.math.BigDecimal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.qcadoo.mes.deliveries.constants.DeliveredProductFields;
+import com.qcadoo.model.api.Entity;
+
+public class OrderedProductQuantitiesServiceTest {
+
+    private static final Long L_ORDERED_PRODUCT_ID = 1L;
+
+    private static final Long L_OTHER_ORDERED_PRODUCT_ID = 2L;
+
+    private OrderedProductQuantitiesService orderedProductQuantitiesService;
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private Entity deliveredProduct, deliveredProductDB;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        orderedProductQuantitiesService = new OrderedProductQuantitiesService();
+
+        ReflectionTestUtils.setField(orderedProductQuantitiesService, "jdbcTemplate", jdbcTemplate);
+
+        stubQuantities(deliveredProductDB, "10", "20", "1");
+        stubQuantities(deliveredProduct, "15", "30", "1");
+
+        given(deliveredProductDB.isValid()).willReturn(true);
+        given(deliveredProduct.isValid()).willReturn(true);
+    }
+
+    @After
+    public void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public final void shouldUpdateOrderedProductByDifferenceOfQuantities() {
+        // given
+        ArgumentCaptor<SqlParameterSource> parametersCaptor = ArgumentCaptor.forClass(SqlParameterSource.class);
+
+        // when
+        orderedProductQuantitiesService.updateOrderedProducts(L_ORDERED_PRODUCT_ID, deliveredProductDB, L_ORDERED_PRODUCT_ID,
+                deliveredProduct);
+
+        // then
+        verify(jdbcTemplate).update(anyString(), parametersCaptor.capture());
+
+        SqlParameterSource parameters = parametersCaptor.getValue();
+
+        assertEquals(L_ORDERED_PRODUCT_ID, parameters.getValue("orderedProductId"));
+        assertEquals(0, new BigDecimal("5").compareTo((BigDecimal) parameters.getValue("deliveredQuantity")));
+        assertEquals(0, new BigDecimal("10").compareTo((BigDecimal) parameters.getValue("additionalQuantity")));
+        assertEquals(0, BigDecimal.ZERO.compareTo((BigDecimal) parameters.getValue("damagedQuantity")));
+    }
+
+    @Test
+    public final void shouldMoveQuantitiesBetweenOrderedProducts() {
+        // given
+        ArgumentCaptor<SqlParameterSource[]> parametersCaptor = ArgumentCaptor.forClass(SqlParameterSource[].class);
+
+        // when
+        orderedProductQuantitiesService.updateOrderedProducts(L_ORDERED_PRODUCT_ID, deliveredProductDB,
+                L_OTHER_ORDERED_PRODUCT_ID, deliveredProduct);
+
+        // then
+        verify(jdbcTemplate).batchUpdate(anyString(), parametersCaptor.capture());
+
+        SqlParameterSource[] parameters = parametersCaptor.getValue();
+
+        assertEquals(2, parameters.length);
+
+        for (SqlParameterSource parameter : parameters) {
+            BigDecimal deliveredQuantity = (BigDecimal) parameter.getValue("deliveredQuantity");
+
+            if (L_ORDERED_PRODUCT_ID.equals(parameter.getValue("orderedProductId"))) {
+                assertEquals(0, new BigDecimal("-10").compareTo(deliveredQuantity));
+            } else {
+                assertEquals(0, new BigDecimal("15").compareTo(deliveredQuantity));
+            }
+        }
+    }
+
+    @Test
+    public final void shouldNotUpdateOrderedProductWhenQuantitiesDidNotChange() {
+        // given
+        stubQuantities(deliveredProduct, "10", "20", "1");
+
+        // when
+        orderedProductQuantitiesService.updateOrderedProducts(L_ORDERED_PRODUCT_ID, deliveredProductDB, L_ORDERED_PRODUCT_ID,
+                deliveredProduct);
+
+        // then
+        verifyZeroInteractions(jdbcTemplate);
+    }
+
+    @Test
+    public final void shouldWriteDeferredUpdatesOnceAtTheEnd() {
+        // given
+        ArgumentCaptor<SqlParameterSource> parametersCaptor = ArgumentCaptor.forClass(SqlParameterSource.class);
+
+        // when
+        orderedProductQuantitiesService.deferUpdates(() -> {
+            orderedProductQuantitiesService.updateOrderedProducts(null, null, L_ORDERED_PRODUCT_ID, deliveredProduct);
+            orderedProductQuantitiesService.updateOrderedProducts(null, null, L_ORDERED_PRODUCT_ID, deliveredProductDB);
+
+            verifyZeroInteractions(jdbcTemplate);
+
+            return null;
+        });
+
+        // then
+        verify(jdbcTemplate).update(anyString(), parametersCaptor.capture());
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), any(SqlParameterSource[].class));
+
+        assertEquals(0, new BigDecimal("25").compareTo((BigDecimal) parametersCaptor.getValue().getValue("deliveredQuantity")));
+        assertEquals(0, new BigDecimal("2").compareTo((BigDecimal) parametersCaptor.getValue().getValue("damagedQuantity")));
+    }
+
+    @Test
+    public final void shouldUpdateOrderedProductBeforeCommitWhenDeliveredProductIsSaved() {
+        // given
+        TransactionSynchronizationManager.initSynchronization();
+
+        // when
+        orderedProductQuantitiesService.updateOrderedProducts(L_ORDERED_PRODUCT_ID, deliveredProductDB, L_ORDERED_PRODUCT_ID,
+                deliveredProduct);
+
+        verifyZeroInteractions(jdbcTemplate);
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.beforeCommit(false));
+
+        // then
+        verify(jdbcTemplate).update(anyString(), any(SqlParameterSource.class));
+    }
+
+    @Test
+    public final void shouldNotUpdateOrderedProductWhenDeliveredProductIsNotValid() {
+        // given
+        TransactionSynchronizationManager.initSynchronization();
+
+        given(deliveredProduct.isValid()).willReturn(false);
+
+        // when
+        orderedProductQuantitiesService.updateOrderedProducts(L_ORDERED_PRODUCT_ID, deliveredProductDB, L_ORDERED_PRODUCT_ID,
+                deliveredProduct);
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.beforeCommit(false));
+
+        // then
+        verifyZeroInteractions(jdbcTemplate);
+    }
+
+    @Test
+    public final void shouldSkipDeferredUpdatesOfNotValidDeliveredProducts() {
+        // given
+        ArgumentCaptor<SqlParameterSource> parametersCaptor = ArgumentCaptor.forClass(SqlParameterSource.class);
+
+        given(deliveredProduct.isValid()).willReturn(false);
+
+        // when
+        orderedProductQuantitiesService.deferUpdates(() -> {
+            orderedProductQuantitiesService.updateOrderedProducts(null, null, L_ORDERED_PRODUCT_ID, deliveredProduct);
+            orderedProductQuantitiesService.updateOrderedProducts(null, null, L_ORDERED_PRODUCT_ID, deliveredProductDB);
+
+            return null;
+        });
+
+        // then
+        verify(jdbcTemplate).update(anyString(), parametersCaptor.capture());
+
+        assertEquals(0, new BigDecimal("10").compareTo((BigDecimal) parametersCaptor.getValue().getValue("deliveredQuantity")));
+    }
+
+    @Test
+    public final void shouldInitializeOnlyMissingDamagedQuantitiesFromDeliveredProducts() {
+        // given
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+
+        // when
+        orderedProductQuantitiesService.initializeDamagedQuantities();
+
+        // then
+        verify(jdbcTemplate).update(queryCaptor.capture(), any(SqlParameterSource.class));
+
+        String query = queryCaptor.getValue();
+
+        assertTrue(query.contains("SUM(deliveredproduct.damagedquantity)"));
+        assertTrue(query.endsWith("WHERE orderedproduct.damagedquantity IS NULL"));
+    }
+
+    private void stubQuantities(final Entity entity, final String deliveredQuantity, final String additionalQuantity,
+            final String damagedQuantity) {
+        given(entity.getDecimalField(DeliveredProductFields.DELIVERED_QUANTITY))
+                .willReturn(new BigDecimal(deliveredQuantity));
+        given(entity.getDecimalField(DeliveredProductFields.ADDITIONAL_QUANTITY))
+                .willReturn(new BigDecimal(additionalQuantity));
+        given(entity.getDecimalField(DeliveredProductFields.DAMAGED_QUANTITY))
+                .willReturn(new BigDecimal(damagedQuantity));
+    }
+
+}
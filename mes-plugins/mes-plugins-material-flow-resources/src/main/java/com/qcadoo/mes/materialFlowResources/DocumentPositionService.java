@@ -10,6 +10,9 @@ import com.qcadoo.mes.basic.controllers.dataProvider.DataProvider;
 import com.qcadoo.mes.basic.controllers.dataProvider.dto.AbstractDTO;
 import com.qcadoo.mes.basic.controllers.dataProvider.dto.ProductDTO;
 import com.qcadoo.mes.basic.controllers.dataProvider.responses.DataResponse;
+import com.qcadoo.mes.basic.lookup.LookupIndexService;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
+import com.qcadoo.mes.basic.lookup.LookupResult;
 import com.qcadoo.mes.materialFlowResources.constants.DocumentFields;
 import com.qcadoo.mes.materialFlowResources.constants.DocumentState;
 import com.qcadoo.mes.materialFlowResources.constants.DocumentType;
@@ -18,12 +21,15 @@ import com.qcadoo.mes.materialFlowResources.service.ReservationsService;
 import com.qcadoo.plugin.api.PluginManager;
 
 import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,6 +50,12 @@ public class DocumentPositionService {
 
     public static final String ID = "id";
 
+    private static final String L_AFTER_POSITION_ID = "afterPositionId";
+
+    private static final String L_AFTER_SORT_KEY = "afterSortKey";
+
+    private static final String L_PER_PAGE = "perPage";
+
     @Autowired
     private NamedParameterJdbcTemplate jdbcTemplate;
 
@@ -68,114 +80,249 @@ public class DocumentPositionService {
     @Autowired
     private PluginManager pluginManager;
 
+    @Autowired
+    private DocumentPositionsGridCache documentPositionsGridCache;
+
+    @Autowired
+    private LookupIndexService lookupIndexService;
+
     public GridResponse<DocumentPositionDTO> findAll(final Long documentId, final String _sidx, final String _sord, int page,
             int perPage, final DocumentPositionDTO position, final Map<String, String> attributeFilters) {
-        String sidx = _sidx != null ? _sidx : "";
+        DocumentPositionsGridCache.GridRows gridRows = findGridRows(documentId, _sidx, _sord, position, attributeFilters);
+
+        return new GridResponse<>(page, Double.valueOf(Math.ceil((1.0 * gridRows.size()) / perPage)).intValue(), gridRows.size(),
+                gridRows.getRows(perPage * (page - 1), perPage));
+    }
+
+    /**
+     * Keyset variant of findAll - returns positions following given position in the same order and with the same filters. The
+     * page is selected by comparing (sort column, id) of positions with the values of given position, so it doesn't depend on
+     * number of preceding positions. Page number and total aren't known, records is the number of returned positions.
+     * 
+     * @param afterPositionId
+     *            id of the last position of previous page or null for the first page
+     * @return positions following given one or an empty page, if given position doesn't exist in the document
+     */
+    public GridResponse<DocumentPositionDTO> findAllAfter(final Long documentId, final String _sidx, final String _sord,
+            final Long afterPositionId, int perPage, final DocumentPositionDTO position,
+            final Map<String, String> attributeFilters) {
+        String sord = getSortOrder(_sord);
+        String orderBy = getOrderBy(_sidx);
+        List<String> attrCloumns = getAttributeColumns();
+
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        String positionsQuery = getPositionsQuery(documentId, attrCloumns, parameters);
+        List<String> conditions = getConditions(position, attributeFilters, parameters);
+
+        if (Objects.nonNull(afterPositionId)) {
+            parameters.put(L_AFTER_POSITION_ID, afterPositionId);
+
+            List<Object> afterSortKeys = jdbcTemplate.queryForList("SELECT " + orderBy + " FROM (" + positionsQuery
+                    + ") afterposition WHERE id = :afterPositionId", parameters, Object.class);
+
+            if (afterSortKeys.isEmpty()) {
+                return new GridResponse<>(0, 0, 0, Collections.emptyList());
+            }
+
+            Object afterSortKey = afterSortKeys.get(0);
+
+            parameters.put(L_AFTER_SORT_KEY, afterSortKey);
+
+            conditions.add(getKeysetCondition(orderBy, "desc".equals(sord), Objects.isNull(afterSortKey)));
+        }
+
+        parameters.put(L_PER_PAGE, perPage);
+
+        String queryRecords = positionsQuery + getWhere(conditions) + "ORDER BY " + orderBy + " " + sord + ", id " + sord
+                + " LIMIT :perPage";
+
+        List<DocumentPositionDTO> rows = jdbcTemplate.query(queryRecords, parameters,
+                (resultSet, i) -> mapPosition(resultSet, attrCloumns));
+
+        return new GridResponse<>(0, 0, rows.size(), rows);
+    }
+
+    /**
+     * Rows are ordered by sort column (nulls last when ascending, first when descending, like in PostgreSQL) and id.
+     */
+    private String getKeysetCondition(final String orderBy, final boolean descending, final boolean afterNullSortKey) {
+        if (descending) {
+            if (afterNullSortKey) {
+                return "((" + orderBy + " IS NULL AND id < :afterPositionId) OR " + orderBy + " IS NOT NULL)";
+            }
+
+            return "(" + orderBy + ", id) < (:afterSortKey, :afterPositionId)";
+        } else {
+            if (afterNullSortKey) {
+                return "(" + orderBy + " IS NULL AND id > :afterPositionId)";
+            }
+
+            return "((" + orderBy + ", id) > (:afterSortKey, :afterPositionId) OR " + orderBy + " IS NULL)";
+        }
+    }
+
+    private DocumentPositionsGridCache.GridRows findGridRows(final Long documentId, final String _sidx, final String _sord,
+            final DocumentPositionDTO position, final Map<String, String> attributeFilters) {
+        String sord = getSortOrder(_sord);
+        String orderBy = getOrderBy(_sidx);
+        List<String> attrCloumns = getAttributeColumns();
+
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        String positionsQuery = getPositionsQuery(documentId, attrCloumns, parameters);
+        List<String> conditions = getConditions(position, attributeFilters, parameters);
+
+        String queryRecords = positionsQuery + getWhere(conditions) + "ORDER BY " + orderBy + " " + sord + ", id " + sord;
+
+        return documentPositionsGridCache.get(documentId, queryRecords, parameters,
+                () -> jdbcTemplate.query(queryRecords, parameters, (resultSet, i) -> mapPosition(resultSet, attrCloumns)));
+    }
+
+    private String getSortOrder(final String _sord) {
         String sord = _sord != null ? _sord : "";
 
         Preconditions.checkState(Arrays.asList("asc", "desc", "").contains(sord));
 
-        Map<String, Object> config = getGridConfig(documentId);
-        List<ColumnProperties> columns = (List<ColumnProperties>) config.get("columns");
-        List<String> attrCloumns = columns.stream().filter(c -> c.isChecked() && c.isForAttribute())
-                .map(ColumnProperties::getName).collect(Collectors.toList());
-        StringBuilder attrQueryPart = new StringBuilder();
+        return sord;
+    }
+
+    private String getOrderBy(final String _sidx) {
+        String sidx = _sidx != null ? _sidx : "";
+
+        if (sidx.startsWith("attrs.")) {
+            return quoteIdentifier(sidx.replace("attrs.", ""));
+        } else if (sidx.isEmpty()) {
+            return "number";
+        } else {
+            return sidx;
+        }
+    }
+
+    private List<String> getAttributeColumns() {
+        return getColumns().stream().filter(c -> c.isChecked() && c.isForAttribute()).map(ColumnProperties::getName)
+                .collect(Collectors.toList());
+    }
+
+    private String getPositionsQuery(final Long documentId, final List<String> attrCloumns,
+            final Map<String, Object> parameters) {
+        parameters.put(DOCUMENT_ID, documentId);
+
+        StringBuilder attrSelectPart = new StringBuilder();
+        StringBuilder attrJoinPart = new StringBuilder();
+
         if (!attrCloumns.isEmpty()) {
-            attrCloumns.forEach(ac -> {
-                attrQueryPart.append(" , ");
-                attrQueryPart.append("(SELECT string_agg(positionattributevalue.value, ', ') ");
-                attrQueryPart.append("FROM materialflowresources_positionattributevalue positionattributevalue ");
-                attrQueryPart.append("LEFT JOIN basic_attribute att ON att.id = positionattributevalue.attribute_id ");
-                attrQueryPart.append("WHERE positionattributevalue.position_id = p.id AND att.number ='" + ac
-                        + "' group by att.number) as \"" + ac + "\" ");
-            });
+            attrJoinPart.append("	LEFT JOIN (SELECT positionattributevalue.position_id");
+
+            for (int index = 0; index < attrCloumns.size(); index++) {
+                String attrColumn = attrCloumns.get(index);
 
+                attrSelectPart.append(", attrs.attr").append(index).append(" AS ").append(quoteIdentifier(attrColumn)).append(" ");
+                attrJoinPart.append(", string_agg(CASE WHEN att.number = :attr").append(index)
+                        .append(" THEN positionattributevalue.value END, ', ') AS attr").append(index);
+                parameters.put("attr" + index, attrColumn);
+            }
+
+            attrJoinPart.append(" FROM materialflowresources_positionattributevalue positionattributevalue ");
+            attrJoinPart.append("JOIN basic_attribute att ON att.id = positionattributevalue.attribute_id ");
+            attrJoinPart.append("JOIN materialflowresources_position attrposition ON attrposition.id = positionattributevalue.position_id ");
+            attrJoinPart.append("WHERE attrposition.document_id = :documentId AND att.number IN (:attrNumbers) ");
+            attrJoinPart.append("GROUP BY positionattributevalue.position_id) attrs ON attrs.position_id = p.id\n");
+            parameters.put("attrNumbers", attrCloumns);
         }
-        String query = "SELECT %s FROM ( SELECT p.*, p.document_id AS document, product.number AS product, product.name AS productName, product.unit, additionalcode.code AS additionalcode, "
+
+        String query = "SELECT * FROM ( SELECT p.*, p.document_id AS document, product.number AS product, product.name AS productName, product.unit, additionalcode.code AS additionalcode, "
                 + "palletnumber.number AS palletnumber, location.number AS storagelocation, resource.number AS resource, batch.number as batch, batch.id as batchId, \n"
                 + "(coalesce(r1.resourcesCount,0) < 2 AND p.quantity >= coalesce(resource.quantity,0)) AS lastResource, p.pickingdate AS pickingDate, staff.name || ' ' || staff.surname AS pickingWorker "
-                + attrQueryPart.toString() + "	FROM materialflowresources_position p\n"
+                + attrSelectPart.toString() + "	FROM materialflowresources_position p\n"
                 + "	LEFT JOIN basic_product product ON (p.product_id = product.id)\n"
                 + "	LEFT JOIN basic_additionalcode additionalcode ON (p.additionalcode_id = additionalcode.id)\n"
                 + "	LEFT JOIN basic_palletnumber palletnumber ON (p.palletnumber_id = palletnumber.id)\n"
                 + "	LEFT JOIN materialflowresources_resource resource ON (p.resource_id = resource.id)\n"
                 + "	LEFT JOIN advancedgenealogy_batch batch ON (p.batch_id = batch.id)\n"
                 + "	LEFT JOIN basic_staff staff ON (p.pickingworker_id = staff.id)\n"
-                + " LEFT JOIN (SELECT palletnumber_id, count(id) as resourcesCount FROM materialflowresources_resource GROUP BY palletnumber_id) r1 ON r1.palletnumber_id = resource.palletnumber_id \n"
-                + "	LEFT JOIN materialflowresources_storagelocation location ON (p.storagelocation_id = location.id) WHERE p.document_id = :documentId %s) q ";
+                + " LEFT JOIN (SELECT palletnumber_id, count(id) as resourcesCount FROM materialflowresources_resource "
+                + "WHERE palletnumber_id IN (SELECT palletresource.palletnumber_id FROM materialflowresources_position palletposition "
+                + "JOIN materialflowresources_resource palletresource ON palletresource.id = palletposition.resource_id "
+                + "WHERE palletposition.document_id = :documentId) GROUP BY palletnumber_id) r1 ON r1.palletnumber_id = resource.palletnumber_id \n"
+                + attrJoinPart.toString()
+                + "	LEFT JOIN materialflowresources_storagelocation location ON (p.storagelocation_id = location.id) WHERE p.document_id = :documentId) q ";
+
+        return query;
+    }
 
-        Map<String, Object> parameters = Maps.newHashMap();
+    private List<String> getConditions(final DocumentPositionDTO position, final Map<String, String> attributeFilters,
+            final Map<String, Object> parameters) {
+        List<String> conditions = Lists.newArrayList();
 
-        parameters.put(DOCUMENT_ID, documentId);
+        String positionWhere = lookupUtils.addQueryWhereForObject(position);
+
+        if (!positionWhere.isEmpty()) {
+            conditions.add(positionWhere.replaceFirst("^ WHERE ", ""));
+        }
 
-        query += lookupUtils.addQueryWhereForObject(position);
         parameters.putAll(lookupUtils.getParametersForObject(position));
 
-        if (!attributeFilters.isEmpty()) {
-            StringBuilder attributeFiltersBuilder = new StringBuilder();
-            attributeFiltersBuilder.append("WHERE ");
-            for (Map.Entry<String, String> filterElement : attributeFilters.entrySet()) {
-                attributeFiltersBuilder.append("q.\"" + filterElement.getKey() + "\" ");
-                attributeFiltersBuilder.append("ilike :" + filterElement.getKey().replaceAll("[^a-zA-Z0-9]+", "") + " ");
-                parameters.put(filterElement.getKey().replaceAll("[^a-zA-Z0-9]+", ""), "%" + filterElement.getValue() + "%");
-            }
-            query = query + attributeFiltersBuilder.toString();
+        for (Map.Entry<String, String> filterElement : attributeFilters.entrySet()) {
+            String parameterName = filterElement.getKey().replaceAll("[^a-zA-Z0-9]+", "");
+
+            conditions.add("q." + quoteIdentifier(filterElement.getKey()) + " ilike :" + parameterName);
+            parameters.put(parameterName, "%" + filterElement.getValue() + "%");
         }
-        String queryCount = String.format(query, "COUNT(*)", "");
 
-        String orderBy;
-        if (sidx.startsWith("attrs.")) {
-            orderBy = "\"" + sidx.replace("attrs.", "") + "\"";
-        } else {
-            orderBy = sidx;
-        }
-
-        String queryRecords = String.format(query, "*", "ORDER BY " + orderBy + " " + sord)
-                + String.format(" LIMIT %d OFFSET %d", perPage, perPage * (page - 1));
-
-        int countRecords = jdbcTemplate.queryForObject(queryCount, parameters, Long.class).intValue();
-        List<DocumentPositionDTO> records = jdbcTemplate.query(queryRecords, parameters, (resultSet, i) -> {
-            DocumentPositionDTO documentPositionDTO = new DocumentPositionDTO();
-            documentPositionDTO.setId(resultSet.getLong(ID));
-            documentPositionDTO.setDocument(resultSet.getLong("document"));
-            documentPositionDTO.setNumber(resultSet.getInt("number"));
-            documentPositionDTO.setProduct(resultSet.getString("product"));
-            documentPositionDTO.setProductName(resultSet.getString("productName"));
-            documentPositionDTO.setAdditionalCode(resultSet.getString("additionalCode"));
-            documentPositionDTO.setQuantity(resultSet.getBigDecimal("quantity"));
-            documentPositionDTO.setRestAfterShiftDisposition(resultSet.getBigDecimal("restAfterShiftDisposition"));
-            documentPositionDTO.setUnit(resultSet.getString("unit"));
-            documentPositionDTO.setGivenquantity(resultSet.getBigDecimal("givenquantity"));
-            documentPositionDTO.setGivenunit(resultSet.getString("givenunit"));
-            documentPositionDTO.setConversion(resultSet.getBigDecimal("conversion"));
-            documentPositionDTO.setExpirationDate(resultSet.getDate("expirationDate"));
-            documentPositionDTO.setProductionDate(resultSet.getDate("productionDate"));
-            documentPositionDTO.setPalletNumber(resultSet.getString("palletNumber"));
-            documentPositionDTO.setResourceNumber(resultSet.getString("resourceNumber"));
-            documentPositionDTO.setPickingDate(resultSet.getDate("pickingDate"));
-            documentPositionDTO.setPickingWorker(resultSet.getString("pickingWorker"));
-            documentPositionDTO.setTypeOfPallet(resultSet.getString("typeOfPallet"));
-            documentPositionDTO.setStorageLocation(resultSet.getString("storageLocation"));
-            documentPositionDTO.setPrice(resultSet.getBigDecimal("price"));
-            documentPositionDTO.setSellingPrice(resultSet.getBigDecimal("sellingPrice"));
-            documentPositionDTO.setBatch(resultSet.getString("batch"));
-            documentPositionDTO.setBatchId(resultSet.getLong("batchId"));
-            documentPositionDTO.setResource(resultSet.getString("resource"));
-            documentPositionDTO.setWaste(resultSet.getBoolean("waste"));
-            documentPositionDTO.setLastResource(resultSet.getBoolean("lastResource"));
-            if (!attrCloumns.isEmpty()) {
-                Map<String, Object> attrs = Maps.newHashMap();
-                for (String ac : attrCloumns) {
-                    attrs.put(ac, resultSet.getString(ac));
-                }
-                documentPositionDTO.setAttrs(attrs);
+        return conditions;
+    }
+
+    private String getWhere(final List<String> conditions) {
+        if (conditions.isEmpty()) {
+            return "";
+        }
 
+        return "WHERE " + String.join(" AND ", conditions) + " ";
+    }
+
+    private DocumentPositionDTO mapPosition(final ResultSet resultSet, final List<String> attrCloumns) throws SQLException {
+        DocumentPositionDTO documentPositionDTO = new DocumentPositionDTO();
+        documentPositionDTO.setId(resultSet.getLong(ID));
+        documentPositionDTO.setDocument(resultSet.getLong("document"));
+        documentPositionDTO.setNumber(resultSet.getInt("number"));
+        documentPositionDTO.setProduct(resultSet.getString("product"));
+        documentPositionDTO.setProductName(resultSet.getString("productName"));
+        documentPositionDTO.setAdditionalCode(resultSet.getString("additionalCode"));
+        documentPositionDTO.setQuantity(resultSet.getBigDecimal("quantity"));
+        documentPositionDTO.setRestAfterShiftDisposition(resultSet.getBigDecimal("restAfterShiftDisposition"));
+        documentPositionDTO.setUnit(resultSet.getString("unit"));
+        documentPositionDTO.setGivenquantity(resultSet.getBigDecimal("givenquantity"));
+        documentPositionDTO.setGivenunit(resultSet.getString("givenunit"));
+        documentPositionDTO.setConversion(resultSet.getBigDecimal("conversion"));
+        documentPositionDTO.setExpirationDate(resultSet.getDate("expirationDate"));
+        documentPositionDTO.setProductionDate(resultSet.getDate("productionDate"));
+        documentPositionDTO.setPalletNumber(resultSet.getString("palletNumber"));
+        documentPositionDTO.setResourceNumber(resultSet.getString("resourceNumber"));
+        documentPositionDTO.setPickingDate(resultSet.getDate("pickingDate"));
+        documentPositionDTO.setPickingWorker(resultSet.getString("pickingWorker"));
+        documentPositionDTO.setTypeOfPallet(resultSet.getString("typeOfPallet"));
+        documentPositionDTO.setStorageLocation(resultSet.getString("storageLocation"));
+        documentPositionDTO.setPrice(resultSet.getBigDecimal("price"));
+        documentPositionDTO.setSellingPrice(resultSet.getBigDecimal("sellingPrice"));
+        documentPositionDTO.setBatch(resultSet.getString("batch"));
+        documentPositionDTO.setBatchId(resultSet.getLong("batchId"));
+        documentPositionDTO.setResource(resultSet.getString("resource"));
+        documentPositionDTO.setWaste(resultSet.getBoolean("waste"));
+        documentPositionDTO.setLastResource(resultSet.getBoolean("lastResource"));
+        if (!attrCloumns.isEmpty()) {
+            Map<String, Object> attrs = Maps.newHashMap();
+            for (String ac : attrCloumns) {
+                attrs.put(ac, resultSet.getString(ac));
             }
-            return documentPositionDTO;
-        });
+            documentPositionDTO.setAttrs(attrs);
+
+        }
+        return documentPositionDTO;
+    }
 
-        return new GridResponse<>(page, Double.valueOf(Math.ceil((1.0 * countRecords) / perPage)).intValue(), countRecords,
-                records);
+    private String quoteIdentifier(final String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
     }
 
     private void delete(final Long id) {
@@ -224,6 +371,7 @@ public class DocumentPositionService {
         }
         attributePositionService.createOrUpdateAttributePositionValues(true, positionId, documentPositionVO.getAttrs());
         updateDocumentPositionsNumbers(documentPositionVO.getDocument());
+        documentPositionsGridCache.invalidate(documentPositionVO.getDocument());
     }
 
     public void update(final DocumentPositionDTO documentPositionVO) {
@@ -243,6 +391,7 @@ public class DocumentPositionService {
         attributePositionService.createOrUpdateAttributePositionValues(false, documentPositionVO.getId(),
                 documentPositionVO.getAttrs());
         updateDocumentPositionsNumbers(documentPositionVO.getDocument());
+        documentPositionsGridCache.invalidate(documentPositionVO.getDocument());
     }
 
     private List<StorageLocationDTO> getStorageLocations(String preparedQuery, String q, Map<String, Object> paramMap) {
@@ -258,11 +407,21 @@ public class DocumentPositionService {
     }
 
     public DataResponse getStorageLocationsResponse(final String q, String product, String document) {
-        String preparedQuery;
-
         Map<String, Object> paramMap = Maps.newHashMap();
         paramMap.put("document", Integer.parseInt(document));
 
+        Optional<LookupResult<StorageLocationDTO>> lookupResult = searchStorageLocations(q, product, paramMap);
+
+        if (lookupResult.isPresent()) {
+            if (Strings.isNullOrEmpty(q)) {
+                return new DataResponse(Lists.newArrayList(), lookupResult.get().getNumberOfResults());
+            }
+
+            return dataProvider.getDataResponse(lookupResult.get());
+        }
+
+        String preparedQuery;
+
         if (Strings.isNullOrEmpty(product)) {
             preparedQuery = "SELECT id, number FROM materialflowresources_storagelocation WHERE number ilike :query "
                     + "AND location_id IN (SELECT DISTINCT COALESCE(locationfrom_id, locationto_id) FROM materialflowresources_document WHERE id = :document) "
@@ -279,10 +438,29 @@ public class DocumentPositionService {
         return dataProvider.getDataResponse(q, preparedQuery, entities, paramMap);
     }
 
+    private Optional<LookupResult<StorageLocationDTO>> searchStorageLocations(final String q, final String product,
+            final Map<String, Object> paramMap) {
+        List<Long> locationIds = jdbcTemplate.queryForList(
+                "SELECT DISTINCT COALESCE(locationfrom_id, locationto_id) FROM materialflowresources_document WHERE id = :document",
+                paramMap, Long.class);
+        Set<String> locations = locationIds.stream().filter(Objects::nonNull).map(String::valueOf).collect(Collectors.toSet());
+
+        return lookupIndexService.search(LookupIndexes.STORAGE_LOCATIONS, q, DataProvider.MAX_RESULTS,
+                entry -> locations.contains(entry.getContext(0)) && (Strings.isNullOrEmpty(product)
+                        || Objects.isNull(entry.getContext(1)) || product.equals(entry.getContext(1))));
+    }
+
     public DataResponse getBatchesResponse(final String q, String product) {
         if (StringUtils.isEmpty(product)) {
             return new DataResponse(Lists.newArrayList(), 0);
         } else {
+            Optional<LookupResult<BatchDTO>> lookupResult = lookupIndexService.search(LookupIndexes.BATCHES, q,
+                    DataProvider.MAX_RESULTS, entry -> product.equals(entry.getContext(0)));
+
+            if (lookupResult.isPresent()) {
+                return dataProvider.getDataResponse(lookupResult.get());
+            }
+
             String preparedQuery;
 
             Map<String, Object> paramMap = Maps.newHashMap();
@@ -302,12 +480,7 @@ public class DocumentPositionService {
 
     public Map<String, Object> getGridConfig(final Long documentId) {
         try {
-            String query = "SELECT documentpositionparametersitem.*, attr.dataType as attributeDataType, attr.valueType as attributeValueType "
-                    + "FROM materialflowresources_documentpositionparametersitem documentpositionparametersitem "
-                    + "LEFT JOIN basic_attribute attr ON attr.id = documentpositionparametersitem.attribute_id  "
-                    + "WHERE attr IS NULL OR attr.active = TRUE  ORDER BY documentpositionparametersitem.ordering";
-            List<ColumnProperties> columns = jdbcTemplate.query(query, Collections.emptyMap(),
-                    new BeanPropertyRowMapper(ColumnProperties.class));
+            List<ColumnProperties> columns = getColumns();
 
             Map<String, Object> config = Maps.newHashMap();
 
@@ -323,6 +496,15 @@ public class DocumentPositionService {
         }
     }
 
+    private List<ColumnProperties> getColumns() {
+        String query = "SELECT documentpositionparametersitem.*, attr.dataType as attributeDataType, attr.valueType as attributeValueType "
+                + "FROM materialflowresources_documentpositionparametersitem documentpositionparametersitem "
+                + "LEFT JOIN basic_attribute attr ON attr.id = documentpositionparametersitem.attribute_id  "
+                + "WHERE attr IS NULL OR attr.active = TRUE  ORDER BY documentpositionparametersitem.ordering";
+
+        return jdbcTemplate.query(query, Collections.emptyMap(), new BeanPropertyRowMapper(ColumnProperties.class));
+    }
+
     public Map<String, Object> unitsOfProduct(final String productNumber) {
         try {
             Map<String, Object> units = getUnitsFromProduct(productNumber);
@@ -682,6 +864,7 @@ public class DocumentPositionService {
         });
 
         updateDocumentPositionsNumbers(documentId);
+        documentPositionsGridCache.invalidate(documentId);
     }
 
 }
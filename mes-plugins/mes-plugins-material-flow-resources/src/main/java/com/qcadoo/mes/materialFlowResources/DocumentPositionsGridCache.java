@@ -0,0 +1,134 @@
+package com.qcadoo.mes.materialFlowResources;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.qcadoo.mes.basic.util.TenantKey;
+
+/**
+ * Short-lived cache of sorted and filtered positions of documents, so consecutive page requests of the same grid don't query
+ * positions again. Entries are weighed by number of positions and are dropped when positions of the document are changed,
+ * either by DocumentPositionService or through position model hooks. Keyset pages aren't cached - they are queried directly.
+ * Documents are keyed together with tenant, as their ids of different tenants may be the same.
+ */
+@Service
+public class DocumentPositionsGridCache {
+
+    private static final int L_TIME_TO_LIVE_SECONDS = 30;
+
+    private static final int L_MAX_CACHED_POSITIONS = 100000;
+
+    private final Cache<GridQuery, GridRows> cache = CacheBuilder.newBuilder()
+            .expireAfterWrite(L_TIME_TO_LIVE_SECONDS, TimeUnit.SECONDS).maximumWeight(L_MAX_CACHED_POSITIONS)
+            .weigher((GridQuery gridQuery, GridRows gridRows) -> gridRows.size() + 1).build();
+
+    public GridRows get(final Long documentId, final String query, final Map<String, Object> parameters,
+            final Supplier<List<DocumentPositionDTO>> rowsSupplier) {
+        return get(TenantKey.of(documentId), query, parameters, rowsSupplier);
+    }
+
+    GridRows get(final TenantKey<Long> documentKey, final String query, final Map<String, Object> parameters,
+            final Supplier<List<DocumentPositionDTO>> rowsSupplier) {
+        try {
+            return cache.get(new GridQuery(documentKey, query, parameters), () -> new GridRows(rowsSupplier.get()));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Drops entries of given document now and once more after the current transaction is committed, so rows read by other
+     * requests before the commit aren't served afterwards.
+     */
+    public void invalidate(final Long documentId) {
+        invalidate(TenantKey.of(documentId));
+    }
+
+    void invalidate(final TenantKey<Long> documentKey) {
+        remove(documentKey);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCommit() {
+                    remove(documentKey);
+                }
+            });
+        }
+    }
+
+    private void remove(final TenantKey<Long> documentKey) {
+        cache.asMap().keySet().removeIf(gridQuery -> Objects.equals(gridQuery.documentKey, documentKey));
+    }
+
+    private static final class GridQuery {
+
+        private final TenantKey<Long> documentKey;
+
+        private final String query;
+
+        private final Map<String, Object> parameters;
+
+        private GridQuery(final TenantKey<Long> documentKey, final String query, final Map<String, Object> parameters) {
+            this.documentKey = documentKey;
+            this.query = query;
+            this.parameters = ImmutableMap.copyOf(parameters);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            GridQuery that = (GridQuery) o;
+
+            return Objects.equals(documentKey, that.documentKey) && Objects.equals(query, that.query)
+                    && Objects.equals(parameters, that.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(documentKey, query, parameters);
+        }
+
+    }
+
+    public static final class GridRows {
+
+        private final List<DocumentPositionDTO> rows;
+
+        private GridRows(final List<DocumentPositionDTO> rows) {
+            this.rows = ImmutableList.copyOf(rows);
+        }
+
+        public int size() {
+            return rows.size();
+        }
+
+        public List<DocumentPositionDTO> getRows(final int fromIndex, final int count) {
+            int from = Math.min(Math.max(fromIndex, 0), rows.size());
+
+            return rows.subList(from, Math.min(from + count, rows.size()));
+        }
+
+    }
+
+}
@@ -9,6 +9,8 @@ import org.springframework.transaction.annotation.Transactional;
 
 import com.qcadoo.mes.basic.ParameterService;
 import com.qcadoo.mes.materialFlowResources.constants.MaterialFlowResourcesConstants;
+import com.qcadoo.mes.materialFlowResources.service.DocumentAcceptanceQueueService;
+import com.qcadoo.mes.materialFlowResources.service.ResourceStockLedgerService;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
 import com.qcadoo.model.api.Entity;
@@ -24,14 +26,25 @@ public class MaterialFlowResourcesOnStartupService extends Module {
     @Autowired
     private ParameterService parameterService;
 
+    @Autowired
+    private DocumentAcceptanceQueueService documentAcceptanceQueueService;
+
+    @Autowired
+    private ResourceStockLedgerService resourceStockLedgerService;
+
     @Override
     public void enableOnStartup() {
         setDocumentPositionParameters();
+
+        resourceStockLedgerService.initializeResourceStocks();
+        documentAcceptanceQueueService.recoverClaims();
     }
 
     @Override
     public void enable() {
         setDocumentPositionParameters();
+
+        resourceStockLedgerService.initializeResourceStocks();
     }
 
     @Transactional
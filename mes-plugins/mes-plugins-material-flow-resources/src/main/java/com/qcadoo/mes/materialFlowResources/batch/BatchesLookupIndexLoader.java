@@ -0,0 +1,50 @@
+package com.qcadoo.mes.materialFlowResources.batch;
+
+import com.qcadoo.mes.basic.lookup.LookupEntry;
+import com.qcadoo.mes.basic.lookup.LookupIndexLoader;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
+import com.qcadoo.mes.materialFlowResources.BatchDTO;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+@Service
+public class BatchesLookupIndexLoader implements LookupIndexLoader<BatchDTO> {
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Override
+    public String getIndexName() {
+        return LookupIndexes.BATCHES;
+    }
+
+    @Override
+    public List<LookupEntry<BatchDTO>> load(final Long id, final String code) {
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT _batch.id AS id, _batch.number AS number, p.number AS product ");
+        query.append("FROM advancedgenealogy_batch _batch LEFT JOIN basic_product p ON p.id = _batch.product_id ");
+        query.append("WHERE _batch.active = true ");
+        query.append(LookupIndexLoader.buildCondition("_batch.id", "_batch.number", id, code));
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue("id", id);
+        parameters.addValue("code", code);
+
+        BeanPropertyRowMapper<BatchDTO> rowMapper = BeanPropertyRowMapper.newInstance(BatchDTO.class);
+
+        return jdbcTemplate.query(query.toString(), parameters, (resultSet, rowNum) -> {
+            BatchDTO batch = rowMapper.mapRow(resultSet, rowNum);
+
+            return new LookupEntry<>(batch.getId(), batch.getNumber(), batch, batch.getProduct());
+        });
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.materialFlowResources.constants;
+
+import org.apache.commons.lang3.StringUtils;
+
+public enum DocumentAcceptanceStatus {
+
+    WAITING("01waiting"), IN_PROGRESS("02inProgress"), ACCEPTED("03accepted"), FAILED("04failed");
+
+    private final String value;
+
+    private DocumentAcceptanceStatus(final String value) {
+        this.value = value;
+    }
+
+    public String getStringValue() {
+        return this.value;
+    }
+
+    public static DocumentAcceptanceStatus parseString(final String status) {
+        for (DocumentAcceptanceStatus documentAcceptanceStatus : DocumentAcceptanceStatus.values()) {
+            if (StringUtils.equalsIgnoreCase(status, documentAcceptanceStatus.getStringValue())) {
+                return documentAcceptanceStatus;
+            }
+        }
+
+        throw new IllegalArgumentException("Couldn't parse DocumentAcceptanceStatus from string '" + status + "'");
+    }
+
+}
@@ -75,4 +75,6 @@ public final class DocumentFields {
 
     public static final String STATE_CHANGES = "stateChanges";
 
+    public static final String ACCEPTANCES = "acceptances";
+
 }
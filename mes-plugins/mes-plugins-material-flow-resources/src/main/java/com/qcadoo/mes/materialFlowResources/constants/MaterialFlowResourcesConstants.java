@@ -53,6 +53,8 @@ public final class MaterialFlowResourcesConstants {
 
     public static final String MODEL_DOCUMENT_STATE_CHANGE = "documentStateChange";
 
+    public static final String MODEL_DOCUMENT_ACCEPTANCE = "documentAcceptance";
+
     public static final String MODEL_POSITION = "position";
 
     public static final String MODEL_POSITION_DTO = "positionDto";
@@ -0,0 +1,65 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.materialFlowResources.controllers;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.materialFlowResources.service.DocumentAcceptanceMetrics;
+import com.qcadoo.mes.materialFlowResources.service.DocumentAcceptanceQueueService;
+
+@Controller
+@RequestMapping("/rest/documentAcceptanceQueue")
+public class DocumentAcceptanceQueueController {
+
+    @Autowired
+    private DocumentAcceptanceQueueService documentAcceptanceQueueService;
+
+    @ResponseBody
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> getMetrics() {
+        DocumentAcceptanceMetrics metrics = documentAcceptanceQueueService.getMetrics();
+
+        Map<String, Object> result = Maps.newLinkedHashMap();
+
+        result.put("queueDepth", documentAcceptanceQueueService.getQueueDepth());
+        result.put("accepted", metrics.getAcceptedCount());
+        result.put("failed", metrics.getFailedCount());
+        result.put("retried", metrics.getRetriedCount());
+        result.put("averageWaitMillis", metrics.getAverageWaitMillis());
+        result.put("maxWaitMillis", metrics.getMaxWaitMillis());
+        result.put("averageDurationMillis", metrics.getAverageDurationMillis());
+        result.put("maxDurationMillis", metrics.getMaxDurationMillis());
+
+        return result;
+    }
+
+}
@@ -40,6 +40,15 @@ public class DocumentPositionsController {
         return documentPositionService.findAll(id, sidx, sord, page, perPage, positionDTO, attributeFilters);
     }
 
+    @ResponseBody
+    @RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, value = "keyset/{id}")
+    public GridResponse<DocumentPositionDTO> findAllAfter(@PathVariable Long id, @RequestParam String sidx,
+            @RequestParam String sord, @RequestParam(required = false, value = "after") Long afterPositionId,
+            @RequestParam(value = "rows") int perPage, DocumentPositionDTO positionDTO, HttpServletRequest request) {
+        Map<String, String> attributeFilters = extractAttributesFilters(request);
+        return documentPositionService.findAllAfter(id, sidx, sord, afterPositionId, perPage, positionDTO, attributeFilters);
+    }
+
 
 
     @ResponseBody
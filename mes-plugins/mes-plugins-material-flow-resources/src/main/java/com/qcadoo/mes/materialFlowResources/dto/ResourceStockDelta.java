@@ -0,0 +1,101 @@
+package com.qcadoo.mes.materialFlowResources.dto;
+
+import java.math.BigDecimal;
+
+import com.qcadoo.model.api.BigDecimalUtils;
+
+public class ResourceStockDelta {
+
+    private final Long productId;
+
+    private final Long locationId;
+
+    private BigDecimal quantity = BigDecimal.ZERO;
+
+    private BigDecimal quantityInAdditionalUnit = BigDecimal.ZERO;
+
+    private BigDecimal totalValue = BigDecimal.ZERO;
+
+    private BigDecimal reservedQuantity = BigDecimal.ZERO;
+
+    private BigDecimal orderedQuantity = BigDecimal.ZERO;
+
+    public ResourceStockDelta(final Long productId, final Long locationId) {
+        this.productId = productId;
+        this.locationId = locationId;
+    }
+
+    public ResourceStockDelta addQuantity(final BigDecimal quantity, final BigDecimal quantityInAdditionalUnit,
+            final BigDecimal totalValue) {
+        this.quantity = this.quantity.add(BigDecimalUtils.convertNullToZero(quantity));
+        this.quantityInAdditionalUnit = this.quantityInAdditionalUnit
+                .add(BigDecimalUtils.convertNullToZero(quantityInAdditionalUnit));
+        this.totalValue = this.totalValue.add(BigDecimalUtils.convertNullToZero(totalValue));
+
+        return this;
+    }
+
+    public ResourceStockDelta addReservedQuantity(final BigDecimal reservedQuantity) {
+        this.reservedQuantity = this.reservedQuantity.add(BigDecimalUtils.convertNullToZero(reservedQuantity));
+
+        return this;
+    }
+
+    public ResourceStockDelta addOrderedQuantity(final BigDecimal orderedQuantity) {
+        this.orderedQuantity = this.orderedQuantity.add(BigDecimalUtils.convertNullToZero(orderedQuantity));
+
+        return this;
+    }
+
+    public ResourceStockDelta add(final ResourceStockDelta delta) {
+        addQuantity(delta.getQuantity(), delta.getQuantityInAdditionalUnit(), delta.getTotalValue());
+        addReservedQuantity(delta.getReservedQuantity());
+        addOrderedQuantity(delta.getOrderedQuantity());
+
+        return this;
+    }
+
+    public ResourceStockDelta negate() {
+        ResourceStockDelta negated = new ResourceStockDelta(productId, locationId);
+
+        negated.addQuantity(quantity.negate(), quantityInAdditionalUnit.negate(), totalValue.negate());
+        negated.addReservedQuantity(reservedQuantity.negate());
+        negated.addOrderedQuantity(orderedQuantity.negate());
+
+        return negated;
+    }
+
+    public boolean isZero() {
+        return quantity.signum() == 0 && quantityInAdditionalUnit.signum() == 0 && totalValue.signum() == 0
+                && reservedQuantity.signum() == 0 && orderedQuantity.signum() == 0;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public Long getLocationId() {
+        return locationId;
+    }
+
+    public BigDecimal getQuantity() {
+        return quantity;
+    }
+
+    public BigDecimal getQuantityInAdditionalUnit() {
+        return quantityInAdditionalUnit;
+    }
+
+    public BigDecimal getTotalValue() {
+        return totalValue;
+    }
+
+    public BigDecimal getReservedQuantity() {
+        return reservedQuantity;
+    }
+
+    public BigDecimal getOrderedQuantity() {
+        return orderedQuantity;
+    }
+
+}
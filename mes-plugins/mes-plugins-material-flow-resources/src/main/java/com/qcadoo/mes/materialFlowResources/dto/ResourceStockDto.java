@@ -9,6 +9,10 @@ public class ResourceStockDto {
 
     private BigDecimal availableQuantity;
 
+    private BigDecimal reservedQuantity;
+
+    private BigDecimal orderedQuantity;
+
     public BigDecimal getQuantity() {
         return quantity;
     }
@@ -25,6 +29,22 @@ public class ResourceStockDto {
         this.availableQuantity = availableQuantity;
     }
 
+    public BigDecimal getReservedQuantity() {
+        return reservedQuantity;
+    }
+
+    public void setReservedQuantity(BigDecimal reservedQuantity) {
+        this.reservedQuantity = reservedQuantity;
+    }
+
+    public BigDecimal getOrderedQuantity() {
+        return orderedQuantity;
+    }
+
+    public void setOrderedQuantity(BigDecimal orderedQuantity) {
+        this.orderedQuantity = orderedQuantity;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -35,11 +55,13 @@ public class ResourceStockDto {
         }
         ResourceStockDto that = (ResourceStockDto) o;
         return Objects.equals(quantity, that.quantity) &&
-                Objects.equals(availableQuantity, that.availableQuantity);
+                Objects.equals(availableQuantity, that.availableQuantity) &&
+                Objects.equals(reservedQuantity, that.reservedQuantity) &&
+                Objects.equals(orderedQuantity, that.orderedQuantity);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(quantity, availableQuantity);
+        return Objects.hash(quantity, availableQuantity, reservedQuantity, orderedQuantity);
     }
 }
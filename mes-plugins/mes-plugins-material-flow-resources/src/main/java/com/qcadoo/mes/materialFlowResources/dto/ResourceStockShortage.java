@@ -0,0 +1,57 @@
+package com.qcadoo.mes.materialFlowResources.dto;
+
+import java.math.BigDecimal;
+
+public class ResourceStockShortage {
+
+    private final Long productId;
+
+    private final String productNumber;
+
+    private final String productUnit;
+
+    private final BigDecimal requestedQuantity;
+
+    private final BigDecimal availableQuantity;
+
+    private final BigDecimal reservedQuantity;
+
+    public ResourceStockShortage(final Long productId, final String productNumber, final String productUnit,
+            final BigDecimal requestedQuantity, final BigDecimal availableQuantity, final BigDecimal reservedQuantity) {
+        this.productId = productId;
+        this.productNumber = productNumber;
+        this.productUnit = productUnit;
+        this.requestedQuantity = requestedQuantity;
+        this.availableQuantity = availableQuantity;
+        this.reservedQuantity = reservedQuantity;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public String getProductNumber() {
+        return productNumber;
+    }
+
+    public String getProductUnit() {
+        return productUnit;
+    }
+
+    public BigDecimal getRequestedQuantity() {
+        return requestedQuantity;
+    }
+
+    public BigDecimal getAvailableQuantity() {
+        return availableQuantity;
+    }
+
+    public BigDecimal getReservedQuantity() {
+        return reservedQuantity;
+    }
+
+    public BigDecimal getMissingQuantity() {
+        return requestedQuantity.subtract(availableQuantity);
+    }
+
+}
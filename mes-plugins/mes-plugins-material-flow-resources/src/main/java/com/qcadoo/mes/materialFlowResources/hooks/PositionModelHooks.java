@@ -23,6 +23,7 @@
  */
 package com.qcadoo.mes.materialFlowResources.hooks;
 
+import com.qcadoo.mes.materialFlowResources.DocumentPositionsGridCache;
 import com.qcadoo.mes.materialFlowResources.constants.PositionFields;
 import com.qcadoo.mes.materialFlowResources.constants.ReservationFields;
 import com.qcadoo.mes.materialFlowResources.service.ReservationsService;
@@ -41,10 +42,14 @@ public class PositionModelHooks {
     @Autowired
     private ResourceReservationsService resourceReservationsService;
 
+    @Autowired
+    private DocumentPositionsGridCache documentPositionsGridCache;
+
     public void onSave(final DataDefinition positionDD, final Entity position) {
         if (position.getId() != null) {
             reservationsService.updateReservationFromDocumentPosition(position);
         }
+        invalidateGridCache(position);
     }
 
     public void onCopy(final DataDefinition positionDD, final Entity position) {
@@ -53,12 +58,22 @@ public class PositionModelHooks {
 
     public void onCreate(final DataDefinition positionDD, final Entity position) {
         reservationsService.createReservationFromDocumentPosition(position);
+        invalidateGridCache(position);
     }
 
     public boolean onDelete(final DataDefinition positionDD, final Entity position) {
         resourceReservationsService.updateResourceQuantites(position,
                 position.getDecimalField(ReservationFields.QUANTITY).negate());
+        invalidateGridCache(position);
         return true;
     }
 
+    private void invalidateGridCache(final Entity position) {
+        Entity document = position.getBelongsToField(PositionFields.DOCUMENT);
+
+        if (document != null) {
+            documentPositionsGridCache.invalidate(document.getId());
+        }
+    }
+
 }
@@ -1,12 +1,18 @@
 package com.qcadoo.mes.materialFlowResources.hooks;
 
 import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.google.common.collect.Lists;
 import com.qcadoo.mes.materialFlowResources.constants.ReservationFields;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDelta;
 import com.qcadoo.mes.materialFlowResources.service.ResourceReservationsService;
+import com.qcadoo.mes.materialFlowResources.service.ResourceStockLedgerService;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
 
@@ -16,7 +22,12 @@ public class ReservationHooks {
     @Autowired
     private ResourceReservationsService resourceReservationsService;
 
+    @Autowired
+    private ResourceStockLedgerService resourceStockLedgerService;
+
     public void onSave(DataDefinition reservationDD, Entity reservation) {
+        updateResourceStock(reservation);
+
         Entity newResource = reservation.getBelongsToField(ReservationFields.RESOURCE);
         Entity oldResource = null;
         Entity oldReservation = null;
@@ -43,6 +54,21 @@ public class ReservationHooks {
         }
     }
 
+    private void updateResourceStock(final Entity reservation) {
+        List<ResourceStockDelta> deltas = Lists.newArrayList(resourceStockLedgerService.getReservationDelta(reservation));
+
+        if (Objects.nonNull(reservation.getId())) {
+            deltas.addAll(resourceStockLedgerService.getReservationRemovalDeltas(Collections.singletonList(reservation.getId())));
+        }
+
+        resourceStockLedgerService.applyDeltasOfSavedEntity(reservation, deltas);
+    }
+
+    public void onDelete(DataDefinition reservationDD, Entity reservation) {
+        resourceStockLedgerService.applyDeltas(resourceStockLedgerService.getReservationRemovalDeltas(Collections
+                .singletonList(reservation.getId())));
+    }
+
     public void onCopy(DataDefinition reservationDD, Entity reservation) {
         reservation.setField(ReservationFields.RESOURCE, null);
     }
@@ -23,7 +23,10 @@
  */
 package com.qcadoo.mes.materialFlowResources.hooks;
 
+import com.google.common.collect.Lists;
 import com.qcadoo.mes.materialFlowResources.constants.ResourceFields;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDelta;
+import com.qcadoo.mes.materialFlowResources.service.ResourceStockLedgerService;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
 import org.apache.commons.lang3.StringUtils;
@@ -33,7 +36,9 @@ import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -43,7 +48,15 @@ public class ResourceModelHooks {
     @Autowired
     private NamedParameterJdbcTemplate jdbcTemplate;
 
+    @Autowired
+    private ResourceStockLedgerService resourceStockLedgerService;
+
     public void onSave(final DataDefinition resourceDD, final Entity resource) {
+        generateNumber(resource);
+        updateResourceStock(resource);
+    }
+
+    private void generateNumber(final Entity resource) {
         if (StringUtils.isEmpty(resource.getStringField(ResourceFields.NUMBER))) {
             Date time = resource.getDateField(ResourceFields.TIME);
 
@@ -62,6 +75,21 @@ public class ResourceModelHooks {
         }
     }
 
+    private void updateResourceStock(final Entity resource) {
+        List<ResourceStockDelta> deltas = Lists.newArrayList(resourceStockLedgerService.getResourceDelta(resource));
+
+        if (Objects.nonNull(resource.getId())) {
+            deltas.addAll(resourceStockLedgerService.getResourceRemovalDeltas(Collections.singletonList(resource.getId())));
+        }
+
+        resourceStockLedgerService.applyDeltasOfSavedEntity(resource, deltas);
+    }
+
+    public void onDelete(final DataDefinition resourceDD, final Entity resource) {
+        resourceStockLedgerService.applyDeltas(resourceStockLedgerService.getResourceRemovalDeltas(Collections
+                .singletonList(resource.getId())));
+    }
+
     public void onCreate(final DataDefinition resourceDD, final Entity resource) {
         resource.setField(ResourceFields.IS_CORRECTED, false);
 
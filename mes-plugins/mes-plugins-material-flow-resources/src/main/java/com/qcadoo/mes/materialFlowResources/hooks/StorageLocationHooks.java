@@ -6,6 +6,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.lookup.LookupIndexService;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
 import com.qcadoo.mes.materialFlowResources.constants.MaterialFlowResourcesConstants;
 import com.qcadoo.mes.materialFlowResources.constants.StorageLocationFields;
 import com.qcadoo.mes.materialFlowResources.constants.StorageLocationHistoryFields;
@@ -19,6 +21,9 @@ public class StorageLocationHooks {
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
+    @Autowired
+    private LookupIndexService lookupIndexService;
+
     public void onSave(final DataDefinition storageLocationDD, final Entity storageLocation) {
         Entity oldProduct;
         Entity newProduct = storageLocation.getBelongsToField(StorageLocationFields.PRODUCT);
@@ -37,6 +42,19 @@ public class StorageLocationHooks {
                 auditChanges(storageLocation, oldProduct, newProduct);
             }
         }
+
+        updateLookupIndex(storageLocation);
+    }
+
+    public boolean onDelete(final DataDefinition storageLocationDD, final Entity storageLocation) {
+        updateLookupIndex(storageLocation);
+
+        return true;
+    }
+
+    private void updateLookupIndex(final Entity storageLocation) {
+        lookupIndexService.onEntityChanged(LookupIndexes.STORAGE_LOCATIONS, storageLocation.getId(),
+                storageLocation.getStringField(StorageLocationFields.NUMBER));
     }
 
     private void auditChanges(final Entity storageLocation, final Entity oldProduct, final Entity newProduct) {
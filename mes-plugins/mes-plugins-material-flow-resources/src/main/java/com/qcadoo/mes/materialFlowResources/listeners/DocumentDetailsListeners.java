@@ -27,12 +27,14 @@ import com.google.common.collect.Maps;
 import com.qcadoo.mes.basic.ParameterService;
 import com.qcadoo.mes.basic.constants.ProductFields;
 import com.qcadoo.mes.materialFlowResources.constants.*;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockShortage;
 import com.qcadoo.mes.materialFlowResources.exceptions.InvalidResourceException;
 import com.qcadoo.mes.materialFlowResources.print.DispositionOrderPdfService;
 import com.qcadoo.mes.materialFlowResources.service.*;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
 import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.NumberService;
 import com.qcadoo.model.api.file.FileService;
 import com.qcadoo.model.api.search.SearchCriteriaBuilder;
 import com.qcadoo.model.api.search.SearchRestrictions;
@@ -101,6 +103,9 @@ public class DocumentDetailsListeners {
     @Autowired
     private DocumentStateChangeService documentStateChangeService;
 
+    @Autowired
+    private NumberService numberService;
+
     public void showProductAttributes(final ViewDefinitionState view, final ComponentState state, final String[] args) {
         List<String> ids = Arrays.asList(args[0].replace("[", "").replace("]", "").replaceAll("\"", "").split("\\s*,\\s*"));
         if (ids.size() == 1 && StringUtils.isNoneBlank(ids.get(0))) {
@@ -225,12 +230,6 @@ public class DocumentDetailsListeners {
                 return;
             }
 
-            if (documentService.getAcceptationInProgress(documentId)) {
-                documentForm.addMessage("materialFlow.error.document.acceptationInProgress", MessageType.FAILURE);
-
-                return;
-            }
-
             if (pluginManager.isPluginEnabled(ESILCO) && documentFromDB.getBooleanField(DocumentFields.WMS)
                     && !REALIZED.equals(documentFromDB.getStringField(DocumentFields.STATE_IN_WMS))) {
                 documentForm.addMessage("materialFlow.error.document.notRealizedInWMS", MessageType.FAILURE);
@@ -238,7 +237,11 @@ public class DocumentDetailsListeners {
                 return;
             }
 
-            documentService.setAcceptationInProgress(documentFromDB, true);
+            if (!documentService.tryStartAcceptation(documentId)) {
+                documentForm.addMessage("materialFlow.error.document.acceptationInProgress", MessageType.FAILURE);
+
+                return;
+            }
 
             try {
                 createResourcesForDocuments(view, documentForm, documentDD, documentFromDB);
@@ -257,6 +260,8 @@ public class DocumentDetailsListeners {
     @Transactional
     private void createResourcesForDocuments(final ViewDefinitionState view, final FormComponent documentForm,
             final DataDefinition documentDD, Entity document) {
+        documentService.lockDocumentsLocations(Collections.singletonList(document));
+
         String message = String.format("DOCUMENT ACCEPT STARTED: id = %d number = %s", document.getId(),
                 document.getStringField(DocumentFields.NUMBER));
 
@@ -391,12 +396,19 @@ public class DocumentDetailsListeners {
         FormComponent formComponent = (FormComponent) view.getComponentByReference(QcadooViewConstants.L_FORM);
         Entity document = formComponent.getPersistedEntityWithIncludedFormValues();
 
-        resourceStockService.checkResourcesStock(document);
+        List<ResourceStockShortage> shortages = resourceStockService.checkResourcesStock(document);
 
         if (document.getGlobalErrors().isEmpty()) {
             view.addMessage("materialFlow.document.checkResourcesStock.global.message.success", MessageType.SUCCESS, true);
         }
 
+        for (ResourceStockShortage shortage : shortages) {
+            view.addMessage("materialFlow.document.checkResourcesStock.global.message.shortage", MessageType.INFO, false,
+                    shortage.getProductNumber(), numberService.format(shortage.getRequestedQuantity()),
+                    numberService.format(shortage.getAvailableQuantity()), numberService.format(shortage.getReservedQuantity()),
+                    shortage.getProductUnit());
+        }
+
         formComponent.setEntity(document);
     }
 
@@ -42,6 +42,7 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import java.util.List;
+import java.util.stream.Collectors;
 
 @Service
 public class DocumentsListListeners {
@@ -84,12 +85,20 @@ public class DocumentsListListeners {
 
         boolean allAccepted = getDocumentsToAccept(documentDD, gridComponent, documentsFromDB);
 
+        List<Long> startedIds = documentService.tryStartAcceptation(documentsFromDB.stream().map(Entity::getId)
+                .collect(Collectors.toList()));
+
+        if (startedIds.size() < documentsFromDB.size()) {
+            allAccepted = false;
+
+            documentsFromDB.removeIf(document -> !startedIds.contains(document.getId()));
+        }
+
         if (!allAccepted) {
             gridComponent.addMessage("materialFlow.info.document.acceptInfo", ComponentState.MessageType.INFO);
         }
 
         if (!documentsFromDB.isEmpty()) {
-            documentService.setAcceptationInProgress(documentsFromDB, true);
             try {
                 createResourcesForDocuments(view, gridComponent, documentDD, documentsFromDB);
             } catch (Exception e) {
@@ -133,6 +142,8 @@ public class DocumentsListListeners {
     @Transactional
     public void createResourcesForDocuments(final ViewDefinitionState view, final GridComponent gridComponent,
             final DataDefinition documentDD, List<Entity> documents) {
+        documentService.lockDocumentsLocations(documents);
+
         for (Entity document : documents) {
             document.setField(DocumentFields.STATE, DocumentState.ACCEPTED.getStringValue());
             document.setField(DocumentFields.ACCEPTATION_IN_PROGRESS, false);
@@ -0,0 +1,103 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.materialFlowResources.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import com.qcadoo.mes.materialFlowResources.constants.DocumentAcceptanceStatus;
+
+/**
+ * Counters of document acceptance queue, kept since application start.
+ */
+public final class DocumentAcceptanceMetrics {
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    private final AtomicLong waitCount = new AtomicLong();
+
+    private final AtomicLong waitTotalMillis = new AtomicLong();
+
+    private final LongAccumulator waitMaxMillis = new LongAccumulator(Math::max, 0);
+
+    private final AtomicLong durationTotalMillis = new AtomicLong();
+
+    private final LongAccumulator durationMaxMillis = new LongAccumulator(Math::max, 0);
+
+    public void recordWait(final long waitMillis) {
+        waitCount.incrementAndGet();
+        waitTotalMillis.addAndGet(waitMillis);
+        waitMaxMillis.accumulate(waitMillis);
+    }
+
+    public void recordAcceptance(final DocumentAcceptanceStatus status, final long durationMillis) {
+        if (DocumentAcceptanceStatus.ACCEPTED.equals(status)) {
+            acceptedCount.incrementAndGet();
+        } else if (DocumentAcceptanceStatus.FAILED.equals(status)) {
+            failedCount.incrementAndGet();
+        } else {
+            retriedCount.incrementAndGet();
+        }
+
+        durationTotalMillis.addAndGet(durationMillis);
+        durationMaxMillis.accumulate(durationMillis);
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    public long getAverageWaitMillis() {
+        long count = waitCount.get();
+
+        return (count == 0) ? 0 : (waitTotalMillis.get() / count);
+    }
+
+    public long getMaxWaitMillis() {
+        return waitMaxMillis.get();
+    }
+
+    public long getAverageDurationMillis() {
+        long count = acceptedCount.get() + failedCount.get() + retriedCount.get();
+
+        return (count == 0) ? 0 : (durationTotalMillis.get() / count);
+    }
+
+    public long getMaxDurationMillis() {
+        return durationMaxMillis.get();
+    }
+
+}
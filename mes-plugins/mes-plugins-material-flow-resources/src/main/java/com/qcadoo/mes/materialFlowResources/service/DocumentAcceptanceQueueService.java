@@ -0,0 +1,392 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.materialFlowResources.service;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qcadoo.mes.basic.util.ClaimQueue;
+import com.qcadoo.mes.materialFlowResources.constants.DocumentAcceptanceStatus;
+import com.qcadoo.mes.materialFlowResources.constants.DocumentFields;
+import com.qcadoo.mes.materialFlowResources.constants.DocumentState;
+import com.qcadoo.mes.materialFlowResources.constants.MaterialFlowResourcesConstants;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+
+/**
+ * Persistent queue of document acceptances.
+ * 
+ * Documents are queued in materialflowresources_documentacceptance table and claimed by the dispatcher, which runs every few
+ * seconds. Only one acceptance per warehouse is claimed at a time, both warehouses of transfers count, so documents touching the
+ * same warehouse are accepted one by one, while documents of different warehouses are accepted in parallel by worker lanes.
+ * Acceptances failed with an exception are retried with growing delay, claims of nodes that stopped responding are taken over
+ * after a timeout and claims of this node are recovered on startup.
+ */
+@Service
+public class DocumentAcceptanceQueueService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DocumentAcceptanceQueueService.class);
+
+    private static final int L_LANES = 4;
+
+    private static final String L_DOCUMENT_ID = "document_id";
+
+    private static final String L_LOCATION_FROM_ID = "locationfrom_id";
+
+    private static final String L_LOCATION_TO_ID = "locationto_id";
+
+    private static final String L_REQUEUED_CLAIMS_COLUMNS = "q.document_id, q.status";
+
+    private static final String L_CLAIM_EXPIRED = "Acceptance claim of node expired";
+
+    private static final String L_INTERRUPTED_BY_RESTART = "Acceptance interrupted by restart";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DataDefinitionService dataDefinitionService;
+
+    @Autowired
+    private DocumentService documentService;
+
+    @Autowired
+    private MultiTenantService multiTenantService;
+
+    private ClaimQueue claimQueue;
+
+    private final ExecutorService[] lanes = createLanes();
+
+    private final Set<Long> claimedIds = Sets.newConcurrentHashSet();
+
+    private final DocumentAcceptanceMetrics metrics = new DocumentAcceptanceMetrics();
+
+    @PostConstruct
+    public void init() {
+        claimQueue = new ClaimQueue(jdbcTemplate, "materialflowresources_documentacceptance",
+                DocumentAcceptanceStatus.WAITING.getStringValue(), DocumentAcceptanceStatus.IN_PROGRESS.getStringValue(),
+                DocumentAcceptanceStatus.FAILED.getStringValue());
+    }
+
+    /**
+     * Queues acceptance of given document, unless it is already accepted or its acceptation is in progress.
+     * 
+     * @return true if document was queued
+     */
+    @Transactional
+    public boolean enqueue(final Entity document) {
+        if (!documentService.tryStartAcceptation(document.getId())) {
+            return false;
+        }
+
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put(L_DOCUMENT_ID, document.getId());
+        parameters.put(L_LOCATION_FROM_ID, getLocationId(document, DocumentFields.LOCATION_FROM));
+        parameters.put(L_LOCATION_TO_ID, getLocationId(document, DocumentFields.LOCATION_TO));
+        parameters.put(ClaimQueue.WAITING, DocumentAcceptanceStatus.WAITING.getStringValue());
+
+        jdbcTemplate.update("INSERT INTO materialflowresources_documentacceptance "
+                + "(document_id, locationfrom_id, locationto_id, status, attempts, enqueuedate, nextattemptdate) "
+                + "VALUES (:document_id, :locationfrom_id, :locationto_id, :waiting, 0, now(), now())", parameters);
+
+        LOG.info(String.format("DOCUMENT ACCEPT QUEUED: id = %d number = %s", document.getId(),
+                document.getStringField(DocumentFields.NUMBER)));
+
+        return true;
+    }
+
+    private Long getLocationId(final Entity document, final String locationField) {
+        Entity location = document.getBelongsToField(locationField);
+
+        return Objects.isNull(location) ? null : location.getId();
+    }
+
+    public void dispatchTrigger() {
+        multiTenantService.doInMultiTenantContext(new MultiTenantCallback() {
+
+            @Override
+            public void invoke() {
+                dispatch();
+            }
+
+        });
+    }
+
+    /**
+     * Refreshes heartbeat of claims of this node, takes over stale claims of other nodes and claims waiting acceptances for free
+     * worker lanes.
+     */
+    public void dispatch() {
+        claimQueue.heartbeat(claimedIds);
+
+        releaseDocuments(logRequeuedClaims(L_CLAIM_EXPIRED,
+                claimQueue.requeueStaleClaims(L_CLAIM_EXPIRED, L_REQUEUED_CLAIMS_COLUMNS)));
+
+        int freeLanes = L_LANES - claimedIds.size();
+
+        if (freeLanes <= 0) {
+            return;
+        }
+
+        for (DocumentAcceptanceClaim claim : claimAcceptances(freeLanes)) {
+            if (claim.attempts == 1) {
+                metrics.recordWait(claim.claimDate.getTime() - claim.enqueueDate.getTime());
+            }
+
+            claimedIds.add(claim.id);
+
+            lanes[Math.floorMod(Objects.hashCode(claim.getLaneLocationId()), L_LANES)].execute(() -> {
+                try {
+                    multiTenantService.doInMultiTenantContext(new MultiTenantCallback() {
+
+                        @Override
+                        public void invoke() {
+                            process(claim);
+                        }
+
+                    });
+                } finally {
+                    claimedIds.remove(claim.id);
+                }
+            });
+        }
+    }
+
+    /**
+     * Requeues acceptances claimed by this node before it was restarted and clears acceptation in progress flag of documents,
+     * which aren't accepted by views or the queue anymore.
+     */
+    public void recoverClaims() {
+        releaseDocuments(logRequeuedClaims(L_INTERRUPTED_BY_RESTART,
+                claimQueue.requeueInterruptedClaims(L_INTERRUPTED_BY_RESTART, L_REQUEUED_CLAIMS_COLUMNS)));
+
+        int releasedDocuments = jdbcTemplate.update("UPDATE materialflowresources_document d SET acceptationinprogress = false "
+                + "WHERE d.acceptationinprogress AND NOT EXISTS (SELECT 1 FROM materialflowresources_documentacceptance da "
+                + "WHERE da.document_id = d.id AND da.status IN (:waiting, :inProgress))", claimQueue.getStatusParameters());
+
+        if (releasedDocuments > 0) {
+            LOG.info(String.format("DOCUMENT ACCEPTATION IN PROGRESS CLEARED FOR %d DOCUMENTS", releasedDocuments));
+        }
+    }
+
+    public int getQueueDepth() {
+        return claimQueue.getQueueDepth();
+    }
+
+    public DocumentAcceptanceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Claims acceptances one by one, each of them is the oldest waiting acceptance, which doesn't share any warehouse with
+     * acceptances in progress, including the ones claimed before, or with older waiting acceptances.
+     */
+    @Transactional
+    public List<DocumentAcceptanceClaim> claimAcceptances(final int limit) {
+        claimQueue.lock();
+
+        Map<String, Object> parameters = claimQueue.getStatusParameters();
+
+        List<DocumentAcceptanceClaim> claims = Lists.newArrayList();
+
+        for (int claimed = 0; claimed < limit; claimed++) {
+            List<DocumentAcceptanceClaim> claim = jdbcTemplate.query("UPDATE materialflowresources_documentacceptance da "
+                    + "SET status = :inProgress, attempts = COALESCE(da.attempts, 0) + 1, claimdate = now(), claimedby = :node "
+                    + "WHERE da.id = (SELECT w.id FROM materialflowresources_documentacceptance w "
+                    + "WHERE w.status = :waiting AND w.nextattemptdate <= now() AND NOT EXISTS ("
+                    + "SELECT 1 FROM materialflowresources_documentacceptance p WHERE (p.status = :inProgress "
+                    + "OR p.status = :waiting AND p.nextattemptdate <= now() AND p.id < w.id) "
+                    + "AND (p.locationfrom_id IN (w.locationfrom_id, w.locationto_id) "
+                    + "OR p.locationto_id IN (w.locationfrom_id, w.locationto_id))) ORDER BY w.id LIMIT 1) "
+                    + "RETURNING da.id, da.document_id, da.locationfrom_id, da.locationto_id, da.attempts, da.enqueuedate, "
+                    + "da.claimdate", parameters, this::mapClaim);
+
+            if (claim.isEmpty()) {
+                break;
+            }
+
+            claims.addAll(claim);
+        }
+
+        return claims;
+    }
+
+    private DocumentAcceptanceClaim mapClaim(final ResultSet resultSet, final int rowNum) throws SQLException {
+        return new DocumentAcceptanceClaim(resultSet.getLong(ClaimQueue.ID), resultSet.getLong(L_DOCUMENT_ID),
+                (Long) resultSet.getObject(L_LOCATION_FROM_ID), (Long) resultSet.getObject(L_LOCATION_TO_ID), resultSet
+                        .getInt(ClaimQueue.ATTEMPTS), resultSet.getTimestamp("enqueuedate"), resultSet.getTimestamp("claimdate"));
+    }
+
+    private void process(final DocumentAcceptanceClaim claim) {
+        long startTime = System.currentTimeMillis();
+
+        DocumentAcceptanceStatus status;
+        String errorMessage = null;
+
+        try {
+            Entity document = dataDefinitionService.get(MaterialFlowResourcesConstants.PLUGIN_IDENTIFIER,
+                    MaterialFlowResourcesConstants.MODEL_DOCUMENT).get(claim.documentId);
+
+            if (Objects.isNull(document)) {
+                status = DocumentAcceptanceStatus.FAILED;
+                errorMessage = "Document doesn't exist";
+            } else if (DocumentState.ACCEPTED.getStringValue().equals(document.getStringField(DocumentFields.STATE))) {
+                status = DocumentAcceptanceStatus.ACCEPTED;
+            } else if (documentService.acceptDocument(document)) {
+                status = DocumentAcceptanceStatus.ACCEPTED;
+            } else {
+                status = DocumentAcceptanceStatus.FAILED;
+                errorMessage = "Document isn't valid";
+            }
+        } catch (Exception e) {
+            LOG.error(String.format("Error in acceptance of document id = %d, attempt %d", claim.documentId, claim.attempts), e);
+
+            status = ClaimQueue.canRetry(claim.attempts) ? DocumentAcceptanceStatus.WAITING : DocumentAcceptanceStatus.FAILED;
+            errorMessage = Objects.toString(e.getMessage(), e.getClass().getName());
+        }
+
+        finish(claim, status, errorMessage);
+
+        long duration = System.currentTimeMillis() - startTime;
+
+        metrics.recordAcceptance(status, duration);
+
+        LOG.info(String.format("DOCUMENT ACCEPT %s: id = %d attempt = %d duration = %d ms queue depth = %d", status.name(),
+                claim.documentId, claim.attempts, duration, getQueueDepth()));
+    }
+
+    @Transactional
+    public void finish(final DocumentAcceptanceClaim claim, final DocumentAcceptanceStatus status, final String errorMessage) {
+        if (claimQueue.finish(Collections.singletonList(claim.id), status.getStringValue(), claim.attempts, errorMessage) == 0) {
+            LOG.warn(String.format("DOCUMENT ACCEPT CLAIM LOST: id = %d attempt = %d", claim.documentId, claim.attempts));
+        } else if (!DocumentAcceptanceStatus.WAITING.equals(status)) {
+            releaseDocuments(Collections.singletonList(claim.documentId));
+        }
+    }
+
+    /**
+     * @return ids of documents of requeued claims, which ran out of attempts
+     */
+    private List<Long> logRequeuedClaims(final String errorMessage, final List<Map<String, Object>> requeuedClaims) {
+        if (!requeuedClaims.isEmpty()) {
+            LOG.warn(String.format("DOCUMENT ACCEPT CLAIMS REQUEUED: %s, document ids = %s", errorMessage, requeuedClaims
+                    .stream().map(requeuedClaim -> requeuedClaim.get(L_DOCUMENT_ID).toString())
+                    .collect(Collectors.joining(", "))));
+        }
+
+        return requeuedClaims.stream()
+                .filter(requeuedClaim -> DocumentAcceptanceStatus.FAILED.getStringValue().equals(
+                        requeuedClaim.get(ClaimQueue.STATUS)))
+                .map(requeuedClaim -> (Long) requeuedClaim.get(L_DOCUMENT_ID)).collect(Collectors.toList());
+    }
+
+    private void releaseDocuments(final List<Long> documentIds) {
+        if (!documentIds.isEmpty()) {
+            jdbcTemplate.update("UPDATE materialflowresources_document SET acceptationinprogress = false WHERE id IN (:ids)",
+                    Collections.singletonMap("ids", documentIds));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private static ExecutorService[] createLanes() {
+        ExecutorService[] lanes = new ExecutorService[L_LANES];
+
+        for (int lane = 0; lane < L_LANES; lane++) {
+            lanes[lane] = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("documentAcceptance-" + lane).build());
+        }
+
+        return lanes;
+    }
+
+    public static final class DocumentAcceptanceClaim {
+
+        private final Long id;
+
+        private final Long documentId;
+
+        private final Long locationFromId;
+
+        private final Long locationToId;
+
+        private final int attempts;
+
+        private final Date enqueueDate;
+
+        private final Date claimDate;
+
+        private DocumentAcceptanceClaim(final Long id, final Long documentId, final Long locationFromId, final Long locationToId,
+                final int attempts, final Date enqueueDate, final Date claimDate) {
+            this.id = id;
+            this.documentId = documentId;
+            this.locationFromId = locationFromId;
+            this.locationToId = locationToId;
+            this.attempts = attempts;
+            this.enqueueDate = enqueueDate;
+            this.claimDate = claimDate;
+        }
+
+        public Long getDocumentId() {
+            return documentId;
+        }
+
+        private Long getLaneLocationId() {
+            return Objects.isNull(locationFromId) ? locationToId : locationFromId;
+        }
+
+    }
+
+}
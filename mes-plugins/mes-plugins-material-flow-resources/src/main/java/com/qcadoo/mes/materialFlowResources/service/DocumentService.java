@@ -12,17 +12,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.i18n.LocaleContextHolder;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.core.namedparam.SqlParameterSource;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class DocumentService {
@@ -47,24 +50,73 @@ public class DocumentService {
     @Autowired
     private DocumentStateChangeService documentStateChangeService;
 
-    @Async
+    @Autowired
+    private DocumentAcceptanceQueueService documentAcceptanceQueueService;
+
+    /**
+     * Queues acceptance of given document, it will be accepted in background by {@link DocumentAcceptanceQueueService}.
+     */
     public void createResourcesForDocument(Entity document) {
         if (document != null
-                && !DocumentState.ACCEPTED.getStringValue().equals(document.getStringField(DocumentFields.STATE))
-                && !getAcceptationInProgress(document.getId())) {
-
-            setAcceptationInProgress(document, true);
+                && !DocumentState.ACCEPTED.getStringValue().equals(document.getStringField(DocumentFields.STATE))) {
+            documentAcceptanceQueueService.enqueue(document);
+        }
+    }
 
-            try {
-                createResourcesForDocuments(document);
-            } catch (Exception e) {
-                LOG.error("Error in createResourcesForDocuments ", e);
+    /**
+     * Marks document as being accepted, unless it is already accepted or its acceptation is in progress. Check and update are
+     * done in one statement, so only one of concurrent acceptations can start.
+     * 
+     * @return true if acceptation of document was started
+     */
+    public boolean tryStartAcceptation(final Long documentId) {
+        return !tryStartAcceptation(Collections.singletonList(documentId)).isEmpty();
+    }
 
-                throw new IllegalStateException(e.getMessage(), e);
-            } finally {
-                setAcceptationInProgress(document, false);
-            }
+    /**
+     * @return ids of documents, for which acceptation was started
+     */
+    public List<Long> tryStartAcceptation(final List<Long> documentIds) {
+        if (documentIds.isEmpty()) {
+            return Collections.emptyList();
         }
+
+        String sql = "UPDATE materialflowresources_document SET acceptationinprogress = true WHERE id IN (:ids) "
+                + "AND state <> :acceptedState AND NOT COALESCE(acceptationinprogress, false) RETURNING id";
+
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put("ids", documentIds);
+        parameters.put("acceptedState", DocumentState.ACCEPTED.getStringValue());
+
+        List<Long> startedIds = jdbcTemplate.queryForList(sql, parameters, Long.class);
+
+        LOG.info("DOCUMENT START ACCEPTATION ids = "
+                + startedIds.stream().map(Object::toString).collect(Collectors.joining(", ")));
+
+        return startedIds;
+    }
+
+    /**
+     * Locks warehouses of given documents until the end of current transaction, so acceptations of documents from the same
+     * warehouse are serialised, no matter whether they are run from views or from acceptance queue. Both warehouses of transfers
+     * are locked, all of them in order of their ids to avoid deadlocks.
+     */
+    public void lockDocumentsLocations(final List<Entity> documents) {
+        documents.stream().flatMap(document -> getDocumentLocationIds(document).stream()).distinct().sorted()
+                .forEach(locationId -> jdbcTemplate.query(
+                        "SELECT pg_advisory_xact_lock(hashtext('materialflowresources_location'), :locationId)",
+                        Collections.singletonMap("locationId", locationId.intValue()), (RowCallbackHandler) resultSet -> {
+                        }));
+    }
+
+    /**
+     * @return sorted ids of warehouses, from which document takes resources and to which it brings them
+     */
+    public List<Long> getDocumentLocationIds(final Entity document) {
+        return Stream.of(document.getBelongsToField(DocumentFields.LOCATION_FROM),
+                document.getBelongsToField(DocumentFields.LOCATION_TO)).filter(Objects::nonNull).map(Entity::getId).distinct()
+                .sorted().collect(Collectors.toList());
     }
 
     public boolean getAcceptationInProgress(final Long documentId) {
@@ -118,8 +170,15 @@ public class DocumentService {
         return jdbcTemplate.queryForObject(sql, parameters, String.class);
     }
 
+    /**
+     * Accepts document and creates its resources, errors are written to system logs.
+     * 
+     * @return true if document was accepted
+     */
     @Transactional
-    private void createResourcesForDocuments(Entity document) {
+    public boolean acceptDocument(Entity document) {
+        lockDocumentsLocations(Collections.singletonList(document));
+
         String message = String.format("DOCUMENT ACCEPT STARTED: id = %d number = %s", document.getId(),
                 document.getStringField(DocumentFields.NUMBER));
 
@@ -137,7 +196,7 @@ public class DocumentService {
 
             documentStateChangeService.buildFailureStateChange(document.getId());
 
-            return;
+            return false;
         }
 
         if (!document.getHasManyField(DocumentFields.POSITIONS).isEmpty()) {
@@ -202,5 +261,7 @@ public class DocumentService {
 
             LOG.info(successMessage);
         }
+
+        return document.isValid();
     }
 }
@@ -1,11 +1,17 @@
 package com.qcadoo.mes.materialFlowResources.service;
 
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.qcadoo.mes.basic.constants.BasicConstants;
 import com.qcadoo.mes.basic.constants.PalletNumberFields;
 import com.qcadoo.mes.materialFlowResources.constants.MaterialFlowResourcesConstants;
@@ -18,9 +24,14 @@ import com.qcadoo.model.api.search.SearchRestrictions;
 @Service
 public class PalletNumberDisposalService {
 
+    private static final int CHUNK_SIZE = 1000;
+
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
     private DataDefinition resourceDataDefinition() {
         return dataDefinitionService.get(MaterialFlowResourcesConstants.PLUGIN_IDENTIFIER,
                 MaterialFlowResourcesConstants.MODEL_RESOURCE);
@@ -39,6 +50,21 @@ public class PalletNumberDisposalService {
         }
     }
 
+    public void tryToDispose(final Collection<Long> palletNumberIds) {
+        Date issueDateTime = new Date();
+
+        for (List<Long> palletNumberIdsChunk : Lists.partition(Lists.newArrayList(palletNumberIds), CHUNK_SIZE)) {
+            Map<String, Object> parameters = Maps.newHashMap();
+
+            parameters.put("ids", palletNumberIdsChunk);
+            parameters.put("issueDateTime", issueDateTime);
+
+            jdbcTemplate.update("UPDATE basic_palletnumber SET issuedatetime = :issueDateTime WHERE id IN (:ids) "
+                    + "AND NOT EXISTS (SELECT 1 FROM materialflowresources_resource r WHERE r.palletnumber_id = basic_palletnumber.id)",
+                    parameters);
+        }
+    }
+
     private boolean thereAreNoResourcesAssociatedWithGivenPalletNumber(Entity palletNumber) {
         return resourceDataDefinition().count(SearchRestrictions.belongsTo(ResourceFields.PALLET_NUMBER, palletNumber)) == 0;
     }
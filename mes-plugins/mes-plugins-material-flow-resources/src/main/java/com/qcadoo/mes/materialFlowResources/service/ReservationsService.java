@@ -4,6 +4,7 @@ import java.math.BigDecimal;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -21,6 +22,7 @@ import com.qcadoo.mes.materialFlowResources.constants.LocationFieldsMFR;
 import com.qcadoo.mes.materialFlowResources.constants.MaterialFlowResourcesConstants;
 import com.qcadoo.mes.materialFlowResources.constants.PositionFields;
 import com.qcadoo.mes.materialFlowResources.constants.ReservationFields;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDelta;
 import com.qcadoo.model.api.BigDecimalUtils;
 import com.qcadoo.model.api.DataDefinitionService;
 import com.qcadoo.model.api.Entity;
@@ -40,6 +42,9 @@ public class ReservationsService {
     @Autowired
     private ResourceReservationsService resourceReservationsService;
 
+    @Autowired
+    private ResourceStockLedgerService resourceStockLedgerService;
+
     @Autowired
     private MultiTenantService multiTenantService;
 
@@ -85,6 +90,7 @@ public class ReservationsService {
         String query = "INSERT INTO materialflowresources_reservation (location_id, product_id, quantity, position_id, resource_id) "
                 + "VALUES ((SELECT locationfrom_id FROM materialflowresources_document WHERE id=:document_id), :product_id, :quantity, :id, :resource_id)";
 
+        resourceStockLedgerService.applyDeltas(Lists.newArrayList(getResourceStockDelta(params)));
         jdbcTemplate.update(query, params);
         resourceReservationsService.updateResourceQuantites(params, BigDecimalUtils.convertNullToZero(params.get(L_QUANTITY)));
     }
@@ -162,6 +168,12 @@ public class ReservationsService {
                     + "location_id = (SELECT locationfrom_id FROM materialflowresources_document WHERE id=:document_id), "
                     + "product_id = :product_id, quantity = :quantity, resource_id = :resource_id WHERE position_id = :id";
 
+            List<ResourceStockDelta> deltas = resourceStockLedgerService
+                    .getReservationRemovalDeltasForPositions(Lists.newArrayList(getLongValue(params, "id")));
+
+            deltas.add(getResourceStockDelta(params));
+
+            resourceStockLedgerService.applyDeltas(deltas);
             jdbcTemplate.update(query, params);
 
             if (oldResourceId != null && newResourceId != null) {
@@ -233,6 +245,8 @@ public class ReservationsService {
             return;
         }
         String query = "DELETE FROM materialflowresources_reservation WHERE position_id = :id";
+        resourceStockLedgerService.applyDeltas(resourceStockLedgerService
+                .getReservationRemovalDeltasForPositions(Lists.newArrayList(getLongValue(params, "id"))));
         jdbcTemplate.update(query, params);
         resourceReservationsService.updateResourceQuantites(params,
                 BigDecimalUtils.convertNullToZero(params.get(L_QUANTITY)).negate());
@@ -257,6 +271,20 @@ public class ReservationsService {
         }
     }
 
+    private ResourceStockDelta getResourceStockDelta(Map<String, Object> params) {
+        Long locationId = jdbcTemplate.queryForObject(
+                "SELECT locationfrom_id FROM materialflowresources_document WHERE id = :document_id", params, Long.class);
+
+        return new ResourceStockDelta(getLongValue(params, "product_id"), locationId).addReservedQuantity(BigDecimalUtils
+                .convertNullToZero(params.get(L_QUANTITY)));
+    }
+
+    private Long getLongValue(Map<String, Object> params, String key) {
+        Object value = params.get(key);
+
+        return value == null ? null : Long.valueOf(value.toString());
+    }
+
     public Boolean reservationsEnabledForDocumentPositions(Map<String, Object> params) {
         String queryForDocumentType = "SELECT type, inBuffer, locationfrom_id FROM materialflowresources_document WHERE id = :document_id";
         Map<String, Object> documentMap = jdbcTemplate.queryForMap(queryForDocumentType, params);
@@ -0,0 +1,249 @@
+package com.qcadoo.mes.materialFlowResources.service;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.qcadoo.mes.basic.constants.ProductFields;
+import com.qcadoo.mes.materialFlowResources.constants.PositionFields;
+import com.qcadoo.mes.materialFlowResources.constants.ResourceFields;
+import com.qcadoo.model.api.Entity;
+
+/**
+ * In-memory state of resources consumed by a single release or transfer document.
+ *
+ * Candidate resources for all positions are loaded up front (see
+ * {@link ResourceConsumptionService#createPlan(Entity, Entity, List, com.qcadoo.mes.materialFlowResources.constants.WarehouseAlgorithm)}),
+ * allocation is made against this state and the collected changes are written back with
+ * {@link ResourceConsumptionService#apply(ResourceConsumptionPlan)}.
+ */
+public class ResourceConsumptionPlan {
+
+    private final Map<Long, List<Entity>> resourcesByProduct;
+
+    private final Map<Long, Entity> resourcesById;
+
+    private final Map<Long, BigDecimal> reservationQuantitiesByPosition;
+
+    private final boolean fillResourceIrrespectiveOfConversion;
+
+    private final Set<Long> positionIdsWithReservationsToDelete;
+
+    private final Set<Long> updatedResourceIds = Sets.newLinkedHashSet();
+
+    private final Set<Long> deletedResourceIds = Sets.newLinkedHashSet();
+
+    private final Set<Long> palletNumberIdsToDispose = Sets.newLinkedHashSet();
+
+    private final List<PendingResource> pendingResources = Lists.newArrayList();
+
+    ResourceConsumptionPlan(final List<Entity> orderedResources, final Collection<Entity> positionResources,
+            final Map<Long, BigDecimal> reservationQuantitiesByPosition, final Set<Long> positionIdsWithReservationsToDelete,
+            final boolean fillResourceIrrespectiveOfConversion) {
+        this.resourcesByProduct = Maps.newHashMap();
+        this.resourcesById = Maps.newHashMap();
+
+        for (Entity resource : orderedResources) {
+            resourcesById.put(resource.getId(), resource);
+            resourcesByProduct.computeIfAbsent(resource.getBelongsToField(ResourceFields.PRODUCT).getId(),
+                    productId -> Lists.newArrayList()).add(resource);
+        }
+
+        for (Entity resource : positionResources) {
+            resourcesById.putIfAbsent(resource.getId(), resource);
+        }
+
+        this.reservationQuantitiesByPosition = reservationQuantitiesByPosition;
+        this.positionIdsWithReservationsToDelete = positionIdsWithReservationsToDelete;
+        this.fillResourceIrrespectiveOfConversion = fillResourceIrrespectiveOfConversion;
+    }
+
+    public List<Entity> getResourcesForPosition(final Entity position) {
+        Entity resource = position.getBelongsToField(PositionFields.RESOURCE);
+
+        if (Objects.nonNull(resource) && Objects.nonNull(resource.getId())) {
+            resource = deletedResourceIds.contains(resource.getId()) ? null : resourcesById.get(resource.getId());
+        }
+
+        if (Objects.nonNull(resource)) {
+            BigDecimal reservationQuantity = Objects.isNull(position.getId()) ? null
+                    : reservationQuantitiesByPosition.remove(position.getId());
+
+            if (Objects.nonNull(reservationQuantity)) {
+                BigDecimal resourceAvailableQuantity = resource.getDecimalField(ResourceFields.AVAILABLE_QUANTITY);
+
+                resource.setField(ResourceFields.AVAILABLE_QUANTITY, resourceAvailableQuantity.add(reservationQuantity));
+            }
+
+            return Lists.newArrayList(resource);
+        }
+
+        Entity product = position.getBelongsToField(PositionFields.PRODUCT);
+
+        List<Entity> resources = resourcesByProduct.getOrDefault(product.getId(), Collections.emptyList()).stream()
+                .filter(this::isAvailable).filter(candidate -> hasSameBatch(candidate, position))
+                .collect(Collectors.toList());
+
+        List<Entity> result = orderByAdditionalCode(
+                resources.stream().filter(candidate -> hasSameConversion(candidate, product, position))
+                        .collect(Collectors.toList()), position);
+
+        if (fillResourceIrrespectiveOfConversion) {
+            result.addAll(orderByAdditionalCode(
+                    resources.stream().filter(candidate -> hasDifferentConversion(candidate, product, position))
+                            .collect(Collectors.toList()), position));
+        }
+
+        return result;
+    }
+
+    public void update(final Entity resource) {
+        updatedResourceIds.add(resource.getId());
+    }
+
+    public void delete(final Entity resource) {
+        deletedResourceIds.add(resource.getId());
+
+        Entity palletNumber = resource.getBelongsToField(ResourceFields.PALLET_NUMBER);
+
+        if (Objects.nonNull(palletNumber)) {
+            palletNumberIdsToDispose.add(palletNumber.getId());
+        }
+    }
+
+    public void addPendingResource(final Entity newResource, final Entity newPosition, final boolean copyErrors) {
+        pendingResources.add(new PendingResource(newResource, newPosition, copyErrors));
+    }
+
+    List<Entity> getUpdatedResources() {
+        return updatedResourceIds.stream().filter(id -> !deletedResourceIds.contains(id)).map(resourcesById::get)
+                .collect(Collectors.toList());
+    }
+
+    Set<Long> getDeletedResourceIds() {
+        return deletedResourceIds;
+    }
+
+    Set<Long> getPalletNumberIdsToDispose() {
+        return palletNumberIdsToDispose;
+    }
+
+    Set<Long> getPositionIdsWithReservationsToDelete() {
+        return positionIdsWithReservationsToDelete;
+    }
+
+    List<PendingResource> getPendingResources() {
+        return pendingResources;
+    }
+
+    private boolean isAvailable(final Entity resource) {
+        return !deletedResourceIds.contains(resource.getId())
+                && BigDecimal.ZERO.compareTo(resource.getDecimalField(ResourceFields.AVAILABLE_QUANTITY)) < 0;
+    }
+
+    private boolean hasSameBatch(final Entity resource, final Entity position) {
+        Entity batch = position.getBelongsToField(PositionFields.BATCH);
+
+        if (Objects.isNull(batch)) {
+            return true;
+        }
+
+        Entity resourceBatch = resource.getBelongsToField(ResourceFields.BATCH);
+
+        return Objects.nonNull(resourceBatch) && batch.getId().equals(resourceBatch.getId());
+    }
+
+    private boolean hasSameConversion(final Entity resource, final Entity product, final Entity position) {
+        BigDecimal conversion = getExpectedConversion(product, position);
+        BigDecimal resourceConversion = resource.getDecimalField(ResourceFields.CONVERSION);
+
+        if (Objects.isNull(conversion) || Objects.isNull(resourceConversion)) {
+            return false;
+        }
+
+        return conversion.compareTo(resourceConversion) == 0;
+    }
+
+    private boolean hasDifferentConversion(final Entity resource, final Entity product, final Entity position) {
+        BigDecimal conversion = getExpectedConversion(product, position);
+        BigDecimal resourceConversion = resource.getDecimalField(ResourceFields.CONVERSION);
+
+        if (Objects.isNull(conversion) || Objects.isNull(resourceConversion)) {
+            return false;
+        }
+
+        return conversion.compareTo(resourceConversion) != 0;
+    }
+
+    private BigDecimal getExpectedConversion(final Entity product, final Entity position) {
+        if (StringUtils.isNotEmpty(product.getStringField(ProductFields.ADDITIONAL_UNIT))) {
+            return position.getDecimalField(PositionFields.CONVERSION);
+        } else {
+            return BigDecimal.ONE;
+        }
+    }
+
+    private List<Entity> orderByAdditionalCode(final List<Entity> resources, final Entity position) {
+        Entity additionalCode = position.getBelongsToField(PositionFields.ADDITIONAL_CODE);
+
+        if (Objects.isNull(additionalCode)) {
+            return resources;
+        }
+
+        List<Entity> withAdditionalCode = Lists.newArrayList();
+        List<Entity> withOtherAdditionalCode = Lists.newArrayList();
+
+        for (Entity resource : resources) {
+            Entity resourceAdditionalCode = resource.getBelongsToField(ResourceFields.ADDITIONAL_CODE);
+
+            if (Objects.nonNull(resourceAdditionalCode) && additionalCode.getId().equals(resourceAdditionalCode.getId())) {
+                withAdditionalCode.add(resource);
+            } else {
+                withOtherAdditionalCode.add(resource);
+            }
+        }
+
+        withAdditionalCode.addAll(withOtherAdditionalCode);
+
+        return withAdditionalCode;
+    }
+
+    static class PendingResource {
+
+        private final Entity resource;
+
+        private final Entity position;
+
+        private final boolean copyErrors;
+
+        PendingResource(final Entity resource, final Entity position, final boolean copyErrors) {
+            this.resource = resource;
+            this.position = position;
+            this.copyErrors = copyErrors;
+        }
+
+        Entity getResource() {
+            return resource;
+        }
+
+        Entity getPosition() {
+            return position;
+        }
+
+        boolean isCopyErrors() {
+            return copyErrors;
+        }
+
+    }
+
+}
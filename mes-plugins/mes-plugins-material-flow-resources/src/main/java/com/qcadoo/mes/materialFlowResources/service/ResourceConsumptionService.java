@@ -0,0 +1,303 @@
+package com.qcadoo.mes.materialFlowResources.service;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.qcadoo.mes.basic.ParameterService;
+import com.qcadoo.mes.materialFlowResources.constants.DocumentPositionParametersFields;
+import com.qcadoo.mes.materialFlowResources.constants.MaterialFlowResourcesConstants;
+import com.qcadoo.mes.materialFlowResources.constants.ParameterFieldsMFR;
+import com.qcadoo.mes.materialFlowResources.constants.PositionFields;
+import com.qcadoo.mes.materialFlowResources.constants.ReservationFields;
+import com.qcadoo.mes.materialFlowResources.constants.ResourceFields;
+import com.qcadoo.mes.materialFlowResources.constants.WarehouseAlgorithm;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDelta;
+import com.qcadoo.mes.materialFlowResources.exceptions.InvalidResourceException;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.search.SearchCriteriaBuilder;
+import com.qcadoo.model.api.search.SearchOrders;
+import com.qcadoo.model.api.search.SearchRestrictions;
+
+@Service
+public class ResourceConsumptionService {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final String L_ID = "id";
+
+    private static final String L_IDS = "ids";
+
+    private static final String UPDATE_RESOURCE_QUANTITIES = "UPDATE materialflowresources_resource SET "
+            + "quantity = :quantity, availablequantity = :availableQuantity, reservedquantity = :reservedQuantity, "
+            + "quantityinadditionalunit = :quantityInAdditionalUnit, entityversion = entityversion + 1 WHERE id = :id "
+            + "AND CAST(:quantity AS numeric) > 0 AND COALESCE(CAST(:availableQuantity AS numeric), 0) >= 0 "
+            + "AND COALESCE(CAST(:reservedQuantity AS numeric), 0) >= 0 "
+            + "AND COALESCE(CAST(:quantityInAdditionalUnit AS numeric), 1) > 0";
+
+    private static final String L_OUT_OF_RANGE_TO_SMALL = "qcadooView.validate.field.error.outOfRange.toSmall";
+
+    private static final int L_MAX_UNSCALED_VALUE = 9;
+
+    private static final int L_MAX_SCALE = 5;
+
+    @Autowired
+    private DataDefinitionService dataDefinitionService;
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private ParameterService parameterService;
+
+    @Autowired
+    private ReservationsService reservationsService;
+
+    @Autowired
+    private PalletNumberDisposalService palletNumberDisposalService;
+
+    @Autowired
+    private ResourceStockLedgerService resourceStockLedgerService;
+
+    public ResourceConsumptionPlan createPlan(final Entity document, final Entity warehouse, final List<Entity> positions,
+            final WarehouseAlgorithm warehouseAlgorithm) {
+        Set<Long> productIds = Sets.newHashSet();
+        Set<Long> positionResourceIds = Sets.newHashSet();
+        Set<Long> positionIds = Sets.newLinkedHashSet();
+
+        for (Entity position : positions) {
+            productIds.add(position.getBelongsToField(PositionFields.PRODUCT).getId());
+
+            Entity resource = position.getBelongsToField(PositionFields.RESOURCE);
+
+            if (Objects.nonNull(resource) && Objects.nonNull(resource.getId())) {
+                positionResourceIds.add(resource.getId());
+            }
+            if (Objects.nonNull(position.getId())) {
+                positionIds.add(position.getId());
+            }
+        }
+
+        List<Entity> resources = getResourcesForWarehouseProductsAndAlgorithm(warehouse, productIds, warehouseAlgorithm);
+
+        Set<Long> loadedResourceIds = resources.stream().map(Entity::getId).collect(Collectors.toSet());
+
+        positionResourceIds.removeAll(loadedResourceIds);
+
+        Entity documentPositionParameters = parameterService.getParameter()
+                .getBelongsToField(ParameterFieldsMFR.DOCUMENT_POSITION_PARAMETERS);
+
+        boolean fillResourceIrrespectiveOfConversion = documentPositionParameters
+                .getBooleanField(DocumentPositionParametersFields.FILL_RESOURCE_IRRESPECTIVE_OF_CONVERSION);
+
+        Set<Long> positionIdsWithReservationsToDelete = reservationsService.reservationsEnabledForDocumentPositions(document)
+                ? positionIds : Collections.emptySet();
+
+        return new ResourceConsumptionPlan(resources, getResourcesByIds(positionResourceIds),
+                getReservationQuantitiesForPositions(positionIds), positionIdsWithReservationsToDelete,
+                fillResourceIrrespectiveOfConversion);
+    }
+
+    public void apply(final ResourceConsumptionPlan plan) {
+        deleteReservations(plan.getPositionIdsWithReservationsToDelete());
+        updateResources(plan.getUpdatedResources());
+        deleteResources(plan.getDeletedResourceIds());
+
+        palletNumberDisposalService.tryToDispose(plan.getPalletNumberIdsToDispose());
+    }
+
+    private List<Entity> getResourcesForWarehouseProductsAndAlgorithm(final Entity warehouse, final Set<Long> productIds,
+            final WarehouseAlgorithm warehouseAlgorithm) {
+        List<Entity> resources = Lists.newArrayList();
+
+        for (List<Long> productIdsChunk : Lists.partition(Lists.newArrayList(productIds), CHUNK_SIZE)) {
+            SearchCriteriaBuilder scb = getResourceDD().find()
+                    .add(SearchRestrictions.belongsTo(ResourceFields.LOCATION, warehouse))
+                    .add(SearchRestrictions.in(ResourceFields.PRODUCT + ".id", productIdsChunk))
+                    .add(SearchRestrictions.gt(ResourceFields.AVAILABLE_QUANTITY, BigDecimal.ZERO))
+                    .add(SearchRestrictions.eq(ResourceFields.BLOCKED_FOR_QUALITY_CONTROL, false));
+
+            addSearchOrders(scb, warehouseAlgorithm);
+
+            resources.addAll(scb.list().getEntities());
+        }
+
+        return resources;
+    }
+
+    private void addSearchOrders(final SearchCriteriaBuilder scb, final WarehouseAlgorithm warehouseAlgorithm) {
+        if (WarehouseAlgorithm.FIFO.equals(warehouseAlgorithm)) {
+            scb.addOrder(SearchOrders.asc(ResourceFields.TIME));
+        } else if (WarehouseAlgorithm.LIFO.equals(warehouseAlgorithm)) {
+            scb.addOrder(SearchOrders.desc(ResourceFields.TIME));
+        } else if (WarehouseAlgorithm.FEFO.equals(warehouseAlgorithm)) {
+            scb.addOrder(SearchOrders.asc(ResourceFields.EXPIRATION_DATE));
+            scb.addOrder(SearchOrders.asc(ResourceFields.AVAILABLE_QUANTITY));
+        } else if (WarehouseAlgorithm.LEFO.equals(warehouseAlgorithm)) {
+            scb.addOrder(SearchOrders.desc(ResourceFields.EXPIRATION_DATE));
+            scb.addOrder(SearchOrders.asc(ResourceFields.AVAILABLE_QUANTITY));
+        }
+    }
+
+    private List<Entity> getResourcesByIds(final Set<Long> resourceIds) {
+        List<Entity> resources = Lists.newArrayList();
+
+        for (List<Long> resourceIdsChunk : Lists.partition(Lists.newArrayList(resourceIds), CHUNK_SIZE)) {
+            resources.addAll(getResourceDD().find().add(SearchRestrictions.in(L_ID, resourceIdsChunk)).list().getEntities());
+        }
+
+        return resources;
+    }
+
+    private Map<Long, BigDecimal> getReservationQuantitiesForPositions(final Set<Long> positionIds) {
+        Map<Long, BigDecimal> reservationQuantities = Maps.newHashMap();
+
+        for (List<Long> positionIdsChunk : Lists.partition(Lists.newArrayList(positionIds), CHUNK_SIZE)) {
+            List<Entity> reservations = dataDefinitionService
+                    .get(MaterialFlowResourcesConstants.PLUGIN_IDENTIFIER, MaterialFlowResourcesConstants.MODEL_RESERVATION)
+                    .find().add(SearchRestrictions.in(ReservationFields.POSITION + ".id", positionIdsChunk)).list()
+                    .getEntities();
+
+            for (Entity reservation : reservations) {
+                reservationQuantities.putIfAbsent(reservation.getBelongsToField(ReservationFields.POSITION).getId(),
+                        reservation.getDecimalField(ReservationFields.QUANTITY));
+            }
+        }
+
+        return reservationQuantities;
+    }
+
+    private void deleteReservations(final Set<Long> positionIds) {
+        for (List<Long> positionIdsChunk : Lists.partition(Lists.newArrayList(positionIds), CHUNK_SIZE)) {
+            resourceStockLedgerService.applyDeltas(resourceStockLedgerService
+                    .getReservationRemovalDeltasForPositions(positionIdsChunk));
+
+            jdbcTemplate.update("DELETE FROM materialflowresources_reservation WHERE position_id IN (:ids)",
+                    Collections.singletonMap(L_IDS, positionIdsChunk));
+        }
+    }
+
+    private void updateResources(final List<Entity> resources) {
+        List<SqlParameterSource> batchParameters = Lists.newArrayList();
+        List<Entity> batchResources = Lists.newArrayList();
+        List<Long> batchResourceIds = Lists.newArrayList();
+        List<ResourceStockDelta> deltas = Lists.newArrayList();
+
+        for (Entity resource : resources) {
+            if (hasValidQuantities(resource)) {
+                MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+                parameters.addValue(L_ID, resource.getId());
+                parameters.addValue(ResourceFields.QUANTITY, resource.getDecimalField(ResourceFields.QUANTITY));
+                parameters.addValue(ResourceFields.AVAILABLE_QUANTITY,
+                        resource.getDecimalField(ResourceFields.AVAILABLE_QUANTITY));
+                parameters.addValue(ResourceFields.RESERVED_QUANTITY, resource.getDecimalField(ResourceFields.RESERVED_QUANTITY));
+                parameters.addValue(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT,
+                        resource.getDecimalField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT));
+
+                batchParameters.add(parameters);
+                batchResources.add(resource);
+                batchResourceIds.add(resource.getId());
+                deltas.add(resourceStockLedgerService.getResourceDelta(resource));
+            } else {
+                Entity savedResource = resource.getDataDefinition().save(resource);
+
+                if (!savedResource.isValid()) {
+                    throw new InvalidResourceException(savedResource);
+                }
+            }
+        }
+
+        deltas.addAll(resourceStockLedgerService.getResourceRemovalDeltas(batchResourceIds));
+
+        resourceStockLedgerService.applyDeltas(deltas);
+
+        for (int fromIndex = 0; fromIndex < batchParameters.size(); fromIndex += CHUNK_SIZE) {
+            List<SqlParameterSource> batchParametersChunk = batchParameters.subList(fromIndex,
+                    Math.min(fromIndex + CHUNK_SIZE, batchParameters.size()));
+
+            int[] updatedRows = jdbcTemplate.batchUpdate(UPDATE_RESOURCE_QUANTITIES,
+                    batchParametersChunk.toArray(new SqlParameterSource[batchParametersChunk.size()]));
+
+            for (int index = 0; index < updatedRows.length; index++) {
+                if (updatedRows[index] == 0) {
+                    Entity resource = batchResources.get(fromIndex + index);
+
+                    resource.addError(resource.getDataDefinition().getField(ResourceFields.QUANTITY), L_OUT_OF_RANGE_TO_SMALL);
+
+                    throw new InvalidResourceException(resource);
+                }
+            }
+        }
+    }
+
+    /**
+     * Quantities written by the batch update have to pass the same range, unscaled value and scale validators as the resource
+     * model declares for them - the rest goes through the data definition. Other resource validators (pallet, dates, attributes,
+     * batch) concern fields the update doesn't change. Ranges are checked again by the update itself, which rejects the row.
+     */
+    private boolean hasValidQuantities(final Entity resource) {
+        BigDecimal quantity = resource.getDecimalField(ResourceFields.QUANTITY);
+        BigDecimal quantityInAdditionalUnit = resource.getDecimalField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT);
+        BigDecimal availableQuantity = resource.getDecimalField(ResourceFields.AVAILABLE_QUANTITY);
+        BigDecimal reservedQuantity = resource.getDecimalField(ResourceFields.RESERVED_QUANTITY);
+
+        return Objects.nonNull(quantity) && BigDecimal.ZERO.compareTo(quantity) < 0 && hasValidPrecision(quantity)
+                && (Objects.isNull(quantityInAdditionalUnit) || (BigDecimal.ZERO.compareTo(quantityInAdditionalUnit) < 0
+                        && hasValidPrecision(quantityInAdditionalUnit)))
+                && (Objects.isNull(availableQuantity) || (BigDecimal.ZERO.compareTo(availableQuantity) <= 0
+                        && hasValidPrecision(availableQuantity)))
+                && (Objects.isNull(reservedQuantity) || (BigDecimal.ZERO.compareTo(reservedQuantity) <= 0
+                        && hasValidPrecision(reservedQuantity)));
+    }
+
+    private boolean hasValidPrecision(final BigDecimal value) {
+        BigDecimal strippedValue = value.stripTrailingZeros();
+
+        return (strippedValue.precision() - strippedValue.scale() <= L_MAX_UNSCALED_VALUE)
+                && (strippedValue.scale() <= L_MAX_SCALE);
+    }
+
+    private void deleteResources(final Set<Long> resourceIds) {
+        for (List<Long> resourceIdsChunk : Lists.partition(Lists.newArrayList(resourceIds), CHUNK_SIZE)) {
+            Map<String, Object> parameters = Collections.singletonMap(L_IDS, resourceIdsChunk);
+
+            List<ResourceStockDelta> deltas = resourceStockLedgerService.getResourceRemovalDeltas(resourceIdsChunk);
+
+            deltas.addAll(resourceStockLedgerService.getReservationRemovalDeltasForResources(resourceIdsChunk));
+
+            resourceStockLedgerService.applyDeltas(deltas);
+
+            jdbcTemplate.update("UPDATE materialflowresources_position SET resource_id = NULL WHERE resource_id IN (:ids)",
+                    parameters);
+            jdbcTemplate.update(
+                    "UPDATE materialflowresources_resourcecorrection SET resource_id = NULL WHERE resource_id IN (:ids)",
+                    parameters);
+            jdbcTemplate.update("DELETE FROM materialflowresources_reservation WHERE resource_id IN (:ids)", parameters);
+            jdbcTemplate.update("DELETE FROM materialflowresources_resourceattributevalue WHERE resource_id IN (:ids)",
+                    parameters);
+            jdbcTemplate.update("DELETE FROM materialflowresources_resource WHERE id IN (:ids)", parameters);
+        }
+    }
+
+    private DataDefinition getResourceDD() {
+        return dataDefinitionService.get(MaterialFlowResourcesConstants.PLUGIN_IDENTIFIER,
+                MaterialFlowResourcesConstants.MODEL_RESOURCE);
+    }
+
+}
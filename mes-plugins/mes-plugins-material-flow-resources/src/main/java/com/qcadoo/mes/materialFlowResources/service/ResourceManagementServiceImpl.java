@@ -93,7 +93,7 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
     private NumberService numberService;
 
     @Autowired
-    private PalletNumberDisposalService palletNumberDisposalService;
+    private ResourceConsumptionService resourceConsumptionService;
 
     @Autowired
     private ResourceStockService resourceStockService;
@@ -224,8 +224,8 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
         });
     }
 
-    private Entity createResource(final Entity position, final Entity warehouse, final Entity resource,
-            final BigDecimal quantity, final/**/Object date) {
+    private Entity prepareResource(final Entity position, final Entity warehouse, final Entity resource,
+            final BigDecimal quantity, final Object date) {
         Entity newResource = resource.getDataDefinition().create();
 
         if (position != null) {
@@ -278,9 +278,14 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
                     attributeValues.add(av);
                 });
         newResource.setField(ResourceFields.RESOURCE_ATTRIBUTE_VALUES, attributeValues);
+
+        return newResource;
+    }
+
+    private Entity saveResource(final Entity newResource) {
         resourceStockService.createResourceStock(newResource);
 
-        return resource.getDataDefinition().save(newResource);
+        return newResource.getDataDefinition().save(newResource);
     }
 
     private Entity findStorageLocationForProduct(final Entity warehouse, final Entity product) {
@@ -412,10 +417,17 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
         NotEnoughResourcesErrorMessageHolder errorMessageHolder = notEnoughResourcesErrorMessageHolderFactory.create();
         boolean isFromOrder = Objects.nonNull(document.getBelongsToField(L_ORDER));
 
-        for (Entity position : document.getHasManyField(DocumentFields.POSITIONS)) {
+        List<Entity> positions = document.getHasManyField(DocumentFields.POSITIONS);
+
+        ResourceConsumptionPlan resourceConsumptionPlan = resourceConsumptionService.createPlan(document, warehouse, positions,
+                warehouseAlgorithm);
+
+        List<List<Entity>> generatedPositionsForPositions = Lists.newArrayList();
+
+        for (Entity position : positions) {
             Entity product = position.getBelongsToField(PositionFields.PRODUCT);
 
-            Either<BigDecimal, List<Entity>> eitherPositions = updateResources(warehouse, position, warehouseAlgorithm,
+            Either<BigDecimal, List<Entity>> eitherPositions = updateResources(resourceConsumptionPlan, warehouse, position,
                     isFromOrder);
 
             enoughResources = enoughResources && position.isValid();
@@ -424,25 +436,39 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
                 BigDecimal missingResourceAmount = eitherPositions.getLeft();
                 errorMessageHolder
                         .addErrorEntry(product, position.getBelongsToField(PositionFields.BATCH), missingResourceAmount);
+
+                generatedPositionsForPositions.add(null);
             } else {
-                List<Entity> generatedPositions = eitherPositions.getRight();
-                if (generatedPositions.size() > 1) {
-                    if (Objects.nonNull(position.getId())) {
-                        position.getDataDefinition().delete(position.getId());
-                    }
+                generatedPositionsForPositions.add(eitherPositions.getRight());
+            }
+        }
 
-                    for (Entity newPosition : generatedPositions) {
-                        newPosition.setField(PositionFields.DOCUMENT, document);
+        resourceConsumptionService.apply(resourceConsumptionPlan);
 
-                        Entity saved = newPosition.getDataDefinition().save(newPosition);
-                        addPositionErrors(document, saved);
-                    }
-                } else {
-                    copyPositionValues(position, generatedPositions.get(0), true);
+        for (int index = 0; index < positions.size(); index++) {
+            Entity position = positions.get(index);
+            List<Entity> generatedPositions = generatedPositionsForPositions.get(index);
 
-                    Entity saved = position.getDataDefinition().save(position);
+            if (Objects.isNull(generatedPositions)) {
+                continue;
+            }
+
+            if (generatedPositions.size() > 1) {
+                if (Objects.nonNull(position.getId())) {
+                    position.getDataDefinition().delete(position.getId());
+                }
+
+                for (Entity newPosition : generatedPositions) {
+                    newPosition.setField(PositionFields.DOCUMENT, document);
+
+                    Entity saved = newPosition.getDataDefinition().save(newPosition);
                     addPositionErrors(document, saved);
                 }
+            } else {
+                copyPositionValues(position, generatedPositions.get(0), true);
+
+                Entity saved = position.getDataDefinition().save(position);
+                addPositionErrors(document, saved);
             }
         }
 
@@ -489,15 +515,13 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
         }
     }
 
-    private Either<BigDecimal, List<Entity>> updateResources(final Entity warehouse, final Entity position,
-            final WarehouseAlgorithm warehouseAlgorithm, boolean isFromOrder) {
+    private Either<BigDecimal, List<Entity>> updateResources(final ResourceConsumptionPlan resourceConsumptionPlan,
+            final Entity warehouse, final Entity position, boolean isFromOrder) {
         List<Entity> newPositions = Lists.newArrayList();
 
         Entity product = position.getBelongsToField(PositionFields.PRODUCT);
 
-        List<Entity> resources = getResourcesForWarehouseProductAndAlgorithm(warehouse, product, position, warehouseAlgorithm);
-
-        reservationsService.deleteReservationFromDocumentPosition(position);
+        List<Entity> resources = resourceConsumptionPlan.getResourcesForPosition(position);
 
         BigDecimal quantity = position.getDecimalField(PositionFields.QUANTITY);
         BigDecimal conversion = BigDecimalUtils.convertNullToOne(position.getDecimalField(PositionFields.CONVERSION));
@@ -535,27 +559,8 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
                     || givenQuantity.compareTo(givenResourceAvailableQuantity) == 0) {
                 quantity = quantity.subtract(resourceAvailableQuantity, numberService.getMathContext());
 
-                if (resourceQuantity.compareTo(resourceAvailableQuantity) <= 0) {
-                    Entity palletNumberToDispose = resource.getBelongsToField(ResourceFields.PALLET_NUMBER);
-
-                    resource.getDataDefinition().delete(resource.getId());
-
-                    palletNumberDisposalService.tryToDispose(palletNumberToDispose);
-                } else {
-                    BigDecimal newResourceQuantity = resourceQuantity.subtract(resourceAvailableQuantity);
-                    BigDecimal quantityInAdditionalUnit = calculationQuantityService.calculateAdditionalQuantity(
-                            newResourceQuantity, conversion, givenUnit);
-
-                    resource.setField(ResourceFields.AVAILABLE_QUANTITY, BigDecimal.ZERO);
-                    resource.setField(ResourceFields.QUANTITY, newResourceQuantity);
-                    resource.setField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT, quantityInAdditionalUnit);
-
-                    Entity savedResource = resource.getDataDefinition().save(resource);
-
-                    if (!savedResource.isValid()) {
-                        throw new InvalidResourceException(savedResource);
-                    }
-                }
+                consumeWholeAvailableQuantity(resourceConsumptionPlan, resource, resourceQuantity, resourceAvailableQuantity,
+                        conversion, givenUnit);
 
                 newPosition.setField(PositionFields.QUANTITY,
                         numberService.setScaleWithDefaultMathContext(resourceAvailableQuantity));
@@ -569,21 +574,8 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
                     return Either.right(newPositions);
                 }
             } else {
-                resourceQuantity = resourceQuantity.subtract(quantity, numberService.getMathContext());
-                resourceAvailableQuantity = resourceAvailableQuantity.subtract(quantity, numberService.getMathContext());
-
-                BigDecimal quantityInAdditionalUnit = calculationQuantityService.calculateAdditionalQuantity(resourceQuantity,
-                        conversion, givenUnit);
-
-                resource.setField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT, quantityInAdditionalUnit);
-                resource.setField(ResourceFields.QUANTITY, numberService.setScaleWithDefaultMathContext(resourceQuantity));
-                resource.setField(ResourceFields.AVAILABLE_QUANTITY, resourceAvailableQuantity);
-
-                Entity savedResource = resource.getDataDefinition().save(resource);
-
-                if (!savedResource.isValid()) {
-                    throw new InvalidResourceException(savedResource);
-                }
+                consumePartOfAvailableQuantity(resourceConsumptionPlan, resource, resourceQuantity, resourceAvailableQuantity,
+                        quantity, conversion, givenUnit);
 
                 newPosition.setField(PositionFields.QUANTITY, numberService.setScaleWithDefaultMathContext(quantity));
                 newPosition.setField(PositionFields.GIVEN_QUANTITY, givenQuantity);
@@ -600,6 +592,40 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
         return Either.left(quantity);
     }
 
+    private void consumeWholeAvailableQuantity(final ResourceConsumptionPlan resourceConsumptionPlan, final Entity resource,
+            final BigDecimal resourceQuantity, final BigDecimal resourceAvailableQuantity, final BigDecimal conversion,
+            final String givenUnit) {
+        if (resourceQuantity.compareTo(resourceAvailableQuantity) <= 0) {
+            resourceConsumptionPlan.delete(resource);
+        } else {
+            BigDecimal newResourceQuantity = resourceQuantity.subtract(resourceAvailableQuantity);
+            BigDecimal quantityInAdditionalUnit = calculationQuantityService.calculateAdditionalQuantity(newResourceQuantity,
+                    conversion, givenUnit);
+
+            resource.setField(ResourceFields.AVAILABLE_QUANTITY, BigDecimal.ZERO);
+            resource.setField(ResourceFields.QUANTITY, newResourceQuantity);
+            resource.setField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT, quantityInAdditionalUnit);
+
+            resourceConsumptionPlan.update(resource);
+        }
+    }
+
+    private void consumePartOfAvailableQuantity(final ResourceConsumptionPlan resourceConsumptionPlan, final Entity resource,
+            final BigDecimal resourceQuantity, final BigDecimal resourceAvailableQuantity, final BigDecimal quantity,
+            final BigDecimal conversion, final String givenUnit) {
+        BigDecimal newResourceQuantity = resourceQuantity.subtract(quantity, numberService.getMathContext());
+        BigDecimal newResourceAvailableQuantity = resourceAvailableQuantity.subtract(quantity, numberService.getMathContext());
+
+        BigDecimal quantityInAdditionalUnit = calculationQuantityService.calculateAdditionalQuantity(newResourceQuantity,
+                conversion, givenUnit);
+
+        resource.setField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT, quantityInAdditionalUnit);
+        resource.setField(ResourceFields.QUANTITY, numberService.setScaleWithDefaultMathContext(newResourceQuantity));
+        resource.setField(ResourceFields.AVAILABLE_QUANTITY, newResourceAvailableQuantity);
+
+        resourceConsumptionPlan.update(resource);
+    }
+
     private void moveResourcesForTransferDocument(final Entity document) {
         Entity warehouseFrom = document.getBelongsToField(DocumentFields.LOCATION_FROM);
         Entity warehouseTo = document.getBelongsToField(DocumentFields.LOCATION_TO);
@@ -614,11 +640,18 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
 
         boolean isFromOrder = Objects.nonNull(document.getBelongsToField(L_ORDER));
 
-        for (Entity position : document.getHasManyField(DocumentFields.POSITIONS)) {
+        List<Entity> positions = document.getHasManyField(DocumentFields.POSITIONS);
+
+        ResourceConsumptionPlan resourceConsumptionPlan = resourceConsumptionService.createPlan(document, warehouseFrom,
+                positions, warehouseAlgorithm);
+
+        List<List<Entity>> generatedPositionsForPositions = Lists.newArrayList();
+
+        for (Entity position : positions) {
             Entity product = position.getBelongsToField(PositionFields.PRODUCT);
 
-            Either<BigDecimal, List<Entity>> eitherPositions = moveResources(warehouseFrom, warehouseTo, position, date,
-                    warehouseAlgorithm, isFromOrder);
+            Either<BigDecimal, List<Entity>> eitherPositions = moveResources(resourceConsumptionPlan, warehouseFrom, warehouseTo,
+                    position, date, isFromOrder);
 
             enoughResources = enoughResources && position.isValid();
 
@@ -626,26 +659,42 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
                 BigDecimal missingResourceAmount = eitherPositions.getLeft();
                 errorMessageHolder
                         .addErrorEntry(product, position.getBelongsToField(PositionFields.BATCH), missingResourceAmount);
+
+                generatedPositionsForPositions.add(null);
             } else {
-                List<Entity> generatedPositions = eitherPositions.getRight();
-                if (generatedPositions.size() > 1) {
-                    if (Objects.nonNull(position.getId())) {
-                        position.getDataDefinition().delete(position.getId());
-                    }
+                generatedPositionsForPositions.add(eitherPositions.getRight());
+            }
+        }
 
-                    for (Entity newPosition : generatedPositions) {
-                        newPosition.setField(PositionFields.DOCUMENT, document);
+        resourceConsumptionService.apply(resourceConsumptionPlan);
 
-                        Entity saved = newPosition.getDataDefinition().save(newPosition);
-                        addPositionErrors(document, saved);
-                    }
-                } else {
-                    copyPositionValues(position, generatedPositions.get(0), true);
-                    copyPositionErrors(position, generatedPositions.get(0));
+        savePendingResources(resourceConsumptionPlan);
+
+        for (int index = 0; index < positions.size(); index++) {
+            Entity position = positions.get(index);
+            List<Entity> generatedPositions = generatedPositionsForPositions.get(index);
+
+            if (Objects.isNull(generatedPositions)) {
+                continue;
+            }
 
-                    Entity saved = position.getDataDefinition().save(position);
+            if (generatedPositions.size() > 1) {
+                if (Objects.nonNull(position.getId())) {
+                    position.getDataDefinition().delete(position.getId());
+                }
+
+                for (Entity newPosition : generatedPositions) {
+                    newPosition.setField(PositionFields.DOCUMENT, document);
+
+                    Entity saved = newPosition.getDataDefinition().save(newPosition);
                     addPositionErrors(document, saved);
                 }
+            } else {
+                copyPositionValues(position, generatedPositions.get(0), true);
+                copyPositionErrors(position, generatedPositions.get(0));
+
+                Entity saved = position.getDataDefinition().save(position);
+                addPositionErrors(document, saved);
             }
         }
 
@@ -654,21 +703,30 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
         }
     }
 
+    private void savePendingResources(final ResourceConsumptionPlan resourceConsumptionPlan) {
+        for (ResourceConsumptionPlan.PendingResource pendingResource : resourceConsumptionPlan.getPendingResources()) {
+            Entity newResource = saveResource(pendingResource.getResource());
+
+            if (pendingResource.isCopyErrors() && !newResource.isValid()) {
+                copyResourceErrorsToPosition(pendingResource.getPosition(), newResource);
+            }
+        }
+    }
+
     private void copyPositionErrors(final Entity position, final Entity newPosition) {
         for (Map.Entry<String, ErrorMessage> error : newPosition.getErrors().entrySet()) {
             position.addError(position.getDataDefinition().getField(error.getKey()), error.getValue().getMessage());
         }
     }
 
-    private Either<BigDecimal, List<Entity>> moveResources(final Entity warehouseFrom, final Entity warehouseTo,
-            final Entity position, final Object date, final WarehouseAlgorithm warehouseAlgorithm, boolean isFromOrder) {
+    private Either<BigDecimal, List<Entity>> moveResources(final ResourceConsumptionPlan resourceConsumptionPlan,
+            final Entity warehouseFrom, final Entity warehouseTo, final Entity position, final Object date,
+            boolean isFromOrder) {
         List<Entity> newPositions = Lists.newArrayList();
 
         Entity product = position.getBelongsToField(PositionFields.PRODUCT);
 
-        List<Entity> resources = getResourcesForWarehouseProductAndAlgorithm(warehouseFrom, product, position, warehouseAlgorithm);
-
-        reservationsService.deleteReservationFromDocumentPosition(position);
+        List<Entity> resources = resourceConsumptionPlan.getResourcesForPosition(position);
 
         BigDecimal quantity = position.getDecimalField(PositionFields.QUANTITY);
         BigDecimal conversion = BigDecimalUtils.convertNullToOne(position.getDecimalField(PositionFields.CONVERSION));
@@ -706,72 +764,36 @@ public class ResourceManagementServiceImpl implements ResourceManagementService
                     || givenQuantity.compareTo(givenResourceAvailableQuantity) == 0) {
                 quantity = quantity.subtract(resourceAvailableQuantity, numberService.getMathContext());
 
-                if (resourceQuantity.compareTo(resourceAvailableQuantity) <= 0) {
-                    Entity palletNumberToDispose = resource.getBelongsToField(ResourceFields.PALLET_NUMBER);
-
-                    resource.getDataDefinition().delete(resource.getId());
-
-                    palletNumberDisposalService.tryToDispose(palletNumberToDispose);
-                } else {
-                    BigDecimal newResourceQuantity = resourceQuantity.subtract(resourceAvailableQuantity);
-                    BigDecimal quantityInAdditionalUnit = calculationQuantityService.calculateAdditionalQuantity(
-                            newResourceQuantity, conversion, givenUnit);
-
-                    resource.setField(ResourceFields.AVAILABLE_QUANTITY, BigDecimal.ZERO);
-                    resource.setField(ResourceFields.QUANTITY, newResourceQuantity);
-                    resource.setField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT, quantityInAdditionalUnit);
-
-                    Entity savedResource = resource.getDataDefinition().save(resource);
-
-                    if (!savedResource.isValid()) {
-                        throw new InvalidResourceException(savedResource);
-                    }
-                }
+                Entity newResource = prepareResource(position, warehouseTo, resource, resourceAvailableQuantity, date);
 
-                Entity newResource = createResource(position, warehouseTo, resource, resourceAvailableQuantity, date);
+                consumeWholeAvailableQuantity(resourceConsumptionPlan, resource, resourceQuantity, resourceAvailableQuantity,
+                        conversion, givenUnit);
 
                 newPosition.setField(PositionFields.QUANTITY,
                         numberService.setScaleWithDefaultMathContext(resourceAvailableQuantity));
                 newPosition.setField(PositionFields.GIVEN_QUANTITY, givenResourceAvailableQuantity);
 
+                newPositions.add(newPosition);
+
                 if (BigDecimal.ZERO.compareTo(quantity) == 0
                         || BigDecimal.ZERO.compareTo(calculationQuantityService.calculateAdditionalQuantity(quantity, conversion,
                         givenUnit)) == 0) {
-                    if (!newResource.isValid()) {
-                        copyResourceErrorsToPosition(newPosition, newResource);
-                    }
-
-                    newPositions.add(newPosition);
+                    resourceConsumptionPlan.addPendingResource(newResource, newPosition, true);
 
                     return Either.right(newPositions);
                 } else {
-                    newPositions.add(newPosition);
+                    resourceConsumptionPlan.addPendingResource(newResource, newPosition, false);
                 }
             } else {
-                resourceQuantity = resourceQuantity.subtract(quantity, numberService.getMathContext());
-                resourceAvailableQuantity = resourceAvailableQuantity.subtract(quantity, numberService.getMathContext());
-
-                BigDecimal quantityInAdditionalUnit = calculationQuantityService.calculateAdditionalQuantity(resourceQuantity,
-                        conversion, givenUnit);
-
-                resource.setField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT, quantityInAdditionalUnit);
-                resource.setField(ResourceFields.QUANTITY, numberService.setScaleWithDefaultMathContext(resourceQuantity));
-                resource.setField(ResourceFields.AVAILABLE_QUANTITY, resourceAvailableQuantity);
-
-                Entity savedResource = resource.getDataDefinition().save(resource);
+                Entity newResource = prepareResource(position, warehouseTo, resource, quantity, date);
 
-                if (!savedResource.isValid()) {
-                    throw new InvalidResourceException(savedResource);
-                }
-
-                Entity newResource = createResource(position, warehouseTo, resource, quantity, date);
+                consumePartOfAvailableQuantity(resourceConsumptionPlan, resource, resourceQuantity, resourceAvailableQuantity,
+                        quantity, conversion, givenUnit);
 
                 newPosition.setField(PositionFields.QUANTITY, numberService.setScaleWithDefaultMathContext(quantity));
                 newPosition.setField(PositionFields.GIVEN_QUANTITY, givenQuantity);
 
-                if (!newResource.isValid()) {
-                    copyResourceErrorsToPosition(newPosition, newResource);
-                }
+                resourceConsumptionPlan.addPendingResource(newResource, newPosition, true);
 
                 newPositions.add(newPosition);
 
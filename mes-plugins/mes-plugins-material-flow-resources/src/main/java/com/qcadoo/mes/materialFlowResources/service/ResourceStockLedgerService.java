@@ -0,0 +1,351 @@
+package com.qcadoo.mes.materialFlowResources.service;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.materialFlowResources.constants.ReservationFields;
+import com.qcadoo.mes.materialFlowResources.constants.ResourceFields;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDelta;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDto;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+
+/**
+ * Maintains quantities stored in materialflowresources_resourcestock, keyed by product and location.
+ *
+ * Deltas have to be applied before the change they describe is written, because a missing stock row is initialized from the
+ * current contents of resources, reservations and ordered quantities. Ordered quantities come from
+ * {@link ResourceStockOrderedQuantitiesProvider}, if any plugin provides them. Deltas of entities being saved are computed in
+ * save hooks, before validation, so only their stock rows are initialized there, and the deltas themselves are applied at the
+ * end of the transaction - see {@link #applyDeltasOfSavedEntity(Entity, Collection)}.
+ */
+@Service
+public class ResourceStockLedgerService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResourceStockLedgerService.class);
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final String L_PRODUCT_ID = "productId";
+
+    private static final String L_LOCATION_ID = "locationId";
+
+    private static final String L_NO_ORDERED_QUANTITIES = "SELECT CAST(NULL AS bigint) AS product_id, "
+            + "CAST(NULL AS bigint) AS location_id, CAST(0 AS numeric) AS quantity WHERE false";
+
+    private static final String INSERT_RESOURCE_STOCK = "INSERT INTO materialflowresources_resourcestock "
+            + "(product_id, location_id, quantity, quantityinadditionalunit, totalvalue, reservedquantity, orderedquantity) "
+            + "SELECT :productId, :locationId, "
+            + "COALESCE((SELECT SUM(r.quantity) FROM materialflowresources_resource r "
+            + "WHERE r.product_id = :productId AND r.location_id = :locationId), 0), "
+            + "COALESCE((SELECT SUM(r.quantityinadditionalunit) FROM materialflowresources_resource r "
+            + "WHERE r.product_id = :productId AND r.location_id = :locationId), 0), "
+            + "COALESCE((SELECT SUM(r.quantity * r.price) FROM materialflowresources_resource r "
+            + "WHERE r.product_id = :productId AND r.location_id = :locationId), 0), "
+            + "COALESCE((SELECT SUM(rr.quantity) FROM materialflowresources_reservation rr "
+            + "WHERE rr.product_id = :productId AND rr.location_id = :locationId), 0), "
+            + "COALESCE((SELECT SUM(oq.quantity) FROM (%s) oq "
+            + "WHERE oq.product_id = :productId AND oq.location_id = :locationId), 0) "
+            + "ON CONFLICT (product_id, location_id) DO NOTHING";
+
+    private static final String UPDATE_RESOURCE_STOCK = "UPDATE materialflowresources_resourcestock SET "
+            + "quantity = COALESCE(quantity, 0) + :quantity, "
+            + "quantityinadditionalunit = COALESCE(quantityinadditionalunit, 0) + :quantityInAdditionalUnit, "
+            + "totalvalue = COALESCE(totalvalue, 0) + :totalValue, reservedquantity = COALESCE(reservedquantity, 0) + :reservedQuantity, "
+            + "orderedquantity = COALESCE(orderedquantity, 0) + :orderedQuantity "
+            + "WHERE product_id = :productId AND location_id = :locationId";
+
+    private static final String CALCULATED_RESOURCE_STOCKS = "WITH quantities AS (SELECT product_id, location_id, "
+            + "SUM(quantity) AS quantity, SUM(quantityinadditionalunit) AS quantityinadditionalunit, "
+            + "SUM(quantity * price) AS totalvalue FROM materialflowresources_resource GROUP BY product_id, location_id), "
+            + "reserved_quantities AS (SELECT product_id, location_id, SUM(quantity) AS quantity "
+            + "FROM materialflowresources_reservation GROUP BY product_id, location_id), "
+            + "ordered_quantities AS (SELECT product_id, location_id, SUM(quantity) AS quantity FROM (%s) oq "
+            + "GROUP BY product_id, location_id) "
+            + "SELECT rs.id, rs.product_id, rs.location_id, COALESCE(q.quantity, 0) AS quantity, "
+            + "COALESCE(q.quantityinadditionalunit, 0) AS quantityinadditionalunit, COALESCE(q.totalvalue, 0) AS totalvalue, "
+            + "COALESCE(rq.quantity, 0) AS reservedquantity, COALESCE(oq.quantity, 0) AS orderedquantity "
+            + "FROM materialflowresources_resourcestock rs "
+            + "LEFT JOIN quantities q ON q.product_id = rs.product_id AND q.location_id = rs.location_id "
+            + "LEFT JOIN reserved_quantities rq ON rq.product_id = rs.product_id AND rq.location_id = rs.location_id "
+            + "LEFT JOIN ordered_quantities oq ON oq.product_id = rs.product_id AND oq.location_id = rs.location_id";
+
+    private static final String L_DRIFT_CONDITION = "(rs.quantity IS DISTINCT FROM c.quantity "
+            + "OR rs.quantityinadditionalunit IS DISTINCT FROM c.quantityinadditionalunit "
+            + "OR rs.totalvalue IS DISTINCT FROM c.totalvalue OR rs.reservedquantity IS DISTINCT FROM c.reservedquantity "
+            + "OR rs.orderedquantity IS DISTINCT FROM c.orderedquantity)";
+
+    private static final String L_UNINITIALIZED_RESOURCE_STOCKS = "SELECT EXISTS (SELECT 1 "
+            + "FROM materialflowresources_resourcestock WHERE quantity IS NULL OR quantityinadditionalunit IS NULL "
+            + "OR totalvalue IS NULL OR reservedquantity IS NULL OR orderedquantity IS NULL)";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private MultiTenantService multiTenantService;
+
+    @Autowired(required = false)
+    private ResourceStockOrderedQuantitiesProvider orderedQuantitiesProvider;
+
+    public void applyDeltas(final Collection<ResourceStockDelta> deltas) {
+        Collection<ResourceStockDelta> mergedDeltas = mergeDeltas(deltas);
+
+        initializeResourceStocks(mergedDeltas);
+        updateResourceStocks(mergedDeltas);
+    }
+
+    /**
+     * Applies deltas of the entity being saved once it is saved - when it isn't valid by then, stock isn't changed. Stock rows
+     * are initialized right away, while the entity isn't written yet, and deltas are applied at the end of the transaction.
+     */
+    public void applyDeltasOfSavedEntity(final Entity entity, final Collection<ResourceStockDelta> deltas) {
+        Collection<ResourceStockDelta> mergedDeltas = mergeDeltas(deltas);
+
+        initializeResourceStocks(mergedDeltas);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void beforeCommit(final boolean readOnly) {
+                    if (entity.isValid()) {
+                        updateResourceStocks(mergedDeltas);
+                    }
+                }
+            });
+        } else if (entity.isValid()) {
+            updateResourceStocks(mergedDeltas);
+        }
+    }
+
+    private Collection<ResourceStockDelta> mergeDeltas(final Collection<ResourceStockDelta> deltas) {
+        Map<List<Long>, ResourceStockDelta> deltasByKey = Maps.newLinkedHashMap();
+
+        for (ResourceStockDelta delta : deltas) {
+            if (Objects.isNull(delta.getProductId()) || Objects.isNull(delta.getLocationId())) {
+                continue;
+            }
+
+            deltasByKey.computeIfAbsent(Lists.newArrayList(delta.getProductId(), delta.getLocationId()),
+                    key -> new ResourceStockDelta(delta.getProductId(), delta.getLocationId())).add(delta);
+        }
+
+        return deltasByKey.values();
+    }
+
+    private void initializeResourceStocks(final Collection<ResourceStockDelta> deltas) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        List<SqlParameterSource> keys = Lists.newArrayList();
+
+        for (ResourceStockDelta delta : deltas) {
+            keys.add(new MapSqlParameterSource(getOrderedQuantitiesParameters()).addValue(L_PRODUCT_ID, delta.getProductId())
+                    .addValue(L_LOCATION_ID, delta.getLocationId()));
+        }
+
+        jdbcTemplate.batchUpdate(String.format(INSERT_RESOURCE_STOCK, getOrderedQuantitiesQuery()),
+                keys.toArray(new SqlParameterSource[keys.size()]));
+    }
+
+    private void updateResourceStocks(final Collection<ResourceStockDelta> deltas) {
+        List<SqlParameterSource> updates = Lists.newArrayList();
+
+        for (ResourceStockDelta delta : deltas) {
+            if (!delta.isZero()) {
+                updates.add(new MapSqlParameterSource(L_PRODUCT_ID, delta.getProductId())
+                        .addValue(L_LOCATION_ID, delta.getLocationId()).addValue("quantity", delta.getQuantity())
+                        .addValue("quantityInAdditionalUnit", delta.getQuantityInAdditionalUnit())
+                        .addValue("totalValue", delta.getTotalValue())
+                        .addValue("reservedQuantity", delta.getReservedQuantity())
+                        .addValue("orderedQuantity", delta.getOrderedQuantity()));
+            }
+        }
+
+        if (!updates.isEmpty()) {
+            jdbcTemplate.batchUpdate(UPDATE_RESOURCE_STOCK, updates.toArray(new SqlParameterSource[updates.size()]));
+        }
+    }
+
+    public void ensureResourceStock(final Long productId, final Long locationId) {
+        applyDeltas(Collections.singletonList(new ResourceStockDelta(productId, locationId)));
+    }
+
+    public ResourceStockDelta getResourceDelta(final Entity resource) {
+        Entity product = resource.getBelongsToField(ResourceFields.PRODUCT);
+        Entity location = resource.getBelongsToField(ResourceFields.LOCATION);
+        BigDecimal quantity = resource.getDecimalField(ResourceFields.QUANTITY);
+        BigDecimal price = resource.getDecimalField(ResourceFields.PRICE);
+
+        return new ResourceStockDelta(getId(product), getId(location)).addQuantity(quantity,
+                resource.getDecimalField(ResourceFields.QUANTITY_IN_ADDITIONAL_UNIT),
+                Objects.nonNull(quantity) && Objects.nonNull(price) ? quantity.multiply(price) : null);
+    }
+
+    public ResourceStockDelta getReservationDelta(final Entity reservation) {
+        Entity product = reservation.getBelongsToField(ReservationFields.PRODUCT);
+        Entity location = reservation.getBelongsToField(ReservationFields.LOCATION);
+
+        return new ResourceStockDelta(getId(product), getId(location)).addReservedQuantity(reservation
+                .getDecimalField(ReservationFields.QUANTITY));
+    }
+
+    public List<ResourceStockDelta> getResourceRemovalDeltas(final Collection<Long> resourceIds) {
+        return getRemovalDeltas("SELECT product_id, location_id, SUM(quantity) AS quantity, "
+                + "SUM(quantityinadditionalunit) AS quantityinadditionalunit, SUM(quantity * price) AS totalvalue, "
+                + "0 AS reservedquantity, 0 AS orderedquantity FROM materialflowresources_resource WHERE id IN (:ids) "
+                + "GROUP BY product_id, location_id", resourceIds);
+    }
+
+    public List<ResourceStockDelta> getReservationRemovalDeltas(final Collection<Long> reservationIds) {
+        return getReservationRemovalDeltas("id", reservationIds);
+    }
+
+    public List<ResourceStockDelta> getReservationRemovalDeltasForPositions(final Collection<Long> positionIds) {
+        return getReservationRemovalDeltas("position_id", positionIds);
+    }
+
+    public List<ResourceStockDelta> getReservationRemovalDeltasForResources(final Collection<Long> resourceIds) {
+        return getReservationRemovalDeltas("resource_id", resourceIds);
+    }
+
+    private List<ResourceStockDelta> getReservationRemovalDeltas(final String column, final Collection<Long> ids) {
+        return getRemovalDeltas("SELECT product_id, location_id, 0 AS quantity, 0 AS quantityinadditionalunit, "
+                + "0 AS totalvalue, SUM(quantity) AS reservedquantity, 0 AS orderedquantity "
+                + "FROM materialflowresources_reservation WHERE " + column + " IN (:ids) GROUP BY product_id, location_id", ids);
+    }
+
+    public List<ResourceStockDelta> getRemovalDeltas(final String query, final Collection<Long> ids) {
+        List<ResourceStockDelta> deltas = Lists.newArrayList();
+
+        for (List<Long> idsChunk : Iterables.partition(ids, CHUNK_SIZE)) {
+            deltas.addAll(jdbcTemplate.query(query, new MapSqlParameterSource("ids", idsChunk),
+                    (rs, rowNum) -> new ResourceStockDelta(rs.getLong("product_id"), rs.getLong("location_id")).addQuantity(
+                            rs.getBigDecimal("quantity"), rs.getBigDecimal("quantityinadditionalunit"),
+                            rs.getBigDecimal("totalvalue")).addReservedQuantity(rs.getBigDecimal("reservedquantity"))
+                            .addOrderedQuantity(rs.getBigDecimal("orderedquantity")).negate()));
+        }
+
+        return deltas;
+    }
+
+    public Map<Long, ResourceStockDto> getResourceStocks(final Long locationId, final Collection<Long> productIds) {
+        Map<Long, ResourceStockDto> resourceStocks = Maps.newHashMap();
+
+        String query = "SELECT product_id, COALESCE(quantity, 0) AS quantity, COALESCE(reservedquantity, 0) AS reservedquantity, "
+                + "COALESCE(orderedquantity, 0) AS orderedquantity "
+                + "FROM materialflowresources_resourcestock WHERE location_id = :locationId AND product_id IN (:productIds)";
+
+        for (List<Long> productIdsChunk : Iterables.partition(productIds, CHUNK_SIZE)) {
+            MapSqlParameterSource parameters = new MapSqlParameterSource(L_LOCATION_ID, locationId).addValue("productIds",
+                    productIdsChunk);
+
+            jdbcTemplate.query(query, parameters, (RowCallbackHandler) rs -> {
+                ResourceStockDto resourceStock = new ResourceStockDto();
+
+                resourceStock.setQuantity(rs.getBigDecimal("quantity"));
+                resourceStock.setReservedQuantity(rs.getBigDecimal("reservedquantity"));
+                resourceStock.setAvailableQuantity(resourceStock.getQuantity().subtract(resourceStock.getReservedQuantity()));
+                resourceStock.setOrderedQuantity(rs.getBigDecimal("orderedquantity"));
+
+                resourceStocks.put(rs.getLong("product_id"), resourceStock);
+            });
+        }
+
+        return resourceStocks;
+    }
+
+    /**
+     * Fills stock rows which were created before quantities were kept in them, before deltas are applied to them. Called on
+     * startup. Inserts of missing rows rely on the unique key of product and location, defined in database schema.
+     */
+    public void initializeResourceStocks() {
+        if (jdbcTemplate.queryForObject(L_UNINITIALIZED_RESOURCE_STOCKS, Collections.emptyMap(), Boolean.class)) {
+            reconcile();
+        }
+    }
+
+    public void reconcileTrigger() {
+        multiTenantService.doInMultiTenantContext(new MultiTenantCallback() {
+
+            @Override
+            public void invoke() {
+                reconcile();
+            }
+
+        });
+    }
+
+    /**
+     * Recalculates stock rows from resources, reservations and ordered products, corrects rows which drifted and returns their
+     * number.
+     */
+    public int reconcile() {
+        List<Map<String, Object>> drifts = jdbcTemplate.queryForList("SELECT rs.product_id, rs.location_id, "
+                + "rs.quantity, c.quantity AS calculatedquantity, rs.reservedquantity, c.reservedquantity AS calculatedreservedquantity, "
+                + "rs.orderedquantity, c.orderedquantity AS calculatedorderedquantity "
+                + "FROM materialflowresources_resourcestock rs JOIN (" + getCalculatedResourceStocksQuery()
+                + ") c ON c.id = rs.id WHERE " + L_DRIFT_CONDITION, getOrderedQuantitiesParameters());
+
+        if (drifts.isEmpty()) {
+            return 0;
+        }
+
+        for (Map<String, Object> drift : drifts) {
+            LOG.warn("Resource stock drift for product {} in location {}: quantity {} (expected {}), reserved {} (expected {}), "
+                    + "ordered {} (expected {})", drift.get("product_id"), drift.get("location_id"), drift.get("quantity"),
+                    drift.get("calculatedquantity"), drift.get("reservedquantity"), drift.get("calculatedreservedquantity"),
+                    drift.get("orderedquantity"), drift.get("calculatedorderedquantity"));
+        }
+
+        jdbcTemplate.update("UPDATE materialflowresources_resourcestock rs SET quantity = c.quantity, "
+                + "quantityinadditionalunit = c.quantityinadditionalunit, totalvalue = c.totalvalue, "
+                + "reservedquantity = c.reservedquantity, orderedquantity = c.orderedquantity FROM ("
+                + getCalculatedResourceStocksQuery() + ") c WHERE c.id = rs.id AND " + L_DRIFT_CONDITION,
+                getOrderedQuantitiesParameters());
+
+        LOG.info("Resource stock reconciled, {} rows corrected", drifts.size());
+
+        return drifts.size();
+    }
+
+    private String getCalculatedResourceStocksQuery() {
+        return String.format(CALCULATED_RESOURCE_STOCKS, getOrderedQuantitiesQuery());
+    }
+
+    private String getOrderedQuantitiesQuery() {
+        return Objects.isNull(orderedQuantitiesProvider) ? L_NO_ORDERED_QUANTITIES
+                : orderedQuantitiesProvider.getOrderedQuantitiesQuery();
+    }
+
+    private Map<String, ?> getOrderedQuantitiesParameters() {
+        return Objects.isNull(orderedQuantitiesProvider) ? Collections.emptyMap()
+                : orderedQuantitiesProvider.getOrderedQuantitiesParameters();
+    }
+
+    private Long getId(final Entity entity) {
+        return Objects.isNull(entity) ? null : entity.getId();
+    }
+
+}
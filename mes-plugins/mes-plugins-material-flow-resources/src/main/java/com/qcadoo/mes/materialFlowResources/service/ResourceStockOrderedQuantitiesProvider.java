@@ -0,0 +1,19 @@
+package com.qcadoo.mes.materialFlowResources.service;
+
+import java.util.Map;
+
+/**
+ * Source of quantities which are ordered but not received yet, kept by {@link ResourceStockLedgerService} as ordered quantity
+ * of stock rows.
+ */
+public interface ResourceStockOrderedQuantitiesProvider {
+
+    /**
+     * @return query selecting product_id, location_id and quantity of every ordered position, it can use parameters returned by
+     *         {@link #getOrderedQuantitiesParameters()}
+     */
+    String getOrderedQuantitiesQuery();
+
+    Map<String, ?> getOrderedQuantitiesParameters();
+
+}
@@ -1,7 +1,12 @@
 package com.qcadoo.mes.materialFlowResources.service;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDto;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockShortage;
 import com.qcadoo.model.api.Entity;
 
 public interface ResourceStockService {
@@ -12,5 +17,7 @@ public interface ResourceStockService {
 
     BigDecimal getResourceStockQuantity(Entity product, Entity location);
 
-    void checkResourcesStock(Entity document);
+    Map<Long, ResourceStockDto> getResourceStocks(Entity location, Collection<Long> productIds);
+
+    List<ResourceStockShortage> checkResourcesStock(Entity document);
 }
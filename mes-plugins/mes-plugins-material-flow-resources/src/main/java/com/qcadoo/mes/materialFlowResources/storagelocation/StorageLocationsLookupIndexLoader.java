@@ -0,0 +1,57 @@
+package com.qcadoo.mes.materialFlowResources.storagelocation;
+
+import com.qcadoo.mes.basic.lookup.LookupEntry;
+import com.qcadoo.mes.basic.lookup.LookupIndexLoader;
+import com.qcadoo.mes.basic.lookup.LookupIndexes;
+import com.qcadoo.mes.materialFlowResources.StorageLocationDTO;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Storage locations are looked up within location of document, optionally narrowed to product - entries carry location id and
+ * product number as context.
+ */
+@Service
+public class StorageLocationsLookupIndexLoader implements LookupIndexLoader<StorageLocationDTO> {
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Override
+    public String getIndexName() {
+        return LookupIndexes.STORAGE_LOCATIONS;
+    }
+
+    @Override
+    public List<LookupEntry<StorageLocationDTO>> load(final Long id, final String code) {
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT storagelocation.id AS id, storagelocation.number AS number, ");
+        query.append("storagelocation.location_id AS locationId, product.number AS productNumber ");
+        query.append("FROM materialflowresources_storagelocation storagelocation ");
+        query.append("LEFT JOIN basic_product product ON product.id = storagelocation.product_id ");
+        query.append("WHERE storagelocation.active = true ");
+        query.append(LookupIndexLoader.buildCondition("storagelocation.id", "storagelocation.number", id, code));
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue("id", id);
+        parameters.addValue("code", code);
+
+        return jdbcTemplate.query(query.toString(), parameters, (resultSet, rowNum) -> {
+            StorageLocationDTO storageLocation = new StorageLocationDTO();
+
+            storageLocation.setId(resultSet.getLong("id"));
+            storageLocation.setNumber(resultSet.getString("number"));
+
+            return new LookupEntry<>(storageLocation.getId(), storageLocation.getNumber(), storageLocation,
+                    resultSet.getString("locationId"), resultSet.getString("productNumber"));
+        });
+    }
+
+}
@@ -0,0 +1,157 @@
+package com.qcadoo.mes.materialFlowResources;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.GridResponse;
+import com.qcadoo.mes.basic.LookupUtils;
+
+public class DocumentPositionServiceTest {
+
+    private static final Long L_DOCUMENT_ID = 1L;
+
+    private static final Long L_AFTER_POSITION_ID = 10L;
+
+    private static final String L_POSITIONS_QUERY = "SELECT * FROM ( SELECT p.*";
+
+    private static final String L_AFTER_SORT_KEY_QUERY = "SELECT number FROM (";
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private LookupUtils lookupUtils;
+
+    private DocumentPositionService documentPositionService;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        documentPositionService = new DocumentPositionService();
+
+        ReflectionTestUtils.setField(documentPositionService, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(documentPositionService, "lookupUtils", lookupUtils);
+
+        given(lookupUtils.addQueryWhereForObject(any())).willReturn("");
+        given(lookupUtils.getParametersForObject(any())).willReturn(Collections.emptyMap());
+        given(jdbcTemplate.query(startsWith("SELECT documentpositionparametersitem"), anyMapOf(String.class, Object.class),
+                any(RowMapper.class))).willReturn(Collections.emptyList());
+        given(jdbcTemplate.query(startsWith(L_POSITIONS_QUERY), anyMapOf(String.class, Object.class), any(RowMapper.class)))
+                .willReturn(Lists.newArrayList(new DocumentPositionDTO()));
+    }
+
+    private GridResponse<DocumentPositionDTO> findAllAfter(final String sidx, final String sord, final Long afterPositionId) {
+        return documentPositionService.findAllAfter(L_DOCUMENT_ID, sidx, sord, afterPositionId, 20, new DocumentPositionDTO(),
+                Collections.emptyMap());
+    }
+
+    @SuppressWarnings("unchecked")
+    private String verifyPositionsQuery(final Map<String, Object> expectedParameters) {
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcTemplate, times(2)).query(queryCaptor.capture(), parametersCaptor.capture(), any(RowMapper.class));
+
+        String query = queryCaptor.getAllValues().get(1);
+        Map<String, Object> parameters = parametersCaptor.getAllValues().get(1);
+
+        assertTrue(query.startsWith(L_POSITIONS_QUERY));
+
+        expectedParameters.forEach((name, value) -> assertEquals(value, parameters.get(name)));
+
+        return query;
+    }
+
+    @Test
+    public void shouldReturnFirstPageWithoutKeysetCondition() {
+        // when
+        GridResponse<DocumentPositionDTO> response = findAllAfter("", "asc", null);
+
+        // then
+        assertEquals(1, response.getRecords());
+
+        String query = verifyPositionsQuery(Collections.singletonMap("perPage", 20));
+
+        assertTrue(query.endsWith("ORDER BY number asc, id asc LIMIT :perPage"));
+        assertFalse(query.contains(":afterPositionId"));
+
+        verify(jdbcTemplate, never()).queryForList(anyString(), anyMapOf(String.class, Object.class), eq(Object.class));
+    }
+
+    @Test
+    public void shouldReturnEmptyPageAfterUnknownPosition() {
+        // given
+        given(jdbcTemplate.queryForList(startsWith(L_AFTER_SORT_KEY_QUERY), anyMapOf(String.class, Object.class),
+                eq(Object.class))).willReturn(Collections.emptyList());
+
+        // when
+        GridResponse<DocumentPositionDTO> response = findAllAfter("", "asc", L_AFTER_POSITION_ID);
+
+        // then
+        assertEquals(0, response.getRecords());
+        assertTrue(response.getRows().isEmpty());
+
+        verify(jdbcTemplate, never()).query(startsWith(L_POSITIONS_QUERY), anyMapOf(String.class, Object.class),
+                any(RowMapper.class));
+    }
+
+    @Test
+    public void shouldCompareSortKeyAndIdOfFollowingPositions() {
+        // given
+        given(jdbcTemplate.queryForList(startsWith(L_AFTER_SORT_KEY_QUERY), anyMapOf(String.class, Object.class),
+                eq(Object.class))).willReturn(Lists.newArrayList(5));
+
+        // when
+        findAllAfter("", "asc", L_AFTER_POSITION_ID);
+
+        // then
+        Map<String, Object> expectedParameters = Collections.singletonMap("afterPositionId", L_AFTER_POSITION_ID);
+
+        String query = verifyPositionsQuery(expectedParameters);
+
+        assertTrue(query.contains("WHERE ((number, id) > (:afterSortKey, :afterPositionId) OR number IS NULL) "));
+
+        verifyPositionsQuery(Collections.singletonMap("afterSortKey", 5));
+    }
+
+    @Test
+    public void shouldContinueAfterPositionWithNullSortKeyInDescendingOrder() {
+        // given
+        given(jdbcTemplate.queryForList(startsWith("SELECT product FROM ("), anyMapOf(String.class, Object.class),
+                eq(Object.class))).willReturn(Lists.newArrayList((Object) null));
+
+        // when
+        findAllAfter("product", "desc", L_AFTER_POSITION_ID);
+
+        // then
+        String query = verifyPositionsQuery(Collections.emptyMap());
+
+        assertTrue(query.contains("WHERE ((product IS NULL AND id < :afterPositionId) OR product IS NOT NULL) "));
+        assertTrue(query.endsWith("ORDER BY product desc, id desc LIMIT :perPage"));
+    }
+
+}
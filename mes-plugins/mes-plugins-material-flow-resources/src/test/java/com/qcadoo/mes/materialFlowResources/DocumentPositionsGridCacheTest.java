@@ -0,0 +1,133 @@
+package com.qcadoo.mes.materialFlowResources;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.util.TenantKey;
+
+public class DocumentPositionsGridCacheTest {
+
+    private static final String L_QUERY = "SELECT * FROM positions ORDER BY number, id";
+
+    private static final int L_TENANT_ID = 1;
+
+    private static final int L_OTHER_TENANT_ID = 2;
+
+    private DocumentPositionsGridCache documentPositionsGridCache;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void init() {
+        documentPositionsGridCache = new DocumentPositionsGridCache();
+    }
+
+    @After
+    public void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    private Supplier<List<DocumentPositionDTO>> rowsSupplier(final Long positionId) {
+        return () -> {
+            loads.incrementAndGet();
+
+            DocumentPositionDTO position = new DocumentPositionDTO();
+
+            position.setId(positionId);
+
+            return Lists.newArrayList(position);
+        };
+    }
+
+    private DocumentPositionsGridCache.GridRows get(final Long documentId) {
+        return get(L_TENANT_ID, documentId, 1L);
+    }
+
+    private DocumentPositionsGridCache.GridRows get(final int tenantId, final Long documentId, final Long positionId) {
+        return documentPositionsGridCache.get(TenantKey.of(tenantId, documentId), L_QUERY, Collections.emptyMap(),
+                rowsSupplier(positionId));
+    }
+
+    private void invalidate(final Long documentId) {
+        documentPositionsGridCache.invalidate(TenantKey.of(L_TENANT_ID, documentId));
+    }
+
+    @Test
+    public void shouldLoadRowsOnceForTheSameQuery() {
+        // when
+        get(1L);
+        DocumentPositionsGridCache.GridRows gridRows = get(1L);
+
+        // then
+        assertEquals(1, loads.get());
+        assertEquals(1, gridRows.size());
+        assertEquals(Long.valueOf(1L), gridRows.getRows(0, 10).get(0).getId());
+    }
+
+    @Test
+    public void shouldInvalidateOnlyGivenDocument() {
+        // given
+        get(1L);
+        get(2L);
+
+        // when
+        invalidate(1L);
+
+        get(1L);
+        get(2L);
+
+        // then
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void shouldKeepPositionsOfDocumentsWithTheSameIdOfDifferentTenantsApart() {
+        // when
+        DocumentPositionsGridCache.GridRows gridRows = get(L_TENANT_ID, 1L, 1L);
+        DocumentPositionsGridCache.GridRows otherTenantGridRows = get(L_OTHER_TENANT_ID, 1L, 2L);
+
+        invalidate(1L);
+
+        DocumentPositionsGridCache.GridRows otherTenantCachedGridRows = get(L_OTHER_TENANT_ID, 1L, 3L);
+
+        // then
+        assertEquals(2, loads.get());
+        assertEquals(Long.valueOf(1L), gridRows.getRows(0, 10).get(0).getId());
+        assertEquals(Long.valueOf(2L), otherTenantGridRows.getRows(0, 10).get(0).getId());
+        assertEquals(Long.valueOf(2L), otherTenantCachedGridRows.getRows(0, 10).get(0).getId());
+    }
+
+    @Test
+    public void shouldInvalidateAgainAfterCommit() {
+        // given
+        TransactionSynchronizationManager.initSynchronization();
+
+        get(1L);
+
+        // when
+        invalidate(1L);
+
+        get(1L);
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+
+        get(1L);
+
+        // then
+        assertEquals(3, loads.get());
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.qcadoo.mes.materialFlowResources.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.ImmutableMap;
+import com.qcadoo.mes.basic.util.ClaimQueue;
+import com.qcadoo.mes.materialFlowResources.constants.DocumentAcceptanceStatus;
+
+public class DocumentAcceptanceQueueServiceTest {
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private JdbcOperations jdbcOperations;
+
+    private DocumentAcceptanceQueueService documentAcceptanceQueueService;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        given(jdbcTemplate.getJdbcOperations()).willReturn(jdbcOperations);
+
+        documentAcceptanceQueueService = new DocumentAcceptanceQueueService();
+
+        ReflectionTestUtils.setField(documentAcceptanceQueueService, "jdbcTemplate", jdbcTemplate);
+
+        documentAcceptanceQueueService.init();
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void shouldClaimAcceptancesNotSharingWarehousesUnderLock() {
+        // when
+        documentAcceptanceQueueService.claimAcceptances(3);
+
+        // then
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcOperations).execute("SELECT pg_advisory_xact_lock(hashtext('materialflowresources_documentacceptance'))");
+        verify(jdbcTemplate).query(queryCaptor.capture(), parametersCaptor.capture(), any(RowMapper.class));
+
+        Map<String, Object> parameters = parametersCaptor.getValue();
+
+        assertTrue(queryCaptor.getValue().contains("claimedby = :node"));
+        assertTrue(queryCaptor.getValue().contains("AND (p.locationfrom_id IN (w.locationfrom_id, w.locationto_id) "
+                + "OR p.locationto_id IN (w.locationfrom_id, w.locationto_id))) ORDER BY w.id LIMIT 1"));
+        assertEquals(ClaimQueue.NODE_NAME, parameters.get(ClaimQueue.NODE));
+        assertEquals(DocumentAcceptanceStatus.WAITING.getStringValue(), parameters.get(ClaimQueue.WAITING));
+        assertEquals(DocumentAcceptanceStatus.IN_PROGRESS.getStringValue(), parameters.get(ClaimQueue.IN_PROGRESS));
+    }
+
+    @Test
+    public void shouldReleaseDocumentsOfInterruptedClaimsWithoutAttemptsLeft() {
+        // given
+        List<Map<String, Object>> requeuedClaims = Arrays.asList(
+                ImmutableMap.of("document_id", 1L, ClaimQueue.STATUS, DocumentAcceptanceStatus.FAILED.getStringValue()),
+                ImmutableMap.of("document_id", 2L, ClaimQueue.STATUS, DocumentAcceptanceStatus.WAITING.getStringValue()));
+
+        given(jdbcTemplate.queryForList(anyString(), anyMapOf(String.class, Object.class))).willReturn(requeuedClaims);
+
+        // when
+        documentAcceptanceQueueService.recoverClaims();
+
+        // then
+        verify(jdbcTemplate).update("UPDATE materialflowresources_document SET acceptationinprogress = false WHERE id IN (:ids)",
+                Collections.singletonMap("ids", Collections.singletonList(1L)));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void shouldRequeueOnlyClaimsOfThisNodeOnRestart() {
+        // when
+        documentAcceptanceQueueService.recoverClaims();
+
+        // then
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcTemplate).queryForList(queryCaptor.capture(), parametersCaptor.capture());
+
+        assertTrue(queryCaptor.getValue().startsWith("UPDATE materialflowresources_documentacceptance q SET "));
+        assertTrue(queryCaptor.getValue().endsWith("q.claimedby = :node RETURNING q.document_id, q.status"));
+        assertEquals("Acceptance interrupted by restart", parametersCaptor.getValue().get(ClaimQueue.ERROR_MESSAGE));
+        verify(jdbcTemplate).update(startsWith("UPDATE materialflowresources_document d SET acceptationinprogress = false"),
+                anyMapOf(String.class, Object.class));
+    }
+
+}
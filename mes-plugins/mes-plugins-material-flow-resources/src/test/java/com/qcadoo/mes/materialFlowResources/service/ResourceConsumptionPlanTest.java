@@ -0,0 +1,140 @@
+package com.qcadoo.mes.materialFlowResources.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.materialFlowResources.constants.PositionFields;
+import com.qcadoo.mes.materialFlowResources.constants.ResourceFields;
+import com.qcadoo.model.api.Entity;
+
+public class ResourceConsumptionPlanTest {
+
+    private static final Long L_PRODUCT_ID = 1L;
+
+    private Entity product;
+
+    private Entity additionalCode;
+
+    @Before
+    public void init() {
+        product = mockEntity(L_PRODUCT_ID);
+        additionalCode = mockEntity(100L);
+    }
+
+    @Test
+    public void shouldReturnResourcesInLoadedOrder() {
+        // given
+        Entity first = mockResource(11L, BigDecimal.TEN, null);
+        Entity second = mockResource(12L, BigDecimal.ONE, null);
+
+        ResourceConsumptionPlan plan = createPlan(Lists.newArrayList(first, second), Collections.emptyMap());
+
+        // when
+        List<Entity> resources = plan.getResourcesForPosition(mockPosition(null, null, null));
+
+        // then
+        assertEquals(Lists.newArrayList(first, second), resources);
+    }
+
+    @Test
+    public void shouldReturnResourcesWithPositionAdditionalCodeFirst() {
+        // given
+        Entity withoutCode = mockResource(11L, BigDecimal.TEN, null);
+        Entity withCode = mockResource(12L, BigDecimal.TEN, additionalCode);
+
+        ResourceConsumptionPlan plan = createPlan(Lists.newArrayList(withoutCode, withCode), Collections.emptyMap());
+
+        // when
+        List<Entity> resources = plan.getResourcesForPosition(mockPosition(null, null, additionalCode));
+
+        // then
+        assertEquals(Lists.newArrayList(withCode, withoutCode), resources);
+    }
+
+    @Test
+    public void shouldSkipDeletedAndExhaustedResources() {
+        // given
+        Entity deleted = mockResource(11L, BigDecimal.TEN, null);
+        Entity exhausted = mockResource(12L, BigDecimal.ZERO, null);
+        Entity available = mockResource(13L, BigDecimal.ONE, null);
+
+        ResourceConsumptionPlan plan = createPlan(Lists.newArrayList(deleted, exhausted, available), Collections.emptyMap());
+
+        plan.delete(deleted);
+
+        // when
+        List<Entity> resources = plan.getResourcesForPosition(mockPosition(null, null, null));
+
+        // then
+        assertEquals(Lists.newArrayList(available), resources);
+        assertTrue(plan.getDeletedResourceIds().contains(11L));
+    }
+
+    @Test
+    public void shouldAddReservedQuantityToPositionResource() {
+        // given
+        Entity resource = mockResource(11L, BigDecimal.ONE, null);
+        Map<Long, BigDecimal> reservationQuantities = Maps.newHashMap();
+
+        reservationQuantities.put(5L, BigDecimal.TEN);
+
+        ResourceConsumptionPlan plan = createPlan(Lists.newArrayList(resource), reservationQuantities);
+
+        Entity positionResource = mockEntity(11L);
+
+        // when
+        List<Entity> resources = plan.getResourcesForPosition(mockPosition(5L, positionResource, null));
+
+        // then
+        assertEquals(Lists.newArrayList(resource), resources);
+        verify(resource).setField(ResourceFields.AVAILABLE_QUANTITY, BigDecimal.ONE.add(BigDecimal.TEN));
+    }
+
+    private ResourceConsumptionPlan createPlan(final List<Entity> resources, final Map<Long, BigDecimal> reservationQuantities) {
+        return new ResourceConsumptionPlan(resources, Collections.emptyList(), Maps.newHashMap(reservationQuantities),
+                Collections.emptySet(), false);
+    }
+
+    private Entity mockEntity(final Long id) {
+        Entity entity = mock(Entity.class);
+
+        given(entity.getId()).willReturn(id);
+
+        return entity;
+    }
+
+    private Entity mockResource(final Long id, final BigDecimal availableQuantity, final Entity resourceAdditionalCode) {
+        Entity resource = mockEntity(id);
+
+        given(resource.getBelongsToField(ResourceFields.PRODUCT)).willReturn(product);
+        given(resource.getBelongsToField(ResourceFields.ADDITIONAL_CODE)).willReturn(resourceAdditionalCode);
+        given(resource.getDecimalField(ResourceFields.AVAILABLE_QUANTITY)).willReturn(availableQuantity);
+        given(resource.getDecimalField(ResourceFields.CONVERSION)).willReturn(BigDecimal.ONE);
+
+        return resource;
+    }
+
+    private Entity mockPosition(final Long id, final Entity resource, final Entity positionAdditionalCode) {
+        Entity position = mockEntity(id);
+
+        given(position.getBelongsToField(PositionFields.PRODUCT)).willReturn(product);
+        given(position.getBelongsToField(PositionFields.RESOURCE)).willReturn(resource);
+        given(position.getBelongsToField(PositionFields.ADDITIONAL_CODE)).willReturn(positionAdditionalCode);
+
+        return position;
+    }
+
+}
@@ -0,0 +1,216 @@
+package com.qcadoo.mes.materialFlowResources.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.materialFlowResources.dto.ResourceStockDelta;
+import com.qcadoo.model.api.Entity;
+
+public class ResourceStockLedgerServiceTest {
+
+    private static final Long L_PRODUCT_ID = 1L;
+
+    private static final Long L_LOCATION_ID = 2L;
+
+    private static final Long L_OTHER_LOCATION_ID = 3L;
+
+    private ResourceStockLedgerService resourceStockLedgerService;
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private JdbcOperations jdbcOperations;
+
+    @Mock
+    private ResourceStockOrderedQuantitiesProvider orderedQuantitiesProvider;
+
+    @Mock
+    private Entity resource;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        resourceStockLedgerService = new ResourceStockLedgerService();
+
+        ReflectionTestUtils.setField(resourceStockLedgerService, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(resourceStockLedgerService, "orderedQuantitiesProvider", orderedQuantitiesProvider);
+
+        given(jdbcTemplate.getJdbcOperations()).willReturn(jdbcOperations);
+        given(orderedQuantitiesProvider.getOrderedQuantitiesQuery()).willReturn(
+                "SELECT product_id, location_id, orderedquantity AS quantity FROM orderedproduct WHERE state IN (:states)");
+        given(orderedQuantitiesProvider.getOrderedQuantitiesParameters()).willReturn(
+                Collections.singletonMap("states", Lists.newArrayList("01draft")));
+    }
+
+    @After
+    public void clearSynchronization() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    public final void shouldMergeDeltasOfTheSameStockRow() {
+        // given
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<SqlParameterSource[]> parametersCaptor = ArgumentCaptor.forClass(SqlParameterSource[].class);
+
+        List<ResourceStockDelta> deltas = Lists.newArrayList(
+                new ResourceStockDelta(L_PRODUCT_ID, L_LOCATION_ID).addQuantity(BigDecimal.TEN, null, null),
+                new ResourceStockDelta(L_PRODUCT_ID, L_LOCATION_ID).addQuantity(BigDecimal.ONE.negate(), null, null)
+                        .addReservedQuantity(BigDecimal.ONE),
+                new ResourceStockDelta(L_PRODUCT_ID, L_OTHER_LOCATION_ID).addOrderedQuantity(BigDecimal.ONE),
+                new ResourceStockDelta(null, L_LOCATION_ID).addQuantity(BigDecimal.TEN, null, null));
+
+        // when
+        resourceStockLedgerService.applyDeltas(deltas);
+
+        // then
+        verify(jdbcTemplate, times(2)).batchUpdate(queryCaptor.capture(), parametersCaptor.capture());
+
+        SqlParameterSource[] inserts = parametersCaptor.getAllValues().get(0);
+        SqlParameterSource[] updates = parametersCaptor.getAllValues().get(1);
+
+        assertTrue(queryCaptor.getAllValues().get(0).contains("ON CONFLICT (product_id, location_id) DO NOTHING"));
+        assertEquals(2, inserts.length);
+        assertEquals(2, updates.length);
+        assertEquals(L_LOCATION_ID, updates[0].getValue("locationId"));
+        assertEquals(0, new BigDecimal("9").compareTo((BigDecimal) updates[0].getValue("quantity")));
+        assertEquals(0, BigDecimal.ONE.compareTo((BigDecimal) updates[0].getValue("reservedQuantity")));
+        assertEquals(0, BigDecimal.ONE.compareTo((BigDecimal) updates[1].getValue("orderedQuantity")));
+
+        assertParametersBound(queryCaptor.getAllValues().get(0), inserts[0]);
+        assertParametersBound(queryCaptor.getAllValues().get(1), updates[0]);
+    }
+
+    @Test
+    public final void shouldOnlyInitializeStockRowForZeroDelta() {
+        // given
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+
+        // when
+        resourceStockLedgerService.ensureResourceStock(L_PRODUCT_ID, L_LOCATION_ID);
+
+        // then
+        verify(jdbcTemplate).batchUpdate(queryCaptor.capture(), any(SqlParameterSource[].class));
+
+        assertTrue(queryCaptor.getValue().startsWith("INSERT INTO materialflowresources_resourcestock"));
+    }
+
+    @Test
+    public final void shouldApplyDeltasOfSavedEntityBeforeCommit() {
+        // given
+        TransactionSynchronizationManager.initSynchronization();
+
+        given(resource.isValid()).willReturn(true);
+
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+
+        // when
+        resourceStockLedgerService.applyDeltasOfSavedEntity(resource,
+                Lists.newArrayList(new ResourceStockDelta(L_PRODUCT_ID, L_LOCATION_ID).addQuantity(BigDecimal.TEN, null, null)));
+
+        verify(jdbcTemplate).batchUpdate(anyString(), any(SqlParameterSource[].class));
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.beforeCommit(false));
+
+        // then
+        verify(jdbcTemplate, times(2)).batchUpdate(queryCaptor.capture(), any(SqlParameterSource[].class));
+
+        assertTrue(queryCaptor.getAllValues().get(0).startsWith("INSERT INTO materialflowresources_resourcestock"));
+        assertTrue(queryCaptor.getAllValues().get(1).startsWith("UPDATE materialflowresources_resourcestock"));
+    }
+
+    @Test
+    public final void shouldNotApplyDeltasOfEntityWhichWasNotSaved() {
+        // given
+        TransactionSynchronizationManager.initSynchronization();
+
+        given(resource.isValid()).willReturn(false);
+
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+
+        // when
+        resourceStockLedgerService.applyDeltasOfSavedEntity(resource,
+                Lists.newArrayList(new ResourceStockDelta(L_PRODUCT_ID, L_LOCATION_ID).addQuantity(BigDecimal.TEN, null, null)));
+
+        TransactionSynchronizationManager.getSynchronizations().forEach(synchronization -> synchronization.beforeCommit(false));
+
+        // then
+        verify(jdbcTemplate).batchUpdate(queryCaptor.capture(), any(SqlParameterSource[].class));
+
+        assertTrue(queryCaptor.getValue().startsWith("INSERT INTO materialflowresources_resourcestock"));
+    }
+
+    @Test
+    public final void shouldReconcileUninitializedStocksOnStartup() {
+        // given
+        given(jdbcTemplate.queryForObject(anyString(), anyMapOf(String.class, Object.class), eq(Boolean.class))).willReturn(
+                true);
+        given(jdbcTemplate.queryForList(anyString(), anyMapOf(String.class, Object.class))).willReturn(
+                Collections.<Map<String, Object>> emptyList());
+
+        ArgumentCaptor<String> reconcileQueryCaptor = ArgumentCaptor.forClass(String.class);
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, ?>> reconcileParametersCaptor = ArgumentCaptor
+                .forClass((Class<Map<String, ?>>) (Class<?>) Map.class);
+
+        // when
+        resourceStockLedgerService.initializeResourceStocks();
+
+        // then
+        verify(jdbcOperations, never()).execute(anyString());
+        verify(jdbcTemplate).queryForList(reconcileQueryCaptor.capture(), reconcileParametersCaptor.capture());
+
+        assertParametersBound(reconcileQueryCaptor.getValue(), new MapSqlParameterSource(reconcileParametersCaptor.getValue()));
+        assertTrue(reconcileQueryCaptor.getValue().contains("IS DISTINCT FROM"));
+    }
+
+    @Test
+    public final void shouldNotReconcileInitializedStocksOnStartup() {
+        // given
+        given(jdbcTemplate.queryForObject(anyString(), anyMapOf(String.class, Object.class), eq(Boolean.class))).willReturn(
+                false);
+
+        // when
+        resourceStockLedgerService.initializeResourceStocks();
+
+        // then
+        verify(jdbcTemplate, never()).queryForList(anyString(), anyMapOf(String.class, Object.class));
+    }
+
+    private void assertParametersBound(final String sql, final SqlParameterSource parameters) {
+        NamedParameterUtils.buildValueArray(NamedParameterUtils.parseSqlStatement(sql), parameters, null);
+    }
+
+}
@@ -44,6 +44,19 @@ public interface OperationsCostCalculationService {
      */
     void calculateOperationsCost(final Entity costCalculation, boolean hourlyCostFromOperation, final Entity technology);
 
+    /**
+     * Calculates total machine and labor hourly costs of technology like
+     * {@link #calculateOperationsCost(Entity, boolean, Entity)}, but straight from technology operation components - neither
+     * copies operation tree into cost calculation nor saves anything, so it can be called for many technologies at once.
+     * 
+     * @param costCalculation
+     *            cost calculation
+     * @param hourlyCostFromOperation
+     * @param technology
+     *            technology
+     */
+    void calculateTotalOperationsCost(final Entity costCalculation, boolean hourlyCostFromOperation, final Entity technology);
+
     /**
      * 
      * @param calculationOperationComponent
@@ -23,6 +23,7 @@
  */
 package com.qcadoo.mes.operationCostCalculations;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.qcadoo.mes.basic.ParameterService;
@@ -45,6 +46,7 @@ import java.math.MathContext;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -147,6 +149,40 @@ public class OperationsCostCalculationServiceImpl implements OperationsCostCalcu
         costCalculation.setField(L_CALCULATION_OPERATION_COMPONENTS, calculationOperationComponents);
     }
 
+    @Override
+    public void calculateTotalOperationsCost(final Entity costCalculation, boolean hourlyCostFromOperation,
+            final Entity technology) {
+        checkArgument(costCalculation != null, "entity is null");
+
+        BigDecimal quantity = BigDecimalUtils.convertNullToZero(costCalculation.getDecimalField(L_QUANTITY));
+        BigDecimal productionCostMargin = BigDecimalUtils
+                .convertNullToZero(costCalculation.getDecimalField(L_PRODUCTION_COST_MARGIN));
+
+        ProductQuantitiesHolder productQuantitiesAndOperationRuns = getProductQuantitiesAndOperationRuns(technology, quantity,
+                costCalculation);
+
+        EntityTree technologyOperationComponents = technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS);
+
+        checkArgument(technologyOperationComponents != null, "given operation components is null");
+
+        boolean includeTPZ = costCalculation.getBooleanField(L_INCLUDE_TPZ);
+        boolean includeAdditionalTime = costCalculation.getBooleanField(L_INCLUDE_ADDITIONAL_TIME);
+
+        Map<Long, Integer> workstations = getWorkstationsFromTechnology(technology);
+
+        OperationTimesContainer operationTimes = operationWorkTimeService.estimateOperationsWorkTimes(
+                Lists.newArrayList(technologyOperationComponents), productQuantitiesAndOperationRuns.getOperationRuns(),
+                includeTPZ, includeAdditionalTime, workstations, true);
+
+        Map<String, BigDecimal> resultsMap = estimateCostsForHourly(technologyOperationComponents.getRoot(), node -> node,
+                productionCostMargin, operationTimes, hourlyCostFromOperation, false);
+
+        costCalculation.setField(L_TOTAL_MACHINE_HOURLY_COSTS, numberService
+                .setScaleWithDefaultMathContext(resultsMap.get(CalculationOperationComponentFields.MACHINE_HOURLY_COST)));
+        costCalculation.setField(L_TOTAL_LABOR_HOURLY_COSTS, numberService
+                .setScaleWithDefaultMathContext(resultsMap.get(CalculationOperationComponentFields.LABOR_HOURLY_COST)));
+    }
+
     private ProductQuantitiesHolder getProductQuantitiesAndOperationRuns(final Entity technology, final BigDecimal quantity,
             final Entity costCalculationOrProductionBalance) {
         return productQuantitiesService.getProductComponentQuantities(technology, quantity);
@@ -156,6 +192,15 @@ public class OperationsCostCalculationServiceImpl implements OperationsCostCalcu
     public Map<String, BigDecimal> estimateCostCalculationForHourly(final EntityTreeNode calculationOperationComponent,
             final BigDecimal productionCostMargin, final BigDecimal plannedQuantity,
             final OperationTimesContainer realizationTimes, final boolean hourlyCostFromOperation) {
+        return estimateCostsForHourly(calculationOperationComponent,
+                node -> node.getBelongsToField("technologyOperationComponent"), productionCostMargin, realizationTimes,
+                hourlyCostFromOperation, true);
+    }
+
+    private Map<String, BigDecimal> estimateCostsForHourly(final EntityTreeNode calculationOperationComponent,
+            final Function<Entity, Entity> technologyOperationComponentGetter, final BigDecimal productionCostMargin,
+            final OperationTimesContainer realizationTimes, final boolean hourlyCostFromOperation,
+            final boolean saveGeneratedValues) {
         checkArgument(calculationOperationComponent != null, "given operationComponent is empty");
 
         Map<String, BigDecimal> costs = Maps.newHashMapWithExpectedSize(L_COST_KEYS.size());
@@ -167,8 +212,8 @@ public class OperationsCostCalculationServiceImpl implements OperationsCostCalcu
         }
 
         for (EntityTreeNode child : calculationOperationComponent.getChildren()) {
-            Map<String, BigDecimal> unitCosts = estimateCostCalculationForHourly(child, productionCostMargin, plannedQuantity,
-                    realizationTimes, hourlyCostFromOperation);
+            Map<String, BigDecimal> unitCosts = estimateCostsForHourly(child, technologyOperationComponentGetter,
+                    productionCostMargin, realizationTimes, hourlyCostFromOperation, saveGeneratedValues);
 
             for (String costKey : L_COST_KEYS) {
                 BigDecimal unitCost = costs.get(costKey).add(unitCosts.get(costKey), mathContext);
@@ -178,10 +223,12 @@ public class OperationsCostCalculationServiceImpl implements OperationsCostCalcu
         }
 
         OperationTimes operationTimes = realizationTimes
-                .get(calculationOperationComponent.getBelongsToField("technologyOperationComponent").getId());
+                .get(technologyOperationComponentGetter.apply(calculationOperationComponent).getId());
         Map<String, BigDecimal> costsForSingleOperation = estimateHourlyCostCalculationForSingleOperation(operationTimes,
                 productionCostMargin, hourlyCostFromOperation);
-        saveGeneratedValues(costsForSingleOperation, calculationOperationComponent, true, operationTimes.getTimes(), null);
+        if (saveGeneratedValues) {
+            saveGeneratedValues(costsForSingleOperation, calculationOperationComponent, true, operationTimes.getTimes(), null);
+        }
 
         costs.put(L_MACHINE_HOURLY_COST,
                 costs.get(L_MACHINE_HOURLY_COST).add(costsForSingleOperation.get(L_OPERATION_MACHINE_COST), mathContext));
@@ -0,0 +1,271 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.operationCostCalculations;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.basic.ParameterService;
+import com.qcadoo.mes.costNormsForOperation.constants.TechnologyOperationComponentFieldsCNFO;
+import com.qcadoo.mes.operationTimeCalculations.OperationWorkTime;
+import com.qcadoo.mes.operationTimeCalculations.OperationWorkTimeService;
+import com.qcadoo.mes.operationTimeCalculations.dto.OperationTimesContainer;
+import com.qcadoo.mes.technologies.ProductQuantitiesService;
+import com.qcadoo.mes.technologies.constants.TechnologyFields;
+import com.qcadoo.mes.technologies.dto.ProductQuantitiesHolder;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.EntityList;
+import com.qcadoo.model.api.EntityTree;
+import com.qcadoo.model.api.EntityTreeNode;
+import com.qcadoo.model.api.NumberService;
+
+public class OperationsCostCalculationServiceImplTest {
+
+    private static final String L_CALCULATION_OPERATION_COMPONENTS = "calculationOperationComponents";
+
+    private static final String L_TECHNOLOGY_OPERATION_COMPONENT = "technologyOperationComponent";
+
+    private static final String L_TOTAL_MACHINE_HOURLY_COSTS = "totalMachineHourlyCosts";
+
+    private static final String L_TOTAL_LABOR_HOURLY_COSTS = "totalLaborHourlyCosts";
+
+    private static final MathContext L_MATH_CONTEXT = MathContext.DECIMAL64;
+
+    private OperationsCostCalculationServiceImpl operationsCostCalculationService;
+
+    @Mock
+    private NumberService numberService;
+
+    @Mock
+    private ProductQuantitiesService productQuantitiesService;
+
+    @Mock
+    private OperationWorkTimeService operationWorkTimeService;
+
+    @Mock
+    private OperationCostCalculationTreeBuilder operationCostCalculationTreeBuilder;
+
+    @Mock
+    private ParameterService parameterService;
+
+    @Mock
+    private Entity technology, costCalculationCopy, savedCostCalculation;
+
+    @Mock
+    private DataDefinition costCalculationDD, calculationOperationComponentDD;
+
+    @Mock
+    private EntityTreeNode rootTechnologyOperationComponent, childTechnologyOperationComponent, rootCalculationOperationComponent,
+            childCalculationOperationComponent;
+
+    @Mock
+    private EntityTree technologyOperationComponents, calculationOperationComponents;
+
+    @Mock
+    private EntityList technologyOperationComponentsList;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        operationsCostCalculationService = new OperationsCostCalculationServiceImpl();
+
+        ReflectionTestUtils.setField(operationsCostCalculationService, "numberService", numberService);
+        ReflectionTestUtils.setField(operationsCostCalculationService, "productQuantitiesService", productQuantitiesService);
+        ReflectionTestUtils.setField(operationsCostCalculationService, "operationWorkTimeService", operationWorkTimeService);
+        ReflectionTestUtils.setField(operationsCostCalculationService, "operationCostCalculationTreeBuilder",
+                operationCostCalculationTreeBuilder);
+        ReflectionTestUtils.setField(operationsCostCalculationService, "parameterService", parameterService);
+
+        given(numberService.getMathContext()).willReturn(L_MATH_CONTEXT);
+        given(numberService.setScaleWithDefaultMathContext(any(BigDecimal.class))).willAnswer(
+                invocation -> ((BigDecimal) invocation.getArguments()[0]).setScale(5, RoundingMode.HALF_EVEN));
+
+        given(productQuantitiesService.getProductComponentQuantities(eq(technology), any(BigDecimal.class)))
+                .willReturn(new ProductQuantitiesHolder());
+
+        mockTechnologyOperationComponent(rootTechnologyOperationComponent, 1L, "12.5", "20");
+        mockTechnologyOperationComponent(childTechnologyOperationComponent, 2L, "7.33", "15.1");
+
+        mockTree(technologyOperationComponents, rootTechnologyOperationComponent, childTechnologyOperationComponent);
+        mockTree(calculationOperationComponents, rootCalculationOperationComponent, childCalculationOperationComponent);
+
+        given(technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS)).willReturn(technologyOperationComponents);
+        given(technology.getHasManyField(TechnologyFields.OPERATION_COMPONENTS)).willReturn(technologyOperationComponentsList);
+        given(technologyOperationComponentsList.iterator()).willAnswer(
+                invocation -> Lists.<Entity> newArrayList(rootTechnologyOperationComponent, childTechnologyOperationComponent)
+                        .iterator());
+
+        given(rootCalculationOperationComponent.getBelongsToField(L_TECHNOLOGY_OPERATION_COMPONENT))
+                .willReturn(rootTechnologyOperationComponent);
+        given(childCalculationOperationComponent.getBelongsToField(L_TECHNOLOGY_OPERATION_COMPONENT))
+                .willReturn(childTechnologyOperationComponent);
+        given(rootCalculationOperationComponent.getDataDefinition()).willReturn(calculationOperationComponentDD);
+        given(childCalculationOperationComponent.getDataDefinition()).willReturn(calculationOperationComponentDD);
+
+        given(costCalculationDD.save(costCalculationCopy)).willReturn(savedCostCalculation);
+        given(savedCostCalculation.getId()).willReturn(10L);
+        given(costCalculationDD.get(10L)).willReturn(savedCostCalculation);
+        given(savedCostCalculation.getTreeField(L_CALCULATION_OPERATION_COMPONENTS)).willReturn(calculationOperationComponents);
+
+        given(operationWorkTimeService.estimateOperationsWorkTimes(anyListOf(Entity.class),
+                anyMapOf(Long.class, BigDecimal.class), anyBoolean(), anyBoolean(), anyMapOf(Long.class, Integer.class),
+                eq(true))).willAnswer(invocation -> {
+                    OperationTimesContainer operationTimes = new OperationTimesContainer();
+
+                    addOperationTimes(operationTimes, rootTechnologyOperationComponent, 5400, 7200);
+                    addOperationTimes(operationTimes, childTechnologyOperationComponent, 1300, 900);
+
+                    return operationTimes;
+                });
+    }
+
+    private void mockTechnologyOperationComponent(final EntityTreeNode technologyOperationComponent, final Long id,
+            final String machineHourlyCost, final String laborHourlyCost) {
+        given(technologyOperationComponent.getId()).willReturn(id);
+        given(technologyOperationComponent.getField(TechnologyOperationComponentFieldsCNFO.MACHINE_HOURLY_COST))
+                .willReturn(new BigDecimal(machineHourlyCost));
+        given(technologyOperationComponent.getField(TechnologyOperationComponentFieldsCNFO.LABOR_HOURLY_COST))
+                .willReturn(new BigDecimal(laborHourlyCost));
+    }
+
+    private void mockTree(final EntityTree tree, final EntityTreeNode root, final EntityTreeNode child) {
+        List<Entity> nodes = Lists.newArrayList(root, child);
+
+        given(tree.getRoot()).willReturn(root);
+        given(tree.toArray()).willAnswer(invocation -> nodes.toArray());
+        given(tree.iterator()).willAnswer(invocation -> nodes.iterator());
+        given(tree.stream()).willAnswer(invocation -> nodes.stream());
+        given(tree.size()).willReturn(nodes.size());
+        given(root.getChildren()).willReturn(Lists.newArrayList(child));
+        given(child.getChildren()).willReturn(Collections.emptyList());
+    }
+
+    private void addOperationTimes(final OperationTimesContainer operationTimes, final Entity technologyOperationComponent,
+            final int machineWorkTime, final int laborWorkTime) {
+        OperationWorkTime operationWorkTime = new OperationWorkTime();
+
+        operationWorkTime.setMachineWorkTime(machineWorkTime);
+        operationWorkTime.setLaborWorkTime(laborWorkTime);
+        operationWorkTime.setDuration(Math.max(machineWorkTime, laborWorkTime));
+
+        operationTimes.add(technologyOperationComponent, operationWorkTime);
+    }
+
+    @Test
+    public final void shouldCalculateSameTotalsWithoutCopyingOperationTree() {
+        // given
+        Map<String, BigDecimal> expectedTotals = calculateTotals(true, false);
+
+        // when
+        Map<String, BigDecimal> totals = calculateTotals(true, true);
+
+        // then
+        assertEquals(0, expectedTotals.get(L_TOTAL_MACHINE_HOURLY_COSTS).compareTo(totals.get(L_TOTAL_MACHINE_HOURLY_COSTS)));
+        assertEquals(0, expectedTotals.get(L_TOTAL_LABOR_HOURLY_COSTS).compareTo(totals.get(L_TOTAL_LABOR_HOURLY_COSTS)));
+
+        assertEquals(0, new BigDecimal("21.39694").compareTo(totals.get(L_TOTAL_MACHINE_HOURLY_COSTS)));
+        assertEquals(0, new BigDecimal("43.775").compareTo(totals.get(L_TOTAL_LABOR_HOURLY_COSTS)));
+
+        verify(calculationOperationComponentDD, times(2)).save(any(Entity.class));
+    }
+
+    @Test
+    public final void shouldCalculateSameTotalsFromParametersWithoutCopyingOperationTree() {
+        // given
+        Entity parameter = mock(Entity.class);
+
+        given(parameterService.getParameter()).willReturn(parameter);
+        given(parameter.getDecimalField("averageMachineHourlyCostPB")).willReturn(new BigDecimal("30"));
+        given(parameter.getDecimalField("averageLaborHourlyCostPB")).willReturn(new BigDecimal("18.5"));
+
+        Map<String, BigDecimal> expectedTotals = calculateTotals(false, false);
+
+        // when
+        Map<String, BigDecimal> totals = calculateTotals(false, true);
+
+        // then
+        assertEquals(0, expectedTotals.get(L_TOTAL_MACHINE_HOURLY_COSTS).compareTo(totals.get(L_TOTAL_MACHINE_HOURLY_COSTS)));
+        assertEquals(0, expectedTotals.get(L_TOTAL_LABOR_HOURLY_COSTS).compareTo(totals.get(L_TOTAL_LABOR_HOURLY_COSTS)));
+    }
+
+    private Map<String, BigDecimal> calculateTotals(final boolean hourlyCostFromOperation, final boolean withoutOperationTree) {
+        ArgumentCaptor<BigDecimal> machineCaptor = ArgumentCaptor.forClass(BigDecimal.class);
+        ArgumentCaptor<BigDecimal> laborCaptor = ArgumentCaptor.forClass(BigDecimal.class);
+
+        Entity calculatedCostCalculation = mock(Entity.class);
+
+        given(calculatedCostCalculation.getDecimalField("quantity")).willReturn(new BigDecimal("3"));
+        given(calculatedCostCalculation.getDecimalField("productionCostMargin")).willReturn(new BigDecimal("10"));
+        given(calculatedCostCalculation.getBooleanField("includeTPZ")).willReturn(true);
+        given(calculatedCostCalculation.getBooleanField("includeAdditionalTime")).willReturn(true);
+        given(calculatedCostCalculation.getDataDefinition()).willReturn(costCalculationDD);
+        given(operationCostCalculationTreeBuilder.copyTechnologyTree(calculatedCostCalculation, technology))
+                .willReturn(costCalculationCopy);
+
+        if (withoutOperationTree) {
+            operationsCostCalculationService.calculateTotalOperationsCost(calculatedCostCalculation, hourlyCostFromOperation,
+                    technology);
+        } else {
+            operationsCostCalculationService.calculateOperationsCost(calculatedCostCalculation, hourlyCostFromOperation,
+                    technology);
+        }
+
+        verify(calculatedCostCalculation).setField(eq(L_TOTAL_MACHINE_HOURLY_COSTS), machineCaptor.capture());
+        verify(calculatedCostCalculation).setField(eq(L_TOTAL_LABOR_HOURLY_COSTS), laborCaptor.capture());
+
+        Map<String, BigDecimal> totals = Maps.newHashMap();
+
+        totals.put(L_TOTAL_MACHINE_HOURLY_COSTS, machineCaptor.getValue());
+        totals.put(L_TOTAL_LABOR_HOURLY_COSTS, laborCaptor.getValue());
+
+        return totals;
+    }
+
+}
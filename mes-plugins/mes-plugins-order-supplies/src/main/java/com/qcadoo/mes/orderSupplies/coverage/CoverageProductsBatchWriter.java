@@ -0,0 +1,163 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orderSupplies.coverage;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.constants.ProductFields;
+import com.qcadoo.mes.orderSupplies.constants.CoverageProductFields;
+import com.qcadoo.mes.orderSupplies.constants.CoverageProductLoggingFields;
+import com.qcadoo.model.api.Entity;
+
+/**
+ * Writes coverage products and their loggings using JDBC batches. Coverage product ids are allocated from the sequence in blocks,
+ * so loggings don't depend on currval and both tables are written chunk by chunk.
+ */
+@Service
+public class CoverageProductsBatchWriter {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private static final String ALLOCATE_COVERAGE_PRODUCT_IDS = "SELECT nextval('ordersupplies_coverageproduct_id_seq') "
+            + "FROM generate_series(1, :count)";
+
+    private static final String INSERT_COVERAGE_PRODUCT = "INSERT INTO ordersupplies_coverageproduct (%s) VALUES (:%s)";
+
+    private static final String INSERT_COVERAGE_PRODUCT_LOGGING = "INSERT INTO ordersupplies_coverageproductlogging "
+            + "(coverageproduct_id, date, order_id, delivery_id, operation_id, reservemissingquantity, changes, eventtype, state, "
+            + "warehouseNumber, deliveryNumberExternal) "
+            + "VALUES (:coverageproduct_id, :date, :order_id, :delivery_id, :operation_id, :reservemissingquantity, :changes, "
+            + ":eventtype, :state, :warehouseNumber, :deliveryNumberExternal)";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    public void write(final Entity materialRequirementCoverage, final List<Entity> coverageProducts) {
+        for (List<Entity> chunk : Lists.partition(coverageProducts, CHUNK_SIZE)) {
+            writeChunk(materialRequirementCoverage, chunk);
+        }
+    }
+
+    private void writeChunk(final Entity materialRequirementCoverage, final List<Entity> coverageProducts) {
+        List<Long> ids = jdbcTemplate.queryForList(ALLOCATE_COVERAGE_PRODUCT_IDS,
+                Collections.singletonMap("count", coverageProducts.size()), Long.class);
+
+        List<MapSqlParameterSource> coverageProductParameters = Lists.newArrayListWithCapacity(coverageProducts.size());
+        List<SqlParameterSource> coverageProductLoggingParameters = Lists.newArrayList();
+
+        for (int i = 0; i < coverageProducts.size(); i++) {
+            Entity coverageProduct = coverageProducts.get(i);
+            Long coverageProductId = ids.get(i);
+
+            coverageProductParameters.add(getCoverageProductParameters(materialRequirementCoverage, coverageProduct,
+                    coverageProductId));
+
+            for (Entity coverageProductLogging : coverageProduct.getHasManyField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS)) {
+                coverageProductLoggingParameters.add(getCoverageProductLoggingParameters(coverageProductLogging,
+                        coverageProductId));
+            }
+        }
+
+        Set<String> columns = coverageProductParameters.get(0).getValues().keySet();
+
+        jdbcTemplate.batchUpdate(String.format(INSERT_COVERAGE_PRODUCT, String.join(", ", columns), String.join(", :", columns)),
+                coverageProductParameters.toArray(new SqlParameterSource[coverageProductParameters.size()]));
+
+        for (List<SqlParameterSource> chunk : Lists.partition(coverageProductLoggingParameters, CHUNK_SIZE)) {
+            jdbcTemplate.batchUpdate(INSERT_COVERAGE_PRODUCT_LOGGING, chunk.toArray(new SqlParameterSource[chunk.size()]));
+        }
+    }
+
+    private MapSqlParameterSource getCoverageProductParameters(final Entity materialRequirementCoverage,
+            final Entity coverageProduct, final Long coverageProductId) {
+        Entity product = coverageProduct.getBelongsToField(CoverageProductFields.PRODUCT);
+        Entity company = coverageProduct.getBelongsToField(CoverageProductFields.COMPANY);
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue("id", coverageProductId);
+        parameters.addValue("materialrequirementcoverage_id", materialRequirementCoverage.getId());
+        parameters.addValue("product_id", product.getId());
+        parameters.addValue("company_id", getId(company));
+        parameters.addValue("lackfromdate", coverageProduct.getDateField(CoverageProductFields.LACK_FROM_DATE));
+        parameters.addValue("demandquantity", coverageProduct.getDecimalField(CoverageProductFields.DEMAND_QUANTITY));
+        parameters.addValue("coveredquantity", coverageProduct.getDecimalField(CoverageProductFields.COVERED_QUANTITY));
+        parameters.addValue("reservemissingquantity",
+                coverageProduct.getDecimalField(CoverageProductFields.RESERVE_MISSING_QUANTITY));
+        parameters.addValue("deliveredquantity", coverageProduct.getDecimalField(CoverageProductFields.DELIVERED_QUANTITY));
+        parameters.addValue("locationsquantity", coverageProduct.getDecimalField(CoverageProductFields.LOCATIONS_QUANTITY));
+        parameters.addValue("produceQuantity", coverageProduct.getDecimalField(CoverageProductFields.PRODUCE_QUANTITY));
+        parameters.addValue("state", coverageProduct.getStringField(CoverageProductFields.STATE));
+        parameters.addValue("productnumber", product.getStringField(ProductFields.NUMBER));
+        parameters.addValue("productname", product.getStringField(ProductFields.NAME));
+        parameters.addValue("productunit", product.getStringField(ProductFields.UNIT));
+        parameters.addValue("fromSelectedOrder", coverageProduct.getBooleanField(CoverageProductFields.FROM_SELECTED_ORDER));
+        parameters.addValue("allProductsType", coverageProduct.getStringField(CoverageProductFields.ALL_PRODUCTS_TYPE));
+
+        addAdditionalCoverageProductParameters(coverageProduct, parameters);
+
+        return parameters;
+    }
+
+    // Do not remove, around by aspect
+    public void addAdditionalCoverageProductParameters(final Entity coverageProduct, final MapSqlParameterSource parameters) {
+    }
+
+    private SqlParameterSource getCoverageProductLoggingParameters(final Entity coverageProductLogging,
+            final Long coverageProductId) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue("coverageproduct_id", coverageProductId);
+        parameters.addValue("date", coverageProductLogging.getDateField(CoverageProductLoggingFields.DATE));
+        parameters.addValue("delivery_id", getId(coverageProductLogging.getBelongsToField(CoverageProductLoggingFields.DELIVERY)));
+        parameters.addValue("order_id", getId(coverageProductLogging.getBelongsToField(CoverageProductLoggingFields.ORDER)));
+        parameters.addValue("operation_id",
+                getId(coverageProductLogging.getBelongsToField(CoverageProductLoggingFields.OPERATION)));
+        parameters.addValue("reservemissingquantity",
+                coverageProductLogging.getDecimalField(CoverageProductLoggingFields.RESERVE_MISSING_QUANTITY));
+        parameters.addValue("changes", coverageProductLogging.getDecimalField(CoverageProductLoggingFields.CHANGES));
+        parameters.addValue("eventtype", coverageProductLogging.getStringField(CoverageProductLoggingFields.EVENT_TYPE));
+        parameters.addValue("state", coverageProductLogging.getStringField(CoverageProductLoggingFields.STATE));
+        parameters.addValue("warehouseNumber",
+                coverageProductLogging.getStringField(CoverageProductLoggingFields.WAREHOUSE_NUMBER));
+        parameters.addValue("deliveryNumberExternal", coverageProductLogging.getStringField("deliveryNumberExternal"));
+
+        return parameters;
+    }
+
+    private Long getId(final Entity entity) {
+        return Objects.isNull(entity) ? null : entity.getId();
+    }
+
+}
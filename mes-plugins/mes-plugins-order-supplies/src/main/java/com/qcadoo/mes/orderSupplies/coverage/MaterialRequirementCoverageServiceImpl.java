@@ -26,10 +26,13 @@ package com.qcadoo.mes.orderSupplies.coverage;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.qcadoo.mes.basic.constants.ProductFields;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.qcadoo.mes.deliveries.DeliveriesService;
+import com.qcadoo.mes.deliveries.constants.DeliveredProductFields;
 import com.qcadoo.mes.deliveries.constants.DeliveriesConstants;
 import com.qcadoo.mes.deliveries.constants.DeliveryFields;
+import com.qcadoo.mes.deliveries.constants.OrderedProductFields;
 import com.qcadoo.mes.deliveries.states.constants.DeliveryStateStringValues;
 import com.qcadoo.mes.materialFlow.constants.LocationFields;
 import com.qcadoo.mes.materialFlowResources.constants.MaterialFlowResourcesConstants;
@@ -41,21 +44,29 @@ import com.qcadoo.mes.technologies.constants.TechnologiesConstants;
 import com.qcadoo.mes.technologies.constants.TechnologyFields;
 import com.qcadoo.mes.technologies.states.constants.TechnologyState;
 import com.qcadoo.model.api.*;
+import com.qcadoo.model.api.search.SearchOrders;
 import com.qcadoo.model.api.search.SearchQueryBuilder;
 import com.qcadoo.model.api.search.SearchRestrictions;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+import com.qcadoo.tenant.api.MultiTenantUtil;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
-import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
-import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PreDestroy;
+
 import java.math.BigDecimal;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 @Service
@@ -69,8 +80,14 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
 
     private static final String L_PLANNED_QUANTITY = "planedQuantity";
 
+    private static final int L_DELIVERIES_CHUNK_SIZE = 1000;
+
+    private static final int L_THREADS = 4;
+
+    private static final int L_PRODUCTS_PARTITION_SIZE = 1000;
+
     @Autowired
-    private NamedParameterJdbcTemplate jdbcTemplate;
+    private CoverageProductsBatchWriter coverageProductsBatchWriter;
 
     @Autowired
     private DataDefinitionService dataDefinitionService;
@@ -87,75 +104,212 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
     @Autowired
     private DeliveriesService deliveriesService;
 
+    @Autowired
+    private MultiTenantService multiTenantService;
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(L_THREADS,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("coverageEstimation-%d").build());
+
+    /**
+     * Estimates coverage of products in time. Products are independent of each other, so they are split into partitions, each
+     * of them estimated from its own register entries, deliveries and resources - partitions run in parallel, each of them in
+     * its own read-only transaction. Coverage with a single partition is estimated in the current transaction.
+     */
     @Transactional
     @Override
     public void estimateProductCoverageInTime(final Entity materialRequirementCoverage) {
         LOG.info("Start generation material requirement - id : " + materialRequirementCoverage.getId());
 
+        String coverageType = materialRequirementCoverage.getStringField(MaterialRequirementCoverageFields.COVERAGE_TYPE);
+
+        CoverageEstimationParameters parameters = getCoverageEstimationParameters(materialRequirementCoverage);
+
+        Map<Long, Entity> productAndCoverageProducts = estimateProductsCoverage(parameters,
+                getCoverageProductIds(parameters));
+
+        additionalProcessProductCoverage(materialRequirementCoverage, productAndCoverageProducts);
+
+        fillCoverageProductSupplier(productAndCoverageProducts);
+
+        materialRequirementCoverage.getDataDefinition().save(materialRequirementCoverage);
+
+        saveCoverage(materialRequirementCoverage, filterCoverageProducts(productAndCoverageProducts, coverageType));
+
+        LOG.info("Finish generation material requirement - id : " + materialRequirementCoverage.getId());
+    }
+
+    private CoverageEstimationParameters getCoverageEstimationParameters(final Entity materialRequirementCoverage) {
         Date coverageToDate = materialRequirementCoverage.getDateField(MaterialRequirementCoverageFields.COVERAGE_TO_DATE);
         Date actualDate = materialRequirementCoverage.getDateField(MaterialRequirementCoverageFields.ACTUAL_DATE);
 
-        String coverageType = materialRequirementCoverage.getStringField(MaterialRequirementCoverageFields.COVERAGE_TYPE);
-
         boolean includeDraftDeliveries = materialRequirementCoverage
                 .getBooleanField(MaterialRequirementCoverageFields.INCLUDE_DRAFT_DELIVERIES);
 
-        List<Entity> coverageLocations = materialRequirementCoverage
-                .getHasManyField(MaterialRequirementCoverageFields.COVERAGE_LOCATIONS);
+        Map<Long, String> locationNumbers = Maps.newLinkedHashMap();
 
-        List<Entity> includedDeliveries = getDeliveriesFromDB(coverageToDate, includeDraftDeliveries);
+        for (Entity coverageLocation : materialRequirementCoverage
+                .getHasManyField(MaterialRequirementCoverageFields.COVERAGE_LOCATIONS)) {
+            Entity location = coverageLocation.getBelongsToField(CoverageLocationFields.LOCATION);
 
-        Map<Long, Entity> productAndCoverageProducts = Maps.newHashMap();
+            locationNumbers.put(location.getId(), location.getStringField(LocationFields.NUMBER));
+        }
 
         List<Entity> orderStates = materialRequirementCoverage
                 .getHasManyField(MaterialRequirementCoverageFields.COVERAGE_ORDER_STATES);
         List<Entity> selectedOrders = materialRequirementCoverage.getHasManyField("coverageOrders");
 
-        if (!selectedOrders.isEmpty()) {
-            orderStates = Collections.emptyList();
-        }
+        List<String> states = Lists.newArrayList();
 
-        fillFromRegistry(productAndCoverageProducts, coverageToDate, actualDate, orderStates);
+        if (selectedOrders.isEmpty()) {
+            states = orderStates.stream().map(orderState -> orderState.getStringField(CoverageOrderStateFields.STATE))
+                    .collect(Collectors.toList());
+        }
 
         Entity assignedOrder = materialRequirementCoverage.getBelongsToField(L_ORDER);
+        Long assignedOrderId = null;
 
-        if (!orderStates.isEmpty() && Objects.nonNull(assignedOrder)) {
-            Optional<Entity> maybeState = orderStates.stream().filter(state -> state
-                    .getStringField(CoverageOrderStateFields.STATE).equals(assignedOrder.getStringField(OrderFields.STATE)))
-                    .findAny();
-            if (!maybeState.isPresent()) {
-                fillFromRegistryAssignedOrder(productAndCoverageProducts, assignedOrder, coverageToDate, actualDate);
-            }
+        if (!states.isEmpty() && Objects.nonNull(assignedOrder)
+                && !states.contains(assignedOrder.getStringField(OrderFields.STATE))) {
+            assignedOrderId = assignedOrder.getId();
         }
 
-        estimateProductLocationsInTime(materialRequirementCoverage, productAndCoverageProducts, coverageLocations, actualDate);
+        return new CoverageEstimationParameters(coverageToDate, actualDate, states, assignedOrderId, locationNumbers,
+                getDeliveriesFromDB(coverageToDate, includeDraftDeliveries));
+    }
 
-        estimateProductDeliveriesInTime(materialRequirementCoverage, productAndCoverageProducts, includedDeliveries, actualDate,
-                coverageToDate, includeDraftDeliveries);
+    /**
+     * @return ids of products, which are demanded by orders within coverage - coverage products are created only for them
+     */
+    private List<Long> getCoverageProductIds(final CoverageEstimationParameters parameters) {
+        Set<Long> productIds = Sets.newTreeSet();
 
-        estimateProductProducedInTime(productAndCoverageProducts, coverageToDate, actualDate, orderStates);
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT DISTINCT registry.product.id AS productId ");
+        query.append("FROM #orderSupplies_coverageRegister AS registry ");
 
-        additionalProcessProductCoverage(materialRequirementCoverage, productAndCoverageProducts);
+        if (!parameters.getStates().isEmpty()) {
+            query.append("JOIN registry.order AS ord ");
+        }
 
-        fillCoverageProductStatesAndQuantities(productAndCoverageProducts);
+        query.append("WHERE registry.date <= :dateTo AND eventType IN ('04orderInput','03operationInput') ");
+        query.append("AND registry.quantity > 0 ");
 
-        fillCoverageProductSupplier(productAndCoverageProducts);
+        if (!parameters.getStates().isEmpty()) {
+            query.append("AND ord.state IN (:states)");
+        }
 
-        materialRequirementCoverage.getDataDefinition().save(materialRequirementCoverage);
+        SearchQueryBuilder queryBuilder = getCoverageRegisterDD().find(query.toString()).setParameter("dateTo",
+                parameters.getCoverageToDate());
 
-        saveCoverage(materialRequirementCoverage, filterCoverageProducts(productAndCoverageProducts, coverageType));
+        if (!parameters.getStates().isEmpty()) {
+            queryBuilder.setParameterList("states", parameters.getStates());
+        }
 
-        LOG.info("Finish generation material requirement - id : " + materialRequirementCoverage.getId());
+        productIds.addAll(getIdsFromRegisterProduct(queryBuilder.list().getEntities()));
+
+        if (Objects.nonNull(parameters.getAssignedOrderId())) {
+            String assignedOrderQuery = "SELECT DISTINCT registry.product.id AS productId "
+                    + "FROM #orderSupplies_coverageRegister AS registry WHERE registry.date <= :dateTo "
+                    + "AND eventType IN ('04orderInput','03operationInput') AND registry.quantity > 0 AND order_id = :orderId";
+
+            productIds.addAll(getIdsFromRegisterProduct(getCoverageRegisterDD().find(assignedOrderQuery)
+                    .setParameter("dateTo", parameters.getCoverageToDate())
+                    .setParameter("orderId", parameters.getAssignedOrderId()).list().getEntities()));
+        }
+
+        return Lists.newArrayList(productIds);
     }
 
-    private void estimateProductProducedInTime(final Map<Long, Entity> productAndCoverageProducts, final Date coverageToDate,
-            final Date actualDate, final List<Entity> orderStates) {
-        List<String> states = Lists.newArrayList();
+    private Map<Long, Entity> estimateProductsCoverage(final CoverageEstimationParameters parameters,
+            final List<Long> productIds) {
+        List<List<Long>> partitions = Lists.partition(productIds, L_PRODUCTS_PARTITION_SIZE);
+
+        if (partitions.size() <= 1) {
+            return estimatePartitionCoverage(parameters, productIds);
+        }
 
-        if (orderStates != null && !orderStates.isEmpty()) {
-            states = orderStates.stream().map(o -> o.getStringField(CoverageOrderStateFields.STATE)).collect(Collectors.toList());
+        int tenantId = MultiTenantUtil.getCurrentTenantId();
+
+        List<Future<Map<Long, Entity>>> futures = Lists.newArrayListWithCapacity(partitions.size());
+
+        for (List<Long> partition : partitions) {
+            futures.add(executorService.submit(() -> estimatePartitionCoverageInTenantContext(tenantId, parameters, partition)));
         }
 
+        Map<Long, Entity> productAndCoverageProducts = Maps.newLinkedHashMap();
+
+        try {
+            for (Future<Map<Long, Entity>> future : futures) {
+                productAndCoverageProducts.putAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("Coverage estimation was interrupted", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+
+            throw new IllegalStateException("Coverage estimation failed", e.getCause());
+        }
+
+        return productAndCoverageProducts;
+    }
+
+    private Map<Long, Entity> estimatePartitionCoverageInTenantContext(final int tenantId,
+            final CoverageEstimationParameters parameters, final List<Long> productIds) {
+        AtomicReference<Map<Long, Entity>> productAndCoverageProducts = new AtomicReference<>();
+
+        multiTenantService.doInMultiTenantContext(tenantId, new MultiTenantCallback() {
+
+            @Override
+            public void invoke() {
+                productAndCoverageProducts.set(estimatePartitionCoverageInTransaction(parameters, productIds));
+            }
+
+        });
+
+        return productAndCoverageProducts.get();
+    }
+
+    @Transactional(readOnly = true)
+    private Map<Long, Entity> estimatePartitionCoverageInTransaction(final CoverageEstimationParameters parameters,
+            final List<Long> productIds) {
+        return estimatePartitionCoverage(parameters, productIds);
+    }
+
+    private Map<Long, Entity> estimatePartitionCoverage(final CoverageEstimationParameters parameters,
+            final List<Long> productIds) {
+        Map<Long, Entity> productAndCoverageProducts = Maps.newHashMap();
+
+        if (productIds.isEmpty()) {
+            return productAndCoverageProducts;
+        }
+
+        fillFromRegistry(productAndCoverageProducts, parameters, productIds);
+
+        if (Objects.nonNull(parameters.getAssignedOrderId())) {
+            fillFromRegistryAssignedOrder(productAndCoverageProducts, parameters, productIds);
+        }
+
+        estimateProductLocationsInTime(productAndCoverageProducts, parameters, productIds);
+
+        estimateProductDeliveriesInTime(productAndCoverageProducts, parameters, productIds);
+
+        estimateProductProducedInTime(productAndCoverageProducts, parameters, productIds);
+
+        fillCoverageProductStatesAndQuantities(productAndCoverageProducts);
+
+        return productAndCoverageProducts;
+    }
+
+    private void estimateProductProducedInTime(final Map<Long, Entity> productAndCoverageProducts,
+            final CoverageEstimationParameters parameters, final List<Long> productIds) {
+        List<String> states = parameters.getStates();
+        Date coverageToDate = parameters.getCoverageToDate();
+        Date actualDate = parameters.getActualDate();
+
         StringBuilder query = new StringBuilder();
         query.append("SELECT registry FROM #orderSupplies_coverageRegister AS registry ");
 
@@ -164,12 +318,14 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         }
 
         query.append("WHERE registry.date <= :dateTo AND eventType IN ('05orderOutput') ");
+        query.append("AND registry.product.id IN (:productIds) ");
 
         if (!states.isEmpty()) {
             query.append("AND ord.state IN (:states)");
         }
 
-        SearchQueryBuilder queryBuilder = getCoverageRegisterDD().find(query.toString()).setParameter("dateTo", coverageToDate);
+        SearchQueryBuilder queryBuilder = getCoverageRegisterDD().find(query.toString()).setParameter("dateTo", coverageToDate)
+                .setParameterList("productIds", productIds);
 
         if (!states.isEmpty()) {
             queryBuilder.setParameterList("states", states);
@@ -206,13 +362,10 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         demandQuantity = demandQuantity.add(coverageProductLogging.getDecimalField(CoverageProductLoggingFields.CHANGES),
                 numberService.getMathContext());
 
-        List<Entity> coverageProductLoggings = Lists
-                .newArrayList(addedCoverageProduct.getHasManyField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS));
-        coverageProductLoggings.add(coverageProductLogging);
+        addCoverageProductLogging(addedCoverageProduct, coverageProductLogging);
 
         addedCoverageProduct.setField(CoverageProductFields.PRODUCE_QUANTITY,
                 numberService.setScaleWithDefaultMathContext(demandQuantity));
-        addedCoverageProduct.setField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS, coverageProductLoggings);
 
         productAndCoverageProducts.put(product.getId(), addedCoverageProduct);
     }
@@ -251,107 +404,12 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
             List<Entity> filtredEntities = entities.stream()
                     .filter(e -> e.getBooleanField(CoverageProductFields.FROM_SELECTED_ORDER)).collect(Collectors.toList());
 
-            for (Entity covProduct : filtredEntities) {
-                saveCoverageProduct(materialRequirementCoverage, covProduct);
-                for (Entity log : covProduct.getHasManyField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS)) {
-                    saveCoverageProductLogging(log);
-                }
-            }
+            coverageProductsBatchWriter.write(materialRequirementCoverage, filtredEntities);
         } else {
-            for (Entity covProduct : entities) {
-                saveCoverageProduct(materialRequirementCoverage, covProduct);
-                for (Entity log : covProduct.getHasManyField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS)) {
-                    saveCoverageProductLogging(log);
-                }
-            }
+            coverageProductsBatchWriter.write(materialRequirementCoverage, entities);
         }
     }
 
-    private void saveCoverageProductLogging(final Entity log) {
-        String sqlLog = "INSERT INTO ordersupplies_coverageproductlogging(coverageproduct_id, date, "
-                + "order_id, delivery_id, operation_id, reservemissingquantity, changes, eventtype, state, warehouseNumber, deliveryNumberExternal) "
-                + "VALUES (currval('ordersupplies_coverageproduct_id_seq'), :date, :order_id, :delivery_id, :operation_id, "
-                + ":reservemissingquantity, :changes, :eventtype, :state, :warehouseNumber, :deliveryNumberExternal);";
-
-        Map<String, Object> parametersLogg = Maps.newHashMap();
-
-        parametersLogg.put("date", log.getDateField(CoverageProductLoggingFields.DATE));
-
-        if (log.getBelongsToField(CoverageProductLoggingFields.DELIVERY) != null) {
-            parametersLogg.put("delivery_id", log.getBelongsToField(CoverageProductLoggingFields.DELIVERY).getId());
-        } else {
-            parametersLogg.put("delivery_id", null);
-        }
-
-        if (log.getBelongsToField(CoverageProductLoggingFields.ORDER) != null) {
-            parametersLogg.put("order_id", log.getBelongsToField(CoverageProductLoggingFields.ORDER).getId());
-        } else {
-            parametersLogg.put("order_id", null);
-        }
-
-        if (log.getBelongsToField(CoverageProductLoggingFields.OPERATION) != null) {
-            parametersLogg.put("operation_id", log.getBelongsToField(CoverageProductLoggingFields.OPERATION).getId());
-        } else {
-            parametersLogg.put("operation_id", null);
-
-        }
-
-        parametersLogg.put("reservemissingquantity", log.getDecimalField(CoverageProductLoggingFields.RESERVE_MISSING_QUANTITY));
-        parametersLogg.put("changes", log.getDecimalField(CoverageProductLoggingFields.CHANGES));
-        parametersLogg.put("eventtype", log.getStringField(CoverageProductLoggingFields.EVENT_TYPE));
-        parametersLogg.put("state", log.getStringField(CoverageProductLoggingFields.STATE));
-        parametersLogg.put("warehouseNumber", log.getStringField(CoverageProductLoggingFields.WAREHOUSE_NUMBER));
-        parametersLogg.put("deliveryNumberExternal", log.getStringField("deliveryNumberExternal"));
-
-        SqlParameterSource nParameters = new MapSqlParameterSource(parametersLogg);
-
-        jdbcTemplate.update(sqlLog, nParameters);
-    }
-
-    private void saveCoverageProduct(final Entity materialRequirementCoverage, final Entity coverageProduct) {
-        String sql = "INSERT INTO ordersupplies_coverageproduct "
-                + "(materialrequirementcoverage_id, product_id, lackfromdate, demandquantity, coveredquantity, "
-                + "reservemissingquantity, deliveredquantity, locationsquantity, state, productnumber, productname, "
-                + "productunit, produceQuantity, fromSelectedOrder, allProductsType, company_id) "
-                + "VALUES (:materialrequirementcoverage_id, :product_id, :lackfromdate, :demandquantity, :coveredquantity, "
-                + ":reservemissingquantity, :deliveredquantity, :locationsquantity, :state, :productnumber, :productname, "
-                + ":productunit, :produceQuantity, :fromSelectedOrder, :allProductsType, :company_id)";
-
-        Map<String, Object> parameters = Maps.newHashMap();
-
-        parameters.put("materialrequirementcoverage_id", materialRequirementCoverage.getId());
-        parameters.put("product_id", coverageProduct.getBelongsToField(CoverageProductFields.PRODUCT).getId());
-
-        Entity company = coverageProduct.getBelongsToField(CoverageProductFields.COMPANY);
-
-        if (company != null) {
-            parameters.put("company_id", company.getId());
-        } else {
-            parameters.put("company_id", null);
-        }
-
-        parameters.put("lackfromdate", coverageProduct.getDateField(CoverageProductFields.LACK_FROM_DATE));
-        parameters.put("demandquantity", coverageProduct.getDecimalField(CoverageProductFields.DEMAND_QUANTITY));
-        parameters.put("coveredquantity", coverageProduct.getDecimalField(CoverageProductFields.COVERED_QUANTITY));
-        parameters.put("reservemissingquantity", coverageProduct.getDecimalField(CoverageProductFields.RESERVE_MISSING_QUANTITY));
-        parameters.put("deliveredquantity", coverageProduct.getDecimalField(CoverageProductFields.DELIVERED_QUANTITY));
-        parameters.put("locationsquantity", coverageProduct.getDecimalField(CoverageProductFields.LOCATIONS_QUANTITY));
-        parameters.put("produceQuantity", coverageProduct.getDecimalField(CoverageProductFields.PRODUCE_QUANTITY));
-        parameters.put("state", coverageProduct.getStringField(CoverageProductFields.STATE));
-        parameters.put("productnumber",
-                coverageProduct.getBelongsToField(CoverageProductFields.PRODUCT).getStringField(ProductFields.NUMBER));
-        parameters.put("productname",
-                coverageProduct.getBelongsToField(CoverageProductFields.PRODUCT).getStringField(ProductFields.NAME));
-        parameters.put("productunit",
-                coverageProduct.getBelongsToField(CoverageProductFields.PRODUCT).getStringField(ProductFields.UNIT));
-        parameters.put("fromSelectedOrder", coverageProduct.getBooleanField(CoverageProductFields.FROM_SELECTED_ORDER));
-        parameters.put("allProductsType", coverageProduct.getStringField(CoverageProductFields.ALL_PRODUCTS_TYPE));
-
-        SqlParameterSource namedParameters = new MapSqlParameterSource(parameters);
-
-        jdbcTemplate.update(sql, namedParameters);
-    }
-
     // Do not remove, around by aspect
     public void additionalProcessProductCoverage(final Entity materialRequirementCoverage,
             final Map<Long, Entity> productAndCoverageProducts) {
@@ -422,14 +480,10 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
                 .collect(Collectors.toList());
     }
 
-    private void fillFromRegistry(final Map<Long, Entity> productAndCoverageProducts, final Date coverageToDate,
-            final Date actualDate, final List<Entity> orderStates) {
-        List<String> states = Lists.newArrayList();
-
-        if (!orderStates.isEmpty()) {
-            states = orderStates.stream().map(order -> order.getStringField(CoverageOrderStateFields.STATE))
-                    .collect(Collectors.toList());
-        }
+    private void fillFromRegistry(final Map<Long, Entity> productAndCoverageProducts,
+            final CoverageEstimationParameters parameters, final List<Long> productIds) {
+        List<String> states = parameters.getStates();
+        Date actualDate = parameters.getActualDate();
 
         StringBuilder query = new StringBuilder();
         query.append("SELECT registry FROM #orderSupplies_coverageRegister AS registry ");
@@ -439,12 +493,14 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         }
 
         query.append("WHERE registry.date <= :dateTo AND eventType IN ('04orderInput','03operationInput') ");
+        query.append("AND registry.product.id IN (:productIds) ");
 
         if (!states.isEmpty()) {
             query.append("AND ord.state IN (:states)");
         }
 
-        SearchQueryBuilder queryBuilder = getCoverageRegisterDD().find(query.toString()).setParameter("dateTo", coverageToDate);
+        SearchQueryBuilder queryBuilder = getCoverageRegisterDD().find(query.toString())
+                .setParameter("dateTo", parameters.getCoverageToDate()).setParameterList("productIds", productIds);
 
         if (!states.isEmpty()) {
             queryBuilder.setParameterList("states", states);
@@ -462,14 +518,17 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         }
     }
 
-    private void fillFromRegistryAssignedOrder(final Map<Long, Entity> productAndCoverageProducts, final Entity assignedOrder,
-            final Date coverageToDate, final Date actualDate) {
+    private void fillFromRegistryAssignedOrder(final Map<Long, Entity> productAndCoverageProducts,
+            final CoverageEstimationParameters parameters, final List<Long> productIds) {
+        Date actualDate = parameters.getActualDate();
+
         String query = "SELECT registry FROM #orderSupplies_coverageRegister AS registry " +
                 "WHERE registry.date <= :dateTo AND eventType IN ('04orderInput','03operationInput') " +
-                "AND order_id = :orderId ";
-        SearchQueryBuilder queryBuilder = getCoverageRegisterDD().find(query).setParameter("dateTo", coverageToDate);
+                "AND order_id = :orderId AND registry.product.id IN (:productIds) ";
+        SearchQueryBuilder queryBuilder = getCoverageRegisterDD().find(query)
+                .setParameter("dateTo", parameters.getCoverageToDate()).setParameterList("productIds", productIds);
 
-        queryBuilder.setParameter("orderId", assignedOrder.getId());
+        queryBuilder.setParameter("orderId", parameters.getAssignedOrderId());
 
         List<Entity> regs = queryBuilder.list().getEntities();
 
@@ -509,18 +568,29 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         return coverageDate;
     }
 
-    private void estimateProductDeliveriesInTime(final Entity materialRequirementCoverage,
-            final Map<Long, Entity> productAndCoverageProducts, final List<Entity> includedDeliveries, final Date actualDate,
-            final Date coverageToDate, final Boolean includeDraftDeliveries) {
+    private void estimateProductDeliveriesInTime(final Map<Long, Entity> productAndCoverageProducts,
+            final CoverageEstimationParameters parameters, final List<Long> productIds) {
+        List<Entity> includedDeliveries = parameters.getIncludedDeliveries();
+        Date actualDate = parameters.getActualDate();
+
+        Map<Long, List<Entity>> deliveredProducts = getDeliveryProducts(includedDeliveries.stream()
+                .filter(this::isReceiveConfirmWaiting).collect(Collectors.toList()),
+                DeliveriesConstants.MODEL_DELIVERED_PRODUCT, DeliveredProductFields.DELIVERY, DeliveredProductFields.PRODUCT,
+                productIds);
+        Map<Long, List<Entity>> orderedProducts = getDeliveryProducts(includedDeliveries.stream()
+                .filter(delivery -> !isReceiveConfirmWaiting(delivery)).collect(Collectors.toList()),
+                DeliveriesConstants.MODEL_ORDERED_PRODUCT, OrderedProductFields.DELIVERY, OrderedProductFields.PRODUCT,
+                productIds);
+
         for (Entity delivery : includedDeliveries) {
             Date coverageDate = getCoverageProductLoggingDateForDelivery(delivery, actualDate);
 
             List<Entity> deliveryProducts;
 
-            if (DeliveryStateStringValues.RECEIVE_CONFIRM_WAITING.equals(delivery.getStringField(DeliveryFields.STATE))) {
-                deliveryProducts = delivery.getHasManyField(DeliveryFields.DELIVERED_PRODUCTS);
+            if (isReceiveConfirmWaiting(delivery)) {
+                deliveryProducts = deliveredProducts.getOrDefault(delivery.getId(), Collections.emptyList());
             } else {
-                deliveryProducts = delivery.getHasManyField(DeliveryFields.ORDERED_PRODUCTS);
+                deliveryProducts = orderedProducts.getOrDefault(delivery.getId(), Collections.emptyList());
             }
 
             for (Entity deliveryProduct : deliveryProducts) {
@@ -530,6 +600,31 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         }
     }
 
+    private boolean isReceiveConfirmWaiting(final Entity delivery) {
+        return DeliveryStateStringValues.RECEIVE_CONFIRM_WAITING.equals(delivery.getStringField(DeliveryFields.STATE));
+    }
+
+    private Map<Long, List<Entity>> getDeliveryProducts(final List<Entity> deliveries, final String modelName,
+            final String deliveryFieldName, final String productFieldName, final List<Long> productIds) {
+        Map<Long, List<Entity>> deliveryProducts = Maps.newHashMap();
+
+        List<Long> deliveryIds = deliveries.stream().map(Entity::getId).collect(Collectors.toList());
+
+        for (List<Long> deliveryIdsChunk : Lists.partition(deliveryIds, L_DELIVERIES_CHUNK_SIZE)) {
+            List<Entity> entities = dataDefinitionService.get(DeliveriesConstants.PLUGIN_IDENTIFIER, modelName).find()
+                    .add(SearchRestrictions.and(SearchRestrictions.in(deliveryFieldName + ".id", deliveryIdsChunk),
+                            SearchRestrictions.in(productFieldName + ".id", productIds)))
+                    .addOrder(SearchOrders.asc("id")).list().getEntities();
+
+            for (Entity deliveryProduct : entities) {
+                deliveryProducts.computeIfAbsent(deliveryProduct.getBelongsToField(deliveryFieldName).getId(),
+                        deliveryId -> Lists.newArrayList()).add(deliveryProduct);
+            }
+        }
+
+        return deliveryProducts;
+    }
+
     private void estimateProductDelivery(final Map<Long, Entity> productAndCoverageProducts,
             final CoverageProductForDelivery coverageProductForDelivery) {
         if (productAndCoverageProducts.containsKey(coverageProductForDelivery.getProduct().getId())) {
@@ -591,7 +686,8 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         coverageProduct.setField(CoverageProductFields.DELIVERED_QUANTITY, numberService
                 .setScaleWithDefaultMathContext(coverageProductLogging.getDecimalField(CoverageProductLoggingFields.CHANGES)));
         coverageProduct.setField(CoverageProductFields.STATE, CoverageProductState.COVERED.getStringValue());
-        coverageProduct.setField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS, Lists.newArrayList(coverageProductLogging));
+        coverageProduct.setField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS,
+                createCoverageProductLoggings(coverageProductLogging));
 
         productAndCoverageProducts.put(product.getId(), coverageProduct);
     }
@@ -606,13 +702,10 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         deliveredQuantity = deliveredQuantity.add(coverageProductLogging.getDecimalField(CoverageProductLoggingFields.CHANGES),
                 numberService.getMathContext());
 
-        List<Entity> coverageProductLoggings = Lists
-                .newArrayList(addedCoverageProduct.getHasManyField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS));
-        coverageProductLoggings.add(coverageProductLogging);
+        addCoverageProductLogging(addedCoverageProduct, coverageProductLogging);
 
         addedCoverageProduct.setField(CoverageProductFields.DELIVERED_QUANTITY,
                 numberService.setScaleWithDefaultMathContext(deliveredQuantity));
-        addedCoverageProduct.setField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS, coverageProductLoggings);
 
         productAndCoverageProducts.put(product.getId(), addedCoverageProduct);
     }
@@ -637,7 +730,8 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         coverageProduct.setField(CoverageProductFields.ALL_PRODUCTS_TYPE, productType);
         coverageProduct.setField(CoverageProductFields.DEMAND_QUANTITY, numberService
                 .setScaleWithDefaultMathContext(coverageProductLogging.getDecimalField(CoverageProductLoggingFields.CHANGES)));
-        coverageProduct.setField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS, Lists.newArrayList(coverageProductLogging));
+        coverageProduct.setField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS,
+                createCoverageProductLoggings(coverageProductLogging));
 
         productAndCoverageProducts.put(product.getId(), coverageProduct);
     }
@@ -652,13 +746,10 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         demandQuantity = demandQuantity.add(coverageProductLogging.getDecimalField(CoverageProductLoggingFields.CHANGES),
                 numberService.getMathContext());
 
-        List<Entity> coverageProductLoggings = Lists
-                .newArrayList(addedCoverageProduct.getHasManyField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS));
-        coverageProductLoggings.add(coverageProductLogging);
+        addCoverageProductLogging(addedCoverageProduct, coverageProductLogging);
 
         addedCoverageProduct.setField(CoverageProductFields.DEMAND_QUANTITY,
                 numberService.setScaleWithDefaultMathContext(demandQuantity));
-        addedCoverageProduct.setField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS, coverageProductLoggings);
 
         String types = addedCoverageProduct.getStringField(CoverageProductFields.ALL_PRODUCTS_TYPE);
 
@@ -670,39 +761,50 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         productAndCoverageProducts.put(product.getId(), addedCoverageProduct);
     }
 
-    private void estimateProductLocationsInTime(final Entity materialRequirementCoverage,
-            final Map<Long, Entity> productAndCoverageProducts, final List<Entity> coverageLocations, final Date actualDate) {
-        for (Entity coverageLocation : coverageLocations) {
-            Entity location = coverageLocation.getBelongsToField(CoverageLocationFields.LOCATION);
+    private void estimateProductLocationsInTime(final Map<Long, Entity> productAndCoverageProducts,
+            final CoverageEstimationParameters parameters, final List<Long> productIds) {
+        Map<Long, String> locationNumbers = parameters.getLocationNumbers();
+
+        if (locationNumbers.isEmpty()) {
+            return;
+        }
 
-            String sql = "SELECT resource.product.id AS product, SUM(resource.quantity) AS quantity "
-                    + "FROM #materialFlowResources_resource AS resource "
-                    + "WHERE resource.location.id = :locationId GROUP BY resource.product.id";
+        String sql = "SELECT resource.location.id AS location, resource.product.id AS product, "
+                + "SUM(resource.quantity) AS quantity "
+                + "FROM #materialFlowResources_resource AS resource "
+                + "WHERE resource.location.id IN (:locationIds) AND resource.product.id IN (:productIds) "
+                + "GROUP BY resource.location.id, resource.product.id";
 
-            List<Entity> resources = getResourceDD().find(sql).setParameter("locationId", location.getId()).list().getEntities();
+        List<Entity> resources = getResourceDD().find(sql).setParameterList("locationIds", locationNumbers.keySet())
+                .setParameterList("productIds", productIds).list().getEntities();
 
-            Map<Long, BigDecimal> map = resources.stream()
-                    .collect(Collectors.toMap(res -> (Long) res.getField("product"), res -> res.getDecimalField("quantity")));
+        Map<Long, Map<Long, BigDecimal>> locationsQuantities = Maps.newHashMap();
+
+        for (Entity resource : resources) {
+            locationsQuantities.computeIfAbsent((Long) resource.getField("location"), locationId -> Maps.newHashMap())
+                    .put((Long) resource.getField("product"), resource.getDecimalField("quantity"));
+        }
+
+        for (Entry<Long, String> locationNumber : locationNumbers.entrySet()) {
+            Map<Long, BigDecimal> map = locationsQuantities.getOrDefault(locationNumber.getKey(), Collections.emptyMap());
 
             for (Entry<Long, Entity> productAndCoverageProduct : productAndCoverageProducts.entrySet()) {
                 Entity addedCoverageProduct = productAndCoverageProduct.getValue();
 
                 BigDecimal locationsQuantity = BigDecimalUtils.convertNullToZero(map.get(productAndCoverageProduct.getKey()));
-                Entity coverageProductLogging = createCoverageProductLoggingForLocations(location, actualDate, locationsQuantity);
-                List<Entity> coverageProductLoggings = Lists
-                        .newArrayList(addedCoverageProduct.getHasManyField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS));
-                coverageProductLoggings.add(coverageProductLogging);
+                Entity coverageProductLogging = createCoverageProductLoggingForLocations(locationNumber.getValue(),
+                        parameters.getActualDate(), locationsQuantity);
+                addCoverageProductLogging(addedCoverageProduct, coverageProductLogging);
                 BigDecimal lQuantity = BigDecimalUtils
                         .convertNullToZero(addedCoverageProduct.getDecimalField(CoverageProductFields.LOCATIONS_QUANTITY));
 
                 lQuantity = lQuantity.add(locationsQuantity, numberService.getMathContext());
                 addedCoverageProduct.setField(CoverageProductFields.LOCATIONS_QUANTITY, lQuantity);
-                addedCoverageProduct.setField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS, coverageProductLoggings);
             }
         }
     }
 
-    private Entity createCoverageProductLoggingForLocations(final Entity location, final Date actualDate,
+    private Entity createCoverageProductLoggingForLocations(final String locationNumber, final Date actualDate,
             final BigDecimal locationsQuantity) {
         Entity coverageProductLogging = orderSuppliesService.getCoverageProductLoggingDD().create();
 
@@ -711,8 +813,7 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
                 numberService.setScaleWithDefaultMathContext(locationsQuantity));
         coverageProductLogging.setField(CoverageProductLoggingFields.EVENT_TYPE,
                 CoverageProductLoggingEventType.WAREHOUSE_STATE.getStringValue());
-        coverageProductLogging.setField(CoverageProductLoggingFields.WAREHOUSE_NUMBER,
-                location.getStringField(LocationFields.NUMBER));
+        coverageProductLogging.setField(CoverageProductLoggingFields.WAREHOUSE_NUMBER, locationNumber);
 
         return coverageProductLogging;
     }
@@ -728,14 +829,25 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
     }
 
     private void fillCoverageProductStatesAndQuantities(final Map<Long, Entity> productAndCoverageProducts) {
-        for (Entry<Long, Entity> productAndCoverageProduct : productAndCoverageProducts.entrySet()) {
-            Entity coverageProduct = productAndCoverageProduct.getValue();
-
+        for (Entity coverageProduct : productAndCoverageProducts.values()) {
             fillCoverageProductLoggingsStates(coverageProduct);
             fillCoverageProductQuantities(coverageProduct);
         }
     }
 
+    /**
+     * Coverage products are created by this service with their loggings set as a mutable {@code List<Entity>} (see
+     * {@link #createCoverageProductLoggings(Entity)}), so new loggings are appended in place instead of copying the list.
+     */
+    @SuppressWarnings("unchecked")
+    private void addCoverageProductLogging(final Entity coverageProduct, final Entity coverageProductLogging) {
+        ((List<Entity>) coverageProduct.getField(CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS)).add(coverageProductLogging);
+    }
+
+    private List<Entity> createCoverageProductLoggings(final Entity coverageProductLogging) {
+        return Lists.newArrayList(coverageProductLogging);
+    }
+
     private void fillCoverageProductQuantities(final Entity coverageProduct) {
         BigDecimal demandQuantity = BigDecimalUtils
                 .convertNullToZero(coverageProduct.getDecimalField(CoverageProductFields.DEMAND_QUANTITY));
@@ -926,4 +1038,62 @@ public class MaterialRequirementCoverageServiceImpl implements MaterialRequireme
         return dataDefinitionService.get(TechnologiesConstants.PLUGIN_IDENTIFIER, TechnologiesConstants.MODEL_TECHNOLOGY);
     }
 
+    @PreDestroy
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Parameters of coverage read once on the calling thread, so that partitions don't touch coverage entity.
+     */
+    private static final class CoverageEstimationParameters {
+
+        private final Date coverageToDate;
+
+        private final Date actualDate;
+
+        private final List<String> states;
+
+        private final Long assignedOrderId;
+
+        private final Map<Long, String> locationNumbers;
+
+        private final List<Entity> includedDeliveries;
+
+        private CoverageEstimationParameters(final Date coverageToDate, final Date actualDate, final List<String> states,
+                final Long assignedOrderId, final Map<Long, String> locationNumbers, final List<Entity> includedDeliveries) {
+            this.coverageToDate = coverageToDate;
+            this.actualDate = actualDate;
+            this.states = Collections.unmodifiableList(states);
+            this.assignedOrderId = assignedOrderId;
+            this.locationNumbers = Collections.unmodifiableMap(locationNumbers);
+            this.includedDeliveries = Collections.unmodifiableList(includedDeliveries);
+        }
+
+        private Date getCoverageToDate() {
+            return coverageToDate;
+        }
+
+        private Date getActualDate() {
+            return actualDate;
+        }
+
+        private List<String> getStates() {
+            return states;
+        }
+
+        private Long getAssignedOrderId() {
+            return assignedOrderId;
+        }
+
+        private Map<Long, String> getLocationNumbers() {
+            return locationNumbers;
+        }
+
+        private List<Entity> getIncludedDeliveries() {
+            return includedDeliveries;
+        }
+
+    }
+
 }
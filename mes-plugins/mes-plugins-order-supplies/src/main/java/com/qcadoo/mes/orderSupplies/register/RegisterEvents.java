@@ -160,9 +160,8 @@ public class RegisterEvents {
                 return;
             }
             order.setField(OrderFields.TECHNOLOGY, technology);
-            registerService.removeEntriesFromOrder(order);
             createRegistryEntriesForOrder(order, true);
-            registerService.saveRegistryEntries(order.getHasManyField(OrderFieldsOS.COVERAGE_REGISTERS));
+            registerService.replaceRegistryEntriesForOrder(order, order.getHasManyField(OrderFieldsOS.COVERAGE_REGISTERS));
         }
 
     }
@@ -256,78 +255,18 @@ public class RegisterEvents {
         Entity order = productionTracking.getBelongsToField(ProductionTrackingFields.ORDER);
         Entity toc = productionTracking.getBelongsToField(ProductionTrackingFields.TECHNOLOGY_OPERATION_COMPONENT);
 
-        List<Entity> trackingOperationProductInComponents = productionTracking
-                .getHasManyField(ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_IN_COMPONENTS);
+        boolean cumulated = TypeOfProductionRecording.CUMULATED.getStringValue().equals(
+                order.getStringField(OrderFieldsPC.TYPE_OF_PRODUCTION_RECORDING));
 
-        trackingOperationProductInComponents.stream().forEach(trackingProduct -> {
-            if (trackingProduct.getDecimalField(TrackingOperationProductInComponentFields.USED_QUANTITY) != null) {
-                updateRegistryOnProductionTrackingIn(trackingProduct, order, toc, corrected);
-            }
-        });
+        registerService.updateRegistryEntriesOnProductionTracking(order, toc,
+                registerService.getTrackedQuantities(productionTracking, true, !cumulated, corrected), true, cumulated);
 
         String priceBasedOn = parameterService.getParameter().getStringField(ParameterFieldsPC.PRICE_BASED_ON);
 
-        if (priceBasedOn.equals(PriceBasedOn.REAL_PRODUCTION_COST.getStringValue())) {
-            return;
-        }
-
-        List<Entity> trackingOperationProductOutComponents = productionTracking
-                .getHasManyField(ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_OUT_COMPONENTS);
-
-        trackingOperationProductOutComponents.stream().forEach(trackingProduct -> {
-            if (trackingProduct.getDecimalField(TrackingOperationProductOutComponentFields.USED_QUANTITY) != null) {
-                updateRegistryOnProductionTrackingOut(trackingProduct, order, toc, corrected);
-            }
-        });
-
-    }
-
-    private void updateRegistryOnProductionTrackingIn(Entity trackingProduct, Entity order, Entity toc, boolean corrected) {
-        Entity registerEntry = null;
-        List<Entity> trackingOperationProductInComponents = null;
-        Entity product = trackingProduct.getBelongsToField(TrackingOperationProductInComponentFields.PRODUCT);
-
-        if (TypeOfProductionRecording.CUMULATED.getStringValue().equals(
-                order.getStringField(OrderFieldsPC.TYPE_OF_PRODUCTION_RECORDING))) {
-            trackingOperationProductInComponents = registerService.findTrackingOperationProductInComponents(order, toc, product,
-                    false);
-            List<Entity> registerEntries = registerService.findRegistryEntries(order, product);
-            BigDecimal trackedQuantity = registerService.getTrackedQuantity(trackingProduct,
-                    trackingOperationProductInComponents, corrected);
-            registerService.updateRegistryEntriesOnProductionTracking(registerEntries, trackedQuantity);
-        } else {
-            trackingOperationProductInComponents = registerService.findTrackingOperationProductInComponents(order, toc, product,
-                    true);
-            registerEntry = registerService.findRegistryEntry(order, product, toc);
-            BigDecimal trackedQuantity = registerService.getTrackedQuantity(trackingProduct,
-                    trackingOperationProductInComponents, corrected);
-            registerService.updateRegistryEntriesOnProductionTracking(registerEntry, trackedQuantity);
-        }
-
-    }
-
-    private void updateRegistryOnProductionTrackingOut(Entity trackingProduct, Entity order, Entity toc, boolean corrected) {
-        Entity registerEntry = null;
-        List<Entity> trackingOperationProductOutComponents = null;
-        Entity product = trackingProduct.getBelongsToField(TrackingOperationProductOutComponentFields.PRODUCT);
-
-        if (TypeOfProductionRecording.CUMULATED.getStringValue().equals(
-                order.getStringField(OrderFieldsPC.TYPE_OF_PRODUCTION_RECORDING))) {
-            trackingOperationProductOutComponents = registerService.findTrackingOperationProductOutComponents(order, toc,
-                    product, false);
-            List<Entity> registerEntries = registerService.findRegistryEntries(order, product);
-            BigDecimal trackedQuantity = registerService.getTrackedQuantity(trackingProduct,
-                    trackingOperationProductOutComponents, corrected);
-            registerService.updateRegistryEntriesOnProductionTracking(registerEntries, trackedQuantity);
-        } else {
-            trackingOperationProductOutComponents = registerService.findTrackingOperationProductOutComponents(order, toc,
-                    product, true);
-            registerEntry = registerService.findRegistryEntry(order, product, toc);
-            BigDecimal trackedQuantity = registerService.getTrackedQuantity(trackingProduct,
-                    trackingOperationProductOutComponents, corrected);
-            registerService.updateRegistryEntriesOnProductionTracking(registerEntry, trackedQuantity);
+        if (!priceBasedOn.equals(PriceBasedOn.REAL_PRODUCTION_COST.getStringValue())) {
+            registerService.updateRegistryEntriesOnProductionTracking(order, toc,
+                    registerService.getTrackedQuantities(productionTracking, false, !cumulated, corrected), false, cumulated);
         }
-
     }
 
     private boolean checkIfTechnologyInOrderChange(final Entity order, final Entity orderDB) {
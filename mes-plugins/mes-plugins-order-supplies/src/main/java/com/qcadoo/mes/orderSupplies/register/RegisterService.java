@@ -24,6 +24,8 @@
 package com.qcadoo.mes.orderSupplies.register;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.qcadoo.mes.basic.constants.ProductFamilyElementType;
 import com.qcadoo.mes.basic.constants.ProductFields;
 import com.qcadoo.mes.basicProductionCounting.constants.BasicProductionCountingFields;
@@ -50,20 +52,50 @@ import com.qcadoo.model.api.Entity;
 import com.qcadoo.model.api.NumberService;
 import com.qcadoo.model.api.search.JoinType;
 import com.qcadoo.model.api.search.SearchCriteriaBuilder;
+import com.qcadoo.model.api.search.SearchOrders;
 import com.qcadoo.model.api.search.SearchProjections;
 import com.qcadoo.model.api.search.SearchRestrictions;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @Service
 public class RegisterService {
 
+    private static final String L_ID = "id";
+
+    private static final String L_ORDER_ID = "order_id";
+
+    private static final int L_BATCH_SIZE = 1000;
+
+    private static final String INSERT_REGISTRY_ENTRY = "INSERT INTO ordersupplies_coverageregister "
+            + "(fromproductioncountingquantity, product_id, productnumber, order_id, ordernumber, delivery_id, operation_id, "
+            + "technologyoperationcomponent_id, date, quantity, productioncountingquantities, eventtype, state, producttype) "
+            + "VALUES (:fromproductioncountingquantity, :product_id, :productnumber, :order_id, :ordernumber, :delivery_id, "
+            + ":operation_id, :technologyoperationcomponent_id, :date, :quantity, :productioncountingquantities, :eventtype, "
+            + ":state, :producttype)";
+
+    private static final String UPDATE_REGISTRY_ENTRY = "UPDATE ordersupplies_coverageregister SET "
+            + "fromproductioncountingquantity = :fromproductioncountingquantity, product_id = :product_id, "
+            + "productnumber = :productnumber, order_id = :order_id, ordernumber = :ordernumber, delivery_id = :delivery_id, "
+            + "operation_id = :operation_id, technologyoperationcomponent_id = :technologyoperationcomponent_id, date = :date, "
+            + "quantity = :quantity, productioncountingquantities = :productioncountingquantities, eventtype = :eventtype, "
+            + "state = :state, producttype = :producttype WHERE id = :id";
+
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
@@ -73,6 +105,9 @@ public class RegisterService {
     @Autowired
     private TechnologyService technologyService;
 
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
     public List<Entity> getOPICForTechnology(final Entity technology) {
         String sql = "select opic as opic, product.id as productId, product.number as productNumber, product.entityType as productEntityType, "
                 + "operation.id as operationId, toc.id as tocId from #technologies_operationProductInComponent opic "
@@ -176,17 +211,90 @@ public class RegisterService {
         return scb.setMaxResults(1).uniqueResult() != null;
     }
 
-    public void saveRegistryEntries(List<Entity> entries) {
+    public void replaceRegistryEntriesForOrder(final Entity order, final List<Entity> entries) {
+        Map<String, Deque<Long>> existingEntriesIds = Maps.newHashMap();
+
+        jdbcTemplate.query(
+                "SELECT id, product_id, technologyoperationcomponent_id, eventtype FROM ordersupplies_coverageregister "
+                        + "WHERE order_id = :order_id ORDER BY id",
+                Collections.singletonMap(L_ORDER_ID, order.getId()),
+                (RowCallbackHandler) resultSet -> existingEntriesIds.computeIfAbsent(
+                        getRegistryEntryKey(resultSet.getLong("product_id"),
+                                (Long) resultSet.getObject("technologyoperationcomponent_id"), resultSet.getString("eventtype")),
+                        key -> new ArrayDeque<>()).add(resultSet.getLong(L_ID)));
+
+        List<SqlParameterSource> insertParameters = Lists.newArrayList();
+        List<SqlParameterSource> updateParameters = Lists.newArrayList();
+
         for (Entity entry : entries) {
-            entry.getDataDefinition().save(entry);
+            MapSqlParameterSource parameters = getRegistryEntryParameters(order, entry);
+            Deque<Long> ids = existingEntriesIds.get(getRegistryEntryKey(
+                    getBelongsToId(entry, CoverageRegisterFields.PRODUCT),
+                    getBelongsToId(entry, CoverageRegisterFields.TECHNOLOGY_OPERATION_COMPONENT),
+                    entry.getStringField(CoverageRegisterFields.EVENT_TYPE)));
+
+            if (Objects.isNull(ids) || ids.isEmpty()) {
+                insertParameters.add(parameters);
+            } else {
+                updateParameters.add(parameters.addValue(L_ID, ids.poll()));
+            }
+        }
+
+        List<Long> removedEntriesIds = existingEntriesIds.values().stream().flatMap(Collection::stream)
+                .collect(Collectors.toList());
+
+        if (!removedEntriesIds.isEmpty()) {
+            jdbcTemplate.update("DELETE FROM ordersupplies_coverageregister WHERE id IN (:ids)",
+                    Collections.singletonMap("ids", removedEntriesIds));
         }
 
+        batchUpdate(UPDATE_REGISTRY_ENTRY, updateParameters);
+        batchUpdate(INSERT_REGISTRY_ENTRY, insertParameters);
     }
 
-    public void removeEntriesFromOrder(Entity order) {
-        List<Entity> entries = order.getHasManyField(OrderFieldsOS.COVERAGE_REGISTERS);
-        for (Entity entry : entries) {
-            entry.getDataDefinition().delete(entry.getId());
+    private String getRegistryEntryKey(final Long productId, final Long tocId, final String eventType) {
+        return productId + "_" + tocId + "_" + eventType;
+    }
+
+    private MapSqlParameterSource getRegistryEntryParameters(final Entity order, final Entity entry) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue("fromproductioncountingquantity",
+                entry.getBooleanField(CoverageRegisterFields.FROM_PRODUCTION_COUNTING_QUANTITY));
+        parameters.addValue("product_id", getBelongsToId(entry, CoverageRegisterFields.PRODUCT));
+        parameters.addValue("productnumber", entry.getStringField(CoverageRegisterFields.PRODUCT_NUMBER));
+        parameters.addValue(L_ORDER_ID, order.getId());
+        parameters.addValue("ordernumber", entry.getStringField(CoverageRegisterFields.ORDER_NUMBER));
+        parameters.addValue("delivery_id", getBelongsToId(entry, CoverageRegisterFields.DELIVERY));
+        parameters.addValue("operation_id", getBelongsToId(entry, CoverageRegisterFields.OPERATION));
+        parameters.addValue("technologyoperationcomponent_id",
+                getBelongsToId(entry, CoverageRegisterFields.TECHNOLOGY_OPERATION_COMPONENT));
+        parameters.addValue("date", entry.getDateField(CoverageRegisterFields.DATE));
+        parameters.addValue("quantity", entry.getDecimalField(CoverageRegisterFields.QUANTITY));
+        parameters.addValue("productioncountingquantities",
+                entry.getDecimalField(CoverageRegisterFields.PRODUCTION_COUNTING_QUANTITIES));
+        parameters.addValue("eventtype", entry.getStringField(CoverageRegisterFields.EVENT_TYPE));
+        parameters.addValue("state", entry.getStringField(CoverageRegisterFields.STATE));
+        parameters.addValue("producttype", entry.getStringField(CoverageRegisterFields.PRODUCT_TYPE));
+
+        return parameters;
+    }
+
+    private Long getBelongsToId(final Entity entry, final String fieldName) {
+        Object value = entry.getField(fieldName);
+
+        if (value instanceof Entity) {
+            return ((Entity) value).getId();
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+
+        return null;
+    }
+
+    private void batchUpdate(final String sql, final List<SqlParameterSource> parameters) {
+        for (List<SqlParameterSource> chunk : Lists.partition(parameters, L_BATCH_SIZE)) {
+            jdbcTemplate.batchUpdate(sql, chunk.toArray(new SqlParameterSource[chunk.size()]));
         }
     }
 
@@ -238,9 +346,15 @@ public class RegisterService {
     }
 
     public void updateRegistryEntriesForOrder(Entity order) {
+        Map<Long, Entity> entriesDB = Maps.newHashMap();
+
+        for (Entity entryDB : findRegistryEntries(order)) {
+            entriesDB.putIfAbsent(entryDB.getBelongsToField(CoverageRegisterFields.PRODUCT).getId(), entryDB);
+        }
+
         List<Entity> registryEntries = order.getHasManyField(OrderFieldsOS.COVERAGE_REGISTERS);
         for (Entity entry : registryEntries) {
-            Entity entryDB = findRegistryEntry(order, entry.getBelongsToField(CoverageRegisterFields.PRODUCT));
+            Entity entryDB = entriesDB.get(getBelongsToId(entry, CoverageRegisterFields.PRODUCT));
             BigDecimal registredQuantity = entryDB.getDecimalField(CoverageRegisterFields.PRODUCTION_COUNTING_QUANTITIES)
                     .subtract(entryDB.getDecimalField(CoverageRegisterFields.QUANTITY), numberService.getMathContext());
             BigDecimal quantity = entry.getDecimalField(CoverageRegisterFields.PRODUCTION_COUNTING_QUANTITIES).subtract(
@@ -254,102 +368,153 @@ public class RegisterService {
         }
     }
 
-    public List<Entity> findTrackingOperationProductInComponents(Entity order, Entity toc, Entity product,
-            boolean forEachOperation) {
+    public Map<Long, BigDecimal> getTrackedQuantities(final Entity productionTracking, final boolean inputProducts,
+            final boolean forEachOperation, final boolean corrected) {
+        List<Entity> trackingProducts = productionTracking.getHasManyField(inputProducts
+                ? ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_IN_COMPONENTS
+                : ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_OUT_COMPONENTS);
 
-        SearchCriteriaBuilder scb = dataDefinitionService
-                .get(ProductionCountingConstants.PLUGIN_IDENTIFIER,
-                        ProductionCountingConstants.MODEL_TRACKING_OPERATION_PRODUCT_IN_COMPONENT)
-                .find()
-                .createAlias(TrackingOperationProductInComponentFields.PRODUCTION_TRACKING, "pTracking", JoinType.INNER)
-                .add(SearchRestrictions.belongsTo("pTracking." + ProductionTrackingFields.ORDER, order))
-                .add(SearchRestrictions.eq("pTracking." + ProductionTrackingFields.STATE,
-                        ProductionTrackingStateStringValues.ACCEPTED))
-                .add(SearchRestrictions.belongsTo(TrackingOperationProductInComponentFields.PRODUCT, product));
+        Map<Long, BigDecimal> productionTrackingQuantities = Maps.newHashMap();
 
-        if (forEachOperation) {
-            scb.add(SearchRestrictions.belongsTo("pTracking." + ProductionTrackingFields.TECHNOLOGY_OPERATION_COMPONENT, toc));
+        for (Entity trackingProduct : trackingProducts) {
+            BigDecimal usedQuantity = trackingProduct.getDecimalField(TrackingOperationProductInComponentFields.USED_QUANTITY);
+
+            if (usedQuantity != null) {
+                productionTrackingQuantities.merge(
+                        trackingProduct.getBelongsToField(TrackingOperationProductInComponentFields.PRODUCT).getId(),
+                        usedQuantity, (q1, q2) -> q1.add(q2, numberService.getMathContext()));
+            }
         }
 
-        return scb.list().getEntities();
-    }
+        if (productionTrackingQuantities.isEmpty()) {
+            return Collections.emptyMap();
+        }
 
-    public List<Entity> findTrackingOperationProductOutComponents(Entity order, Entity toc, Entity product,
-            boolean forEachOperation) {
+        Entity toc = productionTracking.getBelongsToField(ProductionTrackingFields.TECHNOLOGY_OPERATION_COMPONENT);
 
-        SearchCriteriaBuilder scb = dataDefinitionService
-                .get(ProductionCountingConstants.PLUGIN_IDENTIFIER,
-                        ProductionCountingConstants.MODEL_TRACKING_OPERATION_PRODUCT_OUT_COMPONENT)
-                .find()
-                .createAlias(TrackingOperationProductOutComponentFields.PRODUCTION_TRACKING, "pTracking", JoinType.INNER)
-                .add(SearchRestrictions.belongsTo("pTracking." + ProductionTrackingFields.ORDER, order))
-                .add(SearchRestrictions.eq("pTracking." + ProductionTrackingFields.STATE,
-                        ProductionTrackingStateStringValues.ACCEPTED))
-                .add(SearchRestrictions.belongsTo(TrackingOperationProductOutComponentFields.PRODUCT, product));
+        StringBuilder query = new StringBuilder();
+        query.append("SELECT tc.product_id AS productId, ");
+        query.append("SUM(CASE WHEN pt.id = :productionTrackingId THEN 0 ELSE COALESCE(tc.usedquantity, 0) END) AS trackedQuantity, ");
+        query.append("BOOL_OR(pt.id = :productionTrackingId) AS withProductionTracking ");
+        query.append("FROM ").append(inputProducts ? "productioncounting_trackingoperationproductincomponent"
+                : "productioncounting_trackingoperationproductoutcomponent").append(" tc ");
+        query.append("JOIN productioncounting_productiontracking pt ON pt.id = tc.productiontracking_id ");
+        query.append("WHERE pt.order_id = :order_id AND pt.state = :state AND tc.product_id IN (:productIds) ");
 
         if (forEachOperation) {
-            scb.add(SearchRestrictions.belongsTo("pTracking." + ProductionTrackingFields.TECHNOLOGY_OPERATION_COMPONENT, toc));
+            query.append(Objects.isNull(toc) ? "AND pt.technologyoperationcomponent_id IS NULL "
+                    : "AND pt.technologyoperationcomponent_id = :tocId ");
         }
 
-        return scb.list().getEntities();
-    }
+        query.append("GROUP BY tc.product_id");
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue("productionTrackingId", productionTracking.getId());
+        parameters.addValue(L_ORDER_ID, productionTracking.getBelongsToField(ProductionTrackingFields.ORDER).getId());
+        parameters.addValue("state", ProductionTrackingStateStringValues.ACCEPTED);
+        parameters.addValue("productIds", productionTrackingQuantities.keySet());
+        parameters.addValue("tocId", Objects.isNull(toc) ? null : toc.getId());
 
-    public BigDecimal getTrackedQuantity(Entity trackingOperationProductInComponent,
-            List<Entity> trackingOperationProductInComponents, boolean corrected) {
+        Map<Long, BigDecimal> otherTrackingsQuantities = Maps.newHashMap();
+        Set<Long> productsWithProductionTracking = Sets.newHashSet();
+
+        jdbcTemplate.query(query.toString(), parameters, (RowCallbackHandler) resultSet -> {
+            Long productId = resultSet.getLong("productId");
+
+            otherTrackingsQuantities.put(productId, resultSet.getBigDecimal("trackedQuantity"));
+
+            if (resultSet.getBoolean("withProductionTracking")) {
+                productsWithProductionTracking.add(productId);
+            }
+        });
 
-        BigDecimal trackedQuantity = BigDecimal.ZERO;
+        Map<Long, BigDecimal> trackedQuantities = Maps.newHashMap();
 
-        for (Entity trackingProduct : trackingOperationProductInComponents) {
+        for (Entity trackingProduct : trackingProducts) {
+            BigDecimal usedQuantity = trackingProduct.getDecimalField(TrackingOperationProductInComponentFields.USED_QUANTITY);
 
-            if (trackingOperationProductInComponent.getId() != null
-                    && trackingProduct.getId().equals(trackingOperationProductInComponent.getId())) {
-                if (!corrected) {
-                    trackedQuantity = trackedQuantity.add(trackingOperationProductInComponent
-                            .getDecimalField(TrackingOperationProductInComponentFields.USED_QUANTITY), numberService
-                            .getMathContext());
+            if (usedQuantity == null) {
+                continue;
+            }
+
+            Long productId = trackingProduct.getBelongsToField(TrackingOperationProductInComponentFields.PRODUCT).getId();
+            BigDecimal trackedQuantity = BigDecimalUtils.convertNullToZero(otherTrackingsQuantities.get(productId));
+
+            if (productsWithProductionTracking.contains(productId)) {
+                trackedQuantity = trackedQuantity.add(productionTrackingQuantities.get(productId),
+                        numberService.getMathContext());
+
+                if (corrected) {
+                    trackedQuantity = trackedQuantity.subtract(usedQuantity, numberService.getMathContext());
                 }
-            } else {
-                trackedQuantity = trackedQuantity.add(BigDecimalUtils.convertNullToZero(trackingProduct
-                        .getDecimalField(TrackingOperationProductInComponentFields.USED_QUANTITY)), numberService
-                        .getMathContext());
             }
 
+            trackedQuantities.put(productId, trackedQuantity);
         }
 
-        return trackedQuantity;
+        return trackedQuantities;
     }
 
-    public void updateRegistryEntriesOnProductionTracking(Entity registerEntry, BigDecimal trackedQuantity) {
-        if (registerEntry == null) {
+    public void updateRegistryEntriesOnProductionTracking(final Entity order, final Entity toc,
+            final Map<Long, BigDecimal> trackedQuantities, final boolean inputProducts, final boolean cumulated) {
+        if (trackedQuantities.isEmpty()) {
             return;
         }
-        BigDecimal demandQuantity = registerEntry.getDecimalField(CoverageRegisterFields.PRODUCTION_COUNTING_QUANTITIES)
-                .subtract(trackedQuantity, numberService.getMathContext());
 
-        if (demandQuantity.compareTo(BigDecimal.ZERO) < 0) {
-            registerEntry.setField(CoverageRegisterFields.QUANTITY, BigDecimal.ZERO);
-        } else {
-            registerEntry.setField(CoverageRegisterFields.QUANTITY, demandQuantity);
-        }
+        List<Entity> registerEntries = dataDefinitionService
+                .get(OrderSuppliesConstants.PLUGIN_IDENTIFIER, OrderSuppliesConstants.MODEL_COVERAGE_REGISTER).find()
+                .createAlias(CoverageRegisterFields.PRODUCT, "prod", JoinType.INNER)
+                .add(SearchRestrictions.belongsTo(CoverageRegisterFields.ORDER, order))
+                .add(SearchRestrictions.in("prod.id", Lists.newArrayList(trackedQuantities.keySet())))
+                .add(SearchRestrictions.in(CoverageRegisterFields.EVENT_TYPE, getRegistryEventTypes(inputProducts)))
+                .addOrder(SearchOrders.asc("id")).list().getEntities();
 
-        registerEntry.getDataDefinition().save(registerEntry);
-    }
+        Map<Long, List<Entity>> registerEntriesByProduct = registerEntries.stream()
+                .filter(registerEntry -> cumulated || Objects.isNull(toc)
+                        || toc.getId().equals(getBelongsToId(registerEntry, CoverageRegisterFields.TECHNOLOGY_OPERATION_COMPONENT)))
+                .collect(Collectors.groupingBy(registerEntry -> registerEntry.getBelongsToField(CoverageRegisterFields.PRODUCT)
+                        .getId()));
 
-    public void updateRegistryEntriesOnProductionTracking(List<Entity> registerEntries, BigDecimal trackedQuantity) {
-        BigDecimal usedQuantity = BigDecimalUtils.convertNullToZero(trackedQuantity);
+        List<SqlParameterSource> parameters = Lists.newArrayList();
 
-        for (Entity registerEntry : registerEntries) {
-            BigDecimal demandQuantity = registerEntry.getDecimalField(CoverageRegisterFields.PRODUCTION_COUNTING_QUANTITIES)
-                    .subtract(usedQuantity, numberService.getMathContext());
-            if (demandQuantity.compareTo(BigDecimal.ZERO) < 0) {
-                usedQuantity = demandQuantity.abs();
-                registerEntry.setField(CoverageRegisterFields.QUANTITY, BigDecimal.ZERO);
-            } else {
-                usedQuantity = BigDecimal.ZERO;
-                registerEntry.setField(CoverageRegisterFields.QUANTITY, demandQuantity);
+        for (Map.Entry<Long, BigDecimal> trackedQuantity : trackedQuantities.entrySet()) {
+            List<Entity> productRegisterEntries = registerEntriesByProduct.getOrDefault(trackedQuantity.getKey(),
+                    Collections.emptyList());
+
+            if (!cumulated && !productRegisterEntries.isEmpty()) {
+                productRegisterEntries = productRegisterEntries.subList(0, 1);
+            }
+
+            BigDecimal usedQuantity = BigDecimalUtils.convertNullToZero(trackedQuantity.getValue());
+
+            for (Entity registerEntry : productRegisterEntries) {
+                BigDecimal demandQuantity = registerEntry.getDecimalField(CoverageRegisterFields.PRODUCTION_COUNTING_QUANTITIES)
+                        .subtract(usedQuantity, numberService.getMathContext());
+                BigDecimal quantity;
+
+                if (demandQuantity.compareTo(BigDecimal.ZERO) < 0) {
+                    usedQuantity = demandQuantity.abs();
+                    quantity = BigDecimal.ZERO;
+                } else {
+                    usedQuantity = BigDecimal.ZERO;
+                    quantity = demandQuantity;
+                }
+
+                parameters.add(new MapSqlParameterSource(L_ID, registerEntry.getId()).addValue("quantity", quantity));
             }
-            registerEntry.getDataDefinition().save(registerEntry);
         }
+
+        batchUpdate("UPDATE ordersupplies_coverageregister SET quantity = :quantity WHERE id = :id", parameters);
+    }
+
+    private List<String> getRegistryEventTypes(final boolean inputProducts) {
+        if (inputProducts) {
+            return Lists.newArrayList(CoverageProductLoggingEventType.OPERATION_INPUT.getStringValue(),
+                    CoverageProductLoggingEventType.ORDER_INPUT.getStringValue());
+        }
+
+        return Lists.newArrayList(CoverageProductLoggingEventType.ORDER_OUTPUT.getStringValue());
     }
 
     public Entity createRegisterEntryFromPCQ(Entity productionCountingQuantity) {
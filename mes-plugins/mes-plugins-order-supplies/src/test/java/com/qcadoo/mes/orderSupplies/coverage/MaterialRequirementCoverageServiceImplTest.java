@@ -0,0 +1,382 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo Framework
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orderSupplies.coverage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyCollection;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.deliveries.DeliveriesService;
+import com.qcadoo.mes.deliveries.constants.DeliveredProductFields;
+import com.qcadoo.mes.deliveries.constants.DeliveriesConstants;
+import com.qcadoo.mes.deliveries.constants.DeliveryFields;
+import com.qcadoo.mes.deliveries.constants.OrderedProductFields;
+import com.qcadoo.mes.deliveries.states.constants.DeliveryStateStringValues;
+import com.qcadoo.mes.materialFlow.constants.LocationFields;
+import com.qcadoo.mes.materialFlowResources.constants.MaterialFlowResourcesConstants;
+import com.qcadoo.mes.orderSupplies.OrderSuppliesService;
+import com.qcadoo.mes.orderSupplies.constants.CoverageLocationFields;
+import com.qcadoo.mes.orderSupplies.constants.CoverageProductFields;
+import com.qcadoo.mes.orderSupplies.constants.CoverageProductLoggingEventType;
+import com.qcadoo.mes.orderSupplies.constants.CoverageProductLoggingFields;
+import com.qcadoo.mes.orderSupplies.constants.CoverageProductLoggingState;
+import com.qcadoo.mes.orderSupplies.constants.CoverageProductState;
+import com.qcadoo.mes.orderSupplies.constants.CoverageRegisterFields;
+import com.qcadoo.mes.orderSupplies.constants.CoverageType;
+import com.qcadoo.mes.orderSupplies.constants.MaterialRequirementCoverageFields;
+import com.qcadoo.mes.orderSupplies.constants.OrderSuppliesConstants;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.NumberService;
+import com.qcadoo.model.api.search.SearchCriteriaBuilder;
+import com.qcadoo.model.api.search.SearchCriterion;
+import com.qcadoo.model.api.search.SearchOrder;
+import com.qcadoo.model.api.search.SearchQueryBuilder;
+import com.qcadoo.model.api.search.SearchResult;
+import com.qcadoo.testing.model.EntityListMock;
+
+public class MaterialRequirementCoverageServiceImplTest {
+
+    private static final Date ACTUAL_DATE = new DateTime(2024, 1, 1, 8, 0, 0).toDate();
+
+    private static final Date COVERAGE_TO_DATE = new DateTime(2024, 1, 31, 0, 0, 0).toDate();
+
+    private static final Long PRODUCT_ID = 1L;
+
+    private MaterialRequirementCoverageServiceImpl materialRequirementCoverageService;
+
+    @Mock
+    private CoverageProductsBatchWriter coverageProductsBatchWriter;
+
+    @Mock
+    private DataDefinitionService dataDefinitionService;
+
+    @Mock
+    private NumberService numberService;
+
+    @Mock
+    private OrderSuppliesService orderSuppliesService;
+
+    @Mock
+    private DeliveriesService deliveriesService;
+
+    @Mock
+    private DataDefinition coverageRegisterDD, resourceDD, deliveryDD, orderedProductDD, deliveredProductDD, coverageProductDD,
+            coverageProductLoggingDD, materialRequirementCoverageDD;
+
+    @Mock
+    private Entity materialRequirementCoverage, product, location, coverageLocation;
+
+    private SearchCriteriaBuilder orderedProductsCriteriaBuilder, deliveredProductsCriteriaBuilder;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        materialRequirementCoverageService = new MaterialRequirementCoverageServiceImpl();
+
+        ReflectionTestUtils.setField(materialRequirementCoverageService, "coverageProductsBatchWriter",
+                coverageProductsBatchWriter);
+        ReflectionTestUtils.setField(materialRequirementCoverageService, "dataDefinitionService", dataDefinitionService);
+        ReflectionTestUtils.setField(materialRequirementCoverageService, "numberService", numberService);
+        ReflectionTestUtils.setField(materialRequirementCoverageService, "orderSuppliesService", orderSuppliesService);
+        ReflectionTestUtils.setField(materialRequirementCoverageService, "deliveriesService", deliveriesService);
+
+        given(numberService.getMathContext()).willReturn(MathContext.DECIMAL64);
+        given(numberService.setScaleWithDefaultMathContext(any(BigDecimal.class))).willAnswer(
+                invocation -> invocation.getArguments()[0]);
+
+        given(dataDefinitionService.get(OrderSuppliesConstants.PLUGIN_IDENTIFIER, OrderSuppliesConstants.MODEL_COVERAGE_REGISTER))
+                .willReturn(coverageRegisterDD);
+        given(dataDefinitionService.get(MaterialFlowResourcesConstants.PLUGIN_IDENTIFIER,
+                MaterialFlowResourcesConstants.MODEL_RESOURCE)).willReturn(resourceDD);
+        given(dataDefinitionService.get(DeliveriesConstants.PLUGIN_IDENTIFIER, DeliveriesConstants.MODEL_DELIVERY)).willReturn(
+                deliveryDD);
+        given(dataDefinitionService.get(DeliveriesConstants.PLUGIN_IDENTIFIER, DeliveriesConstants.MODEL_ORDERED_PRODUCT))
+                .willReturn(orderedProductDD);
+        given(dataDefinitionService.get(DeliveriesConstants.PLUGIN_IDENTIFIER, DeliveriesConstants.MODEL_DELIVERED_PRODUCT))
+                .willReturn(deliveredProductDD);
+
+        given(orderSuppliesService.getCoverageProductDD()).willReturn(coverageProductDD);
+        given(orderSuppliesService.getCoverageProductLoggingDD()).willReturn(coverageProductLoggingDD);
+        given(coverageProductDD.create()).willAnswer(invocation -> createEntity());
+        given(coverageProductLoggingDD.create()).willAnswer(invocation -> createEntity());
+
+        given(deliveriesService.getDefaultSupplierWithIntegration(anyLong())).willReturn(Optional.empty());
+
+        given(product.getId()).willReturn(PRODUCT_ID);
+        given(location.getId()).willReturn(7L);
+        given(location.getStringField(LocationFields.NUMBER)).willReturn("W1");
+        given(coverageLocation.getBelongsToField(CoverageLocationFields.LOCATION)).willReturn(location);
+
+        given(materialRequirementCoverage.getDateField(MaterialRequirementCoverageFields.ACTUAL_DATE)).willReturn(ACTUAL_DATE);
+        given(materialRequirementCoverage.getDateField(MaterialRequirementCoverageFields.COVERAGE_TO_DATE)).willReturn(
+                COVERAGE_TO_DATE);
+        given(materialRequirementCoverage.getStringField(MaterialRequirementCoverageFields.COVERAGE_TYPE)).willReturn(
+                CoverageType.ALL.getStringValue());
+        given(materialRequirementCoverage.getHasManyField(MaterialRequirementCoverageFields.COVERAGE_LOCATIONS)).willReturn(
+                EntityListMock.create(Lists.newArrayList(coverageLocation)));
+        given(materialRequirementCoverage.getHasManyField(MaterialRequirementCoverageFields.COVERAGE_ORDER_STATES)).willReturn(
+                EntityListMock.create(Collections.<Entity> emptyList()));
+        given(materialRequirementCoverage.getHasManyField("coverageOrders")).willReturn(
+                EntityListMock.create(Collections.<Entity> emptyList()));
+        given(materialRequirementCoverage.getDataDefinition()).willReturn(materialRequirementCoverageDD);
+
+        // demand: 5 on day 1 and 3 on day 2, nothing produced
+        stubRegistryQuery("'04orderInput'", Lists.newArrayList(mockRegisterEntry(1, "5"), mockRegisterEntry(2, "3")));
+        stubRegistryQuery("'05orderOutput'", Collections.<Entity> emptyList());
+
+        Entity productIdProjection = mock(Entity.class);
+        given(productIdProjection.getField("productId")).willReturn(PRODUCT_ID);
+        stubRegistryQuery("DISTINCT registry.product.id", Lists.newArrayList(productIdProjection));
+
+        // warehouse: 4
+        Entity resource = mock(Entity.class);
+        given(resource.getField("location")).willReturn(7L);
+        given(resource.getField("product")).willReturn(PRODUCT_ID);
+        given(resource.getDecimalField("quantity")).willReturn(new BigDecimal(4));
+        given(resourceDD.find(anyString())).willReturn(mockSearchQueryBuilder(Lists.newArrayList(resource)));
+
+        // deliveries: 10 ordered on day 3, 2 delivered on day 4
+        Entity approvedDelivery = mockDelivery(11L, DeliveryStateStringValues.APPROVED, 3);
+        Entity receivedDelivery = mockDelivery(12L, DeliveryStateStringValues.RECEIVE_CONFIRM_WAITING, 4);
+
+        given(deliveryDD.find()).willReturn(
+                mockSearchCriteriaBuilder(Lists.newArrayList(approvedDelivery, receivedDelivery)));
+
+        Entity orderedProduct = mockDeliveryProduct(approvedDelivery, OrderedProductFields.DELIVERY,
+                OrderedProductFields.ORDERED_QUANTITY, "10");
+        Entity deliveredProduct = mockDeliveryProduct(receivedDelivery, DeliveredProductFields.DELIVERY,
+                DeliveredProductFields.DELIVERED_QUANTITY, "2");
+
+        orderedProductsCriteriaBuilder = mockSearchCriteriaBuilder(Lists.newArrayList(orderedProduct));
+        deliveredProductsCriteriaBuilder = mockSearchCriteriaBuilder(Lists.newArrayList(deliveredProduct));
+
+        given(orderedProductDD.find()).willReturn(orderedProductsCriteriaBuilder);
+        given(deliveredProductDD.find()).willReturn(deliveredProductsCriteriaBuilder);
+    }
+
+    @Test
+    public void shouldEstimateCoverageOfProductFromAllSources() {
+        // when
+        materialRequirementCoverageService.estimateProductCoverageInTime(materialRequirementCoverage);
+
+        // then
+        Entity coverageProduct = getWrittenCoverageProduct();
+
+        assertQuantity(8, coverageProduct.getDecimalField(CoverageProductFields.DEMAND_QUANTITY));
+        assertQuantity(4, coverageProduct.getDecimalField(CoverageProductFields.LOCATIONS_QUANTITY));
+        assertQuantity(12, coverageProduct.getDecimalField(CoverageProductFields.DELIVERED_QUANTITY));
+        assertQuantity(16, coverageProduct.getDecimalField(CoverageProductFields.COVERED_QUANTITY));
+        assertQuantity(8, coverageProduct.getDecimalField(CoverageProductFields.RESERVE_MISSING_QUANTITY));
+        assertEquals(CoverageProductState.DELAY.getStringValue(), coverageProduct.getStringField(CoverageProductFields.STATE));
+        assertEquals(day(1), coverageProduct.getDateField(CoverageProductFields.LACK_FROM_DATE));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldKeepAllLoggingsOfProductSortedWithRunningBalance() {
+        // when
+        materialRequirementCoverageService.estimateProductCoverageInTime(materialRequirementCoverage);
+
+        // then
+        List<Entity> coverageProductLoggings = (List<Entity>) getWrittenCoverageProduct().getField(
+                CoverageProductFields.COVERAGE_PRODUCT_LOGGINGS);
+
+        assertEquals(5, coverageProductLoggings.size());
+
+        assertLogging(coverageProductLoggings.get(0), CoverageProductLoggingEventType.WAREHOUSE_STATE, 4, null);
+        assertLogging(coverageProductLoggings.get(1), CoverageProductLoggingEventType.ORDER_INPUT, -1,
+                CoverageProductLoggingState.LACK);
+        assertLogging(coverageProductLoggings.get(2), CoverageProductLoggingEventType.ORDER_INPUT, -4,
+                CoverageProductLoggingState.LACK);
+        assertLogging(coverageProductLoggings.get(3), CoverageProductLoggingEventType.DELIVERY, 6,
+                CoverageProductLoggingState.COVERED);
+        assertLogging(coverageProductLoggings.get(4), CoverageProductLoggingEventType.DELIVERY, 8,
+                CoverageProductLoggingState.COVERED);
+    }
+
+    @Test
+    public void shouldLoadProductsOfAllDeliveriesInOneQueryPerModel() {
+        // when
+        materialRequirementCoverageService.estimateProductCoverageInTime(materialRequirementCoverage);
+
+        // then
+        verify(orderedProductsCriteriaBuilder).add(any(SearchCriterion.class));
+        verify(deliveredProductsCriteriaBuilder).add(any(SearchCriterion.class));
+    }
+
+    private Entity getWrittenCoverageProduct() {
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        ArgumentCaptor<List<Entity>> coverageProductsCaptor = ArgumentCaptor.forClass((Class) List.class);
+
+        verify(coverageProductsBatchWriter).write(eq(materialRequirementCoverage), coverageProductsCaptor.capture());
+
+        List<Entity> coverageProducts = coverageProductsCaptor.getValue();
+
+        assertEquals(1, coverageProducts.size());
+
+        return coverageProducts.get(0);
+    }
+
+    private void assertLogging(final Entity coverageProductLogging, final CoverageProductLoggingEventType eventType,
+            final int reserveMissingQuantity, final CoverageProductLoggingState state) {
+        assertEquals(eventType.getStringValue(), coverageProductLogging.getStringField(CoverageProductLoggingFields.EVENT_TYPE));
+        assertQuantity(reserveMissingQuantity,
+                coverageProductLogging.getDecimalField(CoverageProductLoggingFields.RESERVE_MISSING_QUANTITY));
+
+        if (state == null) {
+            assertNull(coverageProductLogging.getStringField(CoverageProductLoggingFields.STATE));
+        } else {
+            assertEquals(state.getStringValue(), coverageProductLogging.getStringField(CoverageProductLoggingFields.STATE));
+        }
+    }
+
+    private void assertQuantity(final int expected, final BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual));
+    }
+
+    private Date day(final int day) {
+        return new DateTime(ACTUAL_DATE).plusDays(day).toDate();
+    }
+
+    private void stubRegistryQuery(final String queryPart, final List<Entity> registerEntries) {
+        SearchQueryBuilder searchQueryBuilder = mockSearchQueryBuilder(registerEntries);
+
+        given(coverageRegisterDD.find(contains(queryPart))).willReturn(searchQueryBuilder);
+    }
+
+    private Entity mockRegisterEntry(final int day, final String quantity) {
+        Entity registerEntry = mock(Entity.class);
+
+        given(registerEntry.getBelongsToField(CoverageRegisterFields.PRODUCT)).willReturn(product);
+        given(registerEntry.getDateField(CoverageRegisterFields.DATE)).willReturn(day(day));
+        given(registerEntry.getDecimalField(CoverageRegisterFields.QUANTITY)).willReturn(new BigDecimal(quantity));
+        given(registerEntry.getStringField("eventType")).willReturn(CoverageProductLoggingEventType.ORDER_INPUT.getStringValue());
+        given(registerEntry.getStringField("productType")).willReturn("01component");
+
+        return registerEntry;
+    }
+
+    private Entity mockDelivery(final Long id, final String state, final int day) {
+        Entity delivery = mock(Entity.class);
+
+        given(delivery.getId()).willReturn(id);
+        given(delivery.getStringField(DeliveryFields.STATE)).willReturn(state);
+        given(delivery.getDateField(DeliveryFields.DELIVERY_DATE)).willReturn(day(day));
+
+        return delivery;
+    }
+
+    private Entity mockDeliveryProduct(final Entity delivery, final String deliveryFieldName, final String quantityFieldName,
+            final String quantity) {
+        Entity deliveryProduct = mock(Entity.class);
+
+        given(deliveryProduct.getBelongsToField(deliveryFieldName)).willReturn(delivery);
+        given(deliveryProduct.getBelongsToField("product")).willReturn(product);
+        given(deliveryProduct.getDecimalField(quantityFieldName)).willReturn(new BigDecimal(quantity));
+
+        return deliveryProduct;
+    }
+
+    private SearchQueryBuilder mockSearchQueryBuilder(final List<Entity> entities) {
+        SearchQueryBuilder searchQueryBuilder = mock(SearchQueryBuilder.class);
+        SearchResult searchResult = mockSearchResult(entities);
+
+        given(searchQueryBuilder.setParameter(anyString(), any())).willReturn(searchQueryBuilder);
+        given(searchQueryBuilder.setParameterList(anyString(), anyCollection())).willReturn(searchQueryBuilder);
+        given(searchQueryBuilder.list()).willReturn(searchResult);
+
+        return searchQueryBuilder;
+    }
+
+    private SearchCriteriaBuilder mockSearchCriteriaBuilder(final List<Entity> entities) {
+        SearchCriteriaBuilder searchCriteriaBuilder = mock(SearchCriteriaBuilder.class);
+        SearchResult searchResult = mockSearchResult(entities);
+
+        given(searchCriteriaBuilder.add(any(SearchCriterion.class))).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.addOrder(any(SearchOrder.class))).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.list()).willReturn(searchResult);
+
+        return searchCriteriaBuilder;
+    }
+
+    private SearchResult mockSearchResult(final List<Entity> entities) {
+        SearchResult searchResult = mock(SearchResult.class);
+
+        given(searchResult.getEntities()).willReturn(entities);
+
+        return searchResult;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Entity createEntity() {
+        Map<String, Object> fields = Maps.newHashMap();
+        Entity entity = mock(Entity.class);
+
+        doAnswer(invocation -> fields.put((String) invocation.getArguments()[0], invocation.getArguments()[1])).when(entity)
+                .setField(anyString(), any());
+
+        given(entity.getField(anyString())).willAnswer(invocation -> fields.get(invocation.getArguments()[0]));
+        given(entity.getDecimalField(anyString())).willAnswer(
+                invocation -> (BigDecimal) fields.get(invocation.getArguments()[0]));
+        given(entity.getStringField(anyString())).willAnswer(invocation -> (String) fields.get(invocation.getArguments()[0]));
+        given(entity.getDateField(anyString())).willAnswer(invocation -> (Date) fields.get(invocation.getArguments()[0]));
+        given(entity.getBelongsToField(anyString())).willAnswer(
+                invocation -> (Entity) fields.get(invocation.getArguments()[0]));
+        given(entity.getHasManyField(anyString())).willAnswer(
+                invocation -> EntityListMock.create((List<Entity>) fields.get(invocation.getArguments()[0])));
+
+        return entity;
+    }
+
+}
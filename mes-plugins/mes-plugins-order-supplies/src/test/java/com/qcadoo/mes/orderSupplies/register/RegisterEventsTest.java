@@ -0,0 +1,117 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo Framework
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orderSupplies.register;
+
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.qcadoo.mes.basic.ParameterService;
+import com.qcadoo.mes.productionCounting.constants.OrderFieldsPC;
+import com.qcadoo.mes.productionCounting.constants.ParameterFieldsPC;
+import com.qcadoo.mes.productionCounting.constants.PriceBasedOn;
+import com.qcadoo.mes.productionCounting.constants.ProductionTrackingFields;
+import com.qcadoo.mes.productionCounting.constants.TypeOfProductionRecording;
+import com.qcadoo.model.api.Entity;
+
+public class RegisterEventsTest {
+
+    private static final Long L_PRODUCT_ID = 2L;
+
+    private RegisterEvents registerEvents;
+
+    @Mock
+    private RegisterService registerService;
+
+    @Mock
+    private ParameterService parameterService;
+
+    @Mock
+    private Entity parameter, order, toc, productionTracking;
+
+    private final Map<Long, BigDecimal> inputQuantities = Collections.singletonMap(L_PRODUCT_ID, BigDecimal.TEN);
+
+    private final Map<Long, BigDecimal> outputQuantities = Collections.singletonMap(L_PRODUCT_ID, BigDecimal.ONE);
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        registerEvents = new RegisterEvents();
+
+        ReflectionTestUtils.setField(registerEvents, "registerService", registerService);
+        ReflectionTestUtils.setField(registerEvents, "parameterService", parameterService);
+
+        given(productionTracking.getBelongsToField(ProductionTrackingFields.ORDER)).willReturn(order);
+        given(productionTracking.getBelongsToField(ProductionTrackingFields.TECHNOLOGY_OPERATION_COMPONENT)).willReturn(toc);
+        given(order.getStringField(OrderFieldsPC.TYPE_OF_PRODUCTION_RECORDING)).willReturn(
+                TypeOfProductionRecording.FOR_EACH.getStringValue());
+        given(parameterService.getParameter()).willReturn(parameter);
+        given(registerService.getTrackedQuantities(productionTracking, true, true, false)).willReturn(inputQuantities);
+        given(registerService.getTrackedQuantities(productionTracking, false, true, false)).willReturn(outputQuantities);
+    }
+
+    @Test
+    public void shouldUpdateInputAndOutputEntriesOfTheSameProductSeparately() {
+        // given
+        given(parameter.getStringField(ParameterFieldsPC.PRICE_BASED_ON)).willReturn(
+                PriceBasedOn.NOMINAL_PRODUCT_COST.getStringValue());
+
+        // when
+        registerEvents.onProductionTracking(productionTracking);
+
+        // then
+        verify(registerService).updateRegistryEntriesOnProductionTracking(order, toc, inputQuantities, true, false);
+        verify(registerService).updateRegistryEntriesOnProductionTracking(order, toc, outputQuantities, false, false);
+    }
+
+    @Test
+    public void shouldNotUpdateOutputEntriesWhenPriceIsBasedOnRealProductionCost() {
+        // given
+        given(parameter.getStringField(ParameterFieldsPC.PRICE_BASED_ON)).willReturn(
+                PriceBasedOn.REAL_PRODUCTION_COST.getStringValue());
+
+        // when
+        registerEvents.onProductionTracking(productionTracking);
+
+        // then
+        verify(registerService).updateRegistryEntriesOnProductionTracking(order, toc, inputQuantities, true, false);
+        verify(registerService, never()).updateRegistryEntriesOnProductionTracking(eq(order), eq(toc),
+                anyMapOf(Long.class, BigDecimal.class), eq(false), anyBoolean());
+    }
+
+}
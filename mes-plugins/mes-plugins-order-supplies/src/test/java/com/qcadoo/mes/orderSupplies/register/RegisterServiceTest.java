@@ -0,0 +1,187 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo Framework
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orderSupplies.register;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.sql.ResultSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.orderSupplies.constants.CoverageRegisterFields;
+import com.qcadoo.mes.productionCounting.constants.ProductionTrackingFields;
+import com.qcadoo.mes.productionCounting.constants.TrackingOperationProductInComponentFields;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.NumberService;
+import com.qcadoo.testing.model.EntityListMock;
+
+public class RegisterServiceTest {
+
+    private static final Long L_ORDER_ID = 1L;
+
+    private static final Long L_PRODUCT_ID = 2L;
+
+    private RegisterService registerService;
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private NumberService numberService;
+
+    @Mock
+    private Entity order, product, registryEntry, productionTracking, trackingProduct;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        registerService = new RegisterService();
+
+        ReflectionTestUtils.setField(registerService, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(registerService, "numberService", numberService);
+
+        given(numberService.getMathContext()).willReturn(MathContext.DECIMAL64);
+        given(order.getId()).willReturn(L_ORDER_ID);
+        given(product.getId()).willReturn(L_PRODUCT_ID);
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public final void shouldBindAllParametersWhenReplacingRegistryEntries() {
+        // given
+        given(registryEntry.getField(CoverageRegisterFields.PRODUCT)).willReturn(product);
+        given(registryEntry.getStringField(CoverageRegisterFields.EVENT_TYPE)).willReturn("04orderInput");
+        given(registryEntry.getDecimalField(CoverageRegisterFields.QUANTITY)).willReturn(BigDecimal.ONE);
+
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Map<String, ?>> queryParametersCaptor = ArgumentCaptor.forClass((Class) Map.class);
+        ArgumentCaptor<String> insertCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<SqlParameterSource[]> insertParametersCaptor = ArgumentCaptor.forClass(SqlParameterSource[].class);
+
+        // when
+        registerService.replaceRegistryEntriesForOrder(order, Lists.newArrayList(registryEntry));
+
+        // then
+        verify(jdbcTemplate).query(queryCaptor.capture(), queryParametersCaptor.capture(), any(RowCallbackHandler.class));
+        verify(jdbcTemplate).batchUpdate(insertCaptor.capture(), insertParametersCaptor.capture());
+
+        assertParametersBound(queryCaptor.getValue(), new MapSqlParameterSource(queryParametersCaptor.getValue()));
+
+        SqlParameterSource[] insertParameters = insertParametersCaptor.getValue();
+
+        assertEquals(1, insertParameters.length);
+        assertParametersBound(insertCaptor.getValue(), insertParameters[0]);
+    }
+
+    @Test
+    public final void shouldBindAllParametersWhenUpdatingExistingRegistryEntries() {
+        // given
+        given(registryEntry.getField(CoverageRegisterFields.PRODUCT)).willReturn(product);
+
+        ArgumentCaptor<String> updateCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<SqlParameterSource[]> updateParametersCaptor = ArgumentCaptor.forClass(SqlParameterSource[].class);
+
+        doAnswer(invocation -> {
+            RowCallbackHandler rowCallbackHandler = (RowCallbackHandler) invocation.getArguments()[2];
+            ResultSet resultSet = mock(ResultSet.class);
+
+            given(resultSet.getLong("product_id")).willReturn(L_PRODUCT_ID);
+            given(resultSet.getObject("technologyoperationcomponent_id")).willReturn(null);
+            given(resultSet.getString("eventtype")).willReturn(null);
+            given(resultSet.getLong("id")).willReturn(3L);
+
+            rowCallbackHandler.processRow(resultSet);
+
+            return null;
+        }).when(jdbcTemplate).query(anyString(), anyMapOf(String.class, Object.class), any(RowCallbackHandler.class));
+
+        // when
+        registerService.replaceRegistryEntriesForOrder(order, Lists.newArrayList(registryEntry));
+
+        // then
+        verify(jdbcTemplate).batchUpdate(updateCaptor.capture(), updateParametersCaptor.capture());
+
+        SqlParameterSource[] updateParameters = updateParametersCaptor.getValue();
+
+        assertEquals(1, updateParameters.length);
+        assertEquals(3L, updateParameters[0].getValue("id"));
+        assertParametersBound(updateCaptor.getValue(), updateParameters[0]);
+    }
+
+    @Test
+    public final void shouldBindAllParametersWhenReadingTrackedQuantities() {
+        // given
+        List<Entity> trackingProducts = Lists.newArrayList(trackingProduct);
+
+        given(productionTracking.getHasManyField(ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_IN_COMPONENTS))
+                .willReturn(EntityListMock.create(trackingProducts));
+        given(productionTracking.getBelongsToField(ProductionTrackingFields.ORDER)).willReturn(order);
+        given(trackingProduct.getDecimalField(TrackingOperationProductInComponentFields.USED_QUANTITY))
+                .willReturn(BigDecimal.TEN);
+        given(trackingProduct.getBelongsToField(TrackingOperationProductInComponentFields.PRODUCT)).willReturn(product);
+
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<SqlParameterSource> queryParametersCaptor = ArgumentCaptor.forClass(SqlParameterSource.class);
+
+        // when
+        Map<Long, BigDecimal> trackedQuantities = registerService.getTrackedQuantities(productionTracking, true, true, false);
+
+        // then
+        verify(jdbcTemplate, atLeastOnce()).query(queryCaptor.capture(), queryParametersCaptor.capture(),
+                any(RowCallbackHandler.class));
+
+        assertParametersBound(queryCaptor.getValue(), queryParametersCaptor.getValue());
+        assertEquals(Collections.singletonMap(L_PRODUCT_ID, BigDecimal.ZERO), trackedQuantities);
+    }
+
+    private void assertParametersBound(final String sql, final SqlParameterSource parameters) {
+        NamedParameterUtils.buildValueArray(NamedParameterUtils.parseSqlStatement(sql), parameters, null);
+    }
+
+}
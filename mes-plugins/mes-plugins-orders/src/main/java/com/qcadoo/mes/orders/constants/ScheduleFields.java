@@ -24,4 +24,10 @@ public final class ScheduleFields {
     public static final String ORDERS = "orders";
 
     public static final String STATE = "state";
+
+    public static final String WORKERS_ASSIGNMENT_IN_PROGRESS = "workersAssignmentInProgress";
+
+    public static final String WORKERS_ASSIGNMENT_PROGRESS = "workersAssignmentProgress";
+
+    public static final String WORKERS_ASSIGNMENT_NODE = "workersAssignmentNode";
 }
@@ -2,7 +2,10 @@ package com.qcadoo.mes.orders.hooks;
 
 import org.springframework.stereotype.Service;
 
+import com.qcadoo.mes.orders.constants.ScheduleFields;
 import com.qcadoo.mes.orders.criteriaModifiers.ScheduleOrderCriteriaModifier;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.view.api.ComponentState;
 import com.qcadoo.view.api.ViewDefinitionState;
 import com.qcadoo.view.api.components.FormComponent;
 import com.qcadoo.view.api.components.LookupComponent;
@@ -16,6 +19,18 @@ public class ScheduleDetailsHooks {
 
     public void onBeforeRender(final ViewDefinitionState view) {
         setOrderLookupCriteriaModifier(view);
+        showWorkersAssignmentProgress(view);
+    }
+
+    private void showWorkersAssignmentProgress(final ViewDefinitionState view) {
+        FormComponent scheduleForm = (FormComponent) view.getComponentByReference(QcadooViewConstants.L_FORM);
+
+        Entity schedule = scheduleForm.getEntity();
+
+        if (schedule.getBooleanField(ScheduleFields.WORKERS_ASSIGNMENT_IN_PROGRESS)) {
+            view.addMessage("orders.scheduleDetails.assignWorkersToOperations.inProgress", ComponentState.MessageType.INFO,
+                    false, String.valueOf(schedule.getIntegerField(ScheduleFields.WORKERS_ASSIGNMENT_PROGRESS)));
+        }
     }
 
     private void setOrderLookupCriteriaModifier(final ViewDefinitionState view) {
@@ -0,0 +1,434 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orders.schedule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.scheduling.annotation.Async;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.qcadoo.mes.basic.constants.BasicConstants;
+import com.qcadoo.mes.basic.shift.Shift;
+import com.qcadoo.mes.basic.util.ClaimQueue;
+import com.qcadoo.mes.orders.constants.OrdersConstants;
+import com.qcadoo.mes.orders.constants.ScheduleFields;
+import com.qcadoo.mes.orders.constants.ScheduleWorkerAssignCriterion;
+import com.qcadoo.mes.orders.states.constants.OperationalTaskStateStringValues;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.search.SearchRestrictions;
+
+@Service
+public class ScheduleWorkersAssignmentService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScheduleWorkersAssignmentService.class);
+
+    private static final int L_BATCH_SIZE = 1000;
+
+    private static final String L_SCHEDULE_ID = "scheduleId";
+
+    private static final String L_ID = "id";
+
+    private static final String L_IDS = "ids";
+
+    private static final String L_STAFF_ID = "staffId";
+
+    private static final String L_REJECTED = "rejected";
+
+    private static final String L_START_TIME = "startTime";
+
+    private static final String L_UPDATE_POSITION = "UPDATE orders_scheduleposition SET staff_id = :staffId WHERE id = :id";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DataDefinitionService dataDefinitionService;
+
+    /**
+     * Marks given schedule as having workers assignment in progress on this node. The flag is set by a conditional update, so of
+     * two concurrent requests only one starts the assignment.
+     *
+     * @return false if the assignment of this schedule is already in progress
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public boolean tryStartAssignment(final Long scheduleId) {
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put(L_ID, scheduleId);
+        parameters.put(ClaimQueue.NODE, ClaimQueue.NODE_NAME);
+
+        return jdbcTemplate.update("UPDATE orders_schedule SET workersassignmentinprogress = true, "
+                + "workersassignmentprogress = 0, workersassignmentnode = :node "
+                + "WHERE id = :id AND NOT COALESCE(workersassignmentinprogress, false)", parameters) > 0;
+    }
+
+    /**
+     * Locks given schedule until the end of current transaction, so no background assignment can start meanwhile.
+     *
+     * @return false if the assignment of this schedule is already in progress
+     */
+    @Transactional
+    public boolean lockForAssignment(final Long scheduleId) {
+        Boolean inProgress = jdbcTemplate.queryForObject(
+                "SELECT COALESCE(workersassignmentinprogress, false) FROM orders_schedule WHERE id = :id FOR UPDATE",
+                Collections.singletonMap(L_ID, scheduleId), Boolean.class);
+
+        return !inProgress;
+    }
+
+    /**
+     * Clears the in progress flag of assignments started on this node (or before the node was recorded), which were interrupted
+     * by a crash or restart. Assignments running on other nodes are left untouched.
+     */
+    @Transactional
+    public void recoverInterruptedAssignments() {
+        int recoveredSchedules = jdbcTemplate.update("UPDATE orders_schedule SET workersassignmentinprogress = false, "
+                + "workersassignmentnode = NULL WHERE workersassignmentinprogress "
+                + "AND (workersassignmentnode = :node OR workersassignmentnode IS NULL)",
+                Collections.singletonMap(ClaimQueue.NODE, ClaimQueue.NODE_NAME));
+
+        if (recoveredSchedules > 0) {
+            LOG.info(String.format("WORKERS ASSIGNMENT IN PROGRESS CLEARED FOR %d SCHEDULES", recoveredSchedules));
+        }
+    }
+
+    /**
+     * Assigns workers to operations of given schedule in background. The schedule should be marked as having assignment in
+     * progress before (see {@link #tryStartAssignment(Long)}), the mark is removed when assignment ends.
+     */
+    @Async
+    public void performAssignment(final Long scheduleId) {
+        LOG.info(String.format("Start assigning workers to operations. Schedule id : %d", scheduleId));
+
+        try {
+            Entity schedule = dataDefinitionService.get(OrdersConstants.PLUGIN_IDENTIFIER, OrdersConstants.MODEL_SCHEDULE).get(
+                    scheduleId);
+
+            assignWorkersToOperations(schedule, progress -> updateProgress(scheduleId, progress));
+        } catch (Exception ex) {
+            LOG.warn("An error occurred while assigning workers to operations", ex);
+        } finally {
+            afterAssignmentComplete(scheduleId);
+        }
+
+        LOG.info(String.format("Finish assigning workers to operations. Schedule id : %d", scheduleId));
+    }
+
+    public void assignWorkersToOperations(final Entity schedule) {
+        assignWorkersToOperations(schedule, progress -> {
+        });
+    }
+
+    @Transactional
+    public void assignWorkersToOperations(final Entity schedule, final IntConsumer progressListener) {
+        List<SchedulePosition> positions = getPositions(schedule);
+
+        if (positions.isEmpty()) {
+            return;
+        }
+
+        List<SqlParameterSource> parameters = Lists.newArrayList();
+
+        if (ScheduleWorkerAssignCriterion.WORKSTATION_DEFAULT_OPERATOR.getStringValue().equals(
+                schedule.getStringField(ScheduleFields.WORKER_ASSIGN_CRITERION))) {
+            for (SchedulePosition position : positions) {
+                parameters.add(new MapSqlParameterSource(L_ID, position.id).addValue(L_STAFF_ID, position.defaultStaffId));
+            }
+        } else {
+            assignWorkersToOperations(schedule, positions, parameters, progressListener);
+        }
+
+        for (List<SqlParameterSource> chunk : Lists.partition(parameters, L_BATCH_SIZE)) {
+            jdbcTemplate.batchUpdate(L_UPDATE_POSITION, chunk.toArray(new SqlParameterSource[chunk.size()]));
+        }
+    }
+
+    private void assignWorkersToOperations(final Entity schedule, final List<SchedulePosition> positions,
+            final List<SqlParameterSource> parameters, final IntConsumer progressListener) {
+        Date scheduleStartTime = schedule.getDateField(ScheduleFields.START_TIME);
+
+        Map<Long, List<Integer>> operationsWorkers = Maps.newHashMap();
+        Map<Long, Integer> workersIndexes = Maps.newLinkedHashMap();
+        List<Long> workersShiftsIds = Lists.newArrayList();
+
+        jdbcTemplate.query(getWorkersQuery(), Collections.singletonMap(L_SCHEDULE_ID, schedule.getId()),
+                (RowCallbackHandler) resultSet -> {
+                    Integer worker = workersIndexes.computeIfAbsent(resultSet.getLong(L_STAFF_ID), id -> {
+                        workersShiftsIds.add(null);
+
+                        return workersIndexes.size();
+                    });
+
+                    workersShiftsIds.set(worker, (Long) resultSet.getObject("shiftId"));
+                    operationsWorkers.computeIfAbsent(resultSet.getLong("operationId"), id -> Lists.newArrayList()).add(worker);
+                });
+
+        Map<Long, int[]> operationsWorkersIndexes = Maps.newHashMap();
+        Map<Long, Integer> workstationsIndexes = Maps.newHashMap();
+
+        int positionsCount = positions.size();
+
+        int[] positionsWorkstations = new int[positionsCount];
+        long[] startTimes = new long[positionsCount];
+        long[] endTimes = new long[positionsCount];
+        int[][] positionsWorkers = new int[positionsCount][];
+
+        for (int position = 0; position < positionsCount; position++) {
+            SchedulePosition schedulePosition = positions.get(position);
+
+            positionsWorkstations[position] = workstationsIndexes.computeIfAbsent(schedulePosition.workstationId,
+                    id -> workstationsIndexes.size());
+            startTimes[position] = schedulePosition.startTime.getTime();
+            endTimes[position] = schedulePosition.endTime.getTime();
+            positionsWorkers[position] = operationsWorkersIndexes.computeIfAbsent(schedulePosition.operationId,
+                    id -> Ints.toArray(operationsWorkers.getOrDefault(id, Collections.emptyList())));
+        }
+
+        long[] workersFinishTimes = new long[workersIndexes.size()];
+        int[] workstationsLastWorkers = new int[workstationsIndexes.size()];
+
+        Arrays.fill(workersFinishTimes, WorkersScheduler.NO_TIME);
+        Arrays.fill(workstationsLastWorkers, WorkersScheduler.NO_WORKER);
+
+        fillWorkstationsLastWorkers(schedule, workstationsIndexes, workersIndexes, workstationsLastWorkers);
+
+        WorkersScheduler workersScheduler = new WorkersScheduler(positionsWorkstations, startTimes, endTimes, positionsWorkers,
+                workersFinishTimes, workstationsLastWorkers);
+
+        fillWorkersTimelines(workersIndexes, scheduleStartTime, workersScheduler, workersFinishTimes);
+
+        workersScheduler.schedule(scheduleStartTime.getTime(),
+                ScheduleWorkerAssignCriterion.WORKSTATION_LAST_OPERATOR_LATEST_FINISHED.getStringValue().equals(
+                        schedule.getStringField(ScheduleFields.WORKER_ASSIGN_CRITERION)), new ShiftsCalendar(workersShiftsIds),
+                progressListener);
+
+        Long[] workersIds = workersIndexes.keySet().toArray(new Long[workersIndexes.size()]);
+
+        for (int position = 0; position < positionsCount; position++) {
+            Long staffId = workersScheduler.isAssigned(position) ? workersIds[workersScheduler.getAssignedWorker(position)] : null;
+
+            parameters.add(new MapSqlParameterSource(L_ID, positions.get(position).id).addValue(L_STAFF_ID, staffId));
+        }
+    }
+
+    private List<SchedulePosition> getPositions(final Entity schedule) {
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT sp.id, sp.workstation_id AS workstationId, w.staff_id AS defaultStaffId, ");
+        query.append("toc.operation_id AS operationId, sp.starttime AS startTime, sp.endtime AS endTime ");
+        query.append("FROM orders_scheduleposition sp JOIN technologies_technologyoperationcomponent toc ");
+        query.append("ON sp.technologyoperationcomponent_id = toc.id JOIN basic_workstation w ON w.id = sp.workstation_id ");
+        query.append("WHERE sp.schedule_id = :scheduleId AND sp.machineworktime <> 0 ");
+        query.append("AND sp.starttime IS NOT NULL AND sp.endtime IS NOT NULL ORDER BY sp.starttime, sp.id");
+
+        List<SchedulePosition> positions = Lists.newArrayList();
+
+        jdbcTemplate.query(query.toString(), Collections.singletonMap(L_SCHEDULE_ID, schedule.getId()),
+                (RowCallbackHandler) resultSet -> positions.add(new SchedulePosition(resultSet.getLong(L_ID), resultSet
+                        .getLong("workstationId"), (Long) resultSet.getObject("defaultStaffId"), resultSet.getLong("operationId"),
+                        resultSet.getTimestamp(L_START_TIME), resultSet.getTimestamp("endTime"))));
+
+        return positions;
+    }
+
+    private String getWorkersQuery() {
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT o.id AS operationId, s.id AS staffId, s.shift_id AS shiftId ");
+        query.append("FROM technologies_operation o CROSS JOIN basic_staff s ");
+        query.append("WHERE o.id IN (SELECT toc.operation_id FROM orders_scheduleposition sp ");
+        query.append("JOIN technologies_technologyoperationcomponent toc ON sp.technologyoperationcomponent_id = toc.id ");
+        query.append("WHERE sp.schedule_id = :scheduleId) ");
+        query.append("AND NOT EXISTS (SELECT os.id FROM technologies_operationskill os WHERE os.operation_id = o.id ");
+        query.append("AND NOT EXISTS (SELECT ss.id FROM basic_staffskill ss WHERE ss.staff_id = s.id ");
+        query.append("AND ss.skill_id = os.skill_id AND ss.level >= os.requiredlevel)) ");
+        query.append("ORDER BY o.id, s.id");
+
+        return query.toString();
+    }
+
+    private void fillWorkstationsLastWorkers(final Entity schedule, final Map<Long, Integer> workstationsIndexes,
+            final Map<Long, Integer> workersIndexes, final int[] workstationsLastWorkers) {
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT DISTINCT ON (ot.workstation_id) ot.workstation_id AS workstationId, ot.staff_id AS staffId ");
+        query.append("FROM orders_operationaltask ot WHERE ot.workstation_id IN ");
+        query.append("(SELECT workstation_id FROM orders_scheduleposition WHERE schedule_id = :scheduleId) ");
+        query.append("AND ot.staff_id IS NOT NULL AND ot.state <> :rejected ");
+        query.append("ORDER BY ot.workstation_id, ot.finishdate DESC");
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue(L_SCHEDULE_ID, schedule.getId());
+        parameters.addValue(L_REJECTED, OperationalTaskStateStringValues.REJECTED);
+
+        jdbcTemplate.query(query.toString(), parameters, (RowCallbackHandler) resultSet -> {
+            Integer workstation = workstationsIndexes.get(resultSet.getLong("workstationId"));
+
+            if (Objects.nonNull(workstation)) {
+                workstationsLastWorkers[workstation] = workersIndexes.getOrDefault(resultSet.getLong(L_STAFF_ID),
+                        WorkersScheduler.NO_WORKER);
+            }
+        });
+    }
+
+    private void fillWorkersTimelines(final Map<Long, Integer> workersIndexes, final Date scheduleStartTime,
+            final WorkersScheduler workersScheduler, final long[] workersFinishTimes) {
+        if (workersIndexes.isEmpty()) {
+            return;
+        }
+
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT ot.staff_id AS staffId, ot.startdate AS startDate, ot.finishdate AS finishDate ");
+        query.append("FROM orders_operationaltask ot WHERE ot.staff_id IN (:ids) AND ot.state <> :rejected ");
+        query.append("AND ot.finishdate > :startTime ");
+        query.append("UNION ALL ");
+        query.append("SELECT ot.staff_id AS staffId, NULL AS startDate, MAX(ot.finishdate) AS finishDate ");
+        query.append("FROM orders_operationaltask ot WHERE ot.staff_id IN (:ids) AND ot.state <> :rejected ");
+        query.append("AND ot.finishdate <= :startTime GROUP BY ot.staff_id");
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue(L_IDS, workersIndexes.keySet());
+        parameters.addValue(L_REJECTED, OperationalTaskStateStringValues.REJECTED);
+        parameters.addValue(L_START_TIME, scheduleStartTime);
+
+        jdbcTemplate.query(query.toString(), parameters, (RowCallbackHandler) resultSet -> {
+            int worker = workersIndexes.get(resultSet.getLong(L_STAFF_ID));
+            Date startDate = resultSet.getTimestamp("startDate");
+            Date finishDate = resultSet.getTimestamp("finishDate");
+
+            if (Objects.isNull(startDate)) {
+                workersFinishTimes[worker] = finishDate.getTime();
+            } else {
+                workersScheduler.addBusyInterval(worker, startDate.getTime(), finishDate.getTime());
+            }
+        });
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void updateProgress(final Long scheduleId, final int progress) {
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put(L_ID, scheduleId);
+        parameters.put("progress", progress);
+
+        jdbcTemplate.update("UPDATE orders_schedule SET workersassignmentprogress = :progress WHERE id = :id", parameters);
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void afterAssignmentComplete(final Long scheduleId) {
+        jdbcTemplate.update("UPDATE orders_schedule SET workersassignmentinprogress = false, workersassignmentnode = NULL "
+                + "WHERE id = :id", Collections.singletonMap(L_ID, scheduleId));
+    }
+
+    private static final class SchedulePosition {
+
+        private final Long id;
+
+        private final Long workstationId;
+
+        private final Long defaultStaffId;
+
+        private final Long operationId;
+
+        private final Date startTime;
+
+        private final Date endTime;
+
+        private SchedulePosition(final Long id, final Long workstationId, final Long defaultStaffId, final Long operationId,
+                final Date startTime, final Date endTime) {
+            this.id = id;
+            this.workstationId = workstationId;
+            this.defaultStaffId = defaultStaffId;
+            this.operationId = operationId;
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+    }
+
+    /**
+     * Working time calendar of workers backed by their shifts. Workers without shift can work at any time. Results are remembered
+     * for the duration of one assignment, as workers of the same shift are checked for many positions.
+     */
+    private final class ShiftsCalendar implements WorkersScheduler.WorkersCalendar {
+
+        private final List<Long> workersShiftsIds;
+
+        private final Map<Long, Shift> shifts = Maps.newHashMap();
+
+        private final Map<Long, Map<Long, Boolean>> worksAt = Maps.newHashMap();
+
+        private ShiftsCalendar(final List<Long> workersShiftsIds) {
+            this.workersShiftsIds = workersShiftsIds;
+
+            List<Long> shiftsIds = Lists.newArrayList(workersShiftsIds.stream().filter(Objects::nonNull)
+                    .collect(Collectors.toSet()));
+
+            if (!shiftsIds.isEmpty()) {
+                for (Entity shift : dataDefinitionService.get(BasicConstants.PLUGIN_IDENTIFIER, BasicConstants.MODEL_SHIFT).find()
+                        .add(SearchRestrictions.in(L_ID, shiftsIds)).list().getEntities()) {
+                    shifts.put(shift.getId(), new Shift(shift));
+                }
+            }
+        }
+
+        @Override
+        public boolean worksAt(final int worker, final long time) {
+            Long shiftId = workersShiftsIds.get(worker);
+
+            if (Objects.isNull(shiftId) || !shifts.containsKey(shiftId)) {
+                return true;
+            }
+
+            return worksAt.computeIfAbsent(shiftId, id -> Maps.newHashMap()).computeIfAbsent(time,
+                    key -> shifts.get(shiftId).worksAt(new DateTime(time)));
+        }
+
+    }
+
+}
@@ -0,0 +1,338 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orders.schedule;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.qcadoo.mes.basic.ShiftsService;
+import com.qcadoo.mes.orders.constants.ScheduleFields;
+import com.qcadoo.mes.orders.constants.ScheduleSortOrder;
+import com.qcadoo.mes.orders.constants.ScheduleWorkstationAssignCriterion;
+import com.qcadoo.mes.orders.states.constants.OperationalTaskStateStringValues;
+import com.qcadoo.mes.productionLines.constants.ProductionLinesConstants;
+import com.qcadoo.mes.technologies.constants.AssignedToOperation;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+
+@Service
+public class ScheduleWorkstationsAssignmentService {
+
+    private static final int L_BATCH_SIZE = 1000;
+
+    private static final String L_SCHEDULE_ID = "scheduleId";
+
+    private static final String L_ID = "id";
+
+    private static final String L_UPDATE_POSITION = "UPDATE orders_scheduleposition SET workstation_id = :workstationId, "
+            + "starttime = :startTime, endtime = :endTime, staff_id = NULL WHERE id = :id";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DataDefinitionService dataDefinitionService;
+
+    @Autowired
+    private ShiftsService shiftsService;
+
+    public void assignOperationsToWorkstations(final Entity schedule) {
+        Date scheduleStartTime = schedule.getDateField(ScheduleFields.START_TIME);
+
+        List<SchedulePosition> positions = getPositions(schedule);
+
+        if (positions.isEmpty()) {
+            return;
+        }
+
+        Map<Long, Integer> ordersIndexes = Maps.newHashMap();
+        Map<Long, List<Integer>> tocsWorkstations = Maps.newHashMap();
+        Map<Long, Integer> workstationsIndexes = Maps.newLinkedHashMap();
+
+        jdbcTemplate.query(getWorkstationsQuery(), getScheduleParameters(schedule), (RowCallbackHandler) resultSet -> {
+            Long workstationId = resultSet.getLong("workstationId");
+            Integer workstation = workstationsIndexes.computeIfAbsent(workstationId, id -> workstationsIndexes.size());
+
+            tocsWorkstations.computeIfAbsent(resultSet.getLong("tocId"), tocId -> Lists.newArrayList()).add(workstation);
+        });
+
+        int positionsCount = positions.size();
+
+        int[] positionsOrders = new int[positionsCount];
+        int[] machineWorkTimes = new int[positionsCount];
+        int[] additionalTimes = new int[positionsCount];
+        long[] endTimes = new long[positionsCount];
+        int[][] positionsChildren = new int[positionsCount][];
+        int[][] positionsWorkstations = new int[positionsCount][];
+
+        Map<String, List<Integer>> parentsChildren = Maps.newHashMap();
+
+        for (int position = 0; position < positionsCount; position++) {
+            SchedulePosition schedulePosition = positions.get(position);
+
+            positionsOrders[position] = ordersIndexes.computeIfAbsent(schedulePosition.orderId, id -> ordersIndexes.size());
+            machineWorkTimes[position] = schedulePosition.machineWorkTime;
+            additionalTimes[position] = schedulePosition.additionalTime;
+            endTimes[position] = Objects.isNull(schedulePosition.endTime) ? WorkstationsScheduler.NO_TIME
+                    : schedulePosition.endTime.getTime();
+            positionsWorkstations[position] = Ints.toArray(tocsWorkstations.getOrDefault(schedulePosition.tocId,
+                    Collections.emptyList()));
+
+            if (Objects.nonNull(schedulePosition.parentTocId)) {
+                parentsChildren.computeIfAbsent(getOrderTocKey(schedulePosition.orderId, schedulePosition.parentTocId),
+                        key -> Lists.newArrayList()).add(position);
+            }
+        }
+
+        for (int position = 0; position < positionsCount; position++) {
+            SchedulePosition schedulePosition = positions.get(position);
+
+            positionsChildren[position] = Ints.toArray(parentsChildren.getOrDefault(
+                    getOrderTocKey(schedulePosition.orderId, schedulePosition.tocId), Collections.emptyList()));
+        }
+
+        Long[] workstationsIds = workstationsIndexes.keySet().toArray(new Long[workstationsIndexes.size()]);
+        long[] workstationsFinishTimes = new long[workstationsIds.length];
+        Long[] workstationsProductionLinesIds = new Long[workstationsIds.length];
+
+        fillWorkstations(workstationsIndexes, scheduleStartTime, workstationsFinishTimes, workstationsProductionLinesIds);
+
+        WorkstationsScheduler workstationsScheduler = new WorkstationsScheduler(positionsOrders, machineWorkTimes,
+                additionalTimes, endTimes, positionsChildren, positionsWorkstations, workstationsFinishTimes);
+
+        workstationsScheduler.schedule(scheduleStartTime.getTime(), ScheduleWorkstationAssignCriterion.SHORTEST_TIME
+                .getStringValue().equals(schedule.getStringField(ScheduleFields.WORKSTATION_ASSIGN_CRITERION)),
+                new ProductionLinesCalendar(workstationsProductionLinesIds));
+
+        List<SqlParameterSource> parameters = Lists.newArrayList();
+
+        for (int position = 0; position < positionsCount; position++) {
+            if (workstationsScheduler.isAssigned(position)) {
+                MapSqlParameterSource positionParameters = new MapSqlParameterSource();
+
+                positionParameters.addValue(L_ID, positions.get(position).id);
+                positionParameters.addValue("workstationId",
+                        workstationsIds[workstationsScheduler.getAssignedWorkstation(position)]);
+                positionParameters.addValue("startTime", new Date(workstationsScheduler.getStartTime(position)));
+                positionParameters.addValue("endTime", new Date(workstationsScheduler.getEndTime(position)));
+
+                parameters.add(positionParameters);
+            }
+        }
+
+        for (List<SqlParameterSource> chunk : Lists.partition(parameters, L_BATCH_SIZE)) {
+            jdbcTemplate.batchUpdate(L_UPDATE_POSITION, chunk.toArray(new SqlParameterSource[chunk.size()]));
+        }
+    }
+
+    private List<SchedulePosition> getPositions(final Entity schedule) {
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT sp.id, sp.order_id AS orderId, sp.technologyoperationcomponent_id AS tocId, ");
+        query.append("toc.parent_id AS parentTocId, sp.machineworktime AS machineWorkTime, ");
+        query.append("sp.additionaltime AS additionalTime, sp.endtime AS endTime ");
+        query.append("FROM orders_scheduleposition sp JOIN technologies_technologyoperationcomponent toc ");
+        query.append("ON sp.technologyoperationcomponent_id = toc.id WHERE sp.schedule_id = :scheduleId ORDER BY ");
+        query.append("string_to_array(regexp_replace(rtrim(toc.nodenumber, '.'), '[^0-9.]', '0', 'g'), '.')::int[] desc, ");
+
+        if (ScheduleSortOrder.DESCENDING.getStringValue().equals(schedule.getStringField(ScheduleFields.SORT_ORDER))) {
+            query.append("sp.machineworktime desc");
+        } else {
+            query.append("sp.machineworktime asc");
+        }
+
+        List<SchedulePosition> positions = Lists.newArrayList();
+
+        jdbcTemplate.query(query.toString(), getScheduleParameters(schedule),
+                (RowCallbackHandler) resultSet -> positions.add(new SchedulePosition(resultSet.getLong(L_ID), resultSet
+                        .getLong("orderId"), resultSet.getLong("tocId"), (Long) resultSet.getObject("parentTocId"), resultSet
+                        .getInt("machineWorkTime"), resultSet.getInt("additionalTime"), resultSet.getTimestamp("endTime"))));
+
+        return positions;
+    }
+
+    private String getWorkstationsQuery() {
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT toc.id AS tocId, jtw.workstation_id AS workstationId ");
+        query.append("FROM technologies_technologyoperationcomponent toc ");
+        query.append("JOIN jointable_technologyoperationcomponent_workstation jtw ON jtw.technologyoperationcomponent_id = toc.id ");
+        query.append("WHERE toc.assignedtooperation = :assignedToWorkstations AND toc.id IN ");
+        query.append("(SELECT technologyoperationcomponent_id FROM orders_scheduleposition WHERE schedule_id = :scheduleId) ");
+        query.append("UNION ALL ");
+        query.append("SELECT toc.id AS tocId, w.id AS workstationId ");
+        query.append("FROM technologies_technologyoperationcomponent toc ");
+        query.append("JOIN basic_workstation w ON w.workstationtype_id = toc.workstationtype_id ");
+        query.append("WHERE toc.assignedtooperation <> :assignedToWorkstations AND toc.id IN ");
+        query.append("(SELECT technologyoperationcomponent_id FROM orders_scheduleposition WHERE schedule_id = :scheduleId) ");
+        query.append("ORDER BY 1, 2");
+
+        return query.toString();
+    }
+
+    private void fillWorkstations(final Map<Long, Integer> workstationsIndexes, final Date scheduleStartTime,
+            final long[] workstationsFinishTimes, final Long[] workstationsProductionLinesIds) {
+        if (workstationsIndexes.isEmpty()) {
+            return;
+        }
+
+        StringBuilder query = new StringBuilder();
+
+        query.append("SELECT w.id, w.productionline_id AS productionLineId, ");
+        query.append("(SELECT MAX(ot.finishdate) FROM orders_operationaltask ot WHERE ot.workstation_id = w.id ");
+        query.append("AND ot.state <> :rejected AND ot.finishdate > :startTime) AS finishDate ");
+        query.append("FROM basic_workstation w WHERE w.id IN (:ids)");
+
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue("ids", workstationsIndexes.keySet());
+        parameters.addValue("rejected", OperationalTaskStateStringValues.REJECTED);
+        parameters.addValue("startTime", scheduleStartTime);
+
+        jdbcTemplate.query(query.toString(), parameters, (RowCallbackHandler) resultSet -> {
+            int workstation = workstationsIndexes.get(resultSet.getLong(L_ID));
+            Date finishDate = resultSet.getTimestamp("finishDate");
+
+            workstationsFinishTimes[workstation] = Objects.isNull(finishDate) ? WorkstationsScheduler.NO_TIME : finishDate
+                    .getTime();
+            workstationsProductionLinesIds[workstation] = (Long) resultSet.getObject("productionLineId");
+        });
+    }
+
+    private MapSqlParameterSource getScheduleParameters(final Entity schedule) {
+        MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        parameters.addValue(L_SCHEDULE_ID, schedule.getId());
+        parameters.addValue("assignedToWorkstations", AssignedToOperation.WORKSTATIONS.getStringValue());
+
+        return parameters;
+    }
+
+    private String getOrderTocKey(final Long orderId, final Long tocId) {
+        return orderId + "_" + tocId;
+    }
+
+    private static final class SchedulePosition {
+
+        private final Long id;
+
+        private final Long orderId;
+
+        private final Long tocId;
+
+        private final Long parentTocId;
+
+        private final int machineWorkTime;
+
+        private final int additionalTime;
+
+        private final Date endTime;
+
+        private SchedulePosition(final Long id, final Long orderId, final Long tocId, final Long parentTocId,
+                final int machineWorkTime, final int additionalTime, final Date endTime) {
+            this.id = id;
+            this.orderId = orderId;
+            this.tocId = tocId;
+            this.parentTocId = parentTocId;
+            this.machineWorkTime = machineWorkTime;
+            this.additionalTime = additionalTime;
+            this.endTime = endTime;
+        }
+
+    }
+
+    /**
+     * Working time calendar of workstations backed by shifts of their production lines. Results are remembered for the
+     * duration of one assignment, as the same workstation finish times are checked for many positions.
+     */
+    private final class ProductionLinesCalendar implements WorkstationsScheduler.WorkstationsCalendar {
+
+        private final Long[] workstationsProductionLinesIds;
+
+        private final Map<Long, Entity> productionLines = Maps.newHashMap();
+
+        private final Map<Long, Map<Long, Long>> nearestWorkingTimes = Maps.newHashMap();
+
+        private final Map<Long, Map<String, Long>> finishTimes = Maps.newHashMap();
+
+        private ProductionLinesCalendar(final Long[] workstationsProductionLinesIds) {
+            this.workstationsProductionLinesIds = workstationsProductionLinesIds;
+        }
+
+        @Override
+        public long getNearestWorkingTime(final int workstation, final long time) {
+            Long productionLineId = getProductionLineId(workstation);
+
+            return nearestWorkingTimes.computeIfAbsent(productionLineId, id -> Maps.newHashMap()).computeIfAbsent(
+                    time,
+                    key -> {
+                        DateTime dateTime = new DateTime(time);
+
+                        return shiftsService.getNearestWorkingDate(dateTime, getProductionLine(productionLineId))
+                                .orElse(dateTime).getMillis();
+                    });
+        }
+
+        @Override
+        public long getFinishTime(final int workstation, final long startTime, final int seconds) {
+            Long productionLineId = getProductionLineId(workstation);
+
+            return finishTimes.computeIfAbsent(productionLineId, id -> Maps.newHashMap()).computeIfAbsent(
+                    startTime + "_" + seconds,
+                    key -> shiftsService.findDateToForProductionLine(new Date(startTime), seconds,
+                            getProductionLine(productionLineId)).getTime());
+        }
+
+        private Long getProductionLineId(final int workstation) {
+            return Objects.isNull(workstationsProductionLinesIds[workstation]) ? 0L : workstationsProductionLinesIds[workstation];
+        }
+
+        private Entity getProductionLine(final Long productionLineId) {
+            if (productionLineId == 0L) {
+                return null;
+            }
+
+            return productionLines.computeIfAbsent(
+                    productionLineId,
+                    id -> dataDefinitionService.get(ProductionLinesConstants.PLUGIN_IDENTIFIER,
+                            ProductionLinesConstants.MODEL_PRODUCTION_LINE).get(id));
+        }
+
+    }
+
+}
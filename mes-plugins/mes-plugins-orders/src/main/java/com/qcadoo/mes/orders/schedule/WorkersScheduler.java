@@ -0,0 +1,227 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orders.schedule;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Assigns workers to schedule positions in memory.
+ * 
+ * Every worker has an occupancy timeline - disjoint intervals in which he is busy (existing operational tasks and already assigned
+ * positions), kept in a tree by their start, so checking if a worker is free during a position is a single lookup. Positions are
+ * given in the order of their start time, together with their workstations and candidate workers. Positions, workstations and
+ * workers are identified by their indexes in given arrays.
+ */
+public final class WorkersScheduler {
+
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    public static final int NO_WORKER = -1;
+
+    private static final int L_PERCENT = 100;
+
+    public interface WorkersCalendar {
+
+        boolean worksAt(final int worker, final long time);
+
+    }
+
+    private final int[] positionsWorkstations;
+
+    private final long[] startTimes;
+
+    private final long[] endTimes;
+
+    private final int[][] positionsWorkers;
+
+    private final long[] workersFinishTimes;
+
+    private final int[] workstationsLastWorkers;
+
+    private final List<NavigableMap<Long, Long>> workersTimelines;
+
+    private final int[] assignedWorkers;
+
+    /**
+     * @param positionsWorkstations
+     *            workstation index of each position
+     * @param startTimes
+     *            start time of each position
+     * @param endTimes
+     *            end time of each position
+     * @param positionsWorkers
+     *            indexes of candidate workers of each position
+     * @param workersFinishTimes
+     *            finish time of the last task of each worker, which ended before his timeline starts, or {@link #NO_TIME}
+     * @param workstationsLastWorkers
+     *            index of the worker who was the last to work on each workstation or {@link #NO_WORKER}
+     */
+    public WorkersScheduler(final int[] positionsWorkstations, final long[] startTimes, final long[] endTimes,
+            final int[][] positionsWorkers, final long[] workersFinishTimes, final int[] workstationsLastWorkers) {
+        this.positionsWorkstations = positionsWorkstations;
+        this.startTimes = startTimes;
+        this.endTimes = endTimes;
+        this.positionsWorkers = positionsWorkers;
+        this.workersFinishTimes = workersFinishTimes;
+        this.workstationsLastWorkers = Arrays.copyOf(workstationsLastWorkers, workstationsLastWorkers.length);
+        this.workersTimelines = Lists.newArrayListWithCapacity(workersFinishTimes.length);
+        this.assignedWorkers = new int[positionsWorkstations.length];
+
+        for (int worker = 0; worker < workersFinishTimes.length; worker++) {
+            workersTimelines.add(new TreeMap<>());
+        }
+
+        Arrays.fill(assignedWorkers, NO_WORKER);
+    }
+
+    /**
+     * Marks worker as busy from given time (inclusive) to given time (exclusive), merging the interval with the overlapping ones.
+     */
+    public void addBusyInterval(final int worker, final long from, final long to) {
+        NavigableMap<Long, Long> timeline = workersTimelines.get(worker);
+
+        long intervalFrom = from;
+        long intervalTo = to;
+
+        Map.Entry<Long, Long> previous = timeline.floorEntry(intervalFrom);
+
+        if ((previous != null) && (previous.getValue() >= intervalFrom)) {
+            intervalFrom = previous.getKey();
+            intervalTo = Math.max(intervalTo, previous.getValue());
+
+            timeline.remove(previous.getKey());
+        }
+
+        Map.Entry<Long, Long> next = timeline.ceilingEntry(intervalFrom);
+
+        while ((next != null) && (next.getKey() <= intervalTo)) {
+            intervalTo = Math.max(intervalTo, next.getValue());
+
+            timeline.remove(next.getKey());
+
+            next = timeline.ceilingEntry(intervalFrom);
+        }
+
+        timeline.put(intervalFrom, intervalTo);
+    }
+
+    /**
+     * Assigns workers to positions. A worker can be assigned if he is free during the whole position and works at its start. The
+     * last worker of the position workstation is preferred, otherwise the worker whose previous task finished at the latest (or
+     * at the earliest) is selected.
+     * 
+     * @param scheduleStartTime
+     *            finish time of workers without any tasks
+     * @param latestFinished
+     *            if true, the worker who finished previous task at the latest is selected, otherwise the one who finished at
+     *            the earliest
+     * @param calendar
+     *            working time calendar of workers
+     * @param progressListener
+     *            notified with the percent of scheduled positions, each time it changes
+     */
+    public void schedule(final long scheduleStartTime, final boolean latestFinished, final WorkersCalendar calendar,
+            final IntConsumer progressListener) {
+        int positionsCount = positionsWorkstations.length;
+        int lastProgress = 0;
+
+        for (int position = 0; position < positionsCount; position++) {
+            int workstation = positionsWorkstations[position];
+            long startTime = startTimes[position];
+            long endTime = endTimes[position];
+
+            int selectedWorker = NO_WORKER;
+            long selectedFinishTime = NO_TIME;
+
+            for (int worker : positionsWorkers[position]) {
+                if (!isFree(worker, startTime, endTime) || !calendar.worksAt(worker, startTime)) {
+                    continue;
+                }
+
+                if (worker == workstationsLastWorkers[workstation]) {
+                    selectedWorker = worker;
+
+                    break;
+                }
+
+                long finishTime = getFinishTime(worker, startTime, scheduleStartTime);
+
+                if ((selectedWorker == NO_WORKER)
+                        || (latestFinished ? (finishTime > selectedFinishTime) : (finishTime < selectedFinishTime))) {
+                    selectedWorker = worker;
+                    selectedFinishTime = finishTime;
+                }
+            }
+
+            if (selectedWorker != NO_WORKER) {
+                addBusyInterval(selectedWorker, startTime, endTime);
+
+                workstationsLastWorkers[workstation] = selectedWorker;
+                assignedWorkers[position] = selectedWorker;
+            }
+
+            int progress = (int) ((position + 1L) * L_PERCENT / positionsCount);
+
+            if (progress != lastProgress) {
+                progressListener.accept(progress);
+
+                lastProgress = progress;
+            }
+        }
+    }
+
+    private boolean isFree(final int worker, final long startTime, final long endTime) {
+        Map.Entry<Long, Long> interval = workersTimelines.get(worker).lowerEntry(endTime);
+
+        return (interval == null) || (interval.getValue() <= startTime);
+    }
+
+    private long getFinishTime(final int worker, final long startTime, final long scheduleStartTime) {
+        Map.Entry<Long, Long> interval = workersTimelines.get(worker).floorEntry(startTime);
+
+        if (interval != null) {
+            return interval.getValue();
+        } else if (workersFinishTimes[worker] != NO_TIME) {
+            return workersFinishTimes[worker];
+        } else {
+            return scheduleStartTime;
+        }
+    }
+
+    public boolean isAssigned(final int position) {
+        return assignedWorkers[position] != NO_WORKER;
+    }
+
+    public int getAssignedWorker(final int position) {
+        return assignedWorkers[position];
+    }
+
+}
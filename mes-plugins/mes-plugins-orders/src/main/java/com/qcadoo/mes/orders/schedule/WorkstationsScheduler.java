@@ -0,0 +1,203 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orders.schedule;
+
+import java.util.Arrays;
+
+/**
+ * Assigns schedule positions to workstations in memory.
+ * 
+ * Positions are given in the order in which they should be scheduled, together with their children (positions of the same order
+ * which have to be finished before given position starts) and candidate workstations. Every position gets the workstation
+ * selected by the schedule criterion, with start time after the time the workstation is busy to and after its children end (plus
+ * their additional time). Positions, orders and workstations are identified by their indexes in given arrays.
+ */
+public final class WorkstationsScheduler {
+
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    public static final int NO_WORKSTATION = -1;
+
+    private static final long MILLIS = 1000L;
+
+    public interface WorkstationsCalendar {
+
+        long getNearestWorkingTime(final int workstation, final long time);
+
+        long getFinishTime(final int workstation, final long startTime, final int seconds);
+
+    }
+
+    private final int[] positionsOrders;
+
+    private final int[] machineWorkTimes;
+
+    private final int[] additionalTimes;
+
+    private final int[][] positionsChildren;
+
+    private final int[][] positionsWorkstations;
+
+    private final long[] workstationsFinishTimes;
+
+    private final int[] assignedWorkstations;
+
+    private final long[] startTimes;
+
+    private final long[] endTimes;
+
+    /**
+     * @param positionsOrders
+     *            order index of each position
+     * @param machineWorkTimes
+     *            machine work time of each position (in seconds)
+     * @param additionalTimes
+     *            additional time of each position (in seconds), counted after its end when it is a child of other position
+     * @param endTimes
+     *            current end time of each position or {@link #NO_TIME}
+     * @param positionsChildren
+     *            indexes of children of each position
+     * @param positionsWorkstations
+     *            indexes of candidate workstations of each position, in the order in which they are preferred
+     * @param workstationsFinishTimes
+     *            time to which each workstation is already busy or {@link #NO_TIME}
+     */
+    public WorkstationsScheduler(final int[] positionsOrders, final int[] machineWorkTimes, final int[] additionalTimes,
+            final long[] endTimes, final int[][] positionsChildren, final int[][] positionsWorkstations,
+            final long[] workstationsFinishTimes) {
+        this.positionsOrders = positionsOrders;
+        this.machineWorkTimes = machineWorkTimes;
+        this.additionalTimes = additionalTimes;
+        this.positionsChildren = positionsChildren;
+        this.positionsWorkstations = positionsWorkstations;
+        this.workstationsFinishTimes = Arrays.copyOf(workstationsFinishTimes, workstationsFinishTimes.length);
+        this.assignedWorkstations = new int[positionsOrders.length];
+        this.startTimes = new long[positionsOrders.length];
+        this.endTimes = Arrays.copyOf(endTimes, endTimes.length);
+
+        Arrays.fill(assignedWorkstations, NO_WORKSTATION);
+        Arrays.fill(startTimes, NO_TIME);
+    }
+
+    /**
+     * Assigns positions to workstations. Once a position of an order has no candidate workstations or no machine work time, the
+     * following positions of this order are skipped.
+     * 
+     * @param scheduleStartTime
+     *            time from which free workstations can be used
+     * @param shortestTime
+     *            if true, the workstation on which position ends first is selected, otherwise the first candidate workstation
+     *            which is already busy (or just the first one)
+     * @param calendar
+     *            working time calendar of workstations
+     */
+    public void schedule(final long scheduleStartTime, final boolean shortestTime, final WorkstationsCalendar calendar) {
+        int ordersCount = 0;
+
+        for (int order : positionsOrders) {
+            ordersCount = Math.max(ordersCount, order + 1);
+        }
+
+        boolean[] ordersToAvoid = new boolean[ordersCount];
+
+        for (int position = 0; position < positionsOrders.length; position++) {
+            int order = positionsOrders[position];
+
+            if (ordersToAvoid[order]) {
+                continue;
+            }
+
+            int[] workstations = positionsWorkstations[position];
+
+            if ((workstations.length == 0) || (machineWorkTimes[position] == 0)) {
+                ordersToAvoid[order] = true;
+
+                continue;
+            }
+
+            long childrenEndTime = getChildrenEndTime(position);
+
+            int selectedWorkstation = NO_WORKSTATION;
+            long selectedStartTime = NO_TIME;
+            long selectedFinishTime = NO_TIME;
+
+            for (int workstation : workstations) {
+                boolean busy = workstationsFinishTimes[workstation] != NO_TIME;
+                long finishTime = Math.max(busy ? workstationsFinishTimes[workstation] : scheduleStartTime, childrenEndTime);
+
+                long startTime = calendar.getNearestWorkingTime(workstation, finishTime);
+                long newFinishTime = calendar.getFinishTime(workstation, startTime, machineWorkTimes[position]);
+
+                boolean select;
+
+                if (shortestTime) {
+                    select = (selectedWorkstation == NO_WORKSTATION) || (newFinishTime < selectedFinishTime);
+                } else {
+                    select = (selectedWorkstation == NO_WORKSTATION)
+                            || (busy && (workstationsFinishTimes[selectedWorkstation] == NO_TIME));
+                }
+
+                if (select) {
+                    selectedWorkstation = workstation;
+                    selectedStartTime = startTime;
+                    selectedFinishTime = newFinishTime;
+                }
+            }
+
+            workstationsFinishTimes[selectedWorkstation] = selectedFinishTime;
+            assignedWorkstations[position] = selectedWorkstation;
+            startTimes[position] = selectedStartTime;
+            endTimes[position] = selectedFinishTime;
+        }
+    }
+
+    private long getChildrenEndTime(final int position) {
+        long childrenEndTime = NO_TIME;
+
+        for (int child : positionsChildren[position]) {
+            if (endTimes[child] != NO_TIME) {
+                childrenEndTime = Math.max(childrenEndTime, endTimes[child] + additionalTimes[child] * MILLIS);
+            }
+        }
+
+        return childrenEndTime;
+    }
+
+    public boolean isAssigned(final int position) {
+        return assignedWorkstations[position] != NO_WORKSTATION;
+    }
+
+    public int getAssignedWorkstation(final int position) {
+        return assignedWorkstations[position];
+    }
+
+    public long getStartTime(final int position) {
+        return startTimes[position];
+    }
+
+    public long getEndTime(final int position) {
+        return endTimes[position];
+    }
+
+}
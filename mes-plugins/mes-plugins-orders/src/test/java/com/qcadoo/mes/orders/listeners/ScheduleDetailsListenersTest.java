@@ -0,0 +1,109 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orders.listeners;
+
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.qcadoo.mes.orders.constants.ScheduleFields;
+import com.qcadoo.mes.orders.schedule.ScheduleWorkersAssignmentService;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.view.api.ComponentState;
+import com.qcadoo.view.api.ViewDefinitionState;
+import com.qcadoo.view.api.components.FormComponent;
+
+public class ScheduleDetailsListenersTest {
+
+    private static final Long L_SCHEDULE_ID = 1L;
+
+    @Mock
+    private ViewDefinitionState view;
+
+    @Mock
+    private FormComponent scheduleForm;
+
+    @Mock
+    private DataDefinition scheduleDD;
+
+    @Mock
+    private Entity schedule;
+
+    @Mock
+    private ScheduleWorkersAssignmentService scheduleWorkersAssignmentService;
+
+    private ScheduleDetailsListeners scheduleDetailsListeners;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        scheduleDetailsListeners = new ScheduleDetailsListeners();
+
+        setField(scheduleDetailsListeners, "scheduleWorkersAssignmentService", scheduleWorkersAssignmentService);
+
+        given(scheduleForm.getEntityId()).willReturn(L_SCHEDULE_ID);
+        given(scheduleForm.getEntity()).willReturn(schedule);
+        given(schedule.getDataDefinition()).willReturn(scheduleDD);
+        given(scheduleDD.get(L_SCHEDULE_ID)).willReturn(schedule);
+        given(schedule.getIntegerField(ScheduleFields.WORKERS_ASSIGNMENT_PROGRESS)).willReturn(40);
+    }
+
+    @Test
+    public void shouldStartAssignmentWhenScheduleWasMarked() {
+        // given
+        given(scheduleWorkersAssignmentService.tryStartAssignment(L_SCHEDULE_ID)).willReturn(true);
+
+        // when
+        scheduleDetailsListeners.assignWorkersToOperations(view, scheduleForm, null);
+
+        // then
+        verify(scheduleWorkersAssignmentService).performAssignment(L_SCHEDULE_ID);
+        verify(view).addMessage("orders.scheduleDetails.assignWorkersToOperations.started", ComponentState.MessageType.INFO,
+                false);
+    }
+
+    @Test
+    public void shouldNotStartAssignmentWhenAnotherIsInProgress() {
+        // given
+        given(scheduleWorkersAssignmentService.tryStartAssignment(L_SCHEDULE_ID)).willReturn(false);
+
+        // when
+        scheduleDetailsListeners.assignWorkersToOperations(view, scheduleForm, null);
+
+        // then
+        verify(scheduleWorkersAssignmentService, never()).performAssignment(anyLong());
+        verify(view).addMessage("orders.scheduleDetails.assignWorkersToOperations.inProgress", ComponentState.MessageType.INFO,
+                false, "40");
+    }
+
+}
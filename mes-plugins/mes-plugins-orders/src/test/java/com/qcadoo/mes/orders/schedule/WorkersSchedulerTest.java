@@ -0,0 +1,190 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orders.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import org.junit.Test;
+
+public class WorkersSchedulerTest {
+
+    private static final long START_TIME = 1_000_000L;
+
+    private static final int[] NO_LAST_WORKERS = new int[] { WorkersScheduler.NO_WORKER };
+
+    private static final WorkersScheduler.WorkersCalendar ALWAYS_WORKING_CALENDAR = (worker, time) -> true;
+
+    private static final IntConsumer NO_PROGRESS_LISTENER = progress -> {
+    };
+
+    @Test
+    public final void shouldPreferLastWorkerOfWorkstation() {
+        // given
+        WorkersScheduler scheduler = new WorkersScheduler(new int[] { 0 }, new long[] { START_TIME }, new long[] { START_TIME
+                + 1000L }, new int[][] { { 0, 1, 2 } }, new long[] { START_TIME - 1000L, START_TIME - 3000L,
+                START_TIME - 2000L }, new int[] { 2 });
+
+        // when
+        scheduler.schedule(START_TIME, true, ALWAYS_WORKING_CALENDAR, NO_PROGRESS_LISTENER);
+
+        // then
+        assertEquals(2, scheduler.getAssignedWorker(0));
+    }
+
+    @Test
+    public final void shouldSelectWorkerByPreviousTaskFinishTime() {
+        // given
+        long[] workersFinishTimes = new long[] { START_TIME - 2000L, START_TIME - 1000L, START_TIME - 3000L };
+
+        WorkersScheduler latestScheduler = new WorkersScheduler(new int[] { 0 }, new long[] { START_TIME },
+                new long[] { START_TIME + 1000L }, new int[][] { { 0, 1, 2 } }, workersFinishTimes, NO_LAST_WORKERS);
+        WorkersScheduler earliestScheduler = new WorkersScheduler(new int[] { 0 }, new long[] { START_TIME },
+                new long[] { START_TIME + 1000L }, new int[][] { { 0, 1, 2 } }, workersFinishTimes, NO_LAST_WORKERS);
+
+        // when
+        latestScheduler.schedule(START_TIME, true, ALWAYS_WORKING_CALENDAR, NO_PROGRESS_LISTENER);
+        earliestScheduler.schedule(START_TIME, false, ALWAYS_WORKING_CALENDAR, NO_PROGRESS_LISTENER);
+
+        // then
+        assertEquals(1, latestScheduler.getAssignedWorker(0));
+        assertEquals(2, earliestScheduler.getAssignedWorker(0));
+    }
+
+    @Test
+    public final void shouldAssignWorkerOnlyWhenFreeDuringWholePosition() {
+        // given
+        WorkersScheduler scheduler = new WorkersScheduler(new int[] { 0, 0 }, new long[] { START_TIME, START_TIME + 10000L },
+                new long[] { START_TIME + 5000L, START_TIME + 15000L }, new int[][] { { 0 }, { 0 } },
+                new long[] { WorkersScheduler.NO_TIME }, NO_LAST_WORKERS);
+
+        scheduler.addBusyInterval(0, START_TIME + 4000L, START_TIME + 6000L);
+
+        // when
+        scheduler.schedule(START_TIME, true, ALWAYS_WORKING_CALENDAR, NO_PROGRESS_LISTENER);
+
+        // then
+        assertFalse(scheduler.isAssigned(0));
+        assertTrue(scheduler.isAssigned(1));
+    }
+
+    @Test
+    public final void shouldNotAssignWorkerToOverlappingPositions() {
+        // given
+        WorkersScheduler scheduler = new WorkersScheduler(new int[] { 0, 0, 0 }, new long[] { START_TIME, START_TIME + 1000L,
+                START_TIME + 2000L }, new long[] { START_TIME + 2000L, START_TIME + 3000L, START_TIME + 4000L }, new int[][] {
+                { 0, 1 }, { 0, 1 }, { 0, 1 } }, new long[] { WorkersScheduler.NO_TIME, WorkersScheduler.NO_TIME },
+                NO_LAST_WORKERS);
+
+        // when
+        scheduler.schedule(START_TIME, true, ALWAYS_WORKING_CALENDAR, NO_PROGRESS_LISTENER);
+
+        // then
+        assertEquals(0, scheduler.getAssignedWorker(0));
+        assertEquals(1, scheduler.getAssignedWorker(1));
+        assertEquals(0, scheduler.getAssignedWorker(2));
+    }
+
+    @Test
+    public final void shouldSkipWorkersNotWorkingAtPositionStart() {
+        // given
+        WorkersScheduler scheduler = new WorkersScheduler(new int[] { 0 }, new long[] { START_TIME }, new long[] { START_TIME
+                + 1000L }, new int[][] { { 0, 1 } }, new long[] { WorkersScheduler.NO_TIME, WorkersScheduler.NO_TIME },
+                new int[] { 0 });
+
+        // when
+        scheduler.schedule(START_TIME, true, (worker, time) -> worker != 0, NO_PROGRESS_LISTENER);
+
+        // then
+        assertEquals(1, scheduler.getAssignedWorker(0));
+    }
+
+    @Test
+    public final void shouldScheduleLargeSchedulesWithoutOverlappingWorkers() {
+        for (int positionsCount : new int[] { 1_000, 10_000, 50_000 }) {
+            // given
+            int workstationsCount = 50;
+            int workersCount = 200;
+            Random random = new Random(positionsCount);
+
+            int[] positionsWorkstations = new int[positionsCount];
+            long[] startTimes = new long[positionsCount];
+            long[] endTimes = new long[positionsCount];
+            int[][] positionsWorkers = new int[positionsCount][];
+            long[] workersFinishTimes = new long[workersCount];
+            int[] workstationsLastWorkers = new int[workstationsCount];
+
+            Arrays.fill(workersFinishTimes, WorkersScheduler.NO_TIME);
+            Arrays.fill(workstationsLastWorkers, WorkersScheduler.NO_WORKER);
+
+            long startTime = START_TIME;
+
+            for (int position = 0; position < positionsCount; position++) {
+                startTime += random.nextInt(600) * 1000L;
+
+                positionsWorkstations[position] = random.nextInt(workstationsCount);
+                startTimes[position] = startTime;
+                endTimes[position] = startTime + (60 + random.nextInt(3600)) * 1000L;
+                positionsWorkers[position] = new int[] { random.nextInt(workersCount), random.nextInt(workersCount),
+                        random.nextInt(workersCount), random.nextInt(workersCount) };
+            }
+
+            WorkersScheduler scheduler = new WorkersScheduler(positionsWorkstations, startTimes, endTimes, positionsWorkers,
+                    workersFinishTimes, workstationsLastWorkers);
+
+            for (int worker = 0; worker < workersCount; worker++) {
+                long busyFrom = START_TIME + random.nextInt(positionsCount) * 300_000L;
+
+                scheduler.addBusyInterval(worker, busyFrom, busyFrom + 3_600_000L);
+            }
+
+            AtomicInteger lastProgress = new AtomicInteger();
+
+            // when
+            scheduler.schedule(START_TIME, true, ALWAYS_WORKING_CALENDAR, lastProgress::set);
+
+            // then
+            long[] workersBusyTo = new long[workersCount];
+
+            for (int position = 0; position < positionsCount; position++) {
+                if (scheduler.isAssigned(position)) {
+                    int worker = scheduler.getAssignedWorker(position);
+
+                    assertTrue(startTimes[position] >= workersBusyTo[worker]);
+
+                    workersBusyTo[worker] = Math.max(workersBusyTo[worker], endTimes[position]);
+                }
+            }
+
+            assertEquals(100, lastProgress.get());
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orders.schedule;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures {@link WorkstationsScheduler} on generated schedules of orders with five chained operations and three candidate
+ * workstations per operation. It isn't run by the test phase, start it with the main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class WorkstationsSchedulerBenchmark {
+
+    private static final long START_TIME = 1_000_000L;
+
+    private static final int WORKSTATIONS_COUNT = 50;
+
+    private static final int OPERATIONS_IN_ORDER = 5;
+
+    private static final int[] NO_CHILDREN = new int[0];
+
+    private static final WorkstationsScheduler.WorkstationsCalendar CONTINUOUS_CALENDAR = new WorkstationsScheduler.WorkstationsCalendar() {
+
+        @Override
+        public long getNearestWorkingTime(final int workstation, final long time) {
+            return time;
+        }
+
+        @Override
+        public long getFinishTime(final int workstation, final long startTime, final int seconds) {
+            return startTime + seconds * 1000L;
+        }
+
+    };
+
+    @Param({ "1000", "10000", "50000" })
+    private int positionsCount;
+
+    private int[] positionsOrders;
+
+    private int[] machineWorkTimes;
+
+    private int[] additionalTimes;
+
+    private int[][] positionsChildren;
+
+    private int[][] positionsWorkstations;
+
+    private WorkstationsScheduler scheduler;
+
+    @Setup(Level.Trial)
+    public void generateSchedule() {
+        Random random = new Random(positionsCount);
+
+        positionsOrders = new int[positionsCount];
+        machineWorkTimes = new int[positionsCount];
+        additionalTimes = new int[positionsCount];
+        positionsChildren = new int[positionsCount][];
+        positionsWorkstations = new int[positionsCount][];
+
+        for (int position = 0; position < positionsCount; position++) {
+            positionsOrders[position] = position / OPERATIONS_IN_ORDER;
+            machineWorkTimes[position] = 60 + random.nextInt(3600);
+            additionalTimes[position] = random.nextInt(60);
+            positionsChildren[position] = (position % OPERATIONS_IN_ORDER == 0) ? NO_CHILDREN : new int[] { position - 1 };
+            positionsWorkstations[position] = new int[] { random.nextInt(WORKSTATIONS_COUNT),
+                    random.nextInt(WORKSTATIONS_COUNT), random.nextInt(WORKSTATIONS_COUNT) };
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createScheduler() {
+        long[] endTimes = new long[positionsCount];
+        long[] workstationsFinishTimes = new long[WORKSTATIONS_COUNT];
+
+        Arrays.fill(endTimes, WorkstationsScheduler.NO_TIME);
+        Arrays.fill(workstationsFinishTimes, WorkstationsScheduler.NO_TIME);
+
+        scheduler = new WorkstationsScheduler(positionsOrders, machineWorkTimes, additionalTimes, endTimes, positionsChildren,
+                positionsWorkstations, workstationsFinishTimes);
+    }
+
+    @Benchmark
+    public WorkstationsScheduler scheduleShortestTime() {
+        scheduler.schedule(START_TIME, true, CONTINUOUS_CALENDAR);
+
+        return scheduler;
+    }
+
+    @Benchmark
+    public WorkstationsScheduler scheduleFirstBusy() {
+        scheduler.schedule(START_TIME, false, CONTINUOUS_CALENDAR);
+
+        return scheduler;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WorkstationsSchedulerBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.orders.schedule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class WorkstationsSchedulerTest {
+
+    private static final long START_TIME = 1_000_000L;
+
+    private static final int[] NO_CHILDREN = new int[0];
+
+    private static final int[] NO_WORKSTATIONS = new int[0];
+
+    private static final WorkstationsScheduler.WorkstationsCalendar CONTINUOUS_CALENDAR = new WorkstationsScheduler.WorkstationsCalendar() {
+
+        @Override
+        public long getNearestWorkingTime(final int workstation, final long time) {
+            return time;
+        }
+
+        @Override
+        public long getFinishTime(final int workstation, final long startTime, final int seconds) {
+            return startTime + seconds * 1000L;
+        }
+
+    };
+
+    @Test
+    public final void shouldAssignPositionToWorkstationFinishingFirst() {
+        // given
+        WorkstationsScheduler scheduler = new WorkstationsScheduler(new int[] { 0 }, new int[] { 10 }, new int[] { 0 },
+                new long[] { WorkstationsScheduler.NO_TIME }, new int[][] { NO_CHILDREN }, new int[][] { { 0, 1 } }, new long[] {
+                        START_TIME + 5000L, WorkstationsScheduler.NO_TIME });
+
+        // when
+        scheduler.schedule(START_TIME, true, CONTINUOUS_CALENDAR);
+
+        // then
+        assertEquals(1, scheduler.getAssignedWorkstation(0));
+        assertEquals(START_TIME, scheduler.getStartTime(0));
+        assertEquals(START_TIME + 10000L, scheduler.getEndTime(0));
+    }
+
+    @Test
+    public final void shouldAssignPositionToFirstBusyWorkstation() {
+        // given
+        WorkstationsScheduler scheduler = new WorkstationsScheduler(new int[] { 0 }, new int[] { 10 }, new int[] { 0 },
+                new long[] { WorkstationsScheduler.NO_TIME }, new int[][] { NO_CHILDREN }, new int[][] { { 0, 1, 2 } },
+                new long[] { WorkstationsScheduler.NO_TIME, START_TIME + 5000L, START_TIME + 1000L });
+
+        // when
+        scheduler.schedule(START_TIME, false, CONTINUOUS_CALENDAR);
+
+        // then
+        assertEquals(1, scheduler.getAssignedWorkstation(0));
+        assertEquals(START_TIME + 5000L, scheduler.getStartTime(0));
+    }
+
+    @Test
+    public final void shouldStartPositionAfterItsChildrenWithAdditionalTime() {
+        // given
+        WorkstationsScheduler scheduler = new WorkstationsScheduler(new int[] { 0, 0 }, new int[] { 10, 20 }, new int[] { 3,
+                0 }, new long[] { WorkstationsScheduler.NO_TIME, WorkstationsScheduler.NO_TIME }, new int[][] { NO_CHILDREN,
+                { 0 } }, new int[][] { { 0 }, { 1 } }, new long[] { WorkstationsScheduler.NO_TIME,
+                WorkstationsScheduler.NO_TIME });
+
+        // when
+        scheduler.schedule(START_TIME, true, CONTINUOUS_CALENDAR);
+
+        // then
+        assertEquals(START_TIME + 10000L, scheduler.getEndTime(0));
+        assertEquals(START_TIME + 13000L, scheduler.getStartTime(1));
+        assertEquals(START_TIME + 33000L, scheduler.getEndTime(1));
+    }
+
+    @Test
+    public final void shouldSkipFollowingPositionsOfOrderWithoutWorkstations() {
+        // given
+        WorkstationsScheduler scheduler = new WorkstationsScheduler(new int[] { 0, 0, 1 }, new int[] { 10, 10, 10 }, new int[] {
+                0, 0, 0 }, new long[] { WorkstationsScheduler.NO_TIME, WorkstationsScheduler.NO_TIME,
+                WorkstationsScheduler.NO_TIME }, new int[][] { NO_CHILDREN, NO_CHILDREN, NO_CHILDREN }, new int[][] {
+                NO_WORKSTATIONS, { 0 }, { 0 } }, new long[] { WorkstationsScheduler.NO_TIME });
+
+        // when
+        scheduler.schedule(START_TIME, true, CONTINUOUS_CALENDAR);
+
+        // then
+        assertFalse(scheduler.isAssigned(0));
+        assertFalse(scheduler.isAssigned(1));
+        assertTrue(scheduler.isAssigned(2));
+    }
+
+    @Test
+    public final void shouldScheduleGeneratedSchedulesWithoutOverlappingPositions() {
+        for (int positionsCount : new int[] { 1_000, 10_000, 50_000 }) {
+            // given
+            int workstationsCount = 50;
+            int operationsInOrder = 5;
+            Random random = new Random(positionsCount);
+
+            int[] positionsOrders = new int[positionsCount];
+            int[] machineWorkTimes = new int[positionsCount];
+            int[] additionalTimes = new int[positionsCount];
+            long[] endTimes = new long[positionsCount];
+            int[][] positionsChildren = new int[positionsCount][];
+            int[][] positionsWorkstations = new int[positionsCount][];
+            long[] workstationsFinishTimes = new long[workstationsCount];
+
+            Arrays.fill(endTimes, WorkstationsScheduler.NO_TIME);
+            Arrays.fill(workstationsFinishTimes, WorkstationsScheduler.NO_TIME);
+
+            for (int position = 0; position < positionsCount; position++) {
+                positionsOrders[position] = position / operationsInOrder;
+                machineWorkTimes[position] = 60 + random.nextInt(3600);
+                additionalTimes[position] = random.nextInt(60);
+                positionsChildren[position] = (position % operationsInOrder == 0) ? NO_CHILDREN : new int[] { position - 1 };
+                positionsWorkstations[position] = new int[] { random.nextInt(workstationsCount),
+                        random.nextInt(workstationsCount), random.nextInt(workstationsCount) };
+            }
+
+            WorkstationsScheduler scheduler = new WorkstationsScheduler(positionsOrders, machineWorkTimes, additionalTimes,
+                    endTimes, positionsChildren, positionsWorkstations, workstationsFinishTimes);
+
+            // when
+            scheduler.schedule(START_TIME, true, CONTINUOUS_CALENDAR);
+
+            // then
+            long[] workstationsBusyTo = new long[workstationsCount];
+
+            for (int position = 0; position < positionsCount; position++) {
+                assertTrue(scheduler.isAssigned(position));
+
+                int workstation = scheduler.getAssignedWorkstation(position);
+
+                assertTrue(scheduler.getStartTime(position) >= workstationsBusyTo[workstation]);
+                assertEquals(scheduler.getStartTime(position) + machineWorkTimes[position] * 1000L,
+                        scheduler.getEndTime(position));
+
+                for (int child : positionsChildren[position]) {
+                    assertTrue(scheduler.getStartTime(position) >= scheduler.getEndTime(child) + additionalTimes[child] * 1000L);
+                }
+
+                workstationsBusyTo[workstation] = scheduler.getEndTime(position);
+            }
+        }
+    }
+
+}
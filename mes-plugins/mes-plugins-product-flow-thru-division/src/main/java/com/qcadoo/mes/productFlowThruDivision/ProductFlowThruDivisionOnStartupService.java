@@ -34,6 +34,7 @@ import org.springframework.security.util.FieldUtils;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.qcadoo.mes.productFlowThruDivision.service.TrackingDocumentsOutboxService;
 import com.qcadoo.mes.technologies.constants.TechnologiesConstants;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
@@ -47,6 +48,9 @@ public class ProductFlowThruDivisionOnStartupService extends Module {
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
+    @Autowired
+    private TrackingDocumentsOutboxService trackingDocumentsOutboxService;
+
     @Override
     @Transactional
     public final void multiTenantEnable() {
@@ -61,6 +65,7 @@ public class ProductFlowThruDivisionOnStartupService extends Module {
                                 + "SET range = '02manyDivisions' WHERE range IS NULL"
                 ).executeUpdate();
 
+        trackingDocumentsOutboxService.recoverClaims();
     }
 
     private Session getCurrentSession() {
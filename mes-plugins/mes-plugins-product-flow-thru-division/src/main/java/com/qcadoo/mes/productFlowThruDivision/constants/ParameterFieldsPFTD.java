@@ -51,6 +51,8 @@ public final class ParameterFieldsPFTD {
 
     public static final String ISSUED_QUANTITY_UP_TO_NEED = "issuedQuantityUpToNeed";
 
+    public static final String CREATE_TRACKING_DOCUMENTS_IN_BACKGROUND = "createTrackingDocumentsInBackground";
+
     public static final String PRODUCTS_TO_ISSUE = "productsToIssue";
 
     public static final String RANGE = "range";
@@ -0,0 +1,53 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.productFlowThruDivision.constants;
+
+public final class TrackingDocumentsOutboxFields {
+
+    private TrackingDocumentsOutboxFields() {
+    }
+
+    public static final String PRODUCTION_TRACKING = "productionTracking";
+
+    public static final String ORDER = "order";
+
+    public static final String STATUS = "status";
+
+    public static final String ATTEMPTS = "attempts";
+
+    public static final String ENQUEUE_DATE = "enqueueDate";
+
+    public static final String NEXT_ATTEMPT_DATE = "nextAttemptDate";
+
+    public static final String CLAIM_DATE = "claimDate";
+
+    public static final String CLAIMED_BY = "claimedBy";
+
+    public static final String HEARTBEAT_DATE = "heartbeatDate";
+
+    public static final String FINISH_DATE = "finishDate";
+
+    public static final String ERROR_MESSAGE = "errorMessage";
+
+}
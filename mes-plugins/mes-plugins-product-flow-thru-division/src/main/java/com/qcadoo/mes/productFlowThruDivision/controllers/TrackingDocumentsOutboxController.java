@@ -0,0 +1,68 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.productFlowThruDivision.controllers;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.productFlowThruDivision.service.TrackingDocumentsOutboxService;
+
+@Controller
+@RequestMapping("/rest/trackingDocumentsOutbox")
+public class TrackingDocumentsOutboxController {
+
+    @Autowired
+    private TrackingDocumentsOutboxService trackingDocumentsOutboxService;
+
+    @ResponseBody
+    @RequestMapping(value = "/failed", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> getFailed() {
+        Map<String, Object> result = Maps.newLinkedHashMap();
+
+        result.put("queueDepth", trackingDocumentsOutboxService.getQueueDepth());
+        result.put("failed", trackingDocumentsOutboxService.getFailed());
+
+        return result;
+    }
+
+    @ResponseBody
+    @RequestMapping(value = "/retry", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> retry(@RequestBody(required = false) final List<Long> ids) {
+        int retried = trackingDocumentsOutboxService.retry((ids == null) ? Collections.emptyList() : ids);
+
+        return Collections.singletonMap("retried", retried);
+    }
+
+}
@@ -0,0 +1,367 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.productFlowThruDivision.service;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qcadoo.mes.basic.util.ClaimQueue;
+import com.qcadoo.mes.productFlowThruDivision.constants.TrackingDocumentsOutboxStatus;
+import com.qcadoo.mes.productFlowThruDivision.states.ProductionTrackingListenerServicePFTD;
+import com.qcadoo.mes.productionCounting.constants.ProductionCountingConstants;
+import com.qcadoo.mes.productionCounting.constants.ProductionTrackingFields;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.search.SearchOrders;
+import com.qcadoo.model.api.search.SearchRestrictions;
+import com.qcadoo.model.api.validators.ErrorMessage;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+
+/**
+ * Outbox of warehouse documents of accepted production trackings.
+ * 
+ * Acceptance of production tracking only inserts a row to productflowthrudivision_trackingdocumentsoutbox table, which is
+ * committed together with the tracking. The dispatcher, which runs every few seconds, claims all waiting rows of one order and
+ * creates their documents at once, so trackings of the same order and warehouse share documents. Dispatches failed with an
+ * exception are retried with growing delay, failed dispatches stay in the outbox until they are retried.
+ */
+@Service
+public class TrackingDocumentsOutboxService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TrackingDocumentsOutboxService.class);
+
+    private static final String L_ID = "id";
+
+    private static final String L_PRODUCTION_TRACKING_ID = "productiontracking_id";
+
+    private static final String L_ORDER_ID = "order_id";
+
+    private static final String L_REQUEUED_CLAIMS_COLUMNS = "q.order_id";
+
+    private static final String L_CLAIM_EXPIRED = "Dispatch claim of node expired";
+
+    private static final String L_INTERRUPTED_BY_RESTART = "Dispatch interrupted by restart";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private DataDefinitionService dataDefinitionService;
+
+    @Autowired
+    private ProductionTrackingListenerServicePFTD productionTrackingListenerService;
+
+    @Autowired
+    private MultiTenantService multiTenantService;
+
+    private ClaimQueue claimQueue;
+
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+            .setNameFormat("trackingDocumentsOutbox").build());
+
+    private final AtomicBoolean dispatching = new AtomicBoolean();
+
+    private final Set<Long> claimedIds = Sets.newConcurrentHashSet();
+
+    @PostConstruct
+    public void init() {
+        claimQueue = new ClaimQueue(jdbcTemplate, "productflowthrudivision_trackingdocumentsoutbox",
+                TrackingDocumentsOutboxStatus.WAITING.getStringValue(), TrackingDocumentsOutboxStatus.IN_PROGRESS
+                        .getStringValue(), TrackingDocumentsOutboxStatus.FAILED.getStringValue());
+    }
+
+    /**
+     * Queues creation of warehouse documents of given production tracking. Row is inserted in current transaction, so it is
+     * committed or rolled back together with the acceptance of production tracking.
+     */
+    public void enqueue(final Entity productionTracking) {
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put(L_PRODUCTION_TRACKING_ID, productionTracking.getId());
+        parameters.put(L_ORDER_ID, productionTracking.getBelongsToField(ProductionTrackingFields.ORDER).getId());
+        parameters.put(ClaimQueue.WAITING, TrackingDocumentsOutboxStatus.WAITING.getStringValue());
+
+        jdbcTemplate.update("INSERT INTO productflowthrudivision_trackingdocumentsoutbox "
+                + "(productiontracking_id, order_id, status, attempts, enqueuedate, nextattemptdate) "
+                + "VALUES (:productiontracking_id, :order_id, :waiting, 0, now(), now())", parameters);
+
+        LOG.info(String.format("TRACKING DOCUMENTS QUEUED: production tracking id = %d number = %s", productionTracking.getId(),
+                productionTracking.getStringField(ProductionTrackingFields.NUMBER)));
+    }
+
+    public void dispatchTrigger() {
+        if (!dispatching.compareAndSet(false, true)) {
+            multiTenantService.doInMultiTenantContext(new MultiTenantCallback() {
+
+                @Override
+                public void invoke() {
+                    claimQueue.heartbeat(claimedIds);
+                }
+
+            });
+
+            return;
+        }
+
+        dispatcher.execute(() -> {
+            try {
+                multiTenantService.doInMultiTenantContext(new MultiTenantCallback() {
+
+                    @Override
+                    public void invoke() {
+                        dispatch();
+                    }
+
+                });
+            } finally {
+                dispatching.set(false);
+            }
+        });
+    }
+
+    /**
+     * Takes over stale claims of other nodes and dispatches waiting rows order by order, until there is nothing left to dispatch.
+     * Heartbeat of claimed rows is refreshed by the trigger, while they are dispatched.
+     */
+    public void dispatch() {
+        logRequeuedClaims(L_CLAIM_EXPIRED, claimQueue.requeueStaleClaims(L_CLAIM_EXPIRED, L_REQUEUED_CLAIMS_COLUMNS));
+
+        List<TrackingDocumentsClaim> claims = claimOrder();
+
+        while (!claims.isEmpty()) {
+            claims.forEach(claim -> claimedIds.add(claim.id));
+
+            try {
+                process(claims);
+            } finally {
+                claimedIds.clear();
+            }
+
+            claims = claimOrder();
+        }
+    }
+
+    /**
+     * Requeues rows claimed by this node before it was restarted.
+     */
+    public void recoverClaims() {
+        logRequeuedClaims(L_INTERRUPTED_BY_RESTART,
+                claimQueue.requeueInterruptedClaims(L_INTERRUPTED_BY_RESTART, L_REQUEUED_CLAIMS_COLUMNS));
+    }
+
+    /**
+     * Queues failed rows once again.
+     * 
+     * @param ids
+     *            ids of failed rows or empty list for all of them
+     * @return number of queued rows
+     */
+    @Transactional
+    public int retry(final List<Long> ids) {
+        Map<String, Object> parameters = claimQueue.getStatusParameters();
+
+        parameters.put(ClaimQueue.IDS, ids);
+
+        int retried = jdbcTemplate.update("UPDATE productflowthrudivision_trackingdocumentsoutbox SET status = :waiting, "
+                + "attempts = 0, nextattemptdate = now(), claimdate = NULL, claimedby = NULL, finishdate = NULL, "
+                + "errormessage = NULL WHERE status = :failed" + (ids.isEmpty() ? "" : " AND id IN (:ids)"), parameters);
+
+        LOG.info(String.format("TRACKING DOCUMENTS RETRIED: %d rows", retried));
+
+        return retried;
+    }
+
+    public List<Map<String, Object>> getFailed() {
+        return jdbcTemplate.queryForList("SELECT o.id, o.productiontracking_id AS productionTrackingId, "
+                + "pt.number AS productionTrackingNumber, o.order_id AS orderId, ord.number AS orderNumber, o.attempts, "
+                + "o.enqueuedate AS enqueueDate, o.finishdate AS finishDate, o.errormessage AS errorMessage "
+                + "FROM productflowthrudivision_trackingdocumentsoutbox o "
+                + "JOIN productioncounting_productiontracking pt ON pt.id = o.productiontracking_id "
+                + "JOIN orders_order ord ON ord.id = o.order_id WHERE o.status = :failed ORDER BY o.id",
+                claimQueue.getStatusParameters());
+    }
+
+    public int getQueueDepth() {
+        return claimQueue.getQueueDepth();
+    }
+
+    /**
+     * Claims all due waiting rows of the order with the oldest due waiting row, unless rows of this order are already in
+     * progress. Rows waiting for retry are left for later dispatches.
+     */
+    @Transactional
+    public List<TrackingDocumentsClaim> claimOrder() {
+        claimQueue.lock();
+
+        return jdbcTemplate.query("UPDATE productflowthrudivision_trackingdocumentsoutbox o SET status = :inProgress, "
+                + "attempts = COALESCE(o.attempts, 0) + 1, claimdate = now(), claimedby = :node "
+                + "WHERE o.status = :waiting AND o.nextattemptdate <= now() AND o.order_id = ("
+                + "SELECT w.order_id FROM productflowthrudivision_trackingdocumentsoutbox w "
+                + "WHERE w.status = :waiting AND w.nextattemptdate <= now() AND NOT EXISTS ("
+                + "SELECT 1 FROM productflowthrudivision_trackingdocumentsoutbox p "
+                + "WHERE p.status = :inProgress AND p.order_id = w.order_id) ORDER BY w.id LIMIT 1) "
+                + "RETURNING o.id, o.productiontracking_id, o.order_id, o.attempts", claimQueue.getStatusParameters(),
+                this::mapClaim);
+    }
+
+    private TrackingDocumentsClaim mapClaim(final ResultSet resultSet, final int rowNum) throws SQLException {
+        return new TrackingDocumentsClaim(resultSet.getLong(ClaimQueue.ID), resultSet.getLong(L_PRODUCTION_TRACKING_ID),
+                resultSet.getLong(L_ORDER_ID), resultSet.getInt(ClaimQueue.ATTEMPTS));
+    }
+
+    private void process(final List<TrackingDocumentsClaim> claims) {
+        long startTime = System.currentTimeMillis();
+
+        Long orderId = claims.get(0).orderId;
+        int attempts = claims.stream().mapToInt(claim -> claim.attempts).max().getAsInt();
+
+        TrackingDocumentsOutboxStatus status;
+        String errorMessage;
+
+        try {
+            errorMessage = createDocuments(claims);
+            status = Objects.isNull(errorMessage) ? TrackingDocumentsOutboxStatus.DONE : TrackingDocumentsOutboxStatus.FAILED;
+        } catch (Exception e) {
+            LOG.error(String.format("Error in creation of tracking documents of order id = %d, attempt %d", orderId, attempts),
+                    e);
+
+            status = ClaimQueue.canRetry(attempts) ? TrackingDocumentsOutboxStatus.WAITING : TrackingDocumentsOutboxStatus.FAILED;
+            errorMessage = Objects.toString(e.getMessage(), e.getClass().getName());
+        }
+
+        finish(claims, status, attempts, errorMessage);
+
+        LOG.info(String.format("TRACKING DOCUMENTS %s: order id = %d production trackings = %d attempt = %d duration = %d ms",
+                status.name(), orderId, claims.size(), attempts, System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Creates documents of claimed production trackings in one transaction, which is rolled back if any of documents is invalid.
+     * 
+     * @return error message or null if documents were created
+     */
+    @Transactional
+    public String createDocuments(final List<TrackingDocumentsClaim> claims) {
+        List<Entity> productionTrackings = dataDefinitionService
+                .get(ProductionCountingConstants.PLUGIN_IDENTIFIER, ProductionCountingConstants.MODEL_PRODUCTION_TRACKING).find()
+                .add(SearchRestrictions.in(L_ID, claims.stream().map(claim -> claim.productionTrackingId)
+                        .collect(Collectors.toList()))).addOrder(SearchOrders.asc(L_ID)).list().getEntities();
+
+        if (productionTrackings.isEmpty()) {
+            return "Production trackings don't exist";
+        }
+
+        Entity errorsHolder = productionTrackings.get(0);
+
+        productionTrackingListenerService.createWarehouseDocuments(errorsHolder, productionTrackings);
+
+        if (errorsHolder.getGlobalErrors().isEmpty()) {
+            return null;
+        }
+
+        TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+
+        return errorsHolder.getGlobalErrors().stream().map(this::toString).collect(Collectors.joining("; "));
+    }
+
+    private String toString(final ErrorMessage error) {
+        if (error.getVars().length == 0) {
+            return error.getMessage();
+        }
+
+        return error.getMessage() + " " + String.join(", ", error.getVars());
+    }
+
+    @Transactional
+    public void finish(final List<TrackingDocumentsClaim> claims, final TrackingDocumentsOutboxStatus status, final int attempts,
+            final String errorMessage) {
+        int finished = claimQueue.finish(claims.stream().map(claim -> claim.id).collect(Collectors.toList()),
+                status.getStringValue(), attempts, errorMessage);
+
+        if (finished < claims.size()) {
+            LOG.warn(String.format("TRACKING DOCUMENTS CLAIM LOST: order id = %d rows = %d finished = %d",
+                    claims.get(0).orderId, claims.size(), finished));
+        }
+    }
+
+    private void logRequeuedClaims(final String errorMessage, final List<Map<String, Object>> requeuedClaims) {
+        if (!requeuedClaims.isEmpty()) {
+            LOG.warn(String.format("TRACKING DOCUMENTS CLAIMS REQUEUED: %s, order ids = %s", errorMessage, requeuedClaims
+                    .stream().map(requeuedClaim -> requeuedClaim.get(L_ORDER_ID).toString()).distinct()
+                    .collect(Collectors.joining(", "))));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    public static final class TrackingDocumentsClaim {
+
+        private final Long id;
+
+        private final Long productionTrackingId;
+
+        private final Long orderId;
+
+        private final int attempts;
+
+        private TrackingDocumentsClaim(final Long id, final Long productionTrackingId, final Long orderId, final int attempts) {
+            this.id = id;
+            this.productionTrackingId = productionTrackingId;
+            this.orderId = orderId;
+            this.attempts = attempts;
+        }
+
+        public Long getProductionTrackingId() {
+            return productionTrackingId;
+        }
+
+    }
+
+}
@@ -23,9 +23,11 @@
  */
 package com.qcadoo.mes.productFlowThruDivision.states;
 
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 import com.qcadoo.mes.advancedGenealogy.constants.BatchFields;
 import com.qcadoo.mes.basic.ParameterService;
 import com.qcadoo.mes.basic.constants.ProductFields;
@@ -45,6 +47,8 @@ import com.qcadoo.mes.materialFlowResources.service.DocumentManagementService;
 import com.qcadoo.mes.orders.constants.OrderFields;
 import com.qcadoo.mes.orders.states.constants.OrderState;
 import com.qcadoo.mes.productFlowThruDivision.constants.DocumentFieldsPFTD;
+import com.qcadoo.mes.productFlowThruDivision.constants.ParameterFieldsPFTD;
+import com.qcadoo.mes.productFlowThruDivision.service.TrackingDocumentsOutboxService;
 import com.qcadoo.mes.productionCounting.ProductionTrackingService;
 import com.qcadoo.mes.productionCounting.constants.ParameterFieldsPC;
 import com.qcadoo.mes.productionCounting.constants.PriceBasedOn;
@@ -70,9 +74,10 @@ import com.qcadoo.model.api.validators.ErrorMessage;
 
 import java.math.BigDecimal;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -117,42 +122,69 @@ public final class ProductionTrackingListenerServicePFTD {
     @Autowired
     private ProductionTrackingService productionTrackingService;
 
+    @Autowired
+    private TrackingDocumentsOutboxService trackingDocumentsOutboxService;
+
     public Entity onAccept(final Entity productionTracking, final String sourceState) {
         boolean isCorrection = productionTracking.getBooleanField(ProductionTrackingFields.IS_CORRECTION);
 
         if (!isCorrection && !ProductionTrackingStateStringValues.CORRECTED.equals(sourceState)) {
-            createWarehouseDocuments(productionTracking);
+            if (parameterService.getParameter().getBooleanField(ParameterFieldsPFTD.CREATE_TRACKING_DOCUMENTS_IN_BACKGROUND)) {
+                trackingDocumentsOutboxService.enqueue(productionTracking);
+            } else {
+                createWarehouseDocuments(productionTracking);
+            }
         }
 
         return productionTracking;
     }
 
     public void createWarehouseDocuments(final Entity productionTracking) {
-        Entity order = productionTracking.getBelongsToField(ProductionTrackingFields.ORDER);
-        Entity toc = productionTracking.getBelongsToField(ProductionTrackingFields.TECHNOLOGY_OPERATION_COMPONENT);
-
-        List<Entity> recordOutProducts = productionTracking
-                .getHasManyField(ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_OUT_COMPONENTS);
-        Multimap<Long, Entity> groupedRecordOutProducts = productionTrackingDocumentsHelper
-                .fillFromBPCProductOut(recordOutProducts, order, true);
-
-        List<Entity> recordInProducts = productionTracking
-                .getHasManyField(ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_IN_COMPONENTS);
+        createWarehouseDocuments(productionTracking, Collections.singletonList(productionTracking));
+    }
 
-        Multimap<Long, Entity> groupedRecordInProducts = productionTrackingDocumentsHelper.fillFromBPCProductIn(recordInProducts,
-                order, toc, true);
+    /**
+     * Creates warehouse documents for production trackings of one order at once, so trackings for the same warehouse share
+     * documents.
+     * 
+     * @param errorsHolder
+     *            entity, to which errors of documents are added
+     * @param productionTrackings
+     *            production trackings of one order
+     */
+    public void createWarehouseDocuments(final Entity errorsHolder, final List<Entity> productionTrackings) {
+        Entity lastProductionTracking = productionTrackings.get(productionTrackings.size() - 1);
+        Entity order = lastProductionTracking.getBelongsToField(ProductionTrackingFields.ORDER);
+        Entity user = lastProductionTracking.getBelongsToField(L_USER);
+
+        Multimap<Long, Entity> groupedRecordOutProducts = ArrayListMultimap.create();
+        Multimap<Long, Entity> groupedRecordInProducts = ArrayListMultimap.create();
+
+        for (Entity productionTracking : productionTrackings) {
+            Entity toc = productionTracking.getBelongsToField(ProductionTrackingFields.TECHNOLOGY_OPERATION_COMPONENT);
+
+            List<Entity> recordOutProducts = productionTracking
+                    .getHasManyField(ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_OUT_COMPONENTS);
+            groupedRecordOutProducts.putAll(productionTrackingDocumentsHelper.fillFromBPCProductOut(recordOutProducts, order,
+                    true));
+
+            List<Entity> recordInProducts = productionTracking
+                    .getHasManyField(ProductionTrackingFields.TRACKING_OPERATION_PRODUCT_IN_COMPONENTS);
+            groupedRecordInProducts.putAll(productionTrackingDocumentsHelper.fillFromBPCProductIn(recordInProducts, order, toc,
+                    true));
+        }
 
         for (Long warehouseId : groupedRecordOutProducts.keySet()) {
             Entity locationTo = getLocationDD().get(warehouseId);
             Entity inboundDocument = createOrUpdateInternalInboundDocumentForFinalProducts(locationTo, order,
-                    groupedRecordOutProducts.get(warehouseId), productionTracking.getBelongsToField(L_USER));
+                    groupedRecordOutProducts.get(warehouseId), user);
 
             if (Objects.nonNull(inboundDocument) && !inboundDocument.isValid()) {
                 for (ErrorMessage error : inboundDocument.getGlobalErrors()) {
-                    productionTracking.addGlobalError(error.getMessage(), error.getVars());
+                    errorsHolder.addGlobalError(error.getMessage(), error.getVars());
                 }
 
-                productionTracking
+                errorsHolder
                         .addGlobalError("productFlowThruDivision.productionTracking.productionTrackingError.createInternalInboundDocument");
 
                 return;
@@ -166,21 +198,21 @@ public final class ProductionTrackingListenerServicePFTD {
         for (Long warehouseId : groupedRecordInProducts.keySet()) {
             Entity warehouseFrom = getLocationDD().get(warehouseId);
             Entity outboundDocument = createInternalOutboundDocumentForComponents(warehouseFrom, order,
-                    groupedRecordInProducts.get(warehouseId), productionTracking.getBelongsToField(L_USER));
+                    groupedRecordInProducts.get(warehouseId), user);
 
             if (Objects.nonNull(outboundDocument) && !outboundDocument.isValid()) {
                 for (ErrorMessage error : outboundDocument.getGlobalErrors()) {
                     if (error.getMessage().equalsIgnoreCase(L_ERROR_NOT_ENOUGH_RESOURCES)) {
-                        productionTracking.addGlobalError(error.getMessage(), false, error.getVars());
+                        errorsHolder.addGlobalError(error.getMessage(), false, error.getVars());
                     } else {
                         if (!errorsDisplayed) {
-                            productionTracking.addGlobalError(error.getMessage(), error.getVars());
+                            errorsHolder.addGlobalError(error.getMessage(), error.getVars());
                         }
                     }
                 }
 
                 if (!errorsDisplayed) {
-                    productionTracking
+                    errorsHolder
                             .addGlobalError("productFlowThruDivision.productionTracking.productionTrackingError.createInternalOutboundDocument");
 
                     errorsDisplayed = true;
@@ -200,7 +232,7 @@ public final class ProductionTrackingListenerServicePFTD {
         DocumentBuilder internalOutboundBuilder = documentManagementService.getDocumentBuilder(user);
         internalOutboundBuilder.internalOutbound(locationFrom);
 
-        HashSet<Entity> inProductsWithoutDuplicates = Sets.newHashSet();
+        Multimap<Long, Long> inProductsWithoutDuplicates = HashMultimap.create();
 
         DataDefinition positionDD = getPositionDD();
 
@@ -209,8 +241,10 @@ public final class ProductionTrackingListenerServicePFTD {
             List<Entity> usedBatches = inProductRecord.getHasManyField(TrackingOperationProductInComponentFields.USED_BATCHES);
 
             Entity inProduct = inProductRecord.getBelongsToField(TrackingOperationProductInComponentFields.PRODUCT);
+            Long productionTrackingId = inProductRecord.getBelongsToField(
+                    TrackingOperationProductInComponentFields.PRODUCTION_TRACKING).getId();
 
-            if (!inProductsWithoutDuplicates.contains(inProduct)) {
+            if (!inProductsWithoutDuplicates.containsEntry(productionTrackingId, inProduct.getId())) {
                 if (usedBatches.isEmpty()) {
                     Entity position = preparePositionForInProduct(positionDD, inProductRecord, inProduct);
                     internalOutboundBuilder.addPosition(position);
@@ -222,7 +256,7 @@ public final class ProductionTrackingListenerServicePFTD {
                 }
             }
 
-            inProductsWithoutDuplicates.add(inProduct);
+            inProductsWithoutDuplicates.put(productionTrackingId, inProduct.getId());
         }
 
         internalOutboundBuilder.setField(DocumentFieldsPFTD.ORDER, order);
@@ -300,7 +334,11 @@ public final class ProductionTrackingListenerServicePFTD {
         for (Entity outProductRecord : outProductsRecords) {
             if (isFinalProductForOrder(order,
                     outProductRecord.getBelongsToField(TrackingOperationProductOutComponentFields.PRODUCT))) {
-                finalProductRecord = Lists.newArrayList(outProductRecord);
+                if (Objects.isNull(finalProductRecord)) {
+                    finalProductRecord = Lists.newArrayList();
+                }
+
+                finalProductRecord.add(outProductRecord);
             } else {
                 intermediateRecords.add(outProductRecord);
             }
@@ -525,14 +563,13 @@ public final class ProductionTrackingListenerServicePFTD {
 
         boolean isFinalProduct = false;
 
-        Entity productionTracking = null;
+        Map<Long, Entity> productionTrackings = Maps.newLinkedHashMap();
         for (Entity outProductRecord : outProductsRecords) {
             Entity outProduct = outProductRecord.getBelongsToField(TrackingOperationProductOutComponentFields.PRODUCT);
 
-            if (Objects.isNull(productionTracking)) {
-                productionTracking = outProductRecord
-                        .getBelongsToField(TrackingOperationProductOutComponentFields.PRODUCTION_TRACKING);
-            }
+            Entity productionTracking = outProductRecord
+                    .getBelongsToField(TrackingOperationProductOutComponentFields.PRODUCTION_TRACKING);
+            productionTrackings.putIfAbsent(productionTracking.getId(), productionTracking);
             if (isFinalProductForOrder(order, outProduct)) {
                 isFinalProduct = true;
             }
@@ -596,7 +633,7 @@ public final class ProductionTrackingListenerServicePFTD {
         internalInboundBuilder.setField(DocumentFieldsPFTD.ORDER, order);
 
         if (OrderState.COMPLETED.equals(OrderState.of(order)) || !isFinalProduct || isBasedOnNominalCost
-                || (Objects.nonNull(productionTracking) && orderClosingHelper.orderShouldBeClosed(productionTracking))) {
+                || productionTrackings.values().stream().anyMatch(orderClosingHelper::orderShouldBeClosed)) {
             internalInboundBuilder.setAccepted();
         }
 
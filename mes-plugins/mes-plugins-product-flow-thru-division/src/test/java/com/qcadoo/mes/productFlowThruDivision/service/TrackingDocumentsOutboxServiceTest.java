@@ -0,0 +1,303 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.productFlowThruDivision.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.Answer;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.util.ClaimQueue;
+import com.qcadoo.mes.productFlowThruDivision.constants.TrackingDocumentsOutboxStatus;
+import com.qcadoo.mes.productFlowThruDivision.states.ProductionTrackingListenerServicePFTD;
+import com.qcadoo.mes.productionCounting.constants.ProductionCountingConstants;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.search.SearchCriteriaBuilder;
+import com.qcadoo.model.api.search.SearchCriterion;
+import com.qcadoo.model.api.search.SearchOrder;
+import com.qcadoo.model.api.search.SearchResult;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+
+public class TrackingDocumentsOutboxServiceTest {
+
+    private static final String L_FINISH_QUERY = "UPDATE productflowthrudivision_trackingdocumentsoutbox SET status = :status";
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private JdbcOperations jdbcOperations;
+
+    @Mock
+    private DataDefinitionService dataDefinitionService;
+
+    @Mock
+    private ProductionTrackingListenerServicePFTD productionTrackingListenerService;
+
+    @Mock
+    private MultiTenantService multiTenantService;
+
+    @Mock
+    private DataDefinition productionTrackingDD;
+
+    @Mock
+    private SearchCriteriaBuilder searchCriteriaBuilder;
+
+    @Mock
+    private SearchResult searchResult;
+
+    @Mock
+    private Entity productionTracking;
+
+    private TrackingDocumentsOutboxService trackingDocumentsOutboxService;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        trackingDocumentsOutboxService = new TrackingDocumentsOutboxService();
+
+        ReflectionTestUtils.setField(trackingDocumentsOutboxService, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(trackingDocumentsOutboxService, "dataDefinitionService", dataDefinitionService);
+        ReflectionTestUtils.setField(trackingDocumentsOutboxService, "productionTrackingListenerService",
+                productionTrackingListenerService);
+        ReflectionTestUtils.setField(trackingDocumentsOutboxService, "multiTenantService", multiTenantService);
+
+        trackingDocumentsOutboxService.init();
+
+        given(jdbcTemplate.getJdbcOperations()).willReturn(jdbcOperations);
+
+        doAnswer(invocation -> {
+            ((MultiTenantCallback) invocation.getArguments()[0]).invoke();
+
+            return null;
+        }).when(multiTenantService).doInMultiTenantContext(any(MultiTenantCallback.class));
+
+        given(dataDefinitionService.get(ProductionCountingConstants.PLUGIN_IDENTIFIER,
+                ProductionCountingConstants.MODEL_PRODUCTION_TRACKING)).willReturn(productionTrackingDD);
+        given(productionTrackingDD.find()).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.add(any(SearchCriterion.class))).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.addOrder(any(SearchOrder.class))).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.list()).willReturn(searchResult);
+        given(searchResult.getEntities()).willReturn(Collections.singletonList(productionTracking));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void shouldClaimDueRowsOfOneOrderUnderLock() {
+        // when
+        trackingDocumentsOutboxService.claimOrder();
+
+        // then
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcOperations).execute(
+                "SELECT pg_advisory_xact_lock(hashtext('productflowthrudivision_trackingdocumentsoutbox'))");
+        verify(jdbcTemplate).query(queryCaptor.capture(), parametersCaptor.capture(), any(RowMapper.class));
+
+        String query = queryCaptor.getValue();
+        Map<String, Object> parameters = parametersCaptor.getValue();
+
+        assertTrue(query.contains("WHERE o.status = :waiting AND o.nextattemptdate <= now() AND o.order_id = ("));
+        assertTrue(query.contains("WHERE w.status = :waiting AND w.nextattemptdate <= now() AND NOT EXISTS ("));
+        assertTrue(query.contains("WHERE p.status = :inProgress AND p.order_id = w.order_id) ORDER BY w.id LIMIT 1"));
+        assertTrue(query.contains("claimedby = :node"));
+        assertEquals(ClaimQueue.NODE_NAME, parameters.get(ClaimQueue.NODE));
+        assertEquals(TrackingDocumentsOutboxStatus.WAITING.getStringValue(), parameters.get(ClaimQueue.WAITING));
+        assertEquals(TrackingDocumentsOutboxStatus.IN_PROGRESS.getStringValue(), parameters.get(ClaimQueue.IN_PROGRESS));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void shouldDispatchOrdersOneByOne() {
+        // given
+        given(jdbcTemplate.query(anyString(), anyMapOf(String.class, Object.class), any(RowMapper.class)))
+                .willAnswer(claims(new long[] { 1L, 11L, 100L, 1L }, new long[] { 2L, 12L, 100L, 1L }))
+                .willAnswer(claims(new long[] { 3L, 13L, 200L, 1L })).willReturn(Collections.emptyList());
+
+        // when
+        trackingDocumentsOutboxService.dispatch();
+
+        // then
+        InOrder inOrder = inOrder(jdbcTemplate, productionTrackingListenerService);
+
+        for (int order = 0; order < 2; order++) {
+            inOrder.verify(jdbcTemplate).query(anyString(), anyMapOf(String.class, Object.class), any(RowMapper.class));
+            inOrder.verify(productionTrackingListenerService).createWarehouseDocuments(productionTracking,
+                    Collections.singletonList(productionTracking));
+            inOrder.verify(jdbcTemplate).update(startsWith(L_FINISH_QUERY), anyMapOf(String.class, Object.class));
+        }
+
+        inOrder.verify(jdbcTemplate).query(anyString(), anyMapOf(String.class, Object.class), any(RowMapper.class));
+
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcTemplate, times(2)).update(startsWith(L_FINISH_QUERY), parametersCaptor.capture());
+
+        assertEquals(Arrays.asList(1L, 2L), parametersCaptor.getAllValues().get(0).get(ClaimQueue.IDS));
+        assertEquals(TrackingDocumentsOutboxStatus.DONE.getStringValue(),
+                parametersCaptor.getAllValues().get(0).get(ClaimQueue.STATUS));
+        assertEquals(Collections.singletonList(3L), parametersCaptor.getAllValues().get(1).get(ClaimQueue.IDS));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void shouldRetryFailedDispatchWithBackoff() {
+        // given
+        given(jdbcTemplate.query(anyString(), anyMapOf(String.class, Object.class), any(RowMapper.class)))
+                .willAnswer(claims(new long[] { 1L, 11L, 100L, 2L }, new long[] { 2L, 12L, 100L, 3L }))
+                .willReturn(Collections.emptyList());
+        given(productionTrackingDD.find()).willThrow(new IllegalStateException("Connection reset"));
+
+        // when
+        trackingDocumentsOutboxService.dispatch();
+
+        // then
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcTemplate).update(startsWith(L_FINISH_QUERY), parametersCaptor.capture());
+
+        Map<String, Object> parameters = parametersCaptor.getValue();
+
+        assertEquals(Arrays.asList(1L, 2L), parameters.get(ClaimQueue.IDS));
+        assertEquals(TrackingDocumentsOutboxStatus.WAITING.getStringValue(), parameters.get(ClaimQueue.STATUS));
+        assertEquals(true, parameters.get("retry"));
+        assertEquals(ClaimQueue.getRetryDelaySeconds(3), parameters.get("retryDelaySeconds"));
+        assertEquals("Connection reset", parameters.get(ClaimQueue.ERROR_MESSAGE));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void shouldFailDispatchWithoutAttemptsLeft() {
+        // given
+        given(jdbcTemplate.query(anyString(), anyMapOf(String.class, Object.class), any(RowMapper.class)))
+                .willAnswer(claims(new long[] { 1L, 11L, 100L, ClaimQueue.MAX_ATTEMPTS })).willReturn(Collections.emptyList());
+        given(productionTrackingDD.find()).willThrow(new IllegalStateException("Connection reset"));
+
+        // when
+        trackingDocumentsOutboxService.dispatch();
+
+        // then
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+
+        verify(jdbcTemplate).update(startsWith(L_FINISH_QUERY), parametersCaptor.capture());
+
+        assertEquals(TrackingDocumentsOutboxStatus.FAILED.getStringValue(), parametersCaptor.getValue().get(ClaimQueue.STATUS));
+        assertEquals(false, parametersCaptor.getValue().get("retry"));
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void shouldTakeOverStaleClaimsBeforeClaiming() {
+        // when
+        trackingDocumentsOutboxService.dispatch();
+
+        // then
+        ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<Map> parametersCaptor = ArgumentCaptor.forClass(Map.class);
+        InOrder inOrder = inOrder(jdbcTemplate, jdbcOperations);
+
+        inOrder.verify(jdbcTemplate).queryForList(queryCaptor.capture(), parametersCaptor.capture());
+        inOrder.verify(jdbcOperations).execute(anyString());
+        inOrder.verify(jdbcTemplate).query(anyString(), anyMapOf(String.class, Object.class), any(RowMapper.class));
+
+        assertTrue(queryCaptor.getValue().startsWith("UPDATE productflowthrudivision_trackingdocumentsoutbox q SET "));
+        assertTrue(queryCaptor.getValue().endsWith("WHERE q.status = :inProgress AND q.claimedby <> :node "
+                + "AND GREATEST(q.claimdate, q.heartbeatdate) < now() - :staleClaimMinutes * INTERVAL '1 minute' "
+                + "RETURNING q.order_id"));
+        assertEquals("Dispatch claim of node expired", parametersCaptor.getValue().get(ClaimQueue.ERROR_MESSAGE));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldRefreshHeartbeatOfClaimsWhileDispatching() {
+        // given
+        ((AtomicBoolean) ReflectionTestUtils.getField(trackingDocumentsOutboxService, "dispatching")).set(true);
+        ((Set<Long>) ReflectionTestUtils.getField(trackingDocumentsOutboxService, "claimedIds")).add(1L);
+
+        // when
+        trackingDocumentsOutboxService.dispatchTrigger();
+
+        // then
+        verify(jdbcTemplate).update(
+                startsWith("UPDATE productflowthrudivision_trackingdocumentsoutbox SET heartbeatdate = now()"),
+                anyMapOf(String.class, Object.class));
+        verify(jdbcTemplate, never()).query(anyString(), anyMapOf(String.class, Object.class), any(RowMapper.class));
+    }
+
+    private Answer<List<Object>> claims(final long[]... rows) {
+        return invocation -> {
+            RowMapper<?> rowMapper = (RowMapper<?>) invocation.getArguments()[2];
+            List<Object> claims = Lists.newArrayList();
+
+            for (int rowNum = 0; rowNum < rows.length; rowNum++) {
+                ResultSet resultSet = mock(ResultSet.class);
+
+                given(resultSet.getLong(ClaimQueue.ID)).willReturn(rows[rowNum][0]);
+                given(resultSet.getLong("productiontracking_id")).willReturn(rows[rowNum][1]);
+                given(resultSet.getLong("order_id")).willReturn(rows[rowNum][2]);
+                given(resultSet.getInt(ClaimQueue.ATTEMPTS)).willReturn((int) rows[rowNum][3]);
+
+                claims.add(rowMapper.mapRow(resultSet, rowNum));
+            }
+
+            return claims;
+        };
+    }
+
+}
@@ -7,19 +7,57 @@ import com.qcadoo.mes.productionCounting.xls.dto.*;
 import com.qcadoo.model.api.Entity;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.BeanPropertyRowMapper;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Repository;
 
+import javax.annotation.PostConstruct;
+
+import java.math.BigDecimal;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Repository
 class ProductionBalanceRepository {
 
+    private static final int FETCH_SIZE = 500;
+
     @Autowired
     private NamedParameterJdbcTemplate jdbcTemplate;
 
-    List<ProducedQuantity> getProducedQuantities(final List<Long> ordersIds) {
+    private NamedParameterJdbcTemplate streamingJdbcTemplate;
+
+    @PostConstruct
+    public void init() {
+        JdbcTemplate streamingJdbcOperations = new JdbcTemplate(
+                ((JdbcTemplate) jdbcTemplate.getJdbcOperations()).getDataSource());
+        streamingJdbcOperations.setFetchSize(FETCH_SIZE);
+        streamingJdbcTemplate = new NamedParameterJdbcTemplate(streamingJdbcOperations);
+    }
+
+    private <T> void query(final String query, final List<Long> ordersIds, final Class<T> dtoClass, final Consumer<T> consumer) {
+        RowMapper<T> rowMapper = BeanPropertyRowMapper.newInstance(dtoClass);
+
+        streamingJdbcTemplate.query(query, new MapSqlParameterSource("ordersIds", ordersIds),
+                (RowCallbackHandler) resultSet -> consumer.accept(rowMapper.mapRow(resultSet, resultSet.getRow())));
+    }
+
+    List<Long> getOrdersIdsSortedByNumber(final List<Long> ordersIds) {
+        if (ordersIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        return jdbcTemplate.queryForList("SELECT id FROM orders_order WHERE id IN (:ordersIds) ORDER BY number",
+                new MapSqlParameterSource("ordersIds", ordersIds), Long.class);
+    }
+
+    void processProducedQuantities(final List<Long> ordersIds, final Consumer<ProducedQuantity> consumer) {
         StringBuilder query = new StringBuilder();
         query.append("SELECT ");
         query.append("o.number AS orderNumber, ");
@@ -53,8 +91,7 @@ class ProductionBalanceRepository {
         query.append("GROUP BY orderNumber, productNumber, productName, productUnit, prodWaste.producedWastes ");
         query.append("ORDER BY orderNumber ");
 
-        return jdbcTemplate.query(query.toString(), new MapSqlParameterSource("ordersIds", ordersIds),
-                BeanPropertyRowMapper.newInstance(ProducedQuantity.class));
+        query(query.toString(), ordersIds, ProducedQuantity.class, consumer);
     }
 
     private void appendProducedQuantity(StringBuilder query) {
@@ -65,7 +102,7 @@ class ProductionBalanceRepository {
         query.append("WHERE o.id IN (:ordersIds) ");
     }
 
-    List<MaterialCost> getMaterialCosts(Entity entity, List<Long> ordersIds) {
+    void processMaterialCosts(Entity entity, List<Long> ordersIds, Consumer<MaterialCost> consumer) {
         StringBuilder query = new StringBuilder();
         appendCumulatedPlannedQuantities(query);
         appendMaterialCostsSelectionClause(query, entity);
@@ -92,8 +129,7 @@ class ProductionBalanceRepository {
         query.append("GROUP BY o.id, o.number, op.number, p.number, p.name, p.unit, topic.wasteunit, q.replacementTo) ");
         query.append("ORDER BY orderNumber, operationNumber, productNumber ");
 
-        return jdbcTemplate.query(query.toString(), new MapSqlParameterSource("ordersIds", ordersIds),
-                BeanPropertyRowMapper.newInstance(MaterialCost.class));
+        query(query.toString(), ordersIds, MaterialCost.class, consumer);
     }
 
     private void appendForEachPlannedQuantities(StringBuilder query) {
@@ -248,7 +284,7 @@ class ProductionBalanceRepository {
         query.append("(COALESCE(SUM(topic.usedquantity), 0) - MIN(q.childsQuantity)) ");
     }
 
-    List<PieceworkDetails> getPieceworkDetails(List<Long> ordersIds) {
+    void processPieceworkDetails(List<Long> ordersIds, Consumer<PieceworkDetails> consumer) {
         StringBuilder query = new StringBuilder();
         query.append("SELECT ");
         query.append("o.number AS orderNumber, ");
@@ -263,11 +299,10 @@ class ProductionBalanceRepository {
         query.append("GROUP BY orderNumber, operationNumber ");
         query.append("ORDER BY orderNumber, operationNumber ");
 
-        return jdbcTemplate.query(query.toString(), new MapSqlParameterSource("ordersIds", ordersIds),
-                BeanPropertyRowMapper.newInstance(PieceworkDetails.class));
+        query(query.toString(), ordersIds, PieceworkDetails.class, consumer);
     }
 
-    List<LaborTime> getLaborTime(List<Long> ordersIds) {
+    void processLaborTime(List<Long> ordersIds, Consumer<LaborTime> consumer) {
         StringBuilder query = new StringBuilder();
         query.append("SELECT ");
         query.append("o.number AS orderNumber, ");
@@ -290,11 +325,10 @@ class ProductionBalanceRepository {
                 "GROUP BY orderNumber, operationNumber, staffNumber, staffName, staffSurname, staffLaborHourlyCost, wageGroupName ");
         query.append("ORDER BY orderNumber, operationNumber, staffNumber ");
 
-        return jdbcTemplate.query(query.toString(), new MapSqlParameterSource("ordersIds", ordersIds),
-                BeanPropertyRowMapper.newInstance(LaborTime.class));
+        query(query.toString(), ordersIds, LaborTime.class, consumer);
     }
 
-    List<LaborTimeDetails> getLaborTimeDetails(Entity entity, List<Long> ordersIds) {
+    void processLaborTimeDetails(Entity entity, List<Long> ordersIds, Consumer<LaborTimeDetails> consumer) {
         StringBuilder query = new StringBuilder();
         query.append("(WITH planned_time (order_id, staff_time, machine_time) AS (SELECT o.id AS orderId, ");
         appendPlannedStaffTime(entity, query);
@@ -404,11 +438,10 @@ class ProductionBalanceRepository {
         query.append("AND o.typeofproductionrecording = '03forEach') ");
         query.append("ORDER BY orderNumber, operationNumber, staffNumber ");
 
-        return jdbcTemplate.query(query.toString(), new MapSqlParameterSource("ordersIds", ordersIds),
-                BeanPropertyRowMapper.newInstance(LaborTimeDetails.class));
+        query(query.toString(), ordersIds, LaborTimeDetails.class, consumer);
     }
 
-    List<ProductionCost> getProductionCosts(Entity entity, List<Long> ordersIds) {
+    void processProductionCosts(Entity entity, List<Long> ordersIds, Consumer<ProductionCost> consumer) {
         StringBuilder query = new StringBuilder();
         query.append("(WITH planned_time (order_id, staff_time, machine_time) AS (SELECT o.id AS orderId, ");
         appendPlannedStaffTime(entity, query);
@@ -549,8 +582,7 @@ class ProductionBalanceRepository {
         query.append("GROUP BY orderId, orderNumber, toc.id, operationNumber) ");
         query.append("ORDER BY orderNumber, operationNumber ");
 
-        return jdbcTemplate.query(query.toString(), new MapSqlParameterSource("ordersIds", ordersIds),
-                BeanPropertyRowMapper.newInstance(ProductionCost.class));
+        query(query.toString(), ordersIds, ProductionCost.class, consumer);
     }
 
     private void appendRealStaffCosts(Entity entity, StringBuilder query, String typeOfProductionRecording) {
@@ -695,10 +727,10 @@ class ProductionBalanceRepository {
         }
     }
 
-    List<OrderBalance> getOrdersBalance(Entity entity, List<Long> ordersIds, List<MaterialCost> materialCosts,
-            List<ProductionCost> productionCosts) {
+    List<OrderBalance> getOrdersBalance(Entity entity, List<Long> ordersIds, Map<Long, BigDecimal> materialCosts,
+            Map<Long, BigDecimal> productionCosts) {
         StringBuilder query = new StringBuilder();
-        appendOrdersBalanceWithQueries(materialCosts, productionCosts, query);
+        appendOrdersBalanceWithQueries(ordersIds, materialCosts, productionCosts, query);
         appendOrdersBalanceSelectionClause(entity, query);
         query.append("MIN(COALESCE(gmc.cost, 0)) AS materialCosts, ");
         query.append("MIN(gpc.cost) AS productionCosts, ");
@@ -736,35 +768,29 @@ class ProductionBalanceRepository {
                 BeanPropertyRowMapper.newInstance(OrderBalance.class));
     }
 
-    private void appendOrdersBalanceWithQueries(List<MaterialCost> materialCosts, List<ProductionCost> productionCosts,
-            StringBuilder query) {
+    private void appendOrdersBalanceWithQueries(List<Long> ordersIds, Map<Long, BigDecimal> materialCosts,
+            Map<Long, BigDecimal> productionCosts, StringBuilder query) {
         query.append("WITH real_material_cost (order_id, cost) AS (VALUES ");
-        if (materialCosts.isEmpty()) {
-            query.append("(NULL::numeric, NULL::numeric) ");
-        } else {
-            for (int i = 0; i < materialCosts.size(); i++) {
-                MaterialCost materialCost = materialCosts.get(i);
-                query.append("(" + materialCost.getOrderId() + ", " + materialCost.getRealCost() + ") ");
-                if (i != materialCosts.size() - 1) {
-                    query.append(", ");
-                }
-            }
-        }
+        appendOrdersCosts(ordersIds, materialCosts, query);
         query.append("), ");
         query.append("grouped_material_cost AS (SELECT order_id, SUM(cost) AS cost FROM real_material_cost GROUP BY order_id), ");
         query.append("real_production_cost (order_id, cost) AS (VALUES ");
-        for (int i = 0; i < productionCosts.size(); i++) {
-            ProductionCost productionCost = productionCosts.get(i);
-            query.append("(" + productionCost.getOrderId() + ", " + productionCost.getRealCostsSum() + ") ");
-            if (i != productionCosts.size() - 1) {
-                query.append(", ");
-            }
-        }
+        appendOrdersCosts(ordersIds, productionCosts, query);
         query.append("), ");
         query.append(
                 "grouped_production_cost AS (SELECT order_id, SUM(cost) AS cost FROM real_production_cost GROUP BY order_id) ");
     }
 
+    private void appendOrdersCosts(List<Long> ordersIds, Map<Long, BigDecimal> costs, StringBuilder query) {
+        List<String> values = ordersIds.stream().filter(costs::containsKey)
+                .map(orderId -> "(" + orderId + ", " + costs.get(orderId) + ") ").collect(Collectors.toList());
+        if (values.isEmpty()) {
+            query.append("(NULL::numeric, NULL::numeric) ");
+        } else {
+            query.append(String.join(", ", values));
+        }
+    }
+
     private void appendOrdersBalanceSelectionClause(Entity entity, StringBuilder query) {
         query.append("SELECT ");
         query.append("o.id AS orderId, ");
@@ -1101,7 +1127,7 @@ class ProductionBalanceRepository {
         query.append("FROM component_balance GROUP BY product_id) ");
     }
 
-    List<Stoppage> getStoppages(List<Long> ordersIds) {
+    void processStoppages(List<Long> ordersIds, Consumer<Stoppage> consumer) {
         StringBuilder query = new StringBuilder();
         query.append("SELECT ");
         query.append("o.number AS orderNumber, ");
@@ -1128,7 +1154,6 @@ class ProductionBalanceRepository {
         appendWhereClause(query);
         query.append("ORDER BY orderNumber, productionTrackingNumber, dateFrom ");
 
-        return jdbcTemplate.query(query.toString(), new MapSqlParameterSource("ordersIds", ordersIds),
-                BeanPropertyRowMapper.newInstance(Stoppage.class));
+        query(query.toString(), ordersIds, Stoppage.class, consumer);
     }
 }
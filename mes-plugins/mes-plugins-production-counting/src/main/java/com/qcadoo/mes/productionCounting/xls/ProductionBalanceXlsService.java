@@ -1,6 +1,7 @@
 package com.qcadoo.mes.productionCounting.xls;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.qcadoo.localization.api.TranslationService;
 import com.qcadoo.mes.productionCounting.constants.ProductionBalanceFields;
 import com.qcadoo.mes.productionCounting.xls.dto.*;
@@ -12,6 +13,8 @@ import java.math.BigDecimal;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.apache.poi.hssf.usermodel.HSSFCell;
@@ -24,6 +27,7 @@ import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.IndexedColors;
 import org.apache.poi.xssf.usermodel.XSSFCellStyle;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -38,6 +42,9 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
     @Autowired
     private ProductionBalanceRepository productionBalanceRepository;
 
+    @Value("${productionBalanceXlsOrdersChunkSize:200}")
+    private int ordersChunkSize;
+
     private static final List<String> PRODUCTION_QUANTITIES_HEADERS = Lists.newArrayList("orderNumber", "productNumber",
             "productName", "plannedQuantity", "producedQuantity", "wastesQuantity", "producedWastes", "deviation", "productUnit");
 
@@ -73,14 +80,13 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
     @Override
     protected void addExtraSheets(final HSSFWorkbook workbook, Entity entity, Locale locale) {
         List<Long> ordersIds = getOrdersIds(entity);
-        List<MaterialCost> materialCosts = productionBalanceRepository.getMaterialCosts(entity, ordersIds);
-        createMaterialCostsSheet(materialCosts, createSheet(workbook,
+        Map<Long, BigDecimal> materialCosts = Maps.newHashMap();
+        createMaterialCostsSheet(entity, ordersIds, materialCosts, createSheet(workbook,
                 translationService.translate("productionCounting.productionBalance.report.xls.sheet.materialCosts", locale)),
                 locale);
         createLaborTimeSheet(createSheet(workbook, translationService.translate(LaborTimeSheetConstants.SHEET_TITLE, locale)),
                 ordersIds, locale);
-        List<LaborTimeDetails> laborTimeDetailsList = productionBalanceRepository.getLaborTimeDetails(entity, ordersIds);
-        createLaborTimeDetailsSheet(laborTimeDetailsList, createSheet(workbook,
+        createLaborTimeDetailsSheet(entity, ordersIds, createSheet(workbook,
                 translationService.translate("productionCounting.productionBalance.report.xls.sheet.laborTimeDetails", locale)),
                 locale);
         createPieceworkSheet(createSheet(workbook, translationService.translate(PieceworkSheetConstants.SHEET_TITLE, locale)),
@@ -89,12 +95,15 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
                 createSheet(workbook,
                         translationService.translate("productionCounting.productionBalance.report.xls.sheet.stoppages", locale)),
                 ordersIds, locale);
-        List<ProductionCost> productionCosts = productionBalanceRepository.getProductionCosts(entity, ordersIds);
-        createProductionCostsSheet(productionCosts, createSheet(workbook,
+        Map<Long, BigDecimal> productionCosts = Maps.newHashMap();
+        createProductionCostsSheet(entity, ordersIds, productionCosts, createSheet(workbook,
                 translationService.translate("productionCounting.productionBalance.report.xls.sheet.productionCosts", locale)),
                 locale);
-        List<OrderBalance> ordersBalance = productionBalanceRepository.getOrdersBalance(entity, ordersIds, materialCosts,
-                productionCosts);
+        List<OrderBalance> ordersBalance = Lists.newArrayList();
+        for (List<Long> ordersIdsChunk : partition(ordersIds)) {
+            ordersBalance.addAll(productionBalanceRepository.getOrdersBalance(entity, ordersIdsChunk, materialCosts,
+                    productionCosts));
+        }
         createOrdersBalanceSheet(ordersBalance, createSheet(workbook,
                 translationService.translate("productionCounting.productionBalance.report.xls.sheet.ordersBalance", locale)),
                 locale);
@@ -111,24 +120,38 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
     private List<Long> getOrdersIds(final Entity productionBalance) {
 
         List<Entity> orders = productionBalance.getHasManyField(ProductionBalanceFields.ORDERS);
-        return orders.stream().map(Entity::getId).collect(Collectors.toList());
+        return productionBalanceRepository.getOrdersIdsSortedByNumber(orders.stream().map(Entity::getId)
+                .collect(Collectors.toList()));
+    }
+
+    private List<List<Long>> partition(final List<Long> ordersIds) {
+        return Lists.partition(ordersIds, Math.max(ordersChunkSize, 1));
+    }
+
+    private static void addCost(final Map<Long, BigDecimal> costs, final Long orderId, final BigDecimal cost) {
+        if (!costs.containsKey(orderId)) {
+            costs.put(orderId, cost);
+        } else if (cost != null) {
+            BigDecimal currentCost = costs.get(orderId);
+            costs.put(orderId, currentCost == null ? cost : currentCost.add(cost));
+        }
     }
 
     private void createProducedQuantitiesSheet(HSSFSheet sheet, List<Long> ordersIds, StylesContainer stylesContainer) {
-        List<ProducedQuantity> producedQuantities = productionBalanceRepository.getProducedQuantities(ordersIds);
-        int rowIndex = 1;
-        for (ProducedQuantity producedQuantity : producedQuantities) {
-            HSSFRow row = sheet.createRow(rowIndex);
-            createRegularCell(stylesContainer, row, 0, producedQuantity.getOrderNumber());
-            createRegularCell(stylesContainer, row, 1, producedQuantity.getProductNumber());
-            createRegularCell(stylesContainer, row, 2, producedQuantity.getProductName());
-            createNumericCell(stylesContainer, row, 3, producedQuantity.getPlannedQuantity(), false);
-            createNumericCell(stylesContainer, row, 4, producedQuantity.getProducedQuantity(), true);
-            createNumericCell(stylesContainer, row, 5, producedQuantity.getWastesQuantity(), false);
-            createNumericCell(stylesContainer, row, 6, producedQuantity.getProducedWastes(), false);
-            createNumericCell(stylesContainer, row, 7, producedQuantity.getDeviation(), false);
-            createRegularCell(stylesContainer, row, 8, producedQuantity.getProductUnit());
-            rowIndex++;
+        AtomicInteger rowIndex = new AtomicInteger(1);
+        for (List<Long> ordersIdsChunk : partition(ordersIds)) {
+            productionBalanceRepository.processProducedQuantities(ordersIdsChunk, producedQuantity -> {
+                HSSFRow row = sheet.createRow(rowIndex.getAndIncrement());
+                createRegularCell(stylesContainer, row, 0, producedQuantity.getOrderNumber());
+                createRegularCell(stylesContainer, row, 1, producedQuantity.getProductNumber());
+                createRegularCell(stylesContainer, row, 2, producedQuantity.getProductName());
+                createNumericCell(stylesContainer, row, 3, producedQuantity.getPlannedQuantity(), false);
+                createNumericCell(stylesContainer, row, 4, producedQuantity.getProducedQuantity(), true);
+                createNumericCell(stylesContainer, row, 5, producedQuantity.getWastesQuantity(), false);
+                createNumericCell(stylesContainer, row, 6, producedQuantity.getProducedWastes(), false);
+                createNumericCell(stylesContainer, row, 7, producedQuantity.getDeviation(), false);
+                createRegularCell(stylesContainer, row, 8, producedQuantity.getProductUnit());
+            });
         }
 
         for (int i = 0; i < PRODUCTION_QUANTITIES_HEADERS.size(); i++) {
@@ -136,7 +159,8 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
         }
     }
 
-    private void createMaterialCostsSheet(List<MaterialCost> materialCosts, HSSFSheet sheet, Locale locale) {
+    private void createMaterialCostsSheet(Entity entity, List<Long> ordersIds, Map<Long, BigDecimal> materialCosts,
+            HSSFSheet sheet, Locale locale) {
         final FontsContainer fontsContainer = new FontsContainer(sheet.getWorkbook());
         final StylesContainer stylesContainer = new StylesContainer(sheet.getWorkbook(), fontsContainer);
         final int rowOffset = 1;
@@ -196,24 +220,26 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
                 translationService.translate("productionCounting.productionBalance.report.xls.sheet.materialCosts.unit", locale),
                 13, CellStyle.ALIGN_LEFT);
 
-        int rowCounter = 0;
-        for (MaterialCost materialCost : materialCosts) {
-            row = sheet.createRow(rowOffset + rowCounter);
-            createRegularCell(stylesContainer, row, 0, materialCost.getOrderNumber());
-            createRegularCell(stylesContainer, row, 1, materialCost.getOperationNumber());
-            createRegularCell(stylesContainer, row, 2, materialCost.getProductNumber());
-            createRegularCell(stylesContainer, row, 3, materialCost.getProductName());
-            createRegularCell(stylesContainer, row, 4, materialCost.getReplacementTo());
-            createNumericCell(stylesContainer, row, 5, materialCost.getPlannedQuantity(), false);
-            createNumericCell(stylesContainer, row, 6, materialCost.getUsedQuantity(), true);
-            createNumericCell(stylesContainer, row, 7, materialCost.getQuantitativeDeviation(), false);
-            createRegularCell(stylesContainer, row, 8, materialCost.getProductUnit());
-            createNumericCell(stylesContainer, row, 9, materialCost.getPlannedCost(), false);
-            createNumericCell(stylesContainer, row, 10, materialCost.getRealCost(), true);
-            createNumericCell(stylesContainer, row, 11, materialCost.getValueDeviation(), false);
-            createNumericCell(stylesContainer, row, 12, materialCost.getUsedWasteQuantity(), false);
-            createRegularCell(stylesContainer, row, 13, materialCost.getUsedWasteUnit());
-            rowCounter++;
+        AtomicInteger rowCounter = new AtomicInteger(0);
+        for (List<Long> ordersIdsChunk : partition(ordersIds)) {
+            productionBalanceRepository.processMaterialCosts(entity, ordersIdsChunk, materialCost -> {
+                addCost(materialCosts, materialCost.getOrderId(), materialCost.getRealCost());
+                HSSFRow dataRow = sheet.createRow(rowOffset + rowCounter.getAndIncrement());
+                createRegularCell(stylesContainer, dataRow, 0, materialCost.getOrderNumber());
+                createRegularCell(stylesContainer, dataRow, 1, materialCost.getOperationNumber());
+                createRegularCell(stylesContainer, dataRow, 2, materialCost.getProductNumber());
+                createRegularCell(stylesContainer, dataRow, 3, materialCost.getProductName());
+                createRegularCell(stylesContainer, dataRow, 4, materialCost.getReplacementTo());
+                createNumericCell(stylesContainer, dataRow, 5, materialCost.getPlannedQuantity(), false);
+                createNumericCell(stylesContainer, dataRow, 6, materialCost.getUsedQuantity(), true);
+                createNumericCell(stylesContainer, dataRow, 7, materialCost.getQuantitativeDeviation(), false);
+                createRegularCell(stylesContainer, dataRow, 8, materialCost.getProductUnit());
+                createNumericCell(stylesContainer, dataRow, 9, materialCost.getPlannedCost(), false);
+                createNumericCell(stylesContainer, dataRow, 10, materialCost.getRealCost(), true);
+                createNumericCell(stylesContainer, dataRow, 11, materialCost.getValueDeviation(), false);
+                createNumericCell(stylesContainer, dataRow, 12, materialCost.getUsedWasteQuantity(), false);
+                createRegularCell(stylesContainer, dataRow, 13, materialCost.getUsedWasteUnit());
+            });
         }
         for (int i = 0; i <= 13; i++) {
             sheet.autoSizeColumn(i, false);
@@ -233,14 +259,14 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
                 translationService.translate(PieceworkSheetConstants.TOTAL_EXECUTED_OPERATION_CYCLES, locale), 2,
                 CellStyle.ALIGN_LEFT);
 
-        List<PieceworkDetails> pieceworkDetailsList = productionBalanceRepository.getPieceworkDetails(ordersIds);
-        int rowCounter = 0;
-        for (PieceworkDetails pieceworkDetails : pieceworkDetailsList) {
-            row = sheet.createRow(rowOffset + rowCounter);
-            createRegularCell(stylesContainer, row, 0, pieceworkDetails.getOrderNumber());
-            createRegularCell(stylesContainer, row, 1, pieceworkDetails.getOperationNumber());
-            createNumericCell(stylesContainer, row, 2, pieceworkDetails.getTotalExecutedOperationCycles(), false);
-            rowCounter++;
+        AtomicInteger rowCounter = new AtomicInteger(0);
+        for (List<Long> ordersIdsChunk : partition(ordersIds)) {
+            productionBalanceRepository.processPieceworkDetails(ordersIdsChunk, pieceworkDetails -> {
+                HSSFRow dataRow = sheet.createRow(rowOffset + rowCounter.getAndIncrement());
+                createRegularCell(stylesContainer, dataRow, 0, pieceworkDetails.getOrderNumber());
+                createRegularCell(stylesContainer, dataRow, 1, pieceworkDetails.getOperationNumber());
+                createNumericCell(stylesContainer, dataRow, 2, pieceworkDetails.getTotalExecutedOperationCycles(), false);
+            });
         }
         for (int i = 0; i <= 2; i++) {
             sheet.autoSizeColumn(i, false);
@@ -295,26 +321,26 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
                 translationService.translate("productionCounting.productionBalance.report.xls.sheet.stoppages.worker", locale),
                 11, CellStyle.ALIGN_LEFT);
 
-        List<Stoppage> stoppages = productionBalanceRepository.getStoppages(ordersIds);
-        int rowCounter = 0;
-        for (Stoppage stoppage : stoppages) {
-            row = sheet.createRow(rowOffset + rowCounter);
-            createRegularCell(stylesContainer, row, 0, stoppage.getOrderNumber());
-            createRegularCell(stylesContainer, row, 1, stoppage.getProductionTrackingNumber());
-            createRegularCell(stylesContainer, row, 2,
-                    stoppage.getProductionTrackingState() != null ? translationService.translate(
-                            "productionCounting.productionTracking.state.value." + stoppage.getProductionTrackingState(), locale)
-                            : null);
-            createTimeCell(stylesContainer, row, 3, stoppage.getDuration(), false);
-            createDateTimeCell(stylesContainer, row, 4, stoppage.getDateFrom());
-            createDateTimeCell(stylesContainer, row, 5, stoppage.getDateTo());
-            createRegularCell(stylesContainer, row, 6, stoppage.getReason());
-            createRegularCell(stylesContainer, row, 7, stoppage.getDescription());
-            createRegularCell(stylesContainer, row, 8, stoppage.getDivision());
-            createRegularCell(stylesContainer, row, 9, stoppage.getProductionLine());
-            createRegularCell(stylesContainer, row, 10, stoppage.getWorkstation());
-            createRegularCell(stylesContainer, row, 11, stoppage.getWorker());
-            rowCounter++;
+        AtomicInteger rowCounter = new AtomicInteger(0);
+        for (List<Long> ordersIdsChunk : partition(ordersIds)) {
+            productionBalanceRepository.processStoppages(ordersIdsChunk, stoppage -> {
+                HSSFRow dataRow = sheet.createRow(rowOffset + rowCounter.getAndIncrement());
+                createRegularCell(stylesContainer, dataRow, 0, stoppage.getOrderNumber());
+                createRegularCell(stylesContainer, dataRow, 1, stoppage.getProductionTrackingNumber());
+                createRegularCell(stylesContainer, dataRow, 2,
+                        stoppage.getProductionTrackingState() != null ? translationService.translate(
+                                "productionCounting.productionTracking.state.value." + stoppage.getProductionTrackingState(), locale)
+                                : null);
+                createTimeCell(stylesContainer, dataRow, 3, stoppage.getDuration(), false);
+                createDateTimeCell(stylesContainer, dataRow, 4, stoppage.getDateFrom());
+                createDateTimeCell(stylesContainer, dataRow, 5, stoppage.getDateTo());
+                createRegularCell(stylesContainer, dataRow, 6, stoppage.getReason());
+                createRegularCell(stylesContainer, dataRow, 7, stoppage.getDescription());
+                createRegularCell(stylesContainer, dataRow, 8, stoppage.getDivision());
+                createRegularCell(stylesContainer, dataRow, 9, stoppage.getProductionLine());
+                createRegularCell(stylesContainer, dataRow, 10, stoppage.getWorkstation());
+                createRegularCell(stylesContainer, dataRow, 11, stoppage.getWorker());
+            });
         }
         for (int i = 0; i <= 11; i++) {
             sheet.autoSizeColumn(i, false);
@@ -343,26 +369,26 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
         createHeaderCell(stylesContainer, row, translationService.translate(LaborTimeSheetConstants.LABOR_TIME, locale), 7,
                 CellStyle.ALIGN_LEFT);
 
-        List<LaborTime> laborTimeList = productionBalanceRepository.getLaborTime(ordersIds);
-        int rowCounter = 0;
-        for (LaborTime laborTime : laborTimeList) {
-            row = sheet.createRow(rowOffset + rowCounter);
-            createRegularCell(stylesContainer, row, 0, laborTime.getOrderNumber());
-            createRegularCell(stylesContainer, row, 1, laborTime.getOperationNumber());
-            createRegularCell(stylesContainer, row, 2, laborTime.getStaffNumber());
-            createRegularCell(stylesContainer, row, 3, laborTime.getStaffName());
-            createRegularCell(stylesContainer, row, 4, laborTime.getStaffSurname());
-            createRegularCell(stylesContainer, row, 5, laborTime.getWageGroupName());
-            createNumericCell(stylesContainer, row, 6, laborTime.getStaffLaborHourlyCost(), false);
-            createTimeCell(stylesContainer, row, 7, laborTime.getLaborTime(), false);
-            rowCounter++;
+        AtomicInteger rowCounter = new AtomicInteger(0);
+        for (List<Long> ordersIdsChunk : partition(ordersIds)) {
+            productionBalanceRepository.processLaborTime(ordersIdsChunk, laborTime -> {
+                HSSFRow dataRow = sheet.createRow(rowOffset + rowCounter.getAndIncrement());
+                createRegularCell(stylesContainer, dataRow, 0, laborTime.getOrderNumber());
+                createRegularCell(stylesContainer, dataRow, 1, laborTime.getOperationNumber());
+                createRegularCell(stylesContainer, dataRow, 2, laborTime.getStaffNumber());
+                createRegularCell(stylesContainer, dataRow, 3, laborTime.getStaffName());
+                createRegularCell(stylesContainer, dataRow, 4, laborTime.getStaffSurname());
+                createRegularCell(stylesContainer, dataRow, 5, laborTime.getWageGroupName());
+                createNumericCell(stylesContainer, dataRow, 6, laborTime.getStaffLaborHourlyCost(), false);
+                createTimeCell(stylesContainer, dataRow, 7, laborTime.getLaborTime(), false);
+            });
         }
         for (int i = 0; i <= 7; i++) {
             sheet.autoSizeColumn(i, false);
         }
     }
 
-    private void createLaborTimeDetailsSheet(List<LaborTimeDetails> laborTimeDetailsList, HSSFSheet sheet, Locale locale) {
+    private void createLaborTimeDetailsSheet(Entity entity, List<Long> ordersIds, HSSFSheet sheet, Locale locale) {
         final FontsContainer fontsContainer = new FontsContainer(sheet.getWorkbook());
         final StylesContainer stylesContainer = new StylesContainer(sheet.getWorkbook(), fontsContainer);
         final int rowOffset = 1;
@@ -472,44 +498,46 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
                         "productionCounting.productionBalance.report.xls.sheet.laborTimeDetails.machineTimeDeviation", locale),
                 25, CellStyle.ALIGN_LEFT);
 
-        int rowCounter = 0;
-        for (LaborTimeDetails laborTimeDetails : laborTimeDetailsList) {
-            row = sheet.createRow(rowOffset + rowCounter);
-            createRegularCell(stylesContainer, row, 0, laborTimeDetails.getDivisionNumber());
-            createRegularCell(stylesContainer, row, 1, laborTimeDetails.getProductionLineNumber());
-            createRegularCell(stylesContainer, row, 2, laborTimeDetails.getOrderNumber());
-            createRegularCell(stylesContainer, row, 3, translationService.translate(
-                    "orders.order.state.value." + laborTimeDetails.getOrderState(), locale));
-            createDateTimeCell(stylesContainer, row, 4, laborTimeDetails.getPlannedDateFrom());
-            createDateTimeCell(stylesContainer, row, 5, laborTimeDetails.getEffectiveDateFrom());
-            createDateTimeCell(stylesContainer, row, 6, laborTimeDetails.getPlannedDateTo());
-            createDateTimeCell(stylesContainer, row, 7, laborTimeDetails.getEffectiveDateTo());
-            createRegularCell(stylesContainer, row, 8, laborTimeDetails.getProductNumber());
-            createRegularCell(stylesContainer, row, 9, laborTimeDetails.getOrderName());
-            createNumericCell(stylesContainer, row, 10, laborTimeDetails.getPlannedQuantity(), false);
-            createNumericCell(stylesContainer, row, 11, laborTimeDetails.getAmountOfProductProduced(), false);
-            createRegularCell(stylesContainer, row, 12, laborTimeDetails.getStaffNumber());
-            createRegularCell(stylesContainer, row, 13, laborTimeDetails.getStaffName());
-            createRegularCell(stylesContainer, row, 14, laborTimeDetails.getStaffSurname());
-            createRegularCell(stylesContainer, row, 15, laborTimeDetails.getOperationNumber());
-            createDateTimeCell(stylesContainer, row, 16, laborTimeDetails.getTimeRangeFrom());
-            createDateTimeCell(stylesContainer, row, 17, laborTimeDetails.getTimeRangeTo());
-            createRegularCell(stylesContainer, row, 18, laborTimeDetails.getShiftName());
-            createDateTimeCell(stylesContainer, row, 19, laborTimeDetails.getCreateDate());
-            createTimeCell(stylesContainer, row, 20, laborTimeDetails.getLaborTime(), false);
-            createTimeCell(stylesContainer, row, 21, laborTimeDetails.getPlannedLaborTime(), false);
-            createTimeCell(stylesContainer, row, 22, laborTimeDetails.getLaborTimeDeviation(), false);
-            createTimeCell(stylesContainer, row, 23, laborTimeDetails.getMachineTime(), false);
-            createTimeCell(stylesContainer, row, 24, laborTimeDetails.getPlannedMachineTime(), false);
-            createTimeCell(stylesContainer, row, 25, laborTimeDetails.getMachineTimeDeviation(), false);
-            rowCounter++;
+        AtomicInteger rowCounter = new AtomicInteger(0);
+        for (List<Long> ordersIdsChunk : partition(ordersIds)) {
+            productionBalanceRepository.processLaborTimeDetails(entity, ordersIdsChunk, laborTimeDetails -> {
+                HSSFRow dataRow = sheet.createRow(rowOffset + rowCounter.getAndIncrement());
+                createRegularCell(stylesContainer, dataRow, 0, laborTimeDetails.getDivisionNumber());
+                createRegularCell(stylesContainer, dataRow, 1, laborTimeDetails.getProductionLineNumber());
+                createRegularCell(stylesContainer, dataRow, 2, laborTimeDetails.getOrderNumber());
+                createRegularCell(stylesContainer, dataRow, 3, translationService.translate(
+                        "orders.order.state.value." + laborTimeDetails.getOrderState(), locale));
+                createDateTimeCell(stylesContainer, dataRow, 4, laborTimeDetails.getPlannedDateFrom());
+                createDateTimeCell(stylesContainer, dataRow, 5, laborTimeDetails.getEffectiveDateFrom());
+                createDateTimeCell(stylesContainer, dataRow, 6, laborTimeDetails.getPlannedDateTo());
+                createDateTimeCell(stylesContainer, dataRow, 7, laborTimeDetails.getEffectiveDateTo());
+                createRegularCell(stylesContainer, dataRow, 8, laborTimeDetails.getProductNumber());
+                createRegularCell(stylesContainer, dataRow, 9, laborTimeDetails.getOrderName());
+                createNumericCell(stylesContainer, dataRow, 10, laborTimeDetails.getPlannedQuantity(), false);
+                createNumericCell(stylesContainer, dataRow, 11, laborTimeDetails.getAmountOfProductProduced(), false);
+                createRegularCell(stylesContainer, dataRow, 12, laborTimeDetails.getStaffNumber());
+                createRegularCell(stylesContainer, dataRow, 13, laborTimeDetails.getStaffName());
+                createRegularCell(stylesContainer, dataRow, 14, laborTimeDetails.getStaffSurname());
+                createRegularCell(stylesContainer, dataRow, 15, laborTimeDetails.getOperationNumber());
+                createDateTimeCell(stylesContainer, dataRow, 16, laborTimeDetails.getTimeRangeFrom());
+                createDateTimeCell(stylesContainer, dataRow, 17, laborTimeDetails.getTimeRangeTo());
+                createRegularCell(stylesContainer, dataRow, 18, laborTimeDetails.getShiftName());
+                createDateTimeCell(stylesContainer, dataRow, 19, laborTimeDetails.getCreateDate());
+                createTimeCell(stylesContainer, dataRow, 20, laborTimeDetails.getLaborTime(), false);
+                createTimeCell(stylesContainer, dataRow, 21, laborTimeDetails.getPlannedLaborTime(), false);
+                createTimeCell(stylesContainer, dataRow, 22, laborTimeDetails.getLaborTimeDeviation(), false);
+                createTimeCell(stylesContainer, dataRow, 23, laborTimeDetails.getMachineTime(), false);
+                createTimeCell(stylesContainer, dataRow, 24, laborTimeDetails.getPlannedMachineTime(), false);
+                createTimeCell(stylesContainer, dataRow, 25, laborTimeDetails.getMachineTimeDeviation(), false);
+            });
         }
         for (int i = 0; i <= 25; i++) {
             sheet.autoSizeColumn(i, false);
         }
     }
 
-    private void createProductionCostsSheet(List<ProductionCost> productionCosts, HSSFSheet sheet, Locale locale) {
+    private void createProductionCostsSheet(Entity entity, List<Long> ordersIds, Map<Long, BigDecimal> productionCosts,
+            HSSFSheet sheet, Locale locale) {
         final FontsContainer fontsContainer = new FontsContainer(sheet.getWorkbook());
         final StylesContainer stylesContainer = new StylesContainer(sheet.getWorkbook(), fontsContainer);
         final int rowOffset = 1;
@@ -583,27 +611,29 @@ public class ProductionBalanceXlsService extends XlsDocumentService {
                         "productionCounting.productionBalance.report.xls.sheet.productionCosts.realPieceworkCosts", locale),
                 16, CellStyle.ALIGN_LEFT);
 
-        int rowCounter = 0;
-        for (ProductionCost productionCost : productionCosts) {
-            row = sheet.createRow(rowOffset + rowCounter);
-            createRegularCell(stylesContainer, row, 0, productionCost.getOrderNumber());
-            createRegularCell(stylesContainer, row, 1, productionCost.getOperationNumber());
-            createNumericCell(stylesContainer, row, 2, productionCost.getPlannedCostsSum(), false);
-            createNumericCell(stylesContainer, row, 3, productionCost.getRealCostsSum(), false);
-            createNumericCell(stylesContainer, row, 4, productionCost.getSumCostsDeviation(), false);
-            createTimeCell(stylesContainer, row, 5, productionCost.getPlannedStaffTime(), false);
-            createTimeCell(stylesContainer, row, 6, productionCost.getRealStaffTime(), true);
-            createTimeCell(stylesContainer, row, 7, productionCost.getPlannedMachineTime(), false);
-            createTimeCell(stylesContainer, row, 8, productionCost.getRealMachineTime(), true);
-            createNumericCell(stylesContainer, row, 9, productionCost.getPlannedStaffCosts(), false);
-            createNumericCell(stylesContainer, row, 10, productionCost.getRealStaffCosts(), false);
-            createNumericCell(stylesContainer, row, 11, productionCost.getStaffCostsDeviation(), false);
-            createNumericCell(stylesContainer, row, 12, productionCost.getPlannedMachineCosts(), false);
-            createNumericCell(stylesContainer, row, 13, productionCost.getRealMachineCosts(), false);
-            createNumericCell(stylesContainer, row, 14, productionCost.getMachineCostsDeviation(), false);
-            createNumericCell(stylesContainer, row, 15, productionCost.getPlannedPieceworkCosts(), false);
-            createNumericCell(stylesContainer, row, 16, productionCost.getRealPieceworkCosts(), false);
-            rowCounter++;
+        AtomicInteger rowCounter = new AtomicInteger(0);
+        for (List<Long> ordersIdsChunk : partition(ordersIds)) {
+            productionBalanceRepository.processProductionCosts(entity, ordersIdsChunk, productionCost -> {
+                addCost(productionCosts, productionCost.getOrderId(), productionCost.getRealCostsSum());
+                HSSFRow dataRow = sheet.createRow(rowOffset + rowCounter.getAndIncrement());
+                createRegularCell(stylesContainer, dataRow, 0, productionCost.getOrderNumber());
+                createRegularCell(stylesContainer, dataRow, 1, productionCost.getOperationNumber());
+                createNumericCell(stylesContainer, dataRow, 2, productionCost.getPlannedCostsSum(), false);
+                createNumericCell(stylesContainer, dataRow, 3, productionCost.getRealCostsSum(), false);
+                createNumericCell(stylesContainer, dataRow, 4, productionCost.getSumCostsDeviation(), false);
+                createTimeCell(stylesContainer, dataRow, 5, productionCost.getPlannedStaffTime(), false);
+                createTimeCell(stylesContainer, dataRow, 6, productionCost.getRealStaffTime(), true);
+                createTimeCell(stylesContainer, dataRow, 7, productionCost.getPlannedMachineTime(), false);
+                createTimeCell(stylesContainer, dataRow, 8, productionCost.getRealMachineTime(), true);
+                createNumericCell(stylesContainer, dataRow, 9, productionCost.getPlannedStaffCosts(), false);
+                createNumericCell(stylesContainer, dataRow, 10, productionCost.getRealStaffCosts(), false);
+                createNumericCell(stylesContainer, dataRow, 11, productionCost.getStaffCostsDeviation(), false);
+                createNumericCell(stylesContainer, dataRow, 12, productionCost.getPlannedMachineCosts(), false);
+                createNumericCell(stylesContainer, dataRow, 13, productionCost.getRealMachineCosts(), false);
+                createNumericCell(stylesContainer, dataRow, 14, productionCost.getMachineCostsDeviation(), false);
+                createNumericCell(stylesContainer, dataRow, 15, productionCost.getPlannedPieceworkCosts(), false);
+                createNumericCell(stylesContainer, dataRow, 16, productionCost.getRealPieceworkCosts(), false);
+            });
         }
         for (int i = 0; i <= 16; i++) {
             sheet.autoSizeColumn(i, false);
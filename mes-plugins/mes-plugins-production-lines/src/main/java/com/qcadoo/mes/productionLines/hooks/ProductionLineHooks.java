@@ -23,8 +23,10 @@
  */
 package com.qcadoo.mes.productionLines.hooks;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import com.qcadoo.mes.basic.ShiftCalendarIndexService;
 import com.qcadoo.mes.productionLines.constants.ProductionLineFields;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.Entity;
@@ -32,10 +34,19 @@ import com.qcadoo.model.api.Entity;
 @Service
 public class ProductionLineHooks {
 
+    @Autowired
+    private ShiftCalendarIndexService shiftCalendarIndexService;
+
+    public void onSave(final DataDefinition dataDefinition, final Entity productionLine) {
+        shiftCalendarIndexService.invalidate();
+    }
+
     public boolean onDelete(final DataDefinition dataDefinition, final Entity productionLine) {
         boolean canDelete = productionLine.getManyToManyField(ProductionLineFields.DIVISIONS).isEmpty();
         if (!canDelete) {
             productionLine.addGlobalError("productionLines.productionLine.onDelete.hasDivisions");
+        } else {
+            shiftCalendarIndexService.invalidate();
         }
         return canDelete;
     }
@@ -1,11 +1,14 @@
 package com.qcadoo.mes.productionPerShift.services;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.qcadoo.localization.api.utils.DateUtils;
 import com.qcadoo.mes.basic.ParameterService;
-import com.qcadoo.mes.basic.ShiftExceptionService;
+import com.qcadoo.mes.basic.ShiftCalendarIndexService;
 import com.qcadoo.mes.basic.ShiftsService;
 import com.qcadoo.mes.basic.shift.Shift;
+import com.qcadoo.mes.basic.shift.ShiftCalendarIndex;
 import com.qcadoo.mes.basic.util.DateTimeRange;
 import com.qcadoo.mes.basicProductionCounting.BasicProductionCountingService;
 import com.qcadoo.mes.orders.constants.OrderFields;
@@ -21,15 +24,20 @@ import com.qcadoo.model.api.NumberService;
 import com.qcadoo.model.api.validators.ErrorMessage;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.math.BigDecimal;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 public abstract class PpsBaseAlgorithmService {
 
+    private static final int MAX_DAYS_WITHOUT_WORK = 366;
+
     @Autowired
     private BasicProductionCountingService basicProductionCountingService;
 
@@ -46,13 +54,11 @@ public abstract class PpsBaseAlgorithmService {
     private ShiftsService shiftsService;
 
     @Autowired
-    private ShiftExceptionService shiftExceptionService;
+    private ShiftCalendarIndexService shiftCalendarIndexService;
 
     @Autowired
     private ParameterService parameterService;
 
-    private Map<DailyProgressKey, Entity> dailyProgressesWithTrackingRecords;
-
     public void generateProgressForDays(ProgressForDaysContainer progressForDaysContainer, Entity productionPerShift) {
         Entity order = productionPerShift.getBelongsToField(ProductionPerShiftFields.ORDER);
         if (progressForDaysContainer.getOrder() != null) {
@@ -87,7 +93,10 @@ public abstract class PpsBaseAlgorithmService {
         if (order.getBooleanField(OrderFields.FINAL_PRODUCTION_TRACKING)) {
             plannedQuantity = basicProductionCountingService.getProducedQuantityFromBasicProductionCountings(order);
         }
-        calculateRegisteredQuantity(progressForDaysContainer, order, productionPerShift, plannedQuantity);
+        Map<DailyProgressKey, Entity> dailyProgressesWithTrackingRecords = calculateRegisteredQuantity(progressForDaysContainer,
+                productionPerShift, plannedQuantity);
+        Set<LocalDate> daysWithTrackingRecords = getDaysWithTrackingRecords(dailyProgressesWithTrackingRecords);
+        Map<Shift, ShiftCalendarIndex> shiftCalendarIndexes = Maps.newHashMap();
 
         BigDecimal alreadyPlannedQuantity = BigDecimal.ZERO;
         List<Entity> progressForDays = Lists.newLinkedList();
@@ -97,12 +106,30 @@ public abstract class PpsBaseAlgorithmService {
         currentDate = currentDate.toLocalDate().toDateTimeAtStartOfDay();
         boolean shouldBeCorrected = progressForDaysContainer.isShouldBeCorrected();
         int realizationDayNumber = 0;
+        int daysWithoutWork = 0;
         while (progressForDaysContainer.getPlannedQuantity().compareTo(BigDecimal.ZERO) > 0
                 || progressForDaysContainer.getAlreadyRegisteredQuantity().compareTo(BigDecimal.ZERO) > 0) {
 
+            if (!daysWithTrackingRecords.contains(currentDate.toLocalDate())
+                    && !isWorkingDay(shiftCalendarIndexes, productionLine, shifts, currentDate.toLocalDate())) {
+                if (++daysWithoutWork > MAX_DAYS_WITHOUT_WORK) {
+                    progressForDaysContainer.addError(new ErrorMessage(
+                            "productionPerShift.automaticAlgorithm.productionLine.workingTimeRequired", false,
+                            productionLine.getStringField(ProductionLineFields.NUMBER)));
+                    throw new IllegalStateException("No working time on production line");
+                }
+
+                currentDate = currentDate.plusDays(1);
+                ++realizationDayNumber;
+
+                continue;
+            }
+
+            daysWithoutWork = 0;
+
             DailyProgressContainer dailyProgressContainer = fillDailyProgressWithShifts(progressForDaysContainer,
-                    productionPerShift, order, shifts, currentDate, orderStartDate, shouldBeCorrected, progressForDays.size(),
-                    alreadyPlannedQuantity, allowIncompleteUnits);
+                    productionPerShift, order, shifts, shiftCalendarIndexes, dailyProgressesWithTrackingRecords, currentDate,
+                    orderStartDate, shouldBeCorrected, progressForDays.size(), alreadyPlannedQuantity, allowIncompleteUnits);
             if (dailyProgressContainer.isCalculationError()) {
                 progressForDaysContainer.setCalculationError(true);
                 return;
@@ -120,8 +147,49 @@ public abstract class PpsBaseAlgorithmService {
         progressForDaysContainer.setProgressForDays(progressForDays);
     }
 
+    private boolean isWorkingDay(final Map<Shift, ShiftCalendarIndex> shiftCalendarIndexes, final Entity productionLine,
+            final List<Shift> shifts, final LocalDate day) {
+        for (Shift shift : shifts) {
+            ShiftCalendarIndex shiftCalendarIndex = getShiftCalendarIndex(shiftCalendarIndexes, productionLine, shift, day);
+
+            if (shiftCalendarIndex.getEntriesStart(day) < shiftCalendarIndex.getEntriesEnd(day)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private List<DateTimeRange> getShiftWorkDateTimes(final Map<Shift, ShiftCalendarIndex> shiftCalendarIndexes,
+            final Entity productionLine, final Shift shift, final LocalDate day) {
+        ShiftCalendarIndex shiftCalendarIndex = getShiftCalendarIndex(shiftCalendarIndexes, productionLine, shift, day);
+
+        List<DateTimeRange> shiftWorkDateTimes = Lists.newArrayList();
+
+        for (int entry = shiftCalendarIndex.getEntriesStart(day); entry < shiftCalendarIndex.getEntriesEnd(day); entry++) {
+            shiftWorkDateTimes.add(new DateTimeRange(new DateTime(shiftCalendarIndex.getFrom(entry)),
+                    new DateTime(shiftCalendarIndex.getTo(entry))));
+        }
+
+        return shiftWorkDateTimes;
+    }
+
+    private ShiftCalendarIndex getShiftCalendarIndex(final Map<Shift, ShiftCalendarIndex> shiftCalendarIndexes,
+            final Entity productionLine, final Shift shift, final LocalDate day) {
+        ShiftCalendarIndex shiftCalendarIndex = shiftCalendarIndexes.get(shift);
+
+        if (Objects.isNull(shiftCalendarIndex) || !shiftCalendarIndex.covers(day, day)) {
+            shiftCalendarIndex = shiftCalendarIndexService.getShiftCalendarIndex(productionLine, shift, true, day, day);
+
+            shiftCalendarIndexes.put(shift, shiftCalendarIndex);
+        }
+
+        return shiftCalendarIndex;
+    }
+
     private DailyProgressContainer fillDailyProgressWithShifts(ProgressForDaysContainer progressForDaysContainer,
-            Entity productionPerShift, Entity order, List<Shift> shifts, DateTime dateOfDay, Date orderStartDate,
+            Entity productionPerShift, Entity order, List<Shift> shifts, Map<Shift, ShiftCalendarIndex> shiftCalendarIndexes,
+            Map<DailyProgressKey, Entity> dailyProgressesWithTrackingRecords, DateTime dateOfDay, Date orderStartDate,
             boolean shouldBeCorrected, int progressForDayQuantity, BigDecimal alreadyPlannedQuantity,
             boolean allowIncompleteUnits) {
         DailyProgressContainer dailyProgressContainer = new DailyProgressContainer();
@@ -152,8 +220,8 @@ public abstract class PpsBaseAlgorithmService {
                 DateTime orderStartDateDT = new DateTime(orderStartDate, DateTimeZone.getDefault());
                 BigDecimal shiftEfficiency = BigDecimal.ZERO;
                 int time = 0;
-                for (DateTimeRange range : shiftExceptionService
-                        .getShiftWorkDateTimes(order.getBelongsToField(OrderFields.PRODUCTION_LINE), shift, dateOfDay, true)) {
+                for (DateTimeRange range : getShiftWorkDateTimes(shiftCalendarIndexes,
+                        order.getBelongsToField(OrderFields.PRODUCTION_LINE), shift, dateOfDay.toLocalDate())) {
                     if (orderStartDate.after(dateOfDay.toDate())) {
                         range = range.trimBefore(orderStartDateDT);
                     }
@@ -204,8 +272,9 @@ public abstract class PpsBaseAlgorithmService {
         return progressForDay;
     }
 
-    private BigDecimal calculateRegisteredQuantity(final ProgressForDaysContainer progressForDaysContainer, final Entity order,
+    private Map<DailyProgressKey, Entity> calculateRegisteredQuantity(final ProgressForDaysContainer progressForDaysContainer,
             final Entity pps, BigDecimal plannedQuantity) {
+        Map<DailyProgressKey, Entity> dailyProgressesWithTrackingRecords = null;
         BigDecimal alreadyRegisteredQuantity = progressForDaysContainer.getAlreadyRegisteredQuantity();
         if (pps != null) {
             dailyProgressesWithTrackingRecords = dailyProgressService.getDailyProgressesWithTrackingRecords(pps);
@@ -214,12 +283,20 @@ public abstract class PpsBaseAlgorithmService {
                 alreadyRegisteredQuantity = alreadyRegisteredQuantity.add(entry.getKey().getQuantity());
             }
             progressForDaysContainer.setAlreadyRegisteredQuantity(alreadyRegisteredQuantity);
-        } else {
-            dailyProgressesWithTrackingRecords = null;
         }
         progressForDaysContainer
                 .setPlannedQuantity(plannedQuantity.subtract(alreadyRegisteredQuantity, numberService.getMathContext()));
-        return progressForDaysContainer.getPlannedQuantity();
+        return dailyProgressesWithTrackingRecords;
+    }
+
+    private Set<LocalDate> getDaysWithTrackingRecords(final Map<DailyProgressKey, Entity> dailyProgressesWithTrackingRecords) {
+        Set<LocalDate> daysWithTrackingRecords = Sets.newHashSet();
+        if (dailyProgressesWithTrackingRecords != null) {
+            for (DailyProgressKey key : dailyProgressesWithTrackingRecords.keySet()) {
+                daysWithTrackingRecords.add(key.getDateOfDay().toLocalDate());
+            }
+        }
+        return daysWithTrackingRecords;
     }
 
     protected abstract ShiftEfficiencyCalculationHolder calculateShiftEfficiency(
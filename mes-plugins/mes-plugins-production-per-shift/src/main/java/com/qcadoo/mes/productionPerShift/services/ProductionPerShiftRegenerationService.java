@@ -0,0 +1,165 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.productionPerShift.services;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.qcadoo.mes.orders.constants.OrderFields;
+import com.qcadoo.mes.orders.constants.OrdersConstants;
+import com.qcadoo.mes.productionPerShift.PPSHelper;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.annotation.PreDestroy;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+@Service
+public class ProductionPerShiftRegenerationService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ProductionPerShiftRegenerationService.class);
+
+    private static final int L_THREADS = 4;
+
+    @Autowired
+    private DataDefinitionService dataDefinitionService;
+
+    @Autowired
+    private MultiTenantService multiTenantService;
+
+    @Autowired
+    private PPSHelper ppsHelper;
+
+    private final ExecutorService executorService = Executors.newFixedThreadPool(L_THREADS,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ppsRegeneration-%d").build());
+
+    /**
+     * Regenerates production per shift of given orders. Orders are independent of each other, so they are regenerated in
+     * parallel, each of them in its own transaction. Failure of one order doesn't stop regeneration of the others.
+     *
+     * @return numbers of orders, for which production per shift couldn't be regenerated
+     */
+    public List<String> regenerate(final List<Long> orderIds) {
+        Map<Long, Future<String>> results = Maps.newLinkedHashMap();
+
+        for (Long orderId : orderIds) {
+            results.put(orderId, executorService.submit(() -> regenerateInTenantContext(orderId)));
+        }
+
+        List<String> failedOrderNumbers = Lists.newArrayList();
+
+        for (Map.Entry<Long, Future<String>> result : results.entrySet()) {
+            try {
+                String failedOrderNumber = result.getValue().get();
+
+                if (Objects.nonNull(failedOrderNumber)) {
+                    failedOrderNumbers.add(failedOrderNumber);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new IllegalStateException("Production per shift regeneration interrupted", e);
+            } catch (ExecutionException e) {
+                String failedOrderNumber = getOrderNumber(result.getKey());
+
+                LOG.warn(String.format("Production per shift regeneration failed for order %s", failedOrderNumber), e.getCause());
+
+                failedOrderNumbers.add(failedOrderNumber);
+            }
+        }
+
+        LOG.info(String.format("Production per shift regenerated for %d orders, failed for %d orders", orderIds.size()
+                - failedOrderNumbers.size(), failedOrderNumbers.size()));
+
+        return failedOrderNumbers;
+    }
+
+    private String regenerateInTenantContext(final Long orderId) {
+        AtomicReference<String> failedOrderNumber = new AtomicReference<>();
+
+        multiTenantService.doInMultiTenantContext(new MultiTenantCallback() {
+
+            @Override
+            public void invoke() {
+                failedOrderNumber.set(regenerate(orderId));
+            }
+
+        });
+
+        return failedOrderNumber.get();
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    private String regenerate(final Long orderId) {
+        Entity order = dataDefinitionService.get(OrdersConstants.PLUGIN_IDENTIFIER, OrdersConstants.MODEL_ORDER).get(orderId);
+
+        if (Objects.isNull(ppsHelper.getPpsIdForOrder(orderId))) {
+            ppsHelper.createPpsForOrderAndReturnId(orderId);
+        }
+
+        order.setField(OrderFields.GENERATE_PPS, true);
+
+        Entity savedOrder = order.getDataDefinition().save(order);
+
+        if (savedOrder.isValid()) {
+            return null;
+        }
+
+        LOG.info(String.format("Production per shift not regenerated for order %s: %s", order.getStringField(OrderFields.NUMBER),
+                savedOrder.getGlobalErrors()));
+
+        return order.getStringField(OrderFields.NUMBER);
+    }
+
+    private String getOrderNumber(final Long orderId) {
+        Entity order = dataDefinitionService.get(OrdersConstants.PLUGIN_IDENTIFIER, OrdersConstants.MODEL_ORDER).get(orderId);
+
+        if (Objects.isNull(order)) {
+            return String.valueOf(orderId);
+        }
+
+        return order.getStringField(OrderFields.NUMBER);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executorService.shutdown();
+    }
+
+}
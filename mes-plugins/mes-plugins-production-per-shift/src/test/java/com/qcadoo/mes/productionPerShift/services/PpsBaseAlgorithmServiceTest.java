@@ -0,0 +1,221 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.productionPerShift.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.ParameterService;
+import com.qcadoo.mes.basic.ShiftCalendarIndexService;
+import com.qcadoo.mes.basic.ShiftsService;
+import com.qcadoo.mes.basic.shift.Shift;
+import com.qcadoo.mes.basic.shift.ShiftCalendarIndex;
+import com.qcadoo.mes.basic.util.DateTimeRange;
+import com.qcadoo.mes.basicProductionCounting.BasicProductionCountingService;
+import com.qcadoo.mes.orders.constants.OrderFields;
+import com.qcadoo.mes.productionPerShift.constants.ProductionPerShiftConstants;
+import com.qcadoo.mes.productionPerShift.constants.ProductionPerShiftFields;
+import com.qcadoo.mes.productionPerShift.constants.ProgressForDayFields;
+import com.qcadoo.mes.productionPerShift.domain.ProgressForDaysContainer;
+import com.qcadoo.mes.productionPerShift.domain.ShiftEfficiencyCalculationHolder;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.NumberService;
+
+public class PpsBaseAlgorithmServiceTest {
+
+    private static final DateTime L_ORDER_START_DATE = new DateTime(2026, 10, 9, 8, 0);
+
+    private static final BigDecimal L_SHIFT_EFFICIENCY = BigDecimal.TEN;
+
+    private PpsBaseAlgorithmService ppsBaseAlgorithmService;
+
+    @Mock
+    private BasicProductionCountingService basicProductionCountingService;
+
+    @Mock
+    private DailyProgressService dailyProgressService;
+
+    @Mock
+    private NumberService numberService;
+
+    @Mock
+    private DataDefinitionService dataDefinitionService;
+
+    @Mock
+    private ShiftsService shiftsService;
+
+    @Mock
+    private ShiftCalendarIndexService shiftCalendarIndexService;
+
+    @Mock
+    private ParameterService parameterService;
+
+    @Mock
+    private DataDefinition progressForDayDD, dailyProgressDD;
+
+    @Mock
+    private Entity productionPerShift, order, productionLine, parameter;
+
+    @Mock
+    private Shift shift;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        ppsBaseAlgorithmService = new PpsBaseAlgorithmService() {
+
+            @Override
+            protected ShiftEfficiencyCalculationHolder calculateShiftEfficiency(
+                    final ProgressForDaysContainer progressForDaysContainer, final Entity productionPerShift, final Shift shift,
+                    final Entity order, final DateTimeRange range, final BigDecimal shiftEfficiency,
+                    final int progressForDayQuantity, final boolean allowIncompleteUnits) {
+                ShiftEfficiencyCalculationHolder calculationHolder = new ShiftEfficiencyCalculationHolder();
+
+                calculationHolder.setShiftEfficiency(shiftEfficiency.add(L_SHIFT_EFFICIENCY));
+                calculationHolder.setEfficiencyTime(DateTimeConstants.SECONDS_PER_HOUR);
+
+                return calculationHolder;
+            }
+
+        };
+
+        ReflectionTestUtils.setField(ppsBaseAlgorithmService, "basicProductionCountingService", basicProductionCountingService);
+        ReflectionTestUtils.setField(ppsBaseAlgorithmService, "dailyProgressService", dailyProgressService);
+        ReflectionTestUtils.setField(ppsBaseAlgorithmService, "numberService", numberService);
+        ReflectionTestUtils.setField(ppsBaseAlgorithmService, "dataDefinitionService", dataDefinitionService);
+        ReflectionTestUtils.setField(ppsBaseAlgorithmService, "shiftsService", shiftsService);
+        ReflectionTestUtils.setField(ppsBaseAlgorithmService, "shiftCalendarIndexService", shiftCalendarIndexService);
+        ReflectionTestUtils.setField(ppsBaseAlgorithmService, "parameterService", parameterService);
+
+        given(productionPerShift.getBelongsToField(ProductionPerShiftFields.ORDER)).willReturn(order);
+        given(order.getDateField(OrderFields.START_DATE)).willReturn(L_ORDER_START_DATE.toDate());
+        given(order.getBelongsToField(OrderFields.PRODUCTION_LINE)).willReturn(productionLine);
+        given(order.getDecimalField(OrderFields.PLANNED_QUANTITY)).willReturn(new BigDecimal(30));
+        given(parameterService.getParameter()).willReturn(parameter);
+        given(shiftsService.findAll(productionLine)).willReturn(Lists.newArrayList(shift));
+        given(shift.getId()).willReturn(1L);
+        given(dailyProgressService.getDailyProgressesWithTrackingRecords(productionPerShift)).willReturn(
+                Collections.emptyMap());
+
+        given(numberService.getMathContext()).willReturn(MathContext.DECIMAL64);
+        given(numberService.setScaleWithDefaultMathContext(any(BigDecimal.class))).willAnswer(
+                invocation -> invocation.getArguments()[0]);
+
+        given(dataDefinitionService.get(ProductionPerShiftConstants.PLUGIN_IDENTIFIER,
+                ProductionPerShiftConstants.MODEL_PROGRESS_FOR_DAY)).willReturn(progressForDayDD);
+        given(dataDefinitionService.get(ProductionPerShiftConstants.PLUGIN_IDENTIFIER,
+                ProductionPerShiftConstants.MODEL_DAILY_PROGRESS)).willReturn(dailyProgressDD);
+        given(progressForDayDD.create()).willAnswer(invocation -> mock(Entity.class));
+        given(dailyProgressDD.create()).willAnswer(invocation -> mock(Entity.class));
+    }
+
+    private void mockShiftCalendar(final Function<LocalDate, List<DateTimeRange>> dayRangesLoader) {
+        given(shiftCalendarIndexService.getShiftCalendarIndex(eq(productionLine), eq(shift), eq(true), any(LocalDate.class),
+                any(LocalDate.class))).willAnswer(invocation -> {
+            LocalDate day = (LocalDate) invocation.getArguments()[3];
+
+            return ShiftCalendarIndex.build(day, day, true, dayRangesLoader, null);
+        });
+    }
+
+    private List<DateTimeRange> getWorkingHoursOnWeekdays(final LocalDate day) {
+        if (day.getDayOfWeek() >= DateTimeConstants.SATURDAY) {
+            return Collections.emptyList();
+        }
+
+        return Lists.newArrayList(new DateTimeRange(day.toDateTime(new LocalTime(8, 0)), day.toDateTime(new LocalTime(16, 0))));
+    }
+
+    @Test
+    public final void shouldSkipDaysWithoutWorkKeepingTheirRealizationDayNumbers() {
+        // given
+        mockShiftCalendar(this::getWorkingHoursOnWeekdays);
+
+        ProgressForDaysContainer progressForDaysContainer = new ProgressForDaysContainer();
+
+        // when
+        ppsBaseAlgorithmService.generateProgressForDays(progressForDaysContainer, productionPerShift);
+
+        // then
+        List<Entity> progressForDays = progressForDaysContainer.getProgressForDays();
+
+        assertEquals(3, progressForDays.size());
+
+        verify(progressForDays.get(0)).setField(ProgressForDayFields.DAY, 1);
+        verify(progressForDays.get(1)).setField(ProgressForDayFields.DAY, 4);
+        verify(progressForDays.get(2)).setField(ProgressForDayFields.DAY, 5);
+
+        assertEquals(0, BigDecimal.ZERO.compareTo(progressForDaysContainer.getPlannedQuantity()));
+        assertEquals(0, progressForDaysContainer.getErrors().size());
+    }
+
+    @Test
+    public final void shouldStopWhenProductionLineHasNoWorkingTime() {
+        // given
+        mockShiftCalendar(day -> Collections.emptyList());
+
+        ProgressForDaysContainer progressForDaysContainer = new ProgressForDaysContainer();
+
+        // when
+        try {
+            ppsBaseAlgorithmService.generateProgressForDays(progressForDaysContainer, productionPerShift);
+
+            fail();
+        } catch (IllegalStateException e) {
+            // then
+            assertEquals(1, progressForDaysContainer.getErrors().size());
+            assertEquals("productionPerShift.automaticAlgorithm.productionLine.workingTimeRequired", progressForDaysContainer
+                    .getErrors().get(0).getMessage());
+        }
+
+        verify(progressForDayDD, never()).create();
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.productionPerShift.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.orders.constants.OrderFields;
+import com.qcadoo.mes.orders.constants.OrdersConstants;
+import com.qcadoo.mes.productionPerShift.PPSHelper;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.tenant.api.MultiTenantCallback;
+import com.qcadoo.tenant.api.MultiTenantService;
+
+public class ProductionPerShiftRegenerationServiceTest {
+
+    private ProductionPerShiftRegenerationService productionPerShiftRegenerationService;
+
+    @Mock
+    private DataDefinitionService dataDefinitionService;
+
+    @Mock
+    private MultiTenantService multiTenantService;
+
+    @Mock
+    private PPSHelper ppsHelper;
+
+    @Mock
+    private DataDefinition orderDD;
+
+    @Mock
+    private Entity failingOrder, invalidOrder, validOrder, invalidSavedOrder;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        productionPerShiftRegenerationService = new ProductionPerShiftRegenerationService();
+
+        ReflectionTestUtils.setField(productionPerShiftRegenerationService, "dataDefinitionService", dataDefinitionService);
+        ReflectionTestUtils.setField(productionPerShiftRegenerationService, "multiTenantService", multiTenantService);
+        ReflectionTestUtils.setField(productionPerShiftRegenerationService, "ppsHelper", ppsHelper);
+
+        doAnswer(invocation -> {
+            ((MultiTenantCallback) invocation.getArguments()[0]).invoke();
+
+            return null;
+        }).when(multiTenantService).doInMultiTenantContext(any(MultiTenantCallback.class));
+
+        given(dataDefinitionService.get(OrdersConstants.PLUGIN_IDENTIFIER, OrdersConstants.MODEL_ORDER)).willReturn(orderDD);
+
+        mockOrder(1L, failingOrder, "O1");
+        mockOrder(2L, invalidOrder, "O2");
+        mockOrder(3L, validOrder, "O3");
+
+        given(orderDD.save(failingOrder)).willThrow(new IllegalStateException("Shift calendar missing"));
+        given(orderDD.save(invalidOrder)).willReturn(invalidSavedOrder);
+        given(invalidSavedOrder.isValid()).willReturn(false);
+        given(orderDD.save(validOrder)).willReturn(validOrder);
+        given(validOrder.isValid()).willReturn(true);
+        given(ppsHelper.getPpsIdForOrder(any(Long.class))).willReturn(10L);
+    }
+
+    @After
+    public void shutdown() {
+        productionPerShiftRegenerationService.shutdown();
+    }
+
+    private void mockOrder(final Long orderId, final Entity order, final String number) {
+        given(orderDD.get(orderId)).willReturn(order);
+        given(order.getDataDefinition()).willReturn(orderDD);
+        given(order.getStringField(OrderFields.NUMBER)).willReturn(number);
+    }
+
+    @Test
+    public final void shouldRegenerateRemainingOrdersWhenOneOfThemThrows() {
+        // when
+        List<String> failedOrderNumbers = productionPerShiftRegenerationService.regenerate(Lists.newArrayList(1L, 2L, 3L));
+
+        // then
+        assertEquals(Lists.newArrayList("O1", "O2"), failedOrderNumbers);
+
+        verify(orderDD).save(validOrder);
+        verify(validOrder).setField(OrderFields.GENERATE_PPS, true);
+    }
+
+}
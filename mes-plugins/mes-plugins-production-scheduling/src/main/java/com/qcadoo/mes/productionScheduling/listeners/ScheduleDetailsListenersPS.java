@@ -12,6 +12,7 @@ import com.qcadoo.mes.orders.constants.OrdersConstants;
 import com.qcadoo.mes.orders.constants.ScheduleFields;
 import com.qcadoo.mes.orders.constants.SchedulePositionFields;
 import com.qcadoo.mes.orders.listeners.ScheduleDetailsListeners;
+import com.qcadoo.mes.orders.schedule.ScheduleWorkersAssignmentService;
 import com.qcadoo.mes.productionLines.constants.ProductionLinesConstants;
 import com.qcadoo.mes.productionScheduling.constants.OperCompTimeCalculation;
 import com.qcadoo.mes.productionScheduling.constants.OrderFieldsPS;
@@ -64,11 +65,20 @@ public class ScheduleDetailsListenersPS {
     @Autowired
     private ScheduleDetailsListeners scheduleDetailsListeners;
 
+    @Autowired
+    private ScheduleWorkersAssignmentService scheduleWorkersAssignmentService;
+
     @Transactional
     public void generatePlan(final ViewDefinitionState view, final ComponentState state, final String[] args) {
+        FormComponent scheduleForm = (FormComponent) state;
+        if (!scheduleWorkersAssignmentService.lockForAssignment(scheduleForm.getEntityId())) {
+            scheduleDetailsListeners.addAssignmentInProgressMessage(view,
+                    scheduleForm.getEntity().getDataDefinition().get(scheduleForm.getEntityId()));
+            return;
+        }
         getOperations(view, state, args);
         scheduleDetailsListeners.assignOperationsToWorkstations(view, state, args);
-        scheduleDetailsListeners.assignWorkersToOperations(view, state, args);
+        scheduleWorkersAssignmentService.assignWorkersToOperations(((FormComponent) state).getEntity());
     }
 
     @Transactional
@@ -0,0 +1,73 @@
+package com.qcadoo.mes.newstates;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Counters of state changes, kept since application start. Overhead of state change is its whole duration except the time
+ * spent in hooks of state services - the time of looking up services, building and saving state change entities etc.
+ */
+@Service
+public class StateChangeMetrics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StateChangeMetrics.class);
+
+    private static final long LOG_EVERY_STATE_CHANGES = 500;
+
+    private final AtomicLong stateChangesCount = new AtomicLong();
+
+    private final AtomicLong durationTotalNanos = new AtomicLong();
+
+    private final AtomicLong overheadTotalNanos = new AtomicLong();
+
+    private final LongAccumulator overheadMaxNanos = new LongAccumulator(Math::max, 0);
+
+    public void recordStateChange(final long durationNanos, final long hooksNanos) {
+        recordStateChanges(1, durationNanos, hooksNanos);
+    }
+
+    public void recordStateChanges(final int count, final long durationNanos, final long hooksNanos) {
+        if (count == 0) {
+            return;
+        }
+
+        long overheadNanos = Math.max(durationNanos - hooksNanos, 0);
+
+        long totalCount = stateChangesCount.addAndGet(count);
+
+        durationTotalNanos.addAndGet(durationNanos);
+        overheadTotalNanos.addAndGet(overheadNanos);
+        overheadMaxNanos.accumulate(overheadNanos / count);
+
+        if ((totalCount - count) / LOG_EVERY_STATE_CHANGES != totalCount / LOG_EVERY_STATE_CHANGES) {
+            LOG.info(String.format("State changes : %d. Average duration : %d us, average overhead : %d us, max overhead : %d us",
+                    totalCount, getAverageDurationMicros(), getAverageOverheadMicros(), getMaxOverheadMicros()));
+        }
+    }
+
+    public long getStateChangesCount() {
+        return stateChangesCount.get();
+    }
+
+    public long getAverageDurationMicros() {
+        long count = stateChangesCount.get();
+
+        return (count == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(durationTotalNanos.get() / count);
+    }
+
+    public long getAverageOverheadMicros() {
+        long count = stateChangesCount.get();
+
+        return (count == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(overheadTotalNanos.get() / count);
+    }
+
+    public long getMaxOverheadMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(overheadMaxNanos.get());
+    }
+
+}
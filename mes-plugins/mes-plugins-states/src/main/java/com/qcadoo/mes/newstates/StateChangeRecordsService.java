@@ -0,0 +1,89 @@
+package com.qcadoo.mes.newstates;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.states.StateChangeEntityDescriber;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+
+/**
+ * Inserts finished state change entities in one batch, instead of saving each of them through its data definition. State
+ * change models consist of the generic state change fields only, so their rows can be written directly.
+ */
+@Service
+public class StateChangeRecordsService {
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Transactional
+    public void insertStateChanges(final StateChangeEntityDescriber describer, final List<Entity> stateChangeEntities) {
+        if (stateChangeEntities.isEmpty()) {
+            return;
+        }
+
+        List<SqlParameterSource> parameters = Lists.newArrayListWithCapacity(stateChangeEntities.size());
+
+        for (Entity stateChangeEntity : stateChangeEntities) {
+            MapSqlParameterSource params = new MapSqlParameterSource();
+
+            params.addValue("dateAndTime", stateChangeEntity.getDateField(describer.getDateTimeFieldName()));
+            params.addValue("sourceState", stateChangeEntity.getStringField(describer.getSourceStateFieldName()));
+            params.addValue("targetState", stateChangeEntity.getStringField(describer.getTargetStateFieldName()));
+            params.addValue("status", stateChangeEntity.getStringField(describer.getStatusFieldName()));
+            params.addValue("phase", stateChangeEntity.getIntegerField(describer.getPhaseFieldName()));
+            params.addValue("worker", stateChangeEntity.getStringField(describer.getWorkerFieldName()));
+            params.addValue("shiftId", getId(stateChangeEntity.getBelongsToField(describer.getShiftFieldName())));
+            params.addValue("ownerId", getId(stateChangeEntity.getBelongsToField(describer.getOwnerFieldName())));
+
+            parameters.add(params);
+        }
+
+        jdbcTemplate.batchUpdate(buildInsertQuery(describer), parameters.toArray(new SqlParameterSource[parameters.size()]));
+    }
+
+    /**
+     * Locks the row of given owner until the end of current transaction, so its state can't be changed concurrently.
+     * 
+     * @return current state of the owner or null if it doesn't exist
+     */
+    @Transactional
+    public String lockOwnerState(final StateChangeEntityDescriber describer, final Long ownerId) {
+        String query = String.format("SELECT %s FROM %s WHERE id = :id FOR UPDATE",
+                describer.getOwnerStateFieldName().toLowerCase(), getTableName(describer.getOwnerDataDefinition()));
+
+        List<String> states = jdbcTemplate.queryForList(query, Collections.singletonMap("id", ownerId), String.class);
+
+        return states.isEmpty() ? null : states.get(0);
+    }
+
+    private String buildInsertQuery(final StateChangeEntityDescriber describer) {
+        String tableName = getTableName(describer.getDataDefinition());
+        String columns = String.join(", ", describer.getDateTimeFieldName(), describer.getSourceStateFieldName(),
+                describer.getTargetStateFieldName(), describer.getStatusFieldName(), describer.getPhaseFieldName(),
+                describer.getWorkerFieldName(), describer.getShiftFieldName() + "_id", describer.getOwnerFieldName() + "_id");
+
+        return String.format("INSERT INTO %s (%s) "
+                + "VALUES (:dateAndTime, :sourceState, :targetState, :status, :phase, :worker, :shiftId, :ownerId)",
+                tableName, columns.toLowerCase());
+    }
+
+    private String getTableName(final DataDefinition dataDefinition) {
+        return (dataDefinition.getPluginIdentifier() + "_" + dataDefinition.getName()).toLowerCase();
+    }
+
+    private Long getId(final Entity entity) {
+        return Objects.isNull(entity) ? null : entity.getId();
+    }
+
+}
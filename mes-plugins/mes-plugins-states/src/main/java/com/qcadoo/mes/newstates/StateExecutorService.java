@@ -9,16 +9,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Scope;
 import org.springframework.context.annotation.ScopedProxyMode;
-import org.springframework.core.annotation.AnnotationAwareOrderComparator;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import com.google.common.base.Optional;
@@ -33,11 +33,10 @@ import com.qcadoo.mes.states.exception.StateTransitionNotAlloweException;
 import com.qcadoo.model.api.Entity;
 import com.qcadoo.model.api.exception.EntityRuntimeException;
 import com.qcadoo.model.api.search.SearchCriteriaBuilder;
+import com.qcadoo.model.api.search.SearchProjections;
 import com.qcadoo.model.api.search.SearchRestrictions;
 import com.qcadoo.model.api.validators.ErrorMessage;
 import com.qcadoo.model.api.validators.GlobalMessage;
-import com.qcadoo.plugin.api.PluginUtils;
-import com.qcadoo.plugin.api.RunIfEnabled;
 import com.qcadoo.security.api.SecurityService;
 import com.qcadoo.view.api.ComponentMessagesHolder;
 import com.qcadoo.view.api.ComponentState;
@@ -54,8 +53,9 @@ public class StateExecutorService {
 
     public static final String USER_CHANGE_STATE = "user";
 
-    @Autowired
-    private ApplicationContext applicationContext;
+    private static final String L_OWNER_ID = "ownerId";
+
+    private static final int BULK_CHUNK_SIZE = 500;
 
     @Autowired
     private SecurityService securityService;
@@ -63,8 +63,19 @@ public class StateExecutorService {
     @Autowired
     private ShiftsService shiftsService;
 
+    @Autowired
+    private StateServicePipelineCache stateServicePipelineCache;
+
+    @Autowired
+    private StateChangeMetrics stateChangeMetrics;
+
+    @Autowired
+    private StateChangeRecordsService stateChangeRecordsService;
+
     private ComponentMessagesHolder componentMessagesHolder;
 
+    private long hooksNanos;
+
     public <M extends StateService> void changeState(final Class<M> serviceMarker, final ViewDefinitionState view,
             final String[] args) {
         componentMessagesHolder = view;
@@ -74,7 +85,10 @@ public class StateExecutorService {
 
         Optional<GridComponent> maybeGridComponent = view.tryFindComponentByReference(QcadooViewConstants.L_GRID);
 
-        if (maybeGridComponent.isPresent()) {
+        if (maybeGridComponent.isPresent() && maybeGridComponent.get().getSelectedEntitiesIds().size() > 1) {
+            changeStates(serviceMarker, Lists.newArrayList(maybeGridComponent.get().getSelectedEntitiesIds()), userId, userName,
+                    args[0]);
+        } else if (maybeGridComponent.isPresent()) {
             maybeGridComponent.get().getSelectedEntities().forEach(entity -> {
                 entity = entity.getDataDefinition().getMasterModelEntity(entity.getId());
 
@@ -103,9 +117,189 @@ public class StateExecutorService {
         }
     }
 
-    public <M extends StateService> Entity changeState(final Class<M> serviceMarker, Entity entity, final String userName,
-            final String targetState) {
-        List<M> services = lookupChangeStateServices(serviceMarker);
+    public <M extends StateService> Entity changeState(final Class<M> serviceMarker, final Entity entity,
+            final String userName, final String targetState) {
+        long startNanos = System.nanoTime();
+        long outerHooksNanos = hooksNanos;
+
+        hooksNanos = 0;
+
+        try {
+            return performStateChange(serviceMarker, entity, userName, targetState);
+        } finally {
+            stateChangeMetrics.recordStateChange(System.nanoTime() - startNanos, hooksNanos);
+
+            hooksNanos = outerHooksNanos;
+        }
+    }
+
+    /**
+     * Changes state of many entities at once. Entities are loaded in chunks, each of them is changed in its own transaction, so
+     * that failure of one of them doesn't roll back the others. The transaction locks and re-reads the entity before changing
+     * it. State change entities, both of successful and of failed changes, are inserted in one batch per chunk, after all
+     * entities of the chunk are changed.
+     */
+    public <M extends StateService> List<Entity> changeStates(final Class<M> serviceMarker, final List<Long> ids,
+            final Long userId, final String userName, final String targetState) {
+        long startNanos = System.nanoTime();
+        long outerHooksNanos = hooksNanos;
+
+        hooksNanos = 0;
+
+        List<M> services = stateServicePipelineCache.getServices(serviceMarker);
+
+        StateChangeEntityDescriber describer = services.stream().findFirst().get().getChangeEntityDescriber();
+
+        Date dateAndTime = new Date();
+        Entity shift = shiftsService.getShiftFromDateWithTime(dateAndTime);
+
+        List<Entity> entities = Lists.newArrayListWithCapacity(ids.size());
+        Set<String> failureMessages = Sets.newLinkedHashSet();
+
+        try {
+            for (List<Long> chunk : Lists.partition(ids, BULK_CHUNK_SIZE)) {
+                entities.addAll(changeStates(services, describer, chunk, userId, userName, targetState, dateAndTime, shift,
+                        failureMessages));
+            }
+        } finally {
+            stateChangeMetrics.recordStateChanges(ids.size(), System.nanoTime() - startNanos, hooksNanos);
+
+            hooksNanos = outerHooksNanos;
+        }
+
+        long successfulCount = entities.stream().filter(Entity::isValid).count();
+
+        if (successfulCount > 0) {
+            message("states.messages.change.bulk.successful", ComponentState.MessageType.SUCCESS,
+                    String.valueOf(successfulCount));
+        }
+        if (successfulCount < entities.size()) {
+            message("states.messages.change.bulk.failure", ComponentState.MessageType.FAILURE,
+                    String.valueOf(entities.size() - successfulCount));
+
+            failureMessages.forEach(failureMessage -> message(failureMessage, ComponentState.MessageType.FAILURE));
+        }
+
+        LOG.info(String.format("Change states of %d entities. Successful : %d. Target state : %S", entities.size(),
+                successfulCount, targetState));
+
+        return entities;
+    }
+
+    private <M extends StateService> List<Entity> changeStates(final List<M> services, final StateChangeEntityDescriber describer,
+            final List<Long> ids, final Long userId, final String userName, final String targetState, final Date dateAndTime,
+            final Entity shift, final Set<String> failureMessages) {
+        Map<Long, Entity> entitiesByIds = describer.getOwnerDataDefinition().find().add(SearchRestrictions.in("id", ids)).list()
+                .getEntities().stream().collect(Collectors.toMap(Entity::getId, entity -> entity));
+        Set<Long> idsWithUnfinishedStateChange = getOwnersIdsWithUnfinishedStateChange(describer, ids);
+
+        List<Entity> entities = Lists.newArrayListWithCapacity(ids.size());
+        List<Entity> stateChangeEntities = Lists.newArrayListWithCapacity(ids.size());
+
+        for (Long id : ids) {
+            Entity entity = entitiesByIds.get(id);
+
+            if (Objects.isNull(entity)) {
+                continue;
+            }
+
+            entity.setField(USER_CHANGE_STATE, userId);
+
+            String sourceState = entity.getStringField(describer.getOwnerStateFieldName());
+
+            Entity stateChangeEntity = buildStateChangeEntity(describer, entity, userName, sourceState, targetState, dateAndTime,
+                    shift);
+
+            entity = performBulkStateChange(services, entity, stateChangeEntity, describer, sourceState,
+                    idsWithUnfinishedStateChange.contains(id), failureMessages);
+
+            if (!entity.isValid()) {
+                stateChangeEntity.setField(describer.getStatusFieldName(), StateChangeStatus.FAILURE.getStringValue());
+            }
+
+            stateChangeEntities.add(stateChangeEntity);
+
+            copyMessages(entity);
+
+            entities.add(entity);
+        }
+
+        stateChangeRecordsService.insertStateChanges(describer, stateChangeEntities);
+
+        return entities;
+    }
+
+    private <M extends StateService> Entity performBulkStateChange(final List<M> services, Entity entity,
+            final Entity stateChangeEntity, final StateChangeEntityDescriber describer, final String sourceState,
+            final boolean anotherChangeInProgress, final Set<String> failureMessages) {
+        String targetState = stateChangeEntity.getStringField(describer.getTargetStateFieldName());
+
+        try {
+            if (!canChangeState(describer, entity, targetState)) {
+                failureMessages.add("states.messages.change.failure.transitionNotAllowed");
+
+                return rollbackStateChange(entity, sourceState);
+            }
+            if (anotherChangeInProgress) {
+                failureMessages.add("states.messages.change.failure.anotherChangeInProgress");
+
+                return rollbackStateChange(entity, sourceState);
+            }
+
+            entity = performChangeStateInNewTransaction(services, entity, stateChangeEntity, describer, sourceState);
+        } catch (EntityRuntimeException entityException) {
+            copyMessages(entityException.getEntity(), entity);
+
+            entity = rollbackStateChange(entity, sourceState);
+        } catch (AnotherChangeInProgressException exception) {
+            failureMessages.add("states.messages.change.failure.anotherChangeInProgress");
+
+            entity = rollbackStateChange(entity, sourceState);
+        } catch (Exception exception) {
+            failureMessages.add("states.messages.change.failure.internalServerError");
+
+            entity = rollbackStateChange(entity, sourceState);
+
+            LOG.warn("Can't perform state change", exception);
+        }
+
+        return entity;
+    }
+
+    /**
+     * Changes state of the entity re-read under row lock, so a change committed after the chunk was loaded isn't overwritten. Any
+     * failure rolls the whole transaction back. State change entity isn't saved here, hooks only read its fields - it is
+     * marked as successful and inserted with the rest of the chunk.
+     */
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    private <M extends StateService> Entity performChangeStateInNewTransaction(final List<M> services, final Entity entity,
+            final Entity stateChangeEntity, final StateChangeEntityDescriber describer, final String sourceState) {
+        String currentState = stateChangeRecordsService.lockOwnerState(describer, entity.getId());
+
+        if (!Objects.equals(sourceState, currentState)) {
+            throw new AnotherChangeInProgressException();
+        }
+
+        Entity lockedEntity = entity.getDataDefinition().get(entity.getId());
+
+        lockedEntity.setField(USER_CHANGE_STATE, entity.getField(USER_CHANGE_STATE));
+
+        stateChangeEntity.setField(describer.getStatusFieldName(), StateChangeStatus.IN_PROGRESS.getStringValue());
+
+        lockedEntity = performChangeState(services, lockedEntity, stateChangeEntity, describer);
+
+        if (!lockedEntity.isValid()) {
+            throw new EntityRuntimeException(lockedEntity);
+        }
+
+        stateChangeEntity.setField(describer.getStatusFieldName(), StateChangeStatus.SUCCESSFUL.getStringValue());
+
+        return lockedEntity;
+    }
+
+    private <M extends StateService> Entity performStateChange(final Class<M> serviceMarker, Entity entity,
+            final String userName, final String targetState) {
+        List<M> services = stateServicePipelineCache.getServices(serviceMarker);
 
         StateChangeEntityDescriber describer = services.stream().findFirst().get().getChangeEntityDescriber();
         String sourceState = entity.getStringField(describer.getOwnerStateFieldName());
@@ -256,16 +450,23 @@ public class StateExecutorService {
         return savedStateChangeEntity;
     }
 
-    private Entity buildStateChangeEntity(final StateChangeEntityDescriber describer, final Entity owner, String userName,
+    private Entity buildStateChangeEntity(final StateChangeEntityDescriber describer, final Entity owner, final String userName,
             final String sourceState, final String targetState) {
+        Date dateAndTime = new Date();
+
+        return buildStateChangeEntity(describer, owner, userName, sourceState, targetState, dateAndTime,
+                shiftsService.getShiftFromDateWithTime(dateAndTime));
+    }
+
+    private Entity buildStateChangeEntity(final StateChangeEntityDescriber describer, final Entity owner, String userName,
+            final String sourceState, final String targetState, final Date dateAndTime, final Entity shift) {
         final Entity stateChangeEntity = describer.getDataDefinition().create();
-        final Entity shift = shiftsService.getShiftFromDateWithTime(new Date());
 
         if (StringUtils.isEmpty(userName)) {
             userName = securityService.getCurrentUserOrQcadooBotName();
         }
 
-        stateChangeEntity.setField(describer.getDateTimeFieldName(), new Date());
+        stateChangeEntity.setField(describer.getDateTimeFieldName(), dateAndTime);
         stateChangeEntity.setField(describer.getSourceStateFieldName(), sourceState);
         stateChangeEntity.setField(describer.getTargetStateFieldName(), targetState);
         stateChangeEntity.setField(describer.getShiftFieldName(), shift);
@@ -291,10 +492,14 @@ public class StateExecutorService {
 
     private <M extends StateService> Entity hookOnValidate(Entity entity, final Collection<M> services, final String sourceState,
             final String targetState, final Entity stateChangeEntity, final StateChangeEntityDescriber describer) {
+        long startNanos = System.nanoTime();
+
         for (StateService service : services) {
             entity = service.onValidate(entity, sourceState, targetState, stateChangeEntity, describer);
         }
 
+        hooksNanos += System.nanoTime() - startNanos;
+
         return entity;
     }
 
@@ -315,42 +520,34 @@ public class StateExecutorService {
     private <M extends StateService> Entity hookOnBeforeSave(Entity entity, final Collection<M> services,
             final String sourceState, final String targetState, final Entity stateChangeEntity,
             final StateChangeEntityDescriber describer) {
+        long startNanos = System.nanoTime();
+
         for (StateService service : services) {
             entity = service.onBeforeSave(entity, sourceState, targetState, stateChangeEntity, describer);
         }
 
+        hooksNanos += System.nanoTime() - startNanos;
+
         return entity;
     }
 
     private <M extends StateService> boolean hookOnAfterSave(Entity entity, final Collection<M> services,
             final String sourceState, final String targetState, final Entity stateChangeEntity,
             final StateChangeEntityDescriber describer) {
+        long startNanos = System.nanoTime();
+
         for (StateService service : services) {
             entity = service.onAfterSave(entity, sourceState, targetState, stateChangeEntity, describer);
         }
 
-        return entity.isValid();
-    }
-
-    private <M extends StateService> List<M> lookupChangeStateServices(final Class<M> serviceMarker) {
-        Map<String, M> stateServices = applicationContext.getBeansOfType(serviceMarker);
-
-        List<M> services = Lists.newArrayList();
-
-        for (M service : stateServices.values()) {
-            if (serviceEnabled(service)) {
-                services.add(service);
-            }
-        }
-
-        AnnotationAwareOrderComparator.sort(services);
+        hooksNanos += System.nanoTime() - startNanos;
 
-        return services;
+        return entity.isValid();
     }
 
     public <M extends StateService> void buildInitial(final Class<M> serviceMarker, final Entity entity,
             final String initialState) {
-        List<M> services = lookupChangeStateServices(serviceMarker);
+        List<M> services = stateServicePipelineCache.getServices(serviceMarker);
 
         StateChangeEntityDescriber describer = services.get(0).getChangeEntityDescriber();
         Entity stateChangeEntity = buildStateChangeEntity(describer, entity, StringUtils.EMPTY, null, initialState);
@@ -361,22 +558,6 @@ public class StateExecutorService {
         entity.setField(describer.getOwnerStateChangesFieldName(), Lists.newArrayList(stateChangeEntity));
     }
 
-    private <M extends Object & StateService> boolean serviceEnabled(final M service) {
-        RunIfEnabled runIfEnabled = service.getClass().getAnnotation(RunIfEnabled.class);
-
-        if (Objects.isNull(runIfEnabled)) {
-            return true;
-        }
-
-        for (String pluginIdentifier : runIfEnabled.value()) {
-            if (!PluginUtils.isEnabled(pluginIdentifier)) {
-                return false;
-            }
-        }
-
-        return true;
-    }
-
     private void copyMessages(final Entity entity, final Entity mainEntity) {
         if (Objects.nonNull(mainEntity) && mainEntity.equals(entity)
                 && entity.getGlobalErrors() == mainEntity.getGlobalErrors()) {
@@ -417,12 +598,30 @@ public class StateExecutorService {
         return saved;
     }
 
-    private void message(final String msg, final ComponentState.MessageType messageType) {
+    private void message(final String msg, final ComponentState.MessageType messageType, final String... args) {
         if (Objects.nonNull(componentMessagesHolder)) {
-            componentMessagesHolder.addMessage(msg, messageType);
+            componentMessagesHolder.addMessage(msg, messageType, args);
         }
     }
 
+    private Set<Long> getOwnersIdsWithUnfinishedStateChange(final StateChangeEntityDescriber describer,
+            final List<Long> ownersIds) {
+        final String ownerFieldName = describer.getOwnerFieldName();
+        final String statusFieldName = describer.getStatusFieldName();
+
+        final Set<String> unfinishedStatuses = Sets.newHashSet(IN_PROGRESS.getStringValue(), PAUSED.getStringValue());
+
+        final SearchCriteriaBuilder searchCriteria = describer.getDataDefinition().find();
+
+        searchCriteria.createAlias(ownerFieldName, ownerFieldName);
+        searchCriteria.add(SearchRestrictions.in(ownerFieldName + ".id", ownersIds));
+        searchCriteria.add(SearchRestrictions.in(statusFieldName, unfinishedStatuses));
+        searchCriteria.setProjection(SearchProjections.alias(SearchProjections.field(ownerFieldName + ".id"), L_OWNER_ID));
+
+        return searchCriteria.list().getEntities().stream().map(entity -> (Long) entity.getField(L_OWNER_ID))
+                .collect(Collectors.toSet());
+    }
+
     private void checkForUnfinishedStateChange(final StateChangeEntityDescriber describer, final Entity owner) {
         final String ownerFieldName = describer.getOwnerFieldName();
         final String statusFieldName = describer.getStatusFieldName();
@@ -0,0 +1,93 @@
+package com.qcadoo.mes.newstates;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.plugin.api.PluginUtils;
+import com.qcadoo.plugin.api.RunIfEnabled;
+
+/**
+ * Keeps state services of each service marker looked up and sorted once, together with identifiers of plugins they depend on.
+ * Only checking whether these plugins are enabled is done on each state change, so enabling or disabling plugin is taken into
+ * account immediately.
+ */
+@Service
+public class StateServicePipelineCache {
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private final Map<Class<?>, List<StateServiceEntry>> pipelines = new ConcurrentHashMap<>();
+
+    public <M extends StateService> List<M> getServices(final Class<M> serviceMarker) {
+        List<StateServiceEntry> pipeline = pipelines.get(serviceMarker);
+
+        if (Objects.isNull(pipeline)) {
+            pipeline = buildPipeline(serviceMarker);
+
+            pipelines.put(serviceMarker, pipeline);
+        }
+
+        List<M> services = Lists.newArrayListWithCapacity(pipeline.size());
+
+        for (StateServiceEntry entry : pipeline) {
+            if (entry.isEnabled()) {
+                services.add(serviceMarker.cast(entry.getService()));
+            }
+        }
+
+        return services;
+    }
+
+    private <M extends StateService> List<StateServiceEntry> buildPipeline(final Class<M> serviceMarker) {
+        List<M> services = Lists.newArrayList(applicationContext.getBeansOfType(serviceMarker).values());
+
+        AnnotationAwareOrderComparator.sort(services);
+
+        List<StateServiceEntry> pipeline = Lists.newArrayListWithCapacity(services.size());
+
+        for (M service : services) {
+            RunIfEnabled runIfEnabled = service.getClass().getAnnotation(RunIfEnabled.class);
+
+            pipeline.add(new StateServiceEntry(service, Objects.isNull(runIfEnabled) ? new String[0] : runIfEnabled.value()));
+        }
+
+        return pipeline;
+    }
+
+    private static final class StateServiceEntry {
+
+        private final StateService service;
+
+        private final String[] pluginIdentifiers;
+
+        private StateServiceEntry(final StateService service, final String[] pluginIdentifiers) {
+            this.service = service;
+            this.pluginIdentifiers = pluginIdentifiers;
+        }
+
+        private StateService getService() {
+            return service;
+        }
+
+        private boolean isEnabled() {
+            for (String pluginIdentifier : pluginIdentifiers) {
+                if (!PluginUtils.isEnabled(pluginIdentifier)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+    }
+
+}
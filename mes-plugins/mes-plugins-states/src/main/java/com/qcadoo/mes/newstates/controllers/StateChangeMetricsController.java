@@ -0,0 +1,35 @@
+package com.qcadoo.mes.newstates.controllers;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.newstates.StateChangeMetrics;
+
+@Controller
+@RequestMapping("/rest/stateChanges")
+public class StateChangeMetricsController {
+
+    @Autowired
+    private StateChangeMetrics stateChangeMetrics;
+
+    @ResponseBody
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> result = Maps.newLinkedHashMap();
+
+        result.put("stateChanges", stateChangeMetrics.getStateChangesCount());
+        result.put("averageDurationMicros", stateChangeMetrics.getAverageDurationMicros());
+        result.put("averageOverheadMicros", stateChangeMetrics.getAverageOverheadMicros());
+        result.put("maxOverheadMicros", stateChangeMetrics.getMaxOverheadMicros());
+
+        return result;
+    }
+
+}
@@ -0,0 +1,243 @@
+package com.qcadoo.mes.newstates;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.basic.ShiftsService;
+import com.qcadoo.mes.states.StateChangeEntityDescriber;
+import com.qcadoo.mes.states.StateEnum;
+import com.qcadoo.mes.states.constants.StateChangeStatus;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.search.SearchCriteriaBuilder;
+import com.qcadoo.model.api.search.SearchCriterion;
+import com.qcadoo.model.api.search.SearchProjection;
+import com.qcadoo.model.api.search.SearchResult;
+
+public class StateExecutorServiceTest {
+
+    private static final Long L_ID = 1L;
+
+    private static final String L_SOURCE_STATE = "01pending";
+
+    private static final String L_TARGET_STATE = "02accepted";
+
+    private static final String L_STATE = "state";
+
+    private static final String L_STATUS = "status";
+
+    private static final String L_SOURCE_STATE_FIELD = "sourceState";
+
+    private static final String L_TARGET_STATE_FIELD = "targetState";
+
+    private StateExecutorService stateExecutorService;
+
+    @Mock
+    private ShiftsService shiftsService;
+
+    @Mock
+    private StateServicePipelineCache stateServicePipelineCache;
+
+    @Mock
+    private StateChangeMetrics stateChangeMetrics;
+
+    @Mock
+    private StateChangeRecordsService stateChangeRecordsService;
+
+    @Mock
+    private StateService stateService;
+
+    @Mock
+    private StateChangeEntityDescriber describer;
+
+    @Mock
+    private StateEnum stateEnum;
+
+    @Mock
+    private DataDefinition ownerDataDefinition, stateChangeDataDefinition;
+
+    @Mock
+    private Entity entity, lockedEntity, stateChangeEntity;
+
+    private final AtomicBoolean entityValid = new AtomicBoolean(true);
+
+    private final AtomicBoolean lockedEntityValid = new AtomicBoolean(true);
+
+    @Before
+    public final void init() {
+        MockitoAnnotations.initMocks(this);
+
+        stateExecutorService = new StateExecutorService();
+
+        ReflectionTestUtils.setField(stateExecutorService, "shiftsService", shiftsService);
+        ReflectionTestUtils.setField(stateExecutorService, "stateServicePipelineCache", stateServicePipelineCache);
+        ReflectionTestUtils.setField(stateExecutorService, "stateChangeMetrics", stateChangeMetrics);
+        ReflectionTestUtils.setField(stateExecutorService, "stateChangeRecordsService", stateChangeRecordsService);
+
+        given(stateServicePipelineCache.getServices(StateService.class)).willReturn(Lists.newArrayList(stateService));
+        given(stateService.getChangeEntityDescriber()).willReturn(describer);
+
+        given(describer.getOwnerDataDefinition()).willReturn(ownerDataDefinition);
+        given(describer.getDataDefinition()).willReturn(stateChangeDataDefinition);
+        given(describer.getOwnerStateFieldName()).willReturn(L_STATE);
+        given(describer.getStatusFieldName()).willReturn(L_STATUS);
+        given(describer.getSourceStateFieldName()).willReturn(L_SOURCE_STATE_FIELD);
+        given(describer.getTargetStateFieldName()).willReturn(L_TARGET_STATE_FIELD);
+        given(describer.getOwnerFieldName()).willReturn("owner");
+        given(describer.parseStateEnum(anyString())).willReturn(stateEnum);
+        given(stateEnum.canChangeTo(stateEnum)).willReturn(true);
+
+        mockSearch(ownerDataDefinition, Lists.newArrayList(entity));
+        mockSearch(stateChangeDataDefinition, Collections.emptyList());
+
+        mockEntity(entity, entityValid);
+        mockEntity(lockedEntity, lockedEntityValid);
+
+        given(ownerDataDefinition.get(L_ID)).willReturn(lockedEntity);
+        given(ownerDataDefinition.save(lockedEntity)).willReturn(lockedEntity);
+
+        given(stateChangeDataDefinition.create()).willReturn(stateChangeEntity);
+        given(stateChangeEntity.getDataDefinition()).willReturn(stateChangeDataDefinition);
+        given(stateChangeEntity.getStringField(L_SOURCE_STATE_FIELD)).willReturn(L_SOURCE_STATE);
+        given(stateChangeEntity.getStringField(L_TARGET_STATE_FIELD)).willReturn(L_TARGET_STATE);
+
+        given(stateService.onValidate(any(Entity.class), anyString(), anyString(), any(Entity.class), eq(describer)))
+                .willAnswer(invocation -> invocation.getArguments()[0]);
+        given(stateService.onBeforeSave(any(Entity.class), anyString(), anyString(), any(Entity.class), eq(describer)))
+                .willAnswer(invocation -> invocation.getArguments()[0]);
+        given(stateService.onAfterSave(any(Entity.class), anyString(), anyString(), any(Entity.class), eq(describer)))
+                .willAnswer(invocation -> invocation.getArguments()[0]);
+    }
+
+    private void mockSearch(final DataDefinition dataDefinition, final List<Entity> entities) {
+        SearchCriteriaBuilder searchCriteriaBuilder = mock(SearchCriteriaBuilder.class);
+        SearchResult searchResult = mock(SearchResult.class);
+
+        given(dataDefinition.find()).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.add(any(SearchCriterion.class))).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.createAlias(anyString(), anyString())).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.setProjection(any(SearchProjection.class))).willReturn(searchCriteriaBuilder);
+        given(searchCriteriaBuilder.list()).willReturn(searchResult);
+        given(searchResult.getEntities()).willReturn(entities);
+    }
+
+    private void mockEntity(final Entity entity, final AtomicBoolean valid) {
+        given(entity.getId()).willReturn(L_ID);
+        given(entity.getDataDefinition()).willReturn(ownerDataDefinition);
+        given(entity.getStringField(L_STATE)).willReturn(L_SOURCE_STATE);
+        given(entity.isValid()).willAnswer(invocation -> valid.get());
+
+        doAnswer(invocation -> {
+            valid.set(false);
+
+            return null;
+        }).when(entity).setNotValid();
+    }
+
+    @Test
+    public final void shouldInsertSuccessfulStateChangeEntityInBatch() {
+        // given
+        given(stateChangeRecordsService.lockOwnerState(describer, L_ID)).willReturn(L_SOURCE_STATE);
+
+        // when
+        List<Entity> entities = stateExecutorService.changeStates(StateService.class, Lists.newArrayList(L_ID), 2L, "user",
+                L_TARGET_STATE);
+
+        // then
+        assertEquals(1, entities.size());
+        assertSame(lockedEntity, entities.get(0));
+        assertTrue(lockedEntityValid.get());
+
+        InOrder inOrder = inOrder(stateChangeRecordsService, stateChangeEntity, lockedEntity, ownerDataDefinition);
+
+        inOrder.verify(stateChangeRecordsService).lockOwnerState(describer, L_ID);
+        inOrder.verify(stateChangeEntity).setField(L_STATUS, StateChangeStatus.IN_PROGRESS.getStringValue());
+        inOrder.verify(lockedEntity).setField(L_STATE, L_TARGET_STATE);
+        inOrder.verify(ownerDataDefinition).save(lockedEntity);
+        inOrder.verify(stateChangeEntity).setField(L_STATUS, StateChangeStatus.SUCCESSFUL.getStringValue());
+        inOrder.verify(stateChangeRecordsService).insertStateChanges(describer, Lists.newArrayList(stateChangeEntity));
+
+        verify(stateChangeDataDefinition, never()).save(any(Entity.class));
+    }
+
+    @Test
+    public final void shouldNotChangeStateOfEntityChangedConcurrently() {
+        // given
+        given(stateChangeRecordsService.lockOwnerState(describer, L_ID)).willReturn(L_TARGET_STATE);
+
+        // when
+        List<Entity> entities = stateExecutorService.changeStates(StateService.class, Lists.newArrayList(L_ID), 2L, "user",
+                L_TARGET_STATE);
+
+        // then
+        assertSame(entity, entities.get(0));
+        assertFalse(entityValid.get());
+
+        verify(stateService, never()).onValidate(any(Entity.class), anyString(), anyString(), any(Entity.class), eq(describer));
+        verify(ownerDataDefinition, never()).save(any(Entity.class));
+        verify(stateChangeDataDefinition, never()).save(any(Entity.class));
+
+        verifyFailedStateChangeInserted();
+    }
+
+    @Test
+    public final void shouldNotMarkStateChangeAsSuccessfulWhenValidationFails() {
+        // given
+        given(stateChangeRecordsService.lockOwnerState(describer, L_ID)).willReturn(L_SOURCE_STATE);
+        given(stateService.onValidate(lockedEntity, L_SOURCE_STATE, L_TARGET_STATE, stateChangeEntity, describer))
+                .willAnswer(invocation -> {
+                    lockedEntity.setNotValid();
+
+                    return lockedEntity;
+                });
+
+        // when
+        List<Entity> entities = stateExecutorService.changeStates(StateService.class, Lists.newArrayList(L_ID), 2L, "user",
+                L_TARGET_STATE);
+
+        // then
+        assertSame(entity, entities.get(0));
+        assertFalse(entityValid.get());
+
+        verify(ownerDataDefinition, never()).save(any(Entity.class));
+        verify(stateChangeDataDefinition, never()).save(any(Entity.class));
+        verify(stateChangeEntity, never()).setField(L_STATUS, StateChangeStatus.SUCCESSFUL.getStringValue());
+
+        verifyFailedStateChangeInserted();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void verifyFailedStateChangeInserted() {
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+
+        verify(stateChangeRecordsService).insertStateChanges(eq(describer), captor.capture());
+        verify(stateChangeEntity).setField(L_STATUS, StateChangeStatus.FAILURE.getStringValue());
+
+        assertEquals(Lists.newArrayList(stateChangeEntity), captor.getValue());
+    }
+
+}
@@ -24,6 +24,7 @@
 package com.qcadoo.mes.technologies;
 
 import java.math.BigDecimal;
+import java.math.MathContext;
 import java.math.RoundingMode;
 import java.util.List;
 import java.util.Map;
@@ -71,6 +72,9 @@ public class ProductQuantitiesServiceImpl implements ProductQuantitiesService {
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
+    @Autowired
+    private TechnologyQuantityGraphService technologyQuantityGraphService;
+
     @Override
     public ProductQuantitiesHolder getProductComponentQuantities(final Entity technology, final BigDecimal givenQuantity) {
         Map<Long, BigDecimal> operationRuns = Maps.newHashMap();
@@ -194,44 +198,96 @@ public class ProductQuantitiesServiceImpl implements ProductQuantitiesService {
     public OperationProductComponentWithQuantityContainer getProductComponentWithQuantitiesForTechnology(final Entity technology,
             final BigDecimal givenQuantity, final Map<Long, BigDecimal> operationRuns,
             final Set<OperationProductComponentHolder> nonComponents) {
-        OperationProductComponentWithQuantityContainer operationProductComponentWithQuantityContainer = new OperationProductComponentWithQuantityContainer();
-
-        EntityTree operationComponents = getOperationComponentsFromTechnology(technology);
-        Entity root = operationComponents.getRoot();
-
-        if (root != null) {
-            preloadProductQuantitiesAndOperationRuns(operationComponents, operationProductComponentWithQuantityContainer,
-                    operationRuns);
-            traverseProductQuantitiesAndOperationRuns(technology, givenQuantity, root, null,
-                    operationProductComponentWithQuantityContainer, nonComponents, operationRuns);
-        }
-
-        return operationProductComponentWithQuantityContainer;
-    }
+        TechnologyQuantityGraph technologyQuantityGraph = technologyQuantityGraphService.getTechnologyQuantityGraph(technology);
 
-    private EntityTree getOperationComponentsFromTechnology(final Entity technology) {
-        return technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS);
+        return technologyQuantityGraph.calculateQuantities(givenQuantity, numberService.getMathContext(), operationRuns,
+                nonComponents);
     }
 
+    /**
+     * Orders are grouped by technology and planned quantity, so every distinct explosion is calculated once and multiplied by
+     * the number of orders sharing it. Results are the same as when exploding and grouping every order separately.
+     */
     private OperationProductComponentWithQuantityContainer getProductComponentWithQuantitiesForOrders(final List<Entity> orders,
             final Map<Long, BigDecimal> operationRuns, final Set<OperationProductComponentHolder> nonComponents,
             final boolean onTheFly) {
-        Map<Long, OperationProductComponentWithQuantityContainer> productComponentWithQuantitiesForOrders = Maps.newHashMap();
+        Map<Long, Entity> ordersById = Maps.newLinkedHashMap();
 
         for (Entity order : orders) {
+            if (order.getBelongsToField(L_TECHNOLOGY) == null) {
+                throw new IllegalStateException("Order doesn't contain technology.");
+            }
+
+            ordersById.put(order.getId(), order);
+        }
+
+        Map<List<Object>, TechnologyQuantityGroup> technologyQuantityGroupsByKey = Maps.newHashMap();
+        List<TechnologyQuantityGroup> technologyQuantityGroups = Lists.newArrayList();
+        List<TechnologyQuantityGroup> technologyQuantityGroupsForOrders = Lists.newArrayList();
+
+        for (Entity order : ordersById.values()) {
             BigDecimal plannedQuantity = order.getDecimalField(L_PLANNED_QUANTITY);
 
             Entity technology = order.getBelongsToField(L_TECHNOLOGY);
 
-            if (technology == null) {
-                throw new IllegalStateException("Order doesn't contain technology.");
+            List<Object> key = Lists.newArrayList(technology.getId(), (plannedQuantity == null) ? null
+                    : plannedQuantity.stripTrailingZeros());
+
+            TechnologyQuantityGroup technologyQuantityGroup = null;
+
+            if (technology.getId() != null) {
+                technologyQuantityGroup = technologyQuantityGroupsByKey.get(key);
             }
 
-            productComponentWithQuantitiesForOrders.put(order.getId(),
-                    getProductComponentWithQuantitiesForTechnology(technology, plannedQuantity, operationRuns, nonComponents));
+            if (technologyQuantityGroup == null) {
+                technologyQuantityGroup = new TechnologyQuantityGroup(
+                        technologyQuantityGraphService.getTechnologyQuantityGraph(technology), plannedQuantity);
+
+                technologyQuantityGroupsByKey.put(key, technologyQuantityGroup);
+                technologyQuantityGroups.add(technologyQuantityGroup);
+            }
+
+            technologyQuantityGroup.addOrder();
+
+            technologyQuantityGroupsForOrders.add(technologyQuantityGroup);
         }
 
-        return groupOperationProductComponentWithQuantities(productComponentWithQuantitiesForOrders);
+        MathContext mathContext = numberService.getMathContext();
+
+        for (TechnologyQuantityGroup technologyQuantityGroup : technologyQuantityGroups) {
+            technologyQuantityGroup.calculate(mathContext);
+        }
+
+        for (TechnologyQuantityGroup technologyQuantityGroup : technologyQuantityGroupsForOrders) {
+            operationRuns.putAll(technologyQuantityGroup.getOperationRuns());
+        }
+
+        OperationProductComponentWithQuantityContainer operationProductComponentWithQuantityContainer = new OperationProductComponentWithQuantityContainer();
+
+        for (TechnologyQuantityGroup technologyQuantityGroup : technologyQuantityGroups) {
+            nonComponents.addAll(technologyQuantityGroup.getNonComponents());
+
+            int ordersCount = technologyQuantityGroup.getOrdersCount();
+
+            for (Entry<OperationProductComponentHolder, BigDecimal> productComponentWithQuantity : technologyQuantityGroup
+                    .getProductComponentWithQuantities().asMap().entrySet()) {
+                OperationProductComponentHolder operationProductComponentHolder = productComponentWithQuantity.getKey();
+                BigDecimal quantity = productComponentWithQuantity.getValue();
+
+                if (ordersCount > 1) {
+                    quantity = quantity.multiply(BigDecimal.valueOf(ordersCount), mathContext);
+                }
+
+                if (operationProductComponentWithQuantityContainer.containsKey(operationProductComponentHolder)) {
+                    quantity = quantity.add(operationProductComponentWithQuantityContainer.get(operationProductComponentHolder),
+                            mathContext);
+                }
+
+                operationProductComponentWithQuantityContainer.put(operationProductComponentHolder, quantity);
+            }
+        }
+
+        return operationProductComponentWithQuantityContainer;
     }
 
     @Override
@@ -493,6 +549,7 @@ public class ProductQuantitiesServiceImpl implements ProductQuantitiesService {
             final OperationProductComponentWithQuantityContainer productComponentWithQuantities,
             final Set<OperationProductComponentHolder> nonComponents, final boolean onlyComponents, final boolean onlyMaterials) {
         Map<Long, BigDecimal> productWithQuantities = Maps.newHashMap();
+        Map<Long, Boolean> productsWithAcceptedMasterTechnology = Maps.newHashMap();
 
         for (Entry<OperationProductComponentHolder, BigDecimal> productComponentWithQuantity : productComponentWithQuantities
                 .asMap().entrySet()) {
@@ -502,8 +559,11 @@ public class ProductQuantitiesServiceImpl implements ProductQuantitiesService {
                 continue;
             }
             if (onlyMaterials) {
-                Entity product = operationProductComponentHolder.getProduct();
-                if (hasAcceptedMasterTechnology(product)) {
+                boolean hasAcceptedMasterTechnology = productsWithAcceptedMasterTechnology.computeIfAbsent(
+                        operationProductComponentHolder.getProductId(),
+                        productId -> hasAcceptedMasterTechnology(operationProductComponentHolder.getProduct()));
+
+                if (hasAcceptedMasterTechnology) {
                     continue;
                 }
             }
@@ -532,15 +592,15 @@ public class ProductQuantitiesServiceImpl implements ProductQuantitiesService {
             final Map<Long, BigDecimal> productWithQuantities) {
         OperationProductComponentHolder operationProductComponentHolder = productComponentWithQuantity.getKey();
 
-        Entity product = operationProductComponentHolder.getProduct();
+        Long productId = operationProductComponentHolder.getProductId();
         BigDecimal newQuantity = productComponentWithQuantity.getValue();
 
-        BigDecimal oldQuantity = productWithQuantities.get(product.getId());
+        BigDecimal oldQuantity = productWithQuantities.get(productId);
         if (oldQuantity != null) {
             newQuantity = newQuantity.add(oldQuantity);
         }
 
-        productWithQuantities.put(product.getId(), newQuantity);
+        productWithQuantities.put(productId, newQuantity);
     }
 
     @Override
@@ -601,4 +661,51 @@ public class ProductQuantitiesServiceImpl implements ProductQuantitiesService {
     public Entity getProduct(final Long productId) {
         return dataDefinitionService.get(BasicConstants.PLUGIN_IDENTIFIER, BasicConstants.MODEL_PRODUCT).get(productId);
     }
+
+    private static final class TechnologyQuantityGroup {
+
+        private final TechnologyQuantityGraph technologyQuantityGraph;
+
+        private final BigDecimal plannedQuantity;
+
+        private final Map<Long, BigDecimal> operationRuns = Maps.newHashMap();
+
+        private final Set<OperationProductComponentHolder> nonComponents = Sets.newHashSet();
+
+        private OperationProductComponentWithQuantityContainer productComponentWithQuantities;
+
+        private int ordersCount;
+
+        private TechnologyQuantityGroup(final TechnologyQuantityGraph technologyQuantityGraph, final BigDecimal plannedQuantity) {
+            this.technologyQuantityGraph = technologyQuantityGraph;
+            this.plannedQuantity = plannedQuantity;
+        }
+
+        private void addOrder() {
+            ordersCount++;
+        }
+
+        private void calculate(final MathContext mathContext) {
+            productComponentWithQuantities = technologyQuantityGraph.calculateQuantities(plannedQuantity, mathContext,
+                    operationRuns, nonComponents);
+        }
+
+        private Map<Long, BigDecimal> getOperationRuns() {
+            return operationRuns;
+        }
+
+        private Set<OperationProductComponentHolder> getNonComponents() {
+            return nonComponents;
+        }
+
+        private OperationProductComponentWithQuantityContainer getProductComponentWithQuantities() {
+            return productComponentWithQuantities;
+        }
+
+        private int getOrdersCount() {
+            return ordersCount;
+        }
+
+    }
+
 }
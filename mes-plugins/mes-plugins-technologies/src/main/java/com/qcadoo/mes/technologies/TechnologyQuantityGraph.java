@@ -0,0 +1,365 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.technologies;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.qcadoo.mes.technologies.constants.TechnologyFields;
+import com.qcadoo.mes.technologies.constants.TechnologyOperationComponentFields;
+import com.qcadoo.mes.technologies.dto.OperationProductComponentHolder;
+import com.qcadoo.mes.technologies.dto.OperationProductComponentWithQuantityContainer;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.EntityTree;
+
+/**
+ * Immutable, array based snapshot of technology operation components and their products, used to calculate product
+ * quantities and operation runs without touching the database.
+ *
+ * Operation components are kept in the order of the operation components tree, operation product components in the order of
+ * their operation's lists. Components sharing the same {@link OperationProductComponentHolder} share one quantity slot, the
+ * same way they share one entry in {@link OperationProductComponentWithQuantityContainer}.
+ */
+public final class TechnologyQuantityGraph {
+
+    private static final String L_QUANTITY = "quantity";
+
+    private final Long technologyProductId;
+
+    private final int rootIndex;
+
+    private final long[] operationComponentIds;
+
+    private final boolean[] areProductQuantitiesDivisible;
+
+    private final boolean[] isTjDivisible;
+
+    private final int[] childrenOffsets;
+
+    private final int[] children;
+
+    private final int[] inComponentsOffsets;
+
+    private final int[] inComponents;
+
+    private final int[] outComponentsOffsets;
+
+    private final int[] outComponents;
+
+    private final long[] componentProductIds;
+
+    private final OperationProductComponentHolder[] componentHolders;
+
+    private final int[] componentSlots;
+
+    private final OperationProductComponentHolder[] slotHolders;
+
+    private final BigDecimal[] slotQuantities;
+
+    private TechnologyQuantityGraph(final Builder builder) {
+        this.technologyProductId = builder.technologyProductId;
+        this.rootIndex = builder.rootIndex;
+        this.operationComponentIds = builder.operationComponentIds;
+        this.areProductQuantitiesDivisible = builder.areProductQuantitiesDivisible;
+        this.isTjDivisible = builder.isTjDivisible;
+        this.childrenOffsets = builder.childrenOffsets;
+        this.children = builder.children;
+        this.inComponentsOffsets = builder.inComponentsOffsets;
+        this.inComponents = builder.inComponents;
+        this.outComponentsOffsets = builder.outComponentsOffsets;
+        this.outComponents = builder.outComponents;
+        this.componentProductIds = builder.componentProductIds;
+        this.componentHolders = builder.componentHolders;
+        this.componentSlots = builder.componentSlots;
+        this.slotHolders = builder.slotHolders;
+        this.slotQuantities = builder.slotQuantities;
+    }
+
+    public static TechnologyQuantityGraph compile(final Entity technology) {
+        return new Builder(technology).build();
+    }
+
+    public int getOperationComponentsCount() {
+        return operationComponentIds.length;
+    }
+
+    public OperationProductComponentWithQuantityContainer calculateQuantities(final BigDecimal givenQuantity,
+            final MathContext mathContext, final Map<Long, BigDecimal> operationRuns,
+            final Set<OperationProductComponentHolder> nonComponents) {
+        OperationProductComponentWithQuantityContainer operationProductComponentWithQuantityContainer = new OperationProductComponentWithQuantityContainer();
+
+        if (rootIndex < 0) {
+            return operationProductComponentWithQuantityContainer;
+        }
+
+        for (long operationComponentId : operationComponentIds) {
+            operationRuns.put(operationComponentId, BigDecimal.ONE);
+        }
+
+        BigDecimal[] quantities = Arrays.copyOf(slotQuantities, slotQuantities.length);
+
+        traverse(givenQuantity, rootIndex, -1, quantities, mathContext, operationRuns, nonComponents);
+
+        for (int slot = 0; slot < slotHolders.length; slot++) {
+            operationProductComponentWithQuantityContainer.put(slotHolders[slot], quantities[slot]);
+        }
+
+        return operationProductComponentWithQuantityContainer;
+    }
+
+    private void traverse(final BigDecimal givenQuantity, final int operationComponent, final int previousOperationComponent,
+            final BigDecimal[] quantities, final MathContext mathContext, final Map<Long, BigDecimal> operationRuns,
+            final Set<OperationProductComponentHolder> nonComponents) {
+        if (previousOperationComponent < 0) {
+            for (int i = outComponentsOffsets[operationComponent]; i < outComponentsOffsets[operationComponent + 1]; i++) {
+                int outComponent = outComponents[i];
+
+                if (technologyProductId.equals(componentProductIds[outComponent])) {
+                    multiplyQuantitiesAndAddOperationRuns(operationComponent, givenQuantity,
+                            quantities[componentSlots[outComponent]], quantities, mathContext, operationRuns);
+
+                    break;
+                }
+            }
+        } else {
+            for (int i = inComponentsOffsets[previousOperationComponent]; i < inComponentsOffsets[previousOperationComponent
+                    + 1]; i++) {
+                int inComponent = inComponents[i];
+
+                for (int j = outComponentsOffsets[operationComponent]; j < outComponentsOffsets[operationComponent + 1]; j++) {
+                    int outComponent = outComponents[j];
+
+                    if (componentProductIds[outComponent] == componentProductIds[inComponent]) {
+                        multiplyQuantitiesAndAddOperationRuns(operationComponent, quantities[componentSlots[inComponent]],
+                                quantities[componentSlots[outComponent]], quantities, mathContext, operationRuns);
+
+                        nonComponents.add(componentHolders[inComponent]);
+
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (int i = childrenOffsets[operationComponent]; i < childrenOffsets[operationComponent + 1]; i++) {
+            traverse(givenQuantity, children[i], operationComponent, quantities, mathContext, operationRuns, nonComponents);
+        }
+    }
+
+    private void multiplyQuantitiesAndAddOperationRuns(final int operationComponent, final BigDecimal needed,
+            final BigDecimal actual, final BigDecimal[] quantities, final MathContext mathContext,
+            final Map<Long, BigDecimal> operationRuns) {
+        BigDecimal multiplier = needed.divide(actual, mathContext);
+
+        if (!areProductQuantitiesDivisible[operationComponent]) {
+            // It's intentional to round up the operation runs
+            multiplier = multiplier.setScale(0, RoundingMode.CEILING);
+        }
+
+        BigDecimal runs = multiplier;
+
+        if (!isTjDivisible[operationComponent]) {
+            runs = multiplier.setScale(0, RoundingMode.CEILING);
+        }
+
+        operationRuns.put(operationComponentIds[operationComponent], runs);
+
+        multiplyQuantities(inComponentsOffsets, inComponents, operationComponent, multiplier, quantities, mathContext);
+        multiplyQuantities(outComponentsOffsets, outComponents, operationComponent, multiplier, quantities, mathContext);
+    }
+
+    private void multiplyQuantities(final int[] offsets, final int[] components, final int operationComponent,
+            final BigDecimal multiplier, final BigDecimal[] quantities, final MathContext mathContext) {
+        for (int i = offsets[operationComponent]; i < offsets[operationComponent + 1]; i++) {
+            int slot = componentSlots[components[i]];
+
+            quantities[slot] = quantities[slot].multiply(multiplier, mathContext).setScale(5, RoundingMode.CEILING);
+        }
+    }
+
+    private static final class Builder {
+
+        private final Entity technology;
+
+        private Long technologyProductId;
+
+        private int rootIndex = -1;
+
+        private long[] operationComponentIds;
+
+        private boolean[] areProductQuantitiesDivisible;
+
+        private boolean[] isTjDivisible;
+
+        private int[] childrenOffsets;
+
+        private int[] children;
+
+        private int[] inComponentsOffsets;
+
+        private int[] inComponents;
+
+        private int[] outComponentsOffsets;
+
+        private int[] outComponents;
+
+        private long[] componentProductIds;
+
+        private OperationProductComponentHolder[] componentHolders;
+
+        private int[] componentSlots;
+
+        private OperationProductComponentHolder[] slotHolders;
+
+        private BigDecimal[] slotQuantities;
+
+        private final List<Entity> components = Lists.newArrayList();
+
+        private final Map<OperationProductComponentHolder, Integer> slots = Maps.newLinkedHashMap();
+
+        private final List<BigDecimal> quantities = Lists.newArrayList();
+
+        private Builder(final Entity technology) {
+            this.technology = technology;
+        }
+
+        private TechnologyQuantityGraph build() {
+            EntityTree operationComponentsTree = technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS);
+            Entity root = operationComponentsTree.getRoot();
+
+            List<Entity> operationComponents = Lists.newArrayList(operationComponentsTree);
+            int size = operationComponents.size();
+
+            Map<Long, Integer> indexes = Maps.newHashMapWithExpectedSize(size);
+
+            operationComponentIds = new long[size];
+            areProductQuantitiesDivisible = new boolean[size];
+            isTjDivisible = new boolean[size];
+
+            for (int index = 0; index < size; index++) {
+                Entity operationComponent = operationComponents.get(index);
+
+                operationComponentIds[index] = operationComponent.getId();
+                areProductQuantitiesDivisible[index] = operationComponent
+                        .getBooleanField(TechnologyOperationComponentFields.ARE_PRODUCT_QUANTITIES_DIVISIBLE);
+                isTjDivisible[index] = operationComponent.getBooleanField(TechnologyOperationComponentFields.IS_TJ_DIVISIBLE);
+
+                indexes.put(operationComponent.getId(), index);
+            }
+
+            if (root == null) {
+                childrenOffsets = inComponentsOffsets = outComponentsOffsets = new int[size + 1];
+                children = inComponents = outComponents = new int[0];
+            } else {
+                technologyProductId = technology.getBelongsToField(TechnologyFields.PRODUCT).getId();
+                rootIndex = indexes.get(root.getId());
+
+                List<Integer> childrenList = Lists.newArrayList();
+                List<Integer> inComponentsList = Lists.newArrayList();
+                List<Integer> outComponentsList = Lists.newArrayList();
+
+                childrenOffsets = new int[size + 1];
+                inComponentsOffsets = new int[size + 1];
+                outComponentsOffsets = new int[size + 1];
+
+                for (int index = 0; index < size; index++) {
+                    Entity operationComponent = operationComponents.get(index);
+
+                    addComponents(operationComponent
+                            .getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_IN_COMPONENTS), inComponentsList);
+                    addComponents(operationComponent
+                            .getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_OUT_COMPONENTS),
+                            outComponentsList);
+
+                    for (Entity child : operationComponent.getHasManyField(TechnologyOperationComponentFields.CHILDREN)) {
+                        childrenList.add(indexes.get(child.getId()));
+                    }
+
+                    childrenOffsets[index + 1] = childrenList.size();
+                    inComponentsOffsets[index + 1] = inComponentsList.size();
+                    outComponentsOffsets[index + 1] = outComponentsList.size();
+                }
+
+                children = toArray(childrenList);
+                inComponents = toArray(inComponentsList);
+                outComponents = toArray(outComponentsList);
+            }
+
+            componentProductIds = new long[components.size()];
+            componentHolders = new OperationProductComponentHolder[components.size()];
+            componentSlots = new int[components.size()];
+
+            for (int component = 0; component < components.size(); component++) {
+                Entity operationProductComponent = components.get(component);
+                OperationProductComponentHolder holder = new OperationProductComponentHolder(operationProductComponent);
+
+                componentProductIds[component] = holder.getProductId();
+                componentHolders[component] = holder;
+
+                Integer slot = slots.get(holder);
+
+                if (slot == null) {
+                    slot = slots.size();
+
+                    slots.put(holder, slot);
+                    quantities.add(null);
+                }
+
+                componentSlots[component] = slot;
+                quantities.set(slot, operationProductComponent.getDecimalField(L_QUANTITY));
+            }
+
+            slotHolders = slots.keySet().toArray(new OperationProductComponentHolder[slots.size()]);
+            slotQuantities = quantities.toArray(new BigDecimal[quantities.size()]);
+
+            return new TechnologyQuantityGraph(this);
+        }
+
+        private void addComponents(final List<Entity> operationProductComponents, final List<Integer> componentIndexes) {
+            for (Entity operationProductComponent : operationProductComponents) {
+                componentIndexes.add(components.size());
+                components.add(operationProductComponent);
+            }
+        }
+
+        private int[] toArray(final List<Integer> list) {
+            int[] array = new int[list.size()];
+
+            for (int i = 0; i < array.length; i++) {
+                array[i] = list.get(i);
+            }
+
+            return array;
+        }
+
+    }
+
+}
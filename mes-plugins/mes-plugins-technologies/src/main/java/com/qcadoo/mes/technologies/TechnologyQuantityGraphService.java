@@ -0,0 +1,133 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.technologies;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.qcadoo.mes.basic.util.TenantKey;
+import com.qcadoo.mes.states.constants.StateChangeStatus;
+import com.qcadoo.mes.technologies.constants.TechnologiesConstants;
+import com.qcadoo.mes.technologies.constants.TechnologyFields;
+import com.qcadoo.mes.technologies.states.constants.TechnologyStateStringValues;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+
+@Service
+public class TechnologyQuantityGraphService {
+
+    private static final String L_LAST_STATE_CHANGE_ID = "lastStateChangeId";
+
+    private static final int L_MAXIMUM_SIZE = 500;
+
+    private static final int L_EXPIRE_AFTER_WRITE_MINUTES = 30;
+
+    @Autowired
+    private DataDefinitionService dataDefinitionService;
+
+    private final Cache<TenantKey<Long>, CachedTechnologyQuantityGraph> technologyQuantityGraphs = CacheBuilder.newBuilder()
+            .maximumSize(L_MAXIMUM_SIZE).expireAfterWrite(L_EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES).build();
+
+    /**
+     * Returns compiled quantity graph of given technology. Graphs of accepted technologies are cached per tenant until the
+     * next state change of the technology, graphs of technologies in other states are compiled on every call, as they can
+     * still be modified.
+     *
+     * Accepted technology can be edited only after it is moved back to another state, so its last successful state change
+     * identifies the version of its operation components. State changes made on other nodes don't evict the local cache,
+     * so cached graphs are also dropped when the last successful state change of the given technology differs from the one
+     * they were compiled for.
+     */
+    public TechnologyQuantityGraph getTechnologyQuantityGraph(final Entity technology) {
+        if ((technology.getId() == null)
+                || !TechnologyStateStringValues.ACCEPTED.equals(technology.getStringField(TechnologyFields.STATE))) {
+            return TechnologyQuantityGraph.compile(technology);
+        }
+
+        return getTechnologyQuantityGraph(TenantKey.of(technology.getId()), technology);
+    }
+
+    TechnologyQuantityGraph getTechnologyQuantityGraph(final TenantKey<Long> key, final Entity technology) {
+        Long lastStateChangeId = getLastSuccessfulStateChangeId(technology.getId());
+
+        CachedTechnologyQuantityGraph cachedTechnologyQuantityGraph = technologyQuantityGraphs.getIfPresent(key);
+
+        if ((cachedTechnologyQuantityGraph == null)
+                || !Objects.equals(cachedTechnologyQuantityGraph.lastStateChangeId, lastStateChangeId)) {
+            cachedTechnologyQuantityGraph = new CachedTechnologyQuantityGraph(lastStateChangeId,
+                    TechnologyQuantityGraph.compile(technology));
+
+            technologyQuantityGraphs.put(key, cachedTechnologyQuantityGraph);
+        }
+
+        return cachedTechnologyQuantityGraph.technologyQuantityGraph;
+    }
+
+    private Long getLastSuccessfulStateChangeId(final Long technologyId) {
+        Entity lastStateChange = getTechnologyStateChangeDD()
+                .find("SELECT MAX(stateChange.id) AS " + L_LAST_STATE_CHANGE_ID
+                        + " FROM #technologies_technologyStateChange AS stateChange "
+                        + "WHERE stateChange.technology.id = :technologyId AND stateChange.status = :status")
+                .setLong("technologyId", technologyId).setString("status", StateChangeStatus.SUCCESSFUL.getStringValue())
+                .setMaxResults(1).uniqueResult();
+
+        if (lastStateChange == null) {
+            return null;
+        }
+
+        return (Long) lastStateChange.getField(L_LAST_STATE_CHANGE_ID);
+    }
+
+    public void evict(final Long technologyId) {
+        if (technologyId != null) {
+            technologyQuantityGraphs.invalidate(TenantKey.of(technologyId));
+        }
+    }
+
+    private DataDefinition getTechnologyStateChangeDD() {
+        return dataDefinitionService.get(TechnologiesConstants.PLUGIN_IDENTIFIER,
+                TechnologiesConstants.MODEL_TECHNOLOGY_STATE_CHANGE);
+    }
+
+    private static final class CachedTechnologyQuantityGraph {
+
+        private final Long lastStateChangeId;
+
+        private final TechnologyQuantityGraph technologyQuantityGraph;
+
+        private CachedTechnologyQuantityGraph(final Long lastStateChangeId,
+                final TechnologyQuantityGraph technologyQuantityGraph) {
+            this.lastStateChangeId = lastStateChangeId;
+            this.technologyQuantityGraph = technologyQuantityGraph;
+        }
+
+    }
+
+}
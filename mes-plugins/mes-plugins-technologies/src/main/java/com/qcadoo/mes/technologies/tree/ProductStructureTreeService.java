@@ -23,8 +23,9 @@
  */
 package com.qcadoo.mes.technologies.tree;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.qcadoo.mes.basic.constants.ProductFields;
+import com.google.common.collect.Maps;
 import com.qcadoo.mes.states.constants.StateChangeStatus;
 import com.qcadoo.mes.technologies.constants.OperationProductInComponentFields;
 import com.qcadoo.mes.technologies.constants.OperationProductOutComponentFields;
@@ -34,6 +35,11 @@ import com.qcadoo.mes.technologies.constants.TechnologyFields;
 import com.qcadoo.mes.technologies.constants.TechnologyOperationComponentFields;
 import com.qcadoo.mes.technologies.states.constants.TechnologyStateChangeFields;
 import com.qcadoo.mes.technologies.states.constants.TechnologyStateStringValues;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.OperationData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.OperationProductData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.TechnologyData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureDataProvider;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
 import com.qcadoo.model.api.Entity;
@@ -43,16 +49,20 @@ import com.qcadoo.model.api.search.JoinType;
 import com.qcadoo.model.api.search.SearchOrders;
 import com.qcadoo.model.api.search.SearchRestrictions;
 import com.qcadoo.model.api.utils.EntityTreeUtilsService;
+import com.qcadoo.security.api.SecurityService;
 import com.qcadoo.view.api.ComponentState.MessageType;
 import com.qcadoo.view.api.ViewDefinitionState;
 import com.qcadoo.view.api.components.FormComponent;
 
 import java.math.BigDecimal;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
 import org.springframework.stereotype.Service;
 
 @Service
@@ -66,20 +76,43 @@ public class ProductStructureTreeService {
 
     public static final String L_MATERIAL = "material";
 
+    private static final String L_PRODUCT_STRUCTURE_TREE_OUTDATED_QUERY = "SELECT COALESCE(root.createdate < "
+            + "(SELECT COALESCE(MAX(sc.dateandtime), '-infinity') FROM technologies_technologystatechange sc "
+            + "WHERE sc.status = :successful AND sc.technology_id IN (SELECT node.technology_id "
+            + "FROM technologies_productstructuretreenode node WHERE node.maintechnology_id = :technologyId)) "
+            + "OR EXISTS (SELECT 1 FROM technologies_productstructuretreenode node LEFT JOIN LATERAL "
+            + "(SELECT t.id FROM technologies_technology t WHERE t.product_id = node.product_id AND t.technologytype IS NULL "
+            + "AND t.state IN (:states) ORDER BY t.master DESC, t.number ASC LIMIT 1) productTechnology ON true "
+            + "WHERE node.maintechnology_id = :technologyId "
+            + "AND ((node.entitytype = :material AND productTechnology.id IS NOT NULL) "
+            + "OR (node.entitytype = :component AND productTechnology.id IS DISTINCT FROM node.technology_id))), true) "
+            + "FROM technologies_productstructuretreenode root WHERE root.maintechnology_id = :technologyId "
+            + "AND root.parent_id IS NULL ORDER BY root.id DESC LIMIT 1";
+
+    private static final String L_DELETE_PRODUCT_STRUCTURE_TREE = "DELETE FROM technologies_productstructuretreenode "
+            + "WHERE maintechnology_id = :technologyId";
+
+    private static final String L_NEXT_PRODUCT_STRUCTURE_TREE_NODE_IDS = "SELECT "
+            + "nextval('technologies_productstructuretreenode_id_seq') FROM generate_series(1, :count)";
+
+    private static final String L_INSERT_PRODUCT_STRUCTURE_TREE_NODE = "INSERT INTO technologies_productstructuretreenode "
+            + "(id, number, technology_id, maintechnology_id, product_id, operation_id, quantity, division_id, parent_id, "
+            + "priority, entitytype, technologygroup_id, standardperformancetechnology, createdate, updatedate, createuser, "
+            + "updateuser) VALUES (:id, :number, :technologyId, :mainTechnologyId, :productId, :operationId, :quantity, "
+            + ":divisionId, :parentId, :priority, :entityType, :technologyGroupId, :standardPerformanceTechnology, :createDate, "
+            + ":createDate, :createUser, :createUser)";
+
     @Autowired
     private DataDefinitionService dataDefinitionService;
 
-    private Entity addChild(final List<Entity> tree, final Entity child, final Entity parent, final String entityType) {
-        child.setField(ProductStructureTreeNodeFields.PARENT, parent);
-        child.setField(ProductStructureTreeNodeFields.NUMBER, (long) tree.size() + 1);
-        child.setField(ProductStructureTreeNodeFields.PRIORITY, 1);
-        child.setField(ProductStructureTreeNodeFields.ENTITY_TYPE, entityType);
+    @Autowired
+    private ProductStructureDataProvider productStructureDataProvider;
 
-        Entity savedChild = child.getDataDefinition().save(child);
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
 
-        tree.add(savedChild);
-        return savedChild;
-    }
+    @Autowired
+    private SecurityService securityService;
 
     public Entity findOperationForProductAndTechnology(final Entity product, final Entity technology) {
         Entity operationProductOutComponent = dataDefinitionService
@@ -122,207 +155,138 @@ public class ProductStructureTreeService {
                 .setMaxResults(1).uniqueResult();
     }
 
-    private BigDecimal findQuantityOfProductInOperation(final Entity product, final Entity operation) {
-        EntityList outProducts = operation.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_OUT_COMPONENTS);
+    /**
+     * Returns product structure tree of technology, generating it again only when it's missing or outdated - when technology or
+     * any of its sub-technologies changed state since the tree was created, or a product of the tree got or lost its
+     * technology. The whole structure is built in memory from bulk loaded technologies and saved with one batch insert.
+     */
+    public EntityTree generateProductStructureTree(final ViewDefinitionState view, final Entity technology) {
+        Long technologyId = technology.getId();
 
-        Entity productComponent = outProducts.find()
-                .add(SearchRestrictions.belongsTo(ProductStructureTreeNodeFields.PRODUCT, product)).setMaxResults(1)
-                .uniqueResult();
-        if (productComponent != null) {
-            return productComponent.getDecimalField(ProductStructureTreeNodeFields.QUANTITY);
-        }
-        EntityList inProducts = operation.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_IN_COMPONENTS);
-        productComponent = inProducts.find().add(SearchRestrictions.belongsTo(ProductStructureTreeNodeFields.PRODUCT, product))
-                .setMaxResults(1).uniqueResult();
-        if (productComponent != null) {
-            return productComponent.getDecimalField(ProductStructureTreeNodeFields.QUANTITY);
+        if (!isProductStructureTreeUpToDate(technologyId)) {
+            ProductStructureData productStructureData = productStructureDataProvider.load(technologyId);
+
+            saveProductStructureTree(technologyId, buildProductStructureTree(view, productStructureData, technologyId));
         }
-        return null;
+
+        return technology.getDataDefinition().get(technologyId).getTreeField(TechnologyFields.PRODUCT_STRUCTURE_TREE);
     }
 
-    private void generateTreeForSubproducts(final Entity operation, final Entity technology, final List<Entity> tree,
-            final Entity parent, final ViewDefinitionState view, final Entity mainTechnology) {
-        EntityList productInComponents = operation
-                .getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_IN_COMPONENTS);
-        DataDefinition treeNodeDD = dataDefinitionService.get(TechnologiesConstants.PLUGIN_IDENTIFIER,
-                TechnologiesConstants.MODEL_PRODUCT_STRUCTURE_TREE_NODE);
-        for (Entity productInComp : productInComponents) {
-            Entity child = treeNodeDD.create();
-            Entity product = productInComp.getBelongsToField(OperationProductInComponentFields.PRODUCT);
-            Entity subOperation = findOperationForProductWithinChildren(product, operation);
-            BigDecimal quantity = findQuantityOfProductInOperation(product, operation);
-            Entity subTechnology = findTechnologyForProduct(product);
+    private boolean isProductStructureTreeUpToDate(final Long technologyId) {
+        Map<String, Object> parameters = Maps.newHashMap();
+
+        parameters.put("technologyId", technologyId);
+        parameters.put("successful", StateChangeStatus.SUCCESSFUL.getStringValue());
+        parameters.put("states", Lists.newArrayList(TechnologyStateStringValues.ACCEPTED, TechnologyStateStringValues.CHECKED));
+        parameters.put("material", L_MATERIAL);
+        parameters.put("component", L_COMPONENT);
+
+        List<Boolean> outdated = jdbcTemplate.queryForList(L_PRODUCT_STRUCTURE_TREE_OUTDATED_QUERY, parameters, Boolean.class);
+
+        return !outdated.isEmpty() && !outdated.get(0);
+    }
+
+    private List<ProductStructureNode> buildProductStructureTree(final ViewDefinitionState view,
+            final ProductStructureData productStructureData, final Long technologyId) {
+        TechnologyData technology = productStructureData.getTechnology(technologyId);
+        OperationData operation = productStructureData.getOperationForProductAndTechnology(technology.getProductId(),
+                technologyId);
+        BigDecimal quantity = productStructureData.getQuantityOfProductInOperation(technology.getProductId(), operation);
+
+        List<ProductStructureNode> tree = Lists.newArrayList();
+
+        ProductStructureNode root = addNode(tree, null, L_FINAL_PRODUCT, technologyId, technologyId, technology.getProductId(),
+                operation, quantity, technology);
+
+        addSubproductNodes(view, productStructureData, operation, technology, tree, root, technologyId);
+
+        return tree;
+    }
+
+    private void addSubproductNodes(final ViewDefinitionState view, final ProductStructureData productStructureData,
+            final OperationData operation, final TechnologyData technology, final List<ProductStructureNode> tree,
+            final ProductStructureNode parent, final Long mainTechnologyId) {
+        for (OperationProductData productIn : operation.getInProducts()) {
+            Long productId = productIn.getProductId();
+            OperationData subOperation = productStructureData.getOperationForProductWithinChildren(productId, operation);
+            BigDecimal quantity = productStructureData.getQuantityOfProductInOperation(productId, operation);
+            TechnologyData subTechnology = productStructureData.getTechnologyForProduct(productId);
 
             if (subTechnology != null) {
                 if (subOperation == null) {
-                    Entity operationForTechnology = findOperationForProductAndTechnology(product, subTechnology);
-                    Entity technologyGroup = subTechnology.getBelongsToField(TechnologyFields.TECHNOLOGY_GROUP);
-                    BigDecimal standardPerformanceTechnology = subTechnology
-                            .getDecimalField(TechnologyFields.STANDARD_PERFORMANCE_TECHNOLOGY);
-
-                    child.setField(ProductStructureTreeNodeFields.TECHNOLOGY, subTechnology);
-                    child.setField(ProductStructureTreeNodeFields.MAIN_TECHNOLOGY, mainTechnology);
-                    child.setField(ProductStructureTreeNodeFields.OPERATION, operationForTechnology);
-                    child.setField(ProductStructureTreeNodeFields.PRODUCT, product);
-                    child.setField(ProductStructureTreeNodeFields.QUANTITY, quantity);
-                    child.setField(ProductStructureTreeNodeFields.DIVISION,
-                            operationForTechnology.getBelongsToField(TechnologyOperationComponentFields.DIVISION));
-                    child.setField(ProductStructureTreeNodeFields.TECHNOLOGY_GROUP, technologyGroup);
-                    child.setField(ProductStructureTreeNodeFields.STANDARD_PERFORMANCE_TECHNOLOGY, standardPerformanceTechnology);
-                    child = addChild(tree, child, parent, L_COMPONENT);
-                    generateTreeForSubproducts(operationForTechnology, subTechnology, tree, child, view, mainTechnology);
+                    OperationData operationForTechnology = productStructureData.getOperationForProductAndTechnology(productId,
+                            subTechnology.getId());
+
+                    ProductStructureNode child = addNode(tree, parent, L_COMPONENT, subTechnology.getId(), mainTechnologyId,
+                            productId, operationForTechnology, quantity, subTechnology);
+                    addSubproductNodes(view, productStructureData, operationForTechnology, subTechnology, tree, child,
+                            mainTechnologyId);
                 } else {
-                    child.setField(ProductStructureTreeNodeFields.TECHNOLOGY, technology);
-                    child.setField(ProductStructureTreeNodeFields.MAIN_TECHNOLOGY, mainTechnology);
-                    child.setField(ProductStructureTreeNodeFields.PRODUCT, product);
-                    child.setField(ProductStructureTreeNodeFields.QUANTITY, quantity);
-                    child.setField(ProductStructureTreeNodeFields.OPERATION, subOperation);
-                    child.setField(ProductStructureTreeNodeFields.DIVISION,
-                            subOperation.getBelongsToField(TechnologyOperationComponentFields.DIVISION));
-                    child = addChild(tree, child, parent, L_INTERMEDIATE);
+                    ProductStructureNode child = addNode(tree, parent, L_INTERMEDIATE, technology.getId(), mainTechnologyId,
+                            productId, subOperation, quantity, null);
                     if (view != null) {
                         FormComponent productStructureForm = (FormComponent) view.getComponentByReference("productStructureForm");
                         if (productStructureForm != null) {
                             productStructureForm
                                     .addMessage(
                                             "technologies.technologyDetails.window.productStructure.productStructureForm.technologyAndOperationExists",
-                                            MessageType.INFO,
-                                            false,
-                                            product.getStringField(ProductFields.NUMBER) + " "
-                                                    + product.getStringField(ProductFields.NAME));
+                                            MessageType.INFO, false,
+                                            productIn.getProductNumber() + " " + productIn.getProductName());
                         }
                     }
-                    generateTreeForSubproducts(subOperation, technology, tree, child, view, mainTechnology);
+                    addSubproductNodes(view, productStructureData, subOperation, technology, tree, child, mainTechnologyId);
                 }
+            } else if (subOperation != null) {
+                ProductStructureNode child = addNode(tree, parent, L_INTERMEDIATE, technology.getId(), mainTechnologyId,
+                        productId, subOperation, quantity, technology);
+                addSubproductNodes(view, productStructureData, subOperation, technology, tree, child, mainTechnologyId);
             } else {
-                Entity technologyGroup = technology.getBelongsToField(TechnologyFields.TECHNOLOGY_GROUP);
-                BigDecimal standardPerformanceTechnology = technology
-                        .getDecimalField(TechnologyFields.STANDARD_PERFORMANCE_TECHNOLOGY);
-                child.setField(ProductStructureTreeNodeFields.TECHNOLOGY, technology);
-                child.setField(ProductStructureTreeNodeFields.MAIN_TECHNOLOGY, mainTechnology);
-                child.setField(ProductStructureTreeNodeFields.PRODUCT, product);
-                child.setField(ProductStructureTreeNodeFields.QUANTITY, quantity);
-                child.setField(ProductStructureTreeNodeFields.TECHNOLOGY_GROUP, technologyGroup);
-                child.setField(ProductStructureTreeNodeFields.STANDARD_PERFORMANCE_TECHNOLOGY, standardPerformanceTechnology);
-
-                if (subOperation != null) {
-                    child.setField(ProductStructureTreeNodeFields.OPERATION, subOperation);
-                    child.setField(ProductStructureTreeNodeFields.DIVISION,
-                            subOperation.getBelongsToField(TechnologyOperationComponentFields.DIVISION));
-
-                    child = addChild(tree, child, parent, L_INTERMEDIATE);
-                    generateTreeForSubproducts(subOperation, technology, tree, child, view, mainTechnology);
-                } else {
-                    child.setField(ProductStructureTreeNodeFields.OPERATION, operation);
-                    child.setField(ProductStructureTreeNodeFields.DIVISION,
-                            operation.getBelongsToField(TechnologyOperationComponentFields.DIVISION));
-
-                    addChild(tree, child, parent, L_MATERIAL);
-                }
+                addNode(tree, parent, L_MATERIAL, technology.getId(), mainTechnologyId, productId, operation, quantity,
+                        technology);
             }
         }
     }
 
-    public EntityTree generateProductStructureTree(final ViewDefinitionState view, final Entity technology) {
-        Entity product = technology.getBelongsToField(TechnologyFields.PRODUCT);
-        Entity operation = findOperationForProductAndTechnology(product, technology);
-        Entity technologyFromDB = technology.getDataDefinition().get(technology.getId());
-        EntityTree tree = technologyFromDB.getTreeField(TechnologyFields.PRODUCT_STRUCTURE_TREE);
-        if (tree.getRoot() != null) {
-            Date productStructureCreateDate = tree.getRoot().getDateField(ProductStructureTreeNodeFields.CREATE_DATE);
-            List<Entity> treeEntities = tree.find().list().getEntities();
-            Entity technologyStateChange = getLastTechnologyStateChange(technologyFromDB);
-            if (productStructureCreateDate.before(technologyStateChange.getDateField(TechnologyStateChangeFields.DATE_AND_TIME))
-                    || checkSubTechnologiesSubstitution(treeEntities)
-                    || checkIfSubTechnologiesChanged(operation, productStructureCreateDate)) {
-                deleteProductStructureTree(treeEntities);
-            } else {
-                return tree;
-            }
-        }
-        DataDefinition treeNodeDD = dataDefinitionService.get(TechnologiesConstants.PLUGIN_IDENTIFIER,
-                TechnologiesConstants.MODEL_PRODUCT_STRUCTURE_TREE_NODE);
-        Entity root = treeNodeDD.create();
-        BigDecimal quantity = findQuantityOfProductInOperation(product, operation);
-        Entity technologyGroup = technology.getBelongsToField(TechnologyFields.TECHNOLOGY_GROUP);
-        BigDecimal standardPerformanceTechnology = technology.getDecimalField(TechnologyFields.STANDARD_PERFORMANCE_TECHNOLOGY);
-        root.setField(ProductStructureTreeNodeFields.TECHNOLOGY, technology);
-        root.setField(ProductStructureTreeNodeFields.MAIN_TECHNOLOGY, technology);
-        root.setField(ProductStructureTreeNodeFields.PRODUCT, product);
-        root.setField(ProductStructureTreeNodeFields.OPERATION, operation);
-        root.setField(ProductStructureTreeNodeFields.QUANTITY, quantity);
-        root.setField(ProductStructureTreeNodeFields.DIVISION,
-                operation.getBelongsToField(TechnologyOperationComponentFields.DIVISION));
-        root.setField(ProductStructureTreeNodeFields.TECHNOLOGY_GROUP, technologyGroup);
-        root.setField(ProductStructureTreeNodeFields.STANDARD_PERFORMANCE_TECHNOLOGY, standardPerformanceTechnology);
-
-        List<Entity> productStructureList = new ArrayList<>();
-        root = addChild(productStructureList, root, null, L_FINAL_PRODUCT);
-
-        generateTreeForSubproducts(operation, technology, productStructureList, root, view, technology);
-
-        return EntityTreeUtilsService.getDetachedEntityTree(productStructureList);
-    }
+    private ProductStructureNode addNode(final List<ProductStructureNode> tree, final ProductStructureNode parent,
+            final String entityType, final Long technologyId, final Long mainTechnologyId, final Long productId,
+            final OperationData operation, final BigDecimal quantity, final TechnologyData technologyData) {
+        ProductStructureNode node = new ProductStructureNode(tree.size() + 1, parent);
 
-    private void deleteProductStructureTree(List<Entity> treeEntities) {
-        for (Entity entity : treeEntities) {
-            entity.getDataDefinition().delete(entity.getId());
-        }
-    }
+        node.parameters.addValue("number", String.valueOf(node.number)).addValue("technologyId", technologyId)
+                .addValue("mainTechnologyId", mainTechnologyId).addValue("productId", productId)
+                .addValue("operationId", operation.getId()).addValue("divisionId", operation.getDivisionId())
+                .addValue("quantity", quantity).addValue("entityType", entityType)
+                .addValue("technologyGroupId", technologyData == null ? null : technologyData.getTechnologyGroupId())
+                .addValue("standardPerformanceTechnology",
+                        technologyData == null ? null : technologyData.getStandardPerformanceTechnology());
 
-    private boolean checkSubTechnologiesSubstitution(List<Entity> treeEntities) {
-        for (Entity entity : treeEntities) {
-            String entityType = entity.getStringField(ProductStructureTreeNodeFields.ENTITY_TYPE);
-            if (entityType.equals(L_INTERMEDIATE) || entityType.equals(L_FINAL_PRODUCT)) {
-                continue;
-            }
-            Entity product = entity.getBelongsToField(ProductStructureTreeNodeFields.PRODUCT);
-            Entity newTechnology = findTechnologyForProduct(product);
-            if (entityType.equals(L_MATERIAL) && newTechnology != null) {
-                return true;
-            } else if (entityType.equals(L_COMPONENT)) {
-                Entity oldTechnology = entity.getBelongsToField(ProductStructureTreeNodeFields.TECHNOLOGY);
-                if (oldTechnology != null && newTechnology == null || oldTechnology != null
-                        && !oldTechnology.getId().equals(newTechnology.getId())) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        tree.add(node);
+
+        return node;
     }
 
-    private boolean checkIfSubTechnologiesChanged(Entity operation, Date productStructureCreateDate) {
-        for (Entity productInComp : operation.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_IN_COMPONENTS)) {
-            Entity product = productInComp.getBelongsToField(OperationProductInComponentFields.PRODUCT);
-            Entity subOperation = findOperationForProductWithinChildren(product, operation);
-            Entity subTechnology = findTechnologyForProduct(product);
+    private void saveProductStructureTree(final Long technologyId, final List<ProductStructureNode> tree) {
+        jdbcTemplate.update(L_DELETE_PRODUCT_STRUCTURE_TREE, ImmutableMap.of("technologyId", technologyId));
 
-            if (subTechnology != null) {
-                Entity technologyStateChange = getLastTechnologyStateChange(subTechnology);
-                if (productStructureCreateDate.before(technologyStateChange
-                        .getDateField(TechnologyStateChangeFields.DATE_AND_TIME))) {
-                    return true;
-                }
-                if (subOperation == null) {
-                    Entity operationForTechnology = findOperationForProductAndTechnology(product, subTechnology);
-                    boolean changed = checkIfSubTechnologiesChanged(operationForTechnology, productStructureCreateDate);
-                    if (changed) {
-                        return true;
-                    }
-                } else {
-                    boolean changed = checkIfSubTechnologiesChanged(subOperation, productStructureCreateDate);
-                    if (changed) {
-                        return true;
-                    }
-                }
-            } else if (subOperation != null) {
-                boolean changed = checkIfSubTechnologiesChanged(subOperation, productStructureCreateDate);
-                if (changed) {
-                    return true;
-                }
-            }
+        List<Long> ids = jdbcTemplate.queryForList(L_NEXT_PRODUCT_STRUCTURE_TREE_NODE_IDS, ImmutableMap.of("count", tree.size()),
+                Long.class);
+
+        Date createDate = new Date();
+        String userName = securityService.getCurrentUserName();
+
+        SqlParameterSource[] batch = new SqlParameterSource[tree.size()];
+
+        for (int index = 0; index < tree.size(); index++) {
+            ProductStructureNode node = tree.get(index);
+
+            node.id = ids.get(index);
+
+            batch[index] = node.parameters.addValue("id", node.id)
+                    .addValue("parentId", node.parent == null ? null : node.parent.id).addValue("priority", node.priority)
+                    .addValue("createDate", createDate).addValue("createUser", userName);
         }
-        return false;
+
+        jdbcTemplate.batchUpdate(L_INSERT_PRODUCT_STRUCTURE_TREE_NODE, batch);
     }
 
     public Entity getLastTechnologyStateChange(Entity technology) {
@@ -356,13 +320,14 @@ public class ProductStructureTreeService {
                 TechnologiesConstants.MODEL_TECHNOLOGY_OPERATION_COMPONENT);
         Entity root = productStructureTree.getRoot();
         Long rootTocID = root.getBelongsToField(ProductStructureTreeNodeFields.OPERATION).getId();
-        addChildTOC(tocTree, tocDD.get(rootTocID), null, root.getBelongsToField(ProductStructureTreeNodeFields.PRODUCT),
-                L_FINAL_PRODUCT);
-        addTocChildes(tocTree, tocDD, root);
+        Map<Long, Entity> tocsById = Maps.newHashMap();
+        addChildTOC(tocTree, tocsById, tocDD.get(rootTocID), null,
+                root.getBelongsToField(ProductStructureTreeNodeFields.PRODUCT), L_FINAL_PRODUCT);
+        addTocChildes(tocTree, tocsById, tocDD, root);
         return EntityTreeUtilsService.getDetachedEntityTree(tocTree);
     }
 
-    private void addTocChildes(List<Entity> tocTree, DataDefinition tocDD, Entity root) {
+    private void addTocChildes(List<Entity> tocTree, Map<Long, Entity> tocsById, DataDefinition tocDD, Entity root) {
         Entity parent;
         for (Entity node : root.getHasManyField(TechnologyOperationComponentFields.CHILDREN)) {
             String entityType = node.getStringField(ProductStructureTreeNodeFields.ENTITY_TYPE);
@@ -373,26 +338,19 @@ public class ProductStructureTreeService {
                         .getBelongsToField(ProductStructureTreeNodeFields.PARENT)
                         .getBelongsToField(ProductStructureTreeNodeFields.OPERATION).getId() : node.getBelongsToField(
                         ProductStructureTreeNodeFields.OPERATION).getId();
-                parent = getEntityById(tocTree, parentId);
+                parent = tocsById.get(parentId);
                 if(parent == null) {
                     parent.getId();
                 }
-                addChildTOC(tocTree, toc, parent, node.getBelongsToField(ProductStructureTreeNodeFields.PRODUCT), entityType);
+                addChildTOC(tocTree, tocsById, toc, parent, node.getBelongsToField(ProductStructureTreeNodeFields.PRODUCT),
+                        entityType);
             }
-            addTocChildes(tocTree, tocDD, node);
+            addTocChildes(tocTree, tocsById, tocDD, node);
         }
     }
 
-    private Entity getEntityById(final List<Entity> tree, final Long id) {
-        for (Entity entity : tree) {
-            if (entity.getId().equals(id)) {
-                return entity;
-            }
-        }
-        return null;
-    }
-
-    private void addChildTOC(final List<Entity> tree, final Entity child, final Entity parent, final Entity product, String type) {
+    private void addChildTOC(final List<Entity> tree, final Map<Long, Entity> tocsById, final Entity child, final Entity parent,
+            final Entity product, String type) {
         child.setField(TechnologyOperationComponentFields.PARENT, parent);
         child.setField(TechnologyOperationComponentFields.PRIORITY, 1);
         child.setField(TechnologyOperationComponentFields.TYPE_FROM_STRUCTURE_TREE, type);
@@ -409,5 +367,28 @@ public class ProductStructureTreeService {
             parent.setField(TechnologyOperationComponentFields.CHILDREN, children);
         }
         tree.add(child);
+        tocsById.putIfAbsent(child.getId(), child);
+    }
+
+    private static final class ProductStructureNode {
+
+        private final int number;
+
+        private final ProductStructureNode parent;
+
+        private final int priority;
+
+        private final MapSqlParameterSource parameters = new MapSqlParameterSource();
+
+        private Long id;
+
+        private int childrenCount;
+
+        private ProductStructureNode(final int number, final ProductStructureNode parent) {
+            this.number = number;
+            this.parent = parent;
+            this.priority = parent == null ? 1 : ++parent.childrenCount;
+        }
+
     }
 }
@@ -0,0 +1,265 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.technologies.tree.dataProvider;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Technologies, their operations and operation products needed to build product structure tree, held in memory, so that the
+ * tree is built without a query per product. Operation products are expected to be added in order of their ids - the first
+ * one wins when many of them match.
+ */
+public final class ProductStructureData {
+
+    private final Map<Long, TechnologyData> technologies = Maps.newHashMap();
+
+    private final Map<Long, OperationData> operations = Maps.newHashMap();
+
+    private final Map<Long, List<OperationData>> operationsByTechnology = Maps.newHashMap();
+
+    private final Map<Long, Map<Long, OperationData>> operationsByTechnologyAndOutProduct = Maps.newHashMap();
+
+    private final Map<Long, Map<Long, OperationData>> childOperationsByParentAndOutProduct = Maps.newHashMap();
+
+    private final Map<Long, Long> technologyIdsByProduct = Maps.newHashMap();
+
+    public void addTechnology(final TechnologyData technology) {
+        technologies.put(technology.getId(), technology);
+    }
+
+    public void addOperation(final OperationData operation) {
+        operations.put(operation.getId(), operation);
+        operationsByTechnology.computeIfAbsent(operation.getTechnologyId(), technologyId -> Lists.newArrayList()).add(operation);
+    }
+
+    public void addOutProduct(final Long operationId, final Long productId, final BigDecimal quantity) {
+        OperationData operation = operations.get(operationId);
+
+        if (Objects.isNull(operation)) {
+            return;
+        }
+
+        if (!operation.outQuantities.containsKey(productId)) {
+            operation.outQuantities.put(productId, quantity);
+        }
+
+        operationsByTechnologyAndOutProduct.computeIfAbsent(operation.getTechnologyId(), technologyId -> Maps.newHashMap())
+                .putIfAbsent(productId, operation);
+
+        if (Objects.nonNull(operation.getParentId())) {
+            childOperationsByParentAndOutProduct.computeIfAbsent(operation.getParentId(), parentId -> Maps.newHashMap())
+                    .putIfAbsent(productId, operation);
+        }
+    }
+
+    public void addInProduct(final Long operationId, final OperationProductData inProduct) {
+        OperationData operation = operations.get(operationId);
+
+        if (Objects.isNull(operation)) {
+            return;
+        }
+
+        operation.inProducts.add(inProduct);
+        if (!operation.inQuantities.containsKey(inProduct.getProductId())) {
+            operation.inQuantities.put(inProduct.getProductId(), inProduct.getQuantity());
+        }
+    }
+
+    /**
+     * Sets technology used for product in product structure, null when product has no such technology.
+     */
+    public void setTechnologyForProduct(final Long productId, final Long technologyId) {
+        technologyIdsByProduct.put(productId, technologyId);
+    }
+
+    public boolean isTechnologyLoaded(final Long technologyId) {
+        return technologies.containsKey(technologyId);
+    }
+
+    public boolean isTechnologyForProductResolved(final Long productId) {
+        return technologyIdsByProduct.containsKey(productId);
+    }
+
+    public Long getTechnologyIdForProduct(final Long productId) {
+        return technologyIdsByProduct.get(productId);
+    }
+
+    public TechnologyData getTechnology(final Long technologyId) {
+        return technologies.get(technologyId);
+    }
+
+    public TechnologyData getTechnologyForProduct(final Long productId) {
+        Long technologyId = technologyIdsByProduct.get(productId);
+
+        return Objects.isNull(technologyId) ? null : technologies.get(technologyId);
+    }
+
+    public List<OperationData> getOperations(final Long technologyId) {
+        return operationsByTechnology.getOrDefault(technologyId, Collections.emptyList());
+    }
+
+    public OperationData getOperationForProductAndTechnology(final Long productId, final Long technologyId) {
+        return operationsByTechnologyAndOutProduct.getOrDefault(technologyId, Collections.emptyMap()).get(productId);
+    }
+
+    public OperationData getOperationForProductWithinChildren(final Long productId, final OperationData operation) {
+        return childOperationsByParentAndOutProduct.getOrDefault(operation.getId(), Collections.emptyMap()).get(productId);
+    }
+
+    /**
+     * @return quantity of product produced in given operation or, if it isn't produced there, quantity of product used in it
+     */
+    public BigDecimal getQuantityOfProductInOperation(final Long productId, final OperationData operation) {
+        if (operation.outQuantities.containsKey(productId)) {
+            return operation.outQuantities.get(productId);
+        }
+
+        return operation.inQuantities.get(productId);
+    }
+
+    public static final class TechnologyData {
+
+        private final Long id;
+
+        private final Long productId;
+
+        private final Long technologyGroupId;
+
+        private final BigDecimal standardPerformanceTechnology;
+
+        public TechnologyData(final Long id, final Long productId, final Long technologyGroupId,
+                final BigDecimal standardPerformanceTechnology) {
+            this.id = id;
+            this.productId = productId;
+            this.technologyGroupId = technologyGroupId;
+            this.standardPerformanceTechnology = standardPerformanceTechnology;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public Long getProductId() {
+            return productId;
+        }
+
+        public Long getTechnologyGroupId() {
+            return technologyGroupId;
+        }
+
+        public BigDecimal getStandardPerformanceTechnology() {
+            return standardPerformanceTechnology;
+        }
+
+    }
+
+    public static final class OperationData {
+
+        private final Long id;
+
+        private final Long technologyId;
+
+        private final Long parentId;
+
+        private final Long divisionId;
+
+        private final List<OperationProductData> inProducts = Lists.newArrayList();
+
+        private final Map<Long, BigDecimal> inQuantities = Maps.newHashMap();
+
+        private final Map<Long, BigDecimal> outQuantities = Maps.newHashMap();
+
+        public OperationData(final Long id, final Long technologyId, final Long parentId, final Long divisionId) {
+            this.id = id;
+            this.technologyId = technologyId;
+            this.parentId = parentId;
+            this.divisionId = divisionId;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public Long getTechnologyId() {
+            return technologyId;
+        }
+
+        public Long getParentId() {
+            return parentId;
+        }
+
+        public Long getDivisionId() {
+            return divisionId;
+        }
+
+        public List<OperationProductData> getInProducts() {
+            return Collections.unmodifiableList(inProducts);
+        }
+
+    }
+
+    public static final class OperationProductData {
+
+        private final Long productId;
+
+        private final String productNumber;
+
+        private final String productName;
+
+        private final BigDecimal quantity;
+
+        public OperationProductData(final Long productId, final String productNumber, final String productName,
+                final BigDecimal quantity) {
+            this.productId = productId;
+            this.productNumber = productNumber;
+            this.productName = productName;
+            this.quantity = quantity;
+        }
+
+        public Long getProductId() {
+            return productId;
+        }
+
+        public String getProductNumber() {
+            return productNumber;
+        }
+
+        public String getProductName() {
+            return productName;
+        }
+
+        public BigDecimal getQuantity() {
+            return quantity;
+        }
+
+    }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.technologies.tree.dataProvider;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.qcadoo.mes.technologies.states.constants.TechnologyStateStringValues;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.OperationData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.OperationProductData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.TechnologyData;
+
+/**
+ * Loads data needed to build product structure tree of technology. Technologies are loaded level by level - each level with
+ * one query per table for all its technologies, followed by one query resolving technologies of all their input products.
+ */
+@Service
+public class ProductStructureDataProvider {
+
+    private static final String L_TECHNOLOGY_IDS = "technologyIds";
+
+    private static final String L_TECHNOLOGIES_QUERY = "SELECT id, product_id, technologygroup_id, "
+            + "standardperformancetechnology FROM technologies_technology WHERE id IN (:technologyIds)";
+
+    private static final String L_OPERATIONS_QUERY = "SELECT id, technology_id, parent_id, division_id "
+            + "FROM technologies_technologyoperationcomponent WHERE technology_id IN (:technologyIds) ORDER BY id";
+
+    private static final String L_OUT_PRODUCTS_QUERY = "SELECT opoc.operationcomponent_id, opoc.product_id, opoc.quantity "
+            + "FROM technologies_operationproductoutcomponent opoc "
+            + "JOIN technologies_technologyoperationcomponent toc ON toc.id = opoc.operationcomponent_id "
+            + "WHERE toc.technology_id IN (:technologyIds) ORDER BY opoc.id";
+
+    private static final String L_IN_PRODUCTS_QUERY = "SELECT opic.operationcomponent_id, opic.product_id, opic.quantity, "
+            + "product.number, product.name FROM technologies_operationproductincomponent opic "
+            + "JOIN technologies_technologyoperationcomponent toc ON toc.id = opic.operationcomponent_id "
+            + "JOIN basic_product product ON product.id = opic.product_id "
+            + "WHERE toc.technology_id IN (:technologyIds) ORDER BY opic.id";
+
+    private static final String L_TECHNOLOGIES_FOR_PRODUCTS_QUERY = "SELECT DISTINCT ON (product_id) product_id, id "
+            + "FROM technologies_technology WHERE product_id IN (:productIds) AND technologytype IS NULL "
+            + "AND state IN (:states) ORDER BY product_id, master DESC, number ASC";
+
+    @Autowired
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    public ProductStructureData load(final Long technologyId) {
+        ProductStructureData productStructureData = new ProductStructureData();
+
+        Set<Long> technologyIds = Sets.newHashSet(technologyId);
+
+        while (!technologyIds.isEmpty()) {
+            loadTechnologies(productStructureData, technologyIds);
+
+            technologyIds = resolveSubTechnologies(productStructureData, technologyIds);
+        }
+
+        return productStructureData;
+    }
+
+    private void loadTechnologies(final ProductStructureData productStructureData, final Set<Long> technologyIds) {
+        Map<String, Object> parameters = ImmutableMap.of(L_TECHNOLOGY_IDS, technologyIds);
+
+        jdbcTemplate.query(L_TECHNOLOGIES_QUERY, parameters, resultSet -> {
+            productStructureData.addTechnology(new TechnologyData(resultSet.getLong("id"), getLong(resultSet, "product_id"),
+                    getLong(resultSet, "technologygroup_id"), resultSet.getBigDecimal("standardperformancetechnology")));
+        });
+        jdbcTemplate.query(L_OPERATIONS_QUERY, parameters, resultSet -> {
+            productStructureData.addOperation(new OperationData(resultSet.getLong("id"), resultSet.getLong("technology_id"),
+                    getLong(resultSet, "parent_id"), getLong(resultSet, "division_id")));
+        });
+        jdbcTemplate.query(L_OUT_PRODUCTS_QUERY, parameters, resultSet -> {
+            productStructureData.addOutProduct(resultSet.getLong("operationcomponent_id"), resultSet.getLong("product_id"),
+                    resultSet.getBigDecimal("quantity"));
+        });
+        jdbcTemplate.query(L_IN_PRODUCTS_QUERY, parameters, resultSet -> {
+            productStructureData.addInProduct(resultSet.getLong("operationcomponent_id"),
+                    new OperationProductData(resultSet.getLong("product_id"), resultSet.getString("number"),
+                            resultSet.getString("name"), resultSet.getBigDecimal("quantity")));
+        });
+    }
+
+    /**
+     * Resolves technologies of input products of given technologies and returns those of them, which have to be loaded as
+     * sub-technologies - used for products not produced within the operation that takes them in.
+     */
+    private Set<Long> resolveSubTechnologies(final ProductStructureData productStructureData, final Set<Long> technologyIds) {
+        Set<Long> productIds = Sets.newHashSet();
+
+        forEachInProduct(productStructureData, technologyIds, (operation, inProduct) -> {
+            if (!productStructureData.isTechnologyForProductResolved(inProduct.getProductId())) {
+                productIds.add(inProduct.getProductId());
+            }
+        });
+
+        if (!productIds.isEmpty()) {
+            resolveTechnologiesForProducts(productStructureData, productIds);
+        }
+
+        Set<Long> subTechnologyIds = Sets.newHashSet();
+
+        forEachInProduct(productStructureData, technologyIds, (operation, inProduct) -> {
+            Long subTechnologyId = productStructureData.getTechnologyIdForProduct(inProduct.getProductId());
+
+            if (Objects.nonNull(subTechnologyId) && !productStructureData.isTechnologyLoaded(subTechnologyId)
+                    && Objects.isNull(productStructureData.getOperationForProductWithinChildren(inProduct.getProductId(),
+                            operation))) {
+                subTechnologyIds.add(subTechnologyId);
+            }
+        });
+
+        return subTechnologyIds;
+    }
+
+    private void resolveTechnologiesForProducts(final ProductStructureData productStructureData,
+            final Collection<Long> productIds) {
+        productIds.forEach(productId -> productStructureData.setTechnologyForProduct(productId, null));
+
+        for (List<Long> productIdsPart : Lists.partition(Lists.newArrayList(productIds), 1000)) {
+            Map<String, Object> parameters = ImmutableMap.of("productIds", productIdsPart, "states",
+                    Lists.newArrayList(TechnologyStateStringValues.ACCEPTED, TechnologyStateStringValues.CHECKED));
+
+            jdbcTemplate.query(L_TECHNOLOGIES_FOR_PRODUCTS_QUERY, parameters, resultSet -> {
+                productStructureData.setTechnologyForProduct(resultSet.getLong("product_id"), resultSet.getLong("id"));
+            });
+        }
+    }
+
+    private void forEachInProduct(final ProductStructureData productStructureData, final Set<Long> technologyIds,
+            final BiConsumer<OperationData, OperationProductData> consumer) {
+        for (Long technologyId : technologyIds) {
+            for (OperationData operation : productStructureData.getOperations(technologyId)) {
+                for (OperationProductData inProduct : operation.getInProducts()) {
+                    consumer.accept(operation, inProduct);
+                }
+            }
+        }
+    }
+
+    private Long getLong(final ResultSet resultSet, final String columnLabel) throws SQLException {
+        long value = resultSet.getLong(columnLabel);
+
+        return resultSet.wasNull() ? null : value;
+    }
+
+}
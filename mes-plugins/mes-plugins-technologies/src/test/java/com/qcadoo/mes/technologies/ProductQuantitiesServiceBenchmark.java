@@ -0,0 +1,241 @@
+package com.qcadoo.mes.technologies;
+
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.qcadoo.mes.technologies.constants.TechnologyFields;
+import com.qcadoo.mes.technologies.constants.TechnologyOperationComponentFields;
+import com.qcadoo.mes.technologies.dto.OperationProductComponentHolder;
+import com.qcadoo.mes.technologies.dto.OperationProductComponentWithQuantityContainer;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.EntityTree;
+import com.qcadoo.model.api.EntityTreeNode;
+import com.qcadoo.model.api.NumberService;
+import com.qcadoo.testing.model.EntityListMock;
+
+/**
+ * Compares quantities of many orders exploded once per technology and planned quantity, as done by
+ * {@link ProductQuantitiesServiceImpl#getProductComponentWithQuantities(List, Map, Set)}, with exploding every order
+ * separately and grouping the results afterwards, as done before. Orders are generated for twenty technologies with chains
+ * of ten operations and four planned quantities. Entities and compiled graphs lookup are stubbed the same way for both
+ * paths. It isn't run by the test phase, start it with the main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ProductQuantitiesServiceBenchmark {
+
+    private static final int TECHNOLOGIES_COUNT = 20;
+
+    private static final int OPERATIONS_IN_TECHNOLOGY = 10;
+
+    private static final long MATERIAL_ID_OFFSET = 100_000L;
+
+    private static final int[] PLANNED_QUANTITIES = { 10, 25, 50, 100 };
+
+    @Param({ "100", "1000", "10000" })
+    private int ordersCount;
+
+    private ProductQuantitiesServiceImpl productQuantitiesService;
+
+    private List<Entity> orders;
+
+    @Setup(Level.Trial)
+    public void generateOrders() {
+        Random random = new Random(ordersCount);
+
+        DataDefinition productDD = mock(DataDefinition.class);
+        DataDefinition operationComponentDD = mock(DataDefinition.class);
+        DataDefinition operationProductInComponentDD = mock(DataDefinition.class);
+        DataDefinition operationProductOutComponentDD = mock(DataDefinition.class);
+
+        given(operationProductInComponentDD.getName()).willReturn("operationProductInComponent");
+        given(operationProductOutComponentDD.getName()).willReturn("operationProductOutComponent");
+
+        Map<Long, TechnologyQuantityGraph> technologyQuantityGraphs = Maps.newHashMap();
+        List<Entity> technologies = Lists.newArrayList();
+
+        for (long technologyId = 1; technologyId <= TECHNOLOGIES_COUNT; technologyId++) {
+            Entity technology = mockTechnology(technologyId, productDD, operationComponentDD, operationProductInComponentDD,
+                    operationProductOutComponentDD);
+
+            technologyQuantityGraphs.put(technologyId, TechnologyQuantityGraph.compile(technology));
+            technologies.add(technology);
+        }
+
+        NumberService numberService = mock(NumberService.class);
+
+        given(numberService.getMathContext()).willReturn(MathContext.DECIMAL64);
+
+        productQuantitiesService = new ProductQuantitiesServiceImpl();
+
+        ReflectionTestUtils.setField(productQuantitiesService, "numberService", numberService);
+        ReflectionTestUtils.setField(productQuantitiesService, "technologyQuantityGraphService",
+                new TechnologyQuantityGraphService() {
+
+                    @Override
+                    public TechnologyQuantityGraph getTechnologyQuantityGraph(final Entity technology) {
+                        return technologyQuantityGraphs.get(technology.getId());
+                    }
+
+                });
+
+        orders = Lists.newArrayListWithCapacity(ordersCount);
+
+        for (long orderId = 1; orderId <= ordersCount; orderId++) {
+            Entity order = mock(Entity.class);
+
+            given(order.getId()).willReturn(orderId);
+            given(order.getBelongsToField("technology")).willReturn(technologies.get(random.nextInt(TECHNOLOGIES_COUNT)));
+            given(order.getDecimalField("plannedQuantity")).willReturn(
+                    new BigDecimal(PLANNED_QUANTITIES[random.nextInt(PLANNED_QUANTITIES.length)]));
+
+            orders.add(order);
+        }
+    }
+
+    @Benchmark
+    public OperationProductComponentWithQuantityContainer explodeGroupedOrders() {
+        return productQuantitiesService.getProductComponentWithQuantities(orders, Maps.<Long, BigDecimal> newHashMap(),
+                Sets.<OperationProductComponentHolder> newHashSet());
+    }
+
+    @Benchmark
+    public OperationProductComponentWithQuantityContainer explodeEveryOrder() {
+        Map<Long, BigDecimal> operationRuns = Maps.newHashMap();
+        Set<OperationProductComponentHolder> nonComponents = Sets.newHashSet();
+
+        Map<Long, OperationProductComponentWithQuantityContainer> productComponentWithQuantitiesForOrders = Maps.newHashMap();
+
+        for (Entity order : orders) {
+            productComponentWithQuantitiesForOrders.put(order.getId(),
+                    productQuantitiesService.getProductComponentWithQuantitiesForTechnology(
+                            order.getBelongsToField("technology"), order.getDecimalField("plannedQuantity"), operationRuns,
+                            nonComponents));
+        }
+
+        return productQuantitiesService.groupOperationProductComponentWithQuantities(productComponentWithQuantitiesForOrders);
+    }
+
+    /**
+     * Operation k produces intermediate product of operation k - 1 from two units of intermediate product of its child
+     * operation k + 1 and three units of material k, which is shared by all technologies.
+     */
+    private Entity mockTechnology(final long technologyId, final DataDefinition productDD,
+            final DataDefinition operationComponentDD, final DataDefinition operationProductInComponentDD,
+            final DataDefinition operationProductOutComponentDD) {
+        List<Entity> operationComponents = Lists.newArrayListWithCapacity(OPERATIONS_IN_TECHNOLOGY);
+
+        for (int operation = 0; operation < OPERATIONS_IN_TECHNOLOGY; operation++) {
+            EntityTreeNode operationComponent = mock(EntityTreeNode.class);
+
+            given(operationComponent.getId()).willReturn(technologyId * OPERATIONS_IN_TECHNOLOGY + operation);
+            given(operationComponent.getDataDefinition()).willReturn(operationComponentDD);
+            given(operationComponent.getBooleanField(TechnologyOperationComponentFields.ARE_PRODUCT_QUANTITIES_DIVISIBLE))
+                    .willReturn(true);
+            given(operationComponent.getBooleanField(TechnologyOperationComponentFields.IS_TJ_DIVISIBLE)).willReturn(true);
+
+            operationComponents.add(operationComponent);
+        }
+
+        for (int operation = 0; operation < OPERATIONS_IN_TECHNOLOGY; operation++) {
+            Entity operationComponent = operationComponents.get(operation);
+            long intermediateProductId = technologyId * OPERATIONS_IN_TECHNOLOGY + operation;
+
+            List<Entity> inComponents = Lists.newArrayList(mockOperationProductComponent(0, operationProductInComponentDD,
+                    operationComponent, mockProduct(MATERIAL_ID_OFFSET + operation, productDD), 3));
+            List<Entity> children = Collections.emptyList();
+
+            if (operation < OPERATIONS_IN_TECHNOLOGY - 1) {
+                inComponents.add(mockOperationProductComponent(1, operationProductInComponentDD, operationComponent,
+                        mockProduct(intermediateProductId + 1, productDD), 2));
+                children = Lists.newArrayList(operationComponents.get(operation + 1));
+            }
+
+            given(operationComponent.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_IN_COMPONENTS))
+                    .willReturn(EntityListMock.create(inComponents));
+            given(operationComponent.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_OUT_COMPONENTS))
+                    .willReturn(EntityListMock.create(Lists.newArrayList(mockOperationProductComponent(2,
+                            operationProductOutComponentDD, operationComponent, mockProduct(intermediateProductId, productDD),
+                            1))));
+            given(operationComponent.getHasManyField(TechnologyOperationComponentFields.CHILDREN)).willReturn(
+                    EntityListMock.create(children));
+        }
+
+        EntityTree operationComponentsTree = mock(EntityTree.class);
+
+        given(operationComponentsTree.getRoot()).willReturn((EntityTreeNode) operationComponents.get(0));
+        given(operationComponentsTree.iterator()).willReturn(operationComponents.iterator());
+        given(operationComponentsTree.size()).willReturn(operationComponents.size());
+        given(operationComponentsTree.toArray()).willReturn(operationComponents.toArray());
+
+        Entity technology = mock(Entity.class);
+
+        given(technology.getId()).willReturn(technologyId);
+        given(technology.getBelongsToField(TechnologyFields.PRODUCT)).willReturn(
+                mockProduct(technologyId * OPERATIONS_IN_TECHNOLOGY, productDD));
+        given(technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS)).willReturn(operationComponentsTree);
+
+        return technology;
+    }
+
+    private Entity mockOperationProductComponent(final int index, final DataDefinition dataDefinition,
+            final Entity operationComponent, final Entity product, final int quantity) {
+        Entity operationProductComponent = mock(Entity.class);
+
+        given(operationProductComponent.getId()).willReturn(operationComponent.getId() * 10 + index);
+        given(operationProductComponent.getDataDefinition()).willReturn(dataDefinition);
+        given(operationProductComponent.getBelongsToField("operationComponent")).willReturn(operationComponent);
+        given(operationProductComponent.getBelongsToField("product")).willReturn(product);
+        given(operationProductComponent.getDecimalField("quantity")).willReturn(new BigDecimal(quantity));
+
+        return operationProductComponent;
+    }
+
+    private Entity mockProduct(final long productId, final DataDefinition productDD) {
+        Entity product = mock(Entity.class);
+
+        given(product.getId()).willReturn(productId);
+        given(product.getDataDefinition()).willReturn(productDD);
+
+        return product;
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ProductQuantitiesServiceBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,219 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.technologies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.qcadoo.mes.technologies.constants.TechnologyFields;
+import com.qcadoo.mes.technologies.constants.TechnologyOperationComponentFields;
+import com.qcadoo.mes.technologies.dto.OperationProductComponentHolder;
+import com.qcadoo.mes.technologies.dto.OperationProductComponentWithQuantityContainer;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.EntityTree;
+import com.qcadoo.model.api.EntityTreeNode;
+import com.qcadoo.model.api.NumberService;
+import com.qcadoo.testing.model.EntityListMock;
+
+public class ProductQuantitiesServiceImplOrdersTest {
+
+    private ProductQuantitiesServiceImpl productQuantitiesService;
+
+    @Mock
+    private NumberService numberService;
+
+    @Mock
+    private TechnologyQuantityGraphService technologyQuantityGraphService;
+
+    @Mock
+    private Entity technology, product1, product2;
+
+    @Mock
+    private EntityTreeNode operationComponent;
+
+    @Mock
+    private Entity productInComponent, productOutComponent;
+
+    @Mock
+    private DataDefinition operationProductInComponentDD, operationProductOutComponentDD;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        productQuantitiesService = new ProductQuantitiesServiceImpl();
+
+        ReflectionTestUtils.setField(productQuantitiesService, "numberService", numberService);
+        ReflectionTestUtils.setField(productQuantitiesService, "technologyQuantityGraphService", technologyQuantityGraphService);
+
+        given(numberService.getMathContext()).willReturn(MathContext.DECIMAL64);
+
+        given(operationProductInComponentDD.getName()).willReturn("operationProductInComponent");
+        given(operationProductOutComponentDD.getName()).willReturn("operationProductOutComponent");
+
+        given(product1.getId()).willReturn(1L);
+        given(product2.getId()).willReturn(2L);
+
+        // operationComponent: 2 x product1 -> 1 x product2
+        given(operationComponent.getId()).willReturn(10L);
+        given(operationComponent.getBooleanField(TechnologyOperationComponentFields.ARE_PRODUCT_QUANTITIES_DIVISIBLE))
+                .willReturn(true);
+        given(operationComponent.getBooleanField(TechnologyOperationComponentFields.IS_TJ_DIVISIBLE)).willReturn(true);
+        given(operationComponent.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_IN_COMPONENTS))
+                .willReturn(EntityListMock.create(Lists.newArrayList(productInComponent)));
+        given(operationComponent.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_OUT_COMPONENTS))
+                .willReturn(EntityListMock.create(Lists.newArrayList(productOutComponent)));
+        given(operationComponent.getHasManyField(TechnologyOperationComponentFields.CHILDREN)).willReturn(
+                EntityListMock.create(Collections.<Entity> emptyList()));
+
+        stubOperationProductComponent(productInComponent, 11L, operationProductInComponentDD, product1, 2);
+        stubOperationProductComponent(productOutComponent, 12L, operationProductOutComponentDD, product2, 1);
+
+        EntityTree operationComponents = mock(EntityTree.class);
+
+        given(operationComponents.getRoot()).willReturn(operationComponent);
+        given(operationComponents.iterator()).willReturn(Lists.<Entity> newArrayList(operationComponent).iterator());
+        given(operationComponents.size()).willReturn(1);
+        given(operationComponents.toArray()).willReturn(new Object[] { operationComponent });
+
+        given(technology.getId()).willReturn(100L);
+        given(technology.getBelongsToField(TechnologyFields.PRODUCT)).willReturn(product2);
+        given(technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS)).willReturn(operationComponents);
+
+        given(technologyQuantityGraphService.getTechnologyQuantityGraph(technology)).willReturn(
+                TechnologyQuantityGraph.compile(technology));
+    }
+
+    @Test
+    public void shouldExplodeOrdersWithSameTechnologyAndQuantityOnce() {
+        // given
+        Entity order1 = mockOrder(1L, "5");
+        Entity order2 = mockOrder(2L, "5.000");
+        Entity order3 = mockOrder(3L, "5");
+
+        Map<Long, BigDecimal> operationRuns = Maps.newHashMap();
+        Set<OperationProductComponentHolder> nonComponents = Sets.newHashSet();
+
+        // when
+        OperationProductComponentWithQuantityContainer quantities = productQuantitiesService.getProductComponentWithQuantities(
+                Lists.newArrayList(order1, order2, order3), operationRuns, nonComponents);
+
+        // then
+        verify(technologyQuantityGraphService, times(1)).getTechnologyQuantityGraph(technology);
+
+        assertQuantity(30, quantities.get(productInComponent));
+        assertQuantity(15, quantities.get(productOutComponent));
+        assertQuantity(5, operationRuns.get(10L));
+        assertTrue(nonComponents.isEmpty());
+    }
+
+    @Test
+    public void shouldSumQuantitiesOfOrdersWithDifferentQuantities() {
+        // given
+        Entity order1 = mockOrder(1L, "5");
+        Entity order2 = mockOrder(2L, "3");
+
+        // when
+        OperationProductComponentWithQuantityContainer quantities = productQuantitiesService.getProductComponentWithQuantities(
+                Lists.newArrayList(order1, order2), Maps.<Long, BigDecimal> newHashMap(),
+                Sets.<OperationProductComponentHolder> newHashSet());
+
+        // then
+        verify(technologyQuantityGraphService, times(2)).getTechnologyQuantityGraph(technology);
+
+        assertQuantity(16, quantities.get(productInComponent));
+        assertQuantity(8, quantities.get(productOutComponent));
+    }
+
+    @Test
+    public void shouldCountRepeatedOrderOnce() {
+        // given
+        Entity order = mockOrder(1L, "5");
+
+        // when
+        OperationProductComponentWithQuantityContainer quantities = productQuantitiesService.getProductComponentWithQuantities(
+                Lists.newArrayList(order, order), Maps.<Long, BigDecimal> newHashMap(),
+                Sets.<OperationProductComponentHolder> newHashSet());
+
+        // then
+        assertQuantity(10, quantities.get(productInComponent));
+        assertQuantity(5, quantities.get(productOutComponent));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldThrowExceptionIfOrderDoesNotContainTechnology() {
+        // given
+        Entity order = mock(Entity.class);
+
+        given(order.getId()).willReturn(1L);
+
+        // when
+        productQuantitiesService.getProductComponentWithQuantities(Lists.newArrayList(order),
+                Maps.<Long, BigDecimal> newHashMap(), Sets.<OperationProductComponentHolder> newHashSet());
+    }
+
+    private Entity mockOrder(final Long id, final String plannedQuantity) {
+        Entity order = mock(Entity.class);
+
+        given(order.getId()).willReturn(id);
+        given(order.getBelongsToField("technology")).willReturn(technology);
+        given(order.getDecimalField("plannedQuantity")).willReturn(new BigDecimal(plannedQuantity));
+
+        return order;
+    }
+
+    private void stubOperationProductComponent(final Entity operationProductComponent, final Long id,
+            final DataDefinition dataDefinition, final Entity product, final int quantity) {
+        given(operationProductComponent.getId()).willReturn(id);
+        given(operationProductComponent.getDataDefinition()).willReturn(dataDefinition);
+        given(operationProductComponent.getBelongsToField("operationComponent")).willReturn(operationComponent);
+        given(operationProductComponent.getBelongsToField("product")).willReturn(product);
+        given(operationProductComponent.getDecimalField("quantity")).willReturn(new BigDecimal(quantity));
+    }
+
+    private void assertQuantity(final int expected, final BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual));
+    }
+
+}
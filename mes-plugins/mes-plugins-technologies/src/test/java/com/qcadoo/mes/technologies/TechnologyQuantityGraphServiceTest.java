@@ -0,0 +1,142 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.technologies;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.qcadoo.mes.basic.util.TenantKey;
+import com.qcadoo.mes.technologies.constants.TechnologiesConstants;
+import com.qcadoo.mes.technologies.constants.TechnologyFields;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.DataDefinitionService;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.EntityTree;
+import com.qcadoo.model.api.search.SearchQueryBuilder;
+
+public class TechnologyQuantityGraphServiceTest {
+
+    private static final Long L_TECHNOLOGY_ID = 1L;
+
+    private static final TenantKey<Long> L_KEY = TenantKey.of(1, L_TECHNOLOGY_ID);
+
+    private TechnologyQuantityGraphService technologyQuantityGraphService;
+
+    @Mock
+    private DataDefinitionService dataDefinitionService;
+
+    @Mock
+    private DataDefinition technologyStateChangeDD;
+
+    @Mock
+    private SearchQueryBuilder searchQueryBuilder;
+
+    @Mock
+    private Entity technology, lastStateChange;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        technologyQuantityGraphService = new TechnologyQuantityGraphService();
+
+        ReflectionTestUtils.setField(technologyQuantityGraphService, "dataDefinitionService", dataDefinitionService);
+
+        given(dataDefinitionService.get(TechnologiesConstants.PLUGIN_IDENTIFIER,
+                TechnologiesConstants.MODEL_TECHNOLOGY_STATE_CHANGE)).willReturn(technologyStateChangeDD);
+        given(technologyStateChangeDD.find(anyString())).willReturn(searchQueryBuilder);
+        given(searchQueryBuilder.setLong(anyString(), anyLong())).willReturn(searchQueryBuilder);
+        given(searchQueryBuilder.setString(anyString(), anyString())).willReturn(searchQueryBuilder);
+        given(searchQueryBuilder.setMaxResults(1)).willReturn(searchQueryBuilder);
+        given(searchQueryBuilder.uniqueResult()).willReturn(lastStateChange);
+
+        given(technology.getId()).willReturn(L_TECHNOLOGY_ID);
+        given(technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS)).willAnswer(new Answer<EntityTree>() {
+
+            @Override
+            public EntityTree answer(final InvocationOnMock invocation) {
+                return mockEmptyEntityTree();
+            }
+
+        });
+    }
+
+    @Test
+    public void shouldReuseGraphOfNotEditedTechnology() {
+        // given
+        given(lastStateChange.getField("lastStateChangeId")).willReturn(10L);
+
+        TechnologyQuantityGraph technologyQuantityGraph = technologyQuantityGraphService.getTechnologyQuantityGraph(L_KEY,
+                technology);
+
+        // when
+        TechnologyQuantityGraph result = technologyQuantityGraphService.getTechnologyQuantityGraph(L_KEY, technology);
+
+        // then
+        assertSame(technologyQuantityGraph, result);
+    }
+
+    @Test
+    public void shouldCompileNewGraphOfEditedTechnology() {
+        // given
+        given(lastStateChange.getField("lastStateChangeId")).willReturn(10L);
+
+        TechnologyQuantityGraph technologyQuantityGraph = technologyQuantityGraphService.getTechnologyQuantityGraph(L_KEY,
+                technology);
+
+        // technology was moved back to draft, edited and accepted again
+        given(lastStateChange.getField("lastStateChangeId")).willReturn(12L);
+
+        // when
+        TechnologyQuantityGraph result = technologyQuantityGraphService.getTechnologyQuantityGraph(L_KEY, technology);
+
+        // then
+        assertNotSame(technologyQuantityGraph, result);
+        assertSame(result, technologyQuantityGraphService.getTechnologyQuantityGraph(L_KEY, technology));
+    }
+
+    private EntityTree mockEmptyEntityTree() {
+        EntityTree entityTree = mock(EntityTree.class);
+
+        given(entityTree.iterator()).willReturn(Collections.<Entity> emptyIterator());
+        given(entityTree.toArray()).willReturn(new Object[0]);
+
+        return entityTree;
+    }
+
+}
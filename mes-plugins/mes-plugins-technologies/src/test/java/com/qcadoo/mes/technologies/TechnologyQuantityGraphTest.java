@@ -0,0 +1,228 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.technologies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.qcadoo.mes.technologies.constants.TechnologyFields;
+import com.qcadoo.mes.technologies.constants.TechnologyOperationComponentFields;
+import com.qcadoo.mes.technologies.dto.OperationProductComponentHolder;
+import com.qcadoo.mes.technologies.dto.OperationProductComponentWithQuantityContainer;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.EntityTree;
+import com.qcadoo.model.api.EntityTreeNode;
+import com.qcadoo.testing.model.EntityListMock;
+
+public class TechnologyQuantityGraphTest {
+
+    private static final MathContext MATH_CONTEXT = MathContext.DECIMAL64;
+
+    @Mock
+    private Entity technology, product1, product2, product3, product4;
+
+    @Mock
+    private EntityTreeNode operationComponent1, operationComponent2;
+
+    @Mock
+    private Entity productInComponent1, productInComponent2, productInComponent3, productOutComponent2, productOutComponent4;
+
+    @Mock
+    private DataDefinition operationProductInComponentDD, operationProductOutComponentDD;
+
+    @Before
+    public void init() {
+        MockitoAnnotations.initMocks(this);
+
+        given(operationProductInComponentDD.getName()).willReturn("operationProductInComponent");
+        given(operationProductOutComponentDD.getName()).willReturn("operationProductOutComponent");
+
+        given(product1.getId()).willReturn(1L);
+        given(product2.getId()).willReturn(2L);
+        given(product3.getId()).willReturn(3L);
+        given(product4.getId()).willReturn(4L);
+
+        // operationComponent2 (root): 2 x product2 + 1 x product3 -> 1 x product4
+        // operationComponent1 (child): 5 x product1 -> 1 x product2
+        stubOperationComponent(operationComponent1, 1L, false, false, Lists.newArrayList(productInComponent1),
+                Lists.newArrayList(productOutComponent2), Collections.<Entity> emptyList());
+        stubOperationComponent(operationComponent2, 2L, true, true,
+                Lists.newArrayList(productInComponent2, productInComponent3), Lists.newArrayList(productOutComponent4),
+                Lists.<Entity> newArrayList(operationComponent1));
+
+        stubOperationProductComponent(productInComponent1, 11L, operationProductInComponentDD, operationComponent1, product1, 5);
+        stubOperationProductComponent(productOutComponent2, 12L, operationProductOutComponentDD, operationComponent1, product2,
+                1);
+        stubOperationProductComponent(productInComponent2, 21L, operationProductInComponentDD, operationComponent2, product2, 2);
+        stubOperationProductComponent(productInComponent3, 22L, operationProductInComponentDD, operationComponent2, product3, 1);
+        stubOperationProductComponent(productOutComponent4, 23L, operationProductOutComponentDD, operationComponent2, product4,
+                1);
+
+        given(technology.getBelongsToField(TechnologyFields.PRODUCT)).willReturn(product4);
+        given(technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS)).willReturn(
+                mockEntityTree(operationComponent2, Lists.<Entity> newArrayList(operationComponent2, operationComponent1)));
+    }
+
+    @Test
+    public void shouldCalculateQuantitiesAndOperationRuns() {
+        // given
+        TechnologyQuantityGraph technologyQuantityGraph = TechnologyQuantityGraph.compile(technology);
+
+        Map<Long, BigDecimal> operationRuns = Maps.newHashMap();
+        Set<OperationProductComponentHolder> nonComponents = Sets.newHashSet();
+
+        // when
+        OperationProductComponentWithQuantityContainer quantities = technologyQuantityGraph.calculateQuantities(
+                new BigDecimal(3), MATH_CONTEXT, operationRuns, nonComponents);
+
+        // then
+        assertEquals(2, technologyQuantityGraph.getOperationComponentsCount());
+
+        assertQuantity(3, quantities.get(productOutComponent4));
+        assertQuantity(6, quantities.get(productInComponent2));
+        assertQuantity(3, quantities.get(productInComponent3));
+        assertQuantity(6, quantities.get(productOutComponent2));
+        assertQuantity(30, quantities.get(productInComponent1));
+
+        assertQuantity(3, operationRuns.get(2L));
+        assertQuantity(6, operationRuns.get(1L));
+
+        assertEquals(1, nonComponents.size());
+        assertTrue(nonComponents.contains(new OperationProductComponentHolder(productInComponent2)));
+    }
+
+    @Test
+    public void shouldRoundUpRunsOfOperationsWithIndivisibleQuantities() {
+        // given
+        given(operationComponent2.getBooleanField(TechnologyOperationComponentFields.ARE_PRODUCT_QUANTITIES_DIVISIBLE))
+                .willReturn(false);
+
+        TechnologyQuantityGraph technologyQuantityGraph = TechnologyQuantityGraph.compile(technology);
+
+        Map<Long, BigDecimal> operationRuns = Maps.newHashMap();
+
+        // when
+        OperationProductComponentWithQuantityContainer quantities = technologyQuantityGraph.calculateQuantities(
+                new BigDecimal("2.5"), MATH_CONTEXT, operationRuns, Sets.<OperationProductComponentHolder> newHashSet());
+
+        // then
+        assertQuantity(3, operationRuns.get(2L));
+        assertQuantity(3, quantities.get(productOutComponent4));
+        assertQuantity(6, quantities.get(productInComponent2));
+        assertQuantity(30, quantities.get(productInComponent1));
+    }
+
+    @Test
+    public void shouldNotChangeGraphBetweenCalculations() {
+        // given
+        TechnologyQuantityGraph technologyQuantityGraph = TechnologyQuantityGraph.compile(technology);
+
+        technologyQuantityGraph.calculateQuantities(new BigDecimal(10), MATH_CONTEXT, Maps.<Long, BigDecimal> newHashMap(),
+                Sets.<OperationProductComponentHolder> newHashSet());
+
+        // when
+        OperationProductComponentWithQuantityContainer quantities = technologyQuantityGraph.calculateQuantities(BigDecimal.ONE,
+                MATH_CONTEXT, Maps.<Long, BigDecimal> newHashMap(), Sets.<OperationProductComponentHolder> newHashSet());
+
+        // then
+        assertQuantity(1, quantities.get(productOutComponent4));
+        assertQuantity(10, quantities.get(productInComponent1));
+    }
+
+    @Test
+    public void shouldReturnEmptyContainerForTechnologyWithoutOperations() {
+        // given
+        given(technology.getTreeField(TechnologyFields.OPERATION_COMPONENTS)).willReturn(
+                mockEntityTree(null, Lists.<Entity> newArrayList()));
+
+        Map<Long, BigDecimal> operationRuns = Maps.newHashMap();
+
+        // when
+        OperationProductComponentWithQuantityContainer quantities = TechnologyQuantityGraph.compile(technology)
+                .calculateQuantities(BigDecimal.ONE, MATH_CONTEXT, operationRuns,
+                        Sets.<OperationProductComponentHolder> newHashSet());
+
+        // then
+        assertTrue(operationRuns.isEmpty());
+        assertTrue(quantities.asMap().isEmpty());
+    }
+
+    private void stubOperationComponent(final EntityTreeNode operationComponent, final Long id,
+            final boolean areProductQuantitiesDivisible, final boolean isTjDivisible, final List<Entity> inComponents,
+            final List<Entity> outComponents, final List<Entity> children) {
+        given(operationComponent.getId()).willReturn(id);
+        given(operationComponent.getBooleanField(TechnologyOperationComponentFields.ARE_PRODUCT_QUANTITIES_DIVISIBLE))
+                .willReturn(areProductQuantitiesDivisible);
+        given(operationComponent.getBooleanField(TechnologyOperationComponentFields.IS_TJ_DIVISIBLE)).willReturn(isTjDivisible);
+        given(operationComponent.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_IN_COMPONENTS))
+                .willReturn(EntityListMock.create(inComponents));
+        given(operationComponent.getHasManyField(TechnologyOperationComponentFields.OPERATION_PRODUCT_OUT_COMPONENTS))
+                .willReturn(EntityListMock.create(outComponents));
+        given(operationComponent.getHasManyField(TechnologyOperationComponentFields.CHILDREN)).willReturn(
+                EntityListMock.create(children));
+    }
+
+    private void stubOperationProductComponent(final Entity operationProductComponent, final Long id,
+            final DataDefinition dataDefinition, final Entity operationComponent, final Entity product, final int quantity) {
+        given(operationProductComponent.getId()).willReturn(id);
+        given(operationProductComponent.getDataDefinition()).willReturn(dataDefinition);
+        given(operationProductComponent.getBelongsToField("operationComponent")).willReturn(operationComponent);
+        given(operationProductComponent.getBelongsToField("product")).willReturn(product);
+        given(operationProductComponent.getDecimalField("quantity")).willReturn(new BigDecimal(quantity));
+    }
+
+    private EntityTree mockEntityTree(final EntityTreeNode root, final List<Entity> operationComponents) {
+        EntityTree entityTree = mock(EntityTree.class);
+
+        given(entityTree.getRoot()).willReturn(root);
+        given(entityTree.iterator()).willReturn(operationComponents.iterator());
+        given(entityTree.size()).willReturn(operationComponents.size());
+        given(entityTree.toArray()).willReturn(operationComponents.toArray());
+
+        return entityTree;
+    }
+
+    private void assertQuantity(final int expected, final BigDecimal actual) {
+        assertEquals(0, new BigDecimal(expected).compareTo(actual));
+    }
+
+}
@@ -0,0 +1,213 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo MES
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.technologies.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.math.BigDecimal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.namedparam.SqlParameterSource;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.OperationData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.OperationProductData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureData.TechnologyData;
+import com.qcadoo.mes.technologies.tree.dataProvider.ProductStructureDataProvider;
+import com.qcadoo.model.api.DataDefinition;
+import com.qcadoo.model.api.Entity;
+import com.qcadoo.model.api.EntityTree;
+import com.qcadoo.security.api.SecurityService;
+
+public class ProductStructureTreeServiceTest {
+
+    private static final Long L_TECHNOLOGY_ID = 1L;
+
+    private static final Long L_SUB_TECHNOLOGY_ID = 2L;
+
+    private static final Long L_FINAL_PRODUCT_ID = 100L;
+
+    private static final Long L_INTERMEDIATE_ID = 200L;
+
+    private static final Long L_COMPONENT_ID = 300L;
+
+    private static final Long L_MATERIAL_ID = 400L;
+
+    private static final Long L_INTERMEDIATE_MATERIAL_ID = 500L;
+
+    private static final Long L_COMPONENT_MATERIAL_ID = 600L;
+
+    private ProductStructureTreeService productStructureTreeService;
+
+    @Mock
+    private ProductStructureDataProvider productStructureDataProvider;
+
+    @Mock
+    private NamedParameterJdbcTemplate jdbcTemplate;
+
+    @Mock
+    private SecurityService securityService;
+
+    @Mock
+    private DataDefinition technologyDD;
+
+    @Mock
+    private Entity technology, savedTechnology;
+
+    @Mock
+    private EntityTree productStructureTree;
+
+    @Before
+    public final void init() {
+        MockitoAnnotations.initMocks(this);
+
+        productStructureTreeService = new ProductStructureTreeService();
+
+        ReflectionTestUtils.setField(productStructureTreeService, "productStructureDataProvider", productStructureDataProvider);
+        ReflectionTestUtils.setField(productStructureTreeService, "jdbcTemplate", jdbcTemplate);
+        ReflectionTestUtils.setField(productStructureTreeService, "securityService", securityService);
+
+        given(technology.getId()).willReturn(L_TECHNOLOGY_ID);
+        given(technology.getDataDefinition()).willReturn(technologyDD);
+        given(technologyDD.get(L_TECHNOLOGY_ID)).willReturn(savedTechnology);
+        given(savedTechnology.getTreeField("productStructureTree")).willReturn(productStructureTree);
+
+        given(productStructureDataProvider.load(L_TECHNOLOGY_ID)).willReturn(createProductStructureData());
+        given(jdbcTemplate.queryForList(anyString(), anyMapOf(String.class, Object.class), eq(Long.class))).willReturn(
+                Lists.newArrayList(1001L, 1002L, 1003L, 1004L, 1005L, 1006L));
+    }
+
+    /**
+     * Technology 1 produces final product 100 in operation 10 from intermediate 200 (produced in child operation 11 from
+     * material 500), component 300 (produced with technology 2 in operation 20 from material 600) and material 400.
+     */
+    private ProductStructureData createProductStructureData() {
+        ProductStructureData productStructureData = new ProductStructureData();
+
+        productStructureData.addTechnology(new TechnologyData(L_TECHNOLOGY_ID, L_FINAL_PRODUCT_ID, null, null));
+        productStructureData.addTechnology(new TechnologyData(L_SUB_TECHNOLOGY_ID, L_COMPONENT_ID, null, null));
+
+        productStructureData.addOperation(new OperationData(10L, L_TECHNOLOGY_ID, null, null));
+        productStructureData.addOperation(new OperationData(11L, L_TECHNOLOGY_ID, 10L, null));
+        productStructureData.addOperation(new OperationData(20L, L_SUB_TECHNOLOGY_ID, null, null));
+
+        productStructureData.addOutProduct(10L, L_FINAL_PRODUCT_ID, BigDecimal.ONE);
+        productStructureData.addOutProduct(11L, L_INTERMEDIATE_ID, BigDecimal.valueOf(2));
+        productStructureData.addOutProduct(20L, L_COMPONENT_ID, BigDecimal.ONE);
+
+        productStructureData.addInProduct(10L, createOperationProduct(L_INTERMEDIATE_ID, BigDecimal.valueOf(2)));
+        productStructureData.addInProduct(10L, createOperationProduct(L_COMPONENT_ID, BigDecimal.valueOf(3)));
+        productStructureData.addInProduct(10L, createOperationProduct(L_MATERIAL_ID, BigDecimal.valueOf(4)));
+        productStructureData.addInProduct(11L, createOperationProduct(L_INTERMEDIATE_MATERIAL_ID, BigDecimal.valueOf(5)));
+        productStructureData.addInProduct(20L, createOperationProduct(L_COMPONENT_MATERIAL_ID, BigDecimal.valueOf(6)));
+
+        productStructureData.setTechnologyForProduct(L_INTERMEDIATE_ID, null);
+        productStructureData.setTechnologyForProduct(L_COMPONENT_ID, L_SUB_TECHNOLOGY_ID);
+        productStructureData.setTechnologyForProduct(L_MATERIAL_ID, null);
+        productStructureData.setTechnologyForProduct(L_INTERMEDIATE_MATERIAL_ID, null);
+        productStructureData.setTechnologyForProduct(L_COMPONENT_MATERIAL_ID, null);
+
+        return productStructureData;
+    }
+
+    private OperationProductData createOperationProduct(final Long productId, final BigDecimal quantity) {
+        return new OperationProductData(productId, "P-" + productId, "Product " + productId, quantity);
+    }
+
+    @Test
+    public final void shouldSaveWholeProductStructureTreeWhenItIsOutdated() {
+        // given
+        given(jdbcTemplate.queryForList(anyString(), anyMapOf(String.class, Object.class), eq(Boolean.class))).willReturn(
+                Lists.newArrayList(true));
+
+        // when
+        EntityTree tree = productStructureTreeService.generateProductStructureTree(null, technology);
+
+        // then
+        assertEquals(productStructureTree, tree);
+
+        ArgumentCaptor<SqlParameterSource[]> captor = ArgumentCaptor.forClass(SqlParameterSource[].class);
+
+        verify(jdbcTemplate).batchUpdate(anyString(), captor.capture());
+
+        SqlParameterSource[] nodes = captor.getValue();
+
+        assertEquals(6, nodes.length);
+
+        assertNode(nodes[0], 1001L, null, 1, "finalProduct", L_FINAL_PRODUCT_ID, L_TECHNOLOGY_ID, 10L, BigDecimal.ONE);
+        assertNode(nodes[1], 1002L, 1001L, 1, "intermediate", L_INTERMEDIATE_ID, L_TECHNOLOGY_ID, 11L, BigDecimal.valueOf(2));
+        assertNode(nodes[2], 1003L, 1002L, 1, "material", L_INTERMEDIATE_MATERIAL_ID, L_TECHNOLOGY_ID, 11L,
+                BigDecimal.valueOf(5));
+        assertNode(nodes[3], 1004L, 1001L, 2, "component", L_COMPONENT_ID, L_SUB_TECHNOLOGY_ID, 20L, BigDecimal.valueOf(3));
+        assertNode(nodes[4], 1005L, 1004L, 1, "material", L_COMPONENT_MATERIAL_ID, L_SUB_TECHNOLOGY_ID, 20L,
+                BigDecimal.valueOf(6));
+        assertNode(nodes[5], 1006L, 1001L, 3, "material", L_MATERIAL_ID, L_TECHNOLOGY_ID, 10L, BigDecimal.valueOf(4));
+    }
+
+    @Test
+    public final void shouldNotRebuildProductStructureTreeWhenItIsUpToDate() {
+        // given
+        given(jdbcTemplate.queryForList(anyString(), anyMapOf(String.class, Object.class), eq(Boolean.class))).willReturn(
+                Lists.newArrayList(false));
+
+        // when
+        EntityTree tree = productStructureTreeService.generateProductStructureTree(null, technology);
+
+        // then
+        assertEquals(productStructureTree, tree);
+
+        verify(productStructureDataProvider, never()).load(anyLong());
+        verify(jdbcTemplate, never()).batchUpdate(anyString(), any(SqlParameterSource[].class));
+    }
+
+    private void assertNode(final SqlParameterSource node, final Long id, final Long parentId, final int priority,
+            final String entityType, final Long productId, final Long technologyId, final Long operationId,
+            final BigDecimal quantity) {
+        assertEquals(id, node.getValue("id"));
+        assertEquals(parentId, node.getValue("parentId"));
+        assertEquals(priority, node.getValue("priority"));
+        assertEquals(entityType, node.getValue("entityType"));
+        assertEquals(productId, node.getValue("productId"));
+        assertEquals(technologyId, node.getValue("technologyId"));
+        assertEquals(L_TECHNOLOGY_ID, node.getValue("mainTechnologyId"));
+        assertEquals(operationId, node.getValue("operationId"));
+        assertEquals(quantity, node.getValue("quantity"));
+    }
+
+}
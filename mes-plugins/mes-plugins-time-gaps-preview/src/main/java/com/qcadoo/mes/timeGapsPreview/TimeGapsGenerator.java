@@ -25,24 +25,19 @@ package com.qcadoo.mes.timeGapsPreview;
 
 import java.util.Collection;
 import java.util.Map;
-import java.util.Set;
 
-import org.joda.time.DateTime;
-import org.joda.time.Duration;
 import org.joda.time.Interval;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.qcadoo.mes.timeGapsPreview.constants.TimeGapsPreviewConstants;
 import com.qcadoo.mes.timeGapsPreview.provider.OperationalTaskIntervalsProvider;
 import com.qcadoo.mes.timeGapsPreview.provider.OrderAndChangeoverIntervalsProvider;
 import com.qcadoo.mes.timeGapsPreview.provider.ShiftIntervalsProvider;
-import com.qcadoo.mes.timeGapsPreview.util.TimeGapsBuilder;
-import com.qcadoo.mes.timeGapsPreview.util.TimeGapsBuilderImpl;
+import com.qcadoo.mes.timeGapsPreview.util.OccupancyTimeline;
 import com.qcadoo.model.api.DataDefinition;
 import com.qcadoo.model.api.DataDefinitionService;
 
@@ -62,42 +57,45 @@ public class TimeGapsGenerator {
     private DataDefinitionService dataDefinitionService;
 
     public TimeGapsSearchResult generate(final TimeGapsContext timeGapsContext) {
-        Multimap<Long, Interval> occupiedIntervals = createMultiMapWithKeys(timeGapsContext.getProductionLines());
-        occupiedIntervals.putAll(orderAndChangeoverIntervalsProvider.getIntervalsPerProductionLine(timeGapsContext));
-        occupiedIntervals.putAll(operationalTaskIntervalsProvider.getIntervalsPerProductionLine(timeGapsContext));
-        occupiedIntervals.putAll(shiftIntervalsProvider.getIntervalsPerProductionLine(timeGapsContext));
+        return generate(timeGapsContext, Integer.MAX_VALUE);
+    }
 
+    /**
+     * Find gaps, which are at least as long as duration from context.
+     * 
+     * @param timeGapsContext
+     *            search context
+     * @param maxGapsPerLine
+     *            maximal number of gaps per production line, counting from the beginning of the search interval
+     * @return search result
+     */
+    public TimeGapsSearchResult generate(final TimeGapsContext timeGapsContext, final int maxGapsPerLine) {
+        Map<Long, OccupancyTimeline> timelines = createTimelines(timeGapsContext);
+
+        long minDurationMillis = timeGapsContext.getDuration().getMillis();
         Multimap<Long, Interval> timeGaps = HashMultimap.create();
-        for (Map.Entry<Long, Collection<Interval>> lineIntervals : occupiedIntervals.asMap().entrySet()) {
-            Collection<Interval> gapsForLine = invertOccupiedIntervals(timeGapsContext.getInterval(), lineIntervals.getValue());
-            Collection<Interval> gapsForLineFilteredByDuration = Collections2.filter(gapsForLine, new Predicate<Interval>() {
-
-                @Override
-                public boolean apply(final Interval interval) {
-                    if (interval == null) {
-                        return false;
-                    }
-                    return interval.toDuration().compareTo(timeGapsContext.getDuration()) >= 0;
-                }
-            });
-            timeGaps.putAll(lineIntervals.getKey(), gapsForLineFilteredByDuration);
+        for (Map.Entry<Long, OccupancyTimeline> lineTimeline : timelines.entrySet()) {
+            timeGaps.putAll(lineTimeline.getKey(), lineTimeline.getValue().findGaps(minDurationMillis, maxGapsPerLine));
         }
         return TimeGapsSearchResult.create(timeGaps, getTimeGapDataDef());
     }
 
-    private Multimap<Long, Interval> createMultiMapWithKeys(final Set<Long> keys) {
-        Multimap<Long, Interval> multiMap = HashMultimap.create();
-        Interval emptyInterval = new Interval(new DateTime(0L), Duration.ZERO);
-        for (Long key : keys) {
-            multiMap.put(key, emptyInterval);
+    private Map<Long, OccupancyTimeline> createTimelines(final TimeGapsContext timeGapsContext) {
+        Multimap<Long, Interval> ordersAndChangeovers = orderAndChangeoverIntervalsProvider
+                .getIntervalsPerProductionLine(timeGapsContext);
+        Multimap<Long, Interval> operationalTasks = operationalTaskIntervalsProvider
+                .getIntervalsPerProductionLine(timeGapsContext);
+        Collection<Interval> spareTimeIntervals = shiftIntervalsProvider.getSpareTimeIntervals(timeGapsContext);
+
+        Map<Long, OccupancyTimeline> timelines = Maps.newHashMap();
+        for (Long productionLineId : timeGapsContext.getProductionLines()) {
+            OccupancyTimeline timeline = new OccupancyTimeline(timeGapsContext.getInterval());
+            timeline.addOccupiedIntervals(ordersAndChangeovers.get(productionLineId));
+            timeline.addOccupiedIntervals(operationalTasks.get(productionLineId));
+            timeline.addOccupiedIntervals(spareTimeIntervals);
+            timelines.put(productionLineId, timeline);
         }
-        return multiMap;
-    }
-
-    private Collection<Interval> invertOccupiedIntervals(final Interval domainInterval, final Iterable<Interval> occupiedIntervals) {
-        TimeGapsBuilder gapsBuilder = new TimeGapsBuilderImpl(domainInterval);
-        gapsBuilder.addOccupiedIntervals(occupiedIntervals);
-        return gapsBuilder.calculateGaps();
+        return timelines;
     }
 
     private DataDefinition getTimeGapDataDef() {
@@ -30,8 +30,7 @@ import com.qcadoo.mes.basic.ShiftsService;
 import com.qcadoo.mes.basic.shift.Shift;
 import com.qcadoo.mes.basic.util.DateTimeRange;
 import com.qcadoo.mes.timeGapsPreview.TimeGapsContext;
-import com.qcadoo.mes.timeGapsPreview.util.TimeGapsBuilder;
-import com.qcadoo.mes.timeGapsPreview.util.TimeGapsBuilderImpl;
+import com.qcadoo.mes.timeGapsPreview.util.OccupancyTimeline;
 import org.joda.time.Interval;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -49,8 +48,7 @@ public class ShiftIntervalsProvider implements IntervalsProvider {
 
     @Override
     public Multimap<Long, Interval> getIntervalsPerProductionLine(final TimeGapsContext context) {
-        Set<Interval> workIntervals = getWorkIntervals(context);
-        Collection<Interval> spareTimeIntervals = invertIntervals(context.getInterval(), workIntervals);
+        Collection<Interval> spareTimeIntervals = getSpareTimeIntervals(context);
         Multimap<Long, Interval> spareTimeMultiMap = HashMultimap.create();
         for (Long productionLne : context.getProductionLines()) {
             spareTimeMultiMap.putAll(productionLne, spareTimeIntervals);
@@ -58,10 +56,13 @@ public class ShiftIntervalsProvider implements IntervalsProvider {
         return spareTimeMultiMap;
     }
 
-    private Collection<Interval> invertIntervals(final Interval domainInterval, final Iterable<Interval> intervals) {
-        TimeGapsBuilder gapsBuilder = new TimeGapsBuilderImpl(domainInterval);
-        gapsBuilder.addOccupiedIntervals(intervals);
-        return gapsBuilder.calculateGaps();
+    /**
+     * Time without any working shift is the same for each production line, so it is calculated only once per search.
+     */
+    public Collection<Interval> getSpareTimeIntervals(final TimeGapsContext context) {
+        OccupancyTimeline workTimeline = new OccupancyTimeline(context.getInterval());
+        workTimeline.addOccupiedIntervals(getWorkIntervals(context));
+        return workTimeline.findGaps(0L, Integer.MAX_VALUE);
     }
 
     private Set<Interval> getWorkIntervals(final TimeGapsContext context) {
@@ -0,0 +1,156 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo Framework
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.timeGapsPreview.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.joda.time.Interval;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Occupancy of a single production line, kept as epoch millis in primitive arrays. Gaps are found with one sweep over sorted
+ * starts and ends, so no intermediate interval objects are created until a gap is reported.
+ */
+public class OccupancyTimeline {
+
+    private static final int L_INITIAL_CAPACITY = 16;
+
+    private final long searchStart;
+
+    private final long searchEnd;
+
+    private long[] starts = new long[L_INITIAL_CAPACITY];
+
+    private long[] ends = new long[L_INITIAL_CAPACITY];
+
+    private int size;
+
+    public OccupancyTimeline(final Interval searchInterval) {
+        Preconditions.checkArgument(searchInterval != null, "Search interval have to be provided.");
+        searchStart = searchInterval.getStartMillis();
+        searchEnd = searchInterval.getEndMillis();
+    }
+
+    public void addOccupiedIntervals(final Iterable<Interval> intervals) {
+        Preconditions.checkArgument(intervals != null, "Given intervals iterable should be not null");
+        for (Interval interval : intervals) {
+            if (interval != null) {
+                addOccupiedInterval(interval.getStartMillis(), interval.getEndMillis());
+            }
+        }
+    }
+
+    /**
+     * Add occupied time. Parts outside of the search interval are cut off, empty intervals are ignored.
+     */
+    public void addOccupiedInterval(final long start, final long end) {
+        long from = Math.max(start, searchStart);
+        long to = Math.min(end, searchEnd);
+        if (from >= to) {
+            return;
+        }
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        starts[size] = from;
+        ends[size] = to;
+        size++;
+    }
+
+    /**
+     * Calculate gaps which are at least as long as given duration.
+     * 
+     * @param minDurationMillis
+     *            minimal gap duration
+     * @param limit
+     *            maximal number of returned gaps, counting from the beginning of the search interval
+     * @return gaps in chronological order
+     */
+    public List<Interval> findGaps(final long minDurationMillis, final int limit) {
+        final List<Interval> gaps = Lists.newArrayList();
+        forEachGap(minDurationMillis, new GapVisitor() {
+
+            @Override
+            public boolean visit(final long from, final long to) {
+                gaps.add(new Interval(from, to));
+                return gaps.size() < limit;
+            }
+        });
+        return gaps;
+    }
+
+    /**
+     * Visit gaps which are at least as long as given duration in chronological order, until visitor returns false.
+     */
+    public void forEachGap(final long minDurationMillis, final GapVisitor visitor) {
+        Arrays.sort(starts, 0, size);
+        Arrays.sort(ends, 0, size);
+
+        long gapStart = searchStart;
+        int depth = 0;
+        int startIndex = 0;
+        int endIndex = 0;
+        while (startIndex < size) {
+            // starts go before ends at the same moment, so abutting intervals are merged
+            if (starts[startIndex] <= ends[endIndex]) {
+                if (depth == 0 && !visitGap(gapStart, starts[startIndex], minDurationMillis, visitor)) {
+                    return;
+                }
+                depth++;
+                startIndex++;
+            } else {
+                depth--;
+                if (depth == 0) {
+                    gapStart = ends[endIndex];
+                }
+                endIndex++;
+            }
+        }
+        if (size > 0) {
+            gapStart = ends[size - 1];
+        }
+        visitGap(gapStart, searchEnd, minDurationMillis, visitor);
+    }
+
+    private boolean visitGap(final long from, final long to, final long minDurationMillis, final GapVisitor visitor) {
+        if (from >= to || to - from < minDurationMillis) {
+            return true;
+        }
+        return visitor.visit(from, to);
+    }
+
+    public interface GapVisitor {
+
+        /**
+         * @return false if no more gaps should be visited
+         */
+        boolean visit(final long from, final long to);
+
+    }
+
+}
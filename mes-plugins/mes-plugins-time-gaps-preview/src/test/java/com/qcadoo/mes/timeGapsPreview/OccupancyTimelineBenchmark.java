@@ -0,0 +1,103 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo Framework
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.timeGapsPreview;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.timeGapsPreview.util.OccupancyTimeline;
+import com.qcadoo.mes.timeGapsPreview.util.TimeGapsBuilderImpl;
+
+/**
+ * Compares gap search of {@link OccupancyTimeline} with {@link TimeGapsBuilderImpl} for one production line. It isn't run
+ * by the test phase, start it with the main method from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class OccupancyTimelineBenchmark {
+
+    private static final DateTime FROM = new DateTime(2013, 1, 8, 0, 0, 0);
+
+    private static final Interval SEARCH_INTERVAL = new Interval(FROM, FROM.plusDays(30));
+
+    @Param({ "100", "1000", "10000" })
+    private int intervalsCount;
+
+    private List<Interval> occupiedIntervals;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(8L);
+        int searchMinutes = (int) (SEARCH_INTERVAL.toDurationMillis() / 60000L);
+
+        occupiedIntervals = Lists.newArrayListWithCapacity(intervalsCount);
+        for (int i = 0; i < intervalsCount; i++) {
+            DateTime start = FROM.minusHours(2).plusMinutes(random.nextInt(searchMinutes));
+            occupiedIntervals.add(new Interval(start, start.plusMinutes(1 + random.nextInt(180))));
+        }
+    }
+
+    @Benchmark
+    public List<Interval> occupancyTimeline() {
+        OccupancyTimeline occupancyTimeline = new OccupancyTimeline(SEARCH_INTERVAL);
+        occupancyTimeline.addOccupiedIntervals(occupiedIntervals);
+        return occupancyTimeline.findGaps(0L, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public Collection<Interval> timeGapsBuilder() {
+        TimeGapsBuilderImpl timeGapsBuilder = new TimeGapsBuilderImpl(SEARCH_INTERVAL);
+        timeGapsBuilder.addOccupiedIntervals(occupiedIntervals);
+        return timeGapsBuilder.calculateGaps();
+    }
+
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(OccupancyTimelineBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * ***************************************************************************
+ * Copyright (c) 2010 Qcadoo Limited
+ * Project: Qcadoo Framework
+ * Version: 1.4
+ *
+ * This file is part of Qcadoo.
+ *
+ * Qcadoo is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published
+ * by the Free Software Foundation; either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ * ***************************************************************************
+ */
+package com.qcadoo.mes.timeGapsPreview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.joda.time.Interval;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.qcadoo.mes.timeGapsPreview.util.OccupancyTimeline;
+import com.qcadoo.mes.timeGapsPreview.util.TimeGapsBuilderImpl;
+
+public class OccupancyTimelineTest {
+
+    private static final DateTime FROM = new DateTime(2013, 1, 8, 0, 0, 0);
+
+    private static final DateTime TO = FROM.plusDays(1);
+
+    private static final Interval DOMAIN_INTERVAL = new Interval(FROM, TO);
+
+    private OccupancyTimeline occupancyTimeline;
+
+    @Before
+    public void init() {
+        occupancyTimeline = new OccupancyTimeline(DOMAIN_INTERVAL);
+    }
+
+    @Test
+    public final void shouldReturnSearchIntervalIfThereIsNoOccupiedIntervals() {
+        // when
+        List<Interval> gaps = occupancyTimeline.findGaps(0L, Integer.MAX_VALUE);
+
+        // then
+        assertEquals(Lists.newArrayList(DOMAIN_INTERVAL), gaps);
+    }
+
+    @Test
+    public final void shouldMergeAbuttingAndOverlappingIntervals() {
+        // given
+        occupancyTimeline.addOccupiedIntervals(Lists.newArrayList(new Interval(FROM.plusHours(1), FROM.plusHours(2)),
+                new Interval(FROM.plusHours(2), FROM.plusHours(3)), new Interval(FROM.plusHours(5), FROM.plusHours(8)),
+                new Interval(FROM.plusHours(6), FROM.plusHours(7))));
+
+        // when
+        List<Interval> gaps = occupancyTimeline.findGaps(0L, Integer.MAX_VALUE);
+
+        // then
+        assertEquals(Lists.newArrayList(new Interval(FROM, FROM.plusHours(1)), new Interval(FROM.plusHours(3), FROM.plusHours(5)),
+                new Interval(FROM.plusHours(8), TO)), gaps);
+    }
+
+    @Test
+    public final void shouldCutOffIntervalsOutsideOfSearchInterval() {
+        // given
+        occupancyTimeline.addOccupiedIntervals(Lists.newArrayList(new Interval(FROM.minusHours(2), FROM.plusHours(1)),
+                new Interval(TO.minusHours(1), TO.plusHours(3)), new Interval(TO.plusHours(4), TO.plusHours(5))));
+
+        // when
+        List<Interval> gaps = occupancyTimeline.findGaps(0L, Integer.MAX_VALUE);
+
+        // then
+        assertEquals(Lists.newArrayList(new Interval(FROM.plusHours(1), TO.minusHours(1))), gaps);
+    }
+
+    @Test
+    public final void shouldReturnFirstGapsNotShorterThanGivenDuration() {
+        // given
+        for (int hour = 1; hour < 24; hour += 3) {
+            occupancyTimeline.addOccupiedInterval(FROM.plusHours(hour).getMillis(), FROM.plusHours(hour + 1).getMillis());
+        }
+
+        // when
+        List<Interval> gaps = occupancyTimeline.findGaps(Duration.standardHours(2).getMillis(), 2);
+
+        // then
+        assertEquals(Lists.newArrayList(new Interval(FROM.plusHours(2), FROM.plusHours(4)),
+                new Interval(FROM.plusHours(5), FROM.plusHours(7))), gaps);
+    }
+
+    @Test
+    public final void shouldCalculateSameGapsAsTimeGapsBuilder() {
+        // given
+        Random random = new Random(8L);
+        for (int i = 0; i < 100; i++) {
+            List<Interval> intervals = Lists.newArrayList();
+            for (int j = random.nextInt(30); j > 0; j--) {
+                DateTime start = FROM.minusHours(2).plusMinutes(random.nextInt(28 * 60));
+                intervals.add(new Interval(start, start.plusMinutes(1 + random.nextInt(180))));
+            }
+            TimeGapsBuilderImpl timeGapsBuilder = new TimeGapsBuilderImpl(DOMAIN_INTERVAL);
+            timeGapsBuilder.addOccupiedIntervals(intervals);
+            occupancyTimeline = new OccupancyTimeline(DOMAIN_INTERVAL);
+            occupancyTimeline.addOccupiedIntervals(intervals);
+
+            // when
+            Collection<Interval> expectedGaps = timeGapsBuilder.calculateGaps();
+            List<Interval> gaps = occupancyTimeline.findGaps(0L, Integer.MAX_VALUE);
+
+            // then
+            assertEquals(Lists.newArrayList(expectedGaps), gaps);
+            for (Interval gap : gaps) {
+                assertTrue(DOMAIN_INTERVAL.contains(gap));
+            }
+        }
+    }
+
+}